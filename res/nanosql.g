@@ -328,6 +328,8 @@ column_type returns [ColumnType ct]
     { ct = new ColumnType(dt); }
     LPAREN len2:INT_LITERAL { ct.setLength(Integer.parseInt(len2.getText())); }
     RPAREN
+  | TYPE_TEXT { ct = new ColumnType(SQLDataType.TEXT); }
+  | TYPE_BLOB { ct = new ColumnType(SQLDataType.BLOB); }
   | TYPE_DATE { ct = new ColumnType(SQLDataType.DATE); }
   | TYPE_DATETIME { ct = new ColumnType(SQLDataType.DATETIME); }
   | TYPE_TIME { ct = new ColumnType(SQLDataType.TIME); }
@@ -444,6 +446,7 @@ create_index returns [CreateIndexCommand c]
   CREATE ( UNIQUE { unique = true; } )? INDEX ( idxName=dbobj_ident )?
   ON tblName=dbobj_ident
   { c = new CreateIndexCommand(idxName, tblName, unique); }
+  ( USING idxType=dbobj_ident { c.setIndexType(idxType); } )?
   LPAREN colName=dbobj_ident { c.addColumn(colName); }
          ( COMMA colName=dbobj_ident { c.addColumn(colName); } )* RPAREN
   ( p=cmd_properties { c.setProperties(p); } )?
@@ -806,7 +809,7 @@ optimize_stmt returns [OptimizeCommand c]
     c = null;
     String tblName = null;
   } :
-  OPTIMIZE tblName=dbobj_ident { c = new OptimizeCommand(tblName); }
+  OPTIMIZE (TABLE)? tblName=dbobj_ident { c = new OptimizeCommand(tblName); }
   ( COMMA tblName=dbobj_ident { c.addTable(tblName); } )*
   ;
 
@@ -4,6 +4,7 @@ package edu.caltech.nanodb.client;
 import java.io.PrintStream;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import edu.caltech.nanodb.storage.BufferRing;
 import edu.caltech.nanodb.transactions.TransactionState;
 
 
@@ -77,6 +78,13 @@ public class SessionState {
     private TransactionState txnState;
 
 
+    /**
+     * The buffer ring of the scan that is currently reading pages on behalf
+     * of this session, or {@code null} if pages should be cached normally.
+     */
+    private BufferRing bufferRing;
+
+
     private SessionState(int sessionID) {
         this.sessionID = sessionID;
         txnState = new TransactionState();
@@ -116,6 +124,30 @@ public class SessionState {
     }
 
 
+    /**
+     * Returns the buffer ring that pages loaded by this session should be
+     * recycled through, or {@code null} if there is no such ring.
+     *
+     * @return the session's current buffer ring, or {@code null}
+     */
+    public BufferRing getBufferRing() {
+        return bufferRing;
+    }
+
+
+    /**
+     * Sets the buffer ring that pages loaded by this session should be
+     * recycled through.  Scans set their ring while they are reading from a
+     * tuple file, and restore the previous value afterward.
+     *
+     * @param bufferRing the buffer ring to use, or {@code null} if pages
+     *        should be cached normally
+     */
+    public void setBufferRing(BufferRing bufferRing) {
+        this.bufferRing = bufferRing;
+    }
+
+
     @Override
     public int hashCode() {
         return sessionID;
@@ -51,6 +51,13 @@ public class CreateIndexCommand extends Command {
     private ArrayList<String> columnNames = new ArrayList<>();
 
 
+    /**
+     * The kind of index specified in the command's <tt>USING</tt> clause, or
+     * {@code null} if the command doesn't specify one.
+     */
+    private String indexType;
+
+
     /** Any additional properties specified in the command. */
     private CommandProperties properties;
 
@@ -73,6 +80,22 @@ public class CreateIndexCommand extends Command {
     }
 
 
+    public String getIndexType() {
+        return indexType;
+    }
+
+
+    /**
+     * Sets the kind of index to create, as named in the command's
+     * <tt>USING</tt> clause.  Only <tt>BTREE</tt> indexes are supported.
+     *
+     * @param indexType the kind of index to create
+     */
+    public void setIndexType(String indexType) {
+        this.indexType = indexType;
+    }
+
+
     public void setProperties(CommandProperties properties) {
         this.properties = properties;
     }
@@ -95,6 +118,17 @@ public class CreateIndexCommand extends Command {
     @Override
     public void execute(NanoDBServer server) throws ExecutionException {
 
+        // Hash files can store an index's entries, but no plan looks up rows
+        // through a hashed index, and row changes aren't applied to one, so
+        // hashed indexes would only take up space and go stale.
+        if ("HASH".equalsIgnoreCase(indexType)) {
+            throw new ExecutionException("Hash indexes are not supported; " +
+                "create a hash table with storage = 'hash' instead");
+        }
+        else if (indexType != null && !"BTREE".equalsIgnoreCase(indexType)) {
+            throw new ExecutionException("Unrecognized index type " + indexType);
+        }
+
         StorageManager storageManager = server.getStorageManager();
         TableManager tableManager = storageManager.getTableManager();
         IndexManager indexManager = storageManager.getIndexManager();
@@ -42,6 +42,9 @@ public class CreateTableCommand extends Command {
     public static final String PROP_STORAGE = "storage";
 
 
+    public static final String PROP_COMPRESSION = "compression";
+
+
     /** Name of the table to be created. */
     private String tableName;
 
@@ -2,6 +2,7 @@ package edu.caltech.nanodb.commands;
 
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.List;
 
 import edu.caltech.nanodb.expressions.Expression;
@@ -21,6 +22,7 @@ import edu.caltech.nanodb.server.NanoDBServer;
 import edu.caltech.nanodb.storage.TableManager;
 import edu.caltech.nanodb.storage.TupleFile;
 import edu.caltech.nanodb.storage.StorageManager;
+import edu.caltech.nanodb.storage.heapfile.HeapTupleFile;
 
 
 /**
@@ -39,7 +41,9 @@ public class InsertCommand extends QueryCommand {
     /**
      * An implementation of the tuple processor interface used by the
      * {@link InsertCommand} to insert tuples into a table, when the command is
-     * of the form <tt>INSERT</tt> ... <tt>SELECT</tt>.
+     * of the form <tt>INSERT</tt> ... <tt>SELECT</tt>.  Tuples are added to
+     * heap files with a {@link HeapTupleFile.BulkAppender}, since a query
+     * may produce many tuples.
      */
     private static class TupleInserter implements TupleProcessor {
         /** The table into which the new tuples will be inserted. */
@@ -47,6 +51,12 @@ public class InsertCommand extends QueryCommand {
 
         private TupleFile tupleFile;
 
+        /**
+         * The bulk appender used to add tuples to a heap file, or
+         * <tt>null</tt> if the table isn't stored in a heap file.
+         */
+        private HeapTupleFile.BulkAppender bulkAppender;
+
         /**
          * The event-dispatcher for reporting insert events to other
          * components.
@@ -63,6 +73,9 @@ public class InsertCommand extends QueryCommand {
             this.tableInfo = tableInfo;
             this.tupleFile = tableInfo.getTupleFile();
 
+            if (tupleFile instanceof HeapTupleFile)
+                bulkAppender = ((HeapTupleFile) tupleFile).startBulkAppend();
+
             this.eventDispatcher = eventDispatcher;
         }
 
@@ -78,13 +91,37 @@ public class InsertCommand extends QueryCommand {
 
         /** This implementation simply inserts each tuple it is handed. */
         public void process(Tuple tuple) throws IOException {
-            eventDispatcher.fireBeforeRowInserted(tableInfo, tuple);
-            Tuple newTuple = tupleFile.addTuple(tuple);
-            eventDispatcher.fireAfterRowInserted(tableInfo, newTuple);
+            try {
+                eventDispatcher.fireBeforeRowInserted(tableInfo, tuple);
+
+                Tuple newTuple;
+                if (bulkAppender != null)
+                    newTuple = bulkAppender.addTuple(tuple);
+                else
+                    newTuple = tupleFile.addTuple(tuple);
+
+                eventDispatcher.fireAfterRowInserted(tableInfo, newTuple);
+            }
+            catch (IOException | RuntimeException e) {
+                // Log the tuples that were already added, just as they
+                // would be if each tuple were logged as it was added.
+                if (bulkAppender != null)
+                    bulkAppender.finish();
+
+                throw e;
+            }
         }
 
+        /** Logs the last page that the bulk appender was filling. */
         public void finish() {
-            // Not used
+            if (bulkAppender != null) {
+                try {
+                    bulkAppender.finish();
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
         }
     }
 
@@ -1,9 +1,29 @@
 package edu.caltech.nanodb.commands;
 
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.LinkedHashSet;
 
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.client.SessionState;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.indexes.IndexInfo;
+import edu.caltech.nanodb.indexes.IndexManager;
+import edu.caltech.nanodb.indexes.IndexUtils;
+import edu.caltech.nanodb.relations.ColumnRefs;
+import edu.caltech.nanodb.relations.TableInfo;
+import edu.caltech.nanodb.relations.Tuple;
 import edu.caltech.nanodb.server.NanoDBServer;
+import edu.caltech.nanodb.storage.PageTuple;
+import edu.caltech.nanodb.storage.StorageManager;
+import edu.caltech.nanodb.storage.TableManager;
+import edu.caltech.nanodb.storage.TupleFile;
+import edu.caltech.nanodb.storage.heapfile.HeapTupleFile;
+import edu.caltech.nanodb.transactions.TransactionException;
+import edu.caltech.nanodb.transactions.TransactionManager;
+import edu.caltech.nanodb.transactions.TransactionState;
 
 
 /**
@@ -13,6 +33,10 @@ import edu.caltech.nanodb.server.NanoDBServer;
  */
 public class OptimizeCommand extends Command {
 
+    /** A logging object for reporting anything interesting that happens. **/
+    private static Logger logger = Logger.getLogger(OptimizeCommand.class);
+
+
     /**
      * Table names are kept in a set so that we don't need to worry about a
      * particular table being specified multiple times.
@@ -56,9 +80,128 @@ public class OptimizeCommand extends Command {
     }
 
 
+    /**
+     * Optimizes each table's tuple file.  When a tuple is moved to a new
+     * location, the entries for it in the table's indexes are changed to
+     * refer to its new location; see {@link #moveIndexEntries}.
+     *
+     * @design Heap files only remove the pages that optimizing emptied once
+     *         the moves have been committed, since rolling back the moves
+     *         needs the pages' old contents.  So, the command commits its own
+     *         transaction partway through, and can't be used inside a
+     *         transaction that the user started.
+     */
     @Override
     public void execute(NanoDBServer server) throws ExecutionException {
-        throw new ExecutionException("Not yet implemented!");
+        StorageManager storageManager = server.getStorageManager();
+        TableManager tableManager = storageManager.getTableManager();
+        TransactionManager transactionManager =
+            storageManager.getTransactionManager();
+        IndexManager indexManager = storageManager.getIndexManager();
+
+        TransactionState txnState = SessionState.get().getTxnState();
+        if (txnState.isTxnInProgress() && txnState.getUserStartedTxn()) {
+            throw new ExecutionException(
+                "OPTIMIZE cannot be used inside a transaction.");
+        }
+
+        // Make sure that all the tables are valid.
+        ArrayList<TableInfo> tableInfos = new ArrayList<>();
+        for (String table : tableNames) {
+            try {
+                TableInfo tableInfo = tableManager.openTable(table);
+                tableInfos.add(tableInfo);
+            }
+            catch (IOException ioe) {
+                throw new ExecutionException("Could not open table " + table, ioe);
+            }
+        }
+
+        // Now, optimize each table.
+        for (TableInfo tableInfo : tableInfos) {
+            out.println("Optimizing table " + tableInfo.getTableName());
+
+            TupleFile tupleFile = tableInfo.getTupleFile();
+            try {
+                tupleFile.optimize((oldTuple, newTuple) -> moveIndexEntries(
+                    indexManager, tableInfo, oldTuple, newTuple));
+            }
+            catch (IOException ioe) {
+                throw new ExecutionException("Could not optimize table " +
+                    tableInfo.getTableName(), ioe);
+            }
+        }
+
+        if (transactionManager != null && txnState.isTxnInProgress()) {
+            logger.debug("Committing tuple moves before truncating tables.");
+            try {
+                transactionManager.commitTransaction();
+            }
+            catch (TransactionException e) {
+                throw new ExecutionException(e);
+            }
+        }
+
+        for (TableInfo tableInfo : tableInfos) {
+            TupleFile tupleFile = tableInfo.getTupleFile();
+            if (!(tupleFile instanceof HeapTupleFile))
+                continue;
+
+            try {
+                int numRemoved = ((HeapTupleFile) tupleFile).truncateEmptyPages();
+                out.printf("Removed %d empty pages from table %s%n",
+                    numRemoved, tableInfo.getTableName());
+            }
+            catch (IOException ioe) {
+                throw new ExecutionException("Could not truncate table " +
+                    tableInfo.getTableName(), ioe);
+            }
+        }
+
+        out.println("\nOptimization complete.");
+    }
+
+
+    /**
+     * Changes the indexes on a table to refer to a tuple that was moved.  In
+     * each index, the entry holding the tuple's old file pointer is replaced
+     * with an entry holding its new file pointer.  The tuple's values don't
+     * change, so this is done directly, instead of reporting a row update.
+     * Tuples that an index has no entry for are left out of the index, as
+     * they were before the move.
+     *
+     * @param indexManager the index manager to open the indexes with
+     * @param tableInfo the table that the tuple was moved within
+     * @param oldTuple the tuple at its old location
+     * @param newTuple the tuple at its new location
+     *
+     * @throws IOException if an IO error occurs while updating an index
+     */
+    private void moveIndexEntries(IndexManager indexManager,
+        TableInfo tableInfo, Tuple oldTuple, Tuple newTuple) throws IOException {
+
+        for (ColumnRefs indexDef : tableInfo.getSchema().getIndexes().values()) {
+            IndexInfo indexInfo =
+                indexManager.openIndex(tableInfo, indexDef.getIndexName());
+            TupleFile indexFile = indexInfo.getTupleFile();
+
+            TupleLiteral oldKey = IndexUtils.makeTableSearchKey(indexDef,
+                oldTuple, /* findExactTuple */ true);
+            PageTuple oldEntry = IndexUtils.findTupleInIndex(oldKey, indexFile);
+            if (oldEntry == null) {
+                logger.debug(String.format("Index %s has no entry for the " +
+                    "tuple at %s", indexDef.getIndexName(),
+                    oldTuple.getExternalReference()));
+                continue;
+            }
+
+            indexFile.deleteTuple(oldEntry);
+            oldEntry.unpin();
+
+            TupleLiteral newKey = IndexUtils.makeTableSearchKey(indexDef,
+                newTuple, /* findExactTuple */ true);
+            indexFile.addTuple(newKey).unpin();
+        }
     }
 
 
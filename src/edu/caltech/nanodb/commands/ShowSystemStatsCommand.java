@@ -12,6 +12,8 @@ public class ShowSystemStatsCommand extends Command {
 
     public static final String STORAGE_SYSTEM = "storage";
 
+    public static final String BUFFER_SYSTEM = "buffer";
+
 
     /** The subsystem that we are displaying statistics for. */
     private String systemName;
@@ -23,8 +25,26 @@ public class ShowSystemStatsCommand extends Command {
     private static final String[][] PERF_COUNTERS = {
         { STORAGE_SYSTEM, PerformanceCounters.STORAGE_PAGES_READ },
         { STORAGE_SYSTEM, PerformanceCounters.STORAGE_PAGES_WRITTEN },
+        { STORAGE_SYSTEM, PerformanceCounters.STORAGE_GATHERING_WRITES },
         { STORAGE_SYSTEM, PerformanceCounters.STORAGE_FILE_CHANGES },
-        { STORAGE_SYSTEM, PerformanceCounters.STORAGE_FILE_DISTANCE_TRAVELED }
+        { STORAGE_SYSTEM, PerformanceCounters.STORAGE_FILE_DISTANCE_TRAVELED },
+        { STORAGE_SYSTEM, PerformanceCounters.STORAGE_PAGES_PREFETCHED },
+        { STORAGE_SYSTEM, PerformanceCounters.STORAGE_PREFETCH_HITS },
+        { STORAGE_SYSTEM, PerformanceCounters.STORAGE_PREFETCH_WASTED },
+        { STORAGE_SYSTEM, PerformanceCounters.STORAGE_OVERFLOW_VALUES_READ },
+        { STORAGE_SYSTEM, PerformanceCounters.STORAGE_OVERFLOW_VALUES_WRITTEN },
+        { STORAGE_SYSTEM, PerformanceCounters.STORAGE_BULK_PAGES_APPENDED },
+        { STORAGE_SYSTEM, PerformanceCounters.STORAGE_PAGES_TRUNCATED },
+        { STORAGE_SYSTEM, PerformanceCounters.STORAGE_PAGES_COMPRESSED },
+        { STORAGE_SYSTEM, PerformanceCounters.STORAGE_PAGES_DECOMPRESSED },
+        { STORAGE_SYSTEM, PerformanceCounters.STORAGE_COLUMN_PAGES_DECODED },
+        { STORAGE_SYSTEM, PerformanceCounters.STORAGE_ZONE_MAP_PAGES_SKIPPED },
+        { BUFFER_SYSTEM, PerformanceCounters.BUFFER_PAGE_HITS },
+        { BUFFER_SYSTEM, PerformanceCounters.BUFFER_PAGE_MISSES },
+        { BUFFER_SYSTEM, PerformanceCounters.BUFFER_RING_RECYCLES },
+        { BUFFER_SYSTEM, PerformanceCounters.BUFFER_CLEAN_EVICTIONS },
+        { BUFFER_SYSTEM, PerformanceCounters.BUFFER_DIRTY_EVICTIONS },
+        { BUFFER_SYSTEM, PerformanceCounters.BUFFER_BACKGROUND_WRITES }
     };
 
 
@@ -37,7 +57,8 @@ public class ShowSystemStatsCommand extends Command {
         this.systemName = systemName.trim().toLowerCase();
 
         // Make sure the actual system-name is recognized!
-        if (!this.systemName.equals(STORAGE_SYSTEM)) {
+        if (!this.systemName.equals(STORAGE_SYSTEM) &&
+            !this.systemName.equals(BUFFER_SYSTEM)) {
             throw new IllegalArgumentException(
                 "Unrecognized system-stats argument:  " + this.systemName);
         }
@@ -53,6 +74,21 @@ public class ShowSystemStatsCommand extends Command {
                 out.printf("%s = %d%n", name, value);
             }
         }
+
+        if (systemName.equals(BUFFER_SYSTEM)) {
+            // The hit ratio is the most useful figure for comparing page
+            // replacement policies, so report it directly.
+            long hits = PerformanceCounters.get(
+                PerformanceCounters.BUFFER_PAGE_HITS);
+            long misses = PerformanceCounters.get(
+                PerformanceCounters.BUFFER_PAGE_MISSES);
+
+            double hitRatio = 0.0;
+            if (hits + misses > 0)
+                hitRatio = (double) hits / (double) (hits + misses);
+
+            out.printf("buffer.hitRatio = %.4f%n", hitRatio);
+        }
     }
 }
 
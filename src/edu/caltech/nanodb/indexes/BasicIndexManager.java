@@ -95,6 +95,21 @@ public class BasicIndexManager implements IndexManager {
         String tableName = tableInfo.getTableName();
         TableSchema tableSchema = tableInfo.getSchema();
 
+        // Index entries refer to tuples by page and slot, which rows of
+        // columnar tables don't have.
+        DBFileType tableType = tableInfo.getTupleFile().getDBFile().getType();
+        if (tableType == DBFileType.COLUMNAR_TUPLE_FILE) {
+            throw new IllegalArgumentException(
+                "Indexes are not supported on columnar tables");
+        }
+
+        // Hash tables move rows to other pages when their buckets split, so
+        // index entries wouldn't stay valid.
+        if (tableType == DBFileType.HASH_TUPLE_FILE) {
+            throw new IllegalArgumentException(
+                "Indexes are not supported on hash tables");
+        }
+
         // TODO:  Check if current columns already are an index for this table.
         //        (Not essential, but you don't want to be redundant.)
         //        (NOTE:  Also need to make sure the index types are the same.)
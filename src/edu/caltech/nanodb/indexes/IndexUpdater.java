@@ -53,6 +53,10 @@ public class IndexUpdater implements RowEventListener {
     @Override
     public void afterRowInserted(TableInfo tblFileInfo, Tuple newTuple) {
 
+        // Tables without indexes may store any kind of tuple.
+        if (!hasIndexes(tblFileInfo))
+            return;
+
         if (!(newTuple instanceof PageTuple)) {
             throw new IllegalArgumentException(
                 "newTuple must be castable to PageTuple");
@@ -66,6 +70,10 @@ public class IndexUpdater implements RowEventListener {
     public void beforeRowUpdated(TableInfo tblFileInfo, Tuple oldTuple,
                                  Tuple newValues) {
 
+        // Tables without indexes may store any kind of tuple.
+        if (!hasIndexes(tblFileInfo))
+            return;
+
         if (!(oldTuple instanceof PageTuple)) {
             throw new IllegalArgumentException(
                 "oldTuple must be castable to PageTuple");
@@ -79,6 +87,10 @@ public class IndexUpdater implements RowEventListener {
     public void afterRowUpdated(TableInfo tblFileInfo, Tuple oldValues,
                                 Tuple newTuple) {
 
+        // Tables without indexes may store any kind of tuple.
+        if (!hasIndexes(tblFileInfo))
+            return;
+
         if (!(newTuple instanceof PageTuple)) {
             throw new IllegalArgumentException(
                 "newTuple must be castable to PageTuple");
@@ -90,6 +102,10 @@ public class IndexUpdater implements RowEventListener {
 
     @Override
     public void beforeRowDeleted(TableInfo tblFileInfo, Tuple oldTuple) {
+        // Tables without indexes may store any kind of tuple.
+        if (!hasIndexes(tblFileInfo))
+            return;
+
         if (!(oldTuple instanceof PageTuple)) {
             throw new IllegalArgumentException(
                 "oldTuple must be castable to PageTuple");
@@ -105,6 +121,14 @@ public class IndexUpdater implements RowEventListener {
     }
 
 
+    /**
+     * Returns true if the table has any indexes that need to be updated.
+     */
+    private boolean hasIndexes(TableInfo tblFileInfo) {
+        return !tblFileInfo.getSchema().getIndexes().isEmpty();
+    }
+
+
     /**
      * This helper method handles the case when a tuple is being added to the
      * table, after the row has already been added to the table.  All indexes
@@ -115,8 +139,12 @@ public class IndexUpdater implements RowEventListener {
      * @param ptup the new tuple that was inserted into the table
      */
     private void addRowToIndexes(TableInfo tblFileInfo, PageTuple ptup) {
-        logger.debug("Adding tuple " + ptup + " to indexes for table " +
-            tblFileInfo.getTableName());
+        // Printing the tuple reads all of its values, including any that
+        // are stored out of line, so only do it when it will be logged.
+        if (logger.isDebugEnabled()) {
+            logger.debug("Adding tuple " + ptup + " to indexes for table " +
+                tblFileInfo.getTableName());
+        }
 
         // Iterate over the indexes in the table.
         TableSchema schema = tblFileInfo.getSchema();
@@ -154,8 +182,12 @@ public class IndexUpdater implements RowEventListener {
      */
     private void removeRowFromIndexes(TableInfo tblFileInfo, PageTuple ptup) {
 
-        logger.debug("Removing tuple " + ptup + " from indexes for table " +
-            tblFileInfo.getTableName());
+        // Printing the tuple reads all of its values, including any that
+        // are stored out of line, so only do it when it will be logged.
+        if (logger.isDebugEnabled()) {
+            logger.debug("Removing tuple " + ptup + " from indexes for table " +
+                tblFileInfo.getTableName());
+        }
 
         // Iterate over the indexes in the table.
         TableSchema schema = tblFileInfo.getSchema();
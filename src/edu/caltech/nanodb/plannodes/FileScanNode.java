@@ -1,21 +1,35 @@
 package edu.caltech.nanodb.plannodes;
 
 
+import edu.caltech.nanodb.client.SessionState;
+import edu.caltech.nanodb.expressions.BooleanOperator;
+import edu.caltech.nanodb.expressions.ColumnValue;
+import edu.caltech.nanodb.expressions.CompareOperator;
 import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.expressions.LiteralValue;
 import edu.caltech.nanodb.expressions.OrderByExpression;
+import edu.caltech.nanodb.expressions.TupleLiteral;
 import edu.caltech.nanodb.indexes.IndexInfo;
 import edu.caltech.nanodb.queryeval.ColumnStats;
 import edu.caltech.nanodb.queryeval.PlanCost;
 import edu.caltech.nanodb.queryeval.SelectivityEstimator;
 import edu.caltech.nanodb.queryeval.TableStats;
+import edu.caltech.nanodb.relations.SQLDataType;
+import edu.caltech.nanodb.relations.Schema;
+import edu.caltech.nanodb.relations.SchemaNameException;
 import edu.caltech.nanodb.relations.TableInfo;
+import edu.caltech.nanodb.storage.BufferRing;
 import edu.caltech.nanodb.storage.FilePointer;
+import edu.caltech.nanodb.storage.HashedTupleFile;
 import edu.caltech.nanodb.storage.InvalidFilePointerException;
 import edu.caltech.nanodb.storage.TupleFile;
+import edu.caltech.nanodb.storage.heapfile.HeapTupleFile;
+import edu.caltech.nanodb.storage.heapfile.ZoneMapFilter;
 import org.apache.log4j.Logger;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 
 
@@ -32,6 +46,17 @@ import java.util.List;
  * ability to look up tuples based on various values, the {@link IndexScanNode}
  * should be used instead.
  * </p>
+ * <p>
+ * If the table is a heap file with a zone map, the predicate is checked
+ * against each data page's entry in the zone map, and pages that can't hold
+ * any matching tuple are skipped without being read.
+ * </p>
+ * <p>
+ * If the file is a hashed tuple file, and the predicate requires every
+ * column of the hash key to equal a literal value, only the tuples with
+ * that key are looked up in the file, instead of scanning all of it.  The
+ * predicate is still checked against each tuple that is found.
+ * </p>
  */
 public class FileScanNode extends SelectNode {
 
@@ -67,6 +92,31 @@ public class FileScanNode extends SelectNode {
     private boolean jumpToMarkedTuple;
 
 
+    /**
+     * The buffer ring that pages read by this scan are recycled through, so
+     * that scanning a large file doesn't flush the rest of the page cache.
+     * The Buffer Manager only uses the ring if the file's statistics say
+     * that the scan will read a significant fraction of the page cache.
+     */
+    private BufferRing bufferRing;
+
+
+    /**
+     * The filter that decides which data pages of a heap file need to be
+     * read, or {@code null} if every page is read.
+     */
+    private ZoneMapFilter zoneMapFilter;
+
+
+    /**
+     * If the file is a hashed tuple file and the predicate fixes the value
+     * of every hash-key column, this is the key to look up, in the order of
+     * the file's key specification.  Otherwise, this is {@code null} and the
+     * whole file is scanned.
+     */
+    private TupleLiteral hashKey;
+
+
     /**
      * Construct a file scan node that traverses a table file.
      *
@@ -229,6 +279,11 @@ public class FileScanNode extends SelectNode {
         float cpuCost = tableStats.numTuples * PlanCost.cpu_tuple_cost;
         if (predicate != null) cpuCost *= tableStats.numTuples * PlanCost.cpu_operator_cost;
         float ioCost = tableStats.numDataPages * PlanCost.seq_page_cost + (PlanCost.random_page_cost - PlanCost.seq_page_cost);
+        if (makeHashKey() != null) {
+            // Only the pages of the key's bucket are read.
+            ioCost = Math.max(1.0f, selectivity * tableStats.numDataPages) *
+                PlanCost.random_page_cost;
+        }
         cost = new PlanCost(numTupleSelected,
                 tableStats.avgTupleSize,
                 cpuCost,
@@ -248,6 +303,106 @@ public class FileScanNode extends SelectNode {
         // Reset our marking state.
         markedTuple = null;
         jumpToMarkedTuple = false;
+
+        // Start each scan with a new, empty ring.
+        bufferRing = new BufferRing(tupleFile.getStats().numDataPages);
+
+        hashKey = makeHashKey();
+
+        zoneMapFilter = null;
+        if (tupleFile instanceof HeapTupleFile) {
+            HeapTupleFile heapFile = (HeapTupleFile) tupleFile;
+            if (heapFile.getZoneMapFile() != null) {
+                zoneMapFilter = ZoneMapFilter.create(heapFile.getZoneMapFile(),
+                    heapFile.getSchema(), predicate);
+            }
+        }
+    }
+
+
+    /**
+     * Returns the hash key that the predicate requires the file's tuples to
+     * have, or {@code null} if the file isn't a hashed tuple file, or if the
+     * predicate doesn't compare every hash-key column to a literal value
+     * with an <tt>AND</tt>ed equality.
+     */
+    private TupleLiteral makeHashKey() {
+        if (!(tupleFile instanceof HashedTupleFile) || predicate == null)
+            return null;
+
+        Schema fileSchema = tupleFile.getSchema();
+        HashMap<Integer, Object> values = new HashMap<>();
+        collectKeyValues(fileSchema, predicate, values);
+
+        TupleLiteral key = new TupleLiteral();
+        for (Expression keyExpr : ((HashedTupleFile) tupleFile).getKeySpec()) {
+            int colIndex = getColumn(fileSchema, keyExpr);
+            if (colIndex == -1 || !values.containsKey(colIndex))
+                return null;
+
+            key.addValue(values.get(colIndex));
+        }
+        return key;
+    }
+
+
+    /**
+     * Records the value of each column that the expression requires to equal
+     * a non-<tt>NULL</tt> literal, following <tt>AND</tt>s.  Values that
+     * wouldn't be compared to the column's values without a conversion, such
+     * as strings compared to numeric columns, aren't recorded.
+     */
+    private static void collectKeyValues(Schema fileSchema, Expression expr,
+                                         HashMap<Integer, Object> values) {
+        if (expr instanceof BooleanOperator) {
+            BooleanOperator boolOp = (BooleanOperator) expr;
+            if (boolOp.getType() == BooleanOperator.Type.AND_EXPR) {
+                for (int i = 0; i < boolOp.getNumTerms(); i++)
+                    collectKeyValues(fileSchema, boolOp.getTerm(i), values);
+            }
+        }
+        else if (expr instanceof CompareOperator) {
+            CompareOperator cmpOp = (CompareOperator) expr;
+            if (cmpOp.getType() != CompareOperator.Type.EQUALS)
+                return;
+
+            Expression lhs = cmpOp.getLeftExpression();
+            Expression rhs = cmpOp.getRightExpression();
+            if (lhs instanceof LiteralValue) {
+                Expression tmp = lhs;
+                lhs = rhs;
+                rhs = tmp;
+            }
+
+            int colIndex = getColumn(fileSchema, lhs);
+            if (colIndex == -1 || !(rhs instanceof LiteralValue))
+                return;
+
+            Object value = rhs.evaluate();
+            SQLDataType colType =
+                fileSchema.getColumnInfo(colIndex).getType().getBaseType();
+            if ((value instanceof Number && SQLDataType.isNumber(colType)) ||
+                (value instanceof String && SQLDataType.isString(colType))) {
+                values.put(colIndex, value);
+            }
+        }
+    }
+
+
+    /**
+     * Returns the index of the column that the expression refers to, or -1
+     * if the expression isn't a column of the file.
+     */
+    private static int getColumn(Schema fileSchema, Expression expr) {
+        if (!(expr instanceof ColumnValue))
+            return -1;
+
+        try {
+            return fileSchema.getColumnIndex(((ColumnValue) expr).getColumnName());
+        }
+        catch (SchemaNameException e) {
+            return -1;
+        }
     }
 
 
@@ -263,25 +418,49 @@ public class FileScanNode extends SelectNode {
      * @throws java.io.IOException if the TableManager failed to open the table.
      */
     protected void advanceCurrentTuple() throws IOException {
+        // Recycle the pages we read through our buffer ring.
+        SessionState state = SessionState.get();
+        BufferRing oldRing = state.getBufferRing();
+        state.setBufferRing(bufferRing);
+        try {
+            if (jumpToMarkedTuple) {
+                logger.debug("Resuming at previously marked tuple.");
+                try {
+                    currentTuple = tupleFile.getTuple(markedTuple);
+                }
+                catch (InvalidFilePointerException e) {
+                    throw new IOException(
+                        "Couldn't resume at previously marked tuple!", e);
+                }
+                jumpToMarkedTuple = false;
+
+                return;
+            }
 
-        if (jumpToMarkedTuple) {
-            logger.debug("Resuming at previously marked tuple.");
-            try {
-                currentTuple = tupleFile.getTuple(markedTuple);
+            if (hashKey != null) {
+                // Only look up the tuples with the predicate's hash key.
+                HashedTupleFile hashFile = (HashedTupleFile) tupleFile;
+                if (currentTuple == null)
+                    currentTuple = hashFile.findFirstTupleEquals(hashKey);
+                else
+                    currentTuple = hashFile.findNextTupleEquals(currentTuple);
             }
-            catch (InvalidFilePointerException e) {
-                throw new IOException(
-                    "Couldn't resume at previously marked tuple!", e);
+            else if (zoneMapFilter != null) {
+                // Only read the pages that may hold matching tuples.
+                HeapTupleFile heapFile = (HeapTupleFile) tupleFile;
+                if (currentTuple == null)
+                    currentTuple = heapFile.getFirstTuple(zoneMapFilter);
+                else
+                    currentTuple = heapFile.getNextTuple(currentTuple, zoneMapFilter);
             }
-            jumpToMarkedTuple = false;
-
-            return;
+            else if (currentTuple == null)   // Get the first tuple.
+                currentTuple = tupleFile.getFirstTuple();
+            else                        // Get the next tuple.
+                currentTuple = tupleFile.getNextTuple(currentTuple);
+        }
+        finally {
+            state.setBufferRing(oldRing);
         }
-
-        if (currentTuple == null)   // Get the first tuple.
-            currentTuple = tupleFile.getFirstTuple();
-        else                        // Get the next tuple.
-            currentTuple = tupleFile.getNextTuple(currentTuple);
     }
 
 
@@ -95,7 +95,7 @@ public abstract class SelectNode extends PlanNode {
 
         // Continue to advance the current tuple until it is selected by the
         // predicate.
-        do {
+        while (true) {
             advanceCurrentTuple();
 
             // If the last tuple in the file (or chain of nodes) did not
@@ -105,8 +105,15 @@ public abstract class SelectNode extends PlanNode {
                 done = true;
                 return null;
             }
+
+            if (isTupleSelected(currentTuple))
+                break;
+
+            // Nothing else will see this tuple, so release it.  (It can
+            // still be used to find the next tuple.)
+            if (currentTuple.isPinned())
+                currentTuple.unpin();
         }
-        while (!isTupleSelected(currentTuple));
 
         // The current tuple now satisfies the predicate, so return it.
         return currentTuple;
@@ -54,6 +54,12 @@ public class QueryEvaluator {
 
                 // Do whatever we're supposed to do with the tuple.
                 processor.process(tuple);
+
+                // The processor is done with the tuple, so release it.  This
+                // allows the pages of large results to be evicted before
+                // the command completes.
+                if (tuple.isPinned())
+                    tuple.unpin();
             }
         }
         finally {
@@ -24,7 +24,9 @@ public interface TupleProcessor {
 
 
     /**
-     * Processes a single tuple generated from evaluating a query plan.
+     * Processes a single tuple generated from evaluating a query plan.  The
+     * query evaluator unpins the tuple after this method returns, so a
+     * processor that needs to keep the tuple must copy it.
      *
      * @param tuple The tuple to process.
      *
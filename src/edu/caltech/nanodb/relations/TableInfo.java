@@ -3,8 +3,10 @@ package edu.caltech.nanodb.relations;
 
 import edu.caltech.nanodb.queryeval.TableStats;
 import edu.caltech.nanodb.storage.DBFile;
+import edu.caltech.nanodb.storage.OverflowFile;
 import edu.caltech.nanodb.storage.TupleFile;
 import edu.caltech.nanodb.storage.freespacemap.FreeSpaceMapFile;
+import edu.caltech.nanodb.storage.heapfile.ZoneMapFile;
 
 
 /**
@@ -28,6 +30,20 @@ public class TableInfo {
     private FreeSpaceMapFile freeSpaceMapFile;
 
 
+    /**
+     * The file that holds the table's large values that are stored out of
+     * line, or <tt>null</tt> if the table has no overflow file.
+     */
+    private OverflowFile overflowFile;
+
+
+    /**
+     * The file that holds the range of values in each of the table's pages,
+     * or <tt>null</tt> if the table has no zone map.
+     */
+    private ZoneMapFile zoneMapFile;
+
+
     /**
      * Construct a table-information object that represents the specified
      * table name and associated tuple file.
@@ -93,6 +109,46 @@ public class TableInfo {
         return freeSpaceMapFile;
     }
 
+
+    /**
+     * @return the table's overflow file, or <tt>null</tt> if the table has
+     *         no overflow file.
+     */
+    public OverflowFile getOverflowFile() {
+        return overflowFile;
+    }
+
+
+    /**
+     * Sets the file that holds the table's large values that are stored out
+     * of line.
+     *
+     * @param overflowFile the table's overflow file
+     */
+    public void setOverflowFile(OverflowFile overflowFile) {
+        this.overflowFile = overflowFile;
+    }
+
+
+    /**
+     * @return the table's zone map file, or <tt>null</tt> if the table has
+     *         no zone map.
+     */
+    public ZoneMapFile getZoneMapFile() {
+        return zoneMapFile;
+    }
+
+
+    /**
+     * Sets the file that holds the range of values in each of the table's
+     * pages.
+     *
+     * @param zoneMapFile the table's zone map file
+     */
+    public void setZoneMapFile(ZoneMapFile zoneMapFile) {
+        this.zoneMapFile = zoneMapFile;
+    }
+
     /** A helper function to simplify retrieving the table's {@code DBFile}. */
     public DBFile getDBFile() {
         return tupleFile.getDBFile();
@@ -48,6 +48,87 @@ public class PerformanceCounters {
     public static final String STORAGE_BYTES_WRITTEN = "storage.bytesWritten";
 
 
+    public static final String STORAGE_GATHERING_WRITES = "storage.gatheringWrites";
+
+
+    public static final String STORAGE_PAGES_PREFETCHED = "storage.pagesPrefetched";
+
+
+    public static final String STORAGE_PREFETCH_HITS = "storage.prefetchHits";
+
+
+    public static final String STORAGE_PREFETCH_WASTED = "storage.prefetchWasted";
+
+
+    public static final String STORAGE_OVERFLOW_VALUES_READ = "storage.overflowValuesRead";
+
+
+    public static final String STORAGE_OVERFLOW_VALUES_WRITTEN = "storage.overflowValuesWritten";
+
+
+    public static final String STORAGE_BULK_PAGES_APPENDED = "storage.bulkPagesAppended";
+
+
+    public static final String STORAGE_PAGES_TRUNCATED = "storage.pagesTruncated";
+
+
+    public static final String STORAGE_PAGES_COMPRESSED = "storage.pagesCompressed";
+
+
+    public static final String STORAGE_PAGES_DECOMPRESSED = "storage.pagesDecompressed";
+
+
+    public static final String STORAGE_COLUMN_PAGES_DECODED = "storage.columnPagesDecoded";
+
+
+    public static final String STORAGE_ZONE_MAP_PAGES_SKIPPED = "storage.zoneMapPagesSkipped";
+
+
+    public static final String BUFFER_PAGE_HITS = "buffer.pageHits";
+
+
+    public static final String BUFFER_PAGE_MISSES = "buffer.pageMisses";
+
+
+    public static final String BUFFER_RING_RECYCLES = "buffer.ringRecycles";
+
+
+    public static final String BUFFER_CLEAN_EVICTIONS = "buffer.cleanEvictions";
+
+
+    public static final String BUFFER_DIRTY_EVICTIONS = "buffer.dirtyEvictions";
+
+
+    public static final String BUFFER_BACKGROUND_WRITES = "buffer.backgroundWrites";
+
+
+    public static final String WAL_FLUSHES = "wal.flushes";
+
+
+    public static final String WAL_GROUPED_COMMITS = "wal.groupedCommits";
+
+
+    public static final String WAL_BYTES_WRITTEN = "wal.bytesWritten";
+
+
+    public static final String WAL_SYNCS = "wal.syncs";
+
+
+    public static final String WAL_BUFFER_WAITS = "wal.bufferWaits";
+
+
+    public static final String WAL_CHECKPOINTS = "wal.checkpoints";
+
+
+    public static final String WAL_CHECKPOINT_PAGE_WRITES = "wal.checkpointPageWrites";
+
+
+    public static final String WAL_FILES_RECYCLED = "wal.filesRecycled";
+
+
+    public static final String WAL_REDO_RECORDS_SKIPPED = "wal.redoRecordsSkipped";
+
+
     private static ConcurrentHashMap<String, AtomicLong> counters =
         new ConcurrentHashMap<>();
 
@@ -507,8 +507,8 @@ tryAgain:
 		int _saveIndex;
 		
 		{
-		int _cnt227=0;
-		_loop227:
+		int _cnt229=0;
+		_loop229:
 		do {
 			switch ( LA(1)) {
 			case ' ':
@@ -523,10 +523,10 @@ tryAgain:
 			}
 			default:
 			{
-				if ( _cnt227>=1 ) { break _loop227; } else {throw new NoViableAltForCharException((char)LA(1), getFilename(), getLine(), getColumn());}
+				if ( _cnt229>=1 ) { break _loop229; } else {throw new NoViableAltForCharException((char)LA(1), getFilename(), getLine(), getColumn());}
 			}
 			}
-			_cnt227++;
+			_cnt229++;
 		} while (true);
 		}
 		_ttype = Token.SKIP;
@@ -552,15 +552,15 @@ tryAgain:
 		match('-');
 		match('-');
 		{
-		_loop231:
+		_loop233:
 		do {
 			// nongreedy exit test
-			if ((LA(1)=='\n') && (true)) break _loop231;
+			if ((LA(1)=='\n') && (true)) break _loop233;
 			if (((LA(1) >= '\u0000' && LA(1) <= '\u007f')) && ((LA(2) >= '\u0000' && LA(2) <= '\u007f'))) {
 				matchNot(EOF_CHAR);
 			}
 			else {
-				break _loop231;
+				break _loop233;
 			}
 			
 		} while (true);
@@ -699,7 +699,7 @@ tryAgain:
 		}
 		}
 		{
-		_loop241:
+		_loop243:
 		do {
 			switch ( LA(1)) {
 			case 'A':  case 'B':  case 'C':  case 'D':
@@ -738,7 +738,7 @@ tryAgain:
 			}
 			default:
 			{
-				break _loop241;
+				break _loop243;
 			}
 			}
 		} while (true);
@@ -796,7 +796,7 @@ tryAgain:
 		}
 		}
 		{
-		_loop245:
+		_loop247:
 		do {
 			switch ( LA(1)) {
 			case 'A':  case 'B':  case 'C':  case 'D':
@@ -835,7 +835,7 @@ tryAgain:
 			}
 			default:
 			{
-				break _loop245;
+				break _loop247;
 			}
 			}
 		} while (true);
@@ -869,17 +869,17 @@ tryAgain:
 		case '8':  case '9':
 		{
 			{
-			int _cnt248=0;
-			_loop248:
+			int _cnt250=0;
+			_loop250:
 			do {
 				if (((LA(1) >= '0' && LA(1) <= '9'))) {
 					matchRange('0','9');
 				}
 				else {
-					if ( _cnt248>=1 ) { break _loop248; } else {throw new NoViableAltForCharException((char)LA(1), getFilename(), getLine(), getColumn());}
+					if ( _cnt250>=1 ) { break _loop250; } else {throw new NoViableAltForCharException((char)LA(1), getFilename(), getLine(), getColumn());}
 				}
 				
-				_cnt248++;
+				_cnt250++;
 			} while (true);
 			}
 			_ttype = INT_LITERAL;
@@ -901,13 +901,13 @@ tryAgain:
 				match('.');
 				_ttype = DEC_LITERAL;
 				{
-				_loop253:
+				_loop255:
 				do {
 					if (((LA(1) >= '0' && LA(1) <= '9'))) {
 						matchRange('0','9');
 					}
 					else {
-						break _loop253;
+						break _loop255;
 					}
 					
 				} while (true);
@@ -963,13 +963,13 @@ tryAgain:
 				}
 				_ttype = DEC_LITERAL;
 				{
-				_loop259:
+				_loop261:
 				do {
 					if (((LA(1) >= '0' && LA(1) <= '9'))) {
 						matchRange('0','9');
 					}
 					else {
-						break _loop259;
+						break _loop261;
 					}
 					
 				} while (true);
@@ -1032,7 +1032,7 @@ tryAgain:
 		match('\'');
 		text.setLength(_saveIndex);
 		{
-		_loop265:
+		_loop267:
 		do {
 			if ((_tokenSet_0.member(LA(1)))) {
 				{
@@ -1040,7 +1040,7 @@ tryAgain:
 				}
 			}
 			else {
-				break _loop265;
+				break _loop267;
 			}
 			
 		} while (true);
@@ -416,7 +416,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 			e=expression();
 			uc.addValue(name, e);
 			{
-			_loop127:
+			_loop128:
 			do {
 				if ((LA(1)==COMMA)) {
 					match(COMMA);
@@ -426,7 +426,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 					uc.addValue(name, e);
 				}
 				else {
-					break _loop127;
+					break _loop128;
 				}
 				
 			} while (true);
@@ -653,7 +653,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 			tblName=dbobj_ident();
 			c = new AnalyzeCommand(tblName, verbose);
 			{
-			_loop141:
+			_loop142:
 			do {
 				if ((LA(1)==COMMA)) {
 					match(COMMA);
@@ -661,7 +661,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 					c.addTable(tblName);
 				}
 				else {
-					break _loop141;
+					break _loop142;
 				}
 				
 			} while (true);
@@ -894,7 +894,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 			tblName=dbobj_ident();
 			c = new VerifyCommand(tblName);
 			{
-			_loop152:
+			_loop153:
 			do {
 				if ((LA(1)==COMMA)) {
 					match(COMMA);
@@ -902,7 +902,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 					c.addTable(tblName);
 				}
 				else {
-					break _loop152;
+					break _loop153;
 				}
 				
 			} while (true);
@@ -925,10 +925,28 @@ public NanoSqlParser(ParserSharedInputState state) {
 		
 		try {      // for error handling
 			match(OPTIMIZE);
+			{
+			switch ( LA(1)) {
+			case TABLE:
+			{
+				match(TABLE);
+				break;
+			}
+			case IDENT:
+			case QUOTED_IDENT:
+			{
+				break;
+			}
+			default:
+			{
+				throw new NoViableAltException(LT(1), getFilename());
+			}
+			}
+			}
 			tblName=dbobj_ident();
 			c = new OptimizeCommand(tblName);
 			{
-			_loop155:
+			_loop157:
 			do {
 				if ((LA(1)==COMMA)) {
 					match(COMMA);
@@ -936,7 +954,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 					c.addTable(tblName);
 				}
 				else {
-					break _loop155;
+					break _loop157;
 				}
 				
 			} while (true);
@@ -1356,11 +1374,30 @@ public NanoSqlParser(ParserSharedInputState state) {
 			match(ON);
 			tblName=dbobj_ident();
 			c = new CreateIndexCommand(idxName, tblName, unique);
+			{
+			switch ( LA(1)) {
+			case USING:
+			{
+				match(USING);
+				idxType=dbobj_ident();
+				c.setIndexType(idxType);
+				break;
+			}
+			case LPAREN:
+			{
+				break;
+			}
+			default:
+			{
+				throw new NoViableAltException(LT(1), getFilename());
+			}
+			}
+			}
 			match(LPAREN);
 			colName=dbobj_ident();
 			c.addColumn(colName);
 			{
-			_loop61:
+			_loop62:
 			do {
 				if ((LA(1)==COMMA)) {
 					match(COMMA);
@@ -1368,7 +1405,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 					c.addColumn(colName);
 				}
 				else {
-					break _loop61;
+					break _loop62;
 				}
 				
 			} while (true);
@@ -1989,6 +2026,18 @@ public NanoSqlParser(ParserSharedInputState state) {
 				match(RPAREN);
 				break;
 			}
+			case TYPE_TEXT:
+			{
+				match(TYPE_TEXT);
+				ct = new ColumnType(SQLDataType.TEXT);
+				break;
+			}
+			case TYPE_BLOB:
+			{
+				match(TYPE_BLOB);
+				ct = new ColumnType(SQLDataType.BLOB);
+				break;
+			}
 			case TYPE_DATE:
 			{
 				match(TYPE_DATE);
@@ -2269,7 +2318,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 				name=dbobj_ident();
 				sc.addWithClause(name, withSC);
 				{
-				_loop73:
+				_loop74:
 				do {
 					if ((LA(1)==COMMA)) {
 						match(COMMA);
@@ -2298,7 +2347,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 						sc.addWithClause(name, withSC);
 					}
 					else {
-						break _loop73;
+						break _loop74;
 					}
 					
 				} while (true);
@@ -2357,7 +2406,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 			sv=select_value();
 			sc.addSelectValue(sv);
 			{
-			_loop76:
+			_loop77:
 			do {
 				if ((LA(1)==COMMA)) {
 					match(COMMA);
@@ -2365,7 +2414,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 					sc.addSelectValue(sv);
 				}
 				else {
-					break _loop76;
+					break _loop77;
 				}
 				
 			} while (true);
@@ -2430,7 +2479,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 				e=expression();
 				sc.addGroupByExpr(e);
 				{
-				_loop81:
+				_loop82:
 				do {
 					if ((LA(1)==COMMA)) {
 						match(COMMA);
@@ -2438,7 +2487,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 						sc.addGroupByExpr(e);
 					}
 					else {
-						break _loop81;
+						break _loop82;
 					}
 					
 				} while (true);
@@ -2522,7 +2571,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 				}
 				sc.addOrderByExpr(new OrderByExpression(e, ascending));
 				{
-				_loop87:
+				_loop88:
 				do {
 					if ((LA(1)==COMMA)) {
 						match(COMMA);
@@ -2559,7 +2608,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 						sc.addOrderByExpr(new OrderByExpression(e, ascending));
 					}
 					else {
-						break _loop87;
+						break _loop88;
 					}
 					
 				} while (true);
@@ -2807,7 +2856,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 		try {      // for error handling
 			fc=join_expr();
 			{
-			_loop95:
+			_loop96:
 			do {
 				if ((LA(1)==COMMA)) {
 					match(COMMA);
@@ -2815,7 +2864,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 					fc = new FromClause(fc, next, JoinType.CROSS);
 				}
 				else {
-					break _loop95;
+					break _loop96;
 				}
 				
 			} while (true);
@@ -2869,7 +2918,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 		try {      // for error handling
 			fc=from_expr();
 			{
-			_loop107:
+			_loop108:
 			do {
 				if ((_tokenSet_13.member(LA(1)))) {
 					natural = false; /* Reset for subsequent joins parsed by this rule. */
@@ -3015,7 +3064,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 						fc.addUsingName(n);
 						
 						{
-						_loop106:
+						_loop107:
 						do {
 							if ((LA(1)==COMMA)) {
 								match(COMMA);
@@ -3023,7 +3072,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 								fc.addUsingName(n);
 							}
 							else {
-								break _loop106;
+								break _loop107;
 							}
 							
 						} while (true);
@@ -3059,7 +3108,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 					}
 				}
 				else {
-					break _loop107;
+					break _loop108;
 				}
 				
 			} while (true);
@@ -3113,7 +3162,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 						e=expression();
 						args = new ArrayList<Expression>(); args.add(e);
 						{
-						_loop112:
+						_loop113:
 						do {
 							if ((LA(1)==COMMA)) {
 								match(COMMA);
@@ -3121,7 +3170,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 								args.add(e);
 							}
 							else {
-								break _loop112;
+								break _loop113;
 							}
 							
 						} while (true);
@@ -3290,7 +3339,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 				name=dbobj_ident();
 				cols = new ArrayList<String>(); cols.add(name);
 				{
-				_loop121:
+				_loop122:
 				do {
 					if ((LA(1)==COMMA)) {
 						match(COMMA);
@@ -3298,7 +3347,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 						cols.add(name);
 					}
 					else {
-						break _loop121;
+						break _loop122;
 					}
 					
 				} while (true);
@@ -3340,7 +3389,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 			e=expression();
 			exprs.add(e);
 			{
-			_loop124:
+			_loop125:
 			do {
 				if ((LA(1)==COMMA)) {
 					match(COMMA);
@@ -3348,7 +3397,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 					exprs.add(e);
 				}
 				else {
-					break _loop124;
+					break _loop125;
 				}
 				
 			} while (true);
@@ -3442,7 +3491,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 		try {      // for error handling
 			e=logical_and_expr();
 			{
-			_loop172:
+			_loop174:
 			do {
 				if ((LA(1)==OR)) {
 					match(OR);
@@ -3462,7 +3511,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 					
 				}
 				else {
-					break _loop172;
+					break _loop174;
 				}
 				
 			} while (true);
@@ -3506,7 +3555,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 				e=expression();
 				exprs.add(e);
 				{
-				_loop169:
+				_loop171:
 				do {
 					if ((LA(1)==COMMA)) {
 						match(COMMA);
@@ -3514,7 +3563,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 						exprs.add(e);
 					}
 					else {
-						break _loop169;
+						break _loop171;
 					}
 					
 				} while (true);
@@ -3552,7 +3601,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 		try {      // for error handling
 			e=logical_not_expr();
 			{
-			_loop175:
+			_loop177:
 			do {
 				if ((LA(1)==AND)) {
 					match(AND);
@@ -3572,7 +3621,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 					
 				}
 				else {
-					break _loop175;
+					break _loop177;
 				}
 				
 			} while (true);
@@ -3972,7 +4021,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 		try {      // for error handling
 			e=mult_expr();
 			{
-			_loop196:
+			_loop198:
 			do {
 				if ((LA(1)==MINUS||LA(1)==PLUS)) {
 					{
@@ -3999,7 +4048,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 					e = new ArithmeticOperator(mathType, e, e2);
 				}
 				else {
-					break _loop196;
+					break _loop198;
 				}
 				
 			} while (true);
@@ -4028,7 +4077,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 		try {      // for error handling
 			e=unary_op_expr();
 			{
-			_loop200:
+			_loop202:
 			do {
 				if ((LA(1)==STAR||LA(1)==SLASH||LA(1)==PERCENT)) {
 					{
@@ -4061,7 +4110,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 					e = new ArithmeticOperator(mathType, e, e2);
 				}
 				else {
-					break _loop200;
+					break _loop202;
 				}
 				
 			} while (true);
@@ -4307,7 +4356,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 					e=expression();
 					args.add(e);
 					{
-					_loop211:
+					_loop213:
 					do {
 						if ((LA(1)==COMMA)) {
 							match(COMMA);
@@ -4315,7 +4364,7 @@ public NanoSqlParser(ParserSharedInputState state) {
 							args.add(e);
 						}
 						else {
-							break _loop211;
+							break _loop213;
 						}
 						
 					} while (true);
@@ -0,0 +1,305 @@
+package edu.caltech.nanodb.storage;
+
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.server.NanoDBServer;
+import edu.caltech.nanodb.server.properties.PropertyHandler;
+import edu.caltech.nanodb.server.properties.ReadOnlyPropertyException;
+import edu.caltech.nanodb.server.properties.UnrecognizedPropertyException;
+
+
+/**
+ * <p>
+ * The background page writer trickles dirty pages out of the
+ * {@link BufferManager} to disk, so that a target fraction of the page cache
+ * stays clean.  Without it, dirty pages are only written when a session
+ * evicts them to make room for another page, so the session has to wait for
+ * the write-ahead log to be forced and for the page to be written before it
+ * can continue.  When enough of the cache is kept clean, evictions can
+ * usually just drop a clean page instead.
+ * </p>
+ * <p>
+ * Every {@link #PROP_BGWRITER_DELAY} milliseconds, the writer checks how
+ * much of the cache is dirty.  If more than the target allows, it writes up
+ * to {@link #PROP_BGWRITER_MAXPAGES} unpinned dirty pages, using
+ * {@link BufferManager#cleanDirtyPages}.  Together these two properties
+ * limit the rate at which the writer issues IO.  Writes go through the
+ * Buffer Manager's observers, so the write-ahead logging rule is enforced as
+ * for any other write of dirty pages.
+ * </p>
+ * <p>
+ * The <tt>buffer.cleanEvictions</tt> and <tt>buffer.dirtyEvictions</tt>
+ * performance counters show how often evictions found a clean page, and
+ * <tt>buffer.backgroundWrites</tt> counts the pages the writer has written.
+ * </p>
+ */
+public class BackgroundPageWriter {
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(BackgroundPageWriter.class);
+
+
+    /**
+     * The system property that can be used to specify how many milliseconds
+     * the background writer waits between rounds of writing.
+     */
+    public static final String PROP_BGWRITER_DELAY = "nanodb.bgwriter.delay";
+
+
+    /** The default delay between rounds of writing is 200ms. */
+    public static final int DEFAULT_BGWRITER_DELAY = 200;
+
+
+    /**
+     * The system property that can be used to specify the maximum number of
+     * pages the background writer writes in each round.  A value of 0
+     * disables the background writer.
+     */
+    public static final String PROP_BGWRITER_MAXPAGES =
+        "nanodb.bgwriter.maxpages";
+
+
+    /** By default, at most 100 pages are written in each round. */
+    public static final int DEFAULT_BGWRITER_MAXPAGES = 100;
+
+
+    /**
+     * The system property that can be used to specify the fraction of the
+     * page cache that the background writer tries to keep clean.  Free space
+     * in the cache counts as clean.
+     */
+    public static final String PROP_BGWRITER_CLEAN_FRACTION =
+        "nanodb.bgwriter.cleanfraction";
+
+
+    /** By default, the background writer keeps half of the cache clean. */
+    public static final double DEFAULT_BGWRITER_CLEAN_FRACTION = 0.5;
+
+
+    private class BackgroundWriterPropertyHandler implements PropertyHandler {
+        @Override
+        public Object getPropertyValue(String propertyName)
+            throws UnrecognizedPropertyException {
+
+            if (PROP_BGWRITER_DELAY.equals(propertyName)) {
+                return delay;
+            }
+            else if (PROP_BGWRITER_MAXPAGES.equals(propertyName)) {
+                return maxPages;
+            }
+            else if (PROP_BGWRITER_CLEAN_FRACTION.equals(propertyName)) {
+                return cleanFraction;
+            }
+            else {
+                throw new UnrecognizedPropertyException("No property named " +
+                    propertyName);
+            }
+        }
+
+        @Override
+        public void setPropertyValue(String propertyName, Object value)
+            throws UnrecognizedPropertyException, ReadOnlyPropertyException {
+
+            if (PROP_BGWRITER_DELAY.equals(propertyName) ||
+                PROP_BGWRITER_MAXPAGES.equals(propertyName) ||
+                PROP_BGWRITER_CLEAN_FRACTION.equals(propertyName)) {
+                throw new ReadOnlyPropertyException(propertyName +
+                    " is read-only");
+            }
+            else {
+                throw new UnrecognizedPropertyException("No property named " +
+                    propertyName);
+            }
+        }
+    }
+
+
+    private BufferManager bufferManager;
+
+
+    /** The number of milliseconds between rounds of writing. */
+    private int delay;
+
+
+    /** The maximum number of pages to write in each round, or 0 if disabled. */
+    private int maxPages;
+
+
+    /** The fraction of the page cache to keep clean. */
+    private double cleanFraction;
+
+
+    /** The thread that writes pages, or <tt>null</tt> if disabled. */
+    private ScheduledExecutorService executor;
+
+
+    /**
+     * Creates a background page writer for the specified buffer manager.
+     * The writer doesn't write anything until {@link #start} is called.
+     *
+     * @param server the server to register the writer's properties with, or
+     *        <tt>null</tt> if the properties shouldn't be registered
+     * @param bufferManager the buffer manager whose pages should be written
+     */
+    public BackgroundPageWriter(NanoDBServer server,
+                                BufferManager bufferManager) {
+        this.bufferManager = bufferManager;
+
+        delay = configureIntProperty(PROP_BGWRITER_DELAY,
+            DEFAULT_BGWRITER_DELAY, 1);
+        maxPages = configureIntProperty(PROP_BGWRITER_MAXPAGES,
+            DEFAULT_BGWRITER_MAXPAGES, 0);
+        cleanFraction = configureCleanFraction();
+
+        if (server != null) {
+            server.getPropertyRegistry().registerProperties(
+                new BackgroundWriterPropertyHandler(), PROP_BGWRITER_DELAY,
+                PROP_BGWRITER_MAXPAGES, PROP_BGWRITER_CLEAN_FRACTION);
+        }
+    }
+
+
+    private int configureIntProperty(String name, int defaultValue,
+                                     int minValue) {
+        int value = defaultValue;
+
+        String str = System.getProperty(name);
+        if (str != null) {
+            try {
+                value = Integer.parseInt(str.trim());
+            }
+            catch (NumberFormatException e) {
+                logger.error(String.format("Could not parse %s value " +
+                    "\"%s\"; using default value of %d", name, str,
+                    defaultValue));
+            }
+
+            if (value < minValue) {
+                logger.error(String.format("%s value %d is less than %d; " +
+                    "using default value of %d", name, value, minValue,
+                    defaultValue));
+
+                value = defaultValue;
+            }
+        }
+
+        return value;
+    }
+
+
+    private double configureCleanFraction() {
+        double fraction = DEFAULT_BGWRITER_CLEAN_FRACTION;
+
+        String str = System.getProperty(PROP_BGWRITER_CLEAN_FRACTION);
+        if (str != null) {
+            try {
+                fraction = Double.parseDouble(str.trim());
+            }
+            catch (NumberFormatException e) {
+                logger.error(String.format("Could not parse clean-fraction " +
+                    "value \"%s\"; using default value of %f", str,
+                    DEFAULT_BGWRITER_CLEAN_FRACTION));
+            }
+
+            if (fraction < 0 || fraction > 1) {
+                logger.error(String.format("Clean-fraction value %f is not " +
+                    "between 0 and 1; using default value of %f", fraction,
+                    DEFAULT_BGWRITER_CLEAN_FRACTION));
+
+                fraction = DEFAULT_BGWRITER_CLEAN_FRACTION;
+            }
+        }
+
+        return fraction;
+    }
+
+
+    /**
+     * Returns the number of bytes of the page cache that may be dirty before
+     * the background writer starts writing pages.
+     *
+     * @return the number of bytes of the page cache that may be dirty
+     */
+    public long getMaxDirtyBytes() {
+        return (long) ((1 - cleanFraction) * bufferManager.getMaxCacheSize());
+    }
+
+
+    /**
+     * Starts the background writer's thread, unless the writer is disabled.
+     * This should be called once the Buffer Manager's observers have been
+     * registered, so that the write-ahead log is forced before any pages
+     * are written.
+     */
+    public void start() {
+        if (maxPages == 0) {
+            logger.info("Background page writer is disabled.");
+            return;
+        }
+
+        logger.info(String.format("Starting background page writer:  " +
+            "writing up to %d pages every %dms, keeping %.0f%% of the " +
+            "page cache clean.", maxPages, delay, cleanFraction * 100));
+
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "BackgroundPageWriter");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleWithFixedDelay(this::writePages, delay, delay,
+            TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Performs one round of writing.  Errors are logged rather than thrown,
+     * since throwing would cancel all future rounds; the pages simply stay
+     * dirty, and are written when they are evicted.
+     */
+    private void writePages() {
+        try {
+            int written =
+                bufferManager.cleanDirtyPages(getMaxDirtyBytes(), maxPages);
+
+            if (written > 0) {
+                logger.debug(String.format(
+                    "Background page writer wrote %d pages.", written));
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            logger.error("Background page writer couldn't write pages", e);
+        }
+    }
+
+
+    /**
+     * Stops the background writer's thread, waiting for the current round of
+     * writing to finish.
+     *
+     * @param server the server that the writer's properties were registered
+     *        with, or <tt>null</tt>
+     */
+    public void shutdown(NanoDBServer server) {
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(10, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            executor = null;
+        }
+
+        if (server != null) {
+            server.getPropertyRegistry().unregisterProperties(
+                PROP_BGWRITER_DELAY, PROP_BGWRITER_MAXPAGES,
+                PROP_BGWRITER_CLEAN_FRACTION);
+        }
+    }
+}
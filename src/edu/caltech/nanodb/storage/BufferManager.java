@@ -3,14 +3,19 @@ package edu.caltech.nanodb.storage;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.log4j.Logger;
 
@@ -19,15 +24,32 @@ import edu.caltech.nanodb.client.SessionState;
 import edu.caltech.nanodb.expressions.TypeCastException;
 
 import edu.caltech.nanodb.server.NanoDBServer;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
 import edu.caltech.nanodb.server.properties.PropertyHandler;
 import edu.caltech.nanodb.server.properties.ReadOnlyPropertyException;
 import edu.caltech.nanodb.server.properties.UnrecognizedPropertyException;
+import edu.caltech.nanodb.storage.writeahead.LogSequenceNumber;
 
 
 /**
  * The buffer manager reduces the number of disk IO operations by managing an
  * in-memory cache of data pages.  It also imposes a limit on the maximum
  * amount of space that can be used for data pages in the database.
+ * <p>
+ * The Buffer Manager may be used concurrently from many sessions.  Cached
+ * pages are spread across a number of partitions of the page table, each
+ * guarded by its own latch, so that sessions working with different pages
+ * rarely contend with each other.  The total amount of buffer space in use
+ * is tracked with an atomic counter, and eviction visits the partitions in
+ * round-robin order, so that making space never requires a global lock.
+ *
+ * @design The partition latches only guard the page table itself.
+ *         They are never held while performing file IO or while calling
+ *         observers, so it is fine for an observer (e.g. the Transaction
+ *         Manager forcing the WAL) to call back into the Buffer Manager.
+ *         Dirty pages are only removed from the page table after they have
+ *         been written, so that a concurrent session can never read a stale
+ *         version of a page from disk.
  *
  * @todo Eventually add integrity checks, e.g. to make sure every cached
  *       page's file appears in the collection of cached files.
@@ -46,12 +68,74 @@ public class BufferManager {
 
     /**
      * The system property that can be used to specify the page replacement
-     * policy in the buffer manager.
+     * policy in the buffer manager.  The supported policies are listed in
+     * {@link ReplacementPolicies}.
      */
     public static final String PROP_PAGECACHE_POLICY = "nanodb.pagecache.policy";
 
     /** The default page-cache policy is LRU. */
-    public static final String DEFAULT_PAGECACHE_POLICY = "lru";
+    public static final String DEFAULT_PAGECACHE_POLICY = ReplacementPolicies.LRU;
+
+
+    /**
+     * The system property that can be used to specify how many partitions
+     * the page table is split into.  Each partition has its own latch, so
+     * more partitions allow more sessions to access the cache concurrently.
+     * The value is rounded up to a power of two.
+     */
+    public static final String PROP_PAGECACHE_PARTITIONS =
+        "nanodb.pagecache.partitions";
+
+
+    /**
+     * The default number of page-table partitions is four per available
+     * processor, rounded up to a power of two.
+     */
+    public static final int DEFAULT_PAGECACHE_PARTITIONS =
+        roundUpToPowerOfTwo(4 * Runtime.getRuntime().availableProcessors());
+
+
+    /**
+     * The system property that can be used to store page frames outside of
+     * the Java heap.  When set to "on", page frames are carved out of large
+     * direct buffers by a {@link SlabAllocator}, and recycled instead of
+     * being garbage-collected.
+     */
+    public static final String PROP_PAGECACHE_OFFHEAP =
+        "nanodb.pagecache.offheap";
+
+
+    /**
+     * Scans that are expected to read more than this fraction of the page
+     * cache use a {@link BufferRing}, so that they don't flush the rest of
+     * the cache.
+     */
+    public static final double SCAN_RING_THRESHOLD = 0.25;
+
+
+    /**
+     * The largest number of bytes that are written with a single gathering
+     * write when dirty pages are flushed.  This bounds how many page locks
+     * are held at once, and how long other sessions may wait for them.
+     */
+    public static final int MAX_WRITE_RUN_SIZE = 1024 * 1024;
+
+
+    /**
+     * Returns the smallest power of two that is greater than or equal to the
+     * specified value, or 1 if the value is not positive.
+     *
+     * @param value the value to round up
+     *
+     * @return the smallest power of two that is at least {@code value}
+     */
+    private static int roundUpToPowerOfTwo(int value) {
+        int result = 1;
+        while (result < value && result < (1 << 30))
+            result <<= 1;
+
+        return result;
+    }
 
 
     private static class DBPageID {
@@ -122,6 +206,70 @@ public class BufferManager {
     }
 
 
+    /**
+     * One partition of the page table.  All access to the partition's map of
+     * pages and to its replacement policy must be performed while holding
+     * the partition's latch.
+     */
+    private static class PageTablePartition {
+        /** The latch guarding this partition of the page table. */
+        public final ReentrantLock latch = new ReentrantLock();
+
+        /** The cached pages that hash to this partition. */
+        public final HashMap<CachedPageInfo, DBPage> pages = new HashMap<>();
+
+        /** The policy that chooses which of this partition's pages to evict. */
+        public final PageReplacementPolicy policy;
+
+        public PageTablePartition(PageReplacementPolicy policy) {
+            this.policy = policy;
+        }
+    }
+
+
+    /**
+     * This helper class records a dirty page that is about to be written,
+     * along with the file and page number it had when the write started.
+     * Page writes are ordered by file and then by page number.
+     */
+    private static class PageWrite implements Comparable<PageWrite> {
+        /** The page to write. */
+        public DBPage dbPage;
+
+        /** The file that the page belongs to. */
+        public DBFile dbFile;
+
+        /** The number of the page within its file. */
+        public int pageNo;
+
+        /** The page's change-count when its write started. */
+        public int changeCount;
+
+        public PageWrite(DBPage dbPage, DBFile dbFile, int pageNo) {
+            this.dbPage = dbPage;
+            this.dbFile = dbFile;
+            this.pageNo = pageNo;
+        }
+
+        /**
+         * Returns true if this page immediately follows the specified page
+         * in the same file.
+         */
+        public boolean follows(PageWrite other) {
+            return dbFile.equals(other.dbFile) && pageNo == other.pageNo + 1;
+        }
+
+        @Override
+        public int compareTo(PageWrite other) {
+            int cmp = dbFile.getDataFile().compareTo(other.dbFile.getDataFile());
+            if (cmp == 0)
+                cmp = Integer.compare(pageNo, other.pageNo);
+
+            return cmp;
+        }
+    }
+
+
     /**
      * This helper class records the pin-count of a data page as imposed by a
      * given session, so that we can forcibly release the session's pins after
@@ -153,6 +301,12 @@ public class BufferManager {
             else if (PROP_PAGECACHE_POLICY.equals(propertyName)) {
                 return replacementPolicy;
             }
+            else if (PROP_PAGECACHE_PARTITIONS.equals(propertyName)) {
+                return partitions.length;
+            }
+            else if (PROP_PAGECACHE_OFFHEAP.equals(propertyName)) {
+                return slabAllocator != null ? "on" : "off";
+            }
             else {
                 throw new UnrecognizedPropertyException("No property named " +
                         propertyName);
@@ -172,6 +326,14 @@ public class BufferManager {
                 throw new ReadOnlyPropertyException(propertyName +
                         " is read-only");
             }
+            else if (PROP_PAGECACHE_PARTITIONS.equals(propertyName)) {
+                throw new ReadOnlyPropertyException(propertyName +
+                        " is read-only");
+            }
+            else if (PROP_PAGECACHE_OFFHEAP.equals(propertyName)) {
+                throw new ReadOnlyPropertyException(propertyName +
+                        " is read-only");
+            }
             else {
                 throw new UnrecognizedPropertyException("No property named " +
                         propertyName);
@@ -187,30 +349,50 @@ public class BufferManager {
     private FileManager fileManager;
 
 
-    private ArrayList<BufferManagerObserver> observers;
+    private CopyOnWriteArrayList<BufferManagerObserver> observers;
 
 
     /**
      * This collection holds the {@link DBFile} objects corresponding to various
      * opened files the database is currently using.
      */
-    private LinkedHashMap<String, DBFile> cachedFiles;
+    private ConcurrentHashMap<String, DBFile> cachedFiles;
 
 
     /**
-     * This collection holds database pages (not WAL pages) that the database
+     * This is the page table, holding the database pages that the database
      * is currently working with, so that they don't continually need to be
-     * reloaded.
+     * reloaded.  A page always lives in the partition selected by
+     * {@link #getPartition}.  The number of partitions is a power of two.
+     */
+    private PageTablePartition[] partitions;
+
+
+    /**
+     * The index of the next partition that eviction will examine.  Eviction
+     * walks the partitions round-robin so that no partition is favored, and
+     * so that concurrent evictions tend to work on different partitions.
+     */
+    private AtomicInteger evictionHand;
+
+
+    /**
+     * The number of sessions that are currently evicting pages.  While this
+     * is nonzero, space may still be freed up by pages that have already
+     * been taken out of the page table.
      */
-    private LinkedHashMap<CachedPageInfo, DBPage> cachedPages;
+    private AtomicInteger evictingSessions;
 
 
     /**
      * This collection maps session IDs to the files and pages that each
      * session has pinned, so that we can forcibly unpin pages used by a
      * given session when the session is done with the current command.
+     * Each session only manipulates its own map, but maps may be examined by
+     * other sessions when pages are invalidated, so both levels are
+     * concurrent maps.
      */
-    private HashMap<Integer, HashMap<DBPageID, SessionPinCount>> sessionPinCounts;
+    private ConcurrentHashMap<Integer, ConcurrentHashMap<DBPageID, SessionPinCount>> sessionPinCounts;
 
 
     /**
@@ -224,16 +406,26 @@ public class BufferManager {
 
 
     /** This field records how many bytes are currently cached, in total. */
-    private long totalBytesCached;
+    private AtomicLong totalBytesCached;
 
 
     /** This field records the maximum allowed cache size. */
     private long maxCacheSize;
 
 
+    /**
+     * If page frames are stored outside of the Java heap, this allocator
+     * provides them; otherwise it is {@code null}, and each frame wraps a
+     * new byte-array.
+     */
+    private SlabAllocator slabAllocator;
+
+
     /**
      * A string indicating the buffer manager's page replacement policy.
-     * Currently it can be "lru" or "fifo".
+     * Currently it can be "lru", "fifo", "clock", "2q" or "lru-k".
+     *
+     * @see ReplacementPolicies
      */
     private String replacementPolicy;
 
@@ -241,29 +433,52 @@ public class BufferManager {
     public BufferManager(NanoDBServer server, FileManager fileManager) {
         this.fileManager = fileManager;
 
-        observers = new ArrayList<>();
+        observers = new CopyOnWriteArrayList<>();
 
         configureMaxCacheSize();
 
-        cachedFiles = new LinkedHashMap<>();
+        if (isOffHeapEnabled())
+            slabAllocator = new SlabAllocator();
+
+        cachedFiles = new ConcurrentHashMap<>();
 
         replacementPolicy = configureReplacementPolicy();
-        cachedPages = new LinkedHashMap<>(16, 0.75f, "lru".equals(replacementPolicy));
 
-        totalBytesCached = 0;
+        partitions = new PageTablePartition[configureNumPartitions()];
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i] = new PageTablePartition(
+                ReplacementPolicies.newPolicy(replacementPolicy));
+        }
+        evictionHand = new AtomicInteger();
+        evictingSessions = new AtomicInteger();
+
+        totalBytesCached = new AtomicLong();
         allocatedBuffers = new HashSet<>();
 
-        sessionPinCounts = new HashMap<>();
+        sessionPinCounts = new ConcurrentHashMap<>();
 
         if (server != null) {
             // Register properties that the Buffer Manager exposes.
             server.getPropertyRegistry().registerProperties(
                 new BufferManagerPropertyHandler(),
-                PROP_PAGECACHE_POLICY, PROP_PAGECACHE_SIZE);
+                PROP_PAGECACHE_POLICY, PROP_PAGECACHE_SIZE,
+                PROP_PAGECACHE_PARTITIONS, PROP_PAGECACHE_OFFHEAP);
         }
     }
 
 
+    /**
+     * Returns true if the <tt>nanodb.pagecache.offheap</tt> property
+     * specifies that page frames should be stored outside of the Java heap.
+     *
+     * @return true if page frames should be stored off-heap
+     */
+    public static boolean isOffHeapEnabled() {
+        return "on".equalsIgnoreCase(
+            System.getProperty(PROP_PAGECACHE_OFFHEAP, "off"));
+    }
+
+
     private void configureMaxCacheSize() {
         // Set the default up-front; it's just easier that way.
         maxCacheSize = DEFAULT_PAGECACHE_SIZE;
@@ -312,17 +527,62 @@ public class BufferManager {
 
         str = str.trim().toLowerCase();
 
-        if (!("lru".equals(str) || "fifo".equals(str))) {
+        if (!ReplacementPolicies.isRecognized(str)) {
             logger.error(String.format(
                 "Unrecognized value \"%s\" for page-cache replacement " +
                 "policy; using default value of LRU.",
                 System.getProperty(PROP_PAGECACHE_POLICY)));
+
+            str = DEFAULT_PAGECACHE_POLICY;
         }
 
         return str;
     }
 
 
+    private int configureNumPartitions() {
+        int numPartitions = DEFAULT_PAGECACHE_PARTITIONS;
+
+        String str = System.getProperty(PROP_PAGECACHE_PARTITIONS);
+        if (str != null) {
+            try {
+                numPartitions = Integer.parseInt(str.trim());
+            }
+            catch (NumberFormatException e) {
+                logger.error(String.format(
+                    "Could not parse page-cache partitions value \"%s\"; " +
+                    "using default value of %d partitions", str,
+                    DEFAULT_PAGECACHE_PARTITIONS));
+            }
+
+            if (numPartitions < 1) {
+                logger.error(String.format(
+                    "Page-cache partitions value %d is not positive; " +
+                    "using default value of %d partitions", numPartitions,
+                    DEFAULT_PAGECACHE_PARTITIONS));
+
+                numPartitions = DEFAULT_PAGECACHE_PARTITIONS;
+            }
+        }
+
+        return roundUpToPowerOfTwo(numPartitions);
+    }
+
+
+    /**
+     * Returns the page-table partition that the specified page belongs in.
+     *
+     * @param cpi the identity of the page
+     *
+     * @return the partition that holds the page, if it is cached
+     */
+    private PageTablePartition getPartition(CachedPageInfo cpi) {
+        int hash = cpi.hashCode();
+        hash ^= (hash >>> 16);
+        return partitions[hash & (partitions.length - 1)];
+    }
+
+
     /**
      * Add another observer to the buffer manager.
      *
@@ -340,29 +600,77 @@ public class BufferManager {
      * This method attempts to allocate a buffer of the specified size,
      * possibly evicting some existing buffers in order to make space.
      *
+     * If page frames are stored off-heap, the buffer is a frame from the
+     * {@link SlabAllocator}, and it is zeroed out so that it looks the same
+     * as a newly allocated array.
+     *
      * @param size the size of the buffer to allocate
      *
-     * @return an array of bytes, of the specified size
+     * @return a buffer of the specified size, positioned at 0
      *
      * @throws IOException if a dirty page must be evicted from the buffer
      *         manager, and an IO error occurred while writing the page to
      *         persistent storage.
      */
-    public byte[] allocBuffer(int size) throws IOException {
+    public ByteBuffer allocBuffer(int size) throws IOException {
         if (size <= 0)
             throw new IllegalArgumentException("size must be > 0, got " + size);
 
-        ensureSpaceAvailable(size);
+        // Reserve the space for the buffer.  Other sessions may be reserving
+        // space at the same time, so space we free up may be claimed by
+        // someone else; keep evicting until we either get our reservation in,
+        // or there is nothing left that can be evicted.
+        while (true) {
+            long cached = totalBytesCached.get();
+            if (cached + size <= maxCacheSize) {
+                if (totalBytesCached.compareAndSet(cached, cached + size))
+                    break;
 
-        if (totalBytesCached + size > maxCacheSize) {
-            throw new IllegalStateException(
-                "Not enough room to allocate a buffer of " + size + " bytes!");
+                continue;
+            }
+
+            if (!ensureSpaceAvailable(size)) {
+                // Pages that other sessions are in the middle of evicting
+                // can't be found in the page table, so give them a chance to
+                // finish before deciding that everything is pinned.
+                if (evictingSessions.get() > 0) {
+                    Thread.yield();
+                    continue;
+                }
+
+                // Every cached page is pinned.  Operations such as large
+                // scans keep their pages pinned until the command completes,
+                // so go over the limit rather than failing the command.
+                logger.warn(String.format("All cached pages are pinned; " +
+                    "exceeding the page-cache size to allocate %d bytes.",
+                    size));
+
+                totalBytesCached.addAndGet(size);
+                break;
+            }
         }
 
         // Perform the allocation so that we know the JVM also has space...
-        // Then update the total bytes in use by the buffer manager.
-        byte[] buffer = new byte[size];
-        totalBytesCached += size;
+        // The space has already been added to the total bytes in use.
+        ByteBuffer buffer;
+        try {
+            if (slabAllocator != null) {
+                buffer = slabAllocator.allocate(size);
+
+                int i = 0;
+                for (; i + 8 <= size; i += 8)
+                    buffer.putLong(i, 0L);
+                for (; i < size; i++)
+                    buffer.put(i, (byte) 0);
+            }
+            else {
+                buffer = ByteBuffer.wrap(new byte[size]);
+            }
+        }
+        catch (OutOfMemoryError e) {
+            totalBytesCached.addAndGet(-size);
+            throw e;
+        }
 
         // Record the identity of the buffer that we allocated, so that
         // releaseBuffer() can verify that it came from the buffer manager.
@@ -375,7 +683,7 @@ public class BufferManager {
     }
 
 
-    public void releaseBuffer(byte[] buffer) {
+    public void releaseBuffer(ByteBuffer buffer) {
         // Verify that this was a buffer we allocated?
         // TODO:  System.identityHashCode() is not guaranteed to return a
         //        distinct value for every object, so we can have collisions
@@ -388,7 +696,10 @@ public class BufferManager {
         */
 
         // Record that the buffer's space is now available.
-        totalBytesCached -= buffer.length;
+        totalBytesCached.addAndGet(-buffer.capacity());
+
+        if (slabAllocator != null)
+            slabAllocator.release(buffer);
     }
 
 
@@ -420,17 +731,16 @@ public class BufferManager {
             throw new IllegalArgumentException("dbFile cannot be null");
 
         String filename = dbFile.getDataFile().getName();
-        if (cachedFiles.containsKey(filename)) {
-            throw new IllegalStateException(
-                "File cache already contains file " + filename);
-        }
 
         // NOTE:  If we want to keep a cap on how many files are opened, we
         //        would do that here.
 
         logger.debug(String.format( "Adding file %s to file-cache.", filename));
 
-        cachedFiles.put(filename, dbFile);
+        if (cachedFiles.putIfAbsent(filename, dbFile) != null) {
+            throw new IllegalStateException(
+                "File cache already contains file " + filename);
+        }
     }
 
 
@@ -445,10 +755,10 @@ public class BufferManager {
         int sessionID = SessionState.get().getSessionID();
 
         // Retrieve the set of pages pinned by the current session.
-        HashMap<DBPageID, SessionPinCount> pinnedBySession =
+        ConcurrentHashMap<DBPageID, SessionPinCount> pinnedBySession =
             sessionPinCounts.get(sessionID);
         if (pinnedBySession == null) {
-            pinnedBySession = new HashMap<>();
+            pinnedBySession = new ConcurrentHashMap<>();
             sessionPinCounts.put(sessionID, pinnedBySession);
         }
 
@@ -475,7 +785,7 @@ public class BufferManager {
         int sessionID = SessionState.get().getSessionID();
 
         // Retrieve the set of pages pinned by the current session.
-        HashMap<DBPageID, SessionPinCount> pinnedBySession =
+        ConcurrentHashMap<DBPageID, SessionPinCount> pinnedBySession =
             sessionPinCounts.get(sessionID);
         if (pinnedBySession == null) {
             logger.error(String.format("DBPage %d is being unpinned by " +
@@ -509,6 +819,35 @@ public class BufferManager {
     }
 
 
+    /**
+     * Hands a page that the page replacement policy set aside while it was
+     * pinned back to the policy, now that the page has been unpinned.  This
+     * is called by {@link DBPage#unpin} when the page's pin-count drops to
+     * zero.  Nothing happens if the page has been evicted in the meantime.
+     *
+     * @param dbPage the page that was unpinned
+     */
+    void pageReleased(DBPage dbPage) {
+        DBFile dbFile = dbPage.getDBFile();
+        if (dbFile == null)
+            return;  // Already invalidated by someone else.
+
+        CachedPageInfo cpi = new CachedPageInfo(dbFile, dbPage.getPageNo());
+        PageTablePartition partition = getPartition(cpi);
+
+        partition.latch.lock();
+        try {
+            if (partition.pages.get(cpi) == dbPage) {
+                dbPage.clearSetAside();
+                partition.policy.pageUnpinned(dbPage);
+            }
+        }
+        finally {
+            partition.latch.unlock();
+        }
+    }
+
+
     /**
      * This method unpins all pages pinned by the current session.  This is
      * generally done at the end of each transaction so that pages aren't
@@ -519,7 +858,7 @@ public class BufferManager {
         int sessionID = SessionState.get().getSessionID();
 
         // Retrieve the set of pages pinned by the current session.
-        HashMap<DBPageID, SessionPinCount> pinnedBySession =
+        ConcurrentHashMap<DBPageID, SessionPinCount> pinnedBySession =
             sessionPinCounts.get(sessionID);
 
         if (pinnedBySession == null) {
@@ -560,12 +899,17 @@ public class BufferManager {
                 "it has a pin-count of %d", pageNo, dbPage.getPinCount()));
         }
 
-        for (int sessionID : sessionPinCounts.keySet()) {
-            HashMap<DBPageID, SessionPinCount> pinnedBySession =
-                sessionPinCounts.get(sessionID);
-
-            SessionPinCount spc = pinnedBySession.remove(pageID);
-            if (spc != null) {
+        for (Map.Entry<Integer, ConcurrentHashMap<DBPageID, SessionPinCount>>
+                 entry : sessionPinCounts.entrySet()) {
+            int sessionID = entry.getKey();
+            ConcurrentHashMap<DBPageID, SessionPinCount> pinnedBySession =
+                entry.getValue();
+
+            // Only forget pins on this specific page object; another copy of
+            // the same page may have been loaded and pinned in the meantime.
+            SessionPinCount spc = pinnedBySession.get(pageID);
+            if (spc != null && spc.dbPage == dbPage &&
+                pinnedBySession.remove(pageID, spc)) {
                 logger.warn(String.format("DBPage %d is being invalidated, " +
                     "but session %d has pinned it %d times", pageNo, sessionID,
                     spc.pinCount));
@@ -584,18 +928,56 @@ public class BufferManager {
      * @return the requested {@code DBPage}, or {@code null} if not found
      */
     public DBPage getPage(DBFile dbFile, int pageNo) {
-        DBPage dbPage = cachedPages.get(new CachedPageInfo(dbFile, pageNo));
+        return getPage(dbFile, pageNo, true);
+    }
+
+
+    /**
+     * Retrieves the specified {@code DBPage} from the Buffer Manager if it
+     * has already been loaded, or returns {@code null} if the page is not
+     * present in the Buffer Manager.  The page is pinned if it is returned.
+     * Background work like prefetching passes {@code false} for
+     * {@code recordAccess}, so that it doesn't count as a use of the page by
+     * the replacement policy or the hit and miss counters.
+     *
+     * @param dbFile the file that the page is from
+     * @param pageNo the page number to look for
+     * @param recordAccess true if the access should be recorded
+     *
+     * @return the page, pinned, or {@code null} if it isn't cached
+     */
+    DBPage getPage(DBFile dbFile, int pageNo, boolean recordAccess) {
+        CachedPageInfo cpi = new CachedPageInfo(dbFile, pageNo);
+        PageTablePartition partition = getPartition(cpi);
+
+        DBPage dbPage;
+        partition.latch.lock();
+        try {
+            dbPage = partition.pages.get(cpi);
+            if (dbPage != null) {
+                // Make sure this page is pinned by the session so that we
+                // don't flush it until the session is done with it.  This is
+                // done while holding the latch so that the page can't be
+                // evicted between being found and being pinned.
+                dbPage.pin();
+                if (recordAccess)
+                    partition.policy.pageAccessed(dbPage);
+            }
+        }
+        finally {
+            partition.latch.unlock();
+        }
+
+        if (recordAccess) {
+            PerformanceCounters.inc(dbPage != null ?
+                PerformanceCounters.BUFFER_PAGE_HITS :
+                PerformanceCounters.BUFFER_PAGE_MISSES);
+        }
 
         logger.debug(String.format(
             "Requested page [%s,%d] is%s in page-cache.",
             dbFile, pageNo, (dbPage != null ? "" : " NOT")));
 
-        if (dbPage != null) {
-            // Make sure this page is pinned by the session so that we don't
-            // flush it until the session is done with it.
-            dbPage.pin();
-        }
-
         return dbPage;
     }
 
@@ -619,96 +1001,292 @@ public class BufferManager {
         if (dbPage == null)
             throw new IllegalArgumentException("dbPage cannot be null");
 
+        if (addPageIfAbsent(dbPage) != dbPage) {
+            throw new IllegalStateException(String.format(
+                "Page cache already contains page [%s,%d]",
+                dbPage.getDBFile(), dbPage.getPageNo()));
+        }
+    }
+
+
+    /**
+     * <p>
+     * Adds a new, previously unbuffered {@code DBPage} to the Buffer Manager,
+     * unless another session has already added the same page.  Whichever
+     * page ends up in the Buffer Manager is pinned and returned.
+     * </p>
+     * <p>
+     * This allows sessions to load pages concurrently without coordinating
+     * with each other.  If the page returned is not the page passed in, the
+     * caller should invalidate its own copy of the page, and use the
+     * returned page instead.
+     * </p>
+     *
+     * @param dbPage the page to add to the Buffer Manager
+     *
+     * @return the page that is cached for the same file and page number,
+     *         pinned on behalf of the caller
+     */
+    public DBPage addPageIfAbsent(DBPage dbPage) {
+        if (dbPage == null)
+            throw new IllegalArgumentException("dbPage cannot be null");
+
         DBFile dbFile = dbPage.getDBFile();
         int pageNo = dbPage.getPageNo();
 
         CachedPageInfo cpi = new CachedPageInfo(dbFile, pageNo);
-        if (cachedPages.containsKey(cpi)) {
-            throw new IllegalStateException(String.format(
-                "Page cache already contains page [%s,%d]", dbFile, pageNo));
+        PageTablePartition partition = getPartition(cpi);
+
+        partition.latch.lock();
+        try {
+            DBPage existing = partition.pages.get(cpi);
+            if (existing != null) {
+                logger.debug(String.format("Page [%s,%d] was added to the " +
+                    "page-cache by another session.", dbFile, pageNo));
+
+                existing.pin();
+                partition.policy.pageAccessed(existing);
+                return existing;
+            }
+
+            logger.debug(String.format("Adding page [%s,%d] to page-cache.",
+                dbFile, pageNo));
+
+            // Make sure this page is pinned by the session so that we don't
+            // flush it until the session is done with it.  We do that before
+            // adding it to the cached-pages collection, so that another thread
+            // can't reclaim the page out from under us.
+            dbPage.pin();
+            partition.pages.put(cpi, dbPage);
+            partition.policy.pageAdded(dbPage);
+        }
+        finally {
+            partition.latch.unlock();
         }
 
-        logger.debug(String.format("Adding page [%s,%d] to page-cache.",
-            dbFile, pageNo));
+        return dbPage;
+    }
 
-        // Make sure this page is pinned by the session so that we don't flush
-        // it until the session is done with it.  We do that before adding it
-        // to the cached-pages collection, so that another thread can't
-        // reclaim the page out from under us.
-        dbPage.pin();
-        cachedPages.put(cpi, dbPage);
+
+    /**
+     * Returns true if a scan that is expected to read the specified number
+     * of pages should recycle its pages through a {@link BufferRing}, i.e.
+     * if the scan would take up a significant part of the page cache.
+     *
+     * @param scanPages the number of pages the scan is expected to read
+     * @param pageSize the size of the pages being scanned
+     *
+     * @return true if the scan should use a buffer ring
+     */
+    public boolean isLargeScan(int scanPages, int pageSize) {
+        return (long) scanPages * pageSize > maxCacheSize * SCAN_RING_THRESHOLD;
     }
 
 
     /**
-     * This helper function ensures that the buffer manager has the specified
-     * amount of space available.  This is done by removing pages out of the
-     * buffer manager's cache
+     * Records that a page was just loaded from disk on behalf of a scan that
+     * is using the specified buffer ring.  If the scan is large enough to
+     * need the ring, the page is added to the ring, and the page that falls
+     * off the end of the ring is evicted, as long as it is not pinned or
+     * dirty.  Small scans leave their pages to the replacement policy.
+     *
+     * @param ring the buffer ring of the scan that loaded the page
+     *
+     * @param dbPage the page that was just added to the Buffer Manager
+     */
+    public void addPageToRing(BufferRing ring, DBPage dbPage) {
+        if (!isLargeScan(ring.getScanPages(), dbPage.getPageSize()))
+            return;
+
+        DBPage oldPage = ring.addPage(dbPage);
+        if (oldPage != null && evictIfUnused(oldPage))
+            PerformanceCounters.inc(PerformanceCounters.BUFFER_RING_RECYCLES);
+    }
+
+
+    /**
+     * This helper function tries to ensure that the buffer manager has the
+     * specified amount of space available.  This is done by removing pages
+     * out of the buffer manager's cache.  Partitions are visited round-robin,
+     * and each partition's replacement policy chooses at most one page to
+     * evict per visit, so that no partition is drained before the others.
      *
      * @param bytesRequired the amount of space that should be made available
      *        in the cache, in bytes
      *
+     * @return {@code true} if the required space is now available or some
+     *         pages were evicted, or {@code false} if no unpinned pages could
+     *         be found to evict
+     *
      * @throws IOException if an IO error occurs when flushing dirty pages out
      *         to disk
      */
-    private void ensureSpaceAvailable(int bytesRequired) throws IOException {
+    private boolean ensureSpaceAvailable(int bytesRequired) throws IOException {
         // If we already have enough space, return without doing anything.
-        if (bytesRequired + totalBytesCached <= maxCacheSize)
-            return;
+        if (bytesRequired + totalBytesCached.get() <= maxCacheSize)
+            return true;
+
+        evictingSessions.incrementAndGet();
+        try {
+            return evictPages(bytesRequired);
+        }
+        finally {
+            evictingSessions.decrementAndGet();
+        }
+    }
+
+
+    /**
+     * This helper performs the work of {@link #ensureSpaceAvailable}.
+     *
+     * @param bytesRequired the amount of space that should be made available
+     *        in the cache, in bytes
+     *
+     * @return {@code true} if the required space is now available or some
+     *         pages were evicted, or {@code false} if no unpinned pages could
+     *         be found to evict
+     *
+     * @throws IOException if an IO error occurs when flushing dirty pages out
+     *         to disk
+     */
+    private boolean evictPages(int bytesRequired) throws IOException {
 
         // We don't currently have enough space in the cache.  Try to solve
-        // this problem by evicting pages.  We collect together the pages to
-        // evict, so that we can update the write-ahead log before flushing
-        // the pages.
+        // this problem by evicting pages.  Clean pages can be dropped right
+        // away, but dirty pages are collected together so that we can update
+        // the write-ahead log before flushing them.  Dirty pages stay in the
+        // page table until they are written, so the space they will free up
+        // is tracked separately.
 
         ArrayList<DBPage> dirtyPages = new ArrayList<>();
+        long pendingBytes = 0;
+        boolean evicted = false;
+
+        // Stop once we have visited every partition without finding anything
+        // to evict.
+        int fruitlessVisits = 0;
+        while (fruitlessVisits < partitions.length &&
+               bytesRequired + totalBytesCached.get() - pendingBytes > maxCacheSize) {
+
+            int index = evictionHand.getAndIncrement() & (partitions.length - 1);
+            PageTablePartition partition = partitions[index];
+
+            DBPage victim;
+            boolean dirty = false;
+            int pageSize = 0;
+            partition.latch.lock();
+            try {
+                // The policy won't choose pages that are in use, or dirty
+                // pages we are already planning to write.
+                victim = partition.policy.chooseVictim(dirtyPages);
+                if (victim != null) {
+                    logger.debug(String.format(
+                        "    Evicting page [%s,%d] from page-cache to make room.",
+                        victim.getDBFile(), victim.getPageNo()));
+
+                    // If the page is dirty, we need to write its data to disk
+                    // before evicting it.  Otherwise, just evict it.  The
+                    // decision is made once, here, since another thread may
+                    // write out or evict the page as soon as the latch is
+                    // released.
+                    dirty = victim.isDirty();
+                    pageSize = victim.getPageSize();
+                    if (!dirty) {
+                        partition.pages.remove(
+                            new CachedPageInfo(victim.getDBFile(),
+                                               victim.getPageNo()));
+                        partition.policy.pageRemoved(victim);
+                    }
+                }
+            }
+            finally {
+                partition.latch.unlock();
+            }
 
-        if (!cachedPages.isEmpty()) {
-            // The cache will be too large after adding this page.
+            if (victim == null) {
+                fruitlessVisits++;
+                continue;
+            }
 
-            Iterator<Map.Entry<CachedPageInfo, DBPage>> entries =
-                cachedPages.entrySet().iterator();
+            fruitlessVisits = 0;
+            evicted = true;
+            PerformanceCounters.inc(dirty ?
+                PerformanceCounters.BUFFER_DIRTY_EVICTIONS :
+                PerformanceCounters.BUFFER_CLEAN_EVICTIONS);
 
-            while (entries.hasNext() &&
-                bytesRequired + totalBytesCached > maxCacheSize) {
-                Map.Entry<CachedPageInfo, DBPage> entry = entries.next();
+            if (dirty) {
+                logger.debug("    Evicted page is dirty; must save to disk.");
+                dirtyPages.add(victim);
+                pendingBytes += pageSize;
+            }
+            else {
+                victim.invalidate();
+            }
+        }
 
-                DBPage oldPage = entry.getValue();
+        // If we have any dirty data pages, they need to be flushed to disk.
+        // Only then can they be removed from the page table.
+        writeDirtyPages(dirtyPages, /* invalidate */ false);
+        for (DBPage dbPage : dirtyPages)
+            evictIfUnused(dbPage);
 
-                if (oldPage.isPinned())  // Can't flush pages that are in use.
-                    continue;
+        if (bytesRequired + totalBytesCached.get() > maxCacheSize) {
+            logger.warn("Buffer manager is currently using too much space.");
+            return evicted;
+        }
 
-                logger.debug(String.format(
-                    "    Evicting page [%s,%d] from page-cache to make room.",
-                    oldPage.getDBFile(), oldPage.getPageNo()));
+        return true;
+    }
 
-                entries.remove();
-                totalBytesCached -= oldPage.getPageSize();
 
-                // If the page is dirty, we need to write its data to disk before
-                // invalidating it.  Otherwise, just invalidate it.
-                if (oldPage.isDirty()) {
-                    logger.debug("    Evicted page is dirty; must save to disk.");
-                    dirtyPages.add(oldPage);
-                }
-                else {
-                    oldPage.invalidate();
-                }
+    /**
+     * This helper removes a page from the page table and invalidates it, as
+     * long as no session is using the page and it is not dirty.  This is
+     * used for pages that have just been written to disk, in case a session
+     * started using the page again while it was being written, and for pages
+     * that fall off the end of a {@link BufferRing}.
+     *
+     * @param dbPage the page to evict
+     *
+     * @return true if the page was evicted, or false if it was left alone
+     */
+    private boolean evictIfUnused(DBPage dbPage) {
+        DBFile dbFile = dbPage.getDBFile();
+        if (dbFile == null)
+            return false;  // Already invalidated by someone else.
+
+        CachedPageInfo cpi = new CachedPageInfo(dbFile, dbPage.getPageNo());
+        PageTablePartition partition = getPartition(cpi);
+
+        boolean removed = false;
+        partition.latch.lock();
+        try {
+            if (partition.pages.get(cpi) == dbPage && !dbPage.isPinned() &&
+                !dbPage.isDirty()) {
+                partition.pages.remove(cpi);
+                partition.policy.pageRemoved(dbPage);
+                removed = true;
             }
         }
+        finally {
+            partition.latch.unlock();
+        }
 
-        // If we have any dirty data pages, they need to be flushed to disk.
-        writeDirtyPages(dirtyPages, /* invalidate */ true);
+        if (removed)
+            dbPage.invalidate();
 
-        if (bytesRequired + totalBytesCached > maxCacheSize)
-            logger.warn("Buffer manager is currently using too much space.");
+        return removed;
     }
 
 
     /**
      * This helper method writes out a list of dirty pages from the buffer
      * manager, ensuring that if transactions are enabled, the
-     * write-ahead-logging rule is satisfied.
+     * write-ahead-logging rule is satisfied.  The pages are written in order
+     * of file and page number, and each run of adjacent pages is written
+     * with a single gathering write (see {@link FileManager#savePages}), so
+     * that large flushes turn into a few large sequential writes instead of
+     * many small random ones.
      *
      * @param dirtyPages the list of dirty pages to write
      * @param invalidate if true then the dirty pages are invalidated so they
@@ -728,20 +1306,492 @@ public class BufferManager {
             for (BufferManagerObserver obs : observers)
                 obs.beforeWriteDirtyPages(readOnlyPages);
 
-            // Finally, we can write out each dirty page.
+            // Sort the pages by file and page number.  Pages that another
+            // session has already evicted are left out.
+            ArrayList<PageWrite> writes = new ArrayList<>(dirtyPages.size());
             for (DBPage dbPage : dirtyPages) {
-                fileManager.savePage(dbPage.getDBFile(), dbPage.getPageNo(),
-                                     dbPage.getPageData());
+                DBFile dbFile = dbPage.getDBFile();
+                if (dbFile != null)
+                    writes.add(new PageWrite(dbPage, dbFile, dbPage.getPageNo()));
+            }
+            Collections.sort(writes);
+
+            // Finally, we can write out each run of adjacent dirty pages.
+            int runStart = 0;
+            while (runStart < writes.size()) {
+                PageWrite first = writes.get(runStart);
+                int maxRunPages = Math.max(1,
+                    MAX_WRITE_RUN_SIZE / first.dbFile.getPageSize());
+
+                int runEnd = runStart + 1;
+                while (runEnd < writes.size() &&
+                       runEnd - runStart < maxRunPages &&
+                       writes.get(runEnd).follows(writes.get(runEnd - 1))) {
+                    runEnd++;
+                }
 
-                dbPage.setDirty(false);
+                writePageRun(writes.subList(runStart, runEnd));
+                runStart = runEnd;
+            }
 
-                if (invalidate)
+            if (invalidate) {
+                for (DBPage dbPage : dirtyPages)
                     dbPage.invalidate();
             }
         }
     }
 
 
+    /**
+     * This helper method writes a run of adjacent pages from the same file.
+     * The write lock of every page in the run is held while the run is
+     * written, so that no page can be written or invalidated by another
+     * session in the meantime.  Since the run is sorted by page number, the
+     * locks are always acquired in the same order.  Pages that were written
+     * by another session before their locks were acquired split the run.
+     *
+     * @param run the pages to write, in order of page number
+     *
+     * @throws IOException if an IO error occurs while writing the pages
+     */
+    private void writePageRun(List<PageWrite> run) throws IOException {
+        int locked = 0;
+        try {
+            for (PageWrite write : run) {
+                write.dbPage.getWriteLock().lock();
+                locked++;
+            }
+
+            ArrayList<PageWrite> pending = new ArrayList<>(run.size());
+            for (PageWrite write : run) {
+                DBPage dbPage = write.dbPage;
+
+                // Another session may have written the page out already, or
+                // evicted it.
+                if (dbPage.isDirty() && dbPage.getDBFile() != null) {
+                    // If the page is changed while it is being written, it
+                    // stays dirty so that the change is written later.
+                    write.changeCount = dbPage.getChangeCount();
+                    pending.add(write);
+                }
+                else {
+                    savePages(pending);
+                    pending.clear();
+                }
+            }
+            savePages(pending);
+        }
+        finally {
+            for (int i = 0; i < locked; i++)
+                run.get(i).dbPage.getWriteLock().unlock();
+        }
+    }
+
+
+    /**
+     * This helper method writes a run of adjacent, locked pages with a
+     * single call to the file manager, and then marks each page clean unless
+     * it changed while it was being written.  Each page's LSN is stored in
+     * the page first (see {@link DBPage#storePageLSN}).
+     *
+     * @param pending the pages to write, in order of page number
+     *
+     * @throws IOException if an IO error occurs while writing the pages
+     */
+    private void savePages(List<PageWrite> pending) throws IOException {
+        if (pending.isEmpty())
+            return;
+
+        for (PageWrite write : pending)
+            write.dbPage.storePageLSN();
+
+        PageWrite first = pending.get(0);
+        if (pending.size() == 1) {
+            fileManager.savePage(first.dbFile, first.pageNo,
+                first.dbPage.getPageBuffer());
+        }
+        else {
+            ByteBuffer[] buffers = new ByteBuffer[pending.size()];
+            for (int i = 0; i < buffers.length; i++)
+                buffers[i] = pending.get(i).dbPage.getPageBuffer();
+
+            fileManager.savePages(first.dbFile, first.pageNo, buffers);
+        }
+
+        for (PageWrite write : pending)
+            write.dbPage.setCleanIfUnchanged(write.changeCount);
+    }
+
+
+    /**
+     * <p>
+     * Writes some dirty pages to disk if more than the specified number of
+     * bytes in the page cache are dirty, so that sessions that need to evict
+     * pages are likely to find clean ones.  This is called periodically by
+     * the {@link BackgroundPageWriter}.  The pages stay in the cache; their
+     * dirty state is simply cleared.
+     * </p>
+     * <p>
+     * Only pages that aren't pinned are written, and the write-ahead log is
+     * updated first, as for any other write of dirty pages.  Since other
+     * sessions keep using the pages while they are written, each page is
+     * copied before it is written, and it is only marked clean if it didn't
+     * change while it was being written.  Pages are written starting from
+     * the partition that eviction will visit next.
+     * </p>
+     *
+     * @param maxDirtyBytes the number of bytes in the page cache that may be
+     *        used by dirty pages before any pages are written
+     *
+     * @param maxPages the maximum number of pages to write
+     *
+     * @return the number of pages that were written and marked clean
+     *
+     * @throws IOException if an IO error occurs while updating the write-ahead
+     *         log, or while writing the pages
+     */
+    public int cleanDirtyPages(long maxDirtyBytes, int maxPages)
+        throws IOException {
+
+        ArrayList<DBPage> candidates = new ArrayList<>();
+        long dirtyBytes = 0;
+
+        int hand = evictionHand.get();
+        for (int i = 0; i < partitions.length; i++) {
+            PageTablePartition partition =
+                partitions[(hand + i) & (partitions.length - 1)];
+
+            partition.latch.lock();
+            try {
+                for (DBPage dbPage : partition.pages.values()) {
+                    if (!dbPage.isDirty())
+                        continue;
+
+                    dirtyBytes += dbPage.getPageSize();
+
+                    // The write-ahead log and the transaction-state file
+                    // are written when the log is forced.
+                    DBFileType type = dbPage.getDBFile().getType();
+                    if (!dbPage.isPinned() &&
+                        type != DBFileType.WRITE_AHEAD_LOG_FILE &&
+                        type != DBFileType.TXNSTATE_FILE) {
+                        candidates.add(dbPage);
+                    }
+                }
+            }
+            finally {
+                partition.latch.unlock();
+            }
+        }
+
+        // Choose enough pages to get back under the limit.  A page's
+        // change-count is read before checking that it is unpinned, so that
+        // any change counted so far is complete, and has been logged.
+        ArrayList<DBPage> dirtyPages = new ArrayList<>();
+        ArrayList<Integer> changeCounts = new ArrayList<>();
+        for (DBPage dbPage : candidates) {
+            if (dirtyBytes <= maxDirtyBytes || dirtyPages.size() >= maxPages)
+                break;
+
+            int changeCount = dbPage.getChangeCount();
+            if (dbPage.isPinned())
+                continue;
+
+            dirtyPages.add(dbPage);
+            changeCounts.add(changeCount);
+            dirtyBytes -= dbPage.getPageSize();
+        }
+
+        int written = writeWhileInUse(dirtyPages, changeCounts);
+
+        PerformanceCounters.add(PerformanceCounters.BUFFER_BACKGROUND_WRITES,
+            written);
+
+        return written;
+    }
+
+
+    /**
+     * Writes the specified dirty pages to disk while other sessions may be
+     * using them, after updating the write-ahead log.  Each page is copied
+     * before it is written, and a page is skipped if it is pinned, or has
+     * changed since its change-count was read.  A page is only marked clean
+     * if it didn't change while it was being written.
+     *
+     * @param dirtyPages the pages to write
+     *
+     * @param changeCounts the change-count of each page, read before
+     *        checking that the page was unpinned
+     *
+     * @return the number of pages that were written and marked clean
+     *
+     * @throws IOException if an IO error occurs while updating the write-ahead
+     *         log, or while writing the pages
+     */
+    private int writeWhileInUse(List<DBPage> dirtyPages,
+                                List<Integer> changeCounts) throws IOException {
+        if (dirtyPages.isEmpty())
+            return 0;
+
+        List<DBPage> readOnlyPages = Collections.unmodifiableList(dirtyPages);
+        for (BufferManagerObserver obs : observers)
+            obs.beforeWriteDirtyPages(readOnlyPages);
+
+        int written = 0;
+        ByteBuffer copy = null;
+        for (int i = 0; i < dirtyPages.size(); i++) {
+            DBPage dbPage = dirtyPages.get(i);
+            int changeCount = changeCounts.get(i);
+
+            ReentrantLock writeLock = dbPage.getWriteLock();
+            writeLock.lock();
+            try {
+                DBFile dbFile = dbPage.getDBFile();
+                if (dbFile == null || !dbPage.isDirty())
+                    continue;  // Already evicted or written by someone else.
+
+                int pageSize = dbFile.getPageSize();
+                if (copy == null || copy.capacity() != pageSize)
+                    copy = ByteBuffer.allocate(pageSize);
+
+                dbPage.storePageLSN();
+                copy.clear();
+                copy.put(dbPage.getPageBuffer());
+                copy.flip();
+
+                // If the page was changed, or is being changed, the copy may
+                // not match what the write-ahead log was forced for.
+                if (dbPage.isPinned() || dbPage.getChangeCount() != changeCount)
+                    continue;
+
+                fileManager.savePage(dbFile, dbPage.getPageNo(), copy);
+                if (dbPage.setCleanIfUnchanged(changeCount))
+                    written++;
+            }
+            finally {
+                writeLock.unlock();
+            }
+        }
+
+        return written;
+    }
+
+
+    /**
+     * Writes the unpinned dirty pages whose first write-ahead log record
+     * since they were last clean comes before the specified LSN.  This is
+     * used by checkpoints, so that pages that stay dirty don't hold back
+     * the point that recovery starts from.  Like
+     * {@link #cleanDirtyPages}, the pages are written while other sessions
+     * keep using them.  The files are not synced.
+     *
+     * @param lsn pages whose recovery LSN is before this LSN are written
+     *
+     * @return the number of pages that were written and marked clean
+     *
+     * @throws IOException if an IO error occurs while updating the write-ahead
+     *         log, or while writing the pages
+     */
+    public int writePagesLoggedBefore(LogSequenceNumber lsn)
+        throws IOException {
+
+        ArrayList<DBPage> dirtyPages = new ArrayList<>();
+        ArrayList<Integer> changeCounts = new ArrayList<>();
+        for (DBPage dbPage : getLoggedDirtyPages()) {
+            LogSequenceNumber recoveryLSN = dbPage.getRecoveryLSN();
+            if (recoveryLSN == null || recoveryLSN.compareTo(lsn) >= 0)
+                continue;
+
+            int changeCount = dbPage.getChangeCount();
+            if (dbPage.isPinned())
+                continue;
+
+            dirtyPages.add(dbPage);
+            changeCounts.add(changeCount);
+        }
+
+        return writeWhileInUse(dirtyPages, changeCounts);
+    }
+
+
+    /**
+     * Returns the dirty pages in the page cache that have had changes
+     * recorded in the write-ahead log, so that their recovery LSNs can be
+     * recorded by a checkpoint.  The pages may be written or changed by
+     * other sessions while the caller looks at them.
+     *
+     * @return the dirty pages with a recovery LSN
+     */
+    public ArrayList<DBPage> getLoggedDirtyPages() {
+        ArrayList<DBPage> dirtyPages = new ArrayList<>();
+
+        for (PageTablePartition partition : partitions) {
+            partition.latch.lock();
+            try {
+                for (DBPage dbPage : partition.pages.values()) {
+                    if (dbPage.isDirty() && dbPage.getRecoveryLSN() != null)
+                        dirtyPages.add(dbPage);
+                }
+            }
+            finally {
+                partition.latch.unlock();
+            }
+        }
+
+        return dirtyPages;
+    }
+
+
+    /**
+     * Syncs every file in the Buffer Manager, except for the write-ahead log
+     * and the transaction-state file, so that all pages written so far are
+     * on disk.  Files that are closed while this method runs are skipped,
+     * since closing a file syncs it.
+     *
+     * @throws IOException if an IO error occurs while syncing a file
+     */
+    public void syncAllFiles() throws IOException {
+        for (DBFile dbFile : cachedFiles.values()) {
+            DBFileType type = dbFile.getType();
+            if (type == DBFileType.WRITE_AHEAD_LOG_FILE ||
+                type == DBFileType.TXNSTATE_FILE) {
+                continue;
+            }
+
+            try {
+                fileManager.syncDBFile(dbFile);
+            }
+            catch (IOException e) {
+                if (cachedFiles.get(dbFile.getDataFile().getName()) == dbFile)
+                    throw e;
+            }
+        }
+    }
+
+
+    /**
+     * This helper method collects the dirty pages in the page table that
+     * are from the specified file and within the specified range of page
+     * numbers.  If {@code dbFile} is {@code null} then dirty pages from all
+     * files are collected.
+     *
+     * @param dbFile the file to collect dirty pages from, or {@code null} for
+     *        all files
+     * @param minPageNo the smallest page number to collect
+     * @param maxPageNo the largest page number to collect
+     *
+     * @return a list of the dirty pages that were found
+     */
+    private ArrayList<DBPage> collectDirtyPages(DBFile dbFile, int minPageNo,
+                                                int maxPageNo) {
+        ArrayList<DBPage> dirtyPages = new ArrayList<>();
+
+        for (PageTablePartition partition : partitions) {
+            partition.latch.lock();
+            try {
+                for (Map.Entry<CachedPageInfo, DBPage> entry :
+                     partition.pages.entrySet()) {
+
+                    CachedPageInfo info = entry.getKey();
+                    if (dbFile != null && !dbFile.equals(info.dbFile))
+                        continue;
+
+                    DBPage oldPage = entry.getValue();
+                    if (!oldPage.isDirty())
+                        continue;
+
+                    int pageNo = oldPage.getPageNo();
+                    if (pageNo < minPageNo || pageNo > maxPageNo)
+                        continue;
+
+                    logger.debug(String.format("    Saving page [%s,%d] to disk.",
+                        oldPage.getDBFile(), oldPage.getPageNo()));
+
+                    dirtyPages.add(oldPage);
+                }
+            }
+            finally {
+                partition.latch.unlock();
+            }
+        }
+
+        return dirtyPages;
+    }
+
+
+    /**
+     * This helper method removes all pages from the specified file out of the
+     * page table, writing dirty pages to disk first.  If {@code dbFile} is
+     * {@code null} then pages from all files are removed.
+     *
+     * @param dbFile the file whose pages should be removed, or {@code null}
+     *        for all files
+     *
+     * @param minPageNo pages numbered below this value are left in the page
+     *        table
+     *
+     * @throws IOException if an IO error occurs while updating the write-ahead
+     *         log, or the file's contents
+     */
+    private void removePages(DBFile dbFile, int minPageNo) throws IOException {
+        // Write out the dirty pages before removing anything from the page
+        // table, so that nobody can reload a stale version of a page while
+        // its newer contents are still on the way to disk.
+        ArrayList<DBPage> dirtyPages =
+            collectDirtyPages(dbFile, minPageNo, Integer.MAX_VALUE);
+        writeDirtyPages(dirtyPages, /* invalidate */ false);
+
+        ArrayList<DBPage> removedPages = new ArrayList<>();
+        for (PageTablePartition partition : partitions) {
+            partition.latch.lock();
+            try {
+                Iterator<Map.Entry<CachedPageInfo, DBPage>> entries =
+                    partition.pages.entrySet().iterator();
+
+                while (entries.hasNext()) {
+                    Map.Entry<CachedPageInfo, DBPage> entry = entries.next();
+
+                    CachedPageInfo info = entry.getKey();
+                    if (dbFile != null && !dbFile.equals(info.dbFile))
+                        continue;
+
+                    if (info.pageNo < minPageNo)
+                        continue;
+
+                    DBPage oldPage = entry.getValue();
+
+                    logger.debug(String.format(
+                        "    Evicting page [%s,%d] from page-cache.",
+                        oldPage.getDBFile(), oldPage.getPageNo()));
+
+                    // Remove the page from the cache.
+                    entries.remove();
+                    partition.policy.pageRemoved(oldPage);
+                    removedPages.add(oldPage);
+                }
+            }
+            finally {
+                partition.latch.unlock();
+            }
+        }
+
+        // If a page was dirtied again after we wrote it out, it needs to be
+        // written again before it is invalidated.
+        ArrayList<DBPage> redirtiedPages = new ArrayList<>();
+        for (DBPage oldPage : removedPages) {
+            if (oldPage.isDirty()) {
+                logger.debug("    Evicted page is dirty; must save to disk.");
+                redirtiedPages.add(oldPage);
+            }
+            else {
+                oldPage.invalidate();
+            }
+        }
+
+        writeDirtyPages(redirtiedPages, /* invalidate */ true);
+    }
+
+
     /**
      * This method writes all dirty pages in the specified file, optionally
      * syncing the file after performing the write.  The pages are not removed
@@ -770,30 +1820,8 @@ public class BufferManager {
         logger.info(String.format("Writing all dirty pages for file %s to disk%s.",
             dbFile, (sync ? " (with sync)" : "")));
 
-        Iterator<Map.Entry<CachedPageInfo, DBPage>> entries =
-            cachedPages.entrySet().iterator();
-
-        ArrayList<DBPage> dirtyPages = new ArrayList<>();
-
-        while (entries.hasNext()) {
-            Map.Entry<CachedPageInfo, DBPage> entry = entries.next();
-
-            CachedPageInfo info = entry.getKey();
-            if (dbFile.equals(info.dbFile)) {
-                DBPage oldPage = entry.getValue();
-                if (!oldPage.isDirty())
-                    continue;
-
-                int pageNo = oldPage.getPageNo();
-                if (pageNo < minPageNo || pageNo > maxPageNo)
-                    continue;
-
-                logger.debug(String.format("    Saving page [%s,%d] to disk.",
-                    oldPage.getDBFile(), oldPage.getPageNo()));
-
-                dirtyPages.add(oldPage);
-            }
-        }
+        ArrayList<DBPage> dirtyPages =
+            collectDirtyPages(dbFile, minPageNo, maxPageNo);
 
         writeDirtyPages(dirtyPages, /* invalidate */ false);
 
@@ -841,30 +1869,17 @@ public class BufferManager {
     public void writeAll(boolean sync) throws IOException {
         logger.info("Writing ALL dirty pages in the Buffer Manager to disk.");
 
-        Iterator<Map.Entry<CachedPageInfo, DBPage>> entries =
-            cachedPages.entrySet().iterator();
+        ArrayList<DBPage> dirtyPages =
+            collectDirtyPages(null, 0, Integer.MAX_VALUE);
 
-        ArrayList<DBPage> dirtyPages = new ArrayList<>();
         HashSet<DBFile> dirtyFiles = new HashSet<>();
-
-        while (entries.hasNext()) {
-            Map.Entry<CachedPageInfo, DBPage> entry = entries.next();
-
-            DBPage oldPage = entry.getValue();
-            if (!oldPage.isDirty())
-                continue;
-
+        for (DBPage oldPage : dirtyPages) {
             DBFile dbFile = oldPage.getDBFile();
             DBFileType type = dbFile.getType();
             if (type != DBFileType.WRITE_AHEAD_LOG_FILE &&
                 type != DBFileType.TXNSTATE_FILE) {
-                dirtyFiles.add(oldPage.getDBFile());
+                dirtyFiles.add(dbFile);
             }
-
-            logger.debug(String.format("    Saving page [%s,%d] to disk.",
-                dbFile, oldPage.getPageNo()));
-
-            dirtyPages.add(oldPage);
         }
 
         writeDirtyPages(dirtyPages, /* invalidate */ false);
@@ -894,39 +1909,10 @@ public class BufferManager {
         logger.info("Flushing all pages for file " + dbFile +
             " from the Buffer Manager.");
 
-        Iterator<Map.Entry<CachedPageInfo, DBPage>> entries =
-            cachedPages.entrySet().iterator();
-
-        ArrayList<DBPage> dirtyPages = new ArrayList<>();
-
-        while (entries.hasNext()) {
-            Map.Entry<CachedPageInfo, DBPage> entry = entries.next();
-
-            CachedPageInfo info = entry.getKey();
-            if (dbFile.equals(info.dbFile)) {
-                DBPage oldPage = entry.getValue();
-
-                logger.debug(String.format(
-                    "    Evicting page [%s,%d] from page-cache.",
-                    oldPage.getDBFile(), oldPage.getPageNo()));
-
-                // Remove the page from the cache.
-                entries.remove();
-                totalBytesCached -= oldPage.getPageSize();
-
-                // If the page is dirty, we need to write its data to disk before
-                // invalidating it.  Otherwise, just invalidate it.
-                if (oldPage.isDirty()) {
-                    logger.debug("    Evicted page is dirty; must save to disk.");
-                    dirtyPages.add(oldPage);
-                }
-                else {
-                    oldPage.invalidate();
-                }
-            }
-        }
+        if (dbFile == null)
+            throw new IllegalArgumentException("dbFile cannot be null");
 
-        writeDirtyPages(dirtyPages, /* invalidate */ true);
+        removePages(dbFile, 0);
     }
 
 
@@ -946,36 +1932,29 @@ public class BufferManager {
     public void flushAll() throws IOException {
         logger.info("Flushing ALL database pages from the Buffer Manager.");
 
-        Iterator<Map.Entry<CachedPageInfo, DBPage>> entries =
-            cachedPages.entrySet().iterator();
-
-        ArrayList<DBPage> dirtyPages = new ArrayList<>();
-
-        while (entries.hasNext()) {
-            Map.Entry<CachedPageInfo, DBPage> entry = entries.next();
-
-            DBPage oldPage = entry.getValue();
-
-            logger.debug(String.format(
-                "    Evicting page [%s,%d] from page-cache.",
-                oldPage.getDBFile(), oldPage.getPageNo()));
+        removePages(null, 0);
+    }
 
-            // Remove the page from the cache.
-            entries.remove();
-            totalBytesCached -= oldPage.getPageSize();
 
-            // If the page is dirty, we need to write its data to disk before
-            // invalidating it.  Otherwise, just invalidate it.
-            if (oldPage.isDirty()) {
-                logger.debug("    Evicted page is dirty; must save to disk.");
-                dirtyPages.add(oldPage);
-            }
-            else {
-                oldPage.invalidate();
-            }
-        }
+    /**
+     * This method shortens a file to the specified number of pages.  Cached
+     * pages past the new end of the file are removed from the cache first,
+     * so that they can't be written back into the file afterward.  The
+     * caller must make sure that nothing is using those pages.
+     *
+     * @param dbFile the file to truncate
+     *
+     * @param numPages the number of pages to keep in the file
+     *
+     * @throws IOException if an IO error occurs while writing out dirty pages,
+     *         or while truncating the file
+     */
+    public void truncateDBFile(DBFile dbFile, int numPages) throws IOException {
+        logger.info(String.format("Truncating file %s to %d pages.",
+            dbFile, numPages));
 
-        writeDirtyPages(dirtyPages, /* invalidate */ true);
+        removePages(dbFile, numPages);
+        fileManager.truncateDBFile(dbFile, numPages);
     }
 
 
@@ -1018,4 +1997,26 @@ public class BufferManager {
 
         return dbFiles;
     }
+
+
+    /**
+     * Returns the total number of bytes currently allocated to buffers by the
+     * Buffer Manager.
+     *
+     * @return the total number of bytes currently allocated to buffers
+     */
+    public long getTotalBytesCached() {
+        return totalBytesCached.get();
+    }
+
+
+    /**
+     * Returns the maximum number of bytes that the Buffer Manager will
+     * allocate to buffers.
+     *
+     * @return the maximum size of the page cache, in bytes
+     */
+    public long getMaxCacheSize() {
+        return maxCacheSize;
+    }
 }
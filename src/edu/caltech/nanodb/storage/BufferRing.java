@@ -0,0 +1,120 @@
+package edu.caltech.nanodb.storage;
+
+
+import java.util.ArrayDeque;
+
+
+/**
+ * <p>
+ * A buffer ring is a small, private set of page buffers used by a single
+ * sequential scan over a large tuple file.  Without a ring, scanning a file
+ * that is larger than the page cache pushes every other page out of the
+ * cache, even though the scan will never look at its pages again.  With a
+ * ring, the pages that the scan loads are recycled once the scan has moved
+ * past them, so the scan only occupies a few pages of the cache and other
+ * sessions keep their working sets.
+ * </p>
+ * <p>
+ * A plan node that scans a file creates a ring, and makes it the current
+ * session's ring (see
+ * {@link edu.caltech.nanodb.client.SessionState#setBufferRing}) while it
+ * reads from the tuple file.  The {@link StorageManager} hands every page it
+ * loads from disk for the session to the {@link BufferManager}, which adds
+ * the page to the ring if the scanned file is large enough to need one.
+ * Pages that were already in the cache are never added to the ring, since
+ * some other part of the database is using them.
+ * </p>
+ * <p>
+ * When a page falls off the end of the ring, the Buffer Manager evicts it,
+ * but only if it is neither pinned nor dirty.  Otherwise the page is simply
+ * left to the cache's normal page replacement policy.
+ * </p>
+ * <p>
+ * A ring is only ever used by the session that created it, so it is not
+ * thread-safe.
+ * </p>
+ */
+public class BufferRing {
+
+    /** The total size of the buffers in a ring, in bytes. */
+    public static final int RING_SIZE = 256 * 1024;
+
+
+    /** The minimum number of pages in a ring, regardless of the page size. */
+    public static final int MIN_RING_PAGES = 4;
+
+
+    /**
+     * The number of pages that the scan is expected to read, as recorded in
+     * the file's statistics.
+     */
+    private int scanPages;
+
+
+    /** The pages currently in the ring, oldest first. */
+    private ArrayDeque<DBPage> pages = new ArrayDeque<>();
+
+
+    /**
+     * Creates a buffer ring for a scan that is expected to read the specified
+     * number of pages.
+     *
+     * @param scanPages the number of pages that the scan is expected to
+     *        read, e.g. from {@link edu.caltech.nanodb.queryeval.TableStats}
+     */
+    public BufferRing(int scanPages) {
+        this.scanPages = scanPages;
+    }
+
+
+    /**
+     * Returns the number of pages that the scan is expected to read.
+     *
+     * @return the number of pages that the scan is expected to read
+     */
+    public int getScanPages() {
+        return scanPages;
+    }
+
+
+    /**
+     * Returns the number of pages of the specified size that the ring will
+     * hold.
+     *
+     * @param pageSize the size of the pages being scanned
+     *
+     * @return the number of pages that the ring will hold
+     */
+    public static int getCapacity(int pageSize) {
+        return Math.max(MIN_RING_PAGES, RING_SIZE / pageSize);
+    }
+
+
+    /**
+     * Adds a page to the ring, and returns the oldest page in the ring if
+     * the ring is now over capacity.  The caller should evict the returned
+     * page if it is still unused.
+     *
+     * @param dbPage the page that was just loaded on behalf of the scan
+     *
+     * @return the page that is no longer in the ring, or {@code null} if no
+     *         page had to leave the ring
+     */
+    DBPage addPage(DBPage dbPage) {
+        pages.addLast(dbPage);
+        if (pages.size() > getCapacity(dbPage.getPageSize()))
+            return pages.removeFirst();
+
+        return null;
+    }
+
+
+    /**
+     * Returns the number of pages currently in the ring.
+     *
+     * @return the number of pages currently in the ring
+     */
+    public int size() {
+        return pages.size();
+    }
+}
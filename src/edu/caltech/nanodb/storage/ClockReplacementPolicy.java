@@ -0,0 +1,165 @@
+package edu.caltech.nanodb.storage;
+
+
+import java.util.Collection;
+import java.util.HashMap;
+
+
+/**
+ * <p>
+ * This class implements the CLOCK (second-chance) page replacement policy.
+ * Pages are arranged in a circle, and a "clock hand" sweeps around the
+ * circle looking for a page to evict.  Each page has a reference bit that is
+ * set when the page is accessed; when the hand reaches a page whose bit is
+ * set, the bit is cleared and the page gets a second chance.  Pages whose bit
+ * is clear are evicted.
+ * </p>
+ * <p>
+ * The reference bit is <em>not</em> set when a page is first added, so a page
+ * that is only used once (e.g. by a sequential scan) is evicted on the first
+ * sweep that reaches it, while pages that are used repeatedly survive.
+ * </p>
+ * <p>
+ * When the hand reaches a pinned page, the page is taken off the circle, so
+ * that the hand doesn't have to pass it again on every sweep.  It is put
+ * back just behind the hand when it is unpinned, keeping its reference bit.
+ * </p>
+ */
+public class ClockReplacementPolicy implements PageReplacementPolicy {
+
+    /** A page's position on the clock. */
+    private static class Frame {
+        DBPage dbPage;
+
+        boolean referenced;
+
+        /**
+         * The neighbors of this frame on the circle, or {@code null} if the
+         * frame was taken off the circle because its page was pinned.
+         */
+        Frame prev;
+
+        Frame next;
+
+        Frame(DBPage dbPage) {
+            this.dbPage = dbPage;
+        }
+    }
+
+
+    /** This map allows us to find a page's frame when it is accessed. */
+    private HashMap<DBPage, Frame> frames = new HashMap<>();
+
+
+    /** The clock hand; the next frame that will be examined. */
+    private Frame hand;
+
+
+    /** The number of frames on the circle. */
+    private int circleSize;
+
+
+    @Override
+    public void pageAdded(DBPage dbPage) {
+        Frame frame = new Frame(dbPage);
+        frames.put(dbPage, frame);
+        insertFrame(frame);
+    }
+
+
+    /** Puts a frame on the circle, just behind the hand. */
+    private void insertFrame(Frame frame) {
+        circleSize++;
+        if (hand == null) {
+            frame.prev = frame;
+            frame.next = frame;
+            hand = frame;
+        }
+        else {
+            // Insert the frame just behind the hand, so that it is the last
+            // frame the hand will reach.
+            frame.next = hand;
+            frame.prev = hand.prev;
+            hand.prev.next = frame;
+            hand.prev = frame;
+        }
+    }
+
+
+    @Override
+    public void pageAccessed(DBPage dbPage) {
+        Frame frame = frames.get(dbPage);
+        if (frame != null)
+            frame.referenced = true;
+    }
+
+
+    @Override
+    public void pageRemoved(DBPage dbPage) {
+        Frame frame = frames.remove(dbPage);
+        if (frame != null && frame.next != null)
+            removeFrame(frame);
+    }
+
+
+    /** Takes a frame off the circle. */
+    private void removeFrame(Frame frame) {
+        circleSize--;
+        if (frame.next == frame) {
+            hand = null;
+        }
+        else {
+            if (hand == frame)
+                hand = frame.next;
+
+            frame.prev.next = frame.next;
+            frame.next.prev = frame.prev;
+        }
+
+        frame.prev = null;
+        frame.next = null;
+    }
+
+
+    @Override
+    public void pageUnpinned(DBPage dbPage) {
+        Frame frame = frames.get(dbPage);
+        if (frame != null && frame.next == null)
+            insertFrame(frame);
+    }
+
+
+    @Override
+    public DBPage chooseVictim(Collection<DBPage> skip) {
+        // Two full sweeps are enough:  the first clears every reference bit
+        // it encounters, so the second will find any evictable page.
+        int steps = 2 * circleSize;
+        for (int i = 0; i < steps && hand != null; i++) {
+            Frame frame = hand;
+            hand = hand.next;
+
+            if (frame.dbPage.setAsideIfPinned()) {
+                removeFrame(frame);
+                continue;
+            }
+
+            if (ReplacementPolicies.isSkipped(frame.dbPage, skip))
+                continue;
+
+            if (frame.referenced) {
+                frame.referenced = false;
+                continue;
+            }
+
+            return frame.dbPage;
+        }
+
+        return null;
+    }
+
+
+    @Override
+    public int size() {
+        return frames.size();
+    }
+}
@@ -0,0 +1,632 @@
+package edu.caltech.nanodb.storage;
+
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * <p>
+ * This class records where each page of a compressed data file is stored.
+ * Compressed pages are different sizes, so they can't simply be stored at
+ * <tt>pageNo * pageSize</tt> in the data file.  Instead, each page is stored
+ * in an <em>extent</em> of consecutive {@link #SECTOR_SIZE}-byte sectors of
+ * the data file, and this map records the extent and the compressed length
+ * of every page.  The map is kept in a side file next to the data file,
+ * whose name has {@link #FILE_SUFFIX} appended; a data file is compressed
+ * if and only if it has a map file.
+ * </p>
+ * <p>
+ * Page 0 of a compressed data file is never compressed, and is always stored
+ * at the start of the data file, so that {@link FileManager#openDBFile} can
+ * read the file's type and page size in the usual way.  Extents start after
+ * page 0.
+ * </p>
+ * <p>
+ * The map file starts with a header holding a magic number, the map's
+ * version, the data file's page size, and the number of pages in the data
+ * file.  After the header comes one entry for each page, holding the first
+ * sector of the page's extent, the number of sectors in the extent, and
+ * the number of bytes stored in the extent.  A stored length of 0 means that
+ * the page is all zeros, and has no extent, as with pages that have been
+ * created but not yet written.  A stored length equal to the page size
+ * means that the page didn't compress, and is stored as-is.
+ * </p>
+ *
+ * @design A page is rewritten in its current extent if its new compressed
+ *         data fits, and is otherwise moved to a new extent.  The old extent
+ *         isn't reused until the map has been synced to disk by
+ *         {@link #sync}, so that the map on disk never refers to an extent
+ *         that holds another page's data, even if the operating system
+ *         writes the data file before the map file.
+ *
+ * @design Map entries are written to the map file as soon as they change,
+ *         so they reach the operating system at the same time as the
+ *         page's data.  Free extents aren't stored; they are the gaps
+ *         between the extents of the pages, and are found again when the
+ *         map is opened.
+ */
+public class CompressedPageMap {
+
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(CompressedPageMap.class);
+
+
+    /** The suffix appended to a data file's name to get its map file. */
+    public static final String FILE_SUFFIX = ".pmap";
+
+
+    /** The size of the sectors that extents are made of. */
+    public static final int SECTOR_SIZE = 512;
+
+
+    /** The magic number at the start of every map file. */
+    private static final int MAGIC_NUMBER = 0x4E445A4D;
+
+
+    /** The version of the map file's format. */
+    private static final int MAP_VERSION = 1;
+
+
+    /** The size of the map file's header. */
+    private static final int HEADER_SIZE = 16;
+
+
+    /** The offset of the number of pages in the map file's header. */
+    private static final int OFFSET_NUM_PAGES = 12;
+
+
+    /** The size of each page's entry in the map file. */
+    private static final int ENTRY_SIZE = 12;
+
+
+    /** The location of a page's data within the data file. */
+    public static class PageLocation {
+        /** The first sector of the page's extent. */
+        public final int startSector;
+
+        /** The number of sectors in the page's extent. */
+        public final int numSectors;
+
+        /**
+         * The number of bytes of the page's data, or 0 if the page is all
+         * zeros.
+         */
+        public final int length;
+
+        PageLocation(int startSector, int numSectors, int length) {
+            this.startSector = startSector;
+            this.numSectors = numSectors;
+            this.length = length;
+        }
+
+        /** Returns the position of the page's data in the data file. */
+        public long getPosition() {
+            return (long) startSector * SECTOR_SIZE;
+        }
+    }
+
+
+    /** The map file. */
+    private File mapFile;
+
+
+    /** The contents of the map file. */
+    private RandomAccessFile mapContents;
+
+
+    /** The page size of the data file. */
+    private int pageSize;
+
+
+    /** The number of pages in the data file, including page 0. */
+    private int numPages;
+
+
+    /** The first sector of each page's extent, indexed by page number. */
+    private int[] startSectors;
+
+
+    /** The number of sectors in each page's extent. */
+    private int[] extentSectors;
+
+
+    /** The number of bytes stored in each page's extent. */
+    private int[] storedLengths;
+
+
+    /** The sector just past the end of the last extent in the data file. */
+    private int endSector;
+
+
+    /**
+     * The free extents of the data file, which can be given to pages.  The
+     * keys are the first sectors of the extents, and the values are the
+     * numbers of sectors.
+     */
+    private TreeMap<Integer, Integer> freeExtents = new TreeMap<>();
+
+
+    /**
+     * Extents that pages have moved out of since the map was last synced.
+     * Each element holds the first sector and the number of sectors.
+     */
+    private ArrayList<int[]> pendingFree = new ArrayList<>();
+
+
+    /**
+     * Returns the map file of the specified data file.
+     *
+     * @param dataFile the data file
+     *
+     * @return the map file that would hold the data file's page map
+     */
+    public static File getMapFile(File dataFile) {
+        return new File(dataFile.getPath() + FILE_SUFFIX);
+    }
+
+
+    /**
+     * Creates a new, empty map file for a data file that only holds page 0.
+     *
+     * @param dataFile the data file
+     * @param pageSize the page size of the data file
+     *
+     * @return the new page map
+     *
+     * @throws IOException if the map file already exists, or can't be
+     *         written
+     */
+    public static CompressedPageMap create(File dataFile, int pageSize)
+        throws IOException {
+
+        File mapFile = getMapFile(dataFile);
+        if (!mapFile.createNewFile())
+            throw new IOException("File " + mapFile + " already exists!");
+
+        CompressedPageMap pageMap = new CompressedPageMap(mapFile, pageSize);
+        pageMap.numPages = 1;
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC_NUMBER).putInt(MAP_VERSION).putInt(pageSize)
+              .putInt(pageMap.numPages);
+        header.flip();
+        pageMap.write(header, 0);
+        pageMap.write(ByteBuffer.allocate(ENTRY_SIZE), HEADER_SIZE);
+
+        return pageMap;
+    }
+
+
+    /**
+     * Opens the map file of an existing compressed data file.
+     *
+     * @param dataFile the data file
+     * @param pageSize the page size of the data file, as stored in the data
+     *        file's header
+     *
+     * @return the page map, or <tt>null</tt> if the data file has no map
+     *         file, and therefore isn't compressed
+     *
+     * @throws IOException if the map file is corrupt, or can't be read
+     */
+    public static CompressedPageMap open(File dataFile, int pageSize)
+        throws IOException {
+
+        File mapFile = getMapFile(dataFile);
+        if (!mapFile.isFile())
+            return null;
+
+        CompressedPageMap pageMap = new CompressedPageMap(mapFile, pageSize);
+        try {
+            pageMap.readMap();
+        }
+        catch (IOException e) {
+            pageMap.close();
+            throw e;
+        }
+        return pageMap;
+    }
+
+
+    private CompressedPageMap(File mapFile, int pageSize) throws IOException {
+        this.mapFile = mapFile;
+        this.pageSize = pageSize;
+        mapContents = new RandomAccessFile(mapFile, "rw");
+
+        startSectors = new int[16];
+        extentSectors = new int[16];
+        storedLengths = new int[16];
+        endSector = getFirstDataSector();
+    }
+
+
+    /** Returns the first sector after page 0 in the data file. */
+    private int getFirstDataSector() {
+        return pageSize / SECTOR_SIZE;
+    }
+
+
+    /** Returns the number of sectors needed to store the specified bytes. */
+    private static int sectorsFor(int length) {
+        return (length + SECTOR_SIZE - 1) / SECTOR_SIZE;
+    }
+
+
+    /**
+     * Reads the header and the entries of the map file, and finds the free
+     * extents of the data file.
+     */
+    private void readMap() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        read(header, 0);
+        header.flip();
+
+        int magic = header.getInt();
+        int version = header.getInt();
+        int mapPageSize = header.getInt();
+        int mapNumPages = header.getInt();
+
+        if (magic != MAGIC_NUMBER || version != MAP_VERSION) {
+            throw new IOException("File " + mapFile +
+                " isn't a compressed page map");
+        }
+
+        if (mapPageSize != pageSize || mapNumPages < 1) {
+            throw new IOException(String.format("Compressed page map %s " +
+                "has page size %d and %d pages, but its data file has page " +
+                "size %d", mapFile, mapPageSize, mapNumPages, pageSize));
+        }
+
+        ensureCapacity(mapNumPages);
+        numPages = mapNumPages;
+
+        ByteBuffer entries = ByteBuffer.allocate(numPages * ENTRY_SIZE);
+        read(entries, HEADER_SIZE);
+        entries.flip();
+
+        // Extents are kept by their first sectors, to find the gaps.
+        TreeMap<Integer, Integer> used = new TreeMap<>();
+        for (int pageNo = 0; pageNo < numPages; pageNo++) {
+            startSectors[pageNo] = entries.getInt();
+            extentSectors[pageNo] = entries.getInt();
+            storedLengths[pageNo] = entries.getInt();
+
+            if (pageNo > 0 && extentSectors[pageNo] > 0)
+                used.put(startSectors[pageNo], extentSectors[pageNo]);
+        }
+
+        int sector = getFirstDataSector();
+        for (Map.Entry<Integer, Integer> extent : used.entrySet()) {
+            if (extent.getKey() > sector)
+                freeExtents.put(sector, extent.getKey() - sector);
+
+            sector = Math.max(sector, extent.getKey() + extent.getValue());
+        }
+        endSector = sector;
+
+        logger.debug(String.format("Opened compressed page map %s:  %d " +
+            "pages in %d sectors, %d free extents", mapFile, numPages,
+            endSector, freeExtents.size()));
+    }
+
+
+    /** Grows the arrays of entries to hold at least the specified pages. */
+    private void ensureCapacity(int capacity) {
+        if (capacity > startSectors.length) {
+            int newCapacity = Math.max(capacity, startSectors.length * 2);
+            startSectors = Arrays.copyOf(startSectors, newCapacity);
+            extentSectors = Arrays.copyOf(extentSectors, newCapacity);
+            storedLengths = Arrays.copyOf(storedLengths, newCapacity);
+        }
+    }
+
+
+    /**
+     * Returns the number of pages in the data file, including page 0.
+     *
+     * @return the number of pages in the data file
+     */
+    public synchronized int getNumPages() {
+        return numPages;
+    }
+
+
+    /**
+     * Returns the location of a page's data in the data file.  If the page
+     * is past the end of the data file, it can be created; the new page,
+     * and any pages before it that didn't exist yet, start out as all
+     * zeros.
+     *
+     * @param pageNo the page to find, which must not be page 0
+     * @param create true if the page should be created if it doesn't exist
+     *
+     * @return the page's location, whose length is 0 if the page is all
+     *         zeros, or <tt>null</tt> if the page doesn't exist and
+     *         <tt>create</tt> is false
+     *
+     * @throws IOException if the new pages can't be recorded in the map file
+     */
+    public synchronized PageLocation getLocation(int pageNo, boolean create)
+        throws IOException {
+
+        if (pageNo < 1)
+            throw new IllegalArgumentException("Page 0 is not compressed");
+
+        if (pageNo >= numPages) {
+            if (!create)
+                return null;
+
+            setNumPages(pageNo + 1);
+        }
+
+        return new PageLocation(startSectors[pageNo], extentSectors[pageNo],
+            storedLengths[pageNo]);
+    }
+
+
+    /**
+     * Finds the extent to write a page's new data into.  If the data fits
+     * in the page's current extent, the current extent is used; otherwise a
+     * free extent is taken, or the data file is extended.  The page's
+     * entry isn't changed until {@link #finishWrite} is called, after the
+     * data has been written.
+     *
+     * @param pageNo the page being written, which must not be page 0
+     * @param length the number of bytes of the page's new data, or 0 if the
+     *        page is all zeros
+     *
+     * @return the location to write the page's data to
+     *
+     * @throws IOException if the map file can't be written
+     */
+    public synchronized PageLocation prepareWrite(int pageNo, int length)
+        throws IOException {
+
+        if (pageNo < 1)
+            throw new IllegalArgumentException("Page 0 is not compressed");
+
+        if (pageNo >= numPages)
+            setNumPages(pageNo + 1);
+
+        int needed = sectorsFor(length);
+        if (needed == 0)
+            return new PageLocation(0, 0, 0);
+
+        if (extentSectors[pageNo] >= needed) {
+            return new PageLocation(startSectors[pageNo],
+                extentSectors[pageNo], length);
+        }
+
+        // First fit from the free extents, in file order, so that pages
+        // are packed toward the start of the file.
+        for (Map.Entry<Integer, Integer> extent : freeExtents.entrySet()) {
+            if (extent.getValue() >= needed) {
+                int start = extent.getKey();
+                int remaining = extent.getValue() - needed;
+                freeExtents.remove(start);
+                if (remaining > 0)
+                    freeExtents.put(start + needed, remaining);
+
+                return new PageLocation(start, needed, length);
+            }
+        }
+
+        int start = endSector;
+        endSector += needed;
+        return new PageLocation(start, needed, length);
+    }
+
+
+    /**
+     * Records that a page's new data has been written to the location
+     * returned by {@link #prepareWrite}, and writes the page's entry to the
+     * map file.  If the page moved to a different extent, its old extent
+     * becomes free the next time the map is synced.
+     *
+     * @param pageNo the page that was written
+     * @param location the location returned by {@link #prepareWrite}
+     *
+     * @throws IOException if the map file can't be written
+     */
+    public synchronized void finishWrite(int pageNo, PageLocation location)
+        throws IOException {
+
+        if (extentSectors[pageNo] > 0 &&
+            startSectors[pageNo] != location.startSector) {
+            pendingFree.add(new int[] {startSectors[pageNo],
+                extentSectors[pageNo]});
+        }
+
+        startSectors[pageNo] = location.startSector;
+        extentSectors[pageNo] = location.numSectors;
+        storedLengths[pageNo] = location.length;
+        writeEntries(pageNo, pageNo + 1);
+    }
+
+
+    /**
+     * Releases an extent that {@link #prepareWrite} took for a page, if the
+     * page's data couldn't be written to it.
+     *
+     * @param pageNo the page that was being written
+     * @param location the location returned by {@link #prepareWrite}
+     */
+    public synchronized void abortWrite(int pageNo, PageLocation location) {
+        if (location.numSectors > 0 &&
+            location.startSector != startSectors[pageNo]) {
+            addFreeExtent(location.startSector, location.numSectors);
+        }
+    }
+
+
+    /**
+     * Removes the pages at the end of the data file, so that it only has
+     * the specified number of pages.  The extents of the removed pages
+     * become free the next time the map is synced.
+     *
+     * @param newNumPages the number of pages to keep, including page 0
+     *
+     * @throws IOException if the map file can't be written
+     */
+    public synchronized void truncate(int newNumPages) throws IOException {
+        if (newNumPages < 1)
+            throw new IllegalArgumentException("Page 0 can't be removed");
+
+        if (newNumPages >= numPages)
+            return;
+
+        for (int pageNo = newNumPages; pageNo < numPages; pageNo++) {
+            if (extentSectors[pageNo] > 0) {
+                pendingFree.add(new int[] {startSectors[pageNo],
+                    extentSectors[pageNo]});
+            }
+            startSectors[pageNo] = 0;
+            extentSectors[pageNo] = 0;
+            storedLengths[pageNo] = 0;
+        }
+
+        numPages = newNumPages;
+        writeNumPages();
+    }
+
+
+    /**
+     * Forces the map file to disk, and then frees the extents that pages
+     * have moved out of, since the map on disk no longer refers to them.
+     * The data file must be synced before this method is called, so that
+     * the map on disk never refers to data that hasn't reached the disk.
+     *
+     * @throws IOException if the map file can't be synced
+     */
+    public synchronized void sync() throws IOException {
+        mapContents.getFD().sync();
+
+        for (int[] extent : pendingFree)
+            addFreeExtent(extent[0], extent[1]);
+
+        pendingFree.clear();
+    }
+
+
+    /**
+     * Renames the map file along with its data file.
+     *
+     * @param newDataFile the new name of the data file
+     *
+     * @return true if the rename succeeded, or false otherwise
+     */
+    public synchronized boolean renameTo(File newDataFile) {
+        File newMapFile = getMapFile(newDataFile);
+        if (mapFile.renameTo(newMapFile)) {
+            mapFile = newMapFile;
+            return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * Closes the map file.  Callers should {@link #sync} the map first.
+     *
+     * @throws IOException if the map file can't be closed
+     */
+    public synchronized void close() throws IOException {
+        mapContents.close();
+    }
+
+
+    /**
+     * Adds an extent to the free extents, merging it with the free extents
+     * on either side of it.  Free space at the end of the data file is given
+     * back, so that the next page to be appended reuses it.
+     */
+    private void addFreeExtent(int start, int sectors) {
+        Map.Entry<Integer, Integer> before = freeExtents.lowerEntry(start);
+        if (before != null && before.getKey() + before.getValue() == start) {
+            freeExtents.remove(before.getKey());
+            start = before.getKey();
+            sectors += before.getValue();
+        }
+
+        Integer afterSectors = freeExtents.remove(start + sectors);
+        if (afterSectors != null)
+            sectors += afterSectors;
+
+        if (start + sectors == endSector)
+            endSector = start;
+        else
+            freeExtents.put(start, sectors);
+    }
+
+
+    /**
+     * Sets the number of pages in the data file, and records the new pages
+     * as all zeros in the map file.
+     */
+    private void setNumPages(int newNumPages) throws IOException {
+        ensureCapacity(newNumPages);
+
+        int oldNumPages = numPages;
+        numPages = newNumPages;
+
+        // Entries past the old end of the map file may be left over from
+        // pages that were truncated, so they are cleared before the new
+        // number of pages is written.
+        writeEntries(oldNumPages, newNumPages);
+        writeNumPages();
+    }
+
+
+    /** Writes the number of pages to the map file's header. */
+    private void writeNumPages() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        buffer.putInt(numPages).flip();
+        write(buffer, OFFSET_NUM_PAGES);
+    }
+
+
+    /** Writes a range of page entries to the map file. */
+    private void writeEntries(int firstPageNo, int endPageNo)
+        throws IOException {
+
+        ByteBuffer buffer =
+            ByteBuffer.allocate((endPageNo - firstPageNo) * ENTRY_SIZE);
+        for (int pageNo = firstPageNo; pageNo < endPageNo; pageNo++) {
+            buffer.putInt(startSectors[pageNo]).putInt(extentSectors[pageNo])
+                  .putInt(storedLengths[pageNo]);
+        }
+        buffer.flip();
+        write(buffer, HEADER_SIZE + (long) firstPageNo * ENTRY_SIZE);
+    }
+
+
+    private void write(ByteBuffer buffer, long position) throws IOException {
+        FileChannel channel = mapContents.getChannel();
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+
+
+    private void read(ByteBuffer buffer, long position) throws IOException {
+        FileChannel channel = mapContents.getChannel();
+        while (buffer.hasRemaining()) {
+            int bytesRead = channel.read(buffer, position);
+            if (bytesRead < 0) {
+                throw new EOFException("Compressed page map " + mapFile +
+                    " is truncated");
+            }
+            position += bytesRead;
+        }
+    }
+}
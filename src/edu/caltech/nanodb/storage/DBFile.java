@@ -35,9 +35,24 @@ import java.io.RandomAccessFile;
  * <ul>
  *   <li><u>Byte 0:</u>  file type (unsigned byte) - value taken from
  *       {@link DBFileType}</li>
- *   <li><u>Byte 1:</u>  page size  <i>p</i> (unsigned byte) - file's page
- *       size is <i>P</i> = 2<sup>p</sup></li>
+ *   <li><u>Byte 1:</u>  page size  <i>p</i> (low 5 bits) - file's page
+ *       size is <i>P</i> = 2<sup>p</sup>; and format version <i>v</i>
+ *       (high 3 bits)</li>
  * </ul>
+ * <p>
+ * The format version records how the file's contents are laid out, so that
+ * files written by older versions of the database can still be opened.
+ * Files created before format versions were introduced have a version of 0,
+ * since their page-size byte never uses the high bits.  See
+ * {@link #CURRENT_FORMAT_VERSION} for the differences between versions.
+ * </p>
+ * <p>
+ * A data file may also be compressed, in which case every page except the
+ * first is stored compressed, and a {@link CompressedPageMap} records where
+ * each page is stored.  Compression is invisible outside of the file
+ * manager, which compresses pages as they are saved and decompresses them
+ * as they are loaded.
+ * </p>
  *
  * @see RandomAccessFile
  */
@@ -52,6 +67,55 @@ public class DBFile {
     public static final int DEFAULT_PAGESIZE = 8192;
 
 
+    /**
+     * The format version of files created by this version of the database.
+     * <ul>
+     *   <li><u>Version 0:</u>  page numbers are stored as unsigned 16-bit
+     *       values, so files are limited to 65,536 pages.</li>
+     *   <li><u>Version 1:</u>  page numbers are stored as signed 32-bit
+     *       values, in file pointers, B<sup>+</sup> tree pages, table
+     *       statistics, and write-ahead log records.</li>
+     *   <li><u>Version 2:</u>  every page of a heap file or a
+     *       B<sup>+</sup> tree file, except the header page, ends with the
+     *       LSN of the last write-ahead log record that the page reflects
+     *       (see {@link DBPage#getStoredPageLSN}).</li>
+     * </ul>
+     */
+    public static final int CURRENT_FORMAT_VERSION = 2;
+
+
+    /**
+     * The format version that files in older versions are upgraded to when
+     * the server starts.  Files are only upgraded to version 1, since there
+     * is no room at the end of an existing page for its page LSN; heap and
+     * B<sup>+</sup> tree files in version 1 simply don't store page LSNs, so
+     * recovery always redoes the changes to their pages.
+     */
+    public static final int UPGRADED_FORMAT_VERSION = 1;
+
+
+    /** The first format version whose data pages store their page LSN. */
+    public static final int MIN_PAGE_LSN_FORMAT_VERSION = 2;
+
+
+    /**
+     * The offset in the file's first page of the byte that holds the encoded
+     * page size and the format version.
+     */
+    public static final int OFFSET_PAGE_SIZE = 1;
+
+
+    /**
+     * The number of bits the format version is shifted by, in the byte that
+     * holds the encoded page size and the format version.
+     */
+    private static final int FORMAT_VERSION_SHIFT = 5;
+
+
+    /** A mask for the encoded page size, in the same byte. */
+    private static final int PAGE_SIZE_MASK = (1 << FORMAT_VERSION_SHIFT) - 1;
+
+
     /** The actual data file on disk. */
     private File dataFile;
 
@@ -59,6 +123,10 @@ public class DBFile {
     /** The type of the data file. */
     private DBFileType type;
 
+
+    /** The format version of the data file's contents. */
+    private volatile int formatVersion = CURRENT_FORMAT_VERSION;
+
     private int lastAccessedPageNo = 0;
 
     /**
@@ -73,6 +141,13 @@ public class DBFile {
     private RandomAccessFile fileContents;
 
 
+    /**
+     * If the data file is compressed, this is the map of where each page is
+     * stored in the file; otherwise this is <tt>null</tt>.
+     */
+    private CompressedPageMap pageMap;
+
+
     /**
      * This static helper method returns true if the specified page size is
      * valid; i.e. it must be within the minimum and maximum page sizes, and
@@ -155,6 +230,57 @@ public class DBFile {
     }
 
 
+    /**
+     * Returns the value stored in byte {@link #OFFSET_PAGE_SIZE} of a data
+     * file, which combines the encoded page size with the format version.
+     *
+     * @param pageSize the page-size of the data file
+     *
+     * @param formatVersion the format version of the data file
+     *
+     * @return the value to store in the data file's header
+     *
+     * @throws IllegalArgumentException if the specified page-size is invalid,
+     *         or the format version doesn't fit in the high bits of the byte
+     */
+    public static int encodePageSizeAndVersion(int pageSize, int formatVersion) {
+        if (formatVersion < 0 || formatVersion > (0xFF >>> FORMAT_VERSION_SHIFT)) {
+            throw new IllegalArgumentException(
+                "Invalid format version " + formatVersion);
+        }
+
+        return encodePageSize(pageSize) | (formatVersion << FORMAT_VERSION_SHIFT);
+    }
+
+
+    /**
+     * Given the value stored in byte {@link #OFFSET_PAGE_SIZE} of a data
+     * file, returns the file's page size.
+     *
+     * @param encoded the byte stored in the data file's header
+     *
+     * @return the data file's page size
+     *
+     * @throws IllegalArgumentException if the resulting page-size is invalid.
+     */
+    public static int decodePageSizeFromHeader(int encoded) {
+        return decodePageSize(encoded & PAGE_SIZE_MASK);
+    }
+
+
+    /**
+     * Given the value stored in byte {@link #OFFSET_PAGE_SIZE} of a data
+     * file, returns the file's format version.
+     *
+     * @param encoded the byte stored in the data file's header
+     *
+     * @return the data file's format version
+     */
+    public static int decodeFormatVersionFromHeader(int encoded) {
+        return (encoded & 0xFF) >>> FORMAT_VERSION_SHIFT;
+    }
+
+
     /**
      * Given the absolute offset in a file, this method returns the page number
      * that the offset belongs in.
@@ -199,6 +325,28 @@ public class DBFile {
      */
     public DBFile(File dataFile, DBFileType type, int pageSize,
         RandomAccessFile fileContents) throws IOException {
+        this(dataFile, type, pageSize, fileContents, null);
+    }
+
+
+    /**
+     * Constructs a new object from the specified information and the
+     * previously opened data-file, which may be compressed.
+     *
+     * @param dataFile the actual file containing the data
+     * @param type the type of the data file
+     * @param pageSize the page-size of the data file
+     * @param fileContents an already opened {@link RandomAccessFile} to use for
+     *        accessing the data file's contents
+     * @param pageMap the map of where each page is stored in the data file if
+     *        it is compressed, or <tt>null</tt> if it isn't compressed
+     *
+     * @throws IllegalArgumentException if the page size is not valid.
+     * @throws IOException if some other IO error occurs
+     */
+    DBFile(File dataFile, DBFileType type, int pageSize,
+        RandomAccessFile fileContents, CompressedPageMap pageMap)
+        throws IOException {
 
         if (dataFile == null || type == null || fileContents == null)
             throw new NullPointerException();
@@ -209,10 +357,12 @@ public class DBFile {
         this.type = type;
         this.pageSize = pageSize;
         this.fileContents = fileContents;
+        this.pageMap = pageMap;
 
         // Check to make sure the file contains a whole number of pages.
+        // Compressed files are made of sectors instead.
         long fileSize = fileContents.length();
-        if (fileSize % (long) pageSize != 0) {
+        if (pageMap == null && fileSize % (long) pageSize != 0) {
             // Maybe handle this someday by extending the file to have a whole
             // page at the end, but this is definitely the more conservative
             // approach.
@@ -295,22 +445,103 @@ public class DBFile {
     }
 
 
+    /**
+     * Returns the format version of this database file's contents.  See
+     * {@link #CURRENT_FORMAT_VERSION} for the differences between versions.
+     *
+     * @return the format version of this database file's contents
+     */
+    public int getFormatVersion() {
+        return formatVersion;
+    }
+
+
+    /**
+     * Returns true if the pages of this file, other than the header page,
+     * end with their page LSN.  This is the case for heap files and
+     * B<sup>+</sup> tree files in format version 2 or later.
+     *
+     * @return true if the file's data pages store their page LSN
+     */
+    public boolean hasPageLSNs() {
+        return formatVersion >= MIN_PAGE_LSN_FORMAT_VERSION &&
+            (type == DBFileType.HEAP_TUPLE_FILE ||
+             type == DBFileType.BTREE_TUPLE_FILE);
+    }
+
+
+    /**
+     * Returns the number of bytes at the start of each data page that the
+     * file's page format may use.  This is the page size, less the space for
+     * the page LSN if the file stores page LSNs.
+     *
+     * @return the number of bytes of each data page that the file may use
+     */
+    public int getUsablePageSize() {
+        return hasPageLSNs() ? pageSize - DBPage.PAGE_LSN_SIZE : pageSize;
+    }
+
+
+    /**
+     * Sets the format version of this database file's contents.  This only
+     * changes the value held in memory; the file manager sets it when a file
+     * is opened, and {@link StorageManager#upgradeFormatVersion} also stores
+     * it in the file's header.
+     *
+     * @param formatVersion the format version of this database file's
+     *        contents
+     */
+    public void setFormatVersion(int formatVersion) {
+        if (formatVersion < 0 || formatVersion > CURRENT_FORMAT_VERSION) {
+            throw new IllegalArgumentException("Unsupported format version " +
+                formatVersion + " for data file " + dataFile);
+        }
+
+        this.formatVersion = formatVersion;
+    }
+
+
     /**
      * Reads the current file-length of this database file and computes the
      * total number of pages based on this value.  Note that since this method
      * involves an IO operation, it should be called infrequently since it will
-     * be slow.
+     * be slow.  The number of pages in a compressed file is kept in its page
+     * map instead.
      *
      * @return the number of pages currently in this database file.
      *
      * @throws IOException if an IO error occurs while reading the file's length
      */
     public int getNumPages() throws IOException {
+        if (pageMap != null)
+            return pageMap.getNumPages();
+
         long numPages = fileContents.length() / (long) pageSize;
         return (int) numPages;
     }
 
 
+    /**
+     * Returns true if the pages of this database file are stored compressed.
+     *
+     * @return true if the pages of this database file are stored compressed
+     */
+    public boolean isCompressed() {
+        return pageMap != null;
+    }
+
+
+    /**
+     * Returns the map of where each page of a compressed data file is
+     * stored, or <tt>null</tt> if the file isn't compressed.
+     *
+     * @return the map of where each page of a compressed data file is stored
+     */
+    CompressedPageMap getPageMap() {
+        return pageMap;
+    }
+
+
     /**
      * Returns the {@link RandomAccessFile} for accessing the data file's
      * contents.
@@ -21,12 +21,36 @@ public enum DBFileType {
      */
     BYTE_FSM_FILE(3),
 
+    /**
+     * Represents a file that holds large column values of a tuple file,
+     * which are stored out of line in chains of pages.
+     */
+    OVERFLOW_FILE(4),
+
     /**
      * Represents a B<sup>+</sup> tree tuple file that keeps tuples in a
      * particular order.
      */
     BTREE_TUPLE_FILE(2),
 
+    /**
+     * Represents a columnar tuple file, which stores each column of a table
+     * in its own chain of encoded pages.
+     */
+    COLUMNAR_TUPLE_FILE(5),
+
+    /**
+     * Represents a file that holds the zone map of a heap tuple file, with
+     * the range of values in each of the heap file's data pages.
+     */
+    ZONE_MAP_FILE(6),
+
+    /**
+     * Represents a hash tuple file, which stores tuples in buckets chosen by
+     * a linear hash of their key columns.
+     */
+    HASH_TUPLE_FILE(7),
+
     /**
      * Represents a transaction-state file used for write-ahead logging and
      * recovery.
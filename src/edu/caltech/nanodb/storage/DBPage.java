@@ -4,12 +4,18 @@ package edu.caltech.nanodb.storage;
 import java.io.*;
 import java.math.BigDecimal;
 import java.math.BigInteger;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.log4j.Logger;
 
 import edu.caltech.nanodb.expressions.TypeConverter;
 import edu.caltech.nanodb.relations.ColumnType;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
 import edu.caltech.nanodb.storage.writeahead.LogSequenceNumber;
 
 
@@ -19,24 +25,33 @@ import edu.caltech.nanodb.storage.writeahead.LogSequenceNumber;
  * memory, are tracked by the object.
  * <p>
  * Database pages do not provide any locking mechanisms to guard against
- * concurrent access.  Locking must be managed at a level above what this class
- * provides.
+ * concurrent access to their contents.  Locking must be managed at a level
+ * above what this class provides.  The pin-count and dirty-flag are the
+ * exception; the Buffer Manager inspects these from other sessions while
+ * choosing pages to evict, so they are safe to access concurrently.
  * <p>
  * The class provides methods to read and write a wide range of data types.
  * Multibyte values are stored in big-endian format, with the most significant
  * byte (MSB) stored at the lowest index, and the least significant byte (LSB)
  * stored at the highest index.  (This is also the network byte order specified
  * by the Internet Protocol.)
+ * <p>
+ * The page's data is held in a {@link ByteBuffer} provided by the Buffer
+ * Manager.  Normally this wraps a byte-array on the Java heap, but if the
+ * Buffer Manager is configured to use off-heap page frames, it is a slice
+ * of a direct buffer (see {@link SlabAllocator}).  All access to the data
+ * uses absolute positions, so the buffer's position and limit are never
+ * changed.
  *
  * @see PageReader
  * @see PageWriter
  *
- * @design (Donnie) It is very important that the page is marked dirty
- *         <em>before</em> any changes are made, because this is the point
- *         when the old version of the page data is copied before changes
- *         are made.  Additionally, the page's data must not be manipulated
- *         separately from the methods provided by this class, or else the
- *         old version of the page won't be recorded properly.
+ * @design (Donnie) The page's data must not be manipulated separately from
+ *         the methods provided by this class.  Each write method records
+ *         the range of bytes it is about to change, along with the range's
+ *         original contents, <em>before</em> making any changes (see
+ *         {@link DirtyRanges}).  This is how the old version of the page's
+ *         data is recorded in the write-ahead log.
  */
 public class DBPage implements Pinnable, AutoCloseable {
 
@@ -44,6 +59,15 @@ public class DBPage implements Pinnable, AutoCloseable {
     private static Logger logger = Logger.getLogger(DBPage.class);
 
 
+    /**
+     * The number of bytes at the end of a page that hold its page LSN on
+     * disk, for pages that store it (see {@link #hasStoredPageLSN}):  the
+     * WAL file number as an unsigned short, followed by the file offset as
+     * an int.
+     */
+    public static final int PAGE_LSN_SIZE = 6;
+
+
     /**
      * The buffer manager is used by this class to request buffer space when
      * needed, so that a maximum cap can be placed on memory usage.
@@ -66,11 +90,47 @@ public class DBPage implements Pinnable, AutoCloseable {
      * flushed from the buffer manager since the page is being used by at least
      * one session.
      */
-    private int pinCount;
+    private final AtomicInteger pinCount = new AtomicInteger();
 
 
     /** This flag is true if this page has been modified in memory. */
-    private boolean dirty;
+    private volatile boolean dirty;
+
+
+    /**
+     * This count is incremented whenever the page is marked dirty, which
+     * happens before every change to the page's data.  It lets a write that
+     * runs concurrently with other sessions tell whether the page changed
+     * while it was being written.
+     */
+    private volatile int changeCount;
+
+
+    /**
+     * The page's data is only written to disk, and the page is only
+     * invalidated, while holding this lock, so that two writes of the same
+     * page can never reach the disk out of order.  A thread that holds the
+     * locks of several pages must have acquired them in order of file and
+     * page number, so that writers can't deadlock.
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+
+    /**
+     * This flag is true if this page was loaded by the {@link PagePrefetcher},
+     * and no session has asked for it since.
+     */
+    private AtomicBoolean prefetched = new AtomicBoolean();
+
+
+    /**
+     * This flag is set when the Buffer Manager's page replacement policy
+     * finds the page pinned while choosing a victim, and sets the page aside
+     * so that later searches don't have to step over it again.  When the
+     * page is unpinned, {@link #unpin} sees the flag and hands the page back
+     * to the policy.
+     */
+    private volatile boolean setAside;
 
 
     /**
@@ -83,15 +143,27 @@ public class DBPage implements Pinnable, AutoCloseable {
     private LogSequenceNumber pageLSN;
 
 
+    /**
+     * For dirty pages, this field is set to the Log Sequence Number of the
+     * first write-ahead log record written for the page since it was last
+     * clean.  Recovery must start from this point or earlier to redo all of
+     * the page's changes that aren't on disk, so checkpoints record it in
+     * their dirty-page table.
+     */
+    private volatile LogSequenceNumber recoveryLSN;
+
+
     /** The actual data for the table-page. */
-    private byte[] pageData;
+    private ByteBuffer pageData;
 
 
     /**
-     * When the page is marked dirty, this gets set to the original version of
-     * the page, so that we can properly record changes to the write-ahead log.
+     * The byte-ranges of the page that have changed since the page's changes
+     * were last recorded in the write-ahead log, along with their original
+     * contents.  This is created the first time the page is written to, and
+     * is only accessed while holding the page's monitor.
      */
-    private byte[] oldPageData;
+    private DirtyRanges dirtyRanges;
 
 
     /**
@@ -131,7 +203,7 @@ public class DBPage implements Pinnable, AutoCloseable {
         // buffers.  This means that the buffer allocated for this page
         // cannot be freed until the DBPage is actually registered with the
         // Buffer Manager (which it won't be until it is fully loaded).
-        pinCount = 0;
+        // (The pin-count starts out at 0 when the field is initialized.)
 
         // This operation could fail with an IOException, because more
         // space must be allocated to keep track of the original page data,
@@ -145,8 +217,6 @@ public class DBPage implements Pinnable, AutoCloseable {
         catch (IOException e) {
             throw new RuntimeException(e);
         }
-
-        oldPageData = null;
     }
 
 
@@ -189,13 +259,13 @@ public class DBPage implements Pinnable, AutoCloseable {
      * @return the page-size in bytes
      */
     public int getPageSize() {
-        return pageData.length;
+        return pageData.capacity();
     }
 
 
     @Override
     public void pin() {
-        pinCount++;
+        pinCount.incrementAndGet();
 
         // To facilitate debugging of pinned-page leaks!
         bufferManager.recordPagePinned(this);
@@ -204,15 +274,33 @@ public class DBPage implements Pinnable, AutoCloseable {
 
     @Override
     public void unpin() {
-        if (pinCount <= 0) {
+        int count = pinCount.get();
+        if (count <= 0) {
             throw new IllegalStateException(
-                "pinCount is not positive (value is " + pinCount + ")");
+                "pinCount is not positive (value is " + count + ")");
         }
 
-        // To facilitate debugging of pinned-page leaks!
+        // To facilitate debugging of pinned-page leaks!  This must happen
+        // before the pin-count is decremented, since the page may be evicted
+        // and invalidated as soon as it is unpinned.
         bufferManager.recordPageUnpinned(this);
 
-        pinCount--;
+        // Decrement the pin-count, but never let it go negative, even if
+        // several sessions unpin the page at the same time.
+        while (!pinCount.compareAndSet(count, count - 1)) {
+            count = pinCount.get();
+            if (count <= 0) {
+                throw new IllegalStateException(
+                    "pinCount is not positive (value is " + count + ")");
+            }
+        }
+
+        // If the replacement policy set the page aside while it was pinned,
+        // the page can be chosen as a victim again.  The policy sets the flag
+        // before checking the pin-count, and we check the flag after changing
+        // the pin-count, so the page can't be left set aside once unpinned.
+        if (count == 1 && setAside)
+            bufferManager.pageReleased(this);
 
         // Don't do anything else to the data page, because at this point,
         // it may still contain dirty data that needs to be flushed to disk
@@ -222,53 +310,100 @@ public class DBPage implements Pinnable, AutoCloseable {
 
     @Override
     public int getPinCount() {
-        return pinCount;
+        return pinCount.get();
     }
 
 
     @Override
     public boolean isPinned() {
-        return (pinCount > 0);
+        return (pinCount.get() > 0);
     }
 
 
     /**
-     * Returns the byte-array of the page's data.  <b>Note that if any changes
-     * are made to the page's data, the dirty-flag must be updated
-     * appropriately or else the data will not be written back to the file.</b>
-     *
-     * @return a byte-array containing the page's data
+     * Returns a new buffer that shares the page's data, with its position set
+     * to 0 and its limit set to the page size.  This allows the page to be
+     * read from or written to a file without copying it.  Since each call
+     * returns a new view of the data, callers may freely change the returned
+     * buffer's position and limit.  <b>Note that if any changes are made to
+     * the page's data, the dirty-flag must be updated appropriately or else
+     * the data will not be written back to the file.</b>
+     *
+     * @return a buffer that shares the page's data
      */
-    public byte[] getPageData() {
-        return pageData;
+    public ByteBuffer getPageBuffer() {
+        return pageData.duplicate();
     }
 
 
     /**
-     * Returns the byte-array of the page's data at the last point when the page
-     * became dirty, or <tt>null</tt> if the page is currently clean.
+     * Returns the byte-ranges of the page that have changed since the page's
+     * changes were last recorded in the write-ahead log, in order of their
+     * starting offsets.  Each range includes the original contents of its
+     * bytes; the new contents are in the page's data.  The returned list is a
+     * snapshot, so it isn't affected by later changes to the page.
      *
-     * @return a byte-array containing the last "clean" version of the page's
-     *         data
+     * @return the changed byte-ranges of the page
      */
-    public byte[] getOldPageData() {
-        return oldPageData;
+    public synchronized List<DirtyRanges.Range> getDirtyRanges() {
+        if (dirtyRanges == null)
+            return Collections.emptyList();
+
+        return dirtyRanges.getRanges();
     }
 
 
     /**
-     * For a dirty page, this method copies the "new page data" into the "old
-     * page data" so that they are the same.  This is necessary when changes are
-     * recorded to the write-ahead log; since the changes are reflected in the
-     * WAL, it's not necessary to represent the deltas anymore.
+     * For a dirty page, this method forgets the byte-ranges that have changed
+     * in the page.  This is done when changes are recorded to the write-ahead
+     * log; since the changes are reflected in the WAL, it's not necessary to
+     * represent the deltas anymore.
      *
      * @throws IllegalStateException if the page is not currently marked dirty
      */
-    public void syncOldPageData() {
-        if (oldPageData == null)
-            throw new IllegalStateException("No old page data to sync");
+    public synchronized void clearDirtyRanges() {
+        if (!dirty)
+            throw new IllegalStateException("Page is not dirty");
+
+        if (dirtyRanges != null)
+            dirtyRanges.clear();
+    }
+
+
+    /**
+     * Marks the page dirty, and records that the specified range of the page
+     * is about to be changed, so that its original contents can be recorded
+     * in the write-ahead log.  This must be called before the bytes are
+     * modified.
+     *
+     * @param position the offset of the first byte that will be changed
+     *
+     * @param length the number of bytes that will be changed
+     */
+    private void beforeWrite(int position, int length) {
+        setDirty(true);
+
+        synchronized (this) {
+            if (dirtyRanges == null)
+                dirtyRanges = new DirtyRanges();
+
+            dirtyRanges.addRange(pageData, position, length);
+        }
+    }
 
-        System.arraycopy(pageData, 0, oldPageData, 0, pageData.length);
+
+    /**
+     * Copies a range of bytes from one buffer to another, without changing
+     * the position or limit of either buffer.
+     */
+    private static void copyBuffer(ByteBuffer src, int srcPosition,
+                                   ByteBuffer dst, int dstPosition, int len) {
+        ByteBuffer srcView = src.duplicate();
+        srcView.limit(srcPosition + len).position(srcPosition);
+
+        ByteBuffer dstView = dst.duplicate();
+        dstView.position(dstPosition);
+        dstView.put(srcView);
     }
 
 
@@ -290,45 +425,230 @@ public class DBPage implements Pinnable, AutoCloseable {
      *        otherwise
      */
     public void setDirty(boolean dirty) {
-        if (!this.dirty && dirty) {
-            // Page is being changed from clean to dirty.  Duplicate the current
-            // data so that we have it when updating the write-ahead log.
-
-            // This operation could fail with an IOException, because more
-            // space must be allocated to keep track of the original page data,
-            // that might cause the buffer manager to swap out some other pages
-            // to disk.  Since all the existing code wouldn't compile if an
-            // IOException is thrown, we just wrap it with a RuntimeException.
-            // TODO:  Come up with a better approach?!  Maybe a custom exception??
-            try {
-                oldPageData = bufferManager.allocBuffer(pageData.length);
-                System.arraycopy(pageData, 0, oldPageData, 0, pageData.length);
-            }
-            catch (IOException e) {
-                throw new RuntimeException(e);
-            }
+        if (dirty)
+            changeCount++;
+
+        // Most calls don't change the page's state, so avoid synchronizing
+        // in that case.
+        if (this.dirty == dirty)
+            return;
+
+        synchronized (this) {
+            updateDirty(dirty);
         }
-        else if (this.dirty && !dirty) {
-            // Page is being changed from dirty to clean.  Clear out the old
-            // page data since we don't need it anymore.
-            bufferManager.releaseBuffer(oldPageData);
-            oldPageData = null;
+    }
+
 
-            // Clear out the page-LSN value as well.
+    /**
+     * This helper performs the work of {@link #setDirty}, and must be called
+     * while holding this page's monitor, so that the changed ranges are
+     * cleared exactly once per transition.
+     *
+     * @param dirty the new value of the dirty flag
+     */
+    private void updateDirty(boolean dirty) {
+        if (this.dirty && !dirty) {
+            // Page is being changed from dirty to clean.  Clear out the
+            // changed ranges since we don't need them anymore.
+            if (dirtyRanges != null)
+                dirtyRanges.clear();
+
+            // Clear out the page-LSN and recovery-LSN values as well.
             pageLSN = null;
+            recoveryLSN = null;
         }
 
         this.dirty = dirty;
     }
 
 
+    /**
+     * Returns the number of times the page has been marked dirty.  If this
+     * value hasn't changed, and the page wasn't pinned in the meantime, then
+     * the page's data hasn't changed either.
+     *
+     * @return the number of times the page has been marked dirty
+     */
+    int getChangeCount() {
+        return changeCount;
+    }
+
+
+    /**
+     * Returns the lock that must be held while writing the page's data to
+     * disk.
+     *
+     * @return the lock that must be held while writing the page's data
+     */
+    ReentrantLock getWriteLock() {
+        return writeLock;
+    }
+
+
+    /**
+     * Marks the page clean after its data was written to disk, unless the
+     * page was marked dirty again since the specified change-count was read.
+     *
+     * @param changeCount the page's change-count before its data was copied
+     *        for writing
+     *
+     * @return true if the page is now clean, or false if it has changed and
+     *         must stay dirty
+     */
+    boolean setCleanIfUnchanged(int changeCount) {
+        synchronized (this) {
+            if (!dirty || this.changeCount != changeCount)
+                return false;
+
+            updateDirty(false);
+            return true;
+        }
+    }
+
+
+    /**
+     * Sets the page aside from the candidates for eviction, as long as it is
+     * still pinned.  This is called by page replacement policies while
+     * holding the page's partition latch.
+     *
+     * @return true if the page is pinned and was set aside, or false if it
+     *         has been unpinned and should stay a candidate for eviction
+     */
+    boolean setAsideIfPinned() {
+        setAside = true;
+        if (isPinned())
+            return true;
+
+        setAside = false;
+        return false;
+    }
+
+
+    /**
+     * Clears the flag recording that the page was set aside by the page
+     * replacement policy.  This is called by the Buffer Manager while holding
+     * the page's partition latch, just before the page is handed back to the
+     * policy.
+     */
+    void clearSetAside() {
+        setAside = false;
+    }
+
+
     public LogSequenceNumber getPageLSN() {
         return pageLSN;
     }
 
 
-    public void setPageLSN(LogSequenceNumber lsn) {
+    public synchronized void setPageLSN(LogSequenceNumber lsn) {
         pageLSN = lsn;
+        if (recoveryLSN == null)
+            recoveryLSN = lsn;
+    }
+
+
+    /**
+     * Returns the LSN of the first write-ahead log record written for this
+     * page since it was last clean, or <tt>null</tt> if no record has been
+     * written for the page's changes.
+     *
+     * @return the LSN of the first record written since the page was clean
+     */
+    public LogSequenceNumber getRecoveryLSN() {
+        return recoveryLSN;
+    }
+
+
+    /**
+     * Returns true if this page stores its page LSN in its last
+     * {@link #PAGE_LSN_SIZE} bytes.  Header pages never do, and other pages
+     * only do if their file stores page LSNs (see {@link DBFile#hasPageLSNs}).
+     *
+     * @return true if this page stores its page LSN
+     */
+    public boolean hasStoredPageLSN() {
+        DBFile file = dbFile;
+        return pageNo > 0 && file != null && file.hasPageLSNs();
+    }
+
+
+    /**
+     * Returns the number of bytes at the start of this page that the page's
+     * format may use.  This is the page size, less the space for the page LSN
+     * if the page stores it.
+     *
+     * @return the number of bytes of the page that its format may use
+     */
+    public int getUsableSize() {
+        int pageSize = getPageSize();
+        return hasStoredPageLSN() ? pageSize - PAGE_LSN_SIZE : pageSize;
+    }
+
+
+    /**
+     * Returns the page LSN stored at the end of the page's data, or
+     * <tt>null</tt> if the page doesn't store its page LSN, or if no LSN has
+     * been stored in it yet.  Every change recorded in the write-ahead log at
+     * or before this LSN is reflected in the page's data, so recovery can
+     * skip those records.
+     *
+     * @return the page LSN stored in the page, or <tt>null</tt> if there is
+     *         none
+     */
+    public LogSequenceNumber getStoredPageLSN() {
+        if (!hasStoredPageLSN())
+            return null;
+
+        int position = getPageSize() - PAGE_LSN_SIZE;
+        int fileOffset = pageData.getInt(position + 2);
+        if (fileOffset == 0)
+            return null;  // No WAL record has an offset of 0.
+
+        return new LogSequenceNumber(
+            pageData.getShort(position) & 0xFFFF, fileOffset);
+    }
+
+
+    /**
+     * Stores the page LSN at the end of the page's data, just before the
+     * Buffer Manager writes the page to disk.  The LSN is stored without
+     * marking the page dirty or recording a changed range, since it isn't
+     * part of the page's contents as far as the write-ahead log is
+     * concerned.  Pages that don't store their page LSN, or that don't have
+     * one because no record was written for their changes, are left alone.
+     * This must be called while holding the page's write lock, and before
+     * the page's data is copied or written, so that the stored LSN never
+     * claims a change that the written data doesn't have.
+     */
+    synchronized void storePageLSN() {
+        LogSequenceNumber lsn = pageLSN;
+        if (lsn == null || !hasStoredPageLSN())
+            return;
+
+        int position = getPageSize() - PAGE_LSN_SIZE;
+        pageData.putShort(position, (short) lsn.getLogFileNo());
+        pageData.putInt(position + 2, lsn.getFileOffset());
+    }
+
+
+    /**
+     * Records that this page was loaded by the {@link PagePrefetcher} before
+     * any session asked for it.
+     */
+    void setPrefetched() {
+        prefetched.set(true);
+    }
+
+
+    /**
+     * Clears the flag recording that this page was prefetched, and reports
+     * whether it was set.  This lets exactly one caller claim a prefetched
+     * page.
+     *
+     * @return true if the page was prefetched and hadn't been claimed yet
+     */
+    boolean clearPrefetched() {
+        return prefetched.getAndSet(false);
     }
 
 
@@ -339,19 +659,33 @@ public class DBPage implements Pinnable, AutoCloseable {
      * try to use the page.
      */
     public void invalidate() {
-        bufferManager.recordPageInvalidated(this);
+        writeLock.lock();
+        try {
+            // Another thread may have invalidated the page already.
+            if (dbFile == null)
+                return;
 
-        dbFile = null;
-        pageNo = -1;
+            bufferManager.recordPageInvalidated(this);
 
-        if (pageData != null) {
-            bufferManager.releaseBuffer(pageData);
-            pageData = null;
-        }
+            // A prefetched page that is dropped before anyone uses it was
+            // read for nothing.
+            if (clearPrefetched())
+                PerformanceCounters.inc(PerformanceCounters.STORAGE_PREFETCH_WASTED);
+
+            dbFile = null;
+            pageNo = -1;
+
+            if (pageData != null) {
+                bufferManager.releaseBuffer(pageData);
+                pageData = null;
+            }
 
-        if (oldPageData != null) {
-            bufferManager.releaseBuffer(oldPageData);
-            oldPageData = null;
+            synchronized (this) {
+                dirtyRanges = null;
+            }
+        }
+        finally {
+            writeLock.unlock();
         }
     }
 
@@ -374,7 +708,9 @@ public class DBPage implements Pinnable, AutoCloseable {
      * @param len the number of bytes to transfer to the destination buffer
      */
     public void read(int position, byte[] b, int off, int len) {
-        System.arraycopy(pageData, position, b, off, len);
+        ByteBuffer view = pageData.duplicate();
+        view.position(position);
+        view.get(b, off, len);
     }
 
 
@@ -405,8 +741,11 @@ public class DBPage implements Pinnable, AutoCloseable {
      * @param len the number of bytes to transfer from the source buffer
      */
     public void write(int position, byte[] b, int off, int len) {
-        setDirty(true);
-        System.arraycopy(b, off, pageData, position, len);
+        beforeWrite(position, len);
+
+        ByteBuffer view = pageData.duplicate();
+        view.position(position);
+        view.put(b, off, len);
     }
 
 
@@ -424,6 +763,28 @@ public class DBPage implements Pinnable, AutoCloseable {
     }
 
 
+    /**
+     * Write a sequence of bytes from another page into this page, starting
+     * with the specified offset in the other page, and writing the specified
+     * number of bytes.  The data is copied directly between the two pages'
+     * buffers.
+     *
+     * @param position the starting index within this page to start writing
+     *        data
+     *
+     * @param srcPage the page to read the data from
+     *
+     * @param srcPosition the starting index within the source page to read
+     *        data from
+     *
+     * @param len the number of bytes to transfer from the source page
+     */
+    public void write(int position, DBPage srcPage, int srcPosition, int len) {
+        beforeWrite(position, len);
+        copyBuffer(srcPage.pageData, srcPosition, pageData, position, len);
+    }
+
+
     /**
      * Move the specified data region in the page.
      *
@@ -432,8 +793,24 @@ public class DBPage implements Pinnable, AutoCloseable {
      * @param length The number of bytes of data to move.
      */
     public void moveDataRange(int srcPosition, int dstPosition, int length) {
-        setDirty(true);
-        System.arraycopy(pageData, srcPosition, pageData, dstPosition, length);
+        beforeWrite(dstPosition, length);
+
+        if (pageData.hasArray()) {
+            byte[] array = pageData.array();
+            int base = pageData.arrayOffset();
+            System.arraycopy(array, base + srcPosition, array,
+                base + dstPosition, length);
+        }
+        else {
+            // Overlapping ranges must be copied through a temporary array,
+            // since a buffer-to-buffer copy doesn't handle overlap.
+            byte[] tmp = new byte[length];
+            read(srcPosition, tmp);
+
+            ByteBuffer view = pageData.duplicate();
+            view.position(dstPosition);
+            view.put(tmp);
+        }
     }
 
 
@@ -445,9 +822,9 @@ public class DBPage implements Pinnable, AutoCloseable {
      * @param value The byte-value to write to the entire range.
      */
     public void setDataRange(int position, int length, byte value) {
-        setDirty(true);
+        beforeWrite(position, length);
         for (int i = 0; i < length; i++)
-            pageData[position + i] = value;
+            pageData.put(position + i, value);
     }
 
 
@@ -463,7 +840,7 @@ public class DBPage implements Pinnable, AutoCloseable {
      * @return the Boolean value
      */
     public boolean readBoolean(int position) {
-        return (pageData[position] != 0);
+        return (pageData.get(position) != 0);
     }
 
     /**
@@ -476,8 +853,8 @@ public class DBPage implements Pinnable, AutoCloseable {
      * @param value the Boolean value
      */
     public void writeBoolean(int position, boolean value) {
-        setDirty(true);
-        pageData[position] = (byte) (value ? 1 : 0);
+        beforeWrite(position, 1);
+        pageData.put(position, (byte) (value ? 1 : 0));
     }
 
 
@@ -489,7 +866,7 @@ public class DBPage implements Pinnable, AutoCloseable {
      * @return the signed byte value
      */
     public byte readByte(int position) {
-        return pageData[position];
+        return pageData.get(position);
     }
 
     /**
@@ -503,8 +880,8 @@ public class DBPage implements Pinnable, AutoCloseable {
      * @param value the byte value
      */
     public void writeByte(int position, int value) {
-        setDirty(true);
-        pageData[position] = (byte) value;
+        beforeWrite(position, 1);
+        pageData.put(position, (byte) value);
     }
 
 
@@ -518,7 +895,7 @@ public class DBPage implements Pinnable, AutoCloseable {
      * @return the unsigned byte value, as an integer
      */
     public int readUnsignedByte(int position) {
-        return pageData[position] & 0xFF;
+        return pageData.get(position) & 0xFF;
     }
 
 
@@ -532,10 +909,7 @@ public class DBPage implements Pinnable, AutoCloseable {
      * @return the unsigned short value, as an integer
      */
     public int readUnsignedShort(int position) {
-        int value = ((pageData[position++] & 0xFF) <<  8)
-                  | ((pageData[position  ] & 0xFF)      );
-
-        return value;
+        return pageData.getShort(position) & 0xFFFF;
     }
 
     /**
@@ -547,13 +921,7 @@ public class DBPage implements Pinnable, AutoCloseable {
      * @return the signed short value
      */
     public short readShort(int position) {
-        // Don't chop off high-order bits.  When byte is cast to int, the sign
-        // will be extended, so if original byte is negative, the resulting
-        // int will be too.
-        int value = ((pageData[position++]       ) <<  8)
-                  | ((pageData[position  ] & 0xFF)      );
-
-        return (short) value;
+        return pageData.getShort(position);
     }
 
     /**
@@ -567,10 +935,8 @@ public class DBPage implements Pinnable, AutoCloseable {
      * @param value the byte value
      */
     public void writeShort(int position, int value) {
-        setDirty(true);
-
-        pageData[position++] = (byte) (0xFF & (value >> 8));
-        pageData[position  ] = (byte) (0xFF &  value);
+        beforeWrite(position, 2);
+        pageData.putShort(position, (short) value);
     }
 
 
@@ -583,15 +949,7 @@ public class DBPage implements Pinnable, AutoCloseable {
      */
     public char readChar(int position)
     {
-        // NOTE:  Exactly like readShort(), but result is cast to a different
-        // type.
-
-        // Don't chop off high-order bits.  When byte is cast to int, the sign will
-        // be extended, so if original byte is negative, so will resulting int.
-        int value = ((pageData[position++]       ) <<  8)
-                  | ((pageData[position  ] & 0xFF)      );
-
-        return (char) value;
+        return pageData.getChar(position);
     }
 
     /**
@@ -619,12 +977,7 @@ public class DBPage implements Pinnable, AutoCloseable {
      * @return the unsigned integer value, as a long
      */
     public long readUnsignedInt(int position) {
-        long value = ((pageData[position++] & 0xFF) << 24)
-                   | ((pageData[position++] & 0xFF) << 16)
-                   | ((pageData[position++] & 0xFF) <<  8)
-                   | ((pageData[position  ] & 0xFF)      );
-
-        return value;
+        return pageData.getInt(position) & 0xFFFFFFFFL;
     }
 
 
@@ -636,12 +989,7 @@ public class DBPage implements Pinnable, AutoCloseable {
      * @return the signed int value
      */
     public int readInt(int position) {
-        int value = ((pageData[position++] & 0xFF) << 24)
-                  | ((pageData[position++] & 0xFF) << 16)
-                  | ((pageData[position++] & 0xFF) <<  8)
-                  | ((pageData[position  ] & 0xFF)      );
-
-        return value;
+        return pageData.getInt(position);
     }
 
     /**
@@ -652,12 +1000,8 @@ public class DBPage implements Pinnable, AutoCloseable {
      * @param value the 4-byte integer value
      */
     public void writeInt(int position, int value) {
-        setDirty(true);
-
-        pageData[position++] = (byte) (0xFF & (value >> 24));
-        pageData[position++] = (byte) (0xFF & (value >> 16));
-        pageData[position++] = (byte) (0xFF & (value >>  8));
-        pageData[position  ] = (byte) (0xFF &  value);
+        beforeWrite(position, 4);
+        pageData.putInt(position, value);
     }
 
 
@@ -670,16 +1014,7 @@ public class DBPage implements Pinnable, AutoCloseable {
      * @return the signed long value
      */
     public long readLong(int position) {
-        long value = ((long) (pageData[position++] & 0xFF) << 56)
-                   | ((long) (pageData[position++] & 0xFF) << 48)
-                   | ((long) (pageData[position++] & 0xFF) << 40)
-                   | ((long) (pageData[position++] & 0xFF) << 32)
-                   | ((long) (pageData[position++] & 0xFF) << 24)
-                   | ((long) (pageData[position++] & 0xFF) << 16)
-                   | ((long) (pageData[position++] & 0xFF) <<  8)
-                   | ((long) (pageData[position  ] & 0xFF)      );
-
-        return value;
+        return pageData.getLong(position);
     }
 
     /**
@@ -690,16 +1025,8 @@ public class DBPage implements Pinnable, AutoCloseable {
      * @param value the 8-byte long integer value
      */
     public void writeLong(int position, long value) {
-        setDirty(true);
-
-        pageData[position++] = (byte) (0xFF & (value >> 56));
-        pageData[position++] = (byte) (0xFF & (value >> 48));
-        pageData[position++] = (byte) (0xFF & (value >> 40));
-        pageData[position++] = (byte) (0xFF & (value >> 32));
-        pageData[position++] = (byte) (0xFF & (value >> 24));
-        pageData[position++] = (byte) (0xFF & (value >> 16));
-        pageData[position++] = (byte) (0xFF & (value >>  8));
-        pageData[position  ] = (byte) (0xFF &  value);
+        beforeWrite(position, 8);
+        pageData.putLong(position, value);
     }
 
 
@@ -740,6 +1067,14 @@ public class DBPage implements Pinnable, AutoCloseable {
     }
 
 
+    /** Reads the specified number of bytes into a new array. */
+    private byte[] readBytes(int position, int len) {
+        byte[] bytes = new byte[len];
+        read(position, bytes);
+        return bytes;
+    }
+
+
     /**
      * This method reads and returns a variable-length string whose maximum
      * length is 255 bytes.  The string is expected to be in US-ASCII
@@ -760,7 +1095,7 @@ public class DBPage implements Pinnable, AutoCloseable {
         String str = null;
 
         try {
-            str = new String(pageData, position, len, "US-ASCII");
+            str = new String(readBytes(position, len), "US-ASCII");
         }
         catch (UnsupportedEncodingException e) {
             // According to the Java docs, the US-ASCII character-encoding is
@@ -834,7 +1169,7 @@ public class DBPage implements Pinnable, AutoCloseable {
         String str = null;
 
         try {
-            str = new String(pageData, position, len, "US-ASCII");
+            str = new String(readBytes(position, len), "US-ASCII");
         }
         catch (UnsupportedEncodingException e) {
             // According to the Java docs, the US-ASCII character-encoding is
@@ -915,11 +1250,11 @@ public class DBPage implements Pinnable, AutoCloseable {
 
         // Fixed-size strings are padded with 0-bytes, so trim these off the
         // end of the string value.
-        while (len > 0 && pageData[position + len - 1] == 0)
+        while (len > 0 && pageData.get(position + len - 1) == 0)
             len--;
 
         try {
-            str = new String(pageData, position, len, "US-ASCII");
+            str = new String(readBytes(position, len), "US-ASCII");
         }
         catch (UnsupportedEncodingException e) {
             // According to the Java docs, the US-ASCII character-encoding is
@@ -977,7 +1312,7 @@ public class DBPage implements Pinnable, AutoCloseable {
         write(position, bytes);
 
         // Zero out the rest of the fixed-size string value.
-        Arrays.fill(pageData, position + bytes.length, position + len, (byte) 0);
+        setDataRange(position + bytes.length, len - bytes.length, (byte) 0);
     }
 
 
@@ -1032,12 +1367,18 @@ public class DBPage implements Pinnable, AutoCloseable {
             break;
 
         case VARCHAR:
-            value = readVarString65535(position);
+        case TEXT:
+        case BLOB:
+            // Values that are stored out of line can't be read from the page
+            // itself, so the reference to the value is returned instead.
+            value = OverflowValue.read(this, position);
+            if (value == null)
+                value = readVarString65535(position);
             break;
 
         case FILE_POINTER:
-            value = new FilePointer(readUnsignedShort(position),
-                                    readUnsignedShort(position + 2));
+            value = new FilePointer(readInt(position),
+                                    readUnsignedShort(position + 4));
             break;
 
         case NUMERIC:
@@ -1144,7 +1485,14 @@ public class DBPage implements Pinnable, AutoCloseable {
             }
 
         case VARCHAR:
+        case TEXT:
+        case BLOB:
             {
+                if (value instanceof OverflowValue) {
+                    dataSize = ((OverflowValue) value).write(this, position);
+                    break;
+                }
+
                 String strVal = TypeConverter.getStringValue(value);
                 writeVarString65535(position, strVal);
                 dataSize = 2 + strVal.length();
@@ -1154,9 +1502,9 @@ public class DBPage implements Pinnable, AutoCloseable {
         case FILE_POINTER:
             {
                 FilePointer fptr = (FilePointer) value;
-                writeShort(position, fptr.getPageNo());
-                writeShort(position + 2, fptr.getOffset());
-                dataSize = 4;
+                writeInt(position, fptr.getPageNo());
+                writeShort(position + 4, fptr.getOffset());
+                dataSize = 6;
                 break;
             }
 
@@ -1197,16 +1545,18 @@ public class DBPage implements Pinnable, AutoCloseable {
             if (i % 32 == 0)
                 buf.append("\n                ");
 
-            buf.append(String.format(" %02X", pageData[i]));
+            buf.append(String.format(" %02X", pageData.get(i)));
         }
 
-        if (oldPageData != null) {
-            buf.append("\noldPageData =");
-            for (int i = 0; i < pageSize; i++) {
+        for (DirtyRanges.Range range : getDirtyRanges()) {
+            buf.append(String.format("\noldData[0x%04X-0x%04X) =",
+                range.getStart(), range.getEnd()));
+            byte[] oldData = range.getOldData();
+            for (int i = 0; i < oldData.length; i++) {
                 if (i % 32 == 0)
                     buf.append("\n                ");
 
-                buf.append(String.format(" %02x", oldPageData[i]));
+                buf.append(String.format(" %02x", oldData[i]));
             }
         }
 
@@ -1218,10 +1568,10 @@ public class DBPage implements Pinnable, AutoCloseable {
 
     /**
      * This helper method returns a formatted string describing all changes
-     * made to the page's contents; that is, the differences between the
-     * {@link #pageData} and the {@link #oldPageData} byte-arrays.  The output
-     * is formatted to inclue rows of 32 bytes, and only includes rows where
-     * the data between old and new pages are actually different.
+     * made to the page's contents since they were last recorded in the
+     * write-ahead log; that is, the old and new contents of each of the
+     * page's {@link #dirtyRanges}.  Unchanged bytes within a range are shown
+     * as "<tt>..</tt>" in the new contents.
      *
      * @return a formatted string describing all changes made to the page's
      *         contents
@@ -1235,34 +1585,24 @@ public class DBPage implements Pinnable, AutoCloseable {
 
         StringBuilder buf = new StringBuilder();
 
-        int i = 0;
-        int pageSize = dbFile.getPageSize();
-        while (i < pageSize) {
-            boolean same = true;
-            for (int j = 0; j < 32; j++) {
-                if (oldPageData[i + j] != pageData[i + j]) {
-                    same = false;
-                    break;
-                }
+        for (DirtyRanges.Range range : getDirtyRanges()) {
+            byte[] oldData = range.getOldData();
+            int start = range.getStart();
+
+            buf.append(String.format("0x%04X OLD: ", start));
+            for (byte b : oldData)
+                buf.append(String.format(" %02X", b));
+            buf.append('\n');
+
+            buf.append(String.format("0x%04X NEW: ", start));
+            for (int i = 0; i < oldData.length; i++) {
+                byte b = pageData.get(start + i);
+                if (b != oldData[i])
+                    buf.append(String.format(" %02X", b));
+                else
+                    buf.append(" ..");
             }
-
-            if (!same) {
-                buf.append(String.format("0x%04X OLD: ", i));
-                for (int j = 0; j < 32; j++)
-                    buf.append(String.format(" %02X", oldPageData[i + j]));
-                buf.append('\n');
-
-                buf.append(String.format("0x%04X NEW: ", i));
-                for (int j = 0; j < 32; j++) {
-                    if (pageData[i + j] != oldPageData[i + j])
-                        buf.append(String.format(" %02X", pageData[i + j]));
-                    else
-                        buf.append(" ..");
-                }
-                buf.append('\n');
-            }
-
-            i += 32;
+            buf.append('\n');
         }
 
         return buf.toString();
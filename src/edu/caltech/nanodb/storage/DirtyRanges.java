@@ -0,0 +1,229 @@
+package edu.caltech.nanodb.storage;
+
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * <p>
+ * This class records which byte-ranges of a {@link DBPage} have been changed
+ * since the page's changes were last recorded in the write-ahead log, along
+ * with the original contents of each range.  The page records a range just
+ * before its bytes are overwritten, so only the bytes that are actually
+ * changed are copied, and the write-ahead log can record the page's changes
+ * without comparing the entire page against a copy of its old contents.
+ * </p>
+ * <p>
+ * Ranges are kept in order of their starting offsets, and never overlap.
+ * Ranges that are {@link #MERGE_GAP} bytes apart or less are merged into a
+ * single range, including the unchanged bytes between them, so that many
+ * small writes to the same area of a page are logged as one segment.
+ * </p>
+ * <p>
+ * This class is not thread-safe; the page that owns it synchronizes access
+ * to it.
+ * </p>
+ */
+public class DirtyRanges {
+
+    /**
+     * Ranges that are separated by this many bytes or less are merged into
+     * a single range.
+     */
+    public static final int MERGE_GAP = 4;
+
+
+    /** A changed range of a page, along with its original contents. */
+    public static class Range {
+        /** The offset of the range's first byte within the page. */
+        private final int start;
+
+        /** The original contents of the range. */
+        private final byte[] oldData;
+
+
+        private Range(int start, byte[] oldData) {
+            this.start = start;
+            this.oldData = oldData;
+        }
+
+
+        /**
+         * Returns the offset of the range's first byte within the page.
+         *
+         * @return the offset of the range's first byte within the page
+         */
+        public int getStart() {
+            return start;
+        }
+
+
+        /**
+         * Returns the offset just past the range's last byte.
+         *
+         * @return the offset just past the range's last byte
+         */
+        public int getEnd() {
+            return start + oldData.length;
+        }
+
+
+        /**
+         * Returns the number of bytes in the range.
+         *
+         * @return the number of bytes in the range
+         */
+        public int getLength() {
+            return oldData.length;
+        }
+
+
+        /**
+         * Returns the original contents of the range.  The caller must not
+         * modify the returned array.
+         *
+         * @return the original contents of the range
+         */
+        public byte[] getOldData() {
+            return oldData;
+        }
+
+
+        @Override
+        public String toString() {
+            return String.format("[%d, %d)", start, getEnd());
+        }
+    }
+
+
+    /** The changed ranges, in order of their starting offsets. */
+    private final ArrayList<Range> ranges = new ArrayList<>();
+
+
+    /**
+     * Records that the specified range of the page is about to be changed.
+     * Any bytes in the range that haven't been recorded yet are copied from
+     * the page's current data, so this method must be called before the
+     * bytes are modified.
+     *
+     * @param pageData the page's current data
+     *
+     * @param position the offset of the first byte that will be changed
+     *
+     * @param length the number of bytes that will be changed
+     */
+    public void addRange(ByteBuffer pageData, int position, int length) {
+        if (length <= 0)
+            return;
+
+        int end = position + length;
+
+        // Find the first range that ends close enough to the new range to
+        // be merged with it.  Since ranges don't overlap, their ends are in
+        // the same order as their starts.
+        int first = findFirstMergeable(position);
+        int last = first;
+        while (last < ranges.size() &&
+               ranges.get(last).start <= end + MERGE_GAP) {
+            last++;
+        }
+
+        if (first == last) {
+            // No existing range is close enough to merge with.
+            byte[] oldData = new byte[length];
+            readData(pageData, position, oldData, 0, length);
+            ranges.add(first, new Range(position, oldData));
+            return;
+        }
+
+        Range firstRange = ranges.get(first);
+        if (last - first == 1 && firstRange.start <= position &&
+            firstRange.getEnd() >= end) {
+            // The range was already recorded; the common case of writing
+            // the same area of the page repeatedly.
+            return;
+        }
+
+        // Merge the new range and all nearby ranges into one range.  The
+        // bytes that weren't recorded yet haven't been changed, so they are
+        // copied from the page, and then the recorded bytes are laid over
+        // them.
+        int mergedStart = Math.min(position, firstRange.start);
+        int mergedEnd = Math.max(end, ranges.get(last - 1).getEnd());
+
+        byte[] oldData = new byte[mergedEnd - mergedStart];
+        readData(pageData, mergedStart, oldData, 0, oldData.length);
+        for (int i = first; i < last; i++) {
+            Range r = ranges.get(i);
+            System.arraycopy(r.oldData, 0, oldData, r.start - mergedStart,
+                r.oldData.length);
+        }
+
+        ranges.subList(first + 1, last).clear();
+        ranges.set(first, new Range(mergedStart, oldData));
+    }
+
+
+    /**
+     * Returns the index of the first range whose end is within
+     * {@link #MERGE_GAP} bytes of the specified position, or the number of
+     * ranges if there is no such range.
+     */
+    private int findFirstMergeable(int position) {
+        int low = 0;
+        int high = ranges.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (ranges.get(mid).getEnd() + MERGE_GAP < position)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+
+    /** Copies bytes from the page's data without changing its position. */
+    private static void readData(ByteBuffer pageData, int position,
+                                 byte[] dst, int offset, int length) {
+        ByteBuffer view = pageData.duplicate();
+        view.position(position);
+        view.get(dst, offset, length);
+    }
+
+
+    /**
+     * Returns true if no ranges have been recorded.
+     *
+     * @return true if no ranges have been recorded
+     */
+    public boolean isEmpty() {
+        return ranges.isEmpty();
+    }
+
+
+    /**
+     * Returns the changed ranges, in order of their starting offsets.  The
+     * returned list is a snapshot, so it isn't affected by later changes.
+     *
+     * @return the changed ranges, in order of their starting offsets
+     */
+    public List<Range> getRanges() {
+        return Collections.unmodifiableList(new ArrayList<>(ranges));
+    }
+
+
+    /** Forgets all of the recorded ranges. */
+    public void clear() {
+        ranges.clear();
+    }
+
+
+    @Override
+    public String toString() {
+        return "DirtyRanges" + ranges;
+    }
+}
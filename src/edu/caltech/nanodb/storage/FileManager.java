@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 
 
 /**
@@ -41,6 +42,25 @@ public interface FileManager {
     DBFile createDBFile(String filename, DBFileType type, int pageSize)
         throws IOException;
 
+    /**
+     * This method creates a new database file in the directory used by the
+     * storage manager, whose pages may be stored compressed.  Page 0 of a
+     * compressed file is never compressed.  An exception is thrown if the
+     * file already exists.
+     *
+     * @param filename the name of the file to open to create the database file
+     * @param type the type of database file being created
+     * @param pageSize the page size to use when reading and writing the file
+     * @param compressed true if the file's pages should be stored compressed
+     *
+     * @return a new database file object for the newly created file
+     *
+     * @throws IOException if the specified file already exists.
+     * @throws IllegalArgumentException if the page size is not valid
+     */
+    DBFile createDBFile(String filename, DBFileType type, int pageSize,
+                        boolean compressed) throws IOException;
+
     /**
      * Attempts to rename the specified {@link DBFile} to a new filename.
      * If successful, the {@code DBFile} object itself is updated with a new
@@ -137,6 +157,89 @@ public interface FileManager {
     void savePage(DBFile dbFile, int pageNo, byte[] buffer)
         throws IOException;
 
+    /**
+     * Loads a page from the underlying data file into the specified buffer.
+     * The data is stored starting at the buffer's position, and the buffer's
+     * position and limit may be changed by this method.  This works with
+     * both heap and direct buffers, so that page data can be read into an
+     * off-heap page frame without an intermediate copy.  The <tt>create</tt>
+     * flag behaves as for {@link #loadPage(DBFile, int, byte[], boolean)};
+     * if the page is created, the buffer is filled with zeros.
+     *
+     * @param dbFile the database file to load the page from
+     * @param pageNo the number of the page to load
+     * @param buffer the buffer to load the page into; it must have exactly
+     *        a page of space remaining
+     * @param create a flag specifying whether the page should be created if it
+     *        doesn't already exist
+     *
+     * @throws IllegalArgumentException if the page number is negative, or if
+     *         the buffer's remaining space is not the file's page-size.
+     *
+     * @throws java.io.EOFException if the requested page is not in the data file,
+     *         and the <tt>create</tt> flag is set to <tt>false</tt>.
+     */
+    void loadPage(DBFile dbFile, int pageNo, ByteBuffer buffer,
+                  boolean create) throws IOException;
+
+    /**
+     * Loads a page from the underlying data file into the specified buffer.
+     * This method always reports an {@link java.io.EOFException} if the
+     * specified page is past the end of the database file.
+     *
+     * @param dbFile the database file to load the page from
+     * @param pageNo the number of the page to load
+     * @param buffer the buffer to load the page into; it must have exactly
+     *        a page of space remaining
+     *
+     * @throws IllegalArgumentException if the page number is negative, or if
+     *         the buffer's remaining space is not the file's page-size.
+     *
+     * @throws java.io.EOFException if the requested page is not in the data file.
+     */
+    void loadPage(DBFile dbFile, int pageNo, ByteBuffer buffer)
+        throws IOException;
+
+    /**
+     * Saves a page to the DB file from the specified buffer, starting at the
+     * buffer's position.  The buffer's position may be changed by this
+     * method.  Note that the data might not actually be written to disk until
+     * a sync operation is performed.
+     *
+     * @param dbFile the data file to write to
+     * @param pageNo the page number to write the buffer to
+     * @param buffer the data to write back to the page; it must have exactly
+     *        a page of data remaining
+     *
+     * @throws IllegalArgumentException if the page number is negative, or if
+     *         the buffer's remaining data is not the file's page-size.
+     *
+     * @throws IOException if an error occurs while writing the page to disk
+     */
+    void savePage(DBFile dbFile, int pageNo, ByteBuffer buffer)
+        throws IOException;
+
+    /**
+     * Saves a run of consecutive pages to the DB file, starting with the
+     * specified page.  The pages are written with as few write operations
+     * as possible, so that writing many adjacent pages costs about as much
+     * as one large sequential write.  The buffers' positions may be changed
+     * by this method.  Note that the data might not actually be written to
+     * disk until a sync operation is performed.
+     *
+     * @param dbFile the data file to write to
+     * @param firstPageNo the page number to write the first buffer to
+     * @param buffers the data to write back to the pages; each buffer must
+     *        have exactly a page of data remaining
+     *
+     * @throws IllegalArgumentException if the page number is negative, or if
+     *         a buffer's remaining data is not the file's page-size.
+     *
+     * @throws IOException if an error occurs while writing the pages to disk
+     */
+    void savePages(DBFile dbFile, int firstPageNo, ByteBuffer[] buffers)
+        throws IOException;
+
     /**
      * This method ensures that all file-writes on the specified DB-file have
      * actually been synchronized to the disk.  Note that even after a call to
@@ -154,6 +257,19 @@ public interface FileManager {
      */
     void syncDBFile(DBFile dbFile) throws IOException;
 
+    /**
+     * Shortens the specified database file to the specified number of pages,
+     * discarding all pages past that point.  The caller must make sure that
+     * none of the discarded pages are cached.
+     *
+     * @param dbFile the database file to truncate
+     *
+     * @param numPages the number of pages to keep in the file
+     *
+     * @throws IOException if the file cannot be truncated for some reason.
+     */
+    void truncateDBFile(DBFile dbFile, int numPages) throws IOException;
+
     /**
      * Closes the underlying data file.  Obviously, subsequent read or write
      * attempts will fail after this method is called.
@@ -8,6 +8,8 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import edu.caltech.nanodb.server.performance.PerformanceCounters;
 
@@ -24,10 +26,18 @@ import edu.caltech.nanodb.server.performance.PerformanceCounters;
  *         provide higher-level operations on the Storage Manager so that we
  *         can provide global buffering capabilities in one place.
  *
- * @design This class includes no multithreading support.  It maintains no
- *         internal state, so there isn't anything that needs to be guarded,
- *         but still, other classes using this class need to be careful to
- *         maintain proper multithreading.
+ * @design Pages of compressed files are compressed by {@link PageCompressor}
+ *         as they are saved, and decompressed as they are loaded.  Each page
+ *         is stored wherever its {@link CompressedPageMap} says, rather than
+ *         at the page's offset, since compressed pages are different sizes.
+ *
+ * @design Pages are read and written with positional {@link FileChannel}
+ *         operations (<tt>pread</tt> and <tt>pwrite</tt>), which don't use
+ *         the file's shared position.  Therefore many sessions can read and
+ *         write pages of the same file at the same time.  Other classes
+ *         using this class still need to make sure that two sessions don't
+ *         write the same page at the same time; the Buffer Manager ensures
+ *         that each page is only cached once.
  */
 public class FileManagerImpl implements FileManager {
 
@@ -88,8 +98,8 @@ public class FileManagerImpl implements FileManager {
     }
 
     // Update our file-IO performance counters
-    void updateFileIOPerfStats(DBFile dbFile, int pageNo, boolean read,
-                               int bufSize) {
+    synchronized void updateFileIOPerfStats(DBFile dbFile, int pageNo,
+                                            boolean read, int bufSize) {
         if (lastFileAccessed == null || !dbFile.equals(lastFileAccessed)) {
             PerformanceCounters.inc(PerformanceCounters.STORAGE_FILE_CHANGES);
             lastPageNoAccessed = 0;
@@ -99,7 +109,8 @@ public class FileManagerImpl implements FileManager {
             // page we accessed and the current page we are accessing.  This
             // is obviously a guess, since we don't know the physical file
             // layout, or the physical sector size (it could be 4KiB too).
-            long diff = dbFile.getPageSize() * (pageNo - lastPageNoAccessed);
+            long diff =
+                (long) dbFile.getPageSize() * (pageNo - lastPageNoAccessed);
             diff /= 512;
 
             PerformanceCounters.add(
@@ -130,7 +141,7 @@ public class FileManagerImpl implements FileManager {
      *
      * @throws IllegalArgumentException if the page number is negative
      */
-    private long getPageStart(DBFile dbFile, int pageNo) {
+    long getPageStart(DBFile dbFile, int pageNo) {
         if (pageNo < 0)
             throw new IllegalArgumentException("pageNo must be >= 0, got " + pageNo);
 
@@ -151,17 +162,31 @@ public class FileManagerImpl implements FileManager {
     @Override
     public DBFile createDBFile(String filename, DBFileType type, int pageSize)
         throws IOException {
+        return createDBFile(filename, type, pageSize, false);
+    }
+
+
+    @Override
+    public DBFile createDBFile(String filename, DBFileType type, int pageSize,
+                               boolean compressed) throws IOException {
 
         File f = new File(baseDir, filename);
-        logger.debug("Creating new database file " + f + ".");
+        logger.debug("Creating new " + (compressed ? "compressed " : "") +
+            "database file " + f + ".");
         if (!f.createNewFile())
             throw new IOException("File " + f + " already exists!");
 
-        DBFile dbFile = new DBFile(f, type, pageSize);
+        CompressedPageMap pageMap = null;
+        if (compressed)
+            pageMap = CompressedPageMap.create(f, pageSize);
+
+        DBFile dbFile = new DBFile(f, type, pageSize,
+            new RandomAccessFile(f, "rw"), pageMap);
 
         byte[] buffer = new byte[pageSize];
         buffer[0] = (byte) type.getID();
-        buffer[1] = (byte) DBFile.encodePageSize(pageSize);
+        buffer[DBFile.OFFSET_PAGE_SIZE] = (byte) DBFile.encodePageSizeAndVersion(
+            pageSize, DBFile.CURRENT_FORMAT_VERSION);
 
         savePage(dbFile, 0, buffer);
 
@@ -173,6 +198,12 @@ public class FileManagerImpl implements FileManager {
     public boolean renameDBFile(DBFile dbFile, String newFilename) {
         File dataFile = dbFile.getDataFile();
         File newDataFile = new File(baseDir, newFilename);
+
+        // A compressed file's page map is renamed along with it.
+        CompressedPageMap pageMap = dbFile.getPageMap();
+        if (pageMap != null && !pageMap.renameTo(newDataFile))
+            return false;
+
         if (dataFile.renameTo(newDataFile)) {
             // Rename succeeded!
             dbFile.setDataFile(newDataFile);
@@ -180,6 +211,9 @@ public class FileManagerImpl implements FileManager {
         }
 
         // Rename failed.
+        if (pageMap != null)
+            pageMap.renameTo(dataFile);
+
         return false;
     }
 
@@ -193,26 +227,47 @@ public class FileManagerImpl implements FileManager {
 
         RandomAccessFile fileContents = new RandomAccessFile(f, "rw");
 
-        int typeID = fileContents.readUnsignedByte();
-        int pageSize = DBFile.decodePageSize(fileContents.readUnsignedByte());
-
-        DBFileType type = DBFileType.valueOf(typeID);
-        if (type == null)
-            throw new IOException("Unrecognized file type ID " + typeID);
-
+        DBFileType type;
+        int pageSize;
+        int formatVersion;
+        CompressedPageMap pageMap = null;
         DBFile dbFile;
         try {
-            dbFile = new DBFile(f, type, pageSize, fileContents);
-        } catch (IllegalArgumentException iae) {
-            throw new IOException("Invalid page size " + pageSize +
-                    " specified for data file " + f, iae);
+            int typeID = fileContents.readUnsignedByte();
+            int encoded = fileContents.readUnsignedByte();
+            try {
+                pageSize = DBFile.decodePageSizeFromHeader(encoded);
+            } catch (IllegalArgumentException iae) {
+                throw new IOException("Invalid page size specified for " +
+                    "data file " + f, iae);
+            }
+            formatVersion = DBFile.decodeFormatVersionFromHeader(encoded);
+
+            type = DBFileType.valueOf(typeID);
+            if (type == null)
+                throw new IOException("Unrecognized file type ID " + typeID);
+
+            pageMap = CompressedPageMap.open(f, pageSize);
+
+            try {
+                dbFile = new DBFile(f, type, pageSize, fileContents, pageMap);
+                dbFile.setFormatVersion(formatVersion);
+            } catch (IllegalArgumentException iae) {
+                throw new IOException("Invalid page size " + pageSize +
+                        " or format version " + formatVersion +
+                        " specified for data file " + f, iae);
+            }
         } catch (Exception e) {
             fileContents.close();
+            if (pageMap != null)
+                pageMap.close();
             throw e;
         }
 
-        logger.debug(String.format("Opened existing database file %s; " +
-            "type is %s, page size is %d.", f, type, pageSize));
+        logger.debug(String.format("Opened existing %sdatabase file %s; " +
+            "type is %s, page size is %d, format version is %d.",
+            (pageMap != null ? "compressed " : ""), f, type, pageSize,
+            formatVersion));
 
         return dbFile;
     }
@@ -221,76 +276,276 @@ public class FileManagerImpl implements FileManager {
     @Override
     public void loadPage(DBFile dbFile, int pageNo, byte[] buffer,
                          boolean create) throws IOException {
+        loadPage(dbFile, pageNo, ByteBuffer.wrap(buffer), create);
+    }
+
+
+    @Override
+    public void loadPage(DBFile dbFile, int pageNo, byte[] buffer)
+        throws IOException {
+        loadPage(dbFile, pageNo, buffer, false);
+    }
+
+
+    @Override
+    public void savePage(DBFile dbFile, int pageNo, byte[] buffer)
+        throws IOException {
+        savePage(dbFile, pageNo, ByteBuffer.wrap(buffer));
+    }
+
+
+    @Override
+    public void loadPage(DBFile dbFile, int pageNo, ByteBuffer buffer,
+                         boolean create) throws IOException {
 
         if (pageNo < 0) {
             throw new IllegalArgumentException("pageNo must be >= 0, got " +
                 pageNo);
         }
 
-        if (buffer.length != dbFile.getPageSize()) {
+        if (buffer.remaining() != dbFile.getPageSize()) {
             throw new IllegalArgumentException("Buffer has a different size" +
                 " from the specified DBFile page-size");
         }
 
+        if (dbFile.isCompressed() && pageNo > 0) {
+            loadCompressedPage(dbFile, pageNo, buffer, create);
+            return;
+        }
+
         // Update our file-IO performance counters
-        updateFileIOPerfStats(dbFile, pageNo, /* read */ true, buffer.length);
+        updateFileIOPerfStats(dbFile, pageNo, /* read */ true,
+            buffer.remaining());
         dbFile.setLastAccessedPageNo(pageNo);
 
         long pageStart = getPageStart(dbFile, pageNo);
 
-        RandomAccessFile fileContents = dbFile.getFileContents();
-        fileContents.seek(pageStart);
+        FileChannel channel = dbFile.getFileContents().getChannel();
+        int bufferStart = buffer.position();
+
+        // Positional reads don't use or change the file's position, so
+        // sessions can read pages of the same file at the same time.  Reading
+        // through the channel fills the buffer directly, even if it is a
+        // direct buffer.
+        readFully(channel, buffer, pageStart);
+
+        if (buffer.hasRemaining()) {
+            if (!create) {
+                // Caller expected the page to exist!
+                throw new EOFException("Page " + pageNo +
+                    " is past the end of file " + dbFile);
+            }
+
+            // Caller wants to create the page if it doesn't already exist
+            // yet.  Don't report the end of the file.
+
+            logger.debug(String.format(
+                "Requested page %d doesn't yet exist in file %s; creating.",
+                pageNo, dbFile.getDataFile().getName()));
+
+            // ...of course, we don't actually write the page, but we extend
+            // the file's size so that the page is reserved until it is stored
+            // back to the file...
+            long newLength = (1L + (long) pageNo) * (long) dbFile.getPageSize();
+
+            // Other sessions may be extending the file at the same time, so
+            // the file is never truncated with setLength().  Instead, the
+            // last byte of the new page is written, which only extends the
+            // file.  No other session can be writing this page, since the
+            // Buffer Manager only caches one copy of each page.
+            long oldLength = channel.size();
+            if (oldLength < newLength) {
+                channel.write(ByteBuffer.wrap(new byte[1]), newLength - 1);
+                logger.debug("Extended file " + dbFile + " length to " +
+                    newLength);
+            }
+            else {
+                // Another session extended the file past this page after we
+                // tried to read it, so read the rest of it again.
+                logger.debug("File " + dbFile + " was extended to " +
+                    oldLength + " bytes while page " + pageNo +
+                    " was being read");
+
+                readFully(channel, buffer,
+                    pageStart + buffer.position() - bufferStart);
+            }
+
+            // The new page starts out empty.
+            while (buffer.hasRemaining())
+                buffer.put((byte) 0);
+        }
+    }
+
+
+    /**
+     * Loads a page of a compressed data file, by reading the page's data from
+     * wherever the file's page map says it is stored, and decompressing it
+     * into the buffer.  The file-IO performance counters record the number
+     * of bytes actually read from the file.
+     *
+     * @param dbFile the compressed file to load the page from
+     * @param pageNo the page to load, which must not be page 0
+     * @param buffer the buffer to load the page into
+     * @param create true if the page should be created if it doesn't exist
+     *
+     * @throws EOFException if the page doesn't exist and <tt>create</tt> is
+     *         false
+     * @throws IOException if the page can't be read, or is corrupt
+     */
+    private void loadCompressedPage(DBFile dbFile, int pageNo,
+        ByteBuffer buffer, boolean create) throws IOException {
+
+        CompressedPageMap.PageLocation location =
+            dbFile.getPageMap().getLocation(pageNo, create);
+        if (location == null) {
+            // Caller expected the page to exist!
+            throw new EOFException("Page " + pageNo +
+                " is past the end of file " + dbFile);
+        }
+
+        updateFileIOPerfStats(dbFile, pageNo, /* read */ true,
+            location.length);
+        dbFile.setLastAccessedPageNo(pageNo);
+
+        int pageSize = dbFile.getPageSize();
+        if (location.length == 0) {
+            // The page is all zeros, so nothing is stored for it.
+            while (buffer.hasRemaining())
+                buffer.put((byte) 0);
+            return;
+        }
+
+        byte[] stored = new byte[location.length];
+        ByteBuffer storedBuffer = ByteBuffer.wrap(stored);
+        readFully(dbFile.getFileContents().getChannel(), storedBuffer,
+            location.getPosition());
+        if (storedBuffer.hasRemaining()) {
+            throw new EOFException("Data of page " + pageNo + " of file " +
+                dbFile + " is past the end of the file");
+        }
+
+        if (location.length == pageSize) {
+            // The page didn't compress, so it is stored as-is.
+            buffer.put(stored);
+            return;
+        }
+
+        byte[] page = new byte[pageSize];
         try {
-            fileContents.readFully(buffer);
+            PageCompressor.decompress(stored, location.length, page, pageSize);
+        }
+        catch (IOException e) {
+            throw new IOException("Couldn't decompress page " + pageNo +
+                " of file " + dbFile, e);
         }
-        catch (EOFException e) {
-            if (create) {
-                // Caller wants to create the page if it doesn't already exist
-                // yet.  Don't let the exception propagate.
-
-                logger.debug(String.format(
-                    "Requested page %d doesn't yet exist in file %s; creating.",
-                    pageNo, dbFile.getDataFile().getName()));
-
-                // ...of course, we don't propagate the exception, but we also
-                // don't actually extend the file's size until the page is
-                // stored back to the file...
-                long newLength = (1L + (long) pageNo) * (long) dbFile.getPageSize();
-
-                // This check is just for safety.  It would be highly irregular
-                // to get an EOF exception and then have the file actually be
-                // longer than we expect.  But, if it happens, we'll scream.
-                long oldLength = fileContents.length();
-                if (oldLength < newLength) {
-                    fileContents.setLength(newLength);
-                    logger.debug("Set file " + dbFile + " length to " + newLength);
-                }
-                else {
-                    String msg = "Expected DB file to be less than " +
-                        newLength + " bytes long, but it's " + oldLength +
-                        " bytes long!";
-
-                    logger.error(msg);
-                    throw new IOException(msg);
-                }
+        buffer.put(page);
+
+        PerformanceCounters.inc(PerformanceCounters.STORAGE_PAGES_DECOMPRESSED);
+    }
+
+
+    /**
+     * Saves a page of a compressed data file, by compressing the page and
+     * writing its data wherever the file's page map finds room for it.  A
+     * page is only stored compressed if that saves at least one sector;
+     * otherwise it is stored as-is.  Nothing is stored for a page of all
+     * zeros.
+     *
+     * @param dbFile the compressed file to save the page to
+     * @param pageNo the page to save, which must not be page 0
+     * @param buffer the buffer holding the page's contents
+     *
+     * @throws IOException if the page can't be written
+     */
+    private void saveCompressedPage(DBFile dbFile, int pageNo,
+        ByteBuffer buffer) throws IOException {
+
+        int pageSize = dbFile.getPageSize();
+        byte[] page = new byte[pageSize];
+        buffer.get(page);
+
+        byte[] stored = page;
+        int length = 0;
+        for (byte b : page) {
+            if (b != 0) {
+                length = pageSize;
+                break;
             }
-            else {
-                // Caller expected the page to exist!  Let the exception propagate.
-                throw e;
+        }
+
+        if (length > 0) {
+            byte[] compressed =
+                new byte[pageSize - CompressedPageMap.SECTOR_SIZE];
+            int compressedLength =
+                PageCompressor.compress(page, pageSize, compressed);
+            if (compressedLength >= 0) {
+                stored = compressed;
+                length = compressedLength;
+                PerformanceCounters.inc(
+                    PerformanceCounters.STORAGE_PAGES_COMPRESSED);
             }
         }
+
+        updateFileIOPerfStats(dbFile, pageNo, /* read */ false, length);
+        dbFile.setLastAccessedPageNo(pageNo);
+
+        CompressedPageMap pageMap = dbFile.getPageMap();
+        CompressedPageMap.PageLocation location =
+            pageMap.prepareWrite(pageNo, length);
+
+        boolean written = false;
+        try {
+            FileChannel channel = dbFile.getFileContents().getChannel();
+            ByteBuffer storedBuffer = ByteBuffer.wrap(stored, 0, length);
+            long filePosition = location.getPosition();
+            while (storedBuffer.hasRemaining())
+                filePosition += channel.write(storedBuffer, filePosition);
+
+            written = true;
+        }
+        finally {
+            if (!written)
+                pageMap.abortWrite(pageNo, location);
+        }
+
+        // The page's entry is only changed once its data has been written.
+        pageMap.finishWrite(pageNo, location);
+    }
+
+
+    /**
+     * Reads from the channel at the specified file-position until the
+     * buffer is full or the end of the file is reached.  The channel's
+     * position is not used or changed.
+     *
+     * @param channel the channel to read from
+     * @param buffer the buffer to read into
+     * @param position the file-position to start reading at
+     *
+     * @throws IOException if an IO error occurs while reading
+     */
+    private void readFully(FileChannel channel, ByteBuffer buffer,
+                           long position) throws IOException {
+        long filePosition = position;
+        while (buffer.hasRemaining()) {
+            int bytesRead = channel.read(buffer, filePosition);
+            if (bytesRead < 0)
+                break;
+
+            filePosition += bytesRead;
+        }
     }
 
 
     @Override
-    public void loadPage(DBFile dbFile, int pageNo, byte[] buffer)
+    public void loadPage(DBFile dbFile, int pageNo, ByteBuffer buffer)
         throws IOException {
         loadPage(dbFile, pageNo, buffer, false);
     }
 
 
     @Override
-    public void savePage(DBFile dbFile, int pageNo, byte[] buffer)
+    public void savePage(DBFile dbFile, int pageNo, ByteBuffer buffer)
         throws IOException {
 
         if (pageNo < 0) {
@@ -298,20 +553,84 @@ public class FileManagerImpl implements FileManager {
                 pageNo);
         }
 
-        if (buffer.length != dbFile.getPageSize()) {
+        if (buffer.remaining() != dbFile.getPageSize()) {
             throw new IllegalArgumentException("Buffer has a different size" +
                 " from the specified DBFile page-size");
         }
 
+        if (dbFile.isCompressed() && pageNo > 0) {
+            saveCompressedPage(dbFile, pageNo, buffer);
+            return;
+        }
+
         // Update our file-IO performance counters
-        updateFileIOPerfStats(dbFile, pageNo, /* read */ false, buffer.length);
+        updateFileIOPerfStats(dbFile, pageNo, /* read */ false,
+            buffer.remaining());
         dbFile.setLastAccessedPageNo(pageNo);
 
         long pageStart = getPageStart(dbFile, pageNo);
 
-        RandomAccessFile fileContents = dbFile.getFileContents();
-        fileContents.seek(pageStart);
-        fileContents.write(buffer);
+        // Positional writes don't use or change the file's position, so
+        // they need no synchronization with other sessions.
+        FileChannel channel = dbFile.getFileContents().getChannel();
+        long filePosition = pageStart;
+        while (buffer.hasRemaining())
+            filePosition += channel.write(buffer, filePosition);
+    }
+
+
+    @Override
+    public void savePages(DBFile dbFile, int firstPageNo, ByteBuffer[] buffers)
+        throws IOException {
+
+        if (firstPageNo < 0) {
+            throw new IllegalArgumentException("firstPageNo must be >= 0, got " +
+                firstPageNo);
+        }
+
+        long totalBytes = 0;
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.remaining() != dbFile.getPageSize()) {
+                throw new IllegalArgumentException("Buffer has a different " +
+                    "size from the specified DBFile page-size");
+            }
+            totalBytes += buffer.remaining();
+        }
+
+        if (buffers.length == 0)
+            return;
+
+        if (dbFile.isCompressed()) {
+            // Compressed pages aren't stored next to each other in the file,
+            // so each page is written on its own.
+            for (int i = 0; i < buffers.length; i++)
+                savePage(dbFile, firstPageNo + i, buffers[i]);
+
+            return;
+        }
+
+        // Update our file-IO performance counters
+        for (int i = 0; i < buffers.length; i++) {
+            updateFileIOPerfStats(dbFile, firstPageNo + i, /* read */ false,
+                dbFile.getPageSize());
+        }
+        dbFile.setLastAccessedPageNo(firstPageNo + buffers.length - 1);
+
+        if (buffers.length > 1)
+            PerformanceCounters.inc(PerformanceCounters.STORAGE_GATHERING_WRITES);
+
+        long pageStart = getPageStart(dbFile, firstPageNo);
+
+        // FileChannel has no positional gathering write, so this write uses
+        // the channel's position.  Every other read and write is positional,
+        // so they don't interfere with it, but two gathering writes to the
+        // same file must not move the position at the same time.
+        FileChannel channel = dbFile.getFileContents().getChannel();
+        synchronized (channel) {
+            channel.position(pageStart);
+            while (totalBytes > 0)
+                totalBytes -= channel.write(buffers);
+        }
     }
 
 
@@ -319,6 +638,29 @@ public class FileManagerImpl implements FileManager {
     public void syncDBFile(DBFile dbFile) throws IOException {
         logger.info("Synchronizing database file to disk:  " + dbFile);
         dbFile.getFileContents().getFD().sync();
+
+        // The page map is synced after the data file, so that it never
+        // refers to data that hasn't reached the disk.
+        if (dbFile.isCompressed())
+            dbFile.getPageMap().sync();
+    }
+
+
+    @Override
+    public void truncateDBFile(DBFile dbFile, int numPages) throws IOException {
+        logger.info(String.format("Truncating database file %s to %d pages.",
+            dbFile, numPages));
+
+        if (dbFile.isCompressed()) {
+            // The extents of the removed pages can be anywhere in the file,
+            // so they are freed for reuse rather than cut off.
+            dbFile.getPageMap().truncate(numPages);
+            return;
+        }
+
+        long length = (long) numPages * (long) dbFile.getPageSize();
+        if (length < dbFile.getFileContents().length())
+            dbFile.getFileContents().setLength(length);
     }
 
 
@@ -330,6 +672,8 @@ public class FileManagerImpl implements FileManager {
 
         logger.info("Closing database file:  " + dbFile);
         dbFile.getFileContents().close();
+        if (dbFile.isCompressed())
+            dbFile.getPageMap().close();
     }
 
 
@@ -345,6 +689,13 @@ public class FileManagerImpl implements FileManager {
     public void deleteDBFile(File f) throws IOException {
         if (!f.delete())
             throw new IOException("Couldn't delete file \"" + f.getName() + "\".");
+
+        // Compressed files also have a page map to delete.
+        File mapFile = CompressedPageMap.getMapFile(f);
+        if (mapFile.exists() && !mapFile.delete()) {
+            throw new IOException("Couldn't delete file \"" +
+                mapFile.getName() + "\".");
+        }
     }
 
 
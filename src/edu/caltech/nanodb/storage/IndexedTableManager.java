@@ -9,6 +9,9 @@ import edu.caltech.nanodb.relations.TableInfo;
 import edu.caltech.nanodb.relations.TableSchema;
 import edu.caltech.nanodb.storage.freespacemap.FreeSpaceMapFile;
 import edu.caltech.nanodb.storage.freespacemap.FreeSpaceMapFileManager;
+import edu.caltech.nanodb.storage.hashfile.HashTupleFileManager;
+import edu.caltech.nanodb.storage.heapfile.HeapTupleFile;
+import edu.caltech.nanodb.storage.heapfile.ZoneMapFile;
 import org.apache.log4j.Logger;
 
 import java.io.File;
@@ -63,6 +66,28 @@ public class IndexedTableManager implements TableManager {
         return tableName + ".fsm";
     }
 
+    /**
+     * This method takes a table name and returns a filename string that
+     * specifies where the table's out-of-line values are stored.
+     *
+     * @param tableName the name of the table to get the filename of
+     * @return the name of the file that holds the table's out-of-line values
+     */
+    private String getOverflowFileName(String tableName) {
+        return tableName + ".ovf";
+    }
+
+    /**
+     * This method takes a table name and returns a filename string that
+     * specifies where the table's zone map is stored.
+     *
+     * @param tableName the name of the table to get the filename of
+     * @return the name of the file that holds the table's zone map
+     */
+    private String getZoneMapFileName(String tableName) {
+        return tableName + ".zmp";
+    }
+
     @Override
     public ArrayList<String> getTables() {
         ArrayList<String> tableNames = new ArrayList<String>();
@@ -99,16 +124,25 @@ public class IndexedTableManager implements TableManager {
 
         int pageSize = StorageManager.getCurrentPageSize();
         String storageType = "heap";
+        String compression = "none";
+        String zoneMap = "off";
+        String hashKey = null;
 
         if (properties != null) {
             logger.info("Using command properties " + properties);
 
             pageSize = properties.getInt("pagesize", pageSize);
             storageType = properties.getString("storage", storageType);
+            compression = properties.getString("compression", compression);
+            zoneMap = properties.getString("zonemap", zoneMap);
+            hashKey = properties.getString("hashkey", hashKey);
 
             HashSet<String> names = new HashSet<>(properties.getNames());
             names.remove("pagesize");
             names.remove("storage");
+            names.remove("compression");
+            names.remove("zonemap");
+            names.remove("hashkey");
             if (!names.isEmpty()) {
                 throw new IllegalArgumentException("Unrecognized property " +
                     "name(s) specified:  " + names);
@@ -123,15 +157,71 @@ public class IndexedTableManager implements TableManager {
         else if ("btree".equals(storageType)) {
             type = DBFileType.BTREE_TUPLE_FILE;
         }
+        else if ("column".equals(storageType)) {
+            type = DBFileType.COLUMNAR_TUPLE_FILE;
+        }
+        else if ("hash".equals(storageType)) {
+            type = DBFileType.HASH_TUPLE_FILE;
+        }
         else {
             throw new IllegalArgumentException("Unrecognized table file " +
                 "type:  " + storageType);
         }
 
+        // Only the tuple file is compressed, since the free space map is
+        // small, and the overflow file holds values that are large enough
+        // to be worth compressing on their own.
+        final boolean compressed;
+        if ("none".equals(compression)) {
+            compressed = false;
+        }
+        else if ("lz".equals(compression)) {
+            compressed = true;
+        }
+        else {
+            throw new IllegalArgumentException("Unrecognized table " +
+                "compression:  " + compression);
+        }
+
+        final boolean hasZoneMap;
+        if ("off".equals(zoneMap)) {
+            hasZoneMap = false;
+        }
+        else if ("on".equals(zoneMap)) {
+            if (type != DBFileType.HEAP_TUPLE_FILE) {
+                throw new IllegalArgumentException("Zone maps are only " +
+                    "supported for heap tables");
+            }
+            hasZoneMap = true;
+        }
+        else {
+            throw new IllegalArgumentException("Unrecognized table " +
+                "zone map setting:  " + zoneMap);
+        }
+
+        // Hash tables are hashed on the columns named by the hashkey property.
+        int[] hashKeyColumns = null;
+        if (type == DBFileType.HASH_TUPLE_FILE) {
+            if (hashKey == null) {
+                throw new IllegalArgumentException("Hash tables must specify " +
+                    "their hash-key columns with the hashkey property");
+            }
+
+            ArrayList<String> keyNames = new ArrayList<>();
+            for (String name : hashKey.split(","))
+                keyNames.add(name.trim().toUpperCase());
+            hashKeyColumns = schema.getColumnIndexes(keyNames);
+        }
+        else if (hashKey != null) {
+            throw new IllegalArgumentException("The hashkey property is " +
+                "only supported for hash tables");
+        }
+
         // First, create a new DBFile that the tuple file will go into.
         FileManager fileManager = storageManager.getFileManager();
         String tblFileName = getTableFileName(tableName);
-        DBFile tableDbFile = fileManager.createDBFile(tblFileName, type, pageSize);
+        DBFile tableDbFile = fileManager.createDBFile(tblFileName, type,
+            pageSize, compressed);
 
         logger.debug("Created new DBFile for table " + tableName +
                 " at path " + tableDbFile.getDataFile());
@@ -139,7 +229,14 @@ public class IndexedTableManager implements TableManager {
         // Now, initialize it to be a tuple file with the specified type and
         // schema.
         TupleFileManager tupleFileManager = storageManager.getTupleFileManager(type);
-        TupleFile tupleFile = tupleFileManager.createTupleFile(tableDbFile, schema);
+        TupleFile tupleFile;
+        if (hashKeyColumns != null) {
+            tupleFile = ((HashTupleFileManager) tupleFileManager).createTupleFile(
+                tableDbFile, schema, hashKeyColumns);
+        }
+        else {
+            tupleFile = tupleFileManager.createTupleFile(tableDbFile, schema);
+        }
 
         // Create a free space map DB file
         String freeSpaceMapFileName = getFreeSpaceMapFileName(tableName);
@@ -151,14 +248,112 @@ public class IndexedTableManager implements TableManager {
         FreeSpaceMapFile fsmFile =  fsmFileManager.createFreeSpaceMapFile(freeSpaceDbFile);
         tupleFile.setFsmFile(fsmFile);
 
+        // Heap files store large values out of line in an overflow file.
+        OverflowFile overflowFile = null;
+        if (type == DBFileType.HEAP_TUPLE_FILE)
+            overflowFile = createOverflowFile(tableName, pageSize);
+        tupleFile.setOverflowFile(overflowFile);
+
+        // Heap files may also keep the range of values in each page.
+        ZoneMapFile zoneMapFile = null;
+        if (hasZoneMap) {
+            zoneMapFile = createZoneMapFile(tableName, schema, pageSize);
+            ((HeapTupleFile) tupleFile).setZoneMapFile(zoneMapFile);
+        }
+
         // Cache this table since it's now considered "open".
         TableInfo tableInfo = new TableInfo(tableName, tupleFile, fsmFile);
+        tableInfo.setOverflowFile(overflowFile);
+        tableInfo.setZoneMapFile(zoneMapFile);
         openTables.put(tableName, tableInfo);
 
         return tableInfo;
     }
 
 
+    /**
+     * Creates a new overflow file for the specified table.
+     *
+     * @param tableName the name of the table
+     * @param pageSize the page size of the table's tuple file
+     *
+     * @return the new overflow file
+     *
+     * @throws IOException if the file can't be created
+     */
+    private OverflowFile createOverflowFile(String tableName, int pageSize)
+        throws IOException {
+
+        FileManager fileManager = storageManager.getFileManager();
+        DBFile overflowDbFile = fileManager.createDBFile(
+            getOverflowFileName(tableName), DBFileType.OVERFLOW_FILE, pageSize);
+        logger.debug("Created new overflow DBFile for table " + tableName +
+                " at path " + overflowDbFile.getDataFile());
+
+        return OverflowFile.createOverflowFile(storageManager, overflowDbFile);
+    }
+
+
+    /**
+     * Creates a new zone map file for the specified table.
+     *
+     * @param tableName the name of the table
+     * @param schema the schema of the table
+     * @param pageSize the page size of the table's tuple file
+     *
+     * @return the new zone map file
+     *
+     * @throws IOException if the file can't be created
+     */
+    private ZoneMapFile createZoneMapFile(String tableName, TableSchema schema,
+        int pageSize) throws IOException {
+
+        FileManager fileManager = storageManager.getFileManager();
+        DBFile zoneMapDbFile = fileManager.createDBFile(
+            getZoneMapFileName(tableName), DBFileType.ZONE_MAP_FILE, pageSize);
+        logger.debug("Created new zone map DBFile for table " + tableName +
+                " at path " + zoneMapDbFile.getDataFile());
+
+        return ZoneMapFile.createZoneMapFile(storageManager, zoneMapDbFile,
+            schema);
+    }
+
+
+    /**
+     * Opens the zone map file of the specified heap table.  If the file
+     * doesn't match the table's schema, it is replaced with a new zone map
+     * that is rebuilt from the table's pages.
+     *
+     * @param tableName the name of the table
+     * @param tupleFile the table's tuple file
+     *
+     * @return the table's zone map file
+     *
+     * @throws IOException if the file can't be opened or rebuilt
+     */
+    private ZoneMapFile openZoneMapFile(String tableName,
+        HeapTupleFile tupleFile) throws IOException {
+
+        String zoneMapFileName = getZoneMapFileName(tableName);
+        ZoneMapFile zoneMapFile =
+            storageManager.openZoneMapFile(zoneMapFileName, tupleFile.getSchema());
+        if (zoneMapFile.checkLayout())
+            return zoneMapFile;
+
+        logger.warn("Zone map for table " + tableName +
+            " doesn't match the table - rebuilding.");
+        storageManager.getFileManager().closeDBFile(zoneMapFile.getDBFile());
+        storageManager.getFileManager().deleteDBFile(zoneMapFileName);
+
+        zoneMapFile = createZoneMapFile(tableName, tupleFile.getSchema(),
+            tupleFile.getDBFile().getPageSize());
+        tupleFile.setZoneMapFile(zoneMapFile);
+        tupleFile.analyze();
+
+        return zoneMapFile;
+    }
+
+
     // Inherit interface docs.
     @Override
     public void saveTableInfo(TableInfo tableInfo) throws IOException {
@@ -232,7 +427,33 @@ public class IndexedTableManager implements TableManager {
 
         tupleFile.setFsmFile(fsmFile);
 
+        // Heap files store large values out of line in an overflow file.
+        // Tables created before overflow files existed don't have one yet.
+        OverflowFile overflowFile = null;
+        if (tupleFile.getDBFile().getType() == DBFileType.HEAP_TUPLE_FILE) {
+            String overflowFileName = getOverflowFileName(tableName);
+            if (storageManager.getFileManager().fileExists(overflowFileName)) {
+                overflowFile = storageManager.openOverflowFile(overflowFileName);
+            }
+            else {
+                overflowFile = createOverflowFile(tableName,
+                    tupleFile.getDBFile().getPageSize());
+            }
+        }
+        tupleFile.setOverflowFile(overflowFile);
+
+        // Only tables that were created with a zone map have one.
+        ZoneMapFile zoneMapFile = null;
+        if (tupleFile.getDBFile().getType() == DBFileType.HEAP_TUPLE_FILE &&
+            storageManager.getFileManager().fileExists(getZoneMapFileName(tableName))) {
+            HeapTupleFile heapFile = (HeapTupleFile) tupleFile;
+            zoneMapFile = openZoneMapFile(tableName, heapFile);
+            heapFile.setZoneMapFile(zoneMapFile);
+        }
+
         tableInfo = new TableInfo(tableName, tupleFile, fsmFile);
+        tableInfo.setOverflowFile(overflowFile);
+        tableInfo.setZoneMapFile(zoneMapFile);
 
         // Cache this table since it's now considered "open".
         openTables.put(tableName, tableInfo);
@@ -261,11 +482,33 @@ public class IndexedTableManager implements TableManager {
         DBFile tableDbFile = tableInfo.getTupleFile().getDBFile();
         DBFile freeSpaceMapDbFile = tableInfo.getFreeSpaceMapFile().getDBFile();
 
+        // Stop prefetching pages of the table, so that no pages are loaded
+        // after the table's pages are flushed.
+        PagePrefetcher prefetcher = storageManager.getPagePrefetcher();
+        prefetcher.fileClosed(tableDbFile);
+        prefetcher.fileClosed(freeSpaceMapDbFile);
+
         // Flush all open pages for the table.
         storageManager.getBufferManager().flushDBFile(tableDbFile);
         storageManager.getFileManager().closeDBFile(tableDbFile);
         storageManager.getBufferManager().flushDBFile(freeSpaceMapDbFile);
         storageManager.getFileManager().closeDBFile(freeSpaceMapDbFile);
+
+        OverflowFile overflowFile = tableInfo.getOverflowFile();
+        if (overflowFile != null) {
+            DBFile overflowDbFile = overflowFile.getDBFile();
+            prefetcher.fileClosed(overflowDbFile);
+            storageManager.getBufferManager().flushDBFile(overflowDbFile);
+            storageManager.getFileManager().closeDBFile(overflowDbFile);
+        }
+
+        ZoneMapFile zoneMapFile = tableInfo.getZoneMapFile();
+        if (zoneMapFile != null) {
+            DBFile zoneMapDbFile = zoneMapFile.getDBFile();
+            prefetcher.fileClosed(zoneMapDbFile);
+            storageManager.getBufferManager().flushDBFile(zoneMapDbFile);
+            storageManager.getFileManager().closeDBFile(zoneMapDbFile);
+        }
     }
 
     // Inherit interface docs.
@@ -293,6 +536,14 @@ public class IndexedTableManager implements TableManager {
 
         storageManager.getFileManager().deleteDBFile(tblFileName);
         storageManager.getFileManager().deleteDBFile(freeSpaceMapFileName);
+
+        String overflowFileName = getOverflowFileName(tableName);
+        if (storageManager.getFileManager().fileExists(overflowFileName))
+            storageManager.getFileManager().deleteDBFile(overflowFileName);
+
+        String zoneMapFileName = getZoneMapFileName(tableName);
+        if (storageManager.getFileManager().fileExists(zoneMapFileName))
+            storageManager.getFileManager().deleteDBFile(zoneMapFileName);
     }
 
 
@@ -0,0 +1,179 @@
+package edu.caltech.nanodb.storage;
+
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * <p>
+ * This class implements the LRU-K page replacement policy with K = 2, as
+ * described by O'Neil, O'Neil and Weikum in "The LRU-K Page Replacement
+ * Algorithm for Database Disk Buffering."  The policy remembers the times of
+ * the last two accesses to each page, and evicts the page whose second most
+ * recent access is oldest.  Pages that have only been accessed once have no
+ * second most recent access, so they are evicted before any page that has
+ * been reused; ties between them are broken by evicting the least recently
+ * used page.  This keeps sequential scans from flushing out frequently used
+ * pages.
+ * </p>
+ * <p>
+ * The access history of evicted pages is retained for a while, so that a
+ * page that is evicted and then quickly loaded again is recognized as being
+ * reused.
+ * </p>
+ *
+ * @design Choosing a victim examines every unpinned page in the partition.
+ *         Partitions are small, so this is simpler than keeping the pages in
+ *         a priority queue that must be updated on every access.  Pinned
+ *         pages are set aside when a search finds them, so they aren't
+ *         examined again until they are unpinned.
+ */
+public class LRUKReplacementPolicy implements PageReplacementPolicy {
+
+    /** The number of accesses remembered for each page. */
+    public static final int K = 2;
+
+
+    /**
+     * The number of evicted pages whose history is retained, as a multiple
+     * of the resident pages.
+     */
+    private static final int RETAINED_HISTORY_FACTOR = 1;
+
+
+    /** The minimum number of evicted pages whose history is retained. */
+    private static final int MIN_RETAINED_HISTORY = 16;
+
+
+    /**
+     * A logical clock that is advanced on every access, so that accesses can
+     * be ordered.
+     */
+    private long clock;
+
+
+    /**
+     * The access history of each resident page.  Element 0 is the time of the
+     * most recent access, and element <tt>K-1</tt> is the time of the
+     * <tt>K</tt>th most recent access, or 0 if the page hasn't been accessed
+     * that many times.
+     */
+    private HashMap<DBPage, long[]> history = new HashMap<>();
+
+
+    /**
+     * The access history of resident pages that were set aside because they
+     * were pinned.
+     */
+    private HashMap<DBPage, long[]> pinnedHistory = new HashMap<>();
+
+
+    /** The access history of recently evicted pages, oldest first. */
+    private LinkedHashMap<ReplacementPolicies.PageKey, long[]> retained =
+        new LinkedHashMap<>();
+
+
+    /** Records an access in the specified access history. */
+    private void recordAccess(long[] times) {
+        System.arraycopy(times, 0, times, 1, K - 1);
+        times[0] = ++clock;
+    }
+
+
+    @Override
+    public void pageAdded(DBPage dbPage) {
+        long[] times = retained.remove(new ReplacementPolicies.PageKey(dbPage));
+        if (times == null)
+            times = new long[K];
+
+        recordAccess(times);
+        history.put(dbPage, times);
+    }
+
+
+    @Override
+    public void pageAccessed(DBPage dbPage) {
+        long[] times = history.get(dbPage);
+        if (times == null)
+            times = pinnedHistory.get(dbPage);
+
+        if (times != null)
+            recordAccess(times);
+    }
+
+
+    @Override
+    public void pageRemoved(DBPage dbPage) {
+        long[] times = history.remove(dbPage);
+        if (times == null)
+            times = pinnedHistory.remove(dbPage);
+
+        if (times == null)
+            return;
+
+        retained.put(new ReplacementPolicies.PageKey(dbPage), times);
+
+        int maxRetained = Math.max(MIN_RETAINED_HISTORY,
+            size() * RETAINED_HISTORY_FACTOR);
+
+        Iterator<ReplacementPolicies.PageKey> iter =
+            retained.keySet().iterator();
+        while (retained.size() > maxRetained) {
+            iter.next();
+            iter.remove();
+        }
+    }
+
+
+    @Override
+    public void pageUnpinned(DBPage dbPage) {
+        long[] times = pinnedHistory.remove(dbPage);
+        if (times != null)
+            history.put(dbPage, times);
+    }
+
+
+    @Override
+    public DBPage chooseVictim(Collection<DBPage> skip) {
+        DBPage victim = null;
+        long[] victimTimes = null;
+
+        Iterator<Map.Entry<DBPage, long[]>> entries =
+            history.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<DBPage, long[]> entry = entries.next();
+            DBPage dbPage = entry.getKey();
+            long[] times = entry.getValue();
+
+            if (dbPage.setAsideIfPinned()) {
+                entries.remove();
+                pinnedHistory.put(dbPage, times);
+                continue;
+            }
+
+            if (ReplacementPolicies.isSkipped(dbPage, skip))
+                continue;
+
+            // The page with the oldest Kth access has the largest backward
+            // K-distance.  Break ties with the oldest most recent access.
+            if (victim == null || times[K - 1] < victimTimes[K - 1] ||
+                (times[K - 1] == victimTimes[K - 1] &&
+                 times[0] < victimTimes[0])) {
+                victim = dbPage;
+                victimTimes = times;
+            }
+        }
+
+        return victim;
+    }
+
+
+    @Override
+    public int size() {
+        return history.size() + pinnedHistory.size();
+    }
+}
@@ -0,0 +1,86 @@
+package edu.caltech.nanodb.storage;
+
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+
+/**
+ * This class implements the least-recently-used page replacement policy.  It
+ * is also used for the first-in first-out policy, which is the same as LRU
+ * except that accessing a page doesn't affect its position in the ordering.
+ * A page that is set aside because it was pinned when it reached the front
+ * of the ordering rejoins the ordering at the end when it is unpinned.
+ */
+public class LRUReplacementPolicy implements PageReplacementPolicy {
+
+    /**
+     * The pages that are candidates for eviction, with the best candidate
+     * first.  The values are unused.
+     */
+    private LinkedHashMap<DBPage, Boolean> pages;
+
+
+    /** The pages that were set aside because they were pinned. */
+    private HashMap<DBPage, Boolean> pinnedPages = new HashMap<>();
+
+
+    /**
+     * Constructs a new LRU policy, or a FIFO policy if {@code accessOrder}
+     * is false.
+     *
+     * @param accessOrder true if accessing a page should move it to the end
+     *        of the ordering (LRU), or false if pages stay in the order they
+     *        were added (FIFO).
+     */
+    public LRUReplacementPolicy(boolean accessOrder) {
+        pages = new LinkedHashMap<>(16, 0.75f, accessOrder);
+    }
+
+
+    /** Constructs a new LRU policy. */
+    public LRUReplacementPolicy() {
+        this(true);
+    }
+
+
+    @Override
+    public void pageAdded(DBPage dbPage) {
+        pages.put(dbPage, Boolean.TRUE);
+    }
+
+
+    @Override
+    public void pageAccessed(DBPage dbPage) {
+        // In an access-ordered map, this moves the page to the end.
+        pages.get(dbPage);
+    }
+
+
+    @Override
+    public void pageRemoved(DBPage dbPage) {
+        if (pages.remove(dbPage) == null)
+            pinnedPages.remove(dbPage);
+    }
+
+
+    @Override
+    public void pageUnpinned(DBPage dbPage) {
+        if (pinnedPages.remove(dbPage) != null)
+            pages.put(dbPage, Boolean.TRUE);
+    }
+
+
+    @Override
+    public DBPage chooseVictim(Collection<DBPage> skip) {
+        return ReplacementPolicies.firstEvictable(pages, pinnedPages,
+            Boolean.TRUE, skip);
+    }
+
+
+    @Override
+    public int size() {
+        return pages.size() + pinnedPages.size();
+    }
+}
@@ -0,0 +1,267 @@
+package edu.caltech.nanodb.storage;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * <p>
+ * This file manager reads and writes pages through memory-mapped views of
+ * the data files, instead of issuing a <tt>seek</tt> and a <tt>read</tt> or
+ * <tt>write</tt> system call for every page.  Loading a page that is in the
+ * operating system's page cache is then just a copy from the mapping into
+ * the page's buffer, so read-mostly tables that fit in memory are served
+ * without any system calls at all.
+ * </p>
+ * <p>
+ * Each data file is mapped in chunks of {@link #CHUNK_SIZE} bytes, which are
+ * mapped the first time one of their pages is accessed.  Since every valid
+ * page size divides the chunk size, a page never straddles two chunks.  The
+ * last chunk of a file only covers the pages that currently exist, since
+ * mapping past the end of a file would grow the file.  When a file grows,
+ * its last chunk is mapped again to cover the new pages.  Pages past the end
+ * of the file are created and written by {@link FileManagerImpl}.
+ * </p>
+ * <p>
+ * The pages of compressed files aren't stored at their offsets within the
+ * file, so they can't be accessed through mappings; they are also loaded and
+ * saved by {@link FileManagerImpl}.
+ * </p>
+ * <p>
+ * This file manager is used when the <tt>nanodb.filemanager</tt> property is
+ * set to "<tt>mmap</tt>"; see {@link StorageManager#PROP_FILEMANAGER}.
+ * </p>
+ *
+ * @design Changes written into a mapping reach the file when the operating
+ *         system decides to write them, or when {@link #syncDBFile} forces
+ *         them out.  This is the same guarantee that regular writes have,
+ *         since they also only reach the operating system's page cache.
+ *
+ * @design Java provides no way to unmap a file, so closing a data file just
+ *         discards its mappings, and the memory is released when the
+ *         mappings are garbage-collected.
+ */
+public class MappedFileManager extends FileManagerImpl {
+
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(MappedFileManager.class);
+
+
+    /**
+     * The size of each mapped chunk of a data file, in bytes.  This must be
+     * a multiple of {@link DBFile#MAX_PAGESIZE}.
+     */
+    public static final int CHUNK_SIZE = 16 * DBFile.MAX_PAGESIZE;
+
+
+    /** The chunks of a single data file that have been mapped so far. */
+    private static class FileMapping {
+        /**
+         * The mapped chunks of the file, indexed by chunk number.  Chunks
+         * that haven't been mapped yet are <tt>null</tt>.
+         */
+        ArrayList<MappedByteBuffer> chunks = new ArrayList<>();
+    }
+
+
+    /**
+     * The mappings of each open data file.  The mappings are keyed on the
+     * file's {@link RandomAccessFile} rather than on the {@link DBFile},
+     * since a {@code DBFile}'s hash-code changes when the file is renamed,
+     * and the same file may be opened more than once.
+     */
+    private ConcurrentHashMap<RandomAccessFile, FileMapping> mappings =
+        new ConcurrentHashMap<>();
+
+
+    /**
+     * Create a file-manager instance that uses the specified base directory.
+     *
+     * @param baseDir the base-directory that the file-manager should use
+     */
+    public MappedFileManager(File baseDir) {
+        super(baseDir);
+    }
+
+
+    /**
+     * Returns a view of the specified page within the file's mapping, or
+     * <tt>null</tt> if the page is past the end of the file.
+     *
+     * @param dbFile the file to access
+     * @param pageNo the page to access
+     *
+     * @return a buffer whose position is the start of the page, and whose
+     *         limit is the end of the page, or <tt>null</tt> if the page
+     *         doesn't exist yet
+     *
+     * @throws IOException if the file's length can't be read, or the file
+     *         can't be mapped
+     */
+    private ByteBuffer getPageView(DBFile dbFile, int pageNo)
+        throws IOException {
+
+        int pageSize = dbFile.getPageSize();
+        long pageStart = getPageStart(dbFile, pageNo);
+
+        int chunkNo = (int) (pageStart / CHUNK_SIZE);
+        int chunkOffset = (int) (pageStart % CHUNK_SIZE);
+
+        RandomAccessFile fileContents = dbFile.getFileContents();
+        FileMapping mapping = mappings.computeIfAbsent(fileContents,
+            f -> new FileMapping());
+
+        MappedByteBuffer chunk;
+        synchronized (mapping) {
+            ArrayList<MappedByteBuffer> chunks = mapping.chunks;
+            chunk = (chunkNo < chunks.size()) ? chunks.get(chunkNo) : null;
+
+            if (chunk == null || chunk.capacity() < chunkOffset + pageSize) {
+                // The chunk hasn't been mapped yet, or the file has grown
+                // since the chunk was mapped.
+                FileChannel channel = fileContents.getChannel();
+                long chunkStart = (long) chunkNo * CHUNK_SIZE;
+                long mapSize = Math.min(CHUNK_SIZE,
+                    channel.size() - chunkStart);
+
+                if (mapSize < chunkOffset + pageSize)
+                    return null;
+
+                logger.debug(String.format("Mapping %d bytes of file %s " +
+                    "starting at offset %d.", mapSize, dbFile, chunkStart));
+
+                chunk = channel.map(FileChannel.MapMode.READ_WRITE,
+                    chunkStart, mapSize);
+
+                while (chunks.size() <= chunkNo)
+                    chunks.add(null);
+                chunks.set(chunkNo, chunk);
+            }
+        }
+
+        // Each caller gets its own view, so that concurrent page accesses
+        // don't interfere with each other's positions.
+        ByteBuffer view = chunk.duplicate();
+        view.limit(chunkOffset + pageSize).position(chunkOffset);
+        return view;
+    }
+
+
+    @Override
+    public void loadPage(DBFile dbFile, int pageNo, ByteBuffer buffer,
+                         boolean create) throws IOException {
+
+        if (buffer.remaining() != dbFile.getPageSize()) {
+            throw new IllegalArgumentException("Buffer has a different size" +
+                " from the specified DBFile page-size");
+        }
+
+        ByteBuffer view = null;
+        if (!dbFile.isCompressed())
+            view = getPageView(dbFile, pageNo);
+
+        if (view == null) {
+            // The page is past the end of the file, or is compressed.
+            super.loadPage(dbFile, pageNo, buffer, create);
+            return;
+        }
+
+        // Update our file-IO performance counters
+        updateFileIOPerfStats(dbFile, pageNo, /* read */ true,
+            buffer.remaining());
+        dbFile.setLastAccessedPageNo(pageNo);
+
+        buffer.put(view);
+    }
+
+
+    @Override
+    public void savePage(DBFile dbFile, int pageNo, ByteBuffer buffer)
+        throws IOException {
+
+        if (buffer.remaining() != dbFile.getPageSize()) {
+            throw new IllegalArgumentException("Buffer has a different size" +
+                " from the specified DBFile page-size");
+        }
+
+        ByteBuffer view = null;
+        if (!dbFile.isCompressed())
+            view = getPageView(dbFile, pageNo);
+
+        if (view == null) {
+            // The page is past the end of the file, so writing it will grow
+            // the file.  The mapping is extended the next time it is used.
+            // Compressed pages are always written by the superclass.
+            super.savePage(dbFile, pageNo, buffer);
+            return;
+        }
+
+        // Update our file-IO performance counters
+        updateFileIOPerfStats(dbFile, pageNo, /* read */ false,
+            buffer.remaining());
+        dbFile.setLastAccessedPageNo(pageNo);
+
+        view.put(buffer);
+    }
+
+
+    /**
+     * Saves a run of consecutive pages by copying each page into the file's
+     * mapping.  Since copying into a mapping involves no system calls, there
+     * is nothing to gain by combining the pages into one write.
+     */
+    @Override
+    public void savePages(DBFile dbFile, int firstPageNo, ByteBuffer[] buffers)
+        throws IOException {
+
+        for (int i = 0; i < buffers.length; i++)
+            savePage(dbFile, firstPageNo + i, buffers[i]);
+    }
+
+
+    @Override
+    public void syncDBFile(DBFile dbFile) throws IOException {
+        FileMapping mapping = mappings.get(dbFile.getFileContents());
+        if (mapping != null) {
+            synchronized (mapping) {
+                for (MappedByteBuffer chunk : mapping.chunks) {
+                    if (chunk != null)
+                        chunk.force();
+                }
+            }
+        }
+
+        super.syncDBFile(dbFile);
+    }
+
+
+    /**
+     * Truncates the file after discarding its mappings, since pages past the
+     * new end of the file can't be accessed through the old mappings.  The
+     * file's remaining pages are mapped again the next time they are used.
+     */
+    @Override
+    public void truncateDBFile(DBFile dbFile, int numPages) throws IOException {
+        syncDBFile(dbFile);
+        mappings.remove(dbFile.getFileContents());
+
+        super.truncateDBFile(dbFile, numPages);
+    }
+
+
+    @Override
+    public void closeDBFile(DBFile dbFile) throws IOException {
+        // This syncs the file's mappings before closing the file.
+        super.closeDBFile(dbFile);
+        mappings.remove(dbFile.getFileContents());
+    }
+}
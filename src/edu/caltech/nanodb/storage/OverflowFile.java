@@ -0,0 +1,346 @@
+package edu.caltech.nanodb.storage;
+
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.expressions.TypeConverter;
+import edu.caltech.nanodb.relations.ColumnType;
+import edu.caltech.nanodb.relations.SQLDataType;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+
+
+/**
+ * <p>
+ * This class stores large column values out of line, in chains of pages
+ * that are kept in a file alongside a table's tuple file.  When a value is
+ * too large to be stored comfortably in a tuple, the value is written into
+ * a chain of overflow pages, and the tuple stores an {@link OverflowValue}
+ * that references the chain instead.  {@link PageTuple#getColumnValue}
+ * follows the reference only when the column is actually read, so scans that
+ * don't use a wide column never load its overflow pages.
+ * </p>
+ * <p>
+ * The header page of an overflow file is laid out as follows:
+ * </p>
+ * <ul>
+ *   <li>The file-type and encoded page size are stored in bytes 0 and 1, as
+ *       in all data files.</li>
+ *   <li>The number of pages in the file, including the header page, is
+ *       stored as a signed 32-bit value at {@link #OFFSET_NUM_PAGES}.  The
+ *       file's length doesn't reflect pages that haven't been written yet,
+ *       so the count is tracked here instead.</li>
+ *   <li>The first page of the list of free pages is stored as a signed
+ *       32-bit value at {@link #OFFSET_FIRST_FREE_PAGE}, or 0 if there are
+ *       no free pages.</li>
+ * </ul>
+ * <p>
+ * Every other page holds part of one value, and is laid out as follows:
+ * </p>
+ * <ul>
+ *   <li>The next page of the chain is stored as a signed 32-bit value at
+ *       {@link #OFFSET_NEXT_PAGE_NO}, or 0 if this is the last page of the
+ *       chain.  Free pages are chained together in the same way.</li>
+ *   <li>The number of bytes of the value stored in this page is stored as
+ *       an unsigned 16-bit value at {@link #OFFSET_DATA_LENGTH}.</li>
+ *   <li>The bytes of the value start at {@link #OFFSET_DATA}.</li>
+ * </ul>
+ *
+ * @design Each value gets its own chain of whole pages, so a value can be
+ *         freed without compacting any other values.  Since only values that
+ *         are at least a quarter of a page are moved out of line, no more
+ *         than a page is ever wasted per value.
+ *
+ * @design All changes to overflow pages are recorded in the write-ahead log
+ *         in the same way as changes to the tuple file, so rolling back a
+ *         transaction also restores the overflow chains that its tuples
+ *         reference.
+ */
+public class OverflowFile {
+
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(OverflowFile.class);
+
+
+    /**
+     * The offset in the header page where the number of pages in the file is
+     * stored.
+     */
+    public static final int OFFSET_NUM_PAGES = 2;
+
+
+    /**
+     * The offset in the header page where the first page of the free list is
+     * stored.
+     */
+    public static final int OFFSET_FIRST_FREE_PAGE = 6;
+
+
+    /**
+     * The offset in an overflow page where the next page of the chain is
+     * stored.
+     */
+    public static final int OFFSET_NEXT_PAGE_NO = 0;
+
+
+    /**
+     * The offset in an overflow page where the number of bytes of data in
+     * the page is stored.
+     */
+    public static final int OFFSET_DATA_LENGTH = 4;
+
+
+    /** The offset in an overflow page where the page's data starts. */
+    public static final int OFFSET_DATA = 6;
+
+
+    /**
+     * Values whose storage size is larger than the page size divided by this
+     * value are always stored out of line.
+     */
+    public static final int THRESHOLD_DIVISOR = 4;
+
+
+    /**
+     * The storage manager to use for reading and writing file pages, pinning
+     * and unpinning pages, write-ahead logging, and so forth.
+     */
+    private StorageManager storageManager;
+
+
+    /** The file that holds the overflow pages. */
+    private DBFile dbFile;
+
+
+    public OverflowFile(StorageManager storageManager, DBFile dbFile) {
+        if (storageManager == null)
+            throw new IllegalArgumentException("storageManager cannot be null");
+
+        if (dbFile == null)
+            throw new IllegalArgumentException("dbFile cannot be null");
+
+        this.storageManager = storageManager;
+        this.dbFile = dbFile;
+    }
+
+
+    /**
+     * Initializes the header page of a new overflow file, and returns an
+     * object for accessing the file.
+     *
+     * @param storageManager the storage manager to use for the file
+     *
+     * @param dbFile the new, empty file to initialize
+     *
+     * @return an object for accessing the new overflow file
+     *
+     * @throws IOException if the header page can't be written
+     */
+    public static OverflowFile createOverflowFile(StorageManager storageManager,
+        DBFile dbFile) throws IOException {
+
+        logger.info("Initializing new overflow file " + dbFile);
+
+        DBPage headerPage = storageManager.loadDBPage(dbFile, 0);
+        headerPage.writeInt(OFFSET_NUM_PAGES, 1);
+        headerPage.writeInt(OFFSET_FIRST_FREE_PAGE, 0);
+        storageManager.logDBPageWrite(headerPage);
+        headerPage.unpin();
+
+        return new OverflowFile(storageManager, dbFile);
+    }
+
+
+    public DBFile getDBFile() {
+        return dbFile;
+    }
+
+
+    /**
+     * Returns true if values of the specified column type may be stored out
+     * of line.  Only variable-size string types are stored out of line.
+     *
+     * @param colType the type of a column
+     *
+     * @return true if the column's values may be stored out of line
+     */
+    public static boolean canStoreOutOfLine(ColumnType colType) {
+        SQLDataType baseType = colType.getBaseType();
+        return baseType == SQLDataType.VARCHAR ||
+               baseType == SQLDataType.TEXT ||
+               baseType == SQLDataType.BLOB;
+    }
+
+
+    /**
+     * Returns the storage size above which values are always stored out of
+     * line, for tuples in pages of the specified size.
+     *
+     * @param pageSize the page size of the tuple file
+     *
+     * @return the largest storage size of a value that is stored inline
+     *         unless the tuple doesn't fit in a page
+     */
+    public static int getValueThreshold(int pageSize) {
+        return pageSize / THRESHOLD_DIVISOR;
+    }
+
+
+    /**
+     * Writes the specified value into a new chain of overflow pages, and
+     * returns a reference to the chain that can be stored in a tuple.
+     *
+     * @param value the value to store, which is converted to a string
+     *
+     * @return a reference to the stored value
+     *
+     * @throws IOException if an IO error occurs while writing the value
+     */
+    public OverflowValue storeValue(Object value) throws IOException {
+        String strValue = TypeConverter.getStringValue(value);
+        byte[] bytes = strValue.getBytes(StandardCharsets.US_ASCII);
+
+        int bytesPerPage = dbFile.getPageSize() - OFFSET_DATA;
+        int numPages = Math.max(1,
+            (bytes.length + bytesPerPage - 1) / bytesPerPage);
+
+        // Allocate all of the chain's pages first, so that each page can be
+        // written along with a pointer to the next page.
+        int[] pageNos = new int[numPages];
+        DBPage headerPage = storageManager.loadDBPage(dbFile, 0);
+        try {
+            for (int i = 0; i < numPages; i++)
+                pageNos[i] = allocatePage(headerPage);
+
+            storageManager.logDBPageWrite(headerPage);
+        }
+        finally {
+            headerPage.unpin();
+        }
+
+        int position = 0;
+        for (int i = 0; i < numPages; i++) {
+            int length = Math.min(bytesPerPage, bytes.length - position);
+            int nextPageNo = (i + 1 < numPages) ? pageNos[i + 1] : 0;
+
+            DBPage dbPage = storageManager.loadDBPage(dbFile, pageNos[i], true);
+            dbPage.writeInt(OFFSET_NEXT_PAGE_NO, nextPageNo);
+            dbPage.writeShort(OFFSET_DATA_LENGTH, length);
+            dbPage.write(OFFSET_DATA, bytes, position, length);
+            storageManager.logDBPageWrite(dbPage);
+            dbPage.unpin();
+
+            position += length;
+        }
+
+        logger.debug(String.format("Stored %d-byte value in %d overflow " +
+            "pages of %s, starting at page %d.", bytes.length, numPages,
+            dbFile, pageNos[0]));
+
+        PerformanceCounters.inc(PerformanceCounters.STORAGE_OVERFLOW_VALUES_WRITTEN);
+
+        return new OverflowValue(bytes.length, pageNos[0]);
+    }
+
+
+    /**
+     * Takes a page from the free list, or adds a new page to the end of the
+     * file if there are no free pages.  The caller is responsible for logging
+     * the changes to the header page.
+     */
+    private int allocatePage(DBPage headerPage) throws IOException {
+        int pageNo = headerPage.readInt(OFFSET_FIRST_FREE_PAGE);
+        if (pageNo != 0) {
+            DBPage freePage = storageManager.loadDBPage(dbFile, pageNo);
+            headerPage.writeInt(OFFSET_FIRST_FREE_PAGE,
+                freePage.readInt(OFFSET_NEXT_PAGE_NO));
+            freePage.unpin();
+        }
+        else {
+            pageNo = headerPage.readInt(OFFSET_NUM_PAGES);
+            headerPage.writeInt(OFFSET_NUM_PAGES, pageNo + 1);
+        }
+
+        return pageNo;
+    }
+
+
+    /**
+     * Reads the value that the specified reference refers to.
+     *
+     * @param ref a reference to a value stored in this file
+     *
+     * @return the value, as a string
+     *
+     * @throws IOException if an IO error occurs while reading the value, or
+     *         if the value's chain of pages is shorter than the value
+     */
+    public String readValue(OverflowValue ref) throws IOException {
+        byte[] bytes = new byte[ref.getLength()];
+
+        int position = 0;
+        int pageNo = ref.getFirstPageNo();
+        while (position < bytes.length) {
+            if (pageNo == 0) {
+                throw new IOException(String.format("Overflow chain " +
+                    "starting at page %d of %s ended after %d of %d bytes",
+                    ref.getFirstPageNo(), dbFile, position, bytes.length));
+            }
+
+            DBPage dbPage = storageManager.loadDBPage(dbFile, pageNo);
+            int length = Math.min(dbPage.readUnsignedShort(OFFSET_DATA_LENGTH),
+                                  bytes.length - position);
+            dbPage.read(OFFSET_DATA, bytes, position, length);
+            pageNo = dbPage.readInt(OFFSET_NEXT_PAGE_NO);
+            dbPage.unpin();
+
+            position += length;
+        }
+
+        PerformanceCounters.inc(PerformanceCounters.STORAGE_OVERFLOW_VALUES_READ);
+
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+
+    /**
+     * Frees the chain of pages that holds the specified value, so that the
+     * pages can be reused by other values.
+     *
+     * @param ref a reference to a value stored in this file
+     *
+     * @throws IOException if an IO error occurs while freeing the pages
+     */
+    public void deleteValue(OverflowValue ref) throws IOException {
+        // Find the last page of the chain, so that the whole chain can be
+        // put on the front of the free list.
+        int lastPageNo = ref.getFirstPageNo();
+        while (true) {
+            DBPage dbPage = storageManager.loadDBPage(dbFile, lastPageNo);
+            int nextPageNo = dbPage.readInt(OFFSET_NEXT_PAGE_NO);
+            dbPage.unpin();
+
+            if (nextPageNo == 0)
+                break;
+
+            lastPageNo = nextPageNo;
+        }
+
+        DBPage headerPage = storageManager.loadDBPage(dbFile, 0);
+        DBPage lastPage = storageManager.loadDBPage(dbFile, lastPageNo);
+
+        lastPage.writeInt(OFFSET_NEXT_PAGE_NO,
+            headerPage.readInt(OFFSET_FIRST_FREE_PAGE));
+        storageManager.logDBPageWrite(lastPage);
+        lastPage.unpin();
+
+        headerPage.writeInt(OFFSET_FIRST_FREE_PAGE, ref.getFirstPageNo());
+        storageManager.logDBPageWrite(headerPage);
+        headerPage.unpin();
+
+        logger.debug(String.format("Freed overflow pages of %s starting " +
+            "at page %d.", dbFile, ref.getFirstPageNo()));
+    }
+}
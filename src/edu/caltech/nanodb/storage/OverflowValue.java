@@ -0,0 +1,131 @@
+package edu.caltech.nanodb.storage;
+
+
+/**
+ * This class represents a column value that is stored out of line, in a
+ * chain of pages of an {@link OverflowFile}, instead of in the tuple itself.
+ * The tuple only stores a reference to the chain, so that wide values don't
+ * take up space in the tuple's data page, and so that scans which don't
+ * read the column never load the value's pages.
+ * <p>
+ * A reference is stored in place of a <tt>VARCHAR</tt>, <tt>TEXT</tt> or
+ * <tt>BLOB</tt> value, as follows:
+ * <ul>
+ *   <li>The value {@link #OVERFLOW_MARKER} is stored as an unsigned 16-bit
+ *       value, where the length of an inline value would go.  No inline value
+ *       can be this long, since it wouldn't fit in a page.</li>
+ *   <li>The length of the value in bytes is stored as a signed 32-bit
+ *       value.</li>
+ *   <li>The page number of the first page of the chain is stored as a signed
+ *       32-bit value.</li>
+ * </ul>
+ */
+public class OverflowValue {
+
+    /**
+     * This value is stored in the length field of a variable-size value to
+     * indicate that the value is stored out of line.
+     */
+    public static final int OVERFLOW_MARKER = 0xFFFF;
+
+
+    /** The number of bytes used to store a reference in a tuple. */
+    public static final int STORAGE_SIZE = 10;
+
+
+    /** The length of the value in bytes. */
+    private int length;
+
+
+    /** The page number of the first page of the value's chain. */
+    private int firstPageNo;
+
+
+    public OverflowValue(int length, int firstPageNo) {
+        if (length < 0) {
+            throw new IllegalArgumentException("length must be >= 0 (got " +
+                length + ")");
+        }
+
+        if (firstPageNo <= 0) {
+            throw new IllegalArgumentException("firstPageNo must be > 0 " +
+                "(got " + firstPageNo + ")");
+        }
+
+        this.length = length;
+        this.firstPageNo = firstPageNo;
+    }
+
+
+    /** Returns the length of the value in bytes. */
+    public int getLength() {
+        return length;
+    }
+
+
+    /** Returns the page number of the first page of the value's chain. */
+    public int getFirstPageNo() {
+        return firstPageNo;
+    }
+
+
+    /**
+     * Reads a reference to an out-of-line value from the specified position
+     * in a page, or returns <tt>null</tt> if the value at that position is
+     * stored inline.
+     *
+     * @param dbPage the page to read the reference from
+     *
+     * @param position the position of the variable-size value in the page
+     *
+     * @return the reference, or <tt>null</tt> if the value is stored inline
+     */
+    public static OverflowValue read(DBPage dbPage, int position) {
+        if (dbPage.readUnsignedShort(position) != OVERFLOW_MARKER)
+            return null;
+
+        return new OverflowValue(dbPage.readInt(position + 2),
+                                 dbPage.readInt(position + 6));
+    }
+
+
+    /**
+     * Writes this reference to the specified position in a page.
+     *
+     * @param dbPage the page to write the reference to
+     *
+     * @param position the position of the variable-size value in the page
+     *
+     * @return the number of bytes written, which is always
+     *         {@link #STORAGE_SIZE}
+     */
+    public int write(DBPage dbPage, int position) {
+        dbPage.writeShort(position, OVERFLOW_MARKER);
+        dbPage.writeInt(position + 2, length);
+        dbPage.writeInt(position + 6, firstPageNo);
+        return STORAGE_SIZE;
+    }
+
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj instanceof OverflowValue) {
+            OverflowValue other = (OverflowValue) obj;
+            return length == other.length && firstPageNo == other.firstPageNo;
+        }
+        return false;
+    }
+
+
+    @Override
+    public int hashCode() {
+        return 31 * length + firstPageNo;
+    }
+
+
+    @Override
+    public String toString() {
+        return String.format("OverflowValue[length=%d, firstPageNo=%d]",
+            length, firstPageNo);
+    }
+}
@@ -0,0 +1,280 @@
+package edu.caltech.nanodb.storage;
+
+
+import java.io.IOException;
+import java.util.Arrays;
+
+
+/**
+ * <p>
+ * This class implements a small, fast Lempel-Ziv compressor for data pages,
+ * in the style of LZ4.  It trades compression ratio for speed, so that
+ * pages can be decompressed every time they are loaded without adding much
+ * CPU time to a scan.  Pages compress well because most of them contain a
+ * large run of free space, and because neighboring tuples repeat the same
+ * column values and the same null-flag and length bytes.
+ * </p>
+ * <p>
+ * The compressed data is a series of sequences.  Each sequence starts with a
+ * token byte, whose high four bits are the number of literal bytes that
+ * follow, and whose low four bits are the length of the following match,
+ * minus {@link #MIN_MATCH}.  A value of 15 in either half of the token means
+ * that more length bytes follow, each of which is added to the length, until
+ * a byte less than 255 is seen.  The literal bytes come next, and then the
+ * match's offset back from the current position, as a 2-byte little-endian
+ * value.  The last sequence only has literals, and ends the data.
+ * </p>
+ *
+ * @design Offsets are stored in two bytes, which is enough for any page,
+ *         since the largest page size is 64KiB.  Only the data within one
+ *         page is ever referred to, so every page can be decompressed on
+ *         its own.
+ */
+public class PageCompressor {
+
+    /** The shortest match that is encoded as a back-reference. */
+    public static final int MIN_MATCH = 4;
+
+
+    /** The number of bits of the hash of each 4-byte sequence. */
+    private static final int HASH_BITS = 12;
+
+
+    /**
+     * Each thread keeps its own hash table, so that compressing a page
+     * doesn't have to allocate one.
+     */
+    private static final ThreadLocal<int[]> hashTable =
+        ThreadLocal.withInitial(() -> new int[1 << HASH_BITS]);
+
+
+    /**
+     * Returns the maximum number of bytes that compressing <tt>length</tt>
+     * bytes can produce, for data that doesn't compress at all.
+     *
+     * @param length the number of bytes to compress
+     *
+     * @return the largest possible size of the compressed data
+     */
+    public static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+
+    /** Reads four bytes of the array as a little-endian integer. */
+    private static int readInt(byte[] data, int pos) {
+        return (data[pos] & 0xFF) | (data[pos + 1] & 0xFF) << 8 |
+            (data[pos + 2] & 0xFF) << 16 | (data[pos + 3] & 0xFF) << 24;
+    }
+
+
+    /** Returns the hash-table slot for a 4-byte sequence. */
+    private static int hash(int sequence) {
+        return (sequence * 0x9E3779B1) >>> (32 - HASH_BITS);
+    }
+
+
+    /**
+     * Compresses the specified data into the destination array.  If the
+     * compressed data doesn't fit in the destination array, -1 is returned;
+     * callers can use this to find out whether the data compresses to less
+     * than a given size, by passing a destination array of that size.
+     *
+     * @param src the data to compress
+     * @param srcLen the number of bytes to compress, from the start of
+     *        <tt>src</tt>.  This must be at most {@link DBFile#MAX_PAGESIZE}.
+     * @param dst the array to store the compressed data into
+     *
+     * @return the number of bytes of compressed data, or -1 if it doesn't
+     *         fit into <tt>dst</tt>
+     */
+    public static int compress(byte[] src, int srcLen, byte[] dst) {
+        if (srcLen > DBFile.MAX_PAGESIZE) {
+            throw new IllegalArgumentException(
+                "Can't compress more than one page at a time");
+        }
+
+        // The table holds (position + 1) of the last sequence with each
+        // hash, so that 0 means "no sequence."
+        int[] table = hashTable.get();
+        Arrays.fill(table, 0);
+
+        int anchor = 0;
+        int pos = 0;
+        int out = 0;
+        int limit = srcLen - MIN_MATCH;
+
+        while (pos <= limit) {
+            int sequence = readInt(src, pos);
+            int slot = hash(sequence);
+            int candidate = table[slot] - 1;
+            table[slot] = pos + 1;
+
+            if (candidate < 0 || readInt(src, candidate) != sequence) {
+                pos++;
+                continue;
+            }
+
+            int matchLen = MIN_MATCH;
+            while (pos + matchLen < srcLen &&
+                   src[candidate + matchLen] == src[pos + matchLen]) {
+                matchLen++;
+            }
+
+            out = writeSequence(src, anchor, pos - anchor, pos - candidate,
+                matchLen, dst, out);
+            if (out < 0)
+                return -1;
+
+            pos += matchLen;
+            anchor = pos;
+        }
+
+        // The rest of the data is stored as literals.
+        return writeSequence(src, anchor, srcLen - anchor, 0, 0, dst, out);
+    }
+
+
+    /**
+     * Writes one sequence of the compressed data.  If <tt>matchLen</tt> is
+     * 0, the sequence is the last one, and has no match.
+     *
+     * @return the position after the sequence, or -1 if the sequence doesn't
+     *         fit into <tt>dst</tt>
+     */
+    private static int writeSequence(byte[] src, int literalStart,
+        int literalLen, int offset, int matchLen, byte[] dst, int out) {
+
+        int matchCode = (matchLen > 0) ? matchLen - MIN_MATCH : 0;
+        int needed = 1 + lengthBytes(literalLen) + literalLen;
+        if (matchLen > 0)
+            needed += 2 + lengthBytes(matchCode);
+
+        if (out + needed > dst.length)
+            return -1;
+
+        int tokenPos = out++;
+        dst[tokenPos] = (byte) ((Math.min(literalLen, 15) << 4) |
+            Math.min(matchCode, 15));
+
+        out = writeLength(literalLen, dst, out);
+        System.arraycopy(src, literalStart, dst, out, literalLen);
+        out += literalLen;
+
+        if (matchLen > 0) {
+            dst[out++] = (byte) offset;
+            dst[out++] = (byte) (offset >>> 8);
+            out = writeLength(matchCode, dst, out);
+        }
+
+        return out;
+    }
+
+
+    /**
+     * Returns the number of extra length bytes needed after the token for a
+     * literal or match length.
+     */
+    private static int lengthBytes(int length) {
+        return (length < 15) ? 0 : (length - 15) / 255 + 1;
+    }
+
+
+    /**
+     * Writes the extra length bytes needed after the token for a literal or
+     * match length, if any.
+     */
+    private static int writeLength(int length, byte[] dst, int out) {
+        if (length >= 15) {
+            length -= 15;
+            while (length >= 255) {
+                dst[out++] = (byte) 255;
+                length -= 255;
+            }
+            dst[out++] = (byte) length;
+        }
+        return out;
+    }
+
+
+    /**
+     * Decompresses data produced by {@link #compress}.  The data must
+     * decompress to exactly <tt>dstLen</tt> bytes; since a corrupt page
+     * would otherwise be loaded with garbage in it, the data is checked as
+     * it is decompressed.
+     *
+     * @param src the compressed data
+     * @param srcLen the number of bytes of compressed data, from the start
+     *        of <tt>src</tt>
+     * @param dst the array to store the decompressed data into
+     * @param dstLen the number of bytes the data decompresses to
+     *
+     * @throws IOException if the compressed data is corrupt
+     */
+    public static void decompress(byte[] src, int srcLen, byte[] dst,
+                                  int dstLen) throws IOException {
+        if (srcLen < 1)
+            throw new IOException("Compressed page data is empty");
+
+        int in = 0;
+        int out = 0;
+
+        try {
+            while (true) {
+                int token = src[in++] & 0xFF;
+
+                int literalLen = token >>> 4;
+                if (literalLen == 15) {
+                    int b;
+                    do {
+                        b = src[in++] & 0xFF;
+                        literalLen += b;
+                    } while (b == 255);
+                }
+
+                if (in + literalLen > srcLen || out + literalLen > dstLen)
+                    throw new IOException("Compressed page data is corrupt");
+
+                System.arraycopy(src, in, dst, out, literalLen);
+                in += literalLen;
+                out += literalLen;
+
+                if (in == srcLen)
+                    break;
+
+                if (in + 2 > srcLen)
+                    throw new IOException("Compressed page data is corrupt");
+
+                int offset = (src[in] & 0xFF) | (src[in + 1] & 0xFF) << 8;
+                in += 2;
+
+                int matchLen = token & 0x0F;
+                if (matchLen == 15) {
+                    int b;
+                    do {
+                        b = src[in++] & 0xFF;
+                        matchLen += b;
+                    } while (b == 255);
+                }
+                matchLen += MIN_MATCH;
+
+                if (offset == 0 || offset > out || out + matchLen > dstLen)
+                    throw new IOException("Compressed page data is corrupt");
+
+                // The match may overlap the bytes it produces, as with a run
+                // of the same byte, so it is copied one byte at a time.
+                int from = out - offset;
+                for (int i = 0; i < matchLen; i++)
+                    dst[out++] = dst[from++];
+            }
+        }
+        catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Compressed page data is corrupt", e);
+        }
+
+        if (out != dstLen) {
+            throw new IOException(String.format("Compressed page data " +
+                "produced %d bytes; expected %d bytes", out, dstLen));
+        }
+    }
+}
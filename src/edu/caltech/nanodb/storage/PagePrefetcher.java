@@ -0,0 +1,559 @@
+package edu.caltech.nanodb.storage;
+
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.server.NanoDBServer;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+import edu.caltech.nanodb.server.properties.PropertyHandler;
+import edu.caltech.nanodb.server.properties.ReadOnlyPropertyException;
+import edu.caltech.nanodb.server.properties.UnrecognizedPropertyException;
+
+
+/**
+ * <p>
+ * The page prefetcher loads pages into the Buffer Manager in the background,
+ * before a scan asks for them, so that scans don't have to stop and wait for
+ * the disk at every page boundary.  Two access patterns are recognized:
+ * </p>
+ * <ul>
+ *   <li>Sequential access, where a session reads consecutive pages of a
+ *   file, as a heap file scan does.  The {@link StorageManager} reports
+ *   every page it is asked for to {@link #pageRequested}; once several
+ *   consecutive pages of a file have been requested, the prefetcher keeps
+ *   the next <tt>N</tt> pages of the file loaded ahead of the scan.</li>
+ *
+ *   <li>Chained access, where each page records the number of the next page
+ *   to visit, as the leaf pages of a B<sup>+</sup> tree do.  These pages
+ *   are usually not consecutive, so the scan reports each page it moves to
+ *   by calling {@link #chainAdvanced}, and the prefetcher follows the chain
+ *   to keep the next <tt>N</tt> pages of the chain loaded.</li>
+ * </ul>
+ * <p>
+ * The number of pages to read ahead, <tt>N</tt>, is specified with the
+ * <tt>nanodb.readahead.pages</tt> property; a value of 0 disables
+ * prefetching.
+ * </p>
+ * <p>
+ * Prefetched pages are added to the Buffer Manager unpinned, and are marked
+ * as prefetched.  The first session to ask for a prefetched page counts as
+ * a prefetch hit (and treats the page as though it loaded the page itself;
+ * see {@link StorageManager#loadDBPage}).  A prefetched page that is evicted
+ * before anyone asks for it counts as a wasted prefetch.
+ * </p>
+ *
+ * @design Access patterns are tracked per {@link DBFile}, not per session.
+ *         If several sessions scan the same file at the same time, their
+ *         requests are interleaved and may not look sequential.  This is
+ *         simple, and it only costs some missed prefetching.
+ */
+public class PagePrefetcher {
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(PagePrefetcher.class);
+
+
+    /**
+     * The system property that can be used to specify how many pages are
+     * read ahead of a sequential or chained scan.  A value of 0 disables
+     * prefetching.
+     */
+    public static final String PROP_READAHEAD_PAGES = "nanodb.readahead.pages";
+
+
+    /** The default number of pages to read ahead is 8. */
+    public static final int DEFAULT_READAHEAD_PAGES = 8;
+
+
+    /**
+     * The number of consecutive pages of a file that must be requested
+     * before the file is considered to be read sequentially.
+     */
+    public static final int SEQUENTIAL_THRESHOLD = 3;
+
+
+    /** The number of background threads that load pages. */
+    private static final int NUM_THREADS = 2;
+
+
+    /**
+     * This interface is used to find the next page of a chain of pages.
+     */
+    public interface NextPageFinder {
+        /**
+         * Returns the number of the page that follows the specified page in
+         * the chain.
+         *
+         * @param dbPage a page of the chain
+         *
+         * @return the number of the next page in the chain, or 0 if the page
+         *         is the last page of the chain
+         */
+        int getNextPageNo(DBPage dbPage);
+    }
+
+
+    /**
+     * The access pattern and prefetching state of a single file.  All
+     * fields are guarded by the object's monitor.
+     */
+    private static class FileState {
+        /** The page most recently requested from the file. */
+        int lastPageNo = -1;
+
+        /** The number of consecutive pages requested, ending at lastPageNo. */
+        int runLength;
+
+        /**
+         * The last page of the file that has been scheduled for sequential
+         * prefetching.
+         */
+        int sequentialIssuedTo = -1;
+
+        /**
+         * Pages of the chain that have been prefetched, but that the scan
+         * hasn't advanced to yet, in chain order.
+         */
+        ArrayDeque<Integer> chainPending = new ArrayDeque<>();
+
+        /**
+         * The last page of the chain that has been prefetched, or the page
+         * the scan is on if nothing has been prefetched yet.
+         */
+        int chainTail;
+
+        /**
+         * This is incremented whenever a scan starts following a new chain,
+         * so that tasks following the old chain know to stop.
+         */
+        int chainGeneration;
+
+        /** True while a task is following the chain. */
+        boolean chainLoading;
+
+        /** The number of prefetch tasks for the file that are queued or running. */
+        int activeTasks;
+
+        /** True once the file is closed, so no more pages are prefetched. */
+        boolean closed;
+    }
+
+
+    private class PrefetcherPropertyHandler implements PropertyHandler {
+        @Override
+        public Object getPropertyValue(String propertyName)
+            throws UnrecognizedPropertyException {
+
+            if (PROP_READAHEAD_PAGES.equals(propertyName)) {
+                return readAheadPages;
+            }
+            else {
+                throw new UnrecognizedPropertyException("No property named " +
+                    propertyName);
+            }
+        }
+
+        @Override
+        public void setPropertyValue(String propertyName, Object value)
+            throws UnrecognizedPropertyException, ReadOnlyPropertyException {
+
+            if (PROP_READAHEAD_PAGES.equals(propertyName)) {
+                throw new ReadOnlyPropertyException(propertyName +
+                    " is read-only");
+            }
+            else {
+                throw new UnrecognizedPropertyException("No property named " +
+                    propertyName);
+            }
+        }
+    }
+
+
+    private BufferManager bufferManager;
+
+
+    private FileManager fileManager;
+
+
+    /** The number of pages to read ahead of a scan, or 0 if disabled. */
+    private int readAheadPages;
+
+
+    /** The threads that load pages, or <tt>null</tt> if disabled. */
+    private ExecutorService executor;
+
+
+    /** The access pattern and prefetching state of each file. */
+    private ConcurrentHashMap<DBFile, FileState> fileStates;
+
+
+    /**
+     * Creates a page prefetcher that loads pages with the specified file
+     * manager into the specified buffer manager.
+     *
+     * @param server the server to register the prefetcher's properties with,
+     *        or <tt>null</tt> if the properties shouldn't be registered
+     * @param bufferManager the buffer manager to load pages into
+     * @param fileManager the file manager to read pages with
+     */
+    public PagePrefetcher(NanoDBServer server, BufferManager bufferManager,
+                          FileManager fileManager) {
+        this.bufferManager = bufferManager;
+        this.fileManager = fileManager;
+
+        readAheadPages = configureReadAheadPages();
+        fileStates = new ConcurrentHashMap<>();
+
+        if (readAheadPages > 0) {
+            AtomicInteger threadNo = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(NUM_THREADS, r -> {
+                Thread t = new Thread(r,
+                    "PagePrefetcher-" + threadNo.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        if (server != null) {
+            server.getPropertyRegistry().registerProperties(
+                new PrefetcherPropertyHandler(), PROP_READAHEAD_PAGES);
+        }
+    }
+
+
+    private int configureReadAheadPages() {
+        int pages = DEFAULT_READAHEAD_PAGES;
+
+        String str = System.getProperty(PROP_READAHEAD_PAGES);
+        if (str != null) {
+            try {
+                pages = Integer.parseInt(str.trim());
+            }
+            catch (NumberFormatException e) {
+                logger.error(String.format(
+                    "Could not parse read-ahead value \"%s\"; using " +
+                    "default value of %d pages", str, DEFAULT_READAHEAD_PAGES));
+            }
+
+            if (pages < 0) {
+                logger.error(String.format(
+                    "Read-ahead value %d is negative; using default value " +
+                    "of %d pages", pages, DEFAULT_READAHEAD_PAGES));
+
+                pages = DEFAULT_READAHEAD_PAGES;
+            }
+        }
+
+        return pages;
+    }
+
+
+    /**
+     * Returns the number of pages that are read ahead of a scan.
+     *
+     * @return the number of pages that are read ahead of a scan, or 0 if
+     *         prefetching is disabled
+     */
+    public int getReadAheadPages() {
+        return readAheadPages;
+    }
+
+
+    private FileState getFileState(DBFile dbFile) {
+        return fileStates.computeIfAbsent(dbFile, f -> new FileState());
+    }
+
+
+    /**
+     * Records that a session has asked for the specified page.  If the
+     * session appears to be reading the file sequentially, the pages that
+     * follow it are loaded in the background.
+     *
+     * @param dbFile the file that the page was requested from
+     * @param pageNo the page that was requested
+     */
+    public void pageRequested(DBFile dbFile, int pageNo) {
+        if (executor == null)
+            return;
+
+        FileState state = getFileState(dbFile);
+        int firstPageNo, lastPageNo;
+        synchronized (state) {
+            if (pageNo == state.lastPageNo + 1) {
+                state.runLength++;
+            }
+            else if (pageNo != state.lastPageNo) {
+                state.runLength = 1;
+                state.sequentialIssuedTo = pageNo;
+            }
+            state.lastPageNo = pageNo;
+
+            // Top up the read-ahead window when it is half used up.
+            if (state.closed || state.runLength < SEQUENTIAL_THRESHOLD ||
+                state.sequentialIssuedTo - pageNo > readAheadPages / 2) {
+                return;
+            }
+
+            firstPageNo = Math.max(state.sequentialIssuedTo, pageNo) + 1;
+            lastPageNo = pageNo + readAheadPages;
+            state.sequentialIssuedTo = lastPageNo;
+            state.activeTasks++;
+        }
+
+        submit(dbFile, state,
+            () -> prefetchRange(dbFile, state, firstPageNo, lastPageNo));
+    }
+
+
+    /**
+     * Records that a scan has moved to the specified page of a chain of
+     * pages, so that the next pages of the chain are loaded in the
+     * background.
+     *
+     * @param dbFile the file that the chain is in
+     * @param pageNo the page of the chain that the scan has moved to
+     * @param finder finds the page that follows each page of the chain
+     */
+    public void chainAdvanced(DBFile dbFile, int pageNo, NextPageFinder finder) {
+        if (executor == null)
+            return;
+
+        FileState state = getFileState(dbFile);
+        int startPageNo, generation;
+        synchronized (state) {
+            if (state.chainPending.contains(pageNo)) {
+                // The scan has used every prefetched page up to this one.
+                while (state.chainPending.removeFirst() != pageNo);
+            }
+            else {
+                // The scan isn't following the chain we prefetched, or it has
+                // overtaken the prefetcher, so start following the chain
+                // from the scan's page.
+                state.chainPending.clear();
+                state.chainTail = pageNo;
+                state.chainGeneration++;
+                state.chainLoading = false;
+            }
+
+            // Top up the read-ahead window when it is half used up.
+            if (state.closed || state.chainLoading ||
+                state.chainPending.size() > readAheadPages / 2) {
+                return;
+            }
+
+            startPageNo = state.chainTail;
+            generation = state.chainGeneration;
+            state.chainLoading = true;
+            state.activeTasks++;
+        }
+
+        submit(dbFile, state,
+            () -> prefetchChain(dbFile, state, startPageNo, generation, finder));
+    }
+
+
+    /**
+     * Stops prefetching pages of the specified file, and waits for any
+     * prefetches of the file that are in progress to finish.  This must be
+     * called before the file's pages are removed from the Buffer Manager, so
+     * that no prefetched pages are added back afterward.
+     *
+     * @param dbFile the file that is being closed
+     */
+    public void fileClosed(DBFile dbFile) {
+        FileState state = fileStates.remove(dbFile);
+        if (state == null)
+            return;
+
+        synchronized (state) {
+            state.closed = true;
+            while (state.activeTasks > 0) {
+                try {
+                    state.wait();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Stops the background threads, waiting for any prefetches in progress
+     * to finish.
+     *
+     * @param server the server that the prefetcher's properties were
+     *        registered with, or <tt>null</tt>
+     */
+    public void shutdown(NanoDBServer server) {
+        if (executor != null) {
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(10, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (server != null) {
+            server.getPropertyRegistry().unregisterProperties(
+                PROP_READAHEAD_PAGES);
+        }
+    }
+
+
+    private void submit(DBFile dbFile, FileState state, Runnable task) {
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                }
+                finally {
+                    taskDone(state);
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            // The prefetcher is shutting down.
+            logger.debug("Couldn't prefetch pages of file " + dbFile, e);
+            taskDone(state);
+        }
+    }
+
+
+    private void taskDone(FileState state) {
+        synchronized (state) {
+            state.activeTasks--;
+            state.notifyAll();
+        }
+    }
+
+
+    /** Loads a range of consecutive pages of a file. */
+    private void prefetchRange(DBFile dbFile, FileState state,
+                               int firstPageNo, int lastPageNo) {
+        try {
+            int numPages = dbFile.getNumPages();
+            for (int pageNo = firstPageNo;
+                 pageNo <= lastPageNo && pageNo < numPages; pageNo++) {
+
+                synchronized (state) {
+                    if (state.closed)
+                        return;
+                }
+
+                DBPage dbPage = prefetchPage(dbFile, pageNo);
+                dbPage.unpin();
+            }
+        }
+        catch (IOException e) {
+            logger.debug("Couldn't prefetch pages of file " + dbFile, e);
+        }
+    }
+
+
+    /**
+     * Follows a chain of pages, loading each page of the chain, until
+     * {@link #readAheadPages} pages of the chain are loaded ahead of the
+     * scan.
+     */
+    private void prefetchChain(DBFile dbFile, FileState state,
+                               int startPageNo, int generation,
+                               NextPageFinder finder) {
+        DBPage dbPage = null;
+        try {
+            // The start of the chain is normally cached, since it's either
+            // the page the scan is on, or a page that was just prefetched.
+            dbPage = prefetchPage(dbFile, startPageNo);
+
+            while (true) {
+                int pageNo = finder.getNextPageNo(dbPage);
+                dbPage.unpin();
+                dbPage = null;
+
+                if (pageNo == 0)
+                    break;
+
+                synchronized (state) {
+                    if (state.closed || state.chainGeneration != generation)
+                        return;
+                }
+
+                dbPage = prefetchPage(dbFile, pageNo);
+
+                synchronized (state) {
+                    if (state.chainGeneration != generation)
+                        break;
+
+                    state.chainPending.addLast(pageNo);
+                    state.chainTail = pageNo;
+
+                    // The scan may have advanced while we were loading, so
+                    // the window is checked (and loading stops) while
+                    // holding the lock that chainAdvanced() checks it with.
+                    if (state.chainPending.size() >= readAheadPages) {
+                        state.chainLoading = false;
+                        break;
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            logger.debug("Couldn't prefetch pages of file " + dbFile, e);
+        }
+        finally {
+            if (dbPage != null)
+                dbPage.unpin();
+
+            synchronized (state) {
+                if (state.chainGeneration == generation)
+                    state.chainLoading = false;
+            }
+        }
+    }
+
+
+    /**
+     * Loads the specified page into the Buffer Manager if it isn't already
+     * cached, marking it as prefetched.  The page is returned pinned.
+     */
+    private DBPage prefetchPage(DBFile dbFile, int pageNo) throws IOException {
+        DBPage dbPage = bufferManager.getPage(dbFile, pageNo, false);
+        if (dbPage != null)
+            return dbPage;
+
+        dbPage = new DBPage(bufferManager, dbFile, pageNo);
+        try {
+            fileManager.loadPage(dbFile, pageNo, dbPage.getPageBuffer());
+        }
+        catch (IOException e) {
+            dbPage.invalidate();
+            throw e;
+        }
+
+        // Mark the page before it becomes visible to other sessions, so that
+        // a session that finds it right away counts as a prefetch hit.
+        dbPage.setPrefetched();
+        DBPage cachedPage = bufferManager.addPageIfAbsent(dbPage);
+        if (cachedPage != dbPage) {
+            // Another session loaded the page while we were reading it.
+            dbPage.clearPrefetched();
+            dbPage.invalidate();
+            return cachedPage;
+        }
+
+        PerformanceCounters.inc(PerformanceCounters.STORAGE_PAGES_PREFETCHED);
+        return dbPage;
+    }
+}
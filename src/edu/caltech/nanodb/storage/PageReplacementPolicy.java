@@ -0,0 +1,95 @@
+package edu.caltech.nanodb.storage;
+
+
+import java.util.Collection;
+
+
+/**
+ * <p>
+ * This interface specifies the operations that a page replacement policy
+ * must provide to the {@link BufferManager}.  The Buffer Manager notifies the
+ * policy when pages are added to the cache, accessed, and removed from the
+ * cache, and asks the policy to choose a page to evict when space is needed.
+ * </p>
+ * <p>
+ * Each partition of the Buffer Manager's page table has its own policy
+ * object, and every method is called while holding that partition's latch,
+ * so implementations don't need to provide their own synchronization.
+ * </p>
+ * <p>
+ * Policies must never choose a pinned page for eviction.  Since pages can be
+ * pinned and unpinned by other sessions without holding the partition latch,
+ * a policy should check {@link DBPage#isPinned} while it is choosing a
+ * victim, rather than trying to track pin-counts itself.
+ * </p>
+ * <p>
+ * Stepping over pinned pages would make every eviction slower as more pages
+ * are pinned, so a policy that finds a pinned page while choosing a victim
+ * should set it aside with {@link DBPage#setAsideIfPinned}, and stop
+ * considering it.  When a page that was set aside is unpinned, the Buffer
+ * Manager calls {@link #pageUnpinned}, and the page becomes a candidate
+ * again.  Each pinned page is then stepped over at most once, so choosing a
+ * victim takes constant amortized time no matter how many pages are pinned.
+ * </p>
+ */
+public interface PageReplacementPolicy {
+
+    /**
+     * Records that a page was added to the cache.  The page is typically
+     * pinned when this is called.
+     *
+     * @param dbPage the page that was added
+     */
+    void pageAdded(DBPage dbPage);
+
+
+    /**
+     * Records that a page already in the cache was accessed again.
+     *
+     * @param dbPage the page that was accessed
+     */
+    void pageAccessed(DBPage dbPage);
+
+
+    /**
+     * Records that a page was removed from the cache, either because it was
+     * evicted or because its file was flushed.  This is called before the
+     * page is invalidated, so its file and page number are still available.
+     *
+     * @param dbPage the page that was removed
+     */
+    void pageRemoved(DBPage dbPage);
+
+
+    /**
+     * Records that a page that the policy set aside because it was pinned
+     * has been unpinned, so that it can be chosen as a victim again.  This
+     * may also be called for a page that isn't set aside, in which case it
+     * should have no effect.
+     *
+     * @param dbPage the page that was unpinned
+     */
+    void pageUnpinned(DBPage dbPage);
+
+
+    /**
+     * Chooses the next page to evict from the cache.  The page is not
+     * removed; the Buffer Manager will call {@link #pageRemoved} if it
+     * actually evicts the page.
+     *
+     * @param skip pages that must not be chosen, because the Buffer Manager
+     *        is already in the process of evicting them
+     *
+     * @return an unpinned page that is not in {@code skip}, or {@code null}
+     *         if there is no such page among the pages that aren't set aside
+     */
+    DBPage chooseVictim(Collection<DBPage> skip);
+
+
+    /**
+     * Returns the number of pages the policy is currently tracking.
+     *
+     * @return the number of pages the policy is currently tracking
+     */
+    int size();
+}
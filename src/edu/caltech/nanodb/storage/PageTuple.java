@@ -1,6 +1,9 @@
 package edu.caltech.nanodb.storage;
 
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
 import edu.caltech.nanodb.expressions.TypeConverter;
 import edu.caltech.nanodb.relations.*;
 
@@ -24,6 +27,13 @@ import edu.caltech.nanodb.relations.*;
  *       values for the columns in the tuple.</li>
  * </ul>
  * <p>
+ * Large variable-size values may be stored out of line in an
+ * {@link OverflowFile}, in which case the tuple only stores an
+ * {@link OverflowValue} that refers to the value.  Such values are read from
+ * the overflow file when the column's value is requested, so the tuple must
+ * be given the overflow file with {@link #setOverflowFile}.
+ * </p>
+ * <p>
  * In order to make this class' functionality generic, certain operations must
  * be implemented by subclasses:  specifically, any operation that changes a
  * tuple's size (e.g. writing a non-<tt>NULL</tt> value to a previously
@@ -55,6 +65,15 @@ public abstract class PageTuple implements Tuple {
     private DBPage dbPage;
 
 
+    /**
+     * The number of the page that contains the tuple's data.  This is kept
+     * separately from {@link #dbPage}, since once the tuple is unpinned the
+     * page may be evicted and reused for another page of some other file,
+     * but tuple files still need the tuple's location to find the next one.
+     */
+    private int pageNo;
+
+
     /** The offset in the page of the tuple's start. */
     private int pageOffset;
 
@@ -84,6 +103,13 @@ public abstract class PageTuple implements Tuple {
     private int endOffset;
 
 
+    /**
+     * The file that holds values of this tuple that are stored out of line,
+     * or <tt>null</tt> if the tuple has no such file.
+     */
+    private OverflowFile overflowFile;
+
+
     /**
      * Construct a new tuple object that is backed by the data in the database
      * page.  This tuple is able to be read from or written to.
@@ -103,6 +129,7 @@ public abstract class PageTuple implements Tuple {
         }
 
         this.dbPage = dbPage;
+        this.pageNo = dbPage.getPageNo();
         this.pageOffset = pageOffset;
         this.schema = schema;
 
@@ -172,7 +199,7 @@ public abstract class PageTuple implements Tuple {
      * @return a file-pointer that can be used to look up this tuple
      */
     public FilePointer getExternalReference() {
-        return new FilePointer(dbPage.getPageNo(), pageOffset);
+        return new FilePointer(pageNo, pageOffset);
     }
 
 
@@ -181,6 +208,17 @@ public abstract class PageTuple implements Tuple {
     }
 
 
+    /**
+     * Returns the number of the page that contains the tuple's data.  Unlike
+     * {@link #getDBPage}, this may be used after the tuple has been unpinned.
+     *
+     * @return the number of the page that contains the tuple's data
+     */
+    public int getPageNo() {
+        return pageNo;
+    }
+
+
     public int getOffset() {
         return pageOffset;
     }
@@ -191,6 +229,28 @@ public abstract class PageTuple implements Tuple {
     }
 
 
+    /**
+     * Returns the file that holds values of this tuple that are stored out
+     * of line, or <tt>null</tt> if the tuple has no such file.
+     *
+     * @return the file that holds out-of-line values, or <tt>null</tt>
+     */
+    public OverflowFile getOverflowFile() {
+        return overflowFile;
+    }
+
+
+    /**
+     * Sets the file that holds values of this tuple that are stored out of
+     * line.
+     *
+     * @param overflowFile the file that holds out-of-line values
+     */
+    public void setOverflowFile(OverflowFile overflowFile) {
+        this.overflowFile = overflowFile;
+    }
+
+
     /**
      * Returns the storage-size of the tuple in bytes.
      *
@@ -352,6 +412,13 @@ public abstract class PageTuple implements Tuple {
         if (colType.getBaseType() == SQLDataType.VARCHAR || colType.getBaseType() == SQLDataType.NUMERIC)
             dataLength = dbPage.readUnsignedShort(valueOffset);
 
+        // Values that are stored out of line only store a reference.
+        if (OverflowFile.canStoreOutOfLine(colType)) {
+            dataLength = dbPage.readUnsignedShort(valueOffset);
+            if (dataLength == OverflowValue.OVERFLOW_MARKER)
+                return OverflowValue.STORAGE_SIZE;
+        }
+
         return getStorageSize(colType, dataLength);
     }
 
@@ -382,8 +449,14 @@ public abstract class PageTuple implements Tuple {
      *   <li><tt>DOUBLE</tt> produces {@link java.lang.Double}</li>
      *   <li><tt>CHAR(<em>n</em>)</tt> produces {@link java.lang.String}</li>
      *   <li><tt>VARCHAR(<em>n</em>)</tt> produces {@link java.lang.String}</li>
+     *   <li><tt>TEXT</tt> and <tt>BLOB</tt> produce {@link java.lang.String}</li>
      *   <li><tt>FILE_POINTER</tt> (internal) produces {@link FilePointer}</li>
      * </ul>
+     * <p>
+     * Values that are stored out of line are read from the tuple's overflow
+     * file.
+     *
+     * @throws UncheckedIOException if an out-of-line value can't be read
      */
     public Object getColumnValue(int colIndex) {
         checkColumnIndex(colIndex);
@@ -424,12 +497,18 @@ public abstract class PageTuple implements Tuple {
                 break;
 
             case VARCHAR:
-                value = dbPage.readVarString65535(offset);
+            case TEXT:
+            case BLOB:
+                OverflowValue ref = OverflowValue.read(dbPage, offset);
+                if (ref != null)
+                    value = readOverflowValue(ref);
+                else
+                    value = dbPage.readVarString65535(offset);
                 break;
 
             case FILE_POINTER:
-                value = new FilePointer(dbPage.readUnsignedShort(offset),
-                                        dbPage.readUnsignedShort(offset + 2));
+                value = new FilePointer(dbPage.readInt(offset),
+                                        dbPage.readUnsignedShort(offset + 4));
                 break;
 
             case NUMERIC:
@@ -446,6 +525,46 @@ public abstract class PageTuple implements Tuple {
     }
 
 
+    /**
+     * Reads a value that is stored out of line from the tuple's overflow
+     * file.
+     */
+    private String readOverflowValue(OverflowValue ref) {
+        if (overflowFile == null) {
+            throw new IllegalStateException("Tuple has a value stored out " +
+                "of line, but no overflow file was specified");
+        }
+
+        try {
+            return overflowFile.readValue(ref);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+
+    /**
+     * Returns the reference to the specified column's value if the value is
+     * stored out of line, or <tt>null</tt> if the value is <tt>NULL</tt> or
+     * is stored in the tuple itself.  The value itself is not read.
+     *
+     * @param colIndex the index of the column
+     *
+     * @return the reference to the column's out-of-line value, or
+     *         <tt>null</tt> if the value isn't stored out of line
+     */
+    public OverflowValue getOverflowValue(int colIndex) {
+        checkColumnIndex(colIndex);
+
+        ColumnType colType = schema.getColumnInfo(colIndex).getType();
+        if (isNullValue(colIndex) || !OverflowFile.canStoreOutOfLine(colType))
+            return null;
+
+        return OverflowValue.read(dbPage, valueOffsets[colIndex]);
+    }
+
+
     /**
      * Sets the column to the specified value, or <tt>NULL</tt> if the value is
      * the Java <tt>null</tt> value.
@@ -556,12 +675,7 @@ public abstract class PageTuple implements Tuple {
          */
 
         final ColumnType columnType = schema.getColumnInfo(iCol).getType();
-        int datalength = 0;
-        if (columnType.getBaseType() == SQLDataType.VARCHAR)
-            datalength = TypeConverter.getStringValue(value).length();
-        else if (columnType.getBaseType() == SQLDataType.NUMERIC)
-            datalength = TypeConverter.getNumericValue(value).unscaledValue().bitLength() / 8 + 1;
-        final int newDataLength = getStorageSize(columnType, datalength);
+        final int newDataLength = getValueStorageSize(columnType, value);
         int offset;
         final int deltaLength;
         // Initialize curDataLength and offset, we have to handle it
@@ -677,15 +791,17 @@ public abstract class PageTuple implements Tuple {
             break;
 
         case VARCHAR:
+        case TEXT:
+        case BLOB:
             // VARCHAR values are of a variable size, but there is always a
             // two byte length specified at the start of the value.
             size = 2 + dataLength;
             break;
 
         case FILE_POINTER:
-            // File-pointers are comprised of a two-byte page number and a
+            // File-pointers are comprised of a four-byte page number and a
             // two-byte offset in the page.
-            size = 4;
+            size = 6;
             break;
 
         case NUMERIC:
@@ -701,6 +817,35 @@ public abstract class PageTuple implements Tuple {
     }
 
 
+    /**
+     * Returns the storage size of a particular (non-<tt>NULL</tt>) value in
+     * a column of the specified type, in bytes.  If the value is an
+     * {@link OverflowValue} then only the reference to the value is stored.
+     *
+     * @param colType the column's data type
+     * @param value the value to compute the storage size for
+     *
+     * @return the storage size of the value in bytes
+     */
+    public static int getValueStorageSize(ColumnType colType, Object value) {
+        if (value instanceof OverflowValue)
+            return OverflowValue.STORAGE_SIZE;
+
+        // VARCHAR is special - the storage size depends on the size of the
+        // data value being stored.
+        int dataLength = 0;
+        if (OverflowFile.canStoreOutOfLine(colType)) {
+            String strValue = TypeConverter.getStringValue(value);
+            dataLength = strValue.length();
+        }
+        else if (colType.getBaseType() == SQLDataType.NUMERIC) {
+            dataLength = TypeConverter.getNumericValue(value).unscaledValue().bitLength() / 8 + 1;
+        }
+
+        return getStorageSize(colType, dataLength);
+    }
+
+
     /**
      * This helper function takes a tuple (from an arbitrary source) and
      * computes how much space it would require to be stored in a heap table
@@ -736,20 +881,8 @@ public abstract class PageTuple implements Tuple {
             // If the value is NULL (represented by Java's null here...) then
             // it takes no space.  Otherwise, compute the space taken by this
             // value.
-            if (value != null) {
-                // VARCHAR is special - the storage size depends on the size
-                // of the data value being stored.
-                int dataLength = 0;
-                if (colType.getBaseType() == SQLDataType.VARCHAR) {
-                    String strValue = TypeConverter.getStringValue(value);
-                    dataLength = strValue.length();
-                }
-                if (colType.getBaseType() == SQLDataType.NUMERIC) {
-                    dataLength = TypeConverter.getNumericValue(value).unscaledValue().bitLength() / 8 + 1;
-                }
-
-                storageSize += getStorageSize(colType, dataLength);
-            }
+            if (value != null)
+                storageSize += getValueStorageSize(colType, value);
 
             iCol++;
         }
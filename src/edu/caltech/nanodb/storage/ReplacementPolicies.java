@@ -0,0 +1,170 @@
+package edu.caltech.nanodb.storage;
+
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+
+
+/**
+ * This class holds the names of the page replacement policies that the
+ * {@link BufferManager} supports, along with helpers shared by the policy
+ * implementations.
+ */
+public class ReplacementPolicies {
+
+    /** The name of the least-recently-used policy. */
+    public static final String LRU = "lru";
+
+    /** The name of the first-in first-out policy. */
+    public static final String FIFO = "fifo";
+
+    /** The name of the CLOCK (second-chance) policy. */
+    public static final String CLOCK = "clock";
+
+    /** The name of the 2Q policy. */
+    public static final String TWO_QUEUE = "2q";
+
+    /** The name of the LRU-K policy, with K = 2. */
+    public static final String LRU_K = "lru-k";
+
+
+    /** The names of all supported policies. */
+    private static final String[] POLICY_NAMES =
+        { LRU, FIFO, CLOCK, TWO_QUEUE, LRU_K };
+
+
+    /**
+     * This class identifies a page by its file and page number, so that
+     * policies can remember pages after they have been evicted and their
+     * {@link DBPage} objects have been invalidated.
+     */
+    static class PageKey {
+        private DBFile dbFile;
+
+        private int pageNo;
+
+        public PageKey(DBPage dbPage) {
+            this.dbFile = dbPage.getDBFile();
+            this.pageNo = dbPage.getPageNo();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj instanceof PageKey) {
+                PageKey other = (PageKey) obj;
+                return dbFile.equals(other.dbFile) && pageNo == other.pageNo;
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = 7;
+            hash = 31 * hash + dbFile.hashCode();
+            hash = 31 * hash + pageNo;
+            return hash;
+        }
+    }
+
+
+    /**
+     * Returns true if the specified name is one of the supported policies.
+     *
+     * @param name the policy name, in lowercase
+     *
+     * @return true if the name identifies a supported policy
+     */
+    public static boolean isRecognized(String name) {
+        for (String policyName : POLICY_NAMES) {
+            if (policyName.equals(name))
+                return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * Creates a new instance of the specified policy.
+     *
+     * @param name the policy name, in lowercase
+     *
+     * @return a new policy object
+     *
+     * @throws IllegalArgumentException if the name is not recognized
+     */
+    public static PageReplacementPolicy newPolicy(String name) {
+        switch (name) {
+            case LRU:
+                return new LRUReplacementPolicy(/* accessOrder */ true);
+
+            case FIFO:
+                return new LRUReplacementPolicy(/* accessOrder */ false);
+
+            case CLOCK:
+                return new ClockReplacementPolicy();
+
+            case TWO_QUEUE:
+                return new TwoQueueReplacementPolicy();
+
+            case LRU_K:
+                return new LRUKReplacementPolicy();
+
+            default:
+                throw new IllegalArgumentException(
+                    "Unrecognized page replacement policy " + name);
+        }
+    }
+
+
+    /**
+     * Returns true if the page is one of the pages to skip.
+     *
+     * @param dbPage the page to consider
+     * @param skip pages that must not be chosen
+     *
+     * @return true if the page is in {@code skip}
+     */
+    static boolean isSkipped(DBPage dbPage, Collection<DBPage> skip) {
+        // Pages are compared by identity.
+        for (DBPage p : skip) {
+            if (p == dbPage)
+                return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * Returns the first page from the specified candidates that may be
+     * chosen as an eviction victim.  Pinned pages that are found along the
+     * way are set aside:  they are moved from the candidates to the
+     * {@code setAside} map, with the specified value, so that later searches
+     * don't step over them again.
+     *
+     * @param candidates the pages to consider, in order of preference
+     * @param setAside the map to move pinned pages to
+     * @param value the value to record for each page that is set aside
+     * @param skip pages that must not be chosen
+     *
+     * @param <V> the type of the values in the {@code setAside} map
+     *
+     * @return the first evictable page, or {@code null} if there is none
+     */
+    static <V> DBPage firstEvictable(Map<DBPage, ?> candidates,
+        Map<DBPage, V> setAside, V value, Collection<DBPage> skip) {
+
+        Iterator<DBPage> iter = candidates.keySet().iterator();
+        while (iter.hasNext()) {
+            DBPage dbPage = iter.next();
+            if (dbPage.setAsideIfPinned()) {
+                iter.remove();
+                setAside.put(dbPage, value);
+            }
+            else if (!isSkipped(dbPage, skip)) {
+                return dbPage;
+            }
+        }
+        return null;
+    }
+}
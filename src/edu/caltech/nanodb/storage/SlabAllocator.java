@@ -0,0 +1,144 @@
+package edu.caltech.nanodb.storage;
+
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+
+/**
+ * <p>
+ * This class hands out page frames that live outside of the Java heap.
+ * Frames are slices of large direct {@link ByteBuffer}s ("slabs"), so that
+ * the JVM only makes a few large off-heap allocations instead of allocating
+ * a new array for every page that is loaded.  Released frames go onto a free
+ * list and are handed out again, so once the page cache is warm, loading a
+ * page allocates no memory at all, and the garbage collector never has to
+ * copy or scan page data.
+ * </p>
+ * <p>
+ * Frames of different sizes are kept on separate free lists, since each
+ * slab is cut up into frames of a single size.  Memory given to a slab is
+ * never returned to the operating system; the Buffer Manager's cache-size
+ * limit bounds how many frames are in use at once, and therefore how many
+ * slabs are allocated.
+ * </p>
+ * <p>
+ * This class is thread-safe.
+ * </p>
+ */
+public class SlabAllocator {
+
+    /** The default size of each slab, in bytes. */
+    public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+
+
+    /** The size of each slab, in bytes. */
+    private final int slabSize;
+
+
+    /** Free frames, keyed by frame size. */
+    private final HashMap<Integer, ArrayDeque<ByteBuffer>> freeFrames =
+        new HashMap<>();
+
+
+    /** The total number of bytes allocated to slabs so far. */
+    private long totalSlabBytes;
+
+
+    /**
+     * Creates a slab allocator that allocates slabs of the specified size.
+     *
+     * @param slabSize the size of each slab, in bytes
+     */
+    public SlabAllocator(int slabSize) {
+        if (slabSize <= 0) {
+            throw new IllegalArgumentException(
+                "slabSize must be > 0, got " + slabSize);
+        }
+
+        this.slabSize = slabSize;
+    }
+
+
+    /** Creates a slab allocator that uses the default slab size. */
+    public SlabAllocator() {
+        this(DEFAULT_SLAB_SIZE);
+    }
+
+
+    /**
+     * Returns a frame of the specified size.  The frame's contents are
+     * unspecified; a frame that was used before still holds its old data.
+     *
+     * @param size the size of the frame, in bytes
+     *
+     * @return a direct byte buffer of the specified capacity, positioned at
+     *         0, in big-endian byte order
+     */
+    public synchronized ByteBuffer allocate(int size) {
+        if (size <= 0)
+            throw new IllegalArgumentException("size must be > 0, got " + size);
+
+        ArrayDeque<ByteBuffer> frames = freeFrames.get(size);
+        if (frames == null) {
+            frames = new ArrayDeque<>();
+            freeFrames.put(size, frames);
+        }
+
+        if (frames.isEmpty())
+            addSlab(size, frames);
+
+        return frames.removeFirst();
+    }
+
+
+    /**
+     * Returns a frame to the free list, so that it can be handed out again.
+     * The caller must not use the frame after releasing it.
+     *
+     * @param frame a frame that was returned by {@link #allocate}
+     */
+    public synchronized void release(ByteBuffer frame) {
+        if (!frame.isDirect()) {
+            throw new IllegalArgumentException(
+                "Frame was not allocated by a slab allocator");
+        }
+
+        ArrayDeque<ByteBuffer> frames = freeFrames.get(frame.capacity());
+        if (frames == null) {
+            throw new IllegalArgumentException(
+                "No frames of size " + frame.capacity() + " were allocated");
+        }
+
+        frame.clear();
+        frames.addFirst(frame);
+    }
+
+
+    /**
+     * Returns the total number of bytes that have been allocated to slabs.
+     *
+     * @return the total number of bytes that have been allocated to slabs
+     */
+    public synchronized long getTotalSlabBytes() {
+        return totalSlabBytes;
+    }
+
+
+    /**
+     * Allocates a new slab, cuts it into frames of the specified size, and
+     * adds the frames to the free list.
+     */
+    private void addSlab(int frameSize, ArrayDeque<ByteBuffer> frames) {
+        int numFrames = Math.max(1, slabSize / frameSize);
+        ByteBuffer slab = ByteBuffer.allocateDirect(numFrames * frameSize);
+        totalSlabBytes += slab.capacity();
+
+        for (int i = 0; i < numFrames; i++) {
+            slab.limit((i + 1) * frameSize);
+            slab.position(i * frameSize);
+            frames.addLast(slab.slice());
+        }
+    }
+}
@@ -52,7 +52,7 @@ public class StatsWriter {
 
         int startPosition = pgWriter.getPosition();
 
-        pgWriter.writeShort(stats.numDataPages);
+        pgWriter.writeInt(stats.numDataPages);
         pgWriter.writeInt(stats.numTuples);
         pgWriter.writeFloat(stats.avgTupleSize);
 
@@ -113,9 +113,27 @@ public class StatsWriter {
 
 
     public TableStats readTableStats(PageReader pgReader, Schema schema) {
+        return readTableStats(pgReader, schema, DBFile.CURRENT_FORMAT_VERSION);
+    }
+
+
+    /**
+     * Reads table statistics that were written in the specified format
+     * version.  Files written before format version 1 store the number of
+     * data pages as an unsigned short instead of an integer.
+     *
+     * @param pgReader the reader to read the statistics from
+     * @param schema the schema of the table the statistics describe
+     * @param formatVersion the format version of the file being read
+     *
+     * @return the table statistics
+     */
+    public TableStats readTableStats(PageReader pgReader, Schema schema,
+                                     int formatVersion) {
         logger.debug("Reading table-statistics.");
 
-        int numDataPages = pgReader.readUnsignedShort();
+        int numDataPages = (formatVersion >= 1) ?
+            pgReader.readInt() : pgReader.readUnsignedShort();
         int numTuples = pgReader.readInt();
         float avgTupleSize = pgReader.readFloat();
 
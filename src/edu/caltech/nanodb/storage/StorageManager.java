@@ -3,6 +3,9 @@ package edu.caltech.nanodb.storage;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 
@@ -11,6 +14,7 @@ import edu.caltech.nanodb.storage.freespacemap.FreeSpaceMapFile;
 import edu.caltech.nanodb.storage.freespacemap.FreeSpaceMapFileManager;
 import org.apache.log4j.Logger;
 
+import edu.caltech.nanodb.client.SessionState;
 import edu.caltech.nanodb.expressions.TypeCastException;
 
 import edu.caltech.nanodb.indexes.BasicIndexManager;
@@ -18,21 +22,30 @@ import edu.caltech.nanodb.indexes.DatabaseConstraintEnforcer;
 import edu.caltech.nanodb.indexes.IndexManager;
 
 import edu.caltech.nanodb.indexes.IndexUpdater;
+import edu.caltech.nanodb.relations.TableSchema;
 import edu.caltech.nanodb.server.EventDispatcher;
 import edu.caltech.nanodb.server.NanoDBServer;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
 import edu.caltech.nanodb.server.properties.PropertyHandler;
 import edu.caltech.nanodb.server.properties.ReadOnlyPropertyException;
 import edu.caltech.nanodb.server.properties.UnrecognizedPropertyException;
 
 import edu.caltech.nanodb.storage.btreefile.BTreeTupleFileManager;
+import edu.caltech.nanodb.storage.columnfile.ColumnarTupleFileManager;
+import edu.caltech.nanodb.storage.hashfile.HashTupleFileManager;
 import edu.caltech.nanodb.storage.heapfile.HeapTupleFileManager;
+import edu.caltech.nanodb.storage.heapfile.ZoneMapFile;
+import edu.caltech.nanodb.storage.writeahead.WALManager;
+import edu.caltech.nanodb.transactions.Checkpointer;
 import edu.caltech.nanodb.transactions.TransactionManager;
 
 
 /**
  *
  *
- * @todo This class requires synchronization, once we support multiple clients.
+ * @todo This class requires more synchronization, once we support multiple
+ *       clients.  Opening and creating files are synchronized, and pages may
+ *       be loaded concurrently, but table and index management is not.
  */
 public class StorageManager {
 
@@ -65,6 +78,29 @@ public class StorageManager {
     public static final String PROP_PAGESIZE = "nanodb.pagesize";
 
 
+    /**
+     * The system property that can be used to specify how the storage
+     * manager reads and writes data files.  The value "<tt>file</tt>" uses
+     * the {@link FileManagerImpl}, which reads and writes each page with a
+     * system call, and the value "<tt>mmap</tt>" uses the
+     * {@link MappedFileManager}, which accesses pages through memory-mapped
+     * views of the data files.
+     */
+    public static final String PROP_FILEMANAGER = "nanodb.filemanager";
+
+
+    /** The file manager that reads and writes pages with system calls. */
+    public static final String FILEMANAGER_FILE = "file";
+
+
+    /** The file manager that accesses pages through memory mappings. */
+    public static final String FILEMANAGER_MMAP = "mmap";
+
+
+    /** The default file manager reads and writes pages with system calls. */
+    public static final String DEFAULT_FILEMANAGER = FILEMANAGER_FILE;
+
+
     /**
      * The default base-directory path used by the storage manager.  This
      * value is set to "<tt>./datafiles</tt>" (or "<tt>.\datafiles</tt>"
@@ -108,6 +144,30 @@ public class StorageManager {
     }
 
 
+    /**
+     * Returns the kind of file manager to use, as specified by the
+     * <tt>nanodb.filemanager</tt> system property.  If the property isn't
+     * set to a recognized value then {@link #DEFAULT_FILEMANAGER} is used.
+     *
+     * @return the kind of file manager to use, either
+     *         {@link #FILEMANAGER_FILE} or {@link #FILEMANAGER_MMAP}
+     */
+    public static String getFileManagerType() {
+        String type = System.getProperty(PROP_FILEMANAGER, DEFAULT_FILEMANAGER);
+        type = type.trim().toLowerCase();
+
+        if (!FILEMANAGER_FILE.equals(type) && !FILEMANAGER_MMAP.equals(type)) {
+            logger.warn("Current value of " + PROP_FILEMANAGER +
+                " property is not a recognized file manager:  \"" + type +
+                "\"; using " + DEFAULT_FILEMANAGER + ".");
+
+            type = DEFAULT_FILEMANAGER;
+        }
+
+        return type;
+    }
+
+
     private class StoragePropertyHandler implements PropertyHandler {
 
         @Override
@@ -120,6 +180,9 @@ public class StorageManager {
             else if (PROP_BASEDIR.equals(propertyName)) {
                 return getBaseDir().toString();
             }
+            else if (PROP_FILEMANAGER.equals(propertyName)) {
+                return fileManagerType;
+            }
             else {
                 throw new UnrecognizedPropertyException("No property named " +
                     propertyName);
@@ -139,6 +202,10 @@ public class StorageManager {
                 throw new ReadOnlyPropertyException(propertyName +
                         " is read-only");
             }
+            else if (PROP_FILEMANAGER.equals(propertyName)) {
+                throw new ReadOnlyPropertyException(propertyName +
+                        " is read-only");
+            }
             else {
                 throw new UnrecognizedPropertyException("No property named " +
                     propertyName);
@@ -182,6 +249,21 @@ public class StorageManager {
     private FileManager fileManager;
 
 
+    /**
+     * The kind of file manager being used, either {@link #FILEMANAGER_FILE}
+     * or {@link #FILEMANAGER_MMAP}.
+     */
+    private String fileManagerType;
+
+
+    /** The page prefetcher loads pages ahead of sequential and chained scans. */
+    private PagePrefetcher pagePrefetcher;
+
+
+    /** The background page writer keeps part of the page cache clean. */
+    private BackgroundPageWriter backgroundPageWriter;
+
+
     /**
      * If transactions are enabled, this will be the singleton transaction
      * manager instance; otherwise, it will be {@code null}.
@@ -189,6 +271,13 @@ public class StorageManager {
     private TransactionManager transactionManager;
 
 
+    /**
+     * If transactions are enabled, this takes checkpoints in the background;
+     * otherwise, it will be {@code null}.
+     */
+    private Checkpointer checkpointer;
+
+
     private TableManager tableManager;
 
 
@@ -210,6 +299,15 @@ public class StorageManager {
             new HashMap<>();
 
 
+    /**
+     * This flag is set while data files written in an older format version
+     * are upgraded at startup.  No transaction is in progress then, so the
+     * changes are not logged; instead, each upgraded file is written and
+     * synced before the next file is upgraded.
+     */
+    private boolean upgradingFiles = false;
+
+
     /**
      * This method initializes the storage manager.  It should only be called
      * once.
@@ -255,10 +353,17 @@ public class StorageManager {
 
         // Register properties that the Storage Manager exposes.
         server.getPropertyRegistry().registerProperties(
-            new StoragePropertyHandler(), PROP_PAGESIZE, PROP_BASEDIR);
-
-        fileManager = new FileManagerImpl(baseDir);
+            new StoragePropertyHandler(), PROP_PAGESIZE, PROP_BASEDIR,
+            PROP_FILEMANAGER);
+
+        fileManagerType = getFileManagerType();
+        logger.info("Using the \"" + fileManagerType + "\" file manager");
+        if (FILEMANAGER_MMAP.equals(fileManagerType))
+            fileManager = new MappedFileManager(baseDir);
+        else
+            fileManager = new FileManagerImpl(baseDir);
         bufferManager = new BufferManager(server, fileManager);
+        pagePrefetcher = new PagePrefetcher(server, bufferManager, fileManager);
 
         tupleFileManagers.put(DBFileType.HEAP_TUPLE_FILE,
             new HeapTupleFileManager(this));
@@ -269,6 +374,12 @@ public class StorageManager {
         tupleFileManagers.put(DBFileType.BTREE_TUPLE_FILE,
             new BTreeTupleFileManager(this));
 
+        tupleFileManagers.put(DBFileType.COLUMNAR_TUPLE_FILE,
+            new ColumnarTupleFileManager(this));
+
+        tupleFileManagers.put(DBFileType.HASH_TUPLE_FILE,
+            new HashTupleFileManager(this));
+
         if (TransactionManager.isEnabled()) {
             logger.info("Initializing transaction manager.");
             transactionManager = new TransactionManager(server);
@@ -281,6 +392,20 @@ public class StorageManager {
             logger.info("Transaction manager is disabled.");
         }
 
+        // Data files are upgraded after recovery, so that the write-ahead log
+        // is applied to the files in the format it was written in.
+        upgradeDataFiles();
+
+        // Start writing pages in the background once the transaction manager
+        // is observing the buffer manager, so that the WAL rule is enforced.
+        backgroundPageWriter = new BackgroundPageWriter(server, bufferManager);
+        backgroundPageWriter.start();
+
+        if (transactionManager != null) {
+            checkpointer = new Checkpointer(server, transactionManager);
+            checkpointer.start();
+        }
+
         tableManager = new IndexedTableManager(this);
         indexManager = new BasicIndexManager(this);
 
@@ -313,6 +438,10 @@ public class StorageManager {
                 "Storage manager is not initialized.");
         }
 
+        backgroundPageWriter.shutdown(server);
+        if (checkpointer != null)
+            checkpointer.shutdown(server);
+
         // Save all tables
         tableManager.saveAllTablesFSM();
         tableManager.closeAllTables();
@@ -320,13 +449,20 @@ public class StorageManager {
         if (transactionManager != null)
             transactionManager.forceWAL();
 
+        pagePrefetcher.shutdown(server);
+
         List<DBFile> dbFiles = bufferManager.removeAll();
         for (DBFile dbFile : dbFiles)
             fileManager.closeDBFile(dbFile);
 
+        // Writing out the dirty pages may have forced the WAL, so the WAL
+        // writer is stopped last.
+        if (transactionManager != null)
+            transactionManager.shutdown();
+
         // Register properties that the Storage Manager exposes.
         server.getPropertyRegistry().unregisterProperties(
-            PROP_PAGESIZE, PROP_BASEDIR);
+            PROP_PAGESIZE, PROP_BASEDIR, PROP_FILEMANAGER);
 
         initialized = false;
     }
@@ -352,12 +488,17 @@ public class StorageManager {
     }
 
 
+    public PagePrefetcher getPagePrefetcher() {
+        return pagePrefetcher;
+    }
+
+
     public TransactionManager getTransactionManager() {
         return transactionManager;
     }
 
 
-    public DBFile createDBFile(String filename, DBFileType type)
+    public synchronized DBFile createDBFile(String filename, DBFileType type)
         throws IOException {
 
         if (bufferManager.getFile(filename) != null) {
@@ -374,7 +515,7 @@ public class StorageManager {
     }
 
 
-    public DBFile openDBFile(String filename) throws IOException {
+    public synchronized DBFile openDBFile(String filename) throws IOException {
         DBFile dbFile = bufferManager.getFile(filename);
         if (dbFile == null) {
             dbFile = fileManager.openDBFile(filename);
@@ -412,12 +553,174 @@ public class StorageManager {
     }
 
 
+    public OverflowFile openOverflowFile(String filename) throws IOException {
+        DBFile dbFile = fileManager.openDBFile(filename);
+        if (dbFile.getType() != DBFileType.OVERFLOW_FILE) {
+            fileManager.closeDBFile(dbFile);
+            throw new IOException("File " + filename +
+                " is not an overflow file; its type is " + dbFile.getType());
+        }
+
+        logger.debug(String.format("Opened DBFile for overflow file at path %s.",
+            dbFile.getDataFile()));
+
+        return new OverflowFile(this, dbFile);
+    }
+
+
+    public ZoneMapFile openZoneMapFile(String filename, TableSchema schema)
+        throws IOException {
+
+        DBFile dbFile = fileManager.openDBFile(filename);
+        if (dbFile.getType() != DBFileType.ZONE_MAP_FILE) {
+            fileManager.closeDBFile(dbFile);
+            throw new IOException("File " + filename +
+                " is not a zone map file; its type is " + dbFile.getType());
+        }
+
+        logger.debug(String.format("Opened DBFile for zone map file at path %s.",
+            dbFile.getDataFile()));
+
+        return new ZoneMapFile(this, dbFile, schema);
+    }
+
+
     private void closeDBFile(DBFile dbFile) throws IOException {
+        pagePrefetcher.fileClosed(dbFile);
         bufferManager.removeDBFile(dbFile);
         fileManager.closeDBFile(dbFile);
     }
 
 
+    /**
+     * Upgrades every data file in the base directory that was written in a
+     * format version older than {@link DBFile#UPGRADED_FORMAT_VERSION} to
+     * that version.  (Files are never upgraded to the page LSNs of format
+     * version 2, since existing pages have no room for them.)  Tuple files are
+     * converted by their tuple-file managers, which may rebuild the file
+     * into a new file that then replaces the old one.  Write-ahead log files
+     * are left alone, since the {@link WALManager} reads each log file in its
+     * own format version.  Other files don't store
+     * any page numbers, so only their format version is updated.
+     *
+     * @throws IOException if an IO error occurs while upgrading a file
+     */
+    private void upgradeDataFiles() throws IOException {
+        String[] filenames = baseDir.list();
+        if (filenames == null)
+            throw new IOException("Couldn't list base directory " + baseDir);
+
+        Arrays.sort(filenames);
+
+        upgradingFiles = true;
+        try {
+            for (String filename : filenames) {
+                if (!new File(baseDir, filename).isFile())
+                    continue;
+
+                // The page maps of compressed files go with their data files.
+                if (filename.endsWith(CompressedPageMap.FILE_SUFFIX))
+                    continue;
+
+                // WAL files aren't made of pages, and are never upgraded.
+                if (WALManager.isWALFileName(filename))
+                    continue;
+
+                DBFile dbFile;
+                try {
+                    dbFile = fileManager.openDBFile(filename);
+                }
+                catch (IOException e) {
+                    logger.debug("Not upgrading " + filename +
+                        ", since it isn't a data file:  " + e.getMessage());
+                    continue;
+                }
+
+                DBFileType type = dbFile.getType();
+                if (dbFile.getFormatVersion() >= DBFile.UPGRADED_FORMAT_VERSION) {
+                    fileManager.closeDBFile(dbFile);
+                    continue;
+                }
+
+                logger.info(String.format("Upgrading %s file %s from format " +
+                    "version %d to %d", type, filename, dbFile.getFormatVersion(),
+                    DBFile.UPGRADED_FORMAT_VERSION));
+
+                // Recovery may have left its own DBFile object for this file
+                // in the buffer manager.
+                DBFile cachedFile = bufferManager.getFile(filename);
+
+                TupleFileManager tfManager = tupleFileManagers.get(type);
+                if (tfManager != null) {
+                    if (cachedFile != null)
+                        closeDBFile(cachedFile);
+
+                    upgradeTupleFile(tfManager, dbFile);
+                }
+                else if (cachedFile != null) {
+                    // The file is in use, e.g. the transaction-state file, so
+                    // update the object that is already in use.
+                    fileManager.closeDBFile(dbFile);
+                    upgradeFormatVersion(cachedFile);
+                    bufferManager.writeDBFile(cachedFile, /* sync */ true);
+                }
+                else {
+                    upgradeFormatVersion(dbFile);
+                    bufferManager.writeDBFile(dbFile, /* sync */ true);
+                    closeDBFile(dbFile);
+                }
+            }
+        }
+        finally {
+            upgradingFiles = false;
+        }
+    }
+
+
+    /**
+     * Upgrades a single tuple file, replacing it with the converted file if
+     * the tuple-file manager rebuilt it into a new file.  Both files are
+     * closed when this method returns.
+     */
+    private void upgradeTupleFile(TupleFileManager tfManager, DBFile dbFile)
+        throws IOException {
+
+        DBFile upgradedFile = tfManager.upgradeTupleFile(dbFile);
+        bufferManager.unpinAllSessionPages();
+
+        bufferManager.writeDBFile(upgradedFile, /* sync */ true);
+        closeDBFile(upgradedFile);
+
+        if (upgradedFile != dbFile) {
+            closeDBFile(dbFile);
+            Files.move(upgradedFile.getDataFile().toPath(),
+                dbFile.getDataFile().toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+
+    /**
+     * Records in a file's header page that the file is in format version
+     * {@link DBFile#UPGRADED_FORMAT_VERSION}, and updates the {@link DBFile}
+     * object to match.  The header page is left dirty in the buffer manager.
+     *
+     * @param dbFile the file to update the format version of
+     *
+     * @throws IOException if the header page can't be loaded
+     */
+    public void upgradeFormatVersion(DBFile dbFile) throws IOException {
+        DBPage headerPage = loadDBPage(dbFile, 0);
+        headerPage.writeByte(DBFile.OFFSET_PAGE_SIZE,
+            DBFile.encodePageSizeAndVersion(dbFile.getPageSize(),
+                DBFile.UPGRADED_FORMAT_VERSION));
+        headerPage.unpin();
+
+        dbFile.setFormatVersion(DBFile.UPGRADED_FORMAT_VERSION);
+    }
+
+
     public TableManager getTableManager() {
         return tableManager;
     }
@@ -483,6 +786,15 @@ public class StorageManager {
      * other database pages to be evicted from the buffer manager, and written
      * back to disk if the evicted pages are dirty.
      * <p>
+     * If the current session has a {@link BufferRing}, pages that are loaded
+     * from the data file are recycled through the ring.  A page that was
+     * loaded by the {@link PagePrefetcher} counts as loaded by the first
+     * session that asks for it.
+     * <p>
+     * Pages that are requested without the <tt>create</tt> flag are reported
+     * to the {@link PagePrefetcher}, so that it can read ahead of sequential
+     * scans.
+     * <p>
      * The <tt>create</tt> flag controls whether an error is propagated, if the
      * requested page is past the current end of the data file.  (Note that if a
      * new page is created, the file's size will not reflect the new page until
@@ -505,13 +817,13 @@ public class StorageManager {
 
         // Try to retrieve from the buffer manager.
         DBPage dbPage = bufferManager.getPage(dbFile, pageNo);
+        boolean loadedBySession = false;
         if (dbPage == null) {
             // Buffer manager didn't have it.  Read the page directly from
             // the file, then add it to the buffer manager.
             dbPage = new DBPage(bufferManager, dbFile, pageNo);
             try {
-                fileManager.loadPage(dbFile, pageNo, dbPage.getPageData(), create);
-                bufferManager.addPage(dbPage);
+                fileManager.loadPage(dbFile, pageNo, dbPage.getPageBuffer(), create);
             }
             catch (IOException e) {
                 // Make sure to release the DBPage's buffer, or else we will
@@ -519,8 +831,36 @@ public class StorageManager {
                 dbPage.invalidate();
                 throw e;
             }
+
+            // Another session may have loaded the same page while we were
+            // reading it.  If so, use their copy and discard ours.
+            DBPage cachedPage = bufferManager.addPageIfAbsent(dbPage);
+            if (cachedPage != dbPage) {
+                dbPage.invalidate();
+                dbPage = cachedPage;
+            }
+            else {
+                loadedBySession = true;
+            }
+        }
+
+        if (dbPage.clearPrefetched()) {
+            // The page was loaded ahead of time for this session.
+            PerformanceCounters.inc(PerformanceCounters.STORAGE_PREFETCH_HITS);
+            loadedBySession = true;
         }
 
+        if (loadedBySession) {
+            // If the session is running a large scan, recycle the page
+            // through the scan's buffer ring.
+            BufferRing ring = SessionState.get().getBufferRing();
+            if (ring != null)
+                bufferManager.addPageToRing(ring, dbPage);
+        }
+
+        if (!create)
+            pagePrefetcher.pageRequested(dbFile, pageNo);
+
         return dbPage;
     }
 
@@ -556,18 +896,33 @@ public class StorageManager {
      * This method causes any changes to the specified page to be logged by
      * the transaction manager's write-ahead log, so that the changes can be
      * redone or undone as may be appropriate.  Once the page's changes have
-     * been logged, the {@link DBPage#syncOldPageData} method is called on
+     * been logged, the {@link DBPage#clearDirtyRanges} method is called on
      * the page, since the page's changes have been recorded in the WAL.
      *
      * @param dbPage the page to record changes for
      */
     public void logDBPageWrite(DBPage dbPage) throws IOException {
         // If the page is dirty, record its changes to the write-ahead log.
-        if (transactionManager != null)
+        if (transactionManager != null && !upgradingFiles)
             transactionManager.recordPageUpdate(dbPage);
     }
 
 
+    /**
+     * This method records the entire contents of a page that was added to
+     * the end of a file in the write-ahead log, as a single redo-only record.
+     * It is used by bulk loads, which fill new pages without logging each
+     * change.  Since rolling back the record clears the page, it must only be
+     * used for pages that held no data before the current transaction.
+     *
+     * @param dbPage the new page to record
+     */
+    public void logNewDBPage(DBPage dbPage) throws IOException {
+        if (transactionManager != null && !upgradingFiles)
+            transactionManager.recordNewPage(dbPage);
+    }
+
+
     /**
      * This method allows all data to be flushed from the Buffer Manager.  It
      * should not be used in practice, but it is useful to remove buffering to
@@ -64,6 +64,16 @@ public interface TupleFile {
      */
     void setFsmFile(FreeSpaceMapFile fsmFile);
 
+    /**
+     * Sets the file that holds large column values of this tuple file that
+     * are stored out of line.  Tuple files that always store their values
+     * inline may ignore the overflow file.
+     *
+     * @param overflowFile the overflow file corresponding to this tuple
+     *        file/table.
+     */
+    void setOverflowFile(OverflowFile overflowFile);
+
     /**
      * Returns the first tuple in this table file, or <tt>null</tt> if there
      * are no tuples in the file.
@@ -181,8 +191,16 @@ public interface TupleFile {
      * optimal performance and space usage.  Tuple file formats that don't
      * provide any optimization capabilities can simply return when this is
      * called.
+     * <p>
+     * Optimizing a file may move tuples to new locations, which changes
+     * their file pointers.  Each tuple that is moved is reported to the
+     * specified listener, so that indexes and other structures that refer to
+     * the tuple can be updated.
+     *
+     * @param listener the listener to notify when a tuple is moved, or
+     *        <tt>null</tt> if nothing refers to the tuples in this file
      *
      * @throws IOException if an IO error occurs during optimization.
      */
-    void optimize() throws IOException;
+    void optimize(TupleMoveListener listener) throws IOException;
 }
@@ -25,4 +25,22 @@ public interface TupleFileManager {
 
 
     public void deleteTupleFile(TupleFile tupleFile) throws IOException;
+
+
+    /**
+     * Converts a tuple file that was written in a format version older than
+     * {@link DBFile#UPGRADED_FORMAT_VERSION} into that format version, or a
+     * later one.  This is done once, when the database starts up, before any
+     * transactions are run.  See {@link DBFile#CURRENT_FORMAT_VERSION} for
+     * the differences between the format versions.
+     *
+     * @param dbFile the file holding the tuple file to convert
+     *
+     * @return the file holding the converted tuple file.  This is either
+     *         <tt>dbFile</tt> itself, if the tuple file was converted in
+     *         place, or a new file that should replace <tt>dbFile</tt>.
+     *
+     * @throws IOException if an IO error occurs while converting the file
+     */
+    public DBFile upgradeTupleFile(DBFile dbFile) throws IOException;
 }
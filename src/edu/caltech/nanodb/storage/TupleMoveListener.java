@@ -0,0 +1,29 @@
+package edu.caltech.nanodb.storage;
+
+
+import java.io.IOException;
+
+import edu.caltech.nanodb.relations.Tuple;
+
+
+/**
+ * This interface is implemented by components that must be told when a tuple
+ * file moves a tuple to a different location, such as when the file is
+ * {@link TupleFile#optimize optimized}.  Moving a tuple changes its
+ * {@link FilePointer}, so anything that refers to tuples by their file
+ * pointers, such as the indexes on a table, must be updated.
+ */
+public interface TupleMoveListener {
+    /**
+     * This method is called after a tuple has been copied to its new
+     * location, but before the tuple is removed from its old location, so
+     * that both tuples can still be read.
+     *
+     * @param oldTuple the tuple at its old location
+     *
+     * @param newTuple the tuple at its new location
+     *
+     * @throws IOException if an IO error occurs while processing the move
+     */
+    void tupleMoved(Tuple oldTuple, Tuple newTuple) throws IOException;
+}
@@ -0,0 +1,176 @@
+package edu.caltech.nanodb.storage;
+
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+
+/**
+ * <p>
+ * This class implements the 2Q page replacement policy, as described by
+ * Johnson and Shasha in "2Q: A Low Overhead High Performance Buffer
+ * Management Replacement Algorithm."  Pages start out in a FIFO queue
+ * (<tt>A1in</tt>); when they are evicted from that queue, only their
+ * identities are remembered, in a second FIFO queue (<tt>A1out</tt>).  A
+ * page that is loaded again while it is remembered in <tt>A1out</tt> has
+ * proven that it is reused, so it goes into the main LRU queue
+ * (<tt>Am</tt>).  Pages that are only used once, such as the pages of a
+ * large sequential scan, never make it into <tt>Am</tt>, so they can't push
+ * the frequently used pages out of the cache.
+ * </p>
+ * <p>
+ * Pages that are set aside because they were pinned when they were
+ * considered for eviction remember which queue they came from, and rejoin
+ * the end of that queue when they are unpinned.
+ * </p>
+ * <p>
+ * The paper sizes the queues relative to a fixed number of buffers.  A
+ * partition of the page cache has no fixed size, so the queues are sized
+ * relative to the number of pages currently in the partition instead.
+ * </p>
+ */
+public class TwoQueueReplacementPolicy implements PageReplacementPolicy {
+
+    /**
+     * The fraction of the resident pages that are allowed to be in the
+     * <tt>A1in</tt> queue before it is preferred for eviction.
+     */
+    private static final double A1IN_FRACTION = 0.25;
+
+
+    /**
+     * The number of evicted pages that <tt>A1out</tt> remembers, as a
+     * fraction of the resident pages.
+     */
+    private static final double A1OUT_FRACTION = 0.5;
+
+
+    /** The minimum number of evicted pages that <tt>A1out</tt> remembers. */
+    private static final int MIN_A1OUT_SIZE = 16;
+
+
+    /** Resident pages that have been used once, in FIFO order. */
+    private LinkedHashMap<DBPage, Boolean> a1in = new LinkedHashMap<>();
+
+
+    /** Resident pages that have proven to be reused, in LRU order. */
+    private LinkedHashMap<DBPage, Boolean> am =
+        new LinkedHashMap<>(16, 0.75f, /* accessOrder */ true);
+
+
+    /**
+     * Resident pages that were set aside because they were pinned, along
+     * with the queue that each page came from.
+     */
+    private HashMap<DBPage, LinkedHashMap<DBPage, Boolean>> pinnedPages =
+        new HashMap<>();
+
+
+    /** The number of pages in {@link #pinnedPages} that came from A1in. */
+    private int pinnedA1in;
+
+
+    /** The identities of pages recently evicted from <tt>A1in</tt>. */
+    private LinkedHashMap<ReplacementPolicies.PageKey, Boolean> a1out =
+        new LinkedHashMap<>();
+
+
+    @Override
+    public void pageAdded(DBPage dbPage) {
+        if (a1out.remove(new ReplacementPolicies.PageKey(dbPage)) != null)
+            am.put(dbPage, Boolean.TRUE);
+        else
+            a1in.put(dbPage, Boolean.TRUE);
+    }
+
+
+    @Override
+    public void pageAccessed(DBPage dbPage) {
+        // Accesses to pages in A1in are deliberately ignored; they are
+        // usually correlated with the access that loaded the page.  In the
+        // access-ordered Am map, this moves the page to the end.
+        am.get(dbPage);
+    }
+
+
+    @Override
+    public void pageRemoved(DBPage dbPage) {
+        LinkedHashMap<DBPage, Boolean> queue = pinnedPages.remove(dbPage);
+        if (queue == a1in)
+            pinnedA1in--;
+
+        if (a1in.remove(dbPage) != null || queue == a1in) {
+            a1out.put(new ReplacementPolicies.PageKey(dbPage), Boolean.TRUE);
+
+            int maxA1out = Math.max(MIN_A1OUT_SIZE,
+                (int) (size() * A1OUT_FRACTION));
+
+            Iterator<ReplacementPolicies.PageKey> iter =
+                a1out.keySet().iterator();
+            while (a1out.size() > maxA1out) {
+                iter.next();
+                iter.remove();
+            }
+        }
+        else {
+            am.remove(dbPage);
+        }
+    }
+
+
+    @Override
+    public void pageUnpinned(DBPage dbPage) {
+        LinkedHashMap<DBPage, Boolean> queue = pinnedPages.remove(dbPage);
+        if (queue != null) {
+            if (queue == a1in)
+                pinnedA1in--;
+
+            queue.put(dbPage, Boolean.TRUE);
+        }
+    }
+
+
+    /**
+     * Returns the first page from the specified queue that may be evicted,
+     * setting aside any pinned pages that are found along the way.
+     */
+    private DBPage firstEvictable(LinkedHashMap<DBPage, Boolean> queue,
+                                  Collection<DBPage> skip) {
+        int numPinned = pinnedPages.size();
+        DBPage victim = ReplacementPolicies.firstEvictable(queue, pinnedPages,
+            queue, skip);
+
+        if (queue == a1in)
+            pinnedA1in += pinnedPages.size() - numPinned;
+
+        return victim;
+    }
+
+
+    @Override
+    public DBPage chooseVictim(Collection<DBPage> skip) {
+        DBPage victim = null;
+
+        int a1inSize = a1in.size() + pinnedA1in;
+        if (a1inSize > (int) (size() * A1IN_FRACTION) || am.isEmpty()) {
+            victim = firstEvictable(a1in, skip);
+            if (victim == null)
+                victim = firstEvictable(am, skip);
+        }
+        else {
+            victim = firstEvictable(am, skip);
+            if (victim == null)
+                victim = firstEvictable(a1in, skip);
+        }
+
+        return victim;
+    }
+
+
+    @Override
+    public int size() {
+        return a1in.size() + am.size() + pinnedPages.size();
+    }
+}
@@ -501,7 +501,7 @@ public class BTreeFileVerifier {
             }
 
             DBPage dbPage = storageManager.loadDBPage(dbFile, emptyPageNo);
-            emptyPageNo = dbPage.readUnsignedShort(1);
+            emptyPageNo = dbPage.readInt(1);
         }
     }
 
@@ -21,10 +21,12 @@ import edu.caltech.nanodb.storage.DBFile;
 import edu.caltech.nanodb.storage.DBPage;
 import edu.caltech.nanodb.storage.FilePointer;
 import edu.caltech.nanodb.storage.InvalidFilePointerException;
+import edu.caltech.nanodb.storage.OverflowFile;
 import edu.caltech.nanodb.storage.PageTuple;
 import edu.caltech.nanodb.storage.SequentialTupleFile;
 import edu.caltech.nanodb.storage.StorageManager;
 import edu.caltech.nanodb.storage.TupleFileManager;
+import edu.caltech.nanodb.storage.TupleMoveListener;
 
 import javax.swing.text.html.Option;
 
@@ -174,6 +176,12 @@ public class BTreeTupleFile implements SequentialTupleFile {
     public void setFsmFile(FreeSpaceMapFile fsmFile) {
     }
 
+    @Override
+    public void setOverflowFile(OverflowFile overflowFile) {
+        // B+ tree tuples are compared and split by their values, so values
+        // are always stored inline.
+    }
+
 
     public DBFile getDBFile() {
         return dbFile;
@@ -229,14 +237,18 @@ public class BTreeTupleFile implements SequentialTupleFile {
                         leaf.getNumTuples(), nextIndex));
                 }
 
+                // Creating the tuple pins the page a second time.
                 nextTuple = leaf.getTuple(nextIndex);
+                dbPage.unpin();
             }
         }
         else {
             // Get the page that holds the current entry, and see where it
-            // falls within the page.
-            dbPage = tuple.getDBPage();
-            leaf = new LeafPage(dbPage, schema);
+            // falls within the page.  The tuple may already be unpinned, so
+            // the page is loaded again rather than taken from the tuple.
+            DBPage prevDBPage =
+                storageManager.loadDBPage(dbFile, tuple.getPageNo());
+            leaf = new LeafPage(prevDBPage, schema);
 
             // Use the offset of the passed-in entry to find the next entry.
 
@@ -255,8 +267,14 @@ public class BTreeTupleFile implements SequentialTupleFile {
                 if (nextPageNo != 0) {
                     dbPage = storageManager.loadDBPage(dbFile, nextPageNo);
 
+                    // Let the prefetcher load the following leaves while
+                    // this one is being scanned.
+                    storageManager.getPagePrefetcher().chainAdvanced(dbFile,
+                        nextPageNo, LeafPage.NEXT_LEAF_FINDER);
+
                     leaf = new LeafPage(dbPage, schema);
                     if (leaf.getNumTuples() > 0) {
+                        // Creating the tuple pins the page a second time.
                         nextTuple = leaf.getTuple(0);
                     }
                     else {
@@ -265,8 +283,11 @@ public class BTreeTupleFile implements SequentialTupleFile {
                         logger.error(String.format(
                             "Next leaf node %d has no entries?!", nextPageNo));
                     }
+                    dbPage.unpin();
                 }
             }
+
+            prevDBPage.unpin();
         }
 
         return nextTuple;
@@ -526,7 +547,7 @@ public class BTreeTupleFile implements SequentialTupleFile {
 
 
     @Override
-    public void optimize() throws IOException {
+    public void optimize(TupleMoveListener listener) throws IOException {
         throw new UnsupportedOperationException("NYI");
     }
 }
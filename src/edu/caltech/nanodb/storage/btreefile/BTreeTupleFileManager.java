@@ -5,10 +5,18 @@ import java.io.IOException;
 
 import org.apache.log4j.Logger;
 
+import edu.caltech.nanodb.expressions.TupleLiteral;
 import edu.caltech.nanodb.queryeval.TableStats;
+import edu.caltech.nanodb.relations.ColumnInfo;
+import edu.caltech.nanodb.relations.ColumnType;
+import edu.caltech.nanodb.relations.SQLDataType;
+import edu.caltech.nanodb.relations.Schema;
 import edu.caltech.nanodb.relations.TableSchema;
 import edu.caltech.nanodb.storage.DBFile;
+import edu.caltech.nanodb.storage.DBFileType;
 import edu.caltech.nanodb.storage.DBPage;
+import edu.caltech.nanodb.storage.FileManager;
+import edu.caltech.nanodb.storage.FilePointer;
 import edu.caltech.nanodb.storage.PageReader;
 import edu.caltech.nanodb.storage.PageWriter;
 import edu.caltech.nanodb.storage.SchemaWriter;
@@ -26,6 +34,38 @@ public class BTreeTupleFileManager implements TupleFileManager {
     private static Logger logger = Logger.getLogger(BTreeTupleFileManager.class);
 
 
+    /**
+     * The offset in the header page of a format version 0 file where the
+     * page number of the first leaf page is stored, as an unsigned short.
+     */
+    private static final int V0_OFFSET_FIRST_LEAF_PAGE = 4;
+
+
+    /**
+     * The offset in the header page of a format version 0 file where the
+     * schema starts.
+     */
+    private static final int V0_OFFSET_SCHEMA_START = 12;
+
+
+    /**
+     * The offset in a leaf page of a format version 0 file where the page
+     * number of the next leaf is stored, as an unsigned short.
+     */
+    private static final int V0_OFFSET_NEXT_PAGE_NO = 1;
+
+
+    /**
+     * The offset in a leaf page of a format version 0 file where the number
+     * of tuples is stored.
+     */
+    private static final int V0_OFFSET_NUM_TUPLES = 3;
+
+
+    /** The offset of the first tuple in a leaf page of a format version 0 file. */
+    private static final int V0_OFFSET_FIRST_TUPLE = 5;
+
+
     /** A reference to the storage manager. */
     private StorageManager storageManager;
 
@@ -105,6 +145,88 @@ public class BTreeTupleFileManager implements TupleFileManager {
     }
 
 
+    /**
+     * {@inheritDoc}  Every page of a B<sup>+</sup> tree file stores page
+     * numbers, so the tree is rebuilt into a new file from the tuples in the
+     * old file's leaf pages, in key order.  The new tree starts out with
+     * empty statistics, since the old statistics may hold file-pointers in
+     * the old format; <tt>ANALYZE</tt> recomputes them.
+     */
+    @Override
+    public DBFile upgradeTupleFile(DBFile dbFile) throws IOException {
+        if (dbFile.getFormatVersion() != 0) {
+            throw new IllegalArgumentException("Can't upgrade btree tuple " +
+                "file " + dbFile + " from format version " +
+                dbFile.getFormatVersion());
+        }
+
+        logger.info("Rebuilding btree tuple file " + dbFile +
+            " in format version " + DBFile.CURRENT_FORMAT_VERSION);
+
+        DBPage headerPage = storageManager.loadDBPage(dbFile, 0);
+        int firstLeafPageNo =
+            headerPage.readUnsignedShort(V0_OFFSET_FIRST_LEAF_PAGE);
+
+        PageReader hpReader = new PageReader(headerPage);
+        hpReader.setPosition(V0_OFFSET_SCHEMA_START);
+        SchemaWriter schemaWriter = new SchemaWriter();
+        TableSchema schema = schemaWriter.readTableSchema(hpReader);
+        headerPage.unpin();
+
+        // Format version 0 stored file-pointers as a 2-byte page number and a
+        // 2-byte offset, so they are read as integers, and then split apart.
+        Schema v0Schema = new Schema();
+        for (ColumnInfo colInfo : schema) {
+            if (colInfo.getType().getBaseType() == SQLDataType.FILE_POINTER) {
+                colInfo = new ColumnInfo(colInfo.getName(),
+                    colInfo.getTableName(), new ColumnType(SQLDataType.INTEGER));
+            }
+            v0Schema.addColumnInfo(colInfo);
+        }
+
+        FileManager fileManager = storageManager.getFileManager();
+        String newFilename = dbFile.getDataFile().getName() + ".upgrade";
+        if (fileManager.fileExists(newFilename))
+            fileManager.deleteDBFile(newFilename);
+
+        DBFile newDBFile = fileManager.createDBFile(newFilename,
+            DBFileType.BTREE_TUPLE_FILE, dbFile.getPageSize());
+        TupleFile newTupleFile = createTupleFile(newDBFile, schema);
+
+        int pageNo = firstLeafPageNo;
+        while (pageNo != 0) {
+            DBPage dbPage = storageManager.loadDBPage(dbFile, pageNo);
+            int numTuples = dbPage.readUnsignedShort(V0_OFFSET_NUM_TUPLES);
+
+            int offset = V0_OFFSET_FIRST_TUPLE;
+            for (int i = 0; i < numTuples; i++) {
+                BTreeFilePageTuple v0Tuple =
+                    new BTreeFilePageTuple(v0Schema, dbPage, offset, i);
+
+                TupleLiteral tuple = new TupleLiteral();
+                for (int iCol = 0; iCol < schema.numColumns(); iCol++) {
+                    Object value = v0Tuple.getColumnValue(iCol);
+                    if (value != null && schema.getColumnInfo(iCol).getType()
+                        .getBaseType() == SQLDataType.FILE_POINTER) {
+                        int v0Pointer = (Integer) value;
+                        value = new FilePointer(v0Pointer >>> 16,
+                            v0Pointer & 0xFFFF);
+                    }
+                    tuple.addValue(value);
+                }
+                newTupleFile.addTuple(tuple);
+
+                offset = v0Tuple.getEndOffset();
+            }
+
+            pageNo = dbPage.readUnsignedShort(V0_OFFSET_NEXT_PAGE_NO);
+            dbPage.unpin();
+        }
+
+        return newDBFile;
+    }
+
+
     @Override
     public void deleteTupleFile(TupleFile tupleFile) throws IOException {
         // TODO
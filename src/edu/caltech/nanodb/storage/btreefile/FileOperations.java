@@ -58,7 +58,7 @@ class FileOperations {
             logger.debug("First empty page number is " + pageNo);
 
             newPage = storageManager.loadDBPage(dbFile, pageNo);
-            int nextEmptyPage = newPage.readUnsignedShort(1);
+            int nextEmptyPage = newPage.readInt(1);
             HeaderPage.setFirstEmptyPageNo(dbpHeader, nextEmptyPage);
         }
 
@@ -93,11 +93,11 @@ class FileOperations {
 
         // Retrieve the old "first empty page" value, and store it in this page.
         int prevEmptyPageNo = HeaderPage.getFirstEmptyPageNo(dbpHeader);
-        dbPage.writeShort(1, prevEmptyPageNo);
+        dbPage.writeInt(1, prevEmptyPageNo);
 
         if (BTreeTupleFile.CLEAR_OLD_DATA) {
             // Clear out the remainder of the data-page since it's now unused.
-            dbPage.setDataRange(3, dbPage.getPageSize() - 3, (byte) 0);
+            dbPage.setDataRange(5, dbPage.getUsableSize() - 5, (byte) 0);
         }
 
         // Store the new "first empty page" value into the header.
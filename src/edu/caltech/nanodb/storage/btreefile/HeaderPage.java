@@ -12,11 +12,15 @@ import org.apache.log4j.Logger;
  *
  * <ul>
  *   <li><u>Byte 0:</u>  {@link DBFileType#BTREE_TUPLE_FILE} (unsigned byte)</li>
- *   <li><u>Byte 1:</u>  page size  <i>p</i> (unsigned byte) - file's page
- *       size is <i>P</i> = 2<sup>p</sup></li>
- *
- *   <li>Byte 2-M:  Specification of index key-columns and column ordering.</li>
- *   <li>Byte P-2 to P-1:  the page of the file that is the root of the index</li>
+ *   <li><u>Byte 1:</u>  page size  <i>p</i> and format version (unsigned
+ *       byte) - file's page size is <i>P</i> = 2<sup>p</sup></li>
+ *   <li>Byte 2-5:  the page of the file that is the root of the index</li>
+ *   <li>Byte 6-9:  the first leaf page of the file</li>
+ *   <li>Byte 10-13:  the first empty page of the file</li>
+ *   <li>Byte 14-15:  the size of the index's schema</li>
+ *   <li>Byte 16-17:  the size of the index's statistics</li>
+ *   <li>Byte 18-M:  Specification of index key-columns and column ordering,
+ *       followed by the index's statistics.</li>
  * </ul>
  */
 public class HeaderPage {
@@ -26,7 +30,7 @@ public class HeaderPage {
 
     /**
      * The offset in the header page where the page number of the index's root
-     * page is stored.  This value is an unsigned short.
+     * page is stored.  This value is an integer.
      */
     public static final int OFFSET_ROOT_PAGE = 2;
 
@@ -34,38 +38,37 @@ public class HeaderPage {
     /**
      * The offset in the header page where the page number of the first leaf
      * page of the file is stored.  This allows the leaves of the tuple file
-     * to be iterated through in sequential order.  This value is an unsigned
-     * short.
+     * to be iterated through in sequential order.  This value is an integer.
      */
-    public static final int OFFSET_FIRST_LEAF_PAGE = 4;
+    public static final int OFFSET_FIRST_LEAF_PAGE = 6;
 
 
     /**
      * The offset in the header page where the page number of the first empty
-     * page in the free list is stored.  This value is an unsigned short.
+     * page in the free list is stored.  This value is an integer.
      */
-    public static final int OFFSET_FIRST_EMPTY_PAGE = 6;
+    public static final int OFFSET_FIRST_EMPTY_PAGE = 10;
 
 
     /**
      * The offset in the header page where the length of the file's schema is
      * stored.  The statistics follow immediately after the schema.
      */
-    public static final int OFFSET_SCHEMA_SIZE = 8;
+    public static final int OFFSET_SCHEMA_SIZE = 14;
 
 
     /**
      * The offset in the header page where the size of the table statistics
      * are stored.  This value is an unsigned short.
      */
-    public static final int OFFSET_STATS_SIZE = 10;
+    public static final int OFFSET_STATS_SIZE = 16;
 
 
     /**
      * The offset in the header page where the table schema starts.  This
      * value is an unsigned short.
      */
-    public static final int OFFSET_SCHEMA_START = 12;
+    public static final int OFFSET_SCHEMA_START = 18;
 
 
     /**
@@ -99,7 +102,7 @@ public class HeaderPage {
      */
     public static int getRootPageNo(DBPage dbPage) {
         verifyIsHeaderPage(dbPage);
-        return dbPage.readUnsignedShort(OFFSET_ROOT_PAGE);
+        return dbPage.readInt(OFFSET_ROOT_PAGE);
     }
 
 
@@ -119,7 +122,7 @@ public class HeaderPage {
                 "rootPageNo must be > 0; got " + rootPageNo);
         }
 
-        dbPage.writeShort(OFFSET_ROOT_PAGE, rootPageNo);
+        dbPage.writeInt(OFFSET_ROOT_PAGE, rootPageNo);
     }
 
 
@@ -132,7 +135,7 @@ public class HeaderPage {
      */
     public static int getFirstLeafPageNo(DBPage dbPage) {
         verifyIsHeaderPage(dbPage);
-        return dbPage.readUnsignedShort(OFFSET_FIRST_LEAF_PAGE);
+        return dbPage.readInt(OFFSET_FIRST_LEAF_PAGE);
     }
 
 
@@ -152,7 +155,7 @@ public class HeaderPage {
                 "firstLeafPageNo must be >= 0; got " + firstLeafPageNo);
         }
 
-        dbPage.writeShort(OFFSET_FIRST_LEAF_PAGE, firstLeafPageNo);
+        dbPage.writeInt(OFFSET_FIRST_LEAF_PAGE, firstLeafPageNo);
     }
 
 
@@ -166,7 +169,7 @@ public class HeaderPage {
      */
     public static int getFirstEmptyPageNo(DBPage dbPage) {
         verifyIsHeaderPage(dbPage);
-        return dbPage.readUnsignedShort(OFFSET_FIRST_EMPTY_PAGE);
+        return dbPage.readInt(OFFSET_FIRST_EMPTY_PAGE);
     }
 
 
@@ -186,7 +189,7 @@ public class HeaderPage {
                 "firstEmptyPageNo must be >= 0; got " + firstEmptyPageNo);
         }
 
-        dbPage.writeShort(OFFSET_FIRST_EMPTY_PAGE, firstEmptyPageNo);
+        dbPage.writeInt(OFFSET_FIRST_EMPTY_PAGE, firstEmptyPageNo);
     }
 
 
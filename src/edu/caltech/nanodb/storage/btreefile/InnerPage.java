@@ -37,11 +37,15 @@ public class InnerPage implements DataPage {
      * The page will hold one fewer tuples than pointers, since each tuple
      * must be sandwiched between two pointers.
      */
-    public static final int OFFSET_NUM_POINTERS = 3;
+    public static final int OFFSET_NUM_POINTERS = 5;
 
 
     /** The offset of the first pointer in the non-leaf page. */
-    public static final int OFFSET_FIRST_POINTER = 5;
+    public static final int OFFSET_FIRST_POINTER = 7;
+
+
+    /** The size of each page-pointer in the non-leaf page, in bytes. */
+    public static final int POINTER_SIZE = 4;
 
 
     /** The actual data page that holds the B<sup>+</sup> tree inner node. */
@@ -152,12 +156,12 @@ public class InnerPage implements DataPage {
 
         int offset = OFFSET_FIRST_POINTER;
 
-        dbPage.writeShort(offset, pagePtr1);
-        offset += 2;
+        dbPage.writeInt(offset, pagePtr1);
+        offset += POINTER_SIZE;
 
         offset = PageTuple.storeTuple(dbPage, offset, schema, key1);
 
-        dbPage.writeShort(offset, pagePtr2);
+        dbPage.writeInt(offset, pagePtr2);
 
         dbPage.writeShort(OFFSET_NUM_POINTERS, 2);
 
@@ -183,12 +187,12 @@ public class InnerPage implements DataPage {
             if (numPointers == 1) {
                 // This will happen when we are deleting values from a page.
                 // No keys, just 1 pointer, done!
-                endOffset = OFFSET_FIRST_POINTER + 2;
+                endOffset = OFFSET_FIRST_POINTER + POINTER_SIZE;
                 return;
             }
 
             BTreeFilePageTuple key = new BTreeFilePageTuple(schema, dbPage,
-                OFFSET_FIRST_POINTER + 2, 0);
+                OFFSET_FIRST_POINTER + POINTER_SIZE, 0);
             keys[0] = key;
 
             // Handle all the pointer/key pairs.  This excludes the last
@@ -201,13 +205,13 @@ public class InnerPage implements DataPage {
                 pointerOffsets[i] = keyEndOffset;
                 
                 // Next key starts after the next pointer.
-                key = new BTreeFilePageTuple(schema, dbPage, keyEndOffset + 2, i);
+                key = new BTreeFilePageTuple(schema, dbPage, keyEndOffset + POINTER_SIZE, i);
                 keys[i] = key;
             }
 
             keyEndOffset = key.getEndOffset();
             pointerOffsets[numPointers - 1] = keyEndOffset;
-            endOffset = keyEndOffset + 2;
+            endOffset = keyEndOffset + POINTER_SIZE;
         }
         else {
             // There are no entries (pointers + keys).
@@ -399,17 +403,18 @@ public class InnerPage implements DataPage {
      * @return the amount of space available in this inner page, in bytes.
      */
     public int getFreeSpace() {
-        return dbPage.getPageSize() - endOffset;
+        return dbPage.getUsableSize() - endOffset;
     }
 
 
     /**
-     * Returns the total space (page size) in bytes.
+     * Returns the total space (the page size, less the space for the page
+     * LSN if the page stores it) in bytes.
      *
-     * @return the size of the page, in bytes.
+     * @return the usable size of the page, in bytes.
      */
     public int getTotalSpace() {
-        return dbPage.getPageSize();
+        return dbPage.getUsableSize();
     }
 
 
@@ -421,7 +426,7 @@ public class InnerPage implements DataPage {
      * @return the pointer at that index
      */
     public int getPointer(int index) {
-        return dbPage.readUnsignedShort(pointerOffsets[index]);
+        return dbPage.readInt(pointerOffsets[index]);
     }
 
 
@@ -434,7 +439,7 @@ public class InnerPage implements DataPage {
      * @param newPageNo the page number to store at the specified index
      */
     public void replacePointer(int index, int newPageNo) {
-        dbPage.writeShort(pointerOffsets[index], newPageNo);
+        dbPage.writeInt(pointerOffsets[index], newPageNo);
         loadPageContents();
     }
 
@@ -479,7 +484,7 @@ public class InnerPage implements DataPage {
         if (newLen != oldLen) {
             // Need to adjust the amount of space the key takes.
             
-            if (endOffset + newLen - oldLen > dbPage.getPageSize()) {
+            if (endOffset + newLen - oldLen > dbPage.getUsableSize()) {
                 throw new IllegalArgumentException(
                     "New key-value is too large to fit in non-leaf page.");
             }
@@ -557,8 +562,8 @@ public class InnerPage implements DataPage {
         // into the page.
 
         int newKeySize = PageTuple.getTupleStorageSize(schema, key1);
-        int newEntrySize = newKeySize + 2;
-        if (endOffset + newEntrySize > dbPage.getPageSize()) {
+        int newEntrySize = newKeySize + POINTER_SIZE;
+        if (endOffset + newEntrySize > dbPage.getUsableSize()) {
             throw new IllegalArgumentException("New key-value and " +
                 "page-pointer are too large to fit in non-leaf page.");
         }
@@ -571,7 +576,7 @@ public class InnerPage implements DataPage {
 
         // Write in the new key/pointer values.
         PageTuple.storeTuple(dbPage, oldKeyStart, schema, key1);
-        dbPage.writeShort(oldKeyStart + newKeySize, pagePtr2);
+        dbPage.writeInt(oldKeyStart + newKeySize, pagePtr2);
 
         // Finally, increment the number of pointers in the page, then reload
         // the cached data.
@@ -626,9 +631,8 @@ public class InnerPage implements DataPage {
 
         // Figure out the range of data that must be deleted from the page.
 
-        // Page pointers are 2 bytes.
         int start = pointerOffsets[ptrIndex];
-        int end = start + 2;
+        int end = start + POINTER_SIZE;
 
         // We must always remove one key, either the left or the right key.
         // Expand the data range that we are removing.
@@ -721,7 +725,7 @@ public class InnerPage implements DataPage {
         }
 
         final TupleLiteral newParentKey;
-        final int startOffset = pointerOffsets[count - 1] + 2;
+        final int startOffset = pointerOffsets[count - 1] + POINTER_SIZE;
         final int moveEndOffset;
         final int len = startOffset - OFFSET_FIRST_POINTER;
         int leftSiblingWriteOffset = leftSibling.endOffset;
@@ -739,7 +743,7 @@ public class InnerPage implements DataPage {
             leftSiblingWriteOffset = PageTuple.storeTuple(leftSibling.dbPage, leftSibling.endOffset, schema, parentKey);
         }
         // Move data over to left sibling
-        leftSibling.dbPage.write(leftSiblingWriteOffset, dbPage.getPageData(), OFFSET_FIRST_POINTER, len);
+        leftSibling.dbPage.write(leftSiblingWriteOffset, dbPage, OFFSET_FIRST_POINTER, len);
         leftSibling.dbPage.writeShort(OFFSET_NUM_POINTERS, leftSibling.numPointers + count);
 
         // Shift remaining data left to fill up the gap.
@@ -960,7 +964,7 @@ public class InnerPage implements DataPage {
         }
 
         // Move data over to right sibling
-        rightSibling.dbPage.write(OFFSET_FIRST_POINTER, dbPage.getPageData(),
+        rightSibling.dbPage.write(OFFSET_FIRST_POINTER, dbPage,
                 startOffset, len);
 
         // Update right sibling pointers count
@@ -235,8 +235,8 @@ public class InnerPageOperations {
             else
                 index = numRelocated;
 
-            // Add two bytes to the key size for the page-pointer that follows
-            int entrySize = page.getKey(index).getSize() + 2;
+            // Add the size of the page-pointer that follows to the key size
+            int entrySize = page.getKey(index).getSize() + InnerPage.POINTER_SIZE;
             logger.debug("Entry " + index + " is " + entrySize + " bytes");
 
             // Did we run out of space to move entries before we hit our goal?
@@ -284,9 +284,9 @@ public class InnerPageOperations {
     public void addTuple(InnerPage page, List<Integer> pagePath,
         int pagePtr1, Tuple key1, int pagePtr2) throws IOException {
 
-        // The new entry will be the key, plus 2 bytes for the page-pointer.
-        int newEntrySize =
-            PageTuple.getTupleStorageSize(tupleFile.getSchema(), key1) + 2;
+        // The new entry will be the key, plus the page-pointer.
+        int newEntrySize = PageTuple.getTupleStorageSize(
+            tupleFile.getSchema(), key1) + InnerPage.POINTER_SIZE;
 
         logger.debug(String.format("Adding new %d-byte entry to inner page %d",
             newEntrySize, page.getPageNo()));
@@ -969,9 +969,10 @@ public class InnerPageOperations {
             keyBytesMoved += lastKeySize;
 
             // We can simply do the check here instead.
-            // There is an edge case where the extra 2 bytes causes overflow, and if
-            // we don't break here we'll try to access -1 indexed key.
-            if (pageBytesFree < keyBytesMoved + 2 * numRelocated) {
+            // There is an edge case where the extra pointer bytes cause overflow,
+            // and if we don't break here we'll try to access -1 indexed key.
+            if (pageBytesFree < keyBytesMoved +
+                InnerPage.POINTER_SIZE * numRelocated) {
                 break;
             }
 
@@ -983,7 +984,8 @@ public class InnerPageOperations {
             // Since we don't yet know which page the new pointer will go into,
             // stop when we can put the pointer in either page.
             if (adjBytesFree <= halfFull &&
-                (pageBytesFree + keyBytesMoved + 2 * numRelocated) <= halfFull) {
+                (pageBytesFree + keyBytesMoved +
+                 InnerPage.POINTER_SIZE * numRelocated) <= halfFull) {
                 break;
             }
         }
@@ -6,6 +6,7 @@ import edu.caltech.nanodb.expressions.TupleLiteral;
 import edu.caltech.nanodb.relations.Schema;
 import edu.caltech.nanodb.relations.Tuple;
 import edu.caltech.nanodb.storage.DBPage;
+import edu.caltech.nanodb.storage.PagePrefetcher;
 import edu.caltech.nanodb.storage.PageTuple;
 import org.apache.log4j.Logger;
 
@@ -46,11 +47,21 @@ public class LeafPage implements DataPage {
     /**
      * The offset where the number of tuples is stored in the page.
      */
-    public static final int OFFSET_NUM_TUPLES = 3;
+    public static final int OFFSET_NUM_TUPLES = 5;
 
 
     /** The offset of the first tuple in the leaf page. */
-    public static final int OFFSET_FIRST_TUPLE = 5;
+    public static final int OFFSET_FIRST_TUPLE = 7;
+
+
+    /**
+     * Finds the next leaf of a chain of leaf pages, so that the
+     * {@link PagePrefetcher} can read ahead of a scan over the leaves.  If
+     * the page is no longer a leaf page, the chain ends there.
+     */
+    public static final PagePrefetcher.NextPageFinder NEXT_LEAF_FINDER =
+        dbPage -> dbPage.readUnsignedByte(OFFSET_PAGE_TYPE) == BTREE_LEAF_PAGE ?
+            dbPage.readInt(OFFSET_NEXT_PAGE_NO) : 0;
 
 
     /** The actual data page that holds the B<sup>+</sup> tree leaf node. */
@@ -113,7 +124,7 @@ public class LeafPage implements DataPage {
     public static LeafPage init(DBPage dbPage, Schema schema) {
         dbPage.writeByte(OFFSET_PAGE_TYPE, BTREE_LEAF_PAGE);
         dbPage.writeShort(OFFSET_NUM_TUPLES, 0);
-        dbPage.writeShort(OFFSET_NEXT_PAGE_NO, 0);
+        dbPage.writeInt(OFFSET_NEXT_PAGE_NO, 0);
 
         return new LeafPage(dbPage, schema);
     }
@@ -192,7 +203,7 @@ public class LeafPage implements DataPage {
      *         tree file.
      */
     public int getNextPageNo() {
-        return dbPage.readUnsignedShort(OFFSET_NEXT_PAGE_NO);
+        return dbPage.readInt(OFFSET_NEXT_PAGE_NO);
     }
 
 
@@ -208,7 +219,7 @@ public class LeafPage implements DataPage {
                 "pageNo must be in range [0, 65535]; got " + pageNo);
         }
 
-        dbPage.writeShort(OFFSET_NEXT_PAGE_NO, pageNo);
+        dbPage.writeInt(OFFSET_NEXT_PAGE_NO, pageNo);
     }
 
 
@@ -249,17 +260,18 @@ public class LeafPage implements DataPage {
      * @return the amount of space available in this leaf page, in bytes.
      */
     public int getFreeSpace() {
-        return dbPage.getPageSize() - endOffset;
+        return dbPage.getUsableSize() - endOffset;
     }
 
 
     /**
-     * Returns the total space (page size) in bytes.
+     * Returns the total space (the page size, less the space for the page
+     * LSN if the page stores it) in bytes.
      *
-     * @return the size of the page, in bytes.
+     * @return the usable size of the page, in bytes.
      */
     public int getTotalSpace() {
-        return dbPage.getPageSize();
+        return dbPage.getUsableSize();
     }
 
 
@@ -661,7 +673,7 @@ public class LeafPage implements DataPage {
         // Copy the range of tuple-data to the destination page.  Then update
         // the count of tuples in the destination page.
         // Don't need to move any data in the left sibling; we are appending!
-        leftSibling.dbPage.write(leftSibling.endOffset, dbPage.getPageData(),
+        leftSibling.dbPage.write(leftSibling.endOffset, dbPage,
             OFFSET_FIRST_TUPLE, len);          // Copy the tuple-data across
         leftSibling.dbPage.writeShort(OFFSET_NUM_TUPLES,
             leftSibling.numTuples + count);    // Update the tuple-count
@@ -720,7 +732,7 @@ public class LeafPage implements DataPage {
             rightSibling.endOffset - OFFSET_FIRST_TUPLE);
 
         // Copy the tuple-data across
-        rightSibling.dbPage.write(OFFSET_FIRST_TUPLE, dbPage.getPageData(),
+        rightSibling.dbPage.write(OFFSET_FIRST_TUPLE, dbPage,
             startOffset, len);
 
         // Update the tuple-count
@@ -0,0 +1,298 @@
+package edu.caltech.nanodb.storage.columnfile;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import edu.caltech.nanodb.relations.ColumnType;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+import edu.caltech.nanodb.storage.DBPage;
+
+
+/**
+ * <p>
+ * This class keeps track of a scan through a columnar tuple file, and reads
+ * column values for the tuples the scan produces.  Each column's values are
+ * decoded a page at a time, the first time a value on that page is asked
+ * for, and the decoded page is kept until the scan moves past it.  Columns
+ * whose values are never asked for are never read, so a scan only reads the
+ * pages of the columns that a query actually uses.
+ * </p>
+ * <p>
+ * A cursor only produces rows that were in the file when it was created, so
+ * that rows added by the command doing the scan aren't scanned as well.
+ * </p>
+ *
+ * @design Decoded pages are only cached for the life of a cursor, which is
+ *         never longer than one command, so a rollback can't leave stale
+ *         values behind.  Within a command, the tuple file counts the
+ *         updates it makes, and a cursor drops its decoded pages when it
+ *         sees that another cursor has updated the file.  Adding rows and
+ *         splitting pages don't change the values of any existing rows, so
+ *         they don't make decoded pages stale.
+ */
+class ColumnCursor {
+
+    /**
+     * The decoded values of one page of a column, along with where the page
+     * sits in its chain.
+     */
+    static class Segment {
+        /** The page number of the page the values were read from. */
+        int pageNo;
+
+        /** The row ID of the first value. */
+        int firstRow;
+
+        /** The page number of the next page in the column's chain. */
+        int nextPage;
+
+        /** The decoded values of the page. */
+        Object[] values;
+
+        boolean containsRow(int rowID) {
+            return rowID >= firstRow && rowID < firstRow + values.length;
+        }
+    }
+
+
+    /** The tuple file that this cursor scans. */
+    private ColumnarTupleFile tupleFile;
+
+
+    /** The number of rows in the file when the cursor was created. */
+    private int rowLimit;
+
+
+    /** The update count of the tuple file when the segments were read. */
+    private long updateCount;
+
+
+    /** The most recently decoded page of each column, or <tt>null</tt>. */
+    private Segment[] segments;
+
+
+    /**
+     * The page numbers of the deleted-rows bitmap pages that this cursor has
+     * found so far.  Bitmap pages are only ever added to the end of the
+     * bitmap, so these stay valid.
+     */
+    private ArrayList<Integer> bitmapPages = new ArrayList<>();
+
+
+    ColumnCursor(ColumnarTupleFile tupleFile, int rowLimit) {
+        this.tupleFile = tupleFile;
+        this.rowLimit = rowLimit;
+
+        updateCount = tupleFile.getUpdateCount();
+        segments = new Segment[tupleFile.getSchema().numColumns()];
+    }
+
+
+    ColumnarTupleFile getTupleFile() {
+        return tupleFile;
+    }
+
+
+    /** Drops all decoded pages if the file has been updated since. */
+    private void checkUpdateCount() {
+        long fileCount = tupleFile.getUpdateCount();
+        if (updateCount != fileCount) {
+            for (int i = 0; i < segments.length; i++)
+                segments[i] = null;
+
+            updateCount = fileCount;
+        }
+    }
+
+
+    /**
+     * Records that this cursor's decoded pages are up to date with the
+     * file's updates.  The tuple file calls this after an update through
+     * this cursor, since the update is applied to the decoded values too.
+     */
+    void syncUpdateCount() {
+        updateCount = tupleFile.getUpdateCount();
+    }
+
+
+    /** Forgets the decoded page of the specified column. */
+    void dropSegment(int column) {
+        segments[column] = null;
+    }
+
+
+    /**
+     * Decodes the values of a page into a new segment.
+     *
+     * @param dbPage the page to decode, which must be pinned
+     * @param column the index of the column the page should belong to
+     *
+     * @return the new segment
+     */
+    Segment decodeSegment(DBPage dbPage, int column) {
+        if (ColumnPage.getColumn(dbPage) != column) {
+            throw new IllegalStateException(String.format("Page %d belongs " +
+                "to column %d, not column %d", dbPage.getPageNo(),
+                ColumnPage.getColumn(dbPage), column));
+        }
+
+        ColumnType colType =
+            tupleFile.getSchema().getColumnInfo(column).getType();
+
+        Segment segment = new Segment();
+        segment.pageNo = dbPage.getPageNo();
+        segment.firstRow = ColumnPage.getFirstRow(dbPage);
+        segment.nextPage = ColumnPage.getNextPage(dbPage);
+        segment.values = ColumnPage.readValues(dbPage, colType);
+
+        PerformanceCounters.inc(PerformanceCounters.STORAGE_COLUMN_PAGES_DECODED);
+
+        return segment;
+    }
+
+
+    /**
+     * Finds the page of a column's chain that holds the specified row,
+     * starting from the specified page, and decodes it.
+     */
+    private Segment findSegment(int column, int rowID, int pageNo)
+        throws IOException {
+
+        while (pageNo != 0) {
+            try (DBPage dbPage = tupleFile.loadPage(pageNo)) {
+                int firstRow = ColumnPage.getFirstRow(dbPage);
+                int numRows = ColumnPage.getNumRows(dbPage);
+                if (rowID >= firstRow && rowID < firstRow + numRows)
+                    return decodeSegment(dbPage, column);
+
+                pageNo = ColumnPage.getNextPage(dbPage);
+            }
+        }
+
+        throw new IllegalStateException(String.format(
+            "Column %d of %s has no value for row %d", column,
+            tupleFile.getDBFile(), rowID));
+    }
+
+
+    /**
+     * Returns the decoded page of a column that holds the specified row,
+     * reading it if necessary.
+     *
+     * @param column the index of the column
+     * @param rowID the row whose value is needed
+     *
+     * @return the segment holding the row's value
+     *
+     * @throws IOException if an IO error occurs while reading the page
+     */
+    Segment getSegment(int column, int rowID) throws IOException {
+        checkUpdateCount();
+
+        Segment segment = segments[column];
+        if (segment == null || rowID < segment.firstRow) {
+            // Start from the beginning of the chain.
+            segment = findSegment(column, rowID,
+                tupleFile.getFirstPage(column));
+        }
+        else if (!segment.containsRow(rowID)) {
+            // Scans move forward, so the row is usually on the next page.
+            segment = findSegment(column, rowID, segment.nextPage);
+        }
+
+        segments[column] = segment;
+        return segment;
+    }
+
+
+    /**
+     * Returns the value of a column for the specified row.
+     *
+     * @param column the index of the column
+     * @param rowID the row whose value is needed
+     *
+     * @return the value, or <tt>null</tt> if the value is <tt>NULL</tt>
+     *
+     * @throws IOException if an IO error occurs while reading the page
+     */
+    Object getValue(int column, int rowID) throws IOException {
+        Segment segment = getSegment(column, rowID);
+        return segment.values[rowID - segment.firstRow];
+    }
+
+
+    /**
+     * Returns the page number of the deleted-rows bitmap page that covers
+     * the specified row.
+     *
+     * @param rowID the row to find the bitmap page of
+     *
+     * @return the page number of the bitmap page
+     *
+     * @throws IOException if an IO error occurs while reading the bitmap
+     */
+    int getBitmapPage(int rowID) throws IOException {
+        int index = rowID / tupleFile.getBitmapRows();
+        while (bitmapPages.size() <= index) {
+            int pageNo;
+            if (bitmapPages.isEmpty()) {
+                pageNo = tupleFile.getDeletedRowsPage();
+            }
+            else {
+                int lastPageNo = bitmapPages.get(bitmapPages.size() - 1);
+                try (DBPage dbPage = tupleFile.loadPage(lastPageNo)) {
+                    pageNo = ColumnPage.getNextPage(dbPage);
+                }
+            }
+
+            if (pageNo == 0) {
+                throw new IllegalStateException(String.format(
+                    "Deleted-rows bitmap of %s doesn't cover row %d",
+                    tupleFile.getDBFile(), rowID));
+            }
+
+            bitmapPages.add(pageNo);
+        }
+
+        return bitmapPages.get(index);
+    }
+
+
+    /**
+     * Returns true if the specified row has been deleted.
+     *
+     * @throws IOException if an IO error occurs while reading the bitmap
+     */
+    boolean isRowDeleted(int rowID) throws IOException {
+        try (DBPage dbPage = tupleFile.loadPage(getBitmapPage(rowID))) {
+            return ColumnPage.isRowDeleted(dbPage, rowID);
+        }
+    }
+
+
+    /**
+     * Returns the first row at or after the specified row that hasn't been
+     * deleted, or -1 if there are no more rows for this cursor.
+     *
+     * @param rowID the row to start looking at
+     *
+     * @return the row ID of the next row, or -1 if there isn't one
+     *
+     * @throws IOException if an IO error occurs while reading the bitmap
+     */
+    int findLiveRow(int rowID) throws IOException {
+        while (rowID < rowLimit) {
+            try (DBPage dbPage = tupleFile.loadPage(getBitmapPage(rowID))) {
+                int end = Math.min(rowLimit,
+                    ColumnPage.getFirstRow(dbPage) + tupleFile.getBitmapRows());
+                for (; rowID < end; rowID++) {
+                    if (!ColumnPage.isRowDeleted(dbPage, rowID))
+                        return rowID;
+                }
+            }
+        }
+
+        return -1;
+    }
+}
@@ -0,0 +1,799 @@
+package edu.caltech.nanodb.storage.columnfile;
+
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import edu.caltech.nanodb.expressions.TypeConverter;
+import edu.caltech.nanodb.relations.ColumnType;
+import edu.caltech.nanodb.relations.SQLDataType;
+
+
+/**
+ * <p>
+ * This class encodes and decodes the blocks of column values that are stored
+ * in the pages of a columnar tuple file.  All values in a block come from the
+ * same column, so they have the same type, and they are often similar to
+ * each other; the lightweight encodings in {@link ColumnEncoding} take
+ * advantage of this without the CPU cost of general-purpose compression.
+ * </p>
+ * <p>
+ * Every encoding is built from the same representation of single values.
+ * Numbers are stored in the same binary format as in row-oriented tuples.
+ * Strings of every type, including <tt>CHAR</tt>, are stored as a 2-byte
+ * length followed by the US-ASCII bytes of the string.  A "plain" value is a
+ * value preceded by a flag byte that is 0 if the value is <tt>NULL</tt> (in
+ * which case nothing follows the flag) and 1 otherwise.  The encodings are
+ * laid out as follows:
+ * </p>
+ * <ul>
+ *   <li>{@link ColumnEncoding#PLAIN}:  each value as a plain value.</li>
+ *   <li>{@link ColumnEncoding#RUN_LENGTH}:  for each run of equal values, an
+ *       unsigned short holding the length of the run, and then the value as
+ *       a plain value.</li>
+ *   <li>{@link ColumnEncoding#DICTIONARY}:  an unsigned short holding the
+ *       number of distinct values, the distinct values as plain values, a
+ *       byte holding the number of bits <em>b</em> in each index, and then
+ *       the index of each value in the dictionary, packed into <em>b</em>
+ *       bits.</li>
+ *   <li>{@link ColumnEncoding#FRAME_OF_REFERENCE}:  a bitmap with one bit
+ *       for each value that is set if the value is <tt>NULL</tt>, the
+ *       smallest value as a long, a byte holding the number of bits
+ *       <em>b</em> in each offset, and then the offset of each value from
+ *       the smallest value, packed into <em>b</em> bits.  This encoding is
+ *       only used for integer columns.</li>
+ * </ul>
+ * <p>
+ * Bits are packed starting with the least significant bit of each byte.
+ * </p>
+ *
+ * @design Values are converted to the Java type of their column by
+ *         {@link #normalizeValue} before they are encoded, so that equal
+ *         values are recognized as such by the run-length and dictionary
+ *         encodings, and so that values are read back as the same objects
+ *         that were stored.
+ */
+public class ColumnEncoder {
+
+    /** The flag byte stored before a plain value that is <tt>NULL</tt>. */
+    private static final int NULL_FLAG = 0;
+
+
+    /** The flag byte stored before a plain value that isn't <tt>NULL</tt>. */
+    private static final int VALUE_FLAG = 1;
+
+
+    /** The longest run of values that a run-length block can record. */
+    private static final int MAX_RUN_LENGTH = 65535;
+
+
+    /** The largest number of entries that a dictionary block can have. */
+    private static final int MAX_DICTIONARY_SIZE = 65535;
+
+
+    /**
+     * This class describes how a range of values in an array will be
+     * encoded:  the encoding that was chosen, the number of bytes the encoded
+     * values will take, and the details that the encoding needs.  A plan is
+     * created by {@link #planEncoding}, and the values are then written by
+     * {@link #encode}.
+     */
+    public static class Plan {
+        private ColumnType colType;
+
+        private Object[] values;
+
+        private int from;
+
+        private int to;
+
+        private ColumnEncoding encoding;
+
+        private int size;
+
+        /** The dictionary of the block, mapping each value to its index. */
+        private LinkedHashMap<Object, Integer> dictionary;
+
+        /** The smallest value of a frame-of-reference block. */
+        private long base;
+
+        /** The number of bits in each packed index or offset. */
+        private int bitWidth;
+
+
+        /** Returns the encoding that the values will be stored with. */
+        public ColumnEncoding getEncoding() {
+            return encoding;
+        }
+
+
+        /** Returns the number of bytes the encoded values take. */
+        public int getSize() {
+            return size;
+        }
+
+
+        /** Returns the number of values that will be encoded. */
+        public int getNumValues() {
+            return to - from;
+        }
+    }
+
+
+    /**
+     * This helper class writes a sequence of values packed into a fixed
+     * number of bits each.
+     */
+    private static class BitWriter {
+        private ByteBuffer buf;
+
+        private int acc;
+
+        private int accBits;
+
+        BitWriter(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        void write(long value, int bits) {
+            while (bits > 0) {
+                int take = Math.min(bits, 8 - accBits);
+                acc |= (int) (value & ((1L << take) - 1)) << accBits;
+                accBits += take;
+                value >>>= take;
+                bits -= take;
+
+                if (accBits == 8) {
+                    buf.put((byte) acc);
+                    acc = 0;
+                    accBits = 0;
+                }
+            }
+        }
+
+        void flush() {
+            if (accBits > 0) {
+                buf.put((byte) acc);
+                acc = 0;
+                accBits = 0;
+            }
+        }
+    }
+
+
+    /**
+     * This helper class reads a sequence of values packed into a fixed
+     * number of bits each.
+     */
+    private static class BitReader {
+        private ByteBuffer buf;
+
+        private int current;
+
+        private int availBits;
+
+        BitReader(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        long read(int bits) {
+            long result = 0;
+            int shift = 0;
+            while (bits > 0) {
+                if (availBits == 0) {
+                    current = buf.get() & 0xFF;
+                    availBits = 8;
+                }
+
+                int take = Math.min(bits, availBits);
+                result |= (long) (current & ((1 << take) - 1)) << shift;
+                current >>>= take;
+                availBits -= take;
+                shift += take;
+                bits -= take;
+            }
+            return result;
+        }
+    }
+
+
+    /**
+     * Returns true if values of the specified type can be stored in a
+     * columnar tuple file.
+     *
+     * @param colType the type to check
+     *
+     * @return true if values of the type can be stored, false otherwise
+     */
+    public static boolean isSupportedType(ColumnType colType) {
+        switch (colType.getBaseType()) {
+        case INTEGER:
+        case SMALLINT:
+        case BIGINT:
+        case TINYINT:
+        case FLOAT:
+        case DOUBLE:
+        case NUMERIC:
+        case CHAR:
+        case VARCHAR:
+        case TEXT:
+        case BLOB:
+            return true;
+
+        default:
+            return false;
+        }
+    }
+
+
+    /**
+     * Returns true if the specified type is an integer type, which can be
+     * stored with the frame-of-reference encoding.
+     */
+    private static boolean isIntegral(ColumnType colType) {
+        SQLDataType baseType = colType.getBaseType();
+        return baseType == SQLDataType.INTEGER ||
+               baseType == SQLDataType.SMALLINT ||
+               baseType == SQLDataType.BIGINT ||
+               baseType == SQLDataType.TINYINT;
+    }
+
+
+    /**
+     * Converts a value into the Java type that values of the specified
+     * column type are read back as.
+     *
+     * @param colType the type of the column the value will be stored in
+     * @param value the value to convert, which may be <tt>null</tt>
+     *
+     * @return the converted value, or <tt>null</tt> if the value is
+     *         <tt>null</tt>
+     *
+     * @throws IllegalArgumentException if a string is too long for the
+     *         column
+     */
+    public static Object normalizeValue(ColumnType colType, Object value) {
+        if (value == null)
+            return null;
+
+        switch (colType.getBaseType()) {
+        case INTEGER:
+            return TypeConverter.getIntegerValue(value);
+
+        case SMALLINT:
+            return TypeConverter.getShortValue(value);
+
+        case BIGINT:
+            return TypeConverter.getLongValue(value);
+
+        case TINYINT:
+            return TypeConverter.getByteValue(value);
+
+        case FLOAT:
+            return TypeConverter.getFloatValue(value);
+
+        case DOUBLE:
+            return TypeConverter.getDoubleValue(value);
+
+        case NUMERIC:
+            return TypeConverter.getNumericValue(value);
+
+        case CHAR:
+        case VARCHAR:
+        case TEXT:
+        case BLOB:
+            {
+                String strVal = TypeConverter.getStringValue(value);
+
+                // Strings are stored as US-ASCII, so make sure that the
+                // string holds what will be read back.
+                for (int i = 0; i < strVal.length(); i++) {
+                    if (strVal.charAt(i) > 127) {
+                        strVal = new String(
+                            strVal.getBytes(StandardCharsets.US_ASCII),
+                            StandardCharsets.US_ASCII);
+                        break;
+                    }
+                }
+
+                int maxLength = 65535;
+                if (colType.getBaseType() == SQLDataType.CHAR)
+                    maxLength = colType.getLength();
+
+                if (strVal.length() > maxLength) {
+                    throw new IllegalArgumentException("value must be " +
+                        maxLength + " bytes or less");
+                }
+
+                return strVal;
+            }
+
+        default:
+            throw new UnsupportedOperationException(
+                "Cannot currently store type " + colType.getBaseType());
+        }
+    }
+
+
+    /**
+     * Returns the number of bytes needed to store a non-<tt>NULL</tt> value,
+     * which must already have been normalized.
+     */
+    private static int getValueSize(ColumnType colType, Object value) {
+        switch (colType.getBaseType()) {
+        case INTEGER:
+        case FLOAT:
+            return 4;
+
+        case SMALLINT:
+            return 2;
+
+        case BIGINT:
+        case DOUBLE:
+            return 8;
+
+        case TINYINT:
+            return 1;
+
+        case NUMERIC:
+            return 6 + ((BigDecimal) value).unscaledValue().bitLength() / 8 + 1;
+
+        default:
+            // All kinds of strings.
+            return 2 + ((String) value).length();
+        }
+    }
+
+
+    /**
+     * Returns the number of bytes needed to store a plain value, including
+     * its flag byte.  The value must already have been normalized.
+     *
+     * @param colType the type of the value's column
+     * @param value the value, which may be <tt>null</tt>
+     *
+     * @return the number of bytes the plain value takes
+     */
+    public static int getPlainSize(ColumnType colType, Object value) {
+        if (value == null)
+            return 1;
+
+        return 1 + getValueSize(colType, value);
+    }
+
+
+    /** Writes a non-<tt>NULL</tt> value into the buffer. */
+    private static void writeValue(ByteBuffer buf, ColumnType colType,
+                                   Object value) {
+        switch (colType.getBaseType()) {
+        case INTEGER:
+            buf.putInt((Integer) value);
+            break;
+
+        case SMALLINT:
+            buf.putShort((Short) value);
+            break;
+
+        case BIGINT:
+            buf.putLong((Long) value);
+            break;
+
+        case TINYINT:
+            buf.put((Byte) value);
+            break;
+
+        case FLOAT:
+            buf.putFloat((Float) value);
+            break;
+
+        case DOUBLE:
+            buf.putDouble((Double) value);
+            break;
+
+        case NUMERIC:
+            {
+                BigDecimal numVal = (BigDecimal) value;
+                byte[] bytes = numVal.unscaledValue().toByteArray();
+                buf.putShort((short) bytes.length);
+                buf.putInt(numVal.scale());
+                buf.put(bytes);
+                break;
+            }
+
+        default:
+            {
+                // All kinds of strings.
+                byte[] bytes = ((String) value).getBytes(StandardCharsets.US_ASCII);
+                buf.putShort((short) bytes.length);
+                buf.put(bytes);
+            }
+        }
+    }
+
+
+    /** Reads a non-<tt>NULL</tt> value from the buffer. */
+    private static Object readValue(ByteBuffer buf, ColumnType colType) {
+        switch (colType.getBaseType()) {
+        case INTEGER:
+            return buf.getInt();
+
+        case SMALLINT:
+            return buf.getShort();
+
+        case BIGINT:
+            return buf.getLong();
+
+        case TINYINT:
+            return buf.get();
+
+        case FLOAT:
+            return buf.getFloat();
+
+        case DOUBLE:
+            return buf.getDouble();
+
+        case NUMERIC:
+            {
+                byte[] bytes = new byte[buf.getShort() & 0xFFFF];
+                int scale = buf.getInt();
+                buf.get(bytes);
+                return new BigDecimal(new BigInteger(bytes), scale);
+            }
+
+        default:
+            {
+                // All kinds of strings.
+                byte[] bytes = new byte[buf.getShort() & 0xFFFF];
+                buf.get(bytes);
+                return new String(bytes, StandardCharsets.US_ASCII);
+            }
+        }
+    }
+
+
+    /**
+     * Writes a plain value into the buffer:  a flag byte, followed by the
+     * value itself if it isn't <tt>NULL</tt>.
+     *
+     * @param buf the buffer to write the value into
+     * @param colType the type of the value's column
+     * @param value the normalized value to write, which may be <tt>null</tt>
+     */
+    public static void writePlainValue(ByteBuffer buf, ColumnType colType,
+                                       Object value) {
+        if (value == null) {
+            buf.put((byte) NULL_FLAG);
+        }
+        else {
+            buf.put((byte) VALUE_FLAG);
+            writeValue(buf, colType, value);
+        }
+    }
+
+
+    /**
+     * Reads a plain value from the buffer.
+     *
+     * @param buf the buffer to read the value from
+     * @param colType the type of the value's column
+     *
+     * @return the value, or <tt>null</tt> if the value is <tt>NULL</tt>
+     */
+    public static Object readPlainValue(ByteBuffer buf, ColumnType colType) {
+        int flag = buf.get();
+        if (flag == NULL_FLAG)
+            return null;
+
+        if (flag != VALUE_FLAG)
+            throw new IllegalStateException("Invalid column value flag " + flag);
+
+        return readValue(buf, colType);
+    }
+
+
+    /** Returns the number of bits needed to store the unsigned value. */
+    private static int bitsFor(long value) {
+        return 64 - Long.numberOfLeadingZeros(value);
+    }
+
+
+    /** Returns the number of bytes that packed values take. */
+    private static int packedSize(int numValues, int bitWidth) {
+        return (int) (((long) numValues * bitWidth + 7) / 8);
+    }
+
+
+    /**
+     * Works out which encoding stores the specified range of values in the
+     * fewest bytes.  If several encodings take the same space, the one that
+     * is cheapest to decode is chosen.
+     *
+     * @param colType the type of the values' column
+     * @param values an array holding the normalized values to encode
+     * @param from the index of the first value to encode
+     * @param to the index after the last value to encode
+     *
+     * @return a plan for encoding the values, to pass to {@link #encode}
+     */
+    public static Plan planEncoding(ColumnType colType, Object[] values,
+                                    int from, int to) {
+        int plainSize = 0;
+        int runLengthSize = 0;
+        int runLength = 0;
+
+        LinkedHashMap<Object, Integer> dictionary = new LinkedHashMap<>();
+        int dictionarySize = 0;
+
+        boolean integral = isIntegral(colType);
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+
+        for (int i = from; i < to; i++) {
+            Object value = values[i];
+            int size = getPlainSize(colType, value);
+            plainSize += size;
+
+            if (i == from || runLength == MAX_RUN_LENGTH ||
+                !Objects.equals(value, values[i - 1])) {
+                runLengthSize += 2 + size;
+                runLength = 1;
+            }
+            else {
+                runLength++;
+            }
+
+            if (dictionary != null && !dictionary.containsKey(value)) {
+                if (dictionary.size() == MAX_DICTIONARY_SIZE) {
+                    dictionary = null;
+                }
+                else {
+                    dictionary.put(value, dictionary.size());
+                    dictionarySize += size;
+                }
+            }
+
+            if (integral && value != null) {
+                long longVal = ((Number) value).longValue();
+                min = Math.min(min, longVal);
+                max = Math.max(max, longVal);
+            }
+        }
+
+        int numValues = to - from;
+
+        Plan plan = new Plan();
+        plan.colType = colType;
+        plan.values = values;
+        plan.from = from;
+        plan.to = to;
+
+        plan.encoding = ColumnEncoding.PLAIN;
+        plan.size = plainSize;
+
+        if (runLengthSize < plan.size) {
+            plan.encoding = ColumnEncoding.RUN_LENGTH;
+            plan.size = runLengthSize;
+        }
+
+        if (integral) {
+            if (min > max) {
+                // All of the values are NULL.
+                min = max = 0;
+            }
+
+            int bitWidth = bitsFor(max - min);
+            int size = packedSize(numValues, 1) + 8 + 1 +
+                packedSize(numValues, bitWidth);
+            if (size < plan.size) {
+                plan.encoding = ColumnEncoding.FRAME_OF_REFERENCE;
+                plan.size = size;
+                plan.base = min;
+                plan.bitWidth = bitWidth;
+            }
+        }
+
+        if (dictionary != null) {
+            int bitWidth = bitsFor(Math.max(dictionary.size() - 1, 0));
+            int size = 2 + dictionarySize + 1 + packedSize(numValues, bitWidth);
+            if (size < plan.size) {
+                plan.encoding = ColumnEncoding.DICTIONARY;
+                plan.size = size;
+                plan.dictionary = dictionary;
+                plan.bitWidth = bitWidth;
+            }
+        }
+
+        return plan;
+    }
+
+
+    /**
+     * Encodes the values described by the plan into the buffer, which must
+     * have at least {@link Plan#getSize} bytes remaining.
+     *
+     * @param plan the plan that describes how to encode the values
+     * @param buf the buffer to write the encoded values into
+     */
+    public static void encode(Plan plan, ByteBuffer buf) {
+        ColumnType colType = plan.colType;
+        Object[] values = plan.values;
+
+        switch (plan.encoding) {
+        case PLAIN:
+            for (int i = plan.from; i < plan.to; i++)
+                writePlainValue(buf, colType, values[i]);
+            break;
+
+        case RUN_LENGTH:
+            {
+                int i = plan.from;
+                while (i < plan.to) {
+                    Object value = values[i];
+                    int end = i + 1;
+                    while (end < plan.to && end - i < MAX_RUN_LENGTH &&
+                           Objects.equals(value, values[end])) {
+                        end++;
+                    }
+
+                    buf.putShort((short) (end - i));
+                    writePlainValue(buf, colType, value);
+                    i = end;
+                }
+                break;
+            }
+
+        case DICTIONARY:
+            {
+                buf.putShort((short) plan.dictionary.size());
+                for (Object value : plan.dictionary.keySet())
+                    writePlainValue(buf, colType, value);
+
+                buf.put((byte) plan.bitWidth);
+                BitWriter writer = new BitWriter(buf);
+                for (int i = plan.from; i < plan.to; i++)
+                    writer.write(plan.dictionary.get(values[i]), plan.bitWidth);
+                writer.flush();
+                break;
+            }
+
+        case FRAME_OF_REFERENCE:
+            {
+                BitWriter writer = new BitWriter(buf);
+                for (int i = plan.from; i < plan.to; i++)
+                    writer.write(values[i] == null ? 1 : 0, 1);
+                writer.flush();
+
+                buf.putLong(plan.base);
+                buf.put((byte) plan.bitWidth);
+                for (int i = plan.from; i < plan.to; i++) {
+                    long offset = 0;
+                    if (values[i] != null)
+                        offset = ((Number) values[i]).longValue() - plan.base;
+                    writer.write(offset, plan.bitWidth);
+                }
+                writer.flush();
+                break;
+            }
+
+        default:
+            throw new IllegalStateException("Unexpected encoding " +
+                plan.encoding);
+        }
+    }
+
+
+    /** Converts a long into the Java type of an integer column. */
+    private static Object makeIntegral(ColumnType colType, long value) {
+        switch (colType.getBaseType()) {
+        case INTEGER:
+            return (int) value;
+
+        case SMALLINT:
+            return (short) value;
+
+        case TINYINT:
+            return (byte) value;
+
+        default:
+            return value;
+        }
+    }
+
+
+    /**
+     * Decodes a block of values from the buffer.
+     *
+     * @param buf the buffer holding the encoded values
+     * @param colType the type of the values' column
+     * @param encoding the encoding the values were stored with
+     * @param numValues the number of values in the block
+     * @param dst the array to store the decoded values into
+     * @param dstOffset the index in <tt>dst</tt> to store the first value at
+     *
+     * @throws IllegalStateException if the encoded data is invalid
+     */
+    public static void decode(ByteBuffer buf, ColumnType colType,
+        ColumnEncoding encoding, int numValues, Object[] dst, int dstOffset) {
+
+        int end = dstOffset + numValues;
+
+        switch (encoding) {
+        case PLAIN:
+            for (int i = dstOffset; i < end; i++)
+                dst[i] = readPlainValue(buf, colType);
+            break;
+
+        case RUN_LENGTH:
+            {
+                int i = dstOffset;
+                while (i < end) {
+                    int runLength = buf.getShort() & 0xFFFF;
+                    Object value = readPlainValue(buf, colType);
+                    if (runLength == 0 || i + runLength > end) {
+                        throw new IllegalStateException(
+                            "Invalid run length " + runLength);
+                    }
+
+                    for (int j = 0; j < runLength; j++)
+                        dst[i++] = value;
+                }
+                break;
+            }
+
+        case DICTIONARY:
+            {
+                Object[] dictionary = new Object[buf.getShort() & 0xFFFF];
+                for (int i = 0; i < dictionary.length; i++)
+                    dictionary[i] = readPlainValue(buf, colType);
+
+                int bitWidth = buf.get();
+                BitReader reader = new BitReader(buf);
+                for (int i = dstOffset; i < end; i++) {
+                    int index = (int) reader.read(bitWidth);
+                    if (index >= dictionary.length) {
+                        throw new IllegalStateException(
+                            "Invalid dictionary index " + index);
+                    }
+                    dst[i] = dictionary[index];
+                }
+                break;
+            }
+
+        case FRAME_OF_REFERENCE:
+            {
+                BitReader reader = new BitReader(buf);
+                boolean[] nulls = new boolean[numValues];
+                for (int i = 0; i < numValues; i++)
+                    nulls[i] = (reader.read(1) != 0);
+
+                long base = buf.getLong();
+                int bitWidth = buf.get();
+                reader = new BitReader(buf);
+                for (int i = 0; i < numValues; i++) {
+                    long offset = reader.read(bitWidth);
+                    dst[dstOffset + i] =
+                        nulls[i] ? null : makeIntegral(colType, base + offset);
+                }
+                break;
+            }
+
+        default:
+            throw new IllegalStateException("Unexpected encoding " + encoding);
+        }
+    }
+
+
+    /**
+     * Returns a short description of how the values of an array would be
+     * stored in one block, which is useful for logging.
+     */
+    static String describePlan(Plan plan) {
+        return String.format("%d values, %s, %d bytes", plan.getNumValues(),
+            plan.getEncoding(), plan.getSize());
+    }
+}
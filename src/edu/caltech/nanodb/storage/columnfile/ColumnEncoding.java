@@ -0,0 +1,68 @@
+package edu.caltech.nanodb.storage.columnfile;
+
+
+/**
+ * This enumeration specifies the different ways that a block of column
+ * values can be encoded in a page of a columnar tuple file.  Each encoding
+ * is assigned a unique integer value in the range [0, 255], which is stored
+ * in the header of each column page.  See {@link ColumnEncoder} for the
+ * details of each encoding.
+ */
+public enum ColumnEncoding {
+
+    /**
+     * Each value is stored by itself, after a byte that says whether the
+     * value is <tt>NULL</tt>.
+     */
+    PLAIN(0),
+
+    /**
+     * Runs of equal values are stored once, along with the length of the
+     * run.  This works well for sorted columns and columns with few distinct
+     * values.
+     */
+    RUN_LENGTH(1),
+
+    /**
+     * The distinct values are stored once in a dictionary, and each value is
+     * stored as a bit-packed index into the dictionary.
+     */
+    DICTIONARY(2),
+
+    /**
+     * Integer values are stored as bit-packed offsets from the smallest
+     * value in the block.  This works well for integer columns whose values
+     * fall in a narrow range, such as keys and dates.
+     */
+    FRAME_OF_REFERENCE(3);
+
+
+    private int id;
+
+
+    private ColumnEncoding(int id) {
+        this.id = id;
+    }
+
+
+    public int getID() {
+        return id;
+    }
+
+
+    /**
+     * Given a numeric encoding ID, returns the corresponding encoding for the
+     * ID, or <tt>null</tt> if no encoding corresponds to the ID.
+     *
+     * @param id the numeric ID of the encoding to retrieve
+     *
+     * @return the encoding with that ID, or <tt>null</tt> if not found
+     */
+    public static ColumnEncoding valueOf(int id) {
+        for (ColumnEncoding encoding : values()) {
+            if (encoding.id == id)
+                return encoding;
+        }
+        return null;
+    }
+}
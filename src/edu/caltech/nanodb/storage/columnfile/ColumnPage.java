@@ -0,0 +1,361 @@
+package edu.caltech.nanodb.storage.columnfile;
+
+
+import java.nio.ByteBuffer;
+
+import edu.caltech.nanodb.relations.ColumnType;
+import edu.caltech.nanodb.storage.DBPage;
+
+
+/**
+ * <p>
+ * This class provides the constants and operations for accessing the data
+ * pages of a columnar tuple file.  Each data page belongs to one chain of
+ * pages, and holds the values of one column for a contiguous range of rows.
+ * The values are stored in two parts:  an encoded <em>block</em>, written
+ * with whichever {@link ColumnEncoding} stores the values in the fewest
+ * bytes, followed by a <em>tail</em> of plain values that rows have been
+ * appended to since the block was written.  The tail lets rows be added
+ * cheaply; when a page fills up, its values are encoded into a new block.
+ * </p>
+ * <p>
+ * Data pages are laid out as follows:
+ * </p>
+ * <ul>
+ *   <li>An unsigned short holding the index of the column whose values the
+ *       page holds, or {@link #DELETED_ROWS_COLUMN} for pages of the
+ *       deleted-rows bitmap.</li>
+ *   <li>An int holding the page number of the next page in the chain, or 0
+ *       if this is the last page.</li>
+ *   <li>An int holding the row ID of the first row on the page.</li>
+ *   <li>Two unsigned shorts holding the number of rows in the block and in
+ *       the tail.</li>
+ *   <li>A byte holding the ID of the block's encoding, and an unused
+ *       byte.</li>
+ *   <li>Two ints holding the number of bytes in the block, and the offset
+ *       where the tail ends.</li>
+ *   <li>The block, starting at {@link #DATA_START}, followed by the
+ *       tail.</li>
+ * </ul>
+ * <p>
+ * Pages of the deleted-rows bitmap have the same header, but after it they
+ * hold one bit for each row, which is set if the row has been deleted.
+ * Each bitmap page covers a fixed range of rows, so the page for a row can
+ * be found without reading the others' contents.
+ * </p>
+ */
+public class ColumnPage {
+
+    /**
+     * The offset in the page of the index of the page's column.  This value
+     * is an unsigned short.
+     */
+    public static final int OFFSET_COLUMN = 0;
+
+
+    /**
+     * The offset in the page of the next page in the page's chain.  This
+     * value is an int.
+     */
+    public static final int OFFSET_NEXT_PAGE = 2;
+
+
+    /**
+     * The offset in the page of the row ID of the page's first row.  This
+     * value is an int.
+     */
+    public static final int OFFSET_FIRST_ROW = 6;
+
+
+    /**
+     * The offset in the page of the number of rows in the encoded block.
+     * This value is an unsigned short.
+     */
+    public static final int OFFSET_BLOCK_ROWS = 10;
+
+
+    /**
+     * The offset in the page of the number of rows in the tail.  This value
+     * is an unsigned short.
+     */
+    public static final int OFFSET_TAIL_ROWS = 12;
+
+
+    /**
+     * The offset in the page of the ID of the block's encoding.  This value
+     * is an unsigned byte.
+     */
+    public static final int OFFSET_ENCODING = 14;
+
+
+    /**
+     * The offset in the page of the number of bytes in the encoded block.
+     * This value is an int.
+     */
+    public static final int OFFSET_BLOCK_SIZE = 16;
+
+
+    /**
+     * The offset in the page of the offset where the tail ends, which is
+     * also where the next value appended to the page will go.  This value
+     * is an int.
+     */
+    public static final int OFFSET_DATA_END = 20;
+
+
+    /** The offset in the page where the encoded block starts. */
+    public static final int DATA_START = 24;
+
+
+    /** The column index stored in the pages of the deleted-rows bitmap. */
+    public static final int DELETED_ROWS_COLUMN = 0xFFFF;
+
+
+    /**
+     * The largest number of rows a data page can hold.  This bounds the work
+     * of re-encoding a page when one of its values is updated.
+     */
+    public static final int MAX_PAGE_ROWS = 8192;
+
+
+    /**
+     * Initializes a new page of the specified column's chain, with no rows
+     * and no next page.
+     *
+     * @param dbPage the page to initialize
+     * @param column the index of the column whose values the page holds, or
+     *        {@link #DELETED_ROWS_COLUMN}
+     * @param firstRow the row ID of the first row the page will hold
+     */
+    public static void initNewPage(DBPage dbPage, int column, int firstRow) {
+        dbPage.writeShort(OFFSET_COLUMN, column);
+        dbPage.writeInt(OFFSET_NEXT_PAGE, 0);
+        dbPage.writeInt(OFFSET_FIRST_ROW, firstRow);
+        dbPage.writeShort(OFFSET_BLOCK_ROWS, 0);
+        dbPage.writeShort(OFFSET_TAIL_ROWS, 0);
+        dbPage.writeByte(OFFSET_ENCODING, ColumnEncoding.PLAIN.getID());
+        dbPage.writeByte(OFFSET_ENCODING + 1, 0);
+        dbPage.writeInt(OFFSET_BLOCK_SIZE, 0);
+        dbPage.writeInt(OFFSET_DATA_END, DATA_START);
+    }
+
+
+    public static int getColumn(DBPage dbPage) {
+        return dbPage.readUnsignedShort(OFFSET_COLUMN);
+    }
+
+
+    public static int getNextPage(DBPage dbPage) {
+        return dbPage.readInt(OFFSET_NEXT_PAGE);
+    }
+
+
+    public static void setNextPage(DBPage dbPage, int pageNo) {
+        dbPage.writeInt(OFFSET_NEXT_PAGE, pageNo);
+    }
+
+
+    public static int getFirstRow(DBPage dbPage) {
+        return dbPage.readInt(OFFSET_FIRST_ROW);
+    }
+
+
+    public static void setFirstRow(DBPage dbPage, int firstRow) {
+        dbPage.writeInt(OFFSET_FIRST_ROW, firstRow);
+    }
+
+
+    public static int getBlockRows(DBPage dbPage) {
+        return dbPage.readUnsignedShort(OFFSET_BLOCK_ROWS);
+    }
+
+
+    public static int getTailRows(DBPage dbPage) {
+        return dbPage.readUnsignedShort(OFFSET_TAIL_ROWS);
+    }
+
+
+    /** Returns the total number of rows on the page. */
+    public static int getNumRows(DBPage dbPage) {
+        return getBlockRows(dbPage) + getTailRows(dbPage);
+    }
+
+
+    public static ColumnEncoding getEncoding(DBPage dbPage) {
+        int id = dbPage.readUnsignedByte(OFFSET_ENCODING);
+        ColumnEncoding encoding = ColumnEncoding.valueOf(id);
+        if (encoding == null) {
+            throw new IllegalStateException(String.format(
+                "Page %d has an unrecognized column encoding %d",
+                dbPage.getPageNo(), id));
+        }
+        return encoding;
+    }
+
+
+    public static int getBlockSize(DBPage dbPage) {
+        return dbPage.readInt(OFFSET_BLOCK_SIZE);
+    }
+
+
+    public static int getDataEnd(DBPage dbPage) {
+        return dbPage.readInt(OFFSET_DATA_END);
+    }
+
+
+    /** Returns the number of bytes of data in the page's tail. */
+    public static int getTailSize(DBPage dbPage) {
+        return getDataEnd(dbPage) - DATA_START - getBlockSize(dbPage);
+    }
+
+
+    /** Returns the number of bytes after the end of the page's tail. */
+    public static int getFreeSpace(DBPage dbPage) {
+        return dbPage.getPageSize() - getDataEnd(dbPage);
+    }
+
+
+    /**
+     * Returns the largest number of bytes that an encoded block can take in
+     * a page of the specified size.
+     */
+    public static int getMaxBlockSize(int pageSize) {
+        return pageSize - DATA_START;
+    }
+
+
+    /**
+     * Reads and decodes all of the values on a page, from both the block and
+     * the tail.
+     *
+     * @param dbPage the page to read
+     * @param colType the type of the page's column
+     *
+     * @return an array holding the page's values, in row order
+     */
+    public static Object[] readValues(DBPage dbPage, ColumnType colType) {
+        int blockRows = getBlockRows(dbPage);
+        int tailRows = getTailRows(dbPage);
+        int blockSize = getBlockSize(dbPage);
+        int dataEnd = getDataEnd(dbPage);
+
+        byte[] data = new byte[dataEnd - DATA_START];
+        dbPage.read(DATA_START, data);
+
+        Object[] values = new Object[blockRows + tailRows];
+
+        ByteBuffer buf = ByteBuffer.wrap(data, 0, blockSize);
+        ColumnEncoder.decode(buf, colType, getEncoding(dbPage), blockRows,
+            values, 0);
+        if (buf.position() != blockSize) {
+            throw new IllegalStateException(String.format("Block on page " +
+                "%d decoded to %d bytes; expected %d bytes",
+                dbPage.getPageNo(), buf.position(), blockSize));
+        }
+
+        buf = ByteBuffer.wrap(data, blockSize, data.length - blockSize);
+        for (int i = blockRows; i < values.length; i++)
+            values[i] = ColumnEncoder.readPlainValue(buf, colType);
+
+        return values;
+    }
+
+
+    /**
+     * Replaces the values on a page with a newly encoded block, leaving the
+     * tail empty.  The block must fit on the page.
+     *
+     * @param dbPage the page to write the block to
+     * @param plan the plan describing the values and how to encode them
+     */
+    public static void writeBlock(DBPage dbPage, ColumnEncoder.Plan plan) {
+        int size = plan.getSize();
+        if (size > getMaxBlockSize(dbPage.getPageSize())) {
+            throw new IllegalArgumentException(String.format("Block of %d " +
+                "bytes doesn't fit on page %d", size, dbPage.getPageNo()));
+        }
+
+        byte[] data = new byte[size];
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        ColumnEncoder.encode(plan, buf);
+        if (buf.position() != size) {
+            throw new IllegalStateException(String.format("Block was " +
+                "encoded to %d bytes; expected %d bytes", buf.position(), size));
+        }
+
+        dbPage.write(DATA_START, data);
+        dbPage.writeShort(OFFSET_BLOCK_ROWS, plan.getNumValues());
+        dbPage.writeShort(OFFSET_TAIL_ROWS, 0);
+        dbPage.writeByte(OFFSET_ENCODING, plan.getEncoding().getID());
+        dbPage.writeInt(OFFSET_BLOCK_SIZE, size);
+        dbPage.writeInt(OFFSET_DATA_END, DATA_START + size);
+    }
+
+
+    /**
+     * Appends a plain value to the tail of a page.  The caller must make
+     * sure that the value fits, and that the page isn't already holding
+     * {@link #MAX_PAGE_ROWS} rows.
+     *
+     * @param dbPage the page to append the value to
+     * @param colType the type of the page's column
+     * @param value the normalized value to append, which may be
+     *        <tt>null</tt>
+     */
+    public static void appendValue(DBPage dbPage, ColumnType colType,
+                                   Object value) {
+        byte[] data = new byte[ColumnEncoder.getPlainSize(colType, value)];
+        ColumnEncoder.writePlainValue(ByteBuffer.wrap(data), colType, value);
+
+        int dataEnd = getDataEnd(dbPage);
+        dbPage.write(dataEnd, data);
+        dbPage.writeShort(OFFSET_TAIL_ROWS, getTailRows(dbPage) + 1);
+        dbPage.writeInt(OFFSET_DATA_END, dataEnd + data.length);
+    }
+
+
+    /**
+     * Returns the number of rows that each page of the deleted-rows bitmap
+     * covers, for the specified page size.
+     */
+    public static int getBitmapRows(int pageSize) {
+        return (pageSize - DATA_START) * 8;
+    }
+
+
+    /**
+     * Initializes a new page of the deleted-rows bitmap, in which none of the
+     * rows the page covers are deleted.
+     *
+     * @param dbPage the page to initialize
+     * @param firstRow the row ID of the first row the page covers
+     */
+    public static void initBitmapPage(DBPage dbPage, int firstRow) {
+        initNewPage(dbPage, DELETED_ROWS_COLUMN, firstRow);
+        dbPage.setDataRange(DATA_START, dbPage.getPageSize() - DATA_START,
+            (byte) 0);
+    }
+
+
+    /**
+     * Returns true if the bitmap page records that the specified row has
+     * been deleted.  The row must be one that the page covers.
+     */
+    public static boolean isRowDeleted(DBPage dbPage, int rowID) {
+        int bit = rowID - getFirstRow(dbPage);
+        int b = dbPage.readUnsignedByte(DATA_START + bit / 8);
+        return (b & (1 << (bit % 8))) != 0;
+    }
+
+
+    /**
+     * Records in the bitmap page that the specified row has been deleted.
+     * The row must be one that the page covers.
+     */
+    public static void setRowDeleted(DBPage dbPage, int rowID) {
+        int bit = rowID - getFirstRow(dbPage);
+        int offset = DATA_START + bit / 8;
+        int b = dbPage.readUnsignedByte(offset);
+        dbPage.writeByte(offset, b | (1 << (bit % 8)));
+    }
+}
@@ -0,0 +1,178 @@
+package edu.caltech.nanodb.storage.columnfile;
+
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+
+import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.storage.FilePointer;
+
+
+/**
+ * This class represents a row of a columnar tuple file.  The tuple doesn't
+ * hold any of the row's values itself; each value is read through the
+ * tuple's {@link ColumnCursor} when it is asked for, so that only the columns
+ * a query actually uses are read from the file.
+ *
+ * @design Columnar tuples don't keep any pages pinned, since their values
+ *         are decoded into the cursor's memory.  Pinning and unpinning them
+ *         is a no-op, as with {@link edu.caltech.nanodb.expressions.TupleLiteral}.
+ *         They are still disk-backed, though, since the values they return
+ *         change if the row is updated.
+ */
+public class ColumnarTuple implements Tuple {
+
+    /** The cursor that this tuple reads its values through. */
+    private ColumnCursor cursor;
+
+
+    /** The ID of the row that this tuple represents. */
+    private int rowID;
+
+
+    ColumnarTuple(ColumnCursor cursor, int rowID) {
+        this.cursor = cursor;
+        this.rowID = rowID;
+    }
+
+
+    ColumnCursor getCursor() {
+        return cursor;
+    }
+
+
+    /**
+     * Returns the ID of the row that this tuple represents.  Rows are
+     * numbered from 0 in the order that they were added to the file.
+     *
+     * @return the ID of the row that this tuple represents
+     */
+    public int getRowID() {
+        return rowID;
+    }
+
+
+    @Override
+    public boolean isDiskBacked() {
+        return true;
+    }
+
+
+    @Override
+    public int getColumnCount() {
+        return cursor.getTupleFile().getSchema().numColumns();
+    }
+
+
+    private void checkColumnIndex(int colIndex) {
+        if (colIndex < 0 || colIndex >= getColumnCount()) {
+            throw new IllegalArgumentException("Column index must be in range [0," +
+                (getColumnCount() - 1) + "], got " + colIndex);
+        }
+    }
+
+
+    @Override
+    public boolean isNullValue(int colIndex) {
+        return getColumnValue(colIndex) == null;
+    }
+
+
+    /**
+     * Returns the specified column's value, reading the column's page from
+     * the file if the tuple's cursor hasn't already decoded it.
+     *
+     * @throws UncheckedIOException if the column's page can't be read
+     */
+    @Override
+    public Object getColumnValue(int colIndex) {
+        checkColumnIndex(colIndex);
+
+        try {
+            return cursor.getValue(colIndex, rowID);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+
+    /**
+     * Sets the specified column's value by updating the row in the tuple
+     * file.
+     *
+     * @throws UncheckedIOException if the column's pages can't be updated
+     */
+    @Override
+    public void setColumnValue(int colIndex, Object value) {
+        checkColumnIndex(colIndex);
+
+        ColumnarTupleFile tupleFile = cursor.getTupleFile();
+        String colName =
+            tupleFile.getSchema().getColumnInfo(colIndex).getName();
+        try {
+            tupleFile.updateTuple(this,
+                Collections.singletonMap(colName, value));
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+
+    @Override
+    public FilePointer getExternalReference() {
+        return ColumnarTupleFile.rowIDToFilePointer(rowID);
+    }
+
+
+    /** Columnar tuples don't hold pages, so pinning is a no-op. */
+    @Override
+    public void pin() {
+        // No-op.
+    }
+
+
+    /** Columnar tuples don't hold pages, so unpinning is a no-op. */
+    @Override
+    public void unpin() {
+        // No-op.
+    }
+
+
+    /** Columnar tuples don't hold pages, so pinning is a no-op. */
+    @Override
+    public int getPinCount() {
+        return 0;
+    }
+
+
+    /** Columnar tuples don't hold pages, so pinning is a no-op. */
+    @Override
+    public boolean isPinned() {
+        return false;
+    }
+
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder();
+        buf.append("CT[");
+
+        for (int i = 0; i < getColumnCount(); i++) {
+            if (i > 0)
+                buf.append(',');
+
+            Object obj = getColumnValue(i);
+            if (obj == null)
+                buf.append("NULL");
+            else
+                buf.append(obj);
+        }
+
+        buf.append(']');
+
+        return buf.toString();
+    }
+}
@@ -0,0 +1,887 @@
+package edu.caltech.nanodb.storage.columnfile;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.client.SessionState;
+import edu.caltech.nanodb.queryeval.ColumnStats;
+import edu.caltech.nanodb.queryeval.ColumnStatsCollector;
+import edu.caltech.nanodb.queryeval.TableStats;
+import edu.caltech.nanodb.relations.ColumnInfo;
+import edu.caltech.nanodb.relations.ColumnType;
+import edu.caltech.nanodb.relations.TableSchema;
+import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.storage.BufferRing;
+import edu.caltech.nanodb.storage.DBFile;
+import edu.caltech.nanodb.storage.DBPage;
+import edu.caltech.nanodb.storage.FilePointer;
+import edu.caltech.nanodb.storage.InvalidFilePointerException;
+import edu.caltech.nanodb.storage.OverflowFile;
+import edu.caltech.nanodb.storage.StorageManager;
+import edu.caltech.nanodb.storage.TupleFile;
+import edu.caltech.nanodb.storage.TupleFileManager;
+import edu.caltech.nanodb.storage.TupleMoveListener;
+import edu.caltech.nanodb.storage.freespacemap.FreeSpaceMapFile;
+
+
+/**
+ * <p>
+ * This class implements the TupleFile interface for columnar files, which
+ * store each column of a table in its own chain of pages instead of storing
+ * whole tuples together.  A scan only reads the pages of the columns that
+ * the query actually uses, and since the values on a page all have the same
+ * type, they are usually much smaller once encoded with a
+ * {@link ColumnEncoding}.  This makes columnar files a good fit for large
+ * tables that are mostly appended to and scanned by analytic queries.
+ * </p>
+ * <p>
+ * Rows are numbered from 0 in the order they are added, and each column's
+ * chain holds the column's values in row order.  The pages of the file are
+ * described by the {@link HeaderPage} and {@link ColumnPage} classes.
+ * Deleted rows are recorded in a bitmap rather than removed, so that the
+ * rows after them keep their positions in every chain.
+ * </p>
+ *
+ * @design Updating a value re-encodes the whole page that holds it, which is
+ *         much more expensive than updating a heap file.  Tables that are
+ *         updated often should use heap files.
+ *
+ * @design Columnar files don't use their free space map, since rows are only
+ *         ever added at the end of the chains, and they store all values in
+ *         their pages, so they don't have an overflow file.  Indexes aren't
+ *         supported on columnar tables.
+ */
+public class ColumnarTupleFile implements TupleFile {
+
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(ColumnarTupleFile.class);
+
+
+    /**
+     * The storage manager to use for reading and writing file pages, pinning
+     * and unpinning pages, write-ahead logging, and so forth.
+     */
+    private StorageManager storageManager;
+
+
+    /** The manager for columnar tuple files. */
+    private ColumnarTupleFileManager columnarFileManager;
+
+
+    /** The schema of tuples in this tuple file. */
+    private TableSchema schema;
+
+
+    /** Statistics for this tuple file. */
+    private TableStats stats;
+
+
+    /** The file that stores the tuples. */
+    private DBFile dbFile;
+
+
+    /**
+     * The file that stores the free space map.  Columnar files only add rows
+     * at the end of their chains, so they don't use it.
+     */
+    private FreeSpaceMapFile fsmFile;
+
+
+    /**
+     * The number of times that values in this file have been updated since
+     * the file was opened.  Cursors use this to tell when the pages they
+     * have decoded might be out of date.
+     */
+    private long updateCount;
+
+
+    public ColumnarTupleFile(StorageManager storageManager,
+                             ColumnarTupleFileManager columnarFileManager,
+                             DBFile dbFile, TableSchema schema,
+                             TableStats stats) {
+        if (storageManager == null)
+            throw new IllegalArgumentException("storageManager cannot be null");
+
+        if (columnarFileManager == null)
+            throw new IllegalArgumentException("columnarFileManager cannot be null");
+
+        if (dbFile == null)
+            throw new IllegalArgumentException("dbFile cannot be null");
+
+        if (schema == null)
+            throw new IllegalArgumentException("schema cannot be null");
+
+        if (stats == null)
+            throw new IllegalArgumentException("stats cannot be null");
+
+        this.storageManager = storageManager;
+        this.columnarFileManager = columnarFileManager;
+        this.dbFile = dbFile;
+        this.schema = schema;
+        this.stats = stats;
+    }
+
+
+    @Override
+    public TupleFileManager getManager() {
+        return columnarFileManager;
+    }
+
+
+    @Override
+    public TableSchema getSchema() {
+        return schema;
+    }
+
+
+    @Override
+    public TableStats getStats() {
+        return stats;
+    }
+
+
+    @Override
+    public void setFsmFile(FreeSpaceMapFile fsmFile) {
+        this.fsmFile = fsmFile;
+    }
+
+
+    /** Columnar files store all values in their pages, so this is ignored. */
+    @Override
+    public void setOverflowFile(OverflowFile overflowFile) {
+        // Nothing to do.
+    }
+
+
+    @Override
+    public DBFile getDBFile() {
+        return dbFile;
+    }
+
+
+    /**
+     * Converts a row ID into the file-pointer that refers to the row.  The
+     * file-pointer doesn't name a real page; the row ID is split across the
+     * page number and offset, and the page number is offset by one so that
+     * no row has a pointer to the header page.
+     *
+     * @param rowID the row ID to convert
+     *
+     * @return a file-pointer that refers to the row
+     */
+    static FilePointer rowIDToFilePointer(int rowID) {
+        return new FilePointer((rowID >>> 16) + 1, rowID & 0xFFFF);
+    }
+
+
+    /**
+     * Converts a file-pointer produced by {@link #rowIDToFilePointer} back
+     * into a row ID.
+     *
+     * @param fptr the file-pointer to convert
+     *
+     * @return the row ID that the file-pointer refers to, or -1 if the
+     *         file-pointer can't refer to a row
+     */
+    static int filePointerToRowID(FilePointer fptr) {
+        int pageNo = fptr.getPageNo();
+        int offset = fptr.getOffset();
+        if (pageNo < 1 || pageNo > 0x8000 || offset < 0 || offset > 0xFFFF)
+            return -1;
+
+        return ((pageNo - 1) << 16) | offset;
+    }
+
+
+    long getUpdateCount() {
+        return updateCount;
+    }
+
+
+    /**
+     * Returns the number of rows that each page of the deleted-rows bitmap
+     * covers.
+     */
+    int getBitmapRows() {
+        return ColumnPage.getBitmapRows(dbFile.getPageSize());
+    }
+
+
+    /** Loads the specified page of this file, pinning it. */
+    DBPage loadPage(int pageNo) throws IOException {
+        return storageManager.loadDBPage(dbFile, pageNo);
+    }
+
+
+    /** Returns the first page of the specified column's chain. */
+    int getFirstPage(int column) throws IOException {
+        try (DBPage headerPage = loadPage(0)) {
+            return HeaderPage.getFirstPage(headerPage, column);
+        }
+    }
+
+
+    /** Returns the first page of the deleted-rows bitmap. */
+    int getDeletedRowsPage() throws IOException {
+        try (DBPage headerPage = loadPage(0)) {
+            return HeaderPage.getDeletedRowsPage(headerPage);
+        }
+    }
+
+
+    /** Returns the number of rows that have been added to the file. */
+    private int getNumRows() throws IOException {
+        try (DBPage headerPage = loadPage(0)) {
+            return HeaderPage.getNumRows(headerPage);
+        }
+    }
+
+
+    private ColumnarTuple checkTuple(Tuple tup) {
+        if (!(tup instanceof ColumnarTuple)) {
+            throw new IllegalArgumentException(
+                "Tuple must be of type ColumnarTuple; got " + tup.getClass());
+        }
+
+        ColumnarTuple ctup = (ColumnarTuple) tup;
+        if (ctup.getCursor().getTupleFile() != this) {
+            throw new IllegalArgumentException(
+                "Tuple doesn't belong to tuple file " + dbFile);
+        }
+
+        return ctup;
+    }
+
+
+    /**
+     * Converts a value to the form that it is stored in, and checks that it
+     * will fit on a page.
+     */
+    private Object normalizeValue(int column, Object value) {
+        ColumnInfo colInfo = schema.getColumnInfo(column);
+        ColumnType colType = colInfo.getType();
+
+        value = ColumnEncoder.normalizeValue(colType, value);
+        int size = ColumnEncoder.getPlainSize(colType, value);
+        if (size > ColumnPage.getMaxBlockSize(dbFile.getPageSize())) {
+            throw new IllegalArgumentException(String.format("Value of " +
+                "column %s takes %d bytes, which doesn't fit on a page",
+                colInfo.getName(), size));
+        }
+
+        return value;
+    }
+
+
+    /**
+     * Returns the first tuple in this table file, or <tt>null</tt> if
+     * there are no tuples in the file.
+     */
+    @Override
+    public Tuple getFirstTuple() throws IOException {
+        ColumnCursor cursor = new ColumnCursor(this, getNumRows());
+        int rowID = cursor.findLiveRow(0);
+        if (rowID == -1) {
+            logger.debug("No tuples in table-file " + dbFile +
+                         ".  Returning null.");
+            return null;
+        }
+
+        return new ColumnarTuple(cursor, rowID);
+    }
+
+
+    @Override
+    public Tuple getNextTuple(Tuple tup) throws IOException {
+        ColumnarTuple ctup = checkTuple(tup);
+        ColumnCursor cursor = ctup.getCursor();
+
+        int rowID = cursor.findLiveRow(ctup.getRowID() + 1);
+        if (rowID == -1)
+            return null;
+
+        return new ColumnarTuple(cursor, rowID);
+    }
+
+
+    /**
+     * Returns the tuple corresponding to the specified file pointer, which
+     * must have been produced by {@link Tuple#getExternalReference} on a
+     * tuple of this file.
+     *
+     * @throws InvalidFilePointerException if the specified file-pointer
+     *         doesn't refer to a row of the file, or the row was deleted.
+     */
+    @Override
+    public Tuple getTuple(FilePointer fptr)
+        throws InvalidFilePointerException, IOException {
+
+        int numRows = getNumRows();
+        int rowID = filePointerToRowID(fptr);
+        if (rowID < 0 || rowID >= numRows) {
+            throw new InvalidFilePointerException("File pointer " + fptr +
+                " doesn't refer to a row of file " +
+                dbFile.getDataFile().getName());
+        }
+
+        ColumnCursor cursor = new ColumnCursor(this, numRows);
+        if (cursor.isRowDeleted(rowID)) {
+            throw new InvalidFilePointerException("Row " + rowID +
+                " of file " + dbFile.getDataFile().getName() +
+                " has been deleted.");
+        }
+
+        return new ColumnarTuple(cursor, rowID);
+    }
+
+
+    /**
+     * Allocates a new page at the end of the file.  The page is returned
+     * pinned, and the caller must initialize it.
+     */
+    private DBPage allocatePage(DBPage headerPage) throws IOException {
+        int pageNo = HeaderPage.getNumPages(headerPage);
+        HeaderPage.setNumPages(headerPage, pageNo + 1);
+        return storageManager.loadDBPage(dbFile, pageNo, true);
+    }
+
+
+    /**
+     * Adds the specified tuple to the end of the file, appending each of its
+     * values to the end of its column's chain.  A new
+     * <tt>ColumnarTuple</tt> object corresponding to the tuple is returned.
+     */
+    @Override
+    public Tuple addTuple(Tuple tup) throws IOException {
+        int numColumns = schema.numColumns();
+        if (tup.getColumnCount() != numColumns) {
+            throw new IllegalArgumentException(String.format("Tuple has " +
+                "%d columns; expected %d", tup.getColumnCount(), numColumns));
+        }
+
+        // Convert all the values before touching the file, so that a bad
+        // value doesn't leave the chains different lengths.
+        Object[] values = new Object[numColumns];
+        for (int iCol = 0; iCol < numColumns; iCol++)
+            values[iCol] = normalizeValue(iCol, tup.getColumnValue(iCol));
+
+        int rowID;
+        try (DBPage headerPage = loadPage(0)) {
+            rowID = HeaderPage.getNumRows(headerPage);
+            if (rowID == Integer.MAX_VALUE)
+                throw new IOException("Columnar file " + dbFile + " is full");
+
+            for (int iCol = 0; iCol < numColumns; iCol++)
+                appendValue(headerPage, iCol, rowID, values[iCol]);
+
+            // Each bitmap page covers a fixed range of rows, so a new one is
+            // needed when a row starts a new range.
+            if (rowID % getBitmapRows() == 0)
+                addBitmapPage(headerPage, rowID);
+
+            HeaderPage.setNumRows(headerPage, rowID + 1);
+            storageManager.logDBPageWrite(headerPage);
+        }
+
+        return new ColumnarTuple(new ColumnCursor(this, rowID + 1), rowID);
+    }
+
+
+    /**
+     * Appends a value to the end of a column's chain.  The value goes into
+     * the tail of the chain's last page if there is room.  If there isn't,
+     * the page is re-encoded to make room when the tail has grown large
+     * enough that encoding it is likely to help, and otherwise the page is
+     * sealed and a new page is started.
+     */
+    private void appendValue(DBPage headerPage, int column, int rowID,
+                             Object value) throws IOException {
+
+        ColumnType colType = schema.getColumnInfo(column).getType();
+        int size = ColumnEncoder.getPlainSize(colType, value);
+
+        int lastPageNo = HeaderPage.getLastPage(headerPage, column);
+        if (lastPageNo == 0) {
+            // This is the first value of the column.
+            try (DBPage dbPage = allocatePage(headerPage)) {
+                ColumnPage.initNewPage(dbPage, column, rowID);
+                ColumnPage.appendValue(dbPage, colType, value);
+                storageManager.logDBPageWrite(dbPage);
+
+                HeaderPage.setFirstPage(headerPage, column, dbPage.getPageNo());
+                HeaderPage.setLastPage(headerPage, column, dbPage.getPageNo());
+            }
+            return;
+        }
+
+        try (DBPage dbPage = loadPage(lastPageNo)) {
+            int numRows = ColumnPage.getNumRows(dbPage);
+            if (numRows < ColumnPage.MAX_PAGE_ROWS) {
+                if (ColumnPage.getFreeSpace(dbPage) >= size) {
+                    ColumnPage.appendValue(dbPage, colType, value);
+                    storageManager.logDBPageWrite(dbPage);
+                    return;
+                }
+
+                if (ColumnPage.getTailSize(dbPage) >= dbPage.getPageSize() / 4) {
+                    Object[] values = Arrays.copyOf(
+                        ColumnPage.readValues(dbPage, colType), numRows + 1);
+                    values[numRows] = value;
+
+                    ColumnEncoder.Plan plan = ColumnEncoder.planEncoding(
+                        colType, values, 0, values.length);
+                    if (plan.getSize() <=
+                        ColumnPage.getMaxBlockSize(dbPage.getPageSize())) {
+                        ColumnPage.writeBlock(dbPage, plan);
+                        storageManager.logDBPageWrite(dbPage);
+                        return;
+                    }
+                }
+            }
+
+            // The page is full, so seal it and start a new one.
+            reencodePage(column, dbPage);
+
+            try (DBPage newPage = allocatePage(headerPage)) {
+                ColumnPage.initNewPage(newPage, column, rowID);
+                ColumnPage.appendValue(newPage, colType, value);
+                storageManager.logDBPageWrite(newPage);
+
+                ColumnPage.setNextPage(dbPage, newPage.getPageNo());
+                HeaderPage.setLastPage(headerPage, column, newPage.getPageNo());
+            }
+            storageManager.logDBPageWrite(dbPage);
+        }
+    }
+
+
+    /**
+     * Encodes all of a page's values into its block, if the page has a tail
+     * and doing so makes the page's data smaller.
+     *
+     * @return true if the page was re-encoded
+     */
+    private boolean reencodePage(int column, DBPage dbPage) {
+        if (ColumnPage.getTailRows(dbPage) == 0)
+            return false;
+
+        ColumnType colType = schema.getColumnInfo(column).getType();
+        Object[] values = ColumnPage.readValues(dbPage, colType);
+        ColumnEncoder.Plan plan =
+            ColumnEncoder.planEncoding(colType, values, 0, values.length);
+
+        int dataSize = ColumnPage.getDataEnd(dbPage) - ColumnPage.DATA_START;
+        if (plan.getSize() >= dataSize)
+            return false;
+
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("Re-encoding page %d of column %d:  %s",
+                dbPage.getPageNo(), column, ColumnEncoder.describePlan(plan)));
+        }
+
+        ColumnPage.writeBlock(dbPage, plan);
+        return true;
+    }
+
+
+    /**
+     * Adds a new page to the end of the deleted-rows bitmap, covering the
+     * rows starting at the specified row.
+     */
+    private void addBitmapPage(DBPage headerPage, int firstRow)
+        throws IOException {
+
+        try (DBPage bitmapPage = allocatePage(headerPage)) {
+            ColumnPage.initBitmapPage(bitmapPage, firstRow);
+            storageManager.logDBPageWrite(bitmapPage);
+
+            int pageNo = HeaderPage.getDeletedRowsPage(headerPage);
+            if (pageNo == 0) {
+                HeaderPage.setDeletedRowsPage(headerPage,
+                    bitmapPage.getPageNo());
+                return;
+            }
+
+            // Find the current last page of the bitmap, and link to the new
+            // page from it.
+            while (true) {
+                try (DBPage dbPage = loadPage(pageNo)) {
+                    int nextPageNo = ColumnPage.getNextPage(dbPage);
+                    if (nextPageNo == 0) {
+                        ColumnPage.setNextPage(dbPage, bitmapPage.getPageNo());
+                        storageManager.logDBPageWrite(dbPage);
+                        break;
+                    }
+                    pageNo = nextPageNo;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Returns the largest <tt>to</tt> such that the values from
+     * <tt>from</tt> up to <tt>to</tt> can be encoded into one block.  The
+     * space an encoding needs never shrinks as values are added, so this can
+     * be found with a binary search.
+     */
+    private int findBlockEnd(ColumnType colType, Object[] values, int from,
+                             int maxBlockSize) {
+        // A single value always fits, since normalizeValue() checks it.
+        int lo = from + 1;
+        int hi = values.length;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            ColumnEncoder.Plan plan =
+                ColumnEncoder.planEncoding(colType, values, from, mid);
+            if (plan.getSize() <= maxBlockSize)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        return lo;
+    }
+
+
+    /**
+     * Replaces the values on a page with the specified values.  If the values
+     * don't fit on the page once encoded, the page is split, and the values
+     * that don't fit are moved to new pages linked in after it.
+     *
+     * @param column the index of the page's column
+     * @param dbPage the page to write the values to
+     * @param values the new values of the page
+     *
+     * @return true if the page had to be split
+     */
+    private boolean writeValues(int column, DBPage dbPage, Object[] values)
+        throws IOException {
+
+        ColumnType colType = schema.getColumnInfo(column).getType();
+        int maxBlockSize = ColumnPage.getMaxBlockSize(dbPage.getPageSize());
+
+        ColumnEncoder.Plan plan =
+            ColumnEncoder.planEncoding(colType, values, 0, values.length);
+        if (plan.getSize() <= maxBlockSize) {
+            ColumnPage.writeBlock(dbPage, plan);
+            storageManager.logDBPageWrite(dbPage);
+            return false;
+        }
+
+        int firstRow = ColumnPage.getFirstRow(dbPage);
+        int oldNextPage = ColumnPage.getNextPage(dbPage);
+
+        try (DBPage headerPage = loadPage(0)) {
+            int from = 0;
+            DBPage prevPage = null;
+            DBPage curPage = dbPage;
+            while (true) {
+                int to = findBlockEnd(colType, values, from, maxBlockSize);
+                ColumnPage.writeBlock(curPage,
+                    ColumnEncoder.planEncoding(colType, values, from, to));
+                from = to;
+
+                if (prevPage != null) {
+                    ColumnPage.setNextPage(prevPage, curPage.getPageNo());
+                    storageManager.logDBPageWrite(prevPage);
+                    if (prevPage != dbPage)
+                        prevPage.unpin();
+                }
+
+                if (from == values.length)
+                    break;
+
+                prevPage = curPage;
+                curPage = allocatePage(headerPage);
+                ColumnPage.initNewPage(curPage, column, firstRow + from);
+            }
+
+            ColumnPage.setNextPage(curPage, oldNextPage);
+            storageManager.logDBPageWrite(curPage);
+            if (oldNextPage == 0)
+                HeaderPage.setLastPage(headerPage, column, curPage.getPageNo());
+
+            logger.debug(String.format("Split page %d of column %d, ending " +
+                "at page %d", dbPage.getPageNo(), column, curPage.getPageNo()));
+
+            if (curPage != dbPage)
+                curPage.unpin();
+
+            storageManager.logDBPageWrite(headerPage);
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Modifies the values in the specified tuple.  The page holding each
+     * modified value is re-encoded, and split if the new values no longer
+     * fit on it.
+     */
+    @Override
+    public void updateTuple(Tuple tup, Map<String, Object> newValues)
+        throws IOException {
+
+        ColumnarTuple ctup = checkTuple(tup);
+        ColumnCursor cursor = ctup.getCursor();
+        int rowID = ctup.getRowID();
+
+        for (Map.Entry<String, Object> entry : newValues.entrySet()) {
+            int colIndex = schema.getColumnIndex(entry.getKey());
+            Object value = normalizeValue(colIndex, entry.getValue());
+
+            ColumnCursor.Segment segment = cursor.getSegment(colIndex, rowID);
+            try (DBPage dbPage = loadPage(segment.pageNo)) {
+                // Rows may have been appended to the page since the cursor
+                // decoded it.
+                Object[] values = segment.values;
+                boolean current =
+                    ColumnPage.getNumRows(dbPage) == values.length;
+                if (!current) {
+                    ColumnType colType =
+                        schema.getColumnInfo(colIndex).getType();
+                    values = ColumnPage.readValues(dbPage, colType);
+                }
+
+                values[rowID - segment.firstRow] = value;
+                if (writeValues(colIndex, dbPage, values) || !current)
+                    cursor.dropSegment(colIndex);
+            }
+
+            // Other cursors' decoded pages may now be out of date, but this
+            // cursor's pages have the new value.
+            updateCount++;
+            cursor.syncUpdateCount();
+        }
+    }
+
+
+    /**
+     * Deletes the specified tuple by marking its row as deleted in the
+     * deleted-rows bitmap.  The row's values stay in the column chains.
+     */
+    @Override
+    public void deleteTuple(Tuple tup) throws IOException {
+        ColumnarTuple ctup = checkTuple(tup);
+        ColumnCursor cursor = ctup.getCursor();
+        int rowID = ctup.getRowID();
+
+        try (DBPage dbPage = loadPage(cursor.getBitmapPage(rowID))) {
+            ColumnPage.setRowDeleted(dbPage, rowID);
+            storageManager.logDBPageWrite(dbPage);
+        }
+    }
+
+
+    @Override
+    public void analyze() throws IOException {
+        // Create list of ColumnStatsCollector based on table schema
+        List<ColumnStatsCollector> collectors = schema.getColumnInfos().stream()
+                .map((ColumnInfo c) -> new ColumnStatsCollector(c.getType().getBaseType()))
+                .collect(Collectors.toList());
+
+        int numPages;
+        int numRows;
+        int[] firstPages = new int[schema.numColumns()];
+        try (DBPage headerPage = loadPage(0)) {
+            numPages = HeaderPage.getNumPages(headerPage);
+            numRows = HeaderPage.getNumRows(headerPage);
+            for (int iCol = 0; iCol < firstPages.length; iCol++)
+                firstPages[iCol] = HeaderPage.getFirstPage(headerPage, iCol);
+        }
+
+        int numTuples = 0;
+        long totalDataSize = 0;
+
+        // Analyzing reads the whole file, so recycle its pages through a
+        // buffer ring instead of flushing the page cache.
+        SessionState state = SessionState.get();
+        BufferRing oldRing = state.getBufferRing();
+        state.setBufferRing(new BufferRing(dbFile.getNumPages()));
+
+        try {
+            // The space the rows take is the space their encoded values take.
+            for (int pageNo : firstPages) {
+                while (pageNo != 0) {
+                    try (DBPage dbPage = loadPage(pageNo)) {
+                        totalDataSize +=
+                            ColumnPage.getDataEnd(dbPage) - ColumnPage.DATA_START;
+                        pageNo = ColumnPage.getNextPage(dbPage);
+                    }
+                }
+            }
+
+            ColumnCursor cursor = new ColumnCursor(this, numRows);
+            int rowID = cursor.findLiveRow(0);
+            while (rowID != -1) {
+                numTuples++;
+                for (int i = 0; i < collectors.size(); i++)
+                    collectors.get(i).addValue(cursor.getValue(i, rowID));
+
+                rowID = cursor.findLiveRow(rowID + 1);
+            }
+        }
+        finally {
+            state.setBufferRing(oldRing);
+        }
+
+        final ArrayList<ColumnStats> columnStats = collectors.stream()
+                .map(ColumnStatsCollector::getColumnStats)
+                .collect(Collectors.toCollection(ArrayList::new));
+
+        stats = new TableStats(
+                numPages - 1,
+                numTuples,
+                numTuples == 0 ? 0 : (float) totalDataSize / numTuples,
+                columnStats);
+
+        columnarFileManager.saveMetadata(this);
+    }
+
+
+    /**
+     * Verifies that every column's chain holds one value for each row of
+     * the file, in row order, and that the deleted-rows bitmap covers every
+     * row.
+     */
+    @Override
+    public List<String> verify() throws IOException {
+        ArrayList<String> errors = new ArrayList<>();
+
+        int numPages;
+        int numRows;
+        int numColumns = schema.numColumns();
+        int[] firstPages = new int[numColumns];
+        int[] lastPages = new int[numColumns];
+        int bitmapPageNo;
+        try (DBPage headerPage = loadPage(0)) {
+            numPages = HeaderPage.getNumPages(headerPage);
+            numRows = HeaderPage.getNumRows(headerPage);
+            bitmapPageNo = HeaderPage.getDeletedRowsPage(headerPage);
+            for (int iCol = 0; iCol < numColumns; iCol++) {
+                firstPages[iCol] = HeaderPage.getFirstPage(headerPage, iCol);
+                lastPages[iCol] = HeaderPage.getLastPage(headerPage, iCol);
+            }
+        }
+
+        for (int iCol = 0; iCol < numColumns; iCol++) {
+            ColumnInfo colInfo = schema.getColumnInfo(iCol);
+            int pageNo = firstPages[iCol];
+            int lastPageNo = 0;
+            int nextRow = 0;
+            while (pageNo != 0) {
+                if (pageNo >= numPages) {
+                    errors.add(String.format("Column %s links to page %d, " +
+                        "but the file only has %d pages", colInfo.getName(),
+                        pageNo, numPages));
+                    break;
+                }
+
+                try (DBPage dbPage = loadPage(pageNo)) {
+                    if (ColumnPage.getColumn(dbPage) != iCol) {
+                        errors.add(String.format("Page %d is in the chain " +
+                            "of column %s, but belongs to column %d", pageNo,
+                            colInfo.getName(), ColumnPage.getColumn(dbPage)));
+                    }
+
+                    int firstRow = ColumnPage.getFirstRow(dbPage);
+                    if (firstRow != nextRow) {
+                        errors.add(String.format("Page %d of column %s " +
+                            "starts at row %d; expected row %d", pageNo,
+                            colInfo.getName(), firstRow, nextRow));
+                    }
+
+                    try {
+                        ColumnPage.readValues(dbPage, colInfo.getType());
+                    }
+                    catch (RuntimeException e) {
+                        errors.add(String.format("Page %d of column %s " +
+                            "can't be decoded:  %s", pageNo,
+                            colInfo.getName(), e.getMessage()));
+                    }
+
+                    nextRow = firstRow + ColumnPage.getNumRows(dbPage);
+                    lastPageNo = pageNo;
+                    pageNo = ColumnPage.getNextPage(dbPage);
+                }
+            }
+
+            if (nextRow != numRows) {
+                errors.add(String.format("Column %s has values for %d " +
+                    "rows; expected %d rows", colInfo.getName(), nextRow,
+                    numRows));
+            }
+
+            if (lastPageNo != lastPages[iCol]) {
+                errors.add(String.format("Column %s ends at page %d, but " +
+                    "the header says it ends at page %d", colInfo.getName(),
+                    lastPageNo, lastPages[iCol]));
+            }
+        }
+
+        int coveredRows = 0;
+        while (bitmapPageNo != 0 && bitmapPageNo < numPages) {
+            try (DBPage dbPage = loadPage(bitmapPageNo)) {
+                if (ColumnPage.getColumn(dbPage) != ColumnPage.DELETED_ROWS_COLUMN ||
+                    ColumnPage.getFirstRow(dbPage) != coveredRows) {
+                    errors.add(String.format("Page %d isn't the bitmap page " +
+                        "for rows starting at %d", bitmapPageNo, coveredRows));
+                    break;
+                }
+
+                coveredRows += getBitmapRows();
+                bitmapPageNo = ColumnPage.getNextPage(dbPage);
+            }
+        }
+
+        if (coveredRows < numRows) {
+            errors.add(String.format("The deleted-rows bitmap only covers " +
+                "%d rows; expected %d rows", coveredRows, numRows));
+        }
+
+        return errors;
+    }
+
+
+    /**
+     * Encodes the tails of all pages into their blocks, wherever that makes
+     * the pages smaller.  Rows never move between pages, so the listener is
+     * never notified.
+     */
+    @Override
+    public void optimize(TupleMoveListener listener) throws IOException {
+        int[] firstPages = new int[schema.numColumns()];
+        try (DBPage headerPage = loadPage(0)) {
+            for (int iCol = 0; iCol < firstPages.length; iCol++)
+                firstPages[iCol] = HeaderPage.getFirstPage(headerPage, iCol);
+        }
+
+        int numReencoded = 0;
+        for (int iCol = 0; iCol < firstPages.length; iCol++) {
+            int pageNo = firstPages[iCol];
+            while (pageNo != 0) {
+                try (DBPage dbPage = loadPage(pageNo)) {
+                    if (reencodePage(iCol, dbPage)) {
+                        storageManager.logDBPageWrite(dbPage);
+                        numReencoded++;
+                    }
+                    pageNo = ColumnPage.getNextPage(dbPage);
+                }
+            }
+        }
+
+        if (numReencoded > 0)
+            updateCount++;
+
+        logger.info(String.format("Optimized columnar file %s:  " +
+            "re-encoded %d pages", dbFile, numReencoded));
+    }
+}
@@ -0,0 +1,193 @@
+package edu.caltech.nanodb.storage.columnfile;
+
+
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.queryeval.TableStats;
+import edu.caltech.nanodb.relations.ColumnInfo;
+import edu.caltech.nanodb.relations.TableSchema;
+import edu.caltech.nanodb.storage.DBFile;
+import edu.caltech.nanodb.storage.DBPage;
+import edu.caltech.nanodb.storage.PageReader;
+import edu.caltech.nanodb.storage.PageWriter;
+import edu.caltech.nanodb.storage.SchemaWriter;
+import edu.caltech.nanodb.storage.StatsWriter;
+import edu.caltech.nanodb.storage.StorageManager;
+import edu.caltech.nanodb.storage.TupleFile;
+import edu.caltech.nanodb.storage.TupleFileManager;
+
+
+/**
+ * This class provides high-level operations on columnar tuple files.
+ */
+public class ColumnarTupleFileManager implements TupleFileManager {
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger =
+        Logger.getLogger(ColumnarTupleFileManager.class);
+
+
+    /** A reference to the storage manager. */
+    private StorageManager storageManager;
+
+
+    public ColumnarTupleFileManager(StorageManager storageManager) {
+        if (storageManager == null)
+            throw new IllegalArgumentException("storageManager cannot be null");
+
+        this.storageManager = storageManager;
+    }
+
+
+    @Override
+    public TupleFile createTupleFile(DBFile dbFile, TableSchema schema)
+        throws IOException {
+
+        logger.info(String.format(
+            "Initializing new columnar tuple file %s with %d columns",
+            dbFile, schema.numColumns()));
+
+        for (ColumnInfo colInfo : schema.getColumnInfos()) {
+            if (!ColumnEncoder.isSupportedType(colInfo.getType())) {
+                throw new IllegalArgumentException(String.format(
+                    "Columnar tables can't store column %s of type %s",
+                    colInfo.getName(), colInfo.getType()));
+            }
+        }
+
+        try (DBPage headerPage = storageManager.loadDBPage(dbFile, 0)) {
+            HeaderPage.setNumRows(headerPage, 0);
+            HeaderPage.setNumPages(headerPage, 1);
+            HeaderPage.setDeletedRowsPage(headerPage, 0);
+
+            // The schema goes in first, so that the chain directory can be
+            // cleared after it.
+            HeaderPage.setSchemaSize(headerPage, 0);
+            writeSchema(headerPage, schema);
+            for (int iCol = 0; iCol < schema.numColumns(); iCol++) {
+                HeaderPage.setFirstPage(headerPage, iCol, 0);
+                HeaderPage.setLastPage(headerPage, iCol, 0);
+            }
+        }
+
+        TableStats stats = new TableStats(schema.numColumns());
+        ColumnarTupleFile tupleFile = new ColumnarTupleFile(storageManager,
+            this, dbFile, schema, stats);
+        saveMetadata(tupleFile);
+        return tupleFile;
+    }
+
+
+    @Override
+    public TupleFile openTupleFile(DBFile dbFile) throws IOException {
+
+        logger.info("Opening existing columnar tuple file " + dbFile);
+
+        try (DBPage headerPage = storageManager.loadDBPage(dbFile, 0)) {
+            PageReader hpReader = new PageReader(headerPage);
+            hpReader.setPosition(HeaderPage.OFFSET_SCHEMA_START);
+
+            // Read in the schema details.
+            SchemaWriter schemaWriter = new SchemaWriter();
+            TableSchema schema = schemaWriter.readTableSchema(hpReader);
+
+            // The statistics come after the chain directory.
+            hpReader.setPosition(
+                HeaderPage.getStatsOffset(headerPage, schema.numColumns()));
+            StatsWriter statsWriter = new StatsWriter();
+            TableStats stats = statsWriter.readTableStats(hpReader, schema,
+                dbFile.getFormatVersion());
+
+            return new ColumnarTupleFile(storageManager, this, dbFile,
+                schema, stats);
+        }
+    }
+
+
+    /**
+     * Writes the schema into the header page, moving the chain directory
+     * after it if the schema has changed size.
+     */
+    private void writeSchema(DBPage headerPage, TableSchema schema) {
+        int numColumns = schema.numColumns();
+        int oldSchemaSize = HeaderPage.getSchemaSize(headerPage);
+
+        int[] chains = new int[2 * numColumns];
+        if (oldSchemaSize != 0) {
+            for (int iCol = 0; iCol < numColumns; iCol++) {
+                chains[2 * iCol] = HeaderPage.getFirstPage(headerPage, iCol);
+                chains[2 * iCol + 1] = HeaderPage.getLastPage(headerPage, iCol);
+            }
+        }
+
+        PageWriter hpWriter = new PageWriter(headerPage);
+        hpWriter.setPosition(HeaderPage.OFFSET_SCHEMA_START);
+        SchemaWriter schemaWriter = new SchemaWriter();
+        schemaWriter.writeTableSchema(schema, hpWriter);
+
+        int schemaSize = hpWriter.getPosition() - HeaderPage.OFFSET_SCHEMA_START;
+        HeaderPage.setSchemaSize(headerPage, schemaSize);
+
+        if (oldSchemaSize != 0 && oldSchemaSize != schemaSize) {
+            for (int iCol = 0; iCol < numColumns; iCol++) {
+                HeaderPage.setFirstPage(headerPage, iCol, chains[2 * iCol]);
+                HeaderPage.setLastPage(headerPage, iCol, chains[2 * iCol + 1]);
+            }
+        }
+    }
+
+
+    @Override
+    public void saveMetadata(TupleFile tupleFile) throws IOException {
+
+        if (tupleFile == null)
+            throw new IllegalArgumentException("tupleFile cannot be null");
+
+        if (!(tupleFile instanceof ColumnarTupleFile)) {
+            throw new IllegalArgumentException(
+                "tupleFile must be an instance of ColumnarTupleFile");
+        }
+
+        DBFile dbFile = tupleFile.getDBFile();
+        TableSchema schema = tupleFile.getSchema();
+        TableStats stats = tupleFile.getStats();
+
+        try (DBPage headerPage = storageManager.loadDBPage(dbFile, 0)) {
+            writeSchema(headerPage, schema);
+
+            PageWriter hpWriter = new PageWriter(headerPage);
+            int statsOffset =
+                HeaderPage.getStatsOffset(headerPage, schema.numColumns());
+            hpWriter.setPosition(statsOffset);
+
+            StatsWriter statsWriter = new StatsWriter();
+            statsWriter.writeTableStats(schema, stats, hpWriter);
+            HeaderPage.setStatsSize(headerPage,
+                hpWriter.getPosition() - statsOffset);
+
+            storageManager.logDBPageWrite(headerPage);
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}  Columnar files were added after page numbers were
+     * widened to 32 bits, so only the statistics need to be saved again in
+     * the current format.
+     */
+    @Override
+    public DBFile upgradeTupleFile(DBFile dbFile) throws IOException {
+        TupleFile tupleFile = openTupleFile(dbFile);
+        storageManager.upgradeFormatVersion(dbFile);
+        saveMetadata(tupleFile);
+        return dbFile;
+    }
+
+
+    @Override
+    public void deleteTupleFile(TupleFile tupleFile) throws IOException {
+        // TODO
+        throw new UnsupportedOperationException("NYI:  deleteTupleFile()");
+    }
+}
@@ -0,0 +1,211 @@
+package edu.caltech.nanodb.storage.columnfile;
+
+
+import edu.caltech.nanodb.storage.DBPage;
+
+
+/**
+ * <p>
+ * This class contains constants and basic functionality for accessing and
+ * manipulating the contents of the header page of a columnar tuple file.
+ * As with all data files, the first two bytes of the header page hold the
+ * type and page size of the file.  (See {@link edu.caltech.nanodb.storage.DBFile}
+ * for details.)
+ * </p>
+ * <p>
+ * Columnar header pages are laid out as follows:
+ * </p>
+ * <ul>
+ *   <li>The sizes of the table's schema and statistics, as unsigned
+ *       shorts.</li>
+ *   <li>The number of rows that have been added to the file, as an int.
+ *       Rows are numbered from 0 in the order they were added, and deleted
+ *       rows keep their numbers.</li>
+ *   <li>The number of pages allocated in the file, including the header
+ *       page, as an int.</li>
+ *   <li>The page number of the first page of the deleted-rows bitmap, or 0
+ *       if there is no bitmap yet, as an int.</li>
+ *   <li>The table's schema, as written by the
+ *       {@link edu.caltech.nanodb.storage.SchemaWriter} class.</li>
+ *   <li>For each column, the page numbers of the first and last pages of
+ *       the column's chain, or 0 if the chain is empty, as ints.</li>
+ *   <li>The table's statistics, as written by the
+ *       {@link edu.caltech.nanodb.storage.StatsWriter} class.</li>
+ * </ul>
+ * <p>
+ * The chain directory comes after the schema so that it stays in the same
+ * place when the statistics change size.
+ * </p>
+ */
+public class HeaderPage {
+
+    /**
+     * The offset in the header page where the size of the table schema is
+     * stored.  This value is an unsigned short.
+     */
+    public static final int OFFSET_SCHEMA_SIZE = 2;
+
+
+    /**
+     * The offset in the header page where the size of the table statistics
+     * are stored.  This value is an unsigned short.
+     */
+    public static final int OFFSET_STATS_SIZE = 4;
+
+
+    /**
+     * The offset in the header page where the number of rows added to the
+     * file is stored.  This value is an int.
+     */
+    public static final int OFFSET_NUM_ROWS = 6;
+
+
+    /**
+     * The offset in the header page where the number of pages allocated in
+     * the file is stored.  This value is an int.
+     */
+    public static final int OFFSET_NUM_PAGES = 10;
+
+
+    /**
+     * The offset in the header page where the page number of the first page
+     * of the deleted-rows bitmap is stored.  This value is an int.
+     */
+    public static final int OFFSET_DELETED_ROWS_PAGE = 14;
+
+
+    /** The offset in the header page where the table schema starts. */
+    public static final int OFFSET_SCHEMA_START = 18;
+
+
+    /** The number of bytes in each column's entry of the chain directory. */
+    private static final int CHAIN_ENTRY_SIZE = 8;
+
+
+    /**
+     * This helper method simply verifies that the data page provided to the
+     * <tt>HeaderPage</tt> class is in fact a header-page (i.e. page 0 in the
+     * data file).
+     */
+    private static void verifyIsHeaderPage(DBPage dbPage) {
+        if (dbPage == null)
+            throw new IllegalArgumentException("dbPage cannot be null");
+
+        if (dbPage.getPageNo() != 0) {
+            throw new IllegalArgumentException(
+                "Page 0 is the header page in this storage format; was given page " +
+                dbPage.getPageNo());
+        }
+    }
+
+
+    public static int getSchemaSize(DBPage dbPage) {
+        verifyIsHeaderPage(dbPage);
+        return dbPage.readUnsignedShort(OFFSET_SCHEMA_SIZE);
+    }
+
+
+    public static void setSchemaSize(DBPage dbPage, int numBytes) {
+        verifyIsHeaderPage(dbPage);
+        dbPage.writeShort(OFFSET_SCHEMA_SIZE, numBytes);
+    }
+
+
+    public static int getStatsSize(DBPage dbPage) {
+        verifyIsHeaderPage(dbPage);
+        return dbPage.readUnsignedShort(OFFSET_STATS_SIZE);
+    }
+
+
+    public static void setStatsSize(DBPage dbPage, int numBytes) {
+        verifyIsHeaderPage(dbPage);
+        dbPage.writeShort(OFFSET_STATS_SIZE, numBytes);
+    }
+
+
+    public static int getNumRows(DBPage dbPage) {
+        verifyIsHeaderPage(dbPage);
+        return dbPage.readInt(OFFSET_NUM_ROWS);
+    }
+
+
+    public static void setNumRows(DBPage dbPage, int numRows) {
+        verifyIsHeaderPage(dbPage);
+        dbPage.writeInt(OFFSET_NUM_ROWS, numRows);
+    }
+
+
+    public static int getNumPages(DBPage dbPage) {
+        verifyIsHeaderPage(dbPage);
+        return dbPage.readInt(OFFSET_NUM_PAGES);
+    }
+
+
+    public static void setNumPages(DBPage dbPage, int numPages) {
+        verifyIsHeaderPage(dbPage);
+        dbPage.writeInt(OFFSET_NUM_PAGES, numPages);
+    }
+
+
+    public static int getDeletedRowsPage(DBPage dbPage) {
+        verifyIsHeaderPage(dbPage);
+        return dbPage.readInt(OFFSET_DELETED_ROWS_PAGE);
+    }
+
+
+    public static void setDeletedRowsPage(DBPage dbPage, int pageNo) {
+        verifyIsHeaderPage(dbPage);
+        dbPage.writeInt(OFFSET_DELETED_ROWS_PAGE, pageNo);
+    }
+
+
+    /** Returns the offset of the chain directory in the header page. */
+    public static int getChainsOffset(DBPage dbPage) {
+        return OFFSET_SCHEMA_START + getSchemaSize(dbPage);
+    }
+
+
+    /**
+     * Returns the page number of the first page of a column's chain, or 0 if
+     * the chain is empty.
+     */
+    public static int getFirstPage(DBPage dbPage, int column) {
+        return dbPage.readInt(getChainsOffset(dbPage) + column * CHAIN_ENTRY_SIZE);
+    }
+
+
+    public static void setFirstPage(DBPage dbPage, int column, int pageNo) {
+        dbPage.writeInt(getChainsOffset(dbPage) + column * CHAIN_ENTRY_SIZE,
+            pageNo);
+    }
+
+
+    /**
+     * Returns the page number of the last page of a column's chain, or 0 if
+     * the chain is empty.
+     */
+    public static int getLastPage(DBPage dbPage, int column) {
+        return dbPage.readInt(getChainsOffset(dbPage) +
+            column * CHAIN_ENTRY_SIZE + 4);
+    }
+
+
+    public static void setLastPage(DBPage dbPage, int column, int pageNo) {
+        dbPage.writeInt(getChainsOffset(dbPage) + column * CHAIN_ENTRY_SIZE + 4,
+            pageNo);
+    }
+
+
+    /**
+     * Returns the offset in the header page that the table statistics start
+     * at, which is after the schema and the chain directory.
+     *
+     * @param dbPage the header page of the columnar tuple file
+     * @param numColumns the number of columns in the table
+     *
+     * @return the offset of the table statistics
+     */
+    public static int getStatsOffset(DBPage dbPage, int numColumns) {
+        return getChainsOffset(dbPage) + numColumns * CHAIN_ENTRY_SIZE;
+    }
+}
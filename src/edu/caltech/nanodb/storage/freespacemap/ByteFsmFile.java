@@ -9,6 +9,7 @@ import org.apache.log4j.Logger;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.zip.CRC32;
 import java.util.zip.Checksum;
 
@@ -18,14 +19,37 @@ import java.util.zip.Checksum;
  *
  * A byte is used for each page in the <code>DBFile</code>, allowing
  * for tupleFilePageSize / 265 granularity in the amount of free
- * space we can store.
+ * space we can store.  The map grows as the <code>DBFile</code> grows,
+ * so it isn't limited to a fixed number of pages.
+ *
+ * The bytes of the map are the leaves of a binary tree, in which each
+ * node above the leaves stores the largest amount of free space of its
+ * two children.  Searches descend the tree, skipping every subtree whose
+ * maximum is too small, so finding a page with enough free space takes
+ * O(log n) time instead of a scan of the whole map, and updating a page's
+ * free space only updates the nodes on the path to the root.
+ *
+ * @design Only the leaves are stored by the {@link ByteFsmFileManager};
+ *         the upper levels are recomputed from the leaves when the map is
+ *         opened, which takes time linear in the size of the map.  This
+ *         keeps the file format the same as that of a flat byte map.
  */
 public class ByteFsmFile extends FreeSpaceMapFile {
 
     private static Logger logger = Logger.getLogger(ByteFsmFile.class);
 
-    final private byte[] map;
+    private byte[] map;
     private int mapSize;
+
+    /**
+     * The nodes of the tree above the leaves, stored as a binary heap:
+     * node 1 is the root, and the children of node <em>k</em> are nodes
+     * 2<em>k</em> and 2<em>k</em>+1.  A child number of <tt>tree.length</tt>
+     * or more refers to the leaf <tt>map[child - tree.length]</tt>.  The
+     * length of this array is a power of two that is at least the length of
+     * the map, and element 0 is unused.
+     */
+    private byte[] tree;
     final private int tupleFilePageSize;
     final private float multiplier;
     private long checksum;
@@ -39,6 +63,7 @@ public class ByteFsmFile extends FreeSpaceMapFile {
         this.tupleFilePageSize = dbFile.getPageSize();
         this.multiplier = 256.0f / this.tupleFilePageSize;
         this.checksum = calculateChecksum();
+        buildTree();
     }
 
     public ByteFsmFile(StorageManager storageManager, ByteFsmFileManager byteFsmFileManager,
@@ -50,6 +75,7 @@ public class ByteFsmFile extends FreeSpaceMapFile {
         this.tupleFilePageSize = dbFile.getPageSize();
         this.multiplier = 256.0f / this.tupleFilePageSize;
         this.checksum = checksum;
+        buildTree();
     }
 
     public byte[] getMap() {
@@ -60,10 +86,131 @@ public class ByteFsmFile extends FreeSpaceMapFile {
         return mapSize;
     }
 
+    /**
+     * Grows the map if needed, so that it can hold the specified number of
+     * pages.  The map at least doubles in size when it grows, so that adding
+     * pages one at a time doesn't copy the map for every page.
+     *
+     * @param numPages the number of pages the map must be able to hold
+     */
+    private void ensureCapacity(final int numPages) {
+        if (numPages > map.length) {
+            map = Arrays.copyOf(map, Math.max(numPages, 2 * map.length));
+            buildTree();
+        }
+    }
+
     private static int unsignedByteToInt(final byte b) {
         return b & 0xFF;
     }
 
+    /**
+     * Recomputes every node of the tree from the leaves, resizing the tree
+     * if the map has grown.
+     */
+    private void buildTree() {
+        int numNodes = Integer.highestOneBit(Math.max(map.length, 1));
+        if (numNodes < map.length)
+            numNodes *= 2;
+
+        if (tree == null || tree.length != numNodes)
+            tree = new byte[numNodes];
+
+        for (int node = numNodes - 1; node >= 1; node--)
+            tree[node] = (byte) Math.max(nodeValue(2 * node), nodeValue(2 * node + 1));
+    }
+
+    /**
+     * Returns the largest amount of free space in the subtree rooted at the
+     * specified node, which may be a leaf.
+     */
+    private int nodeValue(final int node) {
+        if (node < tree.length)
+            return unsignedByteToInt(tree[node]);
+
+        int leaf = node - tree.length;
+        return (leaf < map.length) ? unsignedByteToInt(map[leaf]) : 0;
+    }
+
+    /**
+     * Updates the nodes on the path from the specified leaf to the root,
+     * after the leaf's value has changed.
+     */
+    private void updateTree(final int leaf) {
+        int node = (leaf + tree.length) / 2;
+        while (node >= 1) {
+            byte value = (byte) Math.max(nodeValue(2 * node), nodeValue(2 * node + 1));
+            if (tree[node] == value)
+                break;  // The nodes above this one are unaffected.
+
+            tree[node] = value;
+            node /= 2;
+        }
+    }
+
+    /**
+     * Returns the first leaf at or after <code>from</code> whose value is
+     * greater than <code>threshold</code>, or -1 if there is no such leaf in
+     * the used part of the map.
+     */
+    private int findFirstLeaf(final int from, final int threshold) {
+        int leaf = findFirstLeaf(1, 0, tree.length, from, threshold);
+        return (leaf < mapSize) ? leaf : -1;
+    }
+
+    /**
+     * Returns the first leaf at or after <code>from</code> in the subtree
+     * rooted at <code>node</code>, which covers the leaves
+     * [<code>lo</code>, <code>hi</code>), whose value is greater than
+     * <code>threshold</code>, or -1 if there is no such leaf.
+     */
+    private int findFirstLeaf(final int node, final int lo, final int hi,
+                              final int from, final int threshold) {
+        if (hi <= from || nodeValue(node) <= threshold)
+            return -1;
+
+        if (hi - lo == 1)
+            return lo;
+
+        int mid = (lo + hi) / 2;
+        int leaf = findFirstLeaf(2 * node, lo, mid, from, threshold);
+        if (leaf == -1)
+            leaf = findFirstLeaf(2 * node + 1, mid, hi, from, threshold);
+
+        return leaf;
+    }
+
+    /**
+     * Returns the last leaf at or before <code>to</code> in the subtree
+     * rooted at <code>node</code>, which covers the leaves
+     * [<code>lo</code>, <code>hi</code>), whose value is greater than
+     * <code>threshold</code>, or -1 if there is no such leaf.
+     */
+    private int findLastLeaf(final int node, final int lo, final int hi,
+                             final int to, final int threshold) {
+        if (lo > to || nodeValue(node) <= threshold)
+            return -1;
+
+        if (hi - lo == 1)
+            return lo;
+
+        int mid = (lo + hi) / 2;
+        int leaf = findLastLeaf(2 * node + 1, mid, hi, to, threshold);
+        if (leaf == -1)
+            leaf = findLastLeaf(2 * node, lo, mid, to, threshold);
+
+        return leaf;
+    }
+
+    /**
+     * Converts a required amount of free space into the largest map value
+     * that is too small for it.  A page is suitable when its map value is
+     * greater than the returned value.
+     */
+    private int getThreshold(final int requiredSize) {
+        return (int) Math.floor(multiplier * requiredSize);
+    }
+
     /**
      * Finds the first page in the <code>DBFile</code> that
      * has free space greater than <code>requiredSize</code>.
@@ -73,11 +220,8 @@ public class ByteFsmFile extends FreeSpaceMapFile {
      */
     @Override
     public int findSuitablePage(final int requiredSize) {
-        float freeSpaceFraction = multiplier * requiredSize;
-        for (int i = 0; i < this.mapSize; i++) {
-            if (freeSpaceFraction < unsignedByteToInt(this.map[i])) return i + 1;
-        }
-        return this.mapSize + 1;
+        int leaf = findFirstLeaf(0, getThreshold(requiredSize));
+        return (leaf != -1) ? leaf + 1 : this.mapSize + 1;
     }
 
     /**
@@ -89,22 +233,28 @@ public class ByteFsmFile extends FreeSpaceMapFile {
      * @return pageNo of the page with free space
      */
     public int findClosestSuitablePage(final int requiredSize, final int currentPageNo) {
-        float freeSpaceFraction = multiplier * requiredSize;
-        for (int i = 0; i < this.mapSize; i++) {
-            final int idxLeft = currentPageNo - i - 1;
-            final int idxRight = currentPageNo + i - 1;
-            boolean eof = true;
-            if (idxLeft >= 0 && idxLeft < mapSize) {
-                eof = false;
-                if (freeSpaceFraction < unsignedByteToInt(this.map[idxLeft])) return idxLeft + 1;
-            }
-            if (idxRight >= 0 && idxRight < mapSize) {
-                eof = false;
-                if (freeSpaceFraction < unsignedByteToInt(this.map[idxRight])) return idxRight + 1;
-            }
-            if (eof) break;
+        final int threshold = getThreshold(requiredSize);
+        final int current = currentPageNo - 1;
+
+        // Find the nearest suitable page on each side of the current page;
+        // the current page itself counts as being on the left.
+        int left = -1;
+        if (current >= 0 && mapSize > 0) {
+            left = findLastLeaf(1, 0, tree.length,
+                Math.min(current, mapSize - 1), threshold);
         }
-        return this.mapSize + 1;
+        int right = findFirstLeaf(Math.max(current + 1, 0), threshold);
+
+        // If both are equally close, prefer the page on the left.
+        int leaf;
+        if (left == -1)
+            leaf = right;
+        else if (right == -1)
+            leaf = left;
+        else
+            leaf = (current - left <= right - current) ? left : right;
+
+        return (leaf != -1) ? leaf + 1 : this.mapSize + 1;
     }
 
 
@@ -117,7 +267,9 @@ public class ByteFsmFile extends FreeSpaceMapFile {
     @Override
     public void updateFreeSpace(final int pageNo, final int freeSpace) {
         byte freeSpaceFraction = (byte) Math.floor(freeSpace * multiplier);
+        ensureCapacity(pageNo);
         map[pageNo - 1] = freeSpaceFraction;
+        updateTree(pageNo - 1);
         if (pageNo > mapSize) mapSize++;
     }
 
@@ -141,7 +293,9 @@ public class ByteFsmFile extends FreeSpaceMapFile {
             try {
                 DBPage dbPage = storageManager.loadDBPage(tupleDbFile, pageNo);
                 int freeSpace = DataPage.getFreeSpaceInPage(dbPage);
+                dbPage.unpin();
                 byte freeSpaceFraction = (byte) Math.floor(freeSpace * multiplier);
+                ensureCapacity(pageNo);
                 map[pageNo - 1] = freeSpaceFraction;
             } catch (EOFException eofe) {
                 // Reached the end of file, done building.
@@ -150,8 +304,13 @@ public class ByteFsmFile extends FreeSpaceMapFile {
             pageNo++;
         }
 
-        mapSize = pageNo;
+        // Clear the entries of any pages past the end of the file, such as
+        // pages that were removed when the file was truncated, so that they
+        // aren't chosen for new tuples.
+        Arrays.fill(map, pageNo - 1, map.length, (byte) 0);
+        mapSize = pageNo - 1;
         checksum = calculateChecksum();
+        buildTree();
 
         logger.debug("Rebuilt FSM file, new size: " + mapSize);
 
@@ -14,6 +14,13 @@ public class ByteFsmFileManager implements FreeSpaceMapFileManager {
     private static Logger logger = Logger.getLogger(ByteFsmFileManager.class);
 
 
+    /**
+     * The initial number of pages that a new map can hold.  Maps grow as
+     * their tuple files grow.
+     */
+    private static final int INITIAL_MAP_SIZE = 65536;
+
+
     /** A reference to the storage manager. */
     private StorageManager storageManager;
 
@@ -29,7 +36,7 @@ public class ByteFsmFileManager implements FreeSpaceMapFileManager {
 
         logger.info(String.format("Initializing new byte fsm file %s", dbFile));
 
-        FreeSpaceMapFile freeSpaceMapFile = new ByteFsmFile(this.storageManager, this, dbFile, new byte[65536], 0);
+        FreeSpaceMapFile freeSpaceMapFile = new ByteFsmFile(this.storageManager, this, dbFile, new byte[INITIAL_MAP_SIZE], 0);
         saveFreeSpaceMapFile(freeSpaceMapFile);
         return freeSpaceMapFile;
     }
@@ -46,7 +53,7 @@ public class ByteFsmFileManager implements FreeSpaceMapFileManager {
         long checksum = reader.readLong();
         int mapSize = reader.readInt();
         int pageSize = dbFile.getPageSize();
-        byte[] map = new byte[65536];
+        byte[] map = new byte[Math.max(mapSize, INITIAL_MAP_SIZE)];
 
         // Read as much of the map as possible from the remainder of the header page
         int headerPageLeftover = pageSize - 18;
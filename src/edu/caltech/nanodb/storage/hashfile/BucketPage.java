@@ -0,0 +1,338 @@
+package edu.caltech.nanodb.storage.hashfile;
+
+
+import edu.caltech.nanodb.storage.DBPage;
+
+
+/**
+ * <p>
+ * This class provides the constants and operations necessary for manipulating
+ * a bucket page within a hash file.  Each bucket of a hash file is a chain of
+ * bucket pages; the first page of the chain is recorded in the file's
+ * directory, and each page holds the number of the next page in the chain.
+ * Pages that have been freed are kept in a list that is linked the same way.
+ * </p>
+ * <p>
+ * Bucket pages use the same slotted-page structure as heap-file data pages
+ * (see {@link edu.caltech.nanodb.storage.heapfile.DataPage}), where tuple
+ * data is filled from the end of the page forward, except that the slot
+ * table comes after the next-page pointer:
+ * </p>
+ * <ul>
+ *   <li>The number of the next page in the chain, or 0 if this is the last
+ *       page, as an int.</li>
+ *   <li>The number of slots in the slot table, as an unsigned short.</li>
+ *   <li>The slot table, where each slot holds the offset of a tuple's data
+ *       as an unsigned short, or {@link #EMPTY_SLOT} if the slot is
+ *       empty.</li>
+ * </ul>
+ */
+public class BucketPage {
+
+    /**
+     * The offset in the bucket page where the number of the next page in the
+     * chain is stored.  This value is an int.
+     */
+    public static final int OFFSET_NEXT_PAGE = 0;
+
+
+    /**
+     * The offset in the bucket page where the number of slots in the slot
+     * table is stored.  This value is an unsigned short.
+     */
+    public static final int OFFSET_NUM_SLOTS = 4;
+
+
+    /** The offset in the bucket page where the slot table starts. */
+    public static final int OFFSET_SLOTS = 6;
+
+
+    /**
+     * This offset-value is stored into a slot when it is empty.  Tuple data
+     * always follows the slot table, so this is never a valid tuple offset.
+     */
+    public static final int EMPTY_SLOT = 0;
+
+
+    /**
+     * Initializes a newly allocated bucket page, so that it is an empty page
+     * at the end of its chain.
+     *
+     * @param dbPage the bucket page to initialize
+     */
+    public static void initNewPage(DBPage dbPage) {
+        setNextPage(dbPage, 0);
+        setNumSlots(dbPage, 0);
+    }
+
+
+    public static int getNextPage(DBPage dbPage) {
+        return dbPage.readInt(OFFSET_NEXT_PAGE);
+    }
+
+
+    public static void setNextPage(DBPage dbPage, int pageNo) {
+        dbPage.writeInt(OFFSET_NEXT_PAGE, pageNo);
+    }
+
+
+    public static int getNumSlots(DBPage dbPage) {
+        return dbPage.readUnsignedShort(OFFSET_NUM_SLOTS);
+    }
+
+
+    public static void setNumSlots(DBPage dbPage, int numSlots) {
+        dbPage.writeShort(OFFSET_NUM_SLOTS, numSlots);
+    }
+
+
+    /** Returns the offset in the page where the specified slot is stored. */
+    public static int getSlotOffset(int slot) {
+        return OFFSET_SLOTS + 2 * slot;
+    }
+
+
+    /**
+     * Returns the slot whose value is stored at the specified offset in the
+     * page.  This is the inverse of {@link #getSlotOffset}.
+     *
+     * @throws IllegalArgumentException if the offset isn't the offset of a
+     *         slot in the page
+     */
+    public static int getSlotIndexFromOffset(DBPage dbPage, int offset) {
+        int slot = (offset - OFFSET_SLOTS) / 2;
+        if (offset < OFFSET_SLOTS || (offset - OFFSET_SLOTS) % 2 != 0 ||
+            slot >= getNumSlots(dbPage)) {
+            throw new IllegalArgumentException("Offset " + offset +
+                " isn't the offset of a slot in page " + dbPage.getPageNo());
+        }
+
+        return slot;
+    }
+
+
+    public static int getSlotValue(DBPage dbPage, int slot) {
+        int numSlots = getNumSlots(dbPage);
+        if (slot < 0 || slot >= numSlots) {
+            throw new IllegalArgumentException("Valid slots are in range [0," +
+                numSlots + ").  Got " + slot);
+        }
+
+        return dbPage.readUnsignedShort(getSlotOffset(slot));
+    }
+
+
+    public static void setSlotValue(DBPage dbPage, int slot, int value) {
+        int numSlots = getNumSlots(dbPage);
+        if (slot < 0 || slot >= numSlots) {
+            throw new IllegalArgumentException("Valid slots are in range [0," +
+                numSlots + ").  Got " + slot);
+        }
+
+        dbPage.writeShort(getSlotOffset(slot), value);
+    }
+
+
+    /**
+     * Returns the offset where tuple data starts in the page, which is the
+     * offset of the last non-empty slot's tuple, or the page size if the
+     * page holds no tuples.
+     */
+    public static int getTupleDataStart(DBPage dbPage) {
+        for (int slot = getNumSlots(dbPage) - 1; slot >= 0; slot--) {
+            int slotValue = getSlotValue(dbPage, slot);
+            if (slotValue != EMPTY_SLOT)
+                return slotValue;
+        }
+
+        return dbPage.getPageSize();
+    }
+
+
+    /**
+     * Returns the length of the tuple stored in the specified slot, which
+     * must not be empty.  Earlier slots hold tuples at higher offsets, so the
+     * tuple ends where the previous non-empty slot's tuple starts.
+     */
+    public static int getTupleLength(DBPage dbPage, int slot) {
+        int tupleStart = getSlotValue(dbPage, slot);
+        if (tupleStart == EMPTY_SLOT)
+            throw new IllegalArgumentException("Slot " + slot + " is empty.");
+
+        for (int prevSlot = slot - 1; prevSlot >= 0; prevSlot--) {
+            int prevTupleStart = getSlotValue(dbPage, prevSlot);
+            if (prevTupleStart != EMPTY_SLOT)
+                return prevTupleStart - tupleStart;
+        }
+
+        return dbPage.getPageSize() - tupleStart;
+    }
+
+
+    /** Returns the number of free bytes between the slots and the data. */
+    public static int getFreeSpaceInPage(DBPage dbPage) {
+        return getTupleDataStart(dbPage) - getSlotOffset(getNumSlots(dbPage));
+    }
+
+
+    /**
+     * Returns the largest tuple that can be stored in an empty bucket page,
+     * including the slot that the tuple needs.
+     */
+    public static int getMaxTupleSpace(int pageSize) {
+        return pageSize - OFFSET_SLOTS;
+    }
+
+
+    /** Returns true if no slot in the page holds a tuple. */
+    public static boolean isEmpty(DBPage dbPage) {
+        return getTupleDataStart(dbPage) == dbPage.getPageSize();
+    }
+
+
+    /**
+     * Creates a zero-filled space of the specified size in the page's tuple
+     * data, sliding the tuple data below the offset down to make room, and
+     * updating the slots of the tuples that move.
+     *
+     * @param dbPage the bucket page to insert space into
+     * @param off the offset in the page where the space will be added
+     * @param len the number of bytes to insert
+     */
+    public static void insertTupleDataRange(DBPage dbPage, int off, int len) {
+        int tupDataStart = getTupleDataStart(dbPage);
+
+        if (off < tupDataStart) {
+            throw new IllegalArgumentException("Specified offset " + off +
+                " is not actually in the tuple data portion of this page " +
+                "(data starts at offset " + tupDataStart + ").");
+        }
+
+        if (len < 0)
+            throw new IllegalArgumentException("Length must not be negative.");
+
+        if (len > getFreeSpaceInPage(dbPage)) {
+            throw new IllegalArgumentException("Specified length " + len +
+                " is larger than amount of free space in this page (" +
+                getFreeSpaceInPage(dbPage) + " bytes).");
+        }
+
+        if (off > tupDataStart) {
+            dbPage.moveDataRange(tupDataStart, tupDataStart - len,
+                off - tupDataStart);
+        }
+        dbPage.setDataRange(off - len, len, (byte) 0);
+
+        int numSlots = getNumSlots(dbPage);
+        for (int slot = 0; slot < numSlots; slot++) {
+            int slotValue = getSlotValue(dbPage, slot);
+            if (slotValue != EMPTY_SLOT && slotValue < off)
+                setSlotValue(dbPage, slot, slotValue - len);
+        }
+    }
+
+
+    /**
+     * Removes a range of bytes from the page's tuple data, sliding the tuple
+     * data below the offset up to fill in the gap, and updating the slots of
+     * the tuples that move.
+     *
+     * @param dbPage the bucket page to remove space from
+     * @param off the offset in the page where the space will be removed
+     * @param len the number of bytes to remove
+     */
+    public static void deleteTupleDataRange(DBPage dbPage, int off, int len) {
+        int tupDataStart = getTupleDataStart(dbPage);
+
+        if (off < tupDataStart) {
+            throw new IllegalArgumentException("Specified offset " + off +
+                " is not actually in the tuple data portion of this page " +
+                "(data starts at offset " + tupDataStart + ").");
+        }
+
+        if (len < 0 || dbPage.getPageSize() - off < len) {
+            throw new IllegalArgumentException("Specified length " + len +
+                " is invalid for offset " + off + " in this page.");
+        }
+
+        dbPage.moveDataRange(tupDataStart, tupDataStart + len,
+            off - tupDataStart);
+
+        int numSlots = getNumSlots(dbPage);
+        for (int slot = 0; slot < numSlots; slot++) {
+            int slotValue = getSlotValue(dbPage, slot);
+            if (slotValue != EMPTY_SLOT && slotValue <= off)
+                setSlotValue(dbPage, slot, slotValue + len);
+        }
+    }
+
+
+    /**
+     * Allocates zero-filled space for a new tuple in the page, reusing an
+     * empty slot if there is one.  The caller must make sure that the page
+     * has room for the tuple and a new slot.
+     *
+     * @param dbPage the bucket page to store the new tuple in
+     * @param len the length of the new tuple's data
+     *
+     * @return the slot of the new tuple, whose value is the offset of the
+     *         tuple's data
+     */
+    public static int allocNewTuple(DBPage dbPage, int len) {
+        int numSlots = getNumSlots(dbPage);
+
+        // The new tuple goes just before the data of the last non-empty slot
+        // ahead of the first empty slot.
+        int newTupleEnd = dbPage.getPageSize();
+        int slot;
+        for (slot = 0; slot < numSlots; slot++) {
+            int slotValue = getSlotValue(dbPage, slot);
+            if (slotValue == EMPTY_SLOT)
+                break;
+
+            newTupleEnd = slotValue;
+        }
+
+        int spaceNeeded = len + (slot == numSlots ? 2 : 0);
+        if (spaceNeeded > getFreeSpaceInPage(dbPage)) {
+            throw new IllegalArgumentException("Space needed for new tuple (" +
+                spaceNeeded + " bytes) is larger than the free space in " +
+                "this page (" + getFreeSpaceInPage(dbPage) + " bytes).");
+        }
+
+        if (slot == numSlots) {
+            setNumSlots(dbPage, numSlots + 1);
+            setSlotValue(dbPage, slot, EMPTY_SLOT);
+        }
+
+        // The slot is set after the space is inserted, so that the insertion
+        // doesn't move it.
+        insertTupleDataRange(dbPage, newTupleEnd, len);
+        setSlotValue(dbPage, slot, newTupleEnd - len);
+
+        return slot;
+    }
+
+
+    /**
+     * Deletes the tuple in the specified slot, reclaiming its space and any
+     * empty slots at the end of the slot table.  The slots of the remaining
+     * tuples don't change, so that scans can continue past deleted tuples.
+     *
+     * @param dbPage the bucket page to remove the tuple from
+     * @param slot the slot of the tuple to delete
+     */
+    public static void deleteTuple(DBPage dbPage, int slot) {
+        int offset = getSlotValue(dbPage, slot);
+        if (offset == EMPTY_SLOT)
+            throw new IllegalArgumentException("Slot " + slot + " is already empty.");
+
+        deleteTupleDataRange(dbPage, offset, getTupleLength(dbPage, slot));
+        setSlotValue(dbPage, slot, EMPTY_SLOT);
+
+        int numSlots = getNumSlots(dbPage);
+        while (numSlots > 0 && getSlotValue(dbPage, numSlots - 1) == EMPTY_SLOT)
+            numSlots--;
+        setNumSlots(dbPage, numSlots);
+    }
+}
@@ -0,0 +1,108 @@
+package edu.caltech.nanodb.storage.hashfile;
+
+
+import edu.caltech.nanodb.relations.Schema;
+import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.storage.DBPage;
+import edu.caltech.nanodb.storage.FilePointer;
+import edu.caltech.nanodb.storage.PageTuple;
+
+
+/**
+ * This class represents a tuple stored in a bucket page of a hash file.
+ * Besides its slot, the tuple remembers the bucket whose chain it was found
+ * in, so that scans can move on to the next bucket once they reach the end
+ * of the chain, even if the tuple has been deleted in the meantime.
+ */
+public class HashFilePageTuple extends PageTuple {
+
+    /** The slot that this tuple corresponds to. */
+    private int slot;
+
+
+    /** The bucket whose chain holds the tuple's page. */
+    private int bucket;
+
+
+    /**
+     * If the tuple was found by a hash-key lookup, this is the search key
+     * that was used, so that the lookup can continue from the tuple.
+     */
+    private Tuple searchKey;
+
+
+    /**
+     * Construct a new tuple object that is backed by the data in a bucket
+     * page.
+     *
+     * @param schema the schema of the hash file the page is a part of
+     * @param dbPage the bucket page that holds the tuple
+     * @param slot the slot number of the tuple
+     * @param pageOffset the offset of the tuple's actual data in the page
+     * @param bucket the bucket whose chain holds the page
+     */
+    public HashFilePageTuple(Schema schema, DBPage dbPage, int slot,
+                             int pageOffset, int bucket) {
+        super(dbPage, pageOffset, schema);
+
+        if (BucketPage.getSlotValue(dbPage, slot) != pageOffset) {
+            throw new IllegalArgumentException(String.format(
+                "Offset %d in slot %d doesn't match pageOffset value %d",
+                BucketPage.getSlotValue(dbPage, slot), slot, pageOffset));
+        }
+
+        this.slot = slot;
+        this.bucket = bucket;
+    }
+
+
+    /**
+     * Returns a reference to the tuple, made of the page number and the
+     * offset of the tuple's slot.  References are only valid until the
+     * bucket holding the tuple is split or optimized, since both move tuples
+     * to other pages.
+     *
+     * @return a file-pointer that can be used to look up this tuple
+     */
+    @Override
+    public FilePointer getExternalReference() {
+        return new FilePointer(getPageNo(), BucketPage.getSlotOffset(slot));
+    }
+
+
+    @Override
+    protected void insertTupleDataRange(int off, int len) {
+        BucketPage.insertTupleDataRange(getDBPage(), off, len);
+    }
+
+
+    @Override
+    protected void deleteTupleDataRange(int off, int len) {
+        BucketPage.deleteTupleDataRange(getDBPage(), off, len);
+    }
+
+
+    public int getSlot() {
+        return slot;
+    }
+
+
+    public int getBucket() {
+        return bucket;
+    }
+
+
+    void setBucket(int bucket) {
+        this.bucket = bucket;
+    }
+
+
+    public Tuple getSearchKey() {
+        return searchKey;
+    }
+
+
+    void setSearchKey(Tuple searchKey) {
+        this.searchKey = searchKey;
+    }
+}
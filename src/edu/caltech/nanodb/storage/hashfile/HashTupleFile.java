@@ -0,0 +1,1267 @@
+package edu.caltech.nanodb.storage.hashfile;
+
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.client.SessionState;
+import edu.caltech.nanodb.expressions.ColumnValue;
+import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.expressions.TypeCastException;
+import edu.caltech.nanodb.expressions.TypeConverter;
+import edu.caltech.nanodb.queryeval.ColumnStats;
+import edu.caltech.nanodb.queryeval.ColumnStatsCollector;
+import edu.caltech.nanodb.queryeval.TableStats;
+import edu.caltech.nanodb.relations.ColumnInfo;
+import edu.caltech.nanodb.relations.TableSchema;
+import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.storage.BufferRing;
+import edu.caltech.nanodb.storage.DBFile;
+import edu.caltech.nanodb.storage.DBPage;
+import edu.caltech.nanodb.storage.FilePointer;
+import edu.caltech.nanodb.storage.HashedTupleFile;
+import edu.caltech.nanodb.storage.InvalidFilePointerException;
+import edu.caltech.nanodb.storage.OverflowFile;
+import edu.caltech.nanodb.storage.PageTuple;
+import edu.caltech.nanodb.storage.StorageManager;
+import edu.caltech.nanodb.storage.TupleFileManager;
+import edu.caltech.nanodb.storage.TupleMoveListener;
+import edu.caltech.nanodb.storage.freespacemap.FreeSpaceMapFile;
+
+
+/**
+ * <p>
+ * This class implements the {@link HashedTupleFile} interface with linear
+ * hashing, so that the tuples with a particular hash-key value can be found
+ * by reading a single bucket, no matter how large the file grows.  Each
+ * bucket is a chain of {@link BucketPage}s, and the first page of each
+ * bucket is recorded in the directory pages listed in the
+ * {@link HeaderPage}.
+ * </p>
+ * <p>
+ * A tuple whose key hashes to <em>h</em> is stored in bucket
+ * <em>h</em> mod <em>N</em>, where <em>N</em> is the number of buckets the
+ * file had at the start of the current level, unless that bucket has
+ * already been split in this level, in which case it is stored in bucket
+ * <em>h</em> mod 2<em>N</em>.  Once the tuples fill more than
+ * {@link #MAX_LOAD_FACTOR} of the buckets' primary pages, the next bucket
+ * in order is split by moving about half of its tuples into a new bucket at
+ * the end of the file, so the file grows by one bucket at a time.
+ * </p>
+ *
+ * @design Key values are converted to the type of their column before they
+ *         are hashed, and integer and floating-point values are hashed
+ *         separately, so values that compare equal hash to the same bucket.
+ *         Tuples are matched against search keys by comparing the values
+ *         with {@link TypeConverter#coerceComparison}, so the hash only
+ *         chooses which bucket is read.
+ *
+ * @design Splitting a bucket and optimizing the file move tuples to other
+ *         pages, so file pointers to the tuples of a hash file don't stay
+ *         valid.  For this reason, indexes can't be built on hash tables,
+ *         and the hash-key columns of a tuple can't be updated in place,
+ *         since the tuple would have to move to another bucket in the
+ *         middle of the update's scan.
+ *
+ * @design Hash files store all values in their pages, so they don't have an
+ *         overflow file, and they don't use their free space map, since a
+ *         tuple's bucket decides which pages it can go in.  Buckets are
+ *         never merged; deleting tuples leaves empty pages in the chains,
+ *         which new tuples reuse, and which {@link #optimize} removes.
+ */
+public class HashTupleFile implements HashedTupleFile {
+
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(HashTupleFile.class);
+
+
+    /**
+     * The fraction of the space in the buckets' primary pages that tuples
+     * may use before the next bucket is split.
+     */
+    public static final double MAX_LOAD_FACTOR = 0.8;
+
+
+    /**
+     * The storage manager to use for reading and writing file pages, pinning
+     * and unpinning pages, write-ahead logging, and so forth.
+     */
+    private StorageManager storageManager;
+
+
+    /** The manager for hash tuple files. */
+    private HashTupleFileManager hashFileManager;
+
+
+    /** The schema of tuples in this tuple file. */
+    private TableSchema schema;
+
+
+    /** Statistics for this tuple file. */
+    private TableStats stats;
+
+
+    /** The file that stores the tuples. */
+    private DBFile dbFile;
+
+
+    /** The indexes of the columns in the hash key, in the order they are hashed. */
+    private int[] keyColumns;
+
+
+    /**
+     * The indexes of the columns that aren't in the hash key, in schema
+     * order.  Search keys may hold values for these columns after the values
+     * of the hash key.
+     */
+    private int[] otherColumns;
+
+
+    /**
+     * The file that stores the free space map.  Hash files choose pages by
+     * the tuple's bucket, so they don't use it.
+     */
+    private FreeSpaceMapFile fsmFile;
+
+
+    public HashTupleFile(StorageManager storageManager,
+                         HashTupleFileManager hashFileManager, DBFile dbFile,
+                         TableSchema schema, TableStats stats,
+                         int[] keyColumns) {
+        if (storageManager == null)
+            throw new IllegalArgumentException("storageManager cannot be null");
+
+        if (hashFileManager == null)
+            throw new IllegalArgumentException("hashFileManager cannot be null");
+
+        if (dbFile == null)
+            throw new IllegalArgumentException("dbFile cannot be null");
+
+        if (schema == null)
+            throw new IllegalArgumentException("schema cannot be null");
+
+        if (stats == null)
+            throw new IllegalArgumentException("stats cannot be null");
+
+        if (keyColumns == null || keyColumns.length == 0)
+            throw new IllegalArgumentException("keyColumns must be specified");
+
+        this.storageManager = storageManager;
+        this.hashFileManager = hashFileManager;
+        this.dbFile = dbFile;
+        this.schema = schema;
+        this.stats = stats;
+        this.keyColumns = keyColumns.clone();
+
+        otherColumns = new int[schema.numColumns() - keyColumns.length];
+        int i = 0;
+        for (int iCol = 0; iCol < schema.numColumns(); iCol++) {
+            if (!isKeyColumn(iCol))
+                otherColumns[i++] = iCol;
+        }
+    }
+
+
+    @Override
+    public TupleFileManager getManager() {
+        return hashFileManager;
+    }
+
+
+    @Override
+    public TableSchema getSchema() {
+        return schema;
+    }
+
+
+    @Override
+    public TableStats getStats() {
+        return stats;
+    }
+
+
+    @Override
+    public void setFsmFile(FreeSpaceMapFile fsmFile) {
+        this.fsmFile = fsmFile;
+    }
+
+
+    @Override
+    public void setOverflowFile(OverflowFile overflowFile) {
+        if (overflowFile != null) {
+            throw new IllegalArgumentException(
+                "Hash files don't use overflow files");
+        }
+    }
+
+
+    @Override
+    public DBFile getDBFile() {
+        return dbFile;
+    }
+
+
+    /**
+     * Returns the indexes of the columns in the hash key, in the order they
+     * are hashed.
+     *
+     * @return the indexes of the columns in the hash key
+     */
+    public int[] getKeyColumns() {
+        return keyColumns.clone();
+    }
+
+
+    @Override
+    public List<Expression> getKeySpec() {
+        ArrayList<Expression> keySpec = new ArrayList<>();
+        for (int iCol : keyColumns)
+            keySpec.add(new ColumnValue(schema.getColumnInfo(iCol).getColumnName()));
+
+        return keySpec;
+    }
+
+
+    /**
+     * Returns the number of buckets in the file.
+     *
+     * @return the number of buckets in the file
+     *
+     * @throws IOException if the header page can't be read
+     */
+    public int getNumBuckets() throws IOException {
+        try (DBPage headerPage = storageManager.loadDBPage(dbFile, 0)) {
+            return HeaderPage.getNumBuckets(headerPage);
+        }
+    }
+
+
+    private boolean isKeyColumn(int iCol) {
+        for (int keyCol : keyColumns) {
+            if (keyCol == iCol)
+                return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * Creates the directory and the primary pages of the file's initial
+     * buckets.  This is called once, when the file is created.
+     */
+    void initBuckets() throws IOException {
+        try (DBPage headerPage = storageManager.loadDBPage(dbFile, 0)) {
+            for (int bucket = 0; bucket < HeaderPage.INITIAL_BUCKETS; bucket++) {
+                try (DBPage dbPage = allocatePage(headerPage)) {
+                    storageManager.logDBPageWrite(dbPage);
+                    setBucketPage(headerPage, bucket, dbPage.getPageNo());
+                }
+            }
+            storageManager.logDBPageWrite(headerPage);
+        }
+    }
+
+
+    /*========================================================================
+     * HASHING
+     */
+
+
+    /**
+     * Converts a key value to the type of its key column, so that values
+     * that compare equal to the column's values are hashed the same way.
+     */
+    private Object coerceKeyValue(int keyIndex, Object value) {
+        if (value == null)
+            return null;
+
+        ColumnInfo colInfo = schema.getColumnInfo(keyColumns[keyIndex]);
+        switch (colInfo.getType().getBaseType()) {
+        case TINYINT:
+        case SMALLINT:
+        case INTEGER:
+        case BIGINT:
+            if (value instanceof Float || value instanceof Double) {
+                // Keep the fraction, so that the hash of a non-integral
+                // value doesn't collide with the value's integer part.
+                double d = ((Number) value).doubleValue();
+                if (d != Math.rint(d))
+                    return normalizeDouble(d);
+            }
+            return TypeConverter.getLongValue(value);
+
+        case FLOAT:
+        case DOUBLE:
+            return normalizeDouble(TypeConverter.getDoubleValue(value));
+
+        case NUMERIC:
+            return TypeConverter.getNumericValue(value).stripTrailingZeros();
+
+        case CHAR:
+        case VARCHAR:
+        case TEXT:
+            return TypeConverter.getStringValue(value);
+
+        default:
+            return value;
+        }
+    }
+
+
+    /** Makes both zeros hash the same way, since they compare equal. */
+    private static Double normalizeDouble(double d) {
+        return (d == 0.0) ? 0.0 : d;
+    }
+
+
+    /**
+     * Computes the hash of a key.  The result is never negative.
+     *
+     * @param tup the tuple holding the key values
+     * @param keyFromTuple true if the values are in the key columns of the
+     *        tuple, or false if they are the first values of the tuple
+     */
+    private int hashKey(Tuple tup, boolean keyFromTuple) {
+        int hash = 17;
+        for (int i = 0; i < keyColumns.length; i++) {
+            Object value = tup.getColumnValue(keyFromTuple ? keyColumns[i] : i);
+            value = coerceKeyValue(i, value);
+            hash = 31 * hash + (value == null ? 0 : value.hashCode());
+        }
+
+        // Buckets are chosen by the low bits of the hash, so spread the
+        // bits of the hash codes across them.
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+
+        return hash & 0x7fffffff;
+    }
+
+
+    /** Returns the bucket that holds the tuples with the specified hash. */
+    private int getBucket(DBPage headerPage, int hash) {
+        int levelBuckets = HeaderPage.INITIAL_BUCKETS << HeaderPage.getLevel(headerPage);
+        int bucket = hash % levelBuckets;
+        if (bucket < HeaderPage.getNextSplit(headerPage))
+            bucket = hash % (2 * levelBuckets);
+
+        return bucket;
+    }
+
+
+    /**
+     * Returns true if two values are equal.  <tt>NULL</tt> values are
+     * treated as equal to each other, so that keys with <tt>NULL</tt>s can be
+     * found.
+     */
+    @SuppressWarnings("unchecked")
+    private static boolean valuesEqual(Object value1, Object value2) {
+        if (value1 == null || value2 == null)
+            return value1 == value2;
+
+        if (value1.equals(value2))
+            return true;
+
+        try {
+            TypeConverter.Pair coerced =
+                TypeConverter.coerceComparison(value1, value2);
+            if (coerced.value1 instanceof BigDecimal) {
+                return ((BigDecimal) coerced.value1).compareTo(
+                    (BigDecimal) coerced.value2) == 0;
+            }
+            return coerced.value1.equals(coerced.value2) ||
+                ((Comparable) coerced.value1).compareTo(coerced.value2) == 0;
+        }
+        catch (TypeCastException | ClassCastException e) {
+            return false;
+        }
+    }
+
+
+    /**
+     * Returns true if the tuple matches the search key.  The first values of
+     * the search key are compared against the hash-key columns, and any
+     * values after them against the other columns, in schema order.
+     */
+    private boolean matches(Tuple tup, Tuple searchKey) {
+        int numValues = searchKey.getColumnCount();
+        for (int i = 0; i < numValues; i++) {
+            int iCol = (i < keyColumns.length) ? keyColumns[i] :
+                otherColumns[i - keyColumns.length];
+
+            if (!valuesEqual(tup.getColumnValue(iCol), searchKey.getColumnValue(i)))
+                return false;
+        }
+
+        return true;
+    }
+
+
+    /*========================================================================
+     * PAGE MANAGEMENT
+     */
+
+
+    /** Returns the number of buckets that one directory page can record. */
+    private int getBucketsPerDirectoryPage() {
+        return dbFile.getPageSize() / 4;
+    }
+
+
+    /** Returns the page number of the first page of a bucket's chain. */
+    private int getBucketPage(DBPage headerPage, int bucket) throws IOException {
+        int perPage = getBucketsPerDirectoryPage();
+        int dirPageNo = HeaderPage.getDirectoryPage(headerPage, bucket / perPage);
+        try (DBPage dirPage = storageManager.loadDBPage(dbFile, dirPageNo)) {
+            return dirPage.readInt(4 * (bucket % perPage));
+        }
+    }
+
+
+    /**
+     * Records the first page of a bucket's chain in the directory, allocating
+     * a new directory page if necessary.  The caller must log the header
+     * page.
+     */
+    private void setBucketPage(DBPage headerPage, int bucket, int pageNo)
+        throws IOException {
+
+        int perPage = getBucketsPerDirectoryPage();
+        int index = bucket / perPage;
+        int dirPageNo = HeaderPage.getDirectoryPage(headerPage, index);
+
+        DBPage dirPage;
+        if (dirPageNo == 0) {
+            dirPage = allocatePage(headerPage);
+            HeaderPage.setDirectoryPage(headerPage, index, dirPage.getPageNo());
+        }
+        else {
+            dirPage = storageManager.loadDBPage(dbFile, dirPageNo);
+        }
+
+        dirPage.writeInt(4 * (bucket % perPage), pageNo);
+        storageManager.logDBPageWrite(dirPage);
+        dirPage.unpin();
+    }
+
+
+    /**
+     * Allocates an empty bucket page, either from the free list or at the end
+     * of the file.  The page is returned pinned, and the caller must log both
+     * it and the header page.
+     */
+    private DBPage allocatePage(DBPage headerPage) throws IOException {
+        int pageNo = HeaderPage.getFreePage(headerPage);
+        DBPage dbPage;
+        if (pageNo != 0) {
+            dbPage = storageManager.loadDBPage(dbFile, pageNo);
+            HeaderPage.setFreePage(headerPage, BucketPage.getNextPage(dbPage));
+        }
+        else {
+            pageNo = HeaderPage.getNumPages(headerPage);
+            dbPage = storageManager.loadDBPage(dbFile, pageNo, true);
+            HeaderPage.setNumPages(headerPage, pageNo + 1);
+        }
+
+        BucketPage.initNewPage(dbPage);
+        return dbPage;
+    }
+
+
+    /**
+     * Adds a bucket page that is no longer in any chain to the free list.
+     * The page is logged, and the caller must log the header page.
+     */
+    private void freePage(DBPage headerPage, DBPage dbPage) throws IOException {
+        BucketPage.initNewPage(dbPage);
+        BucketPage.setNextPage(dbPage, HeaderPage.getFreePage(headerPage));
+        HeaderPage.setFreePage(headerPage, dbPage.getPageNo());
+        storageManager.logDBPageWrite(dbPage);
+    }
+
+
+    /** Returns the page numbers of a bucket's chain, in chain order. */
+    private ArrayList<Integer> getChain(DBPage headerPage, int bucket)
+        throws IOException {
+
+        ArrayList<Integer> chain = new ArrayList<>();
+        int pageNo = getBucketPage(headerPage, bucket);
+        while (pageNo != 0) {
+            chain.add(pageNo);
+            try (DBPage dbPage = storageManager.loadDBPage(dbFile, pageNo)) {
+                pageNo = BucketPage.getNextPage(dbPage);
+            }
+        }
+        return chain;
+    }
+
+
+    /*========================================================================
+     * SCANS AND LOOKUPS
+     */
+
+
+    private HashFilePageTuple newPageTuple(DBPage dbPage, int slot,
+                                           int offset, int bucket) {
+        return new HashFilePageTuple(schema, dbPage, slot, offset, bucket);
+    }
+
+
+    /**
+     * Returns the first tuple at or after the specified slot of a bucket
+     * page, following the bucket's chain and then the chains of the buckets
+     * after it.  If a search key is specified, only the bucket's own chain is
+     * searched, and only tuples that match the key are returned.
+     */
+    private HashFilePageTuple findTuple(int bucket, int pageNo, int slot,
+                                        Tuple searchKey) throws IOException {
+        int numBuckets;
+        try (DBPage headerPage = storageManager.loadDBPage(dbFile, 0)) {
+            numBuckets = HeaderPage.getNumBuckets(headerPage);
+
+            while (true) {
+                while (pageNo != 0) {
+                    try (DBPage dbPage = storageManager.loadDBPage(dbFile, pageNo)) {
+                        int numSlots = BucketPage.getNumSlots(dbPage);
+                        for (; slot < numSlots; slot++) {
+                            int offset = BucketPage.getSlotValue(dbPage, slot);
+                            if (offset == BucketPage.EMPTY_SLOT)
+                                continue;
+
+                            // Creating the tuple pins the page again, on
+                            // behalf of the caller.
+                            HashFilePageTuple tup =
+                                newPageTuple(dbPage, slot, offset, bucket);
+                            if (searchKey == null)
+                                return tup;
+
+                            if (matches(tup, searchKey)) {
+                                tup.setSearchKey(searchKey);
+                                return tup;
+                            }
+                            tup.unpin();
+                        }
+
+                        pageNo = BucketPage.getNextPage(dbPage);
+                        slot = 0;
+                    }
+                }
+
+                bucket++;
+                if (searchKey != null || bucket >= numBuckets)
+                    return null;
+
+                pageNo = getBucketPage(headerPage, bucket);
+            }
+        }
+    }
+
+
+    @Override
+    public Tuple getFirstTuple() throws IOException {
+        int pageNo;
+        try (DBPage headerPage = storageManager.loadDBPage(dbFile, 0)) {
+            pageNo = getBucketPage(headerPage, 0);
+        }
+        return findTuple(0, pageNo, 0, null);
+    }
+
+
+    /**
+     * Returns the tuple that follows the specified tuple, or {@code null} if
+     * there are no more tuples in the file.  The tuples of each bucket are
+     * returned in chain order, and the buckets in order.  The previous tuple
+     * may have been deleted since it was returned.
+     */
+    @Override
+    public Tuple getNextTuple(Tuple tup) throws IOException {
+        HashFilePageTuple ptup = checkTuple(tup);
+        return findTuple(ptup.getBucket(), ptup.getPageNo(),
+            ptup.getSlot() + 1, null);
+    }
+
+
+    @Override
+    public Tuple getTuple(FilePointer fptr)
+        throws InvalidFilePointerException, IOException {
+
+        DBPage dbPage;
+        try {
+            dbPage = storageManager.loadDBPage(dbFile, fptr.getPageNo());
+        }
+        catch (EOFException eofe) {
+            throw new InvalidFilePointerException("Specified page " +
+                fptr.getPageNo() + " doesn't exist in file " +
+                dbFile.getDataFile().getName(), eofe);
+        }
+
+        try {
+            int slot;
+            try {
+                slot = BucketPage.getSlotIndexFromOffset(dbPage, fptr.getOffset());
+            }
+            catch (IllegalArgumentException iae) {
+                throw new InvalidFilePointerException(iae);
+            }
+
+            int offset = BucketPage.getSlotValue(dbPage, slot);
+            if (offset == BucketPage.EMPTY_SLOT) {
+                throw new InvalidFilePointerException("Slot " + slot +
+                    " on page " + fptr.getPageNo() + " is empty.");
+            }
+
+            // The tuple's bucket is found from its key, so that scans can
+            // continue from the tuple.
+            HashFilePageTuple tup = newPageTuple(dbPage, slot, offset, -1);
+            try (DBPage headerPage = storageManager.loadDBPage(dbFile, 0)) {
+                tup.setBucket(getBucket(headerPage, hashKey(tup, true)));
+            }
+            return tup;
+        }
+        finally {
+            dbPage.unpin();
+        }
+    }
+
+
+    /**
+     * Returns the first tuple whose hash-key columns equal the first values
+     * of the search key.  The search key must have a value for every column
+     * of the hash key, and it may have more values, which must equal the
+     * values of the columns that aren't in the hash key, in schema order.
+     * <tt>NULL</tt> values in the search key match <tt>NULL</tt> values in
+     * the tuple.
+     */
+    @Override
+    public Tuple findFirstTupleEquals(Tuple hashKey) throws IOException {
+        if (hashKey.getColumnCount() < keyColumns.length) {
+            throw new IllegalArgumentException(String.format(
+                "Search key has %d values, but the hash key has %d columns",
+                hashKey.getColumnCount(), keyColumns.length));
+        }
+
+        if (hashKey.getColumnCount() > schema.numColumns()) {
+            throw new IllegalArgumentException(String.format(
+                "Search key has %d values, but the file only has %d columns",
+                hashKey.getColumnCount(), schema.numColumns()));
+        }
+
+        // Copy the key, since the caller may reuse it.
+        TupleLiteral searchKey = new TupleLiteral(hashKey);
+
+        int bucket, pageNo;
+        try (DBPage headerPage = storageManager.loadDBPage(dbFile, 0)) {
+            bucket = getBucket(headerPage, hashKey(searchKey, false));
+            pageNo = getBucketPage(headerPage, bucket);
+        }
+        return findTuple(bucket, pageNo, 0, searchKey);
+    }
+
+
+    /**
+     * Returns the next tuple that matches the search key that the previous
+     * tuple was found with.  The previous tuple may have been deleted since
+     * it was returned.  If the previous tuple wasn't found with a search
+     * key, the next tuple with the same hash-key values is returned.
+     */
+    @Override
+    public Tuple findNextTupleEquals(Tuple prevTuple) throws IOException {
+        HashFilePageTuple ptup = checkTuple(prevTuple);
+
+        Tuple searchKey = ptup.getSearchKey();
+        if (searchKey == null) {
+            TupleLiteral key = new TupleLiteral();
+            for (int iCol : keyColumns)
+                key.addValue(ptup.getColumnValue(iCol));
+            searchKey = key;
+        }
+
+        return findTuple(ptup.getBucket(), ptup.getPageNo(),
+            ptup.getSlot() + 1, searchKey);
+    }
+
+
+    private HashFilePageTuple checkTuple(Tuple tup) {
+        if (!(tup instanceof HashFilePageTuple)) {
+            throw new IllegalArgumentException(
+                "Tuple must be of type HashFilePageTuple; got " + tup.getClass());
+        }
+        return (HashFilePageTuple) tup;
+    }
+
+
+    /*========================================================================
+     * MODIFICATIONS
+     */
+
+
+    /**
+     * Adds the tuple to the bucket its key hashes to, adding a page to the
+     * end of the bucket's chain if no page in the chain has room for it.  If
+     * the new tuple makes the file too full, the next bucket is split first,
+     * so that the new tuple doesn't move once it is stored.
+     */
+    @Override
+    public Tuple addTuple(Tuple tup) throws IOException {
+        int tupSize = PageTuple.getTupleStorageSize(schema, tup);
+        int maxSpace = BucketPage.getMaxTupleSpace(dbFile.getPageSize());
+
+        // The "+ 2" is for the tuple's slot.
+        if (tupSize + 2 > maxSpace) {
+            throw new IOException("Tuple size " + tupSize +
+                " is larger than page size " + dbFile.getPageSize() + ".");
+        }
+
+        int hash = hashKey(tup, true);
+
+        try (DBPage headerPage = storageManager.loadDBPage(dbFile, 0)) {
+            long dataSize = HeaderPage.getDataSize(headerPage) + tupSize + 2;
+            if (dataSize > MAX_LOAD_FACTOR * maxSpace *
+                           HeaderPage.getNumBuckets(headerPage)) {
+                splitBucket(headerPage);
+            }
+
+            int bucket = getBucket(headerPage, hash);
+            DBPage dbPage = findPageWithSpace(headerPage, bucket, tupSize + 2);
+
+            int slot = BucketPage.allocNewTuple(dbPage, tupSize);
+            int offset = BucketPage.getSlotValue(dbPage, slot);
+            PageTuple.storeTuple(dbPage, offset, schema, tup);
+            HashFilePageTuple pageTup = newPageTuple(dbPage, slot, offset, bucket);
+
+            logger.debug(String.format("New tuple in bucket %d will reside " +
+                "on page %d, slot %d.", bucket, dbPage.getPageNo(), slot));
+
+            storageManager.logDBPageWrite(dbPage);
+            dbPage.unpin();
+
+            HeaderPage.setNumTuples(headerPage,
+                HeaderPage.getNumTuples(headerPage) + 1);
+            HeaderPage.setDataSize(headerPage, dataSize);
+            storageManager.logDBPageWrite(headerPage);
+
+            return pageTup;
+        }
+    }
+
+
+    /**
+     * Returns the first page of a bucket's chain that has the specified
+     * amount of free space, adding a new page to the end of the chain if
+     * there is none.  The page is returned pinned.
+     */
+    private DBPage findPageWithSpace(DBPage headerPage, int bucket,
+                                     int spaceNeeded) throws IOException {
+        DBPage dbPage = storageManager.loadDBPage(dbFile,
+            getBucketPage(headerPage, bucket));
+        while (BucketPage.getFreeSpaceInPage(dbPage) < spaceNeeded) {
+            int nextPageNo = BucketPage.getNextPage(dbPage);
+            if (nextPageNo == 0) {
+                DBPage newPage = allocatePage(headerPage);
+                logger.debug(String.format("Adding overflow page %d to " +
+                    "bucket %d.", newPage.getPageNo(), bucket));
+
+                BucketPage.setNextPage(dbPage, newPage.getPageNo());
+                storageManager.logDBPageWrite(dbPage);
+                dbPage.unpin();
+                return newPage;
+            }
+
+            dbPage.unpin();
+            dbPage = storageManager.loadDBPage(dbFile, nextPageNo);
+        }
+
+        return dbPage;
+    }
+
+
+    /**
+     * Splits the next bucket in order, moving the tuples that hash to the
+     * new bucket at the end of the file into the new bucket.  Both buckets'
+     * chains are rewritten so that they have as few pages as possible.  If
+     * the directory is full, nothing is split, and the buckets' chains just
+     * grow longer.  The caller must log the header page.
+     */
+    private void splitBucket(DBPage headerPage) throws IOException {
+        int level = HeaderPage.getLevel(headerPage);
+        int splitBucket = HeaderPage.getNextSplit(headerPage);
+        int levelBuckets = HeaderPage.INITIAL_BUCKETS << level;
+        int newBucket = levelBuckets + splitBucket;
+
+        if (newBucket >= HeaderPage.MAX_DIRECTORY_PAGES *
+                         getBucketsPerDirectoryPage()) {
+            logger.debug("Hash file " + dbFile + " can't have any more buckets.");
+            return;
+        }
+
+        // Gather the data of the bucket's tuples, deciding which bucket each
+        // one belongs in at the next level.
+        ArrayList<byte[]> stay = new ArrayList<>();
+        ArrayList<byte[]> move = new ArrayList<>();
+        int firstPageNo = getBucketPage(headerPage, splitBucket);
+        int pageNo = firstPageNo;
+        while (pageNo != 0) {
+            try (DBPage dbPage = storageManager.loadDBPage(dbFile, pageNo)) {
+                int numSlots = BucketPage.getNumSlots(dbPage);
+                for (int slot = 0; slot < numSlots; slot++) {
+                    int offset = BucketPage.getSlotValue(dbPage, slot);
+                    if (offset == BucketPage.EMPTY_SLOT)
+                        continue;
+
+                    byte[] data = new byte[BucketPage.getTupleLength(dbPage, slot)];
+                    dbPage.read(offset, data);
+
+                    HashFilePageTuple tup =
+                        newPageTuple(dbPage, slot, offset, splitBucket);
+                    int hash = hashKey(tup, true);
+                    tup.unpin();
+
+                    if (hash % (2 * levelBuckets) == splitBucket)
+                        stay.add(data);
+                    else
+                        move.add(data);
+                }
+                pageNo = BucketPage.getNextPage(dbPage);
+            }
+        }
+
+        logger.debug(String.format("Splitting bucket %d of hash file %s:  " +
+            "%d tuples stay, %d tuples move to bucket %d.", splitBucket,
+            dbFile, stay.size(), move.size(), newBucket));
+
+        try (DBPage newPage = allocatePage(headerPage)) {
+            setBucketPage(headerPage, newBucket, newPage.getPageNo());
+            rewriteChain(headerPage, newPage.getPageNo(), move);
+        }
+        rewriteChain(headerPage, firstPageNo, stay);
+
+        splitBucket++;
+        if (splitBucket == levelBuckets) {
+            HeaderPage.setLevel(headerPage, level + 1);
+            splitBucket = 0;
+        }
+        HeaderPage.setNextSplit(headerPage, splitBucket);
+    }
+
+
+    /**
+     * Replaces the tuples in a chain with the specified tuple data, reusing
+     * the chain's pages in order, adding pages if the tuples need more of
+     * them, and freeing the pages that the tuples don't need.
+     */
+    private void rewriteChain(DBPage headerPage, int firstPageNo,
+                              List<byte[]> tuples) throws IOException {
+        DBPage dbPage = storageManager.loadDBPage(dbFile, firstPageNo);
+        int oldNextPageNo = BucketPage.getNextPage(dbPage);
+        BucketPage.initNewPage(dbPage);
+
+        for (byte[] data : tuples) {
+            if (BucketPage.getFreeSpaceInPage(dbPage) < data.length + 2) {
+                DBPage nextPage;
+                if (oldNextPageNo != 0) {
+                    nextPage = storageManager.loadDBPage(dbFile, oldNextPageNo);
+                    oldNextPageNo = BucketPage.getNextPage(nextPage);
+                    BucketPage.initNewPage(nextPage);
+                }
+                else {
+                    nextPage = allocatePage(headerPage);
+                }
+
+                BucketPage.setNextPage(dbPage, nextPage.getPageNo());
+                storageManager.logDBPageWrite(dbPage);
+                dbPage.unpin();
+                dbPage = nextPage;
+            }
+
+            int slot = BucketPage.allocNewTuple(dbPage, data.length);
+            dbPage.write(BucketPage.getSlotValue(dbPage, slot), data);
+        }
+
+        storageManager.logDBPageWrite(dbPage);
+        dbPage.unpin();
+
+        while (oldNextPageNo != 0) {
+            try (DBPage oldPage = storageManager.loadDBPage(dbFile, oldNextPageNo)) {
+                oldNextPageNo = BucketPage.getNextPage(oldPage);
+                freePage(headerPage, oldPage);
+            }
+        }
+    }
+
+
+    /**
+     * Updates the tuple's values in place.  The values of the hash-key
+     * columns can't be changed, since the tuple would have to move to
+     * another bucket.
+     *
+     * @review As with heap files, this fails if the new values need more
+     *         space than is free in the tuple's page.
+     */
+    @Override
+    public void updateTuple(Tuple tup, Map<String, Object> newValues)
+        throws IOException {
+
+        HashFilePageTuple ptup = checkTuple(tup);
+
+        // Check all the new values before changing any of them.
+        for (Map.Entry<String, Object> entry : newValues.entrySet()) {
+            int colIndex = schema.getColumnIndex(entry.getKey());
+            if (isKeyColumn(colIndex) &&
+                !valuesEqual(ptup.getColumnValue(colIndex), entry.getValue())) {
+                throw new IllegalArgumentException(String.format(
+                    "Can't change the value of hash-key column %s; delete " +
+                    "the row and insert it again instead", entry.getKey()));
+            }
+        }
+
+        DBPage dbPage = ptup.getDBPage();
+        int oldSize = BucketPage.getTupleLength(dbPage, ptup.getSlot());
+
+        for (Map.Entry<String, Object> entry : newValues.entrySet()) {
+            int colIndex = schema.getColumnIndex(entry.getKey());
+            ptup.setColumnValue(colIndex, entry.getValue());
+        }
+
+        int newSize = BucketPage.getTupleLength(dbPage, ptup.getSlot());
+        storageManager.logDBPageWrite(dbPage);
+
+        if (newSize != oldSize) {
+            try (DBPage headerPage = storageManager.loadDBPage(dbFile, 0)) {
+                HeaderPage.setDataSize(headerPage,
+                    HeaderPage.getDataSize(headerPage) + newSize - oldSize);
+                storageManager.logDBPageWrite(headerPage);
+            }
+        }
+    }
+
+
+    @Override
+    public void deleteTuple(Tuple tup) throws IOException {
+        HashFilePageTuple ptup = checkTuple(tup);
+
+        DBPage dbPage = ptup.getDBPage();
+        int size = BucketPage.getTupleLength(dbPage, ptup.getSlot());
+        BucketPage.deleteTuple(dbPage, ptup.getSlot());
+        storageManager.logDBPageWrite(dbPage);
+
+        try (DBPage headerPage = storageManager.loadDBPage(dbFile, 0)) {
+            HeaderPage.setNumTuples(headerPage,
+                HeaderPage.getNumTuples(headerPage) - 1);
+            HeaderPage.setDataSize(headerPage,
+                HeaderPage.getDataSize(headerPage) - size - 2);
+            storageManager.logDBPageWrite(headerPage);
+        }
+
+        // Note that we don't invalidate the page-tuple when it is deleted,
+        // so that the tuple can still be unpinned, and scans can continue
+        // from it.
+    }
+
+
+    /*========================================================================
+     * MAINTENANCE
+     */
+
+
+    /**
+     * Computes the file's statistics from all of its tuples.  The number of
+     * tuples and bytes recorded in the header page are also corrected, in
+     * case they have drifted.
+     */
+    @Override
+    public void analyze() throws IOException {
+        List<ColumnStatsCollector> collectors = schema.getColumnInfos().stream()
+            .map((ColumnInfo c) -> new ColumnStatsCollector(c.getType().getBaseType()))
+            .collect(Collectors.toList());
+
+        int numDataPages = 0;
+        int numTuples = 0;
+        long dataSize = 0;
+        double totalTupleSize = 0;
+
+        // Analyzing reads the whole file, so recycle its pages through a
+        // buffer ring instead of flushing the page cache.
+        SessionState state = SessionState.get();
+        BufferRing oldRing = state.getBufferRing();
+        state.setBufferRing(new BufferRing(dbFile.getNumPages()));
+
+        try (DBPage headerPage = storageManager.loadDBPage(dbFile, 0)) {
+            int numBuckets = HeaderPage.getNumBuckets(headerPage);
+            for (int bucket = 0; bucket < numBuckets; bucket++) {
+                int pageNo = getBucketPage(headerPage, bucket);
+                while (pageNo != 0) {
+                    try (DBPage dbPage = storageManager.loadDBPage(dbFile, pageNo)) {
+                        numDataPages++;
+                        int numSlots = BucketPage.getNumSlots(dbPage);
+                        for (int slot = 0; slot < numSlots; slot++) {
+                            int offset = BucketPage.getSlotValue(dbPage, slot);
+                            if (offset == BucketPage.EMPTY_SLOT)
+                                continue;
+
+                            int size = BucketPage.getTupleLength(dbPage, slot);
+                            totalTupleSize += size;
+                            dataSize += size + 2;
+                            numTuples++;
+
+                            HashFilePageTuple tup =
+                                newPageTuple(dbPage, slot, offset, bucket);
+                            for (int i = 0; i < collectors.size(); i++)
+                                collectors.get(i).addValue(tup.getColumnValue(i));
+                            tup.unpin();
+                        }
+                        pageNo = BucketPage.getNextPage(dbPage);
+                    }
+                }
+            }
+
+            if (HeaderPage.getNumTuples(headerPage) != numTuples ||
+                HeaderPage.getDataSize(headerPage) != dataSize) {
+                HeaderPage.setNumTuples(headerPage, numTuples);
+                HeaderPage.setDataSize(headerPage, dataSize);
+                storageManager.logDBPageWrite(headerPage);
+            }
+        }
+        finally {
+            state.setBufferRing(oldRing);
+        }
+
+        ArrayList<ColumnStats> columnStats = collectors.stream()
+            .map(ColumnStatsCollector::getColumnStats)
+            .collect(Collectors.toCollection(ArrayList::new));
+
+        stats = new TableStats(numDataPages, numTuples,
+            (float) (totalTupleSize / numTuples), columnStats);
+
+        hashFileManager.saveMetadata(this);
+    }
+
+
+    /**
+     * Checks that every tuple is in the bucket that its key hashes to, that
+     * no page is in more than one chain, and that the counts in the header
+     * page match the tuples in the file.
+     */
+    @Override
+    public List<String> verify() throws IOException {
+        ArrayList<String> errors = new ArrayList<>();
+
+        try (DBPage headerPage = storageManager.loadDBPage(dbFile, 0)) {
+            int numPages = HeaderPage.getNumPages(headerPage);
+            boolean[] seen = new boolean[numPages];
+            int numTuples = 0;
+            long dataSize = 0;
+
+            int numBuckets = HeaderPage.getNumBuckets(headerPage);
+            for (int bucket = 0; bucket < numBuckets; bucket++) {
+                int pageNo = getBucketPage(headerPage, bucket);
+                if (pageNo == 0)
+                    errors.add("Bucket " + bucket + " has no pages");
+
+                while (pageNo != 0) {
+                    if (pageNo < 1 || pageNo >= numPages || seen[pageNo]) {
+                        errors.add(String.format("Bucket %d's chain refers " +
+                            "to invalid or repeated page %d", bucket, pageNo));
+                        break;
+                    }
+                    seen[pageNo] = true;
+
+                    try (DBPage dbPage = storageManager.loadDBPage(dbFile, pageNo)) {
+                        int numSlots = BucketPage.getNumSlots(dbPage);
+                        for (int slot = 0; slot < numSlots; slot++) {
+                            int offset = BucketPage.getSlotValue(dbPage, slot);
+                            if (offset == BucketPage.EMPTY_SLOT)
+                                continue;
+
+                            numTuples++;
+                            dataSize += BucketPage.getTupleLength(dbPage, slot) + 2;
+
+                            HashFilePageTuple tup =
+                                newPageTuple(dbPage, slot, offset, bucket);
+                            int expected = getBucket(headerPage, hashKey(tup, true));
+                            if (expected != bucket) {
+                                errors.add(String.format("Tuple %s in page " +
+                                    "%d, slot %d is in bucket %d, but should " +
+                                    "be in bucket %d", tup, pageNo, slot,
+                                    bucket, expected));
+                            }
+                            tup.unpin();
+                        }
+                        pageNo = BucketPage.getNextPage(dbPage);
+                    }
+                }
+            }
+
+            if (numTuples != HeaderPage.getNumTuples(headerPage)) {
+                errors.add(String.format("Header records %d tuples, but " +
+                    "the buckets hold %d", HeaderPage.getNumTuples(headerPage),
+                    numTuples));
+            }
+
+            if (dataSize != HeaderPage.getDataSize(headerPage)) {
+                errors.add(String.format("Header records %d bytes of " +
+                    "tuples, but the buckets hold %d",
+                    HeaderPage.getDataSize(headerPage), dataSize));
+            }
+        }
+
+        return errors;
+    }
+
+
+    /**
+     * Shortens each bucket's chain by moving tuples out of the pages at the
+     * end of the chain into free space in earlier pages of the chain, and
+     * then removing the chain's empty overflow pages and adding them to the
+     * free list.  Each tuple that is moved is reported to the listener.
+     */
+    @Override
+    public void optimize(TupleMoveListener listener) throws IOException {
+        int numMoved = 0;
+        int numFreed = 0;
+
+        try (DBPage headerPage = storageManager.loadDBPage(dbFile, 0)) {
+            int numBuckets = HeaderPage.getNumBuckets(headerPage);
+            for (int bucket = 0; bucket < numBuckets; bucket++) {
+                ArrayList<Integer> chain = getChain(headerPage, bucket);
+                if (chain.size() < 2)
+                    continue;
+
+                numMoved += compactChain(chain, bucket, listener);
+                numFreed += removeEmptyPages(headerPage, chain);
+            }
+
+            storageManager.logDBPageWrite(headerPage);
+        }
+
+        logger.info(String.format("Optimized %s:  moved %d tuples, and " +
+            "freed %d overflow pages.", dbFile, numMoved, numFreed));
+    }
+
+
+    /**
+     * Moves tuples from the last pages of a chain into free space in the
+     * earlier pages, until a tuple doesn't fit in any earlier page.
+     *
+     * @return the number of tuples that were moved
+     */
+    private int compactChain(List<Integer> chain, int bucket,
+                             TupleMoveListener listener) throws IOException {
+        int numMoved = 0;
+        for (int iSrc = chain.size() - 1; iSrc > 0; iSrc--) {
+            try (DBPage srcPage = storageManager.loadDBPage(dbFile, chain.get(iSrc))) {
+                // Move the tuples in the highest slots first, since removing
+                // them doesn't slide the data of any other tuples.
+                int slot = BucketPage.getNumSlots(srcPage) - 1;
+                while (slot >= 0) {
+                    if (BucketPage.getSlotValue(srcPage, slot) == BucketPage.EMPTY_SLOT) {
+                        slot--;
+                        continue;
+                    }
+
+                    int required = BucketPage.getTupleLength(srcPage, slot) + 2;
+                    DBPage dstPage = null;
+                    for (int iDst = 0; iDst < iSrc && dstPage == null; iDst++) {
+                        DBPage page = storageManager.loadDBPage(dbFile, chain.get(iDst));
+                        if (BucketPage.getFreeSpaceInPage(page) >= required)
+                            dstPage = page;
+                        else
+                            page.unpin();
+                    }
+
+                    if (dstPage == null)
+                        return numMoved;
+
+                    try {
+                        moveTuple(srcPage, slot, dstPage, bucket, listener);
+                    }
+                    finally {
+                        dstPage.unpin();
+                    }
+                    numMoved++;
+
+                    // Removing the tuple may also remove the empty slots
+                    // before it.
+                    slot = Math.min(slot, BucketPage.getNumSlots(srcPage)) - 1;
+                }
+            }
+        }
+        return numMoved;
+    }
+
+
+    /**
+     * Moves the tuple in the specified slot of one page of a bucket into
+     * another page of the bucket, reporting the move to the listener while
+     * both copies exist.  Both pages must be pinned, and the target page must
+     * have room for the tuple.
+     */
+    private void moveTuple(DBPage srcPage, int srcSlot, DBPage dstPage,
+                           int bucket, TupleMoveListener listener)
+        throws IOException {
+
+        int srcOffset = BucketPage.getSlotValue(srcPage, srcSlot);
+        int length = BucketPage.getTupleLength(srcPage, srcSlot);
+
+        int dstSlot = BucketPage.allocNewTuple(dstPage, length);
+        int dstOffset = BucketPage.getSlotValue(dstPage, dstSlot);
+        dstPage.write(dstOffset, srcPage, srcOffset, length);
+
+        HashFilePageTuple oldTup = newPageTuple(srcPage, srcSlot, srcOffset, bucket);
+        HashFilePageTuple newTup = newPageTuple(dstPage, dstSlot, dstOffset, bucket);
+        try {
+            if (listener != null)
+                listener.tupleMoved(oldTup, newTup);
+        }
+        finally {
+            oldTup.unpin();
+            newTup.unpin();
+        }
+
+        BucketPage.deleteTuple(srcPage, srcSlot);
+        storageManager.logDBPageWrite(dstPage);
+        storageManager.logDBPageWrite(srcPage);
+    }
+
+
+    /**
+     * Removes the empty overflow pages from a chain, adding them to the free
+     * list.  The first page of the chain always stays.  The caller must log
+     * the header page.
+     *
+     * @return the number of pages that were freed
+     */
+    private int removeEmptyPages(DBPage headerPage, List<Integer> chain)
+        throws IOException {
+
+        int numFreed = 0;
+        DBPage prevPage = storageManager.loadDBPage(dbFile, chain.get(0));
+        for (int i = 1; i < chain.size(); i++) {
+            DBPage dbPage = storageManager.loadDBPage(dbFile, chain.get(i));
+            if (BucketPage.isEmpty(dbPage)) {
+                BucketPage.setNextPage(prevPage, BucketPage.getNextPage(dbPage));
+                storageManager.logDBPageWrite(prevPage);
+                freePage(headerPage, dbPage);
+                dbPage.unpin();
+                numFreed++;
+            }
+            else {
+                prevPage.unpin();
+                prevPage = dbPage;
+            }
+        }
+        prevPage.unpin();
+
+        return numFreed;
+    }
+}
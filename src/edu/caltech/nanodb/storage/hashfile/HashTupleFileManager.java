@@ -0,0 +1,196 @@
+package edu.caltech.nanodb.storage.hashfile;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.queryeval.TableStats;
+import edu.caltech.nanodb.relations.SQLDataType;
+import edu.caltech.nanodb.relations.TableSchema;
+import edu.caltech.nanodb.storage.DBFile;
+import edu.caltech.nanodb.storage.DBPage;
+import edu.caltech.nanodb.storage.PageReader;
+import edu.caltech.nanodb.storage.PageWriter;
+import edu.caltech.nanodb.storage.SchemaWriter;
+import edu.caltech.nanodb.storage.StatsWriter;
+import edu.caltech.nanodb.storage.StorageManager;
+import edu.caltech.nanodb.storage.TupleFile;
+import edu.caltech.nanodb.storage.TupleFileManager;
+
+
+/**
+ * This class provides high-level operations on hash tuple files.
+ */
+public class HashTupleFileManager implements TupleFileManager {
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(HashTupleFileManager.class);
+
+
+    /** A reference to the storage manager. */
+    private StorageManager storageManager;
+
+
+    public HashTupleFileManager(StorageManager storageManager) {
+        if (storageManager == null)
+            throw new IllegalArgumentException("storageManager cannot be null");
+
+        this.storageManager = storageManager;
+    }
+
+
+    /**
+     * Creates a hash file whose hash key is every column of the schema
+     * except for file-pointer columns.  This is the right key for hash
+     * indexes, whose last column points to the indexed tuple.
+     */
+    @Override
+    public TupleFile createTupleFile(DBFile dbFile, TableSchema schema)
+        throws IOException {
+
+        ArrayList<Integer> keyColumns = new ArrayList<>();
+        for (int iCol = 0; iCol < schema.numColumns(); iCol++) {
+            if (schema.getColumnInfo(iCol).getType().getBaseType() !=
+                SQLDataType.FILE_POINTER) {
+                keyColumns.add(iCol);
+            }
+        }
+
+        return createTupleFile(dbFile, schema,
+            keyColumns.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+
+    /**
+     * Creates a hash file whose tuples are hashed on the specified columns.
+     *
+     * @param dbFile the file to initialize as a hash file
+     * @param schema the schema of the file's tuples
+     * @param keyColumns the indexes of the columns in the hash key
+     *
+     * @return the new hash file
+     *
+     * @throws IOException if the file can't be initialized
+     */
+    public HashTupleFile createTupleFile(DBFile dbFile, TableSchema schema,
+                                         int[] keyColumns) throws IOException {
+
+        logger.info(String.format("Initializing new hash tuple file %s " +
+            "with %d columns, hashed on %d columns", dbFile,
+            schema.numColumns(), keyColumns.length));
+
+        if (keyColumns.length == 0)
+            throw new IllegalArgumentException("The hash key has no columns");
+
+        for (int iCol : keyColumns) {
+            if (iCol < 0 || iCol >= schema.numColumns()) {
+                throw new IllegalArgumentException(
+                    "Invalid hash-key column index " + iCol);
+            }
+        }
+
+        try (DBPage headerPage = storageManager.loadDBPage(dbFile, 0)) {
+            // The key columns go in first, since they decide where the
+            // directory and the schema are stored.
+            HeaderPage.setKeyColumns(headerPage, keyColumns);
+            HeaderPage.setLevel(headerPage, 0);
+            HeaderPage.setNextSplit(headerPage, 0);
+            HeaderPage.setNumTuples(headerPage, 0);
+            HeaderPage.setDataSize(headerPage, 0);
+            HeaderPage.setNumPages(headerPage, 1);
+            HeaderPage.setFreePage(headerPage, 0);
+            for (int i = 0; i < HeaderPage.MAX_DIRECTORY_PAGES; i++)
+                HeaderPage.setDirectoryPage(headerPage, i, 0);
+        }
+
+        TableStats stats = new TableStats(schema.numColumns());
+        HashTupleFile tupleFile = new HashTupleFile(storageManager, this,
+            dbFile, schema, stats, keyColumns);
+        tupleFile.initBuckets();
+        saveMetadata(tupleFile);
+        return tupleFile;
+    }
+
+
+    @Override
+    public TupleFile openTupleFile(DBFile dbFile) throws IOException {
+
+        logger.info("Opening existing hash tuple file " + dbFile);
+
+        try (DBPage headerPage = storageManager.loadDBPage(dbFile, 0)) {
+            int[] keyColumns = HeaderPage.getKeyColumns(headerPage);
+
+            PageReader hpReader = new PageReader(headerPage);
+            hpReader.setPosition(HeaderPage.getSchemaOffset(headerPage));
+
+            // Read in the schema details.
+            SchemaWriter schemaWriter = new SchemaWriter();
+            TableSchema schema = schemaWriter.readTableSchema(hpReader);
+
+            // Read in the statistics.
+            StatsWriter statsWriter = new StatsWriter();
+            TableStats stats = statsWriter.readTableStats(hpReader, schema,
+                dbFile.getFormatVersion());
+
+            return new HashTupleFile(storageManager, this, dbFile, schema,
+                stats, keyColumns);
+        }
+    }
+
+
+    @Override
+    public void saveMetadata(TupleFile tupleFile) throws IOException {
+
+        if (tupleFile == null)
+            throw new IllegalArgumentException("tupleFile cannot be null");
+
+        if (!(tupleFile instanceof HashTupleFile)) {
+            throw new IllegalArgumentException(
+                "tupleFile must be an instance of HashTupleFile");
+        }
+
+        DBFile dbFile = tupleFile.getDBFile();
+        TableSchema schema = tupleFile.getSchema();
+        TableStats stats = tupleFile.getStats();
+
+        try (DBPage headerPage = storageManager.loadDBPage(dbFile, 0)) {
+            PageWriter hpWriter = new PageWriter(headerPage);
+            int schemaOffset = HeaderPage.getSchemaOffset(headerPage);
+            hpWriter.setPosition(schemaOffset);
+
+            SchemaWriter schemaWriter = new SchemaWriter();
+            schemaWriter.writeTableSchema(schema, hpWriter);
+            int schemaSize = hpWriter.getPosition() - schemaOffset;
+            HeaderPage.setSchemaSize(headerPage, schemaSize);
+
+            StatsWriter statsWriter = new StatsWriter();
+            statsWriter.writeTableStats(schema, stats, hpWriter);
+            int statsSize = hpWriter.getPosition() - schemaOffset - schemaSize;
+            HeaderPage.setStatsSize(headerPage, statsSize);
+
+            storageManager.logDBPageWrite(headerPage);
+        }
+    }
+
+
+    /**
+     * {@inheritDoc}  Hash files were added after page numbers were widened
+     * to 32 bits, so only the statistics need to be saved again in the
+     * current format.
+     */
+    @Override
+    public DBFile upgradeTupleFile(DBFile dbFile) throws IOException {
+        TupleFile tupleFile = openTupleFile(dbFile);
+        storageManager.upgradeFormatVersion(dbFile);
+        saveMetadata(tupleFile);
+        return dbFile;
+    }
+
+
+    @Override
+    public void deleteTupleFile(TupleFile tupleFile) throws IOException {
+        // TODO
+        throw new UnsupportedOperationException("NYI:  deleteTupleFile()");
+    }
+}
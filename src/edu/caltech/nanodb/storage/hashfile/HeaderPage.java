@@ -0,0 +1,300 @@
+package edu.caltech.nanodb.storage.hashfile;
+
+
+import edu.caltech.nanodb.storage.DBPage;
+
+
+/**
+ * <p>
+ * This class contains constants and basic functionality for accessing and
+ * manipulating the contents of the header page of a hash tuple file.  As
+ * with all data files, the first two bytes of the header page hold the type
+ * and page size of the file.  (See {@link edu.caltech.nanodb.storage.DBFile}
+ * for details.)
+ * </p>
+ * <p>
+ * Hash file header pages are laid out as follows:
+ * </p>
+ * <ul>
+ *   <li>The sizes of the table's schema and statistics, as unsigned
+ *       shorts.</li>
+ *   <li>The linear-hashing level and the next bucket to split, as ints.
+ *       The file has {@link #INITIAL_BUCKETS} &times; 2<sup>level</sup>
+ *       + <em>next</em> buckets.</li>
+ *   <li>The number of tuples in the file, as an int, and the number of
+ *       bytes they use in bucket pages, including their slots, as a
+ *       long.</li>
+ *   <li>The number of pages allocated in the file, including the header
+ *       page, as an int.</li>
+ *   <li>The first page of the list of free pages, or 0 if there are none,
+ *       as an int.</li>
+ *   <li>The number of columns in the hash key, as an unsigned short,
+ *       followed by the index of each key column, as unsigned shorts.</li>
+ *   <li>The page numbers of the directory pages, as
+ *       {@link #MAX_DIRECTORY_PAGES} ints, where unused entries are 0.  Each
+ *       directory page holds the page number of the first bucket page of
+ *       each of a range of buckets, as ints.</li>
+ *   <li>The table's schema, as written by the
+ *       {@link edu.caltech.nanodb.storage.SchemaWriter} class.</li>
+ *   <li>The table's statistics, as written by the
+ *       {@link edu.caltech.nanodb.storage.StatsWriter} class.</li>
+ * </ul>
+ */
+public class HeaderPage {
+
+    /**
+     * The offset in the header page where the size of the table schema is
+     * stored.  This value is an unsigned short.
+     */
+    public static final int OFFSET_SCHEMA_SIZE = 2;
+
+
+    /**
+     * The offset in the header page where the size of the table statistics
+     * are stored.  This value is an unsigned short.
+     */
+    public static final int OFFSET_STATS_SIZE = 4;
+
+
+    /**
+     * The offset in the header page where the linear-hashing level is
+     * stored.  This value is an int.
+     */
+    public static final int OFFSET_LEVEL = 6;
+
+
+    /**
+     * The offset in the header page where the number of the next bucket to
+     * split is stored.  This value is an int.
+     */
+    public static final int OFFSET_NEXT_SPLIT = 10;
+
+
+    /**
+     * The offset in the header page where the number of tuples in the file
+     * is stored.  This value is an int.
+     */
+    public static final int OFFSET_NUM_TUPLES = 14;
+
+
+    /**
+     * The offset in the header page where the number of bytes used by tuples
+     * and their slots is stored.  This value is a long.
+     */
+    public static final int OFFSET_DATA_SIZE = 18;
+
+
+    /**
+     * The offset in the header page where the number of pages allocated in
+     * the file is stored.  This value is an int.
+     */
+    public static final int OFFSET_NUM_PAGES = 26;
+
+
+    /**
+     * The offset in the header page where the first page of the free list is
+     * stored.  This value is an int.
+     */
+    public static final int OFFSET_FREE_PAGE = 30;
+
+
+    /**
+     * The offset in the header page where the number of hash-key columns is
+     * stored.  This value is an unsigned short.
+     */
+    public static final int OFFSET_NUM_KEY_COLUMNS = 34;
+
+
+    /** The offset in the header page where the hash-key columns start. */
+    public static final int OFFSET_KEY_COLUMNS = 36;
+
+
+    /** The number of buckets that a new hash file starts with. */
+    public static final int INITIAL_BUCKETS = 4;
+
+
+    /** The number of directory pages that a hash file can have. */
+    public static final int MAX_DIRECTORY_PAGES = 64;
+
+
+    /**
+     * This helper method simply verifies that the data page provided to the
+     * <tt>HeaderPage</tt> class is in fact a header-page (i.e. page 0 in the
+     * data file).
+     */
+    private static void verifyIsHeaderPage(DBPage dbPage) {
+        if (dbPage == null)
+            throw new IllegalArgumentException("dbPage cannot be null");
+
+        if (dbPage.getPageNo() != 0) {
+            throw new IllegalArgumentException(
+                "Page 0 is the header page in this storage format; was given page " +
+                dbPage.getPageNo());
+        }
+    }
+
+
+    public static int getSchemaSize(DBPage dbPage) {
+        verifyIsHeaderPage(dbPage);
+        return dbPage.readUnsignedShort(OFFSET_SCHEMA_SIZE);
+    }
+
+
+    public static void setSchemaSize(DBPage dbPage, int numBytes) {
+        verifyIsHeaderPage(dbPage);
+        dbPage.writeShort(OFFSET_SCHEMA_SIZE, numBytes);
+    }
+
+
+    public static int getStatsSize(DBPage dbPage) {
+        verifyIsHeaderPage(dbPage);
+        return dbPage.readUnsignedShort(OFFSET_STATS_SIZE);
+    }
+
+
+    public static void setStatsSize(DBPage dbPage, int numBytes) {
+        verifyIsHeaderPage(dbPage);
+        dbPage.writeShort(OFFSET_STATS_SIZE, numBytes);
+    }
+
+
+    public static int getLevel(DBPage dbPage) {
+        verifyIsHeaderPage(dbPage);
+        return dbPage.readInt(OFFSET_LEVEL);
+    }
+
+
+    public static void setLevel(DBPage dbPage, int level) {
+        verifyIsHeaderPage(dbPage);
+        dbPage.writeInt(OFFSET_LEVEL, level);
+    }
+
+
+    public static int getNextSplit(DBPage dbPage) {
+        verifyIsHeaderPage(dbPage);
+        return dbPage.readInt(OFFSET_NEXT_SPLIT);
+    }
+
+
+    public static void setNextSplit(DBPage dbPage, int bucket) {
+        verifyIsHeaderPage(dbPage);
+        dbPage.writeInt(OFFSET_NEXT_SPLIT, bucket);
+    }
+
+
+    /** Returns the number of buckets in the hash file. */
+    public static int getNumBuckets(DBPage dbPage) {
+        return (INITIAL_BUCKETS << getLevel(dbPage)) + getNextSplit(dbPage);
+    }
+
+
+    public static int getNumTuples(DBPage dbPage) {
+        verifyIsHeaderPage(dbPage);
+        return dbPage.readInt(OFFSET_NUM_TUPLES);
+    }
+
+
+    public static void setNumTuples(DBPage dbPage, int numTuples) {
+        verifyIsHeaderPage(dbPage);
+        dbPage.writeInt(OFFSET_NUM_TUPLES, numTuples);
+    }
+
+
+    public static long getDataSize(DBPage dbPage) {
+        verifyIsHeaderPage(dbPage);
+        return dbPage.readLong(OFFSET_DATA_SIZE);
+    }
+
+
+    public static void setDataSize(DBPage dbPage, long numBytes) {
+        verifyIsHeaderPage(dbPage);
+        dbPage.writeLong(OFFSET_DATA_SIZE, numBytes);
+    }
+
+
+    public static int getNumPages(DBPage dbPage) {
+        verifyIsHeaderPage(dbPage);
+        return dbPage.readInt(OFFSET_NUM_PAGES);
+    }
+
+
+    public static void setNumPages(DBPage dbPage, int numPages) {
+        verifyIsHeaderPage(dbPage);
+        dbPage.writeInt(OFFSET_NUM_PAGES, numPages);
+    }
+
+
+    public static int getFreePage(DBPage dbPage) {
+        verifyIsHeaderPage(dbPage);
+        return dbPage.readInt(OFFSET_FREE_PAGE);
+    }
+
+
+    public static void setFreePage(DBPage dbPage, int pageNo) {
+        verifyIsHeaderPage(dbPage);
+        dbPage.writeInt(OFFSET_FREE_PAGE, pageNo);
+    }
+
+
+    /**
+     * Returns the indexes of the columns in the hash key, in the order that
+     * they are hashed.
+     */
+    public static int[] getKeyColumns(DBPage dbPage) {
+        verifyIsHeaderPage(dbPage);
+        int[] keyColumns =
+            new int[dbPage.readUnsignedShort(OFFSET_NUM_KEY_COLUMNS)];
+        for (int i = 0; i < keyColumns.length; i++) {
+            keyColumns[i] =
+                dbPage.readUnsignedShort(OFFSET_KEY_COLUMNS + 2 * i);
+        }
+        return keyColumns;
+    }
+
+
+    /**
+     * Stores the indexes of the columns in the hash key.  This must be done
+     * before anything else that comes after the key columns is stored, since
+     * it moves the directory and the schema.
+     */
+    public static void setKeyColumns(DBPage dbPage, int[] keyColumns) {
+        verifyIsHeaderPage(dbPage);
+        dbPage.writeShort(OFFSET_NUM_KEY_COLUMNS, keyColumns.length);
+        for (int i = 0; i < keyColumns.length; i++)
+            dbPage.writeShort(OFFSET_KEY_COLUMNS + 2 * i, keyColumns[i]);
+    }
+
+
+    /** Returns the offset of the directory-page array in the header page. */
+    public static int getDirectoryOffset(DBPage dbPage) {
+        verifyIsHeaderPage(dbPage);
+        return OFFSET_KEY_COLUMNS +
+            2 * dbPage.readUnsignedShort(OFFSET_NUM_KEY_COLUMNS);
+    }
+
+
+    /**
+     * Returns the page number of the specified directory page, or 0 if the
+     * directory page hasn't been allocated.
+     */
+    public static int getDirectoryPage(DBPage dbPage, int index) {
+        return dbPage.readInt(getDirectoryOffset(dbPage) + 4 * index);
+    }
+
+
+    public static void setDirectoryPage(DBPage dbPage, int index, int pageNo) {
+        dbPage.writeInt(getDirectoryOffset(dbPage) + 4 * index, pageNo);
+    }
+
+
+    /** Returns the offset in the header page where the schema starts. */
+    public static int getSchemaOffset(DBPage dbPage) {
+        return getDirectoryOffset(dbPage) + 4 * MAX_DIRECTORY_PAGES;
+    }
+
+
+    /** Returns the offset in the header page where the statistics start. */
+    public static int getStatsOffset(DBPage dbPage) {
+        return getSchemaOffset(dbPage) + getSchemaSize(dbPage);
+    }
+}
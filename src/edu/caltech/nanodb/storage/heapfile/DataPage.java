@@ -213,14 +213,14 @@ public class DataPage {
      * This static helper function returns the index of where tuple data
      * currently ends in the specified data page.  This value depends more on
      * the overall structure of the data page, and at present is simply the
-     * page-size.
+     * page-size, less the space for the page LSN if the page stores it.
      *
      * @param dbPage the data page to examine
      *
      * @return the index where the tuple data ends in this data page
      */
     public static int getTupleDataEnd(DBPage dbPage) {
-        return dbPage.getPageSize();
+        return dbPage.getUsableSize();
     }
 
 
@@ -612,7 +612,7 @@ public class DataPage {
      *
      * @param dbPage the data page to compress header
      */
-    private static void compressHeader(DBPage dbPage) {
+    static void compressHeader(DBPage dbPage) {
         int numSlots = getNumSlots(dbPage);
         while (numSlots > 0 && getSlotValue(dbPage, numSlots - 1) == EMPTY_SLOT) {
             numSlots--;
@@ -59,8 +59,7 @@ public class HeapFilePageTuple extends PageTuple {
      * @return a file-pointer that can be used to look up this tuple
      */
     public FilePointer getExternalReference() {
-        return new FilePointer(getDBPage().getPageNo(),
-                               DataPage.getSlotOffset(slot));
+        return new FilePointer(getPageNo(), DataPage.getSlotOffset(slot));
     }
 
 
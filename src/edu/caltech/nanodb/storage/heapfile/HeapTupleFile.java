@@ -1,14 +1,19 @@
 package edu.caltech.nanodb.storage.heapfile;
 
 
+import edu.caltech.nanodb.client.SessionState;
+import edu.caltech.nanodb.expressions.TupleLiteral;
 import edu.caltech.nanodb.queryeval.ColumnStats;
 import edu.caltech.nanodb.queryeval.ColumnStatsCollector;
 import edu.caltech.nanodb.queryeval.TableStats;
 import edu.caltech.nanodb.relations.ColumnInfo;
+import edu.caltech.nanodb.relations.ColumnType;
 import edu.caltech.nanodb.relations.TableSchema;
 import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
 import edu.caltech.nanodb.storage.*;
 import edu.caltech.nanodb.storage.freespacemap.FreeSpaceMapFile;
+import edu.caltech.nanodb.transactions.TransactionManager;
 import org.apache.log4j.Logger;
 
 import java.io.EOFException;
@@ -16,6 +21,8 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntPredicate;
 import java.util.stream.Collectors;
 
 
@@ -59,6 +66,31 @@ public class HeapTupleFile implements TupleFile {
     private FreeSpaceMapFile fsmFile;
 
 
+    /**
+     * The file that stores large values out of line, or <tt>null</tt> if
+     * all values are stored in the tuples themselves.
+     */
+    private OverflowFile overflowFile;
+
+
+    /**
+     * The file that stores the range of values in each data page, or
+     * <tt>null</tt> if the table doesn't have a zone map.
+     */
+    private ZoneMapFile zoneMapFile;
+
+
+    /**
+     * This lock keeps tuples from being put into pages that are about to be
+     * removed from the end of the file.  Operations that add tuples to pages
+     * or remove them hold the read lock, so they can run at the same time,
+     * while {@link #truncateEmptyPages} holds the write lock from checking
+     * that the pages are empty until the file has been truncated.
+     */
+    private final ReentrantReadWriteLock truncateLock =
+        new ReentrantReadWriteLock();
+
+
     public HeapTupleFile(StorageManager storageManager,
                          HeapTupleFileManager heapFileManager, DBFile dbFile,
                          TableSchema schema, TableStats stats) {
@@ -105,17 +137,77 @@ public class HeapTupleFile implements TupleFile {
         this.fsmFile = fsmFile;
     }
 
+    @Override
+    public void setOverflowFile(OverflowFile overflowFile) {
+        this.overflowFile = overflowFile;
+    }
+
     public DBFile getDBFile() {
         return dbFile;
     }
 
 
+    /**
+     * Returns the file that stores the range of values in each data page, or
+     * <tt>null</tt> if the table doesn't have a zone map.
+     *
+     * @return the table's zone map, or <tt>null</tt> if there is none
+     */
+    public ZoneMapFile getZoneMapFile() {
+        return zoneMapFile;
+    }
+
+
+    /**
+     * Sets the file that stores the range of values in each data page.  Once
+     * it is set, the zone map is kept up to date as tuples are added,
+     * updated and deleted.
+     *
+     * @param zoneMapFile the table's zone map, or <tt>null</tt> if there is
+     *        none
+     */
+    public void setZoneMapFile(ZoneMapFile zoneMapFile) {
+        this.zoneMapFile = zoneMapFile;
+    }
+
+
+    /**
+     * Creates a tuple object for the tuple in the specified slot, which can
+     * read the tuple's out-of-line values from this file's overflow file.
+     */
+    private HeapFilePageTuple newPageTuple(DBPage dbPage, int slot,
+                                           int offset) {
+        HeapFilePageTuple pageTup =
+            new HeapFilePageTuple(schema, dbPage, slot, offset);
+        pageTup.setOverflowFile(overflowFile);
+        return pageTup;
+    }
+
+
     /**
      * Returns the first tuple in this table file, or <tt>null</tt> if
      * there are no tuples in the file.
      */
     @Override
     public Tuple getFirstTuple() throws IOException {
+        return getFirstTuple(null);
+    }
+
+
+    /**
+     * Returns the first tuple in this table file, skipping the data pages
+     * that are rejected by the page filter without loading them.
+     *
+     * @param pageFilter a filter that returns false for the numbers of data
+     *        pages that don't need to be read, or <tt>null</tt> to read all
+     *        pages
+     *
+     * @return the first tuple in a page that the filter accepts, or
+     *         <tt>null</tt> if there are no such tuples
+     *
+     * @throws IOException if an IO error occurs while reading the file
+     */
+    public Tuple getFirstTuple(IntPredicate pageFilter) throws IOException {
         HeapFilePageTuple first = null;
         try {
             // Scan through the data pages until we hit the end of the table
@@ -125,6 +217,8 @@ public class HeapTupleFile implements TupleFile {
             // Header page is page 0, so first data page is page 1.
 page_scan:  // So we can break out of the outer loop from inside the inner one
             for (int iPage = 1; /* nothing */ ; iPage++) {
+                iPage = skipPages(iPage, pageFilter);
+
                 // Look for data on this page.
                 DBPage dbPage = storageManager.loadDBPage(dbFile, iPage);
                 int numSlots = DataPage.getNumSlots(dbPage);
@@ -137,7 +231,7 @@ page_scan:  // So we can break out of the outer loop from inside the inner one
 
                     // This is the first tuple in the file.  Build up the
                     // HeapFilePageTuple object and return it.
-                    first = new HeapFilePageTuple(schema, dbPage, iSlot, offset);
+                    first = newPageTuple(dbPage, iSlot, offset);
                     break page_scan;
                 }
                 dbPage.unpin();
@@ -196,7 +290,7 @@ page_scan:  // So we can break out of the outer loop from inside the inner one
                 " on page " + fptr.getPageNo() + " is empty.");
         }
 
-        return new HeapFilePageTuple(schema, dbPage, slot, offset);
+        return newPageTuple(dbPage, slot, offset);
     }
 
 
@@ -210,6 +304,28 @@ page_scan:  // So we can break out of the outer loop from inside the inner one
      */
     @Override
     public Tuple getNextTuple(Tuple tup) throws IOException {
+        return getNextTuple(tup, null);
+    }
+
+
+    /**
+     * Returns the tuple that follows the specified tuple, skipping the data
+     * pages that are rejected by the page filter without loading them.
+     *
+     * @param tup the "previous tuple" that specifies where to start looking
+     *        for the next tuple
+     *
+     * @param pageFilter a filter that returns false for the numbers of data
+     *        pages that don't need to be read, or <tt>null</tt> to read all
+     *        pages
+     *
+     * @return the next tuple, or <tt>null</tt> if there are no more tuples
+     *         in pages that the filter accepts
+     *
+     * @throws IOException if an IO error occurs while reading the file
+     */
+    public Tuple getNextTuple(Tuple tup, IntPredicate pageFilter)
+        throws IOException {
 
         /* Procedure:
          *   1)  Get slot index of current tuple.
@@ -228,10 +344,9 @@ page_scan:  // So we can break out of the outer loop from inside the inner one
 
         // Retrieve the location info from the previous tuple.  Since the
         // tuple (and/or its backing page) may already have a pin-count of 0,
-        // we can't necessarily use the page itself.
-        DBPage prevDBPage = ptup.getDBPage();
-        DBFile dbFile = prevDBPage.getDBFile();
-        int prevPageNo = prevDBPage.getPageNo();
+        // we can't necessarily use the page itself; it may have been evicted
+        // and reused for some other page.
+        int prevPageNo = ptup.getPageNo();
         int prevSlot = ptup.getSlot();
 
         // Retrieve the page itself so that we can access the internal data.
@@ -253,8 +368,7 @@ page_scan:  // So we can break out of the outer loop from inside the inner loop.
                 int nextOffset = DataPage.getSlotValue(dbPage, nextSlot);
                 if (nextOffset != DataPage.EMPTY_SLOT) {
                     // Creating this tuple will pin the page a second time.
-                    nextTup = new HeapFilePageTuple(schema, dbPage, nextSlot,
-                                                    nextOffset);
+                    nextTup = newPageTuple(dbPage, nextSlot, nextOffset);
                     break page_scan;
                 }
 
@@ -265,14 +379,18 @@ page_scan:  // So we can break out of the outer loop from inside the inner loop.
             // tuples.  Go on to the next data-page, and start with the first
             // tuple in that page.
 
+            // We are done with this page, so unpin it before moving on;
+            // otherwise it would stay pinned until the end of the command.
+            int nextPageNo = skipPages(dbPage.getPageNo() + 1, pageFilter);
+            dbPage.unpin();
             try {
-                dbPage = storageManager.loadDBPage(dbFile, dbPage.getPageNo() + 1);
+                dbPage = storageManager.loadDBPage(dbFile, nextPageNo);
                 nextSlot = 0;
             }
             catch (EOFException e) {
                 // Hit the end of the file with no more tuples.  We are done
                 // scanning.
-                break;
+                return null;
             }
         }
         dbPage.unpin();
@@ -281,6 +399,22 @@ page_scan:  // So we can break out of the outer loop from inside the inner loop.
     }
 
 
+    /**
+     * Returns the first page number, starting from the specified page, that
+     * the page filter doesn't reject.
+     *
+     * @design The filter accepts pages it knows nothing about, including
+     *         pages past the end of the file, so this always stops.
+     */
+    private int skipPages(int pageNo, IntPredicate pageFilter) {
+        if (pageFilter != null) {
+            while (!pageFilter.test(pageNo))
+                pageNo++;
+        }
+        return pageNo;
+    }
+
+
     /**
      * Adds the specified tuple into the table file.  A new
      * <tt>HeapFilePageTuple</tt> object corresponding to the tuple is returned.
@@ -295,6 +429,22 @@ page_scan:  // So we can break out of the outer loop from inside the inner loop.
      */
     @Override
     public Tuple addTuple(Tuple tup) throws IOException {
+        truncateLock.readLock().lock();
+        try {
+            return addTupleToFreeSpace(tup);
+        }
+        finally {
+            truncateLock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Adds a tuple to a page with enough free space for it, or to a new page
+     * at the end of the file.  The caller must hold the read lock of
+     * {@link #truncateLock}.
+     */
+    private Tuple addTupleToFreeSpace(Tuple tup) throws IOException {
 
         if (fsmFile == null) throw new Error("fsmFile is not set!");
 
@@ -310,15 +460,17 @@ page_scan:  // So we can break out of the outer loop from inside the inner loop.
          * Generate the data necessary for storing the tuple into the file.
          */
 
+        tup = storeLargeValues(tup);
+
         int tupSize = PageTuple.getTupleStorageSize(schema, tup);
         logger.debug("Adding new tuple of size " + tupSize + " bytes.");
 
         // Sanity check:  Make sure that the tuple would actually fit in a page
         // in the first place!
         // The "+ 2" is for the case where we need a new slot entry as well.
-        if (tupSize + 2 > dbFile.getPageSize()) {
+        if (tupSize + 2 > dbFile.getUsablePageSize()) {
             throw new IOException("Tuple size " + tupSize +
-                " is larger than page size " + dbFile.getPageSize() + ".");
+                " is larger than page size " + dbFile.getUsablePageSize() + ".");
         }
 
         // Search for a page to put the tuple in.  If we hit the end of the
@@ -378,15 +530,282 @@ page_scan:  // So we can break out of the outer loop from inside the inner loop.
 
         HeapFilePageTuple pageTup =
             HeapFilePageTuple.storeNewTuple(schema, dbPage, slot, tupOffset, tup);
+        pageTup.setOverflowFile(overflowFile);
 
         DataPage.sanityCheck(dbPage);
         storageManager.logDBPageWrite(dbPage);
         fsmFile.updateFreeSpace(pageNo, DataPage.getFreeSpaceInPage(dbPage));
+        if (zoneMapFile != null)
+            zoneMapFile.addTuple(dbPage, pageTup);
         dbPage.unpin();
         return pageTup;
     }
 
 
+    /**
+     * Stores large values of a tuple that is about to be added to this file
+     * into the overflow file.  Values that are larger than
+     * {@link OverflowFile#getValueThreshold} are always stored out of line.
+     * If the tuple is still too large to fit in a page, the largest of its
+     * remaining values are also stored out of line until it fits.
+     *
+     * @param tup the tuple that is about to be added
+     *
+     * @return a tuple with {@link OverflowValue} references in place of the
+     *         values that were stored out of line, or the original tuple if
+     *         no values were stored out of line
+     *
+     * @throws IOException if an IO error occurs while storing a value
+     */
+    private Tuple storeLargeValues(Tuple tup) throws IOException {
+        if (overflowFile == null)
+            return tup;
+
+        int numCols = schema.numColumns();
+        int pageSize = dbFile.getPageSize();
+        int threshold = OverflowFile.getValueThreshold(pageSize);
+
+        Object[] values = new Object[numCols];
+        int[] sizes = new int[numCols];
+        boolean[] outOfLine = new boolean[numCols];
+        int tupSize = PageTuple.getNullFlagsSize(numCols);
+
+        for (int iCol = 0; iCol < numCols; iCol++) {
+            values[iCol] = tup.getColumnValue(iCol);
+            if (values[iCol] == null)
+                continue;
+
+            ColumnType colType = schema.getColumnInfo(iCol).getType();
+            sizes[iCol] = PageTuple.getValueStorageSize(colType, values[iCol]);
+            if (canMoveOutOfLine(iCol, values[iCol], sizes[iCol]) &&
+                sizes[iCol] > threshold) {
+                outOfLine[iCol] = true;
+                tupSize += OverflowValue.STORAGE_SIZE;
+            }
+            else {
+                tupSize += sizes[iCol];
+            }
+        }
+
+        // The "+ 2" is for the case where we need a new slot entry as well.
+        while (tupSize + 2 > dbFile.getUsablePageSize()) {
+            int largest = -1;
+            for (int iCol = 0; iCol < numCols; iCol++) {
+                if (!outOfLine[iCol] &&
+                    canMoveOutOfLine(iCol, values[iCol], sizes[iCol]) &&
+                    (largest == -1 || sizes[iCol] > sizes[largest])) {
+                    largest = iCol;
+                }
+            }
+
+            if (largest == -1) {
+                // The tuple can't be made to fit; addTuple() reports this
+                // before any values are stored.
+                return tup;
+            }
+
+            outOfLine[largest] = true;
+            tupSize -= sizes[largest] - OverflowValue.STORAGE_SIZE;
+        }
+
+        boolean changed = false;
+        for (int iCol = 0; iCol < numCols; iCol++) {
+            if (outOfLine[iCol]) {
+                values[iCol] = overflowFile.storeValue(values[iCol]);
+                changed = true;
+            }
+        }
+
+        return changed ? new TupleLiteral(values) : tup;
+    }
+
+
+    /**
+     * Starts a bulk append to this heap file.  Tuples added through the
+     * returned object are stored in fresh pages at the end of the file,
+     * instead of being placed with the free space map.  The appender must be
+     * finished by calling {@link BulkAppender#finish}.
+     *
+     * @return an object for appending tuples to the end of this file
+     */
+    public BulkAppender startBulkAppend() {
+        if (fsmFile == null) throw new Error("fsmFile is not set!");
+
+        return new BulkAppender();
+    }
+
+
+    /**
+     * <p>
+     * This class appends many tuples to a heap file at once, such as when
+     * the results of an <tt>INSERT ... SELECT</tt> are loaded into a table.
+     * Tuples are packed into fresh pages at the end of the file, so there is
+     * no free-space search for each tuple, and each page stays pinned until it
+     * is full.  When a page is full, its entire contents are recorded in the
+     * write-ahead log with one redo-only record, and its free space is stored
+     * in the free space map, instead of logging and updating the map for each
+     * tuple.
+     * </p>
+     * <p>
+     * Since each page is only logged when it is finished, the last page must
+     * be finished by calling {@link #finish} before the transaction commits.
+     * </p>
+     *
+     * @design Rolling back a new-page record clears the page, which is only
+     *         correct because the appender never uses a page that held data
+     *         before.  Pages that exist only in the buffer manager are
+     *         skipped in the same way as pages in the file.
+     */
+    public class BulkAppender {
+        /** The page being filled, or <tt>null</tt> if there is none. */
+        private DBPage dbPage;
+
+
+        /** The first page number to try when starting a new page. */
+        private int nextPageNo;
+
+
+        private BulkAppender() {
+            try {
+                nextPageNo = Math.max(1, dbFile.getNumPages());
+            }
+            catch (IOException e) {
+                // The pages are found by probing anyway.
+                nextPageNo = 1;
+            }
+        }
+
+
+        /**
+         * Adds a tuple to the page being filled, starting a new page if the
+         * tuple doesn't fit.
+         *
+         * @param tup the tuple to add
+         *
+         * @return the tuple as it is stored in the file
+         *
+         * @throws IOException if the tuple is too large for a page, or if an
+         *         IO error occurs
+         */
+        public Tuple addTuple(Tuple tup) throws IOException {
+            truncateLock.readLock().lock();
+            try {
+                return appendTuple(tup);
+            }
+            finally {
+                truncateLock.readLock().unlock();
+            }
+        }
+
+
+        /**
+         * Adds a tuple to the page being filled.  The caller must hold the
+         * read lock of {@link #truncateLock}, since a new page is empty
+         * until the tuple is stored in it.
+         */
+        private Tuple appendTuple(Tuple tup) throws IOException {
+            tup = storeLargeValues(tup);
+
+            int tupSize = PageTuple.getTupleStorageSize(schema, tup);
+
+            // The "+ 2" is for the new slot entry.
+            if (tupSize + 2 > dbFile.getUsablePageSize()) {
+                throw new IOException("Tuple size " + tupSize +
+                    " is larger than page size " + dbFile.getUsablePageSize() + ".");
+            }
+
+            if (dbPage != null &&
+                DataPage.getFreeSpaceInPage(dbPage) < tupSize + 2) {
+                finishPage();
+            }
+
+            if (dbPage == null)
+                startPage();
+
+            int slot = DataPage.allocNewTuple(dbPage, tupSize);
+            int tupOffset = DataPage.getSlotValue(dbPage, slot);
+
+            HeapFilePageTuple pageTup = HeapFilePageTuple.storeNewTuple(
+                schema, dbPage, slot, tupOffset, tup);
+            pageTup.setOverflowFile(overflowFile);
+
+            // The whole page is logged when it is finished, so there is no
+            // need to keep track of each change to it.
+            dbPage.clearDirtyRanges();
+
+            return pageTup;
+        }
+
+
+        /**
+         * Creates a new page just past the last existing page of the file.
+         */
+        private void startPage() throws IOException {
+            // Skip past pages that exist, including new pages that haven't
+            // been written to the file yet.
+            while (true) {
+                try {
+                    DBPage existing = storageManager.loadDBPage(dbFile, nextPageNo);
+                    existing.unpin();
+                    nextPageNo++;
+                }
+                catch (EOFException eofe) {
+                    break;
+                }
+            }
+
+            logger.debug("Starting bulk-append page " + nextPageNo + ".");
+            dbPage = storageManager.loadDBPage(dbFile, nextPageNo, true);
+            DataPage.initNewPage(dbPage);
+            nextPageNo++;
+        }
+
+
+        /**
+         * Logs the page being filled and records its free space, then
+         * releases it.
+         */
+        private void finishPage() throws IOException {
+            DataPage.sanityCheck(dbPage);
+            storageManager.logNewDBPage(dbPage);
+            fsmFile.updateFreeSpace(dbPage.getPageNo(),
+                DataPage.getFreeSpaceInPage(dbPage));
+            if (zoneMapFile != null)
+                zoneMapFile.rebuildEntry(dbPage);
+            PerformanceCounters.inc(PerformanceCounters.STORAGE_BULK_PAGES_APPENDED);
+
+            dbPage.unpin();
+            dbPage = null;
+        }
+
+
+        /**
+         * Logs and releases the last page that was being filled.  This must
+         * be called after the last tuple is added, and also if adding tuples
+         * fails partway through, so that the tuples that were added are
+         * logged.
+         *
+         * @throws IOException if an IO error occurs while logging the page
+         */
+        public void finish() throws IOException {
+            if (dbPage != null)
+                finishPage();
+        }
+    }
+
+
+    /**
+     * Returns true if storing the specified non-<tt>NULL</tt> value out of
+     * line would make the tuple smaller.
+     */
+    private boolean canMoveOutOfLine(int iCol, Object value, int size) {
+        ColumnType colType = schema.getColumnInfo(iCol).getType();
+        return value != null && !(value instanceof OverflowValue) &&
+            OverflowFile.canStoreOutOfLine(colType) &&
+            size > OverflowValue.STORAGE_SIZE;
+    }
+
+
     // Inherit interface-method documentation.
     /**
      * @review (donnie) This method will fail if a tuple is modified in a way
@@ -407,18 +826,39 @@ page_scan:  // So we can break out of the outer loop from inside the inner loop.
         }
         HeapFilePageTuple ptup = (HeapFilePageTuple) tup;
 
+        boolean[] wasNull = new boolean[schema.numColumns()];
+        for (int iCol = 0; iCol < wasNull.length; iCol++)
+            wasNull[iCol] = ptup.isNullValue(iCol);
+
         for (Map.Entry<String, Object> entry : newValues.entrySet()) {
             String colName = entry.getKey();
             Object value = entry.getValue();
 
             int colIndex = schema.getColumnIndex(colName);
+            OverflowValue oldRef = ptup.getOverflowValue(colIndex);
+
+            if (overflowFile != null && value != null) {
+                ColumnType colType = schema.getColumnInfo(colIndex).getType();
+                int size = PageTuple.getValueStorageSize(colType, value);
+                if (canMoveOutOfLine(colIndex, value, size) &&
+                    size > OverflowFile.getValueThreshold(dbFile.getPageSize())) {
+                    value = overflowFile.storeValue(value);
+                }
+            }
+
             ptup.setColumnValue(colIndex, value);
+
+            // The old value is no longer referenced by the tuple.
+            if (oldRef != null)
+                overflowFile.deleteValue(oldRef);
         }
 
         DBPage dbPage = ptup.getDBPage();
         DataPage.sanityCheck(dbPage);
         storageManager.logDBPageWrite(dbPage);
         fsmFile.updateFreeSpace(dbPage.getPageNo(), DataPage.getFreeSpaceInPage(dbPage));
+        if (zoneMapFile != null)
+            zoneMapFile.updateTuple(dbPage, ptup, wasNull);
     }
 
 
@@ -434,11 +874,27 @@ page_scan:  // So we can break out of the outer loop from inside the inner loop.
         }
         HeapFilePageTuple ptup = (HeapFilePageTuple) tup;
 
-        DBPage dbPage = ptup.getDBPage();
-        DataPage.deleteTuple(dbPage, ptup.getSlot());
-        DataPage.sanityCheck(dbPage);
-        storageManager.logDBPageWrite(dbPage);
-        fsmFile.updateFreeSpace(dbPage.getPageNo(), DataPage.getFreeSpaceInPage(dbPage));
+        // Free the pages of any values that are stored out of line.
+        for (int iCol = 0; iCol < schema.numColumns(); iCol++) {
+            OverflowValue ref = ptup.getOverflowValue(iCol);
+            if (ref != null)
+                overflowFile.deleteValue(ref);
+        }
+
+        truncateLock.readLock().lock();
+        try {
+            DBPage dbPage = ptup.getDBPage();
+            if (zoneMapFile != null)
+                zoneMapFile.deleteTuple(dbPage, ptup);
+
+            DataPage.deleteTuple(dbPage, ptup.getSlot());
+            DataPage.sanityCheck(dbPage);
+            storageManager.logDBPageWrite(dbPage);
+            fsmFile.updateFreeSpace(dbPage.getPageNo(), DataPage.getFreeSpaceInPage(dbPage));
+        }
+        finally {
+            truncateLock.readLock().unlock();
+        }
 
         // Note that we don't invalidate the page-tuple when it is deleted,
         // so that the tuple can still be unpinned, etc.
@@ -459,32 +915,47 @@ page_scan:  // So we can break out of the outer loop from inside the inner loop.
         double totalTupleSize = 0;
         boolean eof = false;
 
-        // Scan through the data pages until we hit the end of the table file.
-        while (!eof) {
-            // Look for data on current page.
-            try (DBPage dbPage = storageManager.loadDBPage(dbFile, iPage)) {
-                numDataPages++;
-                totalTupleSize += DataPage.getTupleDataEnd(dbPage) - DataPage.getTupleDataStart(dbPage);
-                int numSlots = DataPage.getNumSlots(dbPage);
-                for (int iSlot = 0; iSlot < numSlots; iSlot++) {
-                    // Get the offset of the tuple in the page.  If it's 0 then
-                    // the slot is empty, and we skip to the next slot.
-                    int offset = DataPage.getSlotValue(dbPage, iSlot);
-                    if (offset == DataPage.EMPTY_SLOT) continue;
+        // Analyzing reads the whole file, so recycle its pages through a
+        // buffer ring instead of flushing the page cache.
+        SessionState state = SessionState.get();
+        BufferRing oldRing = state.getBufferRing();
+        state.setBufferRing(new BufferRing(dbFile.getNumPages()));
 
-                    // Add tuple to column stats records
-                    HeapFilePageTuple t = new HeapFilePageTuple(schema, dbPage, iSlot, offset);
-                    numTuples++;
-                    for (int i = 0; i < collectors.size(); i++) {
-                        collectors.get(i).addValue(t.getColumnValue(i));
+        // Scan through the data pages until we hit the end of the table file.
+        try {
+            while (!eof) {
+                // Look for data on current page.
+                try (DBPage dbPage = storageManager.loadDBPage(dbFile, iPage)) {
+                    numDataPages++;
+                    if (zoneMapFile != null)
+                        zoneMapFile.rebuildEntry(dbPage);
+
+                    totalTupleSize += DataPage.getTupleDataEnd(dbPage) - DataPage.getTupleDataStart(dbPage);
+                    int numSlots = DataPage.getNumSlots(dbPage);
+                    for (int iSlot = 0; iSlot < numSlots; iSlot++) {
+                        // Get the offset of the tuple in the page.  If it's 0 then
+                        // the slot is empty, and we skip to the next slot.
+                        int offset = DataPage.getSlotValue(dbPage, iSlot);
+                        if (offset == DataPage.EMPTY_SLOT) continue;
+
+                        // Add tuple to column stats records
+                        HeapFilePageTuple t = newPageTuple(dbPage, iSlot, offset);
+                        numTuples++;
+                        for (int i = 0; i < collectors.size(); i++) {
+                            collectors.get(i).addValue(t.getColumnValue(i));
+                        }
+                        t.unpin();
                     }
+                    iPage++;
+                } catch (EOFException e) {
+                    // We ran out of pages.
+                    eof = true;
                 }
-                iPage++;
-            } catch (EOFException e) {
-                // We ran out of pages.
-                eof = true;
             }
         }
+        finally {
+            state.setBufferRing(oldRing);
+        }
 
         final ArrayList<ColumnStats> columnStats = collectors.stream()
                 .map(ColumnStatsCollector::getColumnStats)
@@ -508,8 +979,254 @@ page_scan:  // So we can break out of the outer loop from inside the inner loop.
     }
 
 
+    /**
+     * Compacts the file by moving tuples out of the pages at the end of the
+     * file into free space in earlier pages, so that the pages at the end of
+     * the file become empty and can be removed by
+     * {@link #truncateEmptyPages}.  Tuples are moved starting from the last
+     * page, until a tuple no longer fits into any earlier page.  Tuple data
+     * within each page is already kept contiguous by {@link DataPage}, so
+     * the tuples that stay in place keep their slots and file pointers; each
+     * tuple that is moved is reported to the specified listener.
+     *
+     * @design A moved tuple's bytes are copied as they are, so any values it
+     *         stores out of line keep their overflow chains.  The old copy is
+     *         removed with {@link DataPage#deleteTuple} rather than
+     *         {@link #deleteTuple}, which would free the chains.
+     *
+     * @design Empty pages are not removed from the file here, since rolling
+     *         back the moves needs the pages' old contents.  The caller
+     *         should call {@link #truncateEmptyPages} once the moves have
+     *         been committed.
+     */
     @Override
-    public void optimize() throws IOException {
-        throw new UnsupportedOperationException("Not yet implemented!");
+    public void optimize(TupleMoveListener listener) throws IOException {
+        truncateLock.readLock().lock();
+        try {
+            moveTuplesForward(listener);
+        }
+        finally {
+            truncateLock.readLock().unlock();
+        }
+    }
+
+
+    /**
+     * Moves tuples out of the pages at the end of the file, as described for
+     * {@link #optimize}.  The caller must hold the read lock of
+     * {@link #truncateLock}.
+     */
+    private void moveTuplesForward(TupleMoveListener listener)
+        throws IOException {
+
+        if (fsmFile == null) throw new Error("fsmFile is not set!");
+
+        int numPages = countPages();
+
+        // Trim trailing empty slots in every page, and bring the free space
+        // map up to date, since it is used to choose where tuples go.
+        for (int pageNo = 1; pageNo < numPages; pageNo++) {
+            DBPage dbPage = storageManager.loadDBPage(dbFile, pageNo);
+            int numSlots = DataPage.getNumSlots(dbPage);
+            if (numSlots > 0 &&
+                DataPage.getSlotValue(dbPage, numSlots - 1) == DataPage.EMPTY_SLOT) {
+                DataPage.compressHeader(dbPage);
+                storageManager.logDBPageWrite(dbPage);
+            }
+            fsmFile.updateFreeSpace(pageNo, DataPage.getFreeSpaceInPage(dbPage));
+            dbPage.unpin();
+        }
+
+        int numMoved = 0;
+        int lastPageNo = numPages - 1;
+
+page_scan:  // So we can stop moving tuples from inside the inner loop.
+        while (lastPageNo > 1) {
+            DBPage srcPage = storageManager.loadDBPage(dbFile, lastPageNo);
+            try {
+                // Move the tuples in the highest slots first.  They are the
+                // lowest in the page, so removing them doesn't slide the
+                // data of any other tuples.
+                int slot = DataPage.getNumSlots(srcPage) - 1;
+                while (slot >= 0) {
+                    if (DataPage.getSlotValue(srcPage, slot) == DataPage.EMPTY_SLOT) {
+                        slot--;
+                        continue;
+                    }
+
+                    // The "+ 2" is for the case where we need a new slot
+                    // entry as well.
+                    int required = DataPage.getTupleLength(srcPage, slot) + 2;
+                    int dstPageNo = fsmFile.findSuitablePage(required);
+                    if (dstPageNo >= lastPageNo) {
+                        // No earlier page has room for this tuple, so the
+                        // page can't be emptied.
+                        break page_scan;
+                    }
+
+                    DBPage dstPage = storageManager.loadDBPage(dbFile, dstPageNo);
+                    int freeSpace = DataPage.getFreeSpaceInPage(dstPage);
+                    if (freeSpace >= required) {
+                        moveTuple(srcPage, slot, dstPage, listener);
+                        freeSpace = DataPage.getFreeSpaceInPage(dstPage);
+                        numMoved++;
+
+                        // Removing the tuple may also remove the empty
+                        // slots before it.
+                        slot = Math.min(slot, DataPage.getNumSlots(srcPage)) - 1;
+                    }
+
+                    // If the page didn't have enough space after all, the
+                    // free space map is corrected and the search is retried.
+                    fsmFile.updateFreeSpace(dstPageNo, freeSpace);
+                    dstPage.unpin();
+                }
+
+                lastPageNo--;
+            }
+            finally {
+                fsmFile.updateFreeSpace(srcPage.getPageNo(),
+                    DataPage.getFreeSpaceInPage(srcPage));
+                srcPage.unpin();
+            }
+        }
+
+        logger.info(String.format("Optimized %s:  moved %d tuples out of " +
+            "pages %d through %d.", dbFile, numMoved, lastPageNo + 1,
+            numPages - 1));
+    }
+
+
+    /**
+     * Moves the tuple in the specified slot of one page into another page,
+     * reporting the move to the listener while both copies exist.  Both pages
+     * must be pinned, and the target page must have room for the tuple.
+     */
+    private void moveTuple(DBPage srcPage, int srcSlot, DBPage dstPage,
+                           TupleMoveListener listener) throws IOException {
+
+        int srcOffset = DataPage.getSlotValue(srcPage, srcSlot);
+        int length = DataPage.getTupleLength(srcPage, srcSlot);
+
+        int dstSlot = DataPage.allocNewTuple(dstPage, length);
+        int dstOffset = DataPage.getSlotValue(dstPage, dstSlot);
+        dstPage.write(dstOffset, srcPage, srcOffset, length);
+
+        logger.debug(String.format("Moving tuple from page %d, slot %d to " +
+            "page %d, slot %d.", srcPage.getPageNo(), srcSlot,
+            dstPage.getPageNo(), dstSlot));
+
+        HeapFilePageTuple oldTup = newPageTuple(srcPage, srcSlot, srcOffset);
+        HeapFilePageTuple newTup = newPageTuple(dstPage, dstSlot, dstOffset);
+        try {
+            if (listener != null)
+                listener.tupleMoved(oldTup, newTup);
+
+            if (zoneMapFile != null) {
+                zoneMapFile.addTuple(dstPage, newTup);
+                zoneMapFile.deleteTuple(srcPage, oldTup);
+            }
+        }
+        finally {
+            oldTup.unpin();
+            newTup.unpin();
+        }
+
+        DataPage.deleteTuple(srcPage, srcSlot);
+
+        DataPage.sanityCheck(dstPage);
+        DataPage.sanityCheck(srcPage);
+        storageManager.logDBPageWrite(dstPage);
+        storageManager.logDBPageWrite(srcPage);
+    }
+
+
+    /**
+     * Removes the empty pages at the end of this file, and rebuilds the
+     * file's free space map.  This is done after {@link #optimize} has moved
+     * tuples out of those pages, and the moves have been committed.
+     *
+     * @design This relies on holding the table exclusively, rather than on
+     *         the free space map:  the write lock of {@link #truncateLock} is
+     *         held from checking that the pages are empty until the file has
+     *         been truncated and the free space map rebuilt.  So no other
+     *         session can add a tuple to a page, or start a new page at the
+     *         end of the file, between the check and the truncation, and the
+     *         free space map never offers a page that was removed.
+     *
+     * @design Nothing is removed while any transaction is in progress, since
+     *         a page that an uncommitted transaction emptied would be needed
+     *         again if the transaction rolled back.  Transactions can't
+     *         change the file while the lock is held, so the pages that are
+     *         found to be empty stay empty once they are committed.
+     *
+     * @design The truncation itself isn't recorded in the write-ahead log.
+     *         If recovery replays changes to a page that was removed, the
+     *         page is recreated, and the replayed changes leave it empty
+     *         again, since the page was empty when it was removed.
+     *
+     * @return the number of pages that were removed
+     *
+     * @throws IOException if an IO error occurs while truncating the file
+     */
+    public int truncateEmptyPages() throws IOException {
+
+        if (fsmFile == null) throw new Error("fsmFile is not set!");
+
+        TransactionManager txnManager = storageManager.getTransactionManager();
+
+        truncateLock.writeLock().lock();
+        try {
+            if (txnManager != null && txnManager.hasActiveTransactions()) {
+                logger.info(String.format("Not truncating %s, since other " +
+                    "transactions are in progress.", dbFile));
+                return 0;
+            }
+
+            int numPages = countPages();
+            int newNumPages = numPages;
+            while (newNumPages > 1) {
+                DBPage dbPage = storageManager.loadDBPage(dbFile, newNumPages - 1);
+                int numSlots = DataPage.getNumSlots(dbPage);
+                dbPage.unpin();
+
+                if (numSlots > 0)
+                    break;
+
+                newNumPages--;
+            }
+
+            if (newNumPages < numPages) {
+                storageManager.getBufferManager().truncateDBFile(dbFile, newNumPages);
+                PerformanceCounters.add(PerformanceCounters.STORAGE_PAGES_TRUNCATED,
+                    numPages - newNumPages);
+            }
+
+            fsmFile.rebuild(this);
+
+            return numPages - newNumPages;
+        }
+        finally {
+            truncateLock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Returns the number of pages in this file, including the header page
+     * and any new pages that haven't been written to the file yet.
+     */
+    private int countPages() throws IOException {
+        int numPages = Math.max(1, dbFile.getNumPages());
+        while (true) {
+            try {
+                DBPage dbPage = storageManager.loadDBPage(dbFile, numPages);
+                dbPage.unpin();
+                numPages++;
+            }
+            catch (EOFException eofe) {
+                return numPages;
+            }
+        }
     }
 }
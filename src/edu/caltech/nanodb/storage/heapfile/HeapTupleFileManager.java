@@ -71,7 +71,8 @@ public class HeapTupleFileManager implements TupleFileManager {
 
         // Read in the statistics.
         StatsWriter statsWriter = new StatsWriter();
-        TableStats stats = statsWriter.readTableStats(hpReader, schema);
+        TableStats stats = statsWriter.readTableStats(hpReader, schema,
+            dbFile.getFormatVersion());
 
         return new HeapTupleFile(storageManager, this, dbFile, schema, stats);
     }
@@ -122,6 +123,21 @@ public class HeapTupleFileManager implements TupleFileManager {
     }
 
 
+    /**
+     * {@inheritDoc}  Heap files are converted in place, since the only page
+     * number they store is the number of data pages in the table statistics.
+     * The statistics are read in the file's old format, and then saved again
+     * in the current format.
+     */
+    @Override
+    public DBFile upgradeTupleFile(DBFile dbFile) throws IOException {
+        TupleFile tupleFile = openTupleFile(dbFile);
+        storageManager.upgradeFormatVersion(dbFile);
+        saveMetadata(tupleFile);
+        return dbFile;
+    }
+
+
     @Override
     public void deleteTupleFile(TupleFile tupleFile) throws IOException {
         // TODO
@@ -0,0 +1,605 @@
+package edu.caltech.nanodb.storage.heapfile;
+
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Objects;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.relations.ColumnType;
+import edu.caltech.nanodb.relations.TableSchema;
+import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.storage.DBFile;
+import edu.caltech.nanodb.storage.DBPage;
+import edu.caltech.nanodb.storage.StorageManager;
+
+
+/**
+ * <p>
+ * This class stores a zone map for a heap file:  for each data page of the
+ * heap file, the smallest and largest value of each numeric column, and the
+ * number of <tt>NULL</tt> values in every column.  A scan can check its
+ * predicate against a page's entry, and skip the page without loading it if
+ * no tuple in the page can satisfy the predicate.  See {@link ZoneMapFilter}
+ * for how predicates are checked.
+ * </p>
+ * <p>
+ * The header page of a zone map file is laid out as follows:
+ * </p>
+ * <ul>
+ *   <li>The file-type and encoded page size are stored in bytes 0 and 1, as
+ *       in all data files.</li>
+ *   <li>The size of each entry is stored as an unsigned 16-bit value at
+ *       {@link #OFFSET_ENTRY_SIZE}.</li>
+ *   <li>The number of columns in the table is stored as an unsigned 16-bit
+ *       value at {@link #OFFSET_NUM_COLUMNS}.</li>
+ * </ul>
+ * <p>
+ * Every other page is an array of fixed-size entries, one for each data page
+ * of the heap file in order; the entry for data page <i>p</i> is entry
+ * <i>p</i> - 1, since data pages start at page 1.  Each entry starts with a
+ * flags byte, which is 0 if the entry hasn't been filled in yet.  Each
+ * column then has a flags byte, an unsigned 16-bit <tt>NULL</tt> count, and,
+ * for numeric columns, the minimum and maximum values stored in the same
+ * format as in tuples.
+ * </p>
+ *
+ * @design An entry only has to cover the values in its page; it may be
+ *         wider than they are.  Adding and updating tuples only widens an
+ *         entry, and deleting tuples leaves the range alone, so that no
+ *         page has to be read again to maintain it.  <tt>ANALYZE</tt>
+ *         rebuilds every entry to fit its page exactly.  The <tt>NULL</tt>
+ *         counts are kept exact, since a count of 0 is what allows a page to
+ *         be skipped for an <tt>IS NULL</tt> test.
+ *
+ * @design All changes to the zone map are recorded in the write-ahead log
+ *         in the same way as changes to the tuple file, so recovery and
+ *         rollback never leave an entry narrower than its page.  An entry
+ *         that hasn't been filled in is rebuilt from its page the first time
+ *         a tuple is added to the page.
+ */
+public class ZoneMapFile {
+
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(ZoneMapFile.class);
+
+
+    /** The offset in the header page where the entry size is stored. */
+    public static final int OFFSET_ENTRY_SIZE = 2;
+
+
+    /**
+     * The offset in the header page where the number of columns in the table
+     * is stored.
+     */
+    public static final int OFFSET_NUM_COLUMNS = 4;
+
+
+    /** The entry flag that marks an entry as filled in. */
+    private static final int FLAG_VALID = 0x01;
+
+
+    /** The column flag that marks a column as having non-<tt>NULL</tt> values. */
+    private static final int FLAG_HAS_VALUES = 0x01;
+
+
+    /**
+     * This class holds one entry of a zone map in memory.  Entries are read
+     * with {@link #readEntry}.
+     */
+    public static class Entry {
+        /** True if the entry has been filled in. */
+        private boolean valid;
+
+
+        /** For each column, true if the page has non-<tt>NULL</tt> values. */
+        private boolean[] hasValues;
+
+
+        /** For each column, the number of <tt>NULL</tt> values in the page. */
+        private int[] nullCounts;
+
+
+        /**
+         * For each column, the smallest value in the page, or <tt>null</tt>
+         * if the column isn't tracked or has no values.
+         */
+        private Object[] minValues;
+
+
+        /**
+         * For each column, the largest value in the page, or <tt>null</tt>
+         * if the column isn't tracked or has no values.
+         */
+        private Object[] maxValues;
+
+
+        private Entry(int numColumns) {
+            hasValues = new boolean[numColumns];
+            nullCounts = new int[numColumns];
+            minValues = new Object[numColumns];
+            maxValues = new Object[numColumns];
+        }
+
+
+        /**
+         * Returns true if the entry has been filled in.  An entry that isn't
+         * valid says nothing about its page.
+         *
+         * @return true if the entry has been filled in
+         */
+        public boolean isValid() {
+            return valid;
+        }
+
+
+        /**
+         * Returns true if the page may have non-<tt>NULL</tt> values in the
+         * specified column.
+         */
+        public boolean hasValues(int colIndex) {
+            return hasValues[colIndex];
+        }
+
+
+        /** Returns the number of <tt>NULL</tt> values in the specified column. */
+        public int getNullCount(int colIndex) {
+            return nullCounts[colIndex];
+        }
+
+
+        /**
+         * Returns the smallest value of the specified column, or
+         * <tt>null</tt> if the column isn't tracked or has no values.
+         */
+        public Object getMinValue(int colIndex) {
+            return minValues[colIndex];
+        }
+
+
+        /**
+         * Returns the largest value of the specified column, or
+         * <tt>null</tt> if the column isn't tracked or has no values.
+         */
+        public Object getMaxValue(int colIndex) {
+            return maxValues[colIndex];
+        }
+
+
+        /** Widens the entry to cover the non-<tt>NULL</tt> value. */
+        @SuppressWarnings("unchecked")
+        private void widen(int colIndex, Object value, boolean tracked) {
+            if (!tracked) {
+                hasValues[colIndex] = true;
+                return;
+            }
+
+            if (!hasValues[colIndex]) {
+                hasValues[colIndex] = true;
+                minValues[colIndex] = value;
+                maxValues[colIndex] = value;
+                return;
+            }
+
+            Comparable<Object> comp = (Comparable<Object>) value;
+            if (comp.compareTo(minValues[colIndex]) < 0)
+                minValues[colIndex] = value;
+            if (comp.compareTo(maxValues[colIndex]) > 0)
+                maxValues[colIndex] = value;
+        }
+
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Entry))
+                return false;
+
+            Entry other = (Entry) obj;
+            return valid == other.valid &&
+                Arrays.equals(hasValues, other.hasValues) &&
+                Arrays.equals(nullCounts, other.nullCounts) &&
+                Arrays.equals(minValues, other.minValues) &&
+                Arrays.equals(maxValues, other.maxValues);
+        }
+
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(valid, Arrays.hashCode(nullCounts),
+                Arrays.hashCode(minValues), Arrays.hashCode(maxValues));
+        }
+    }
+
+
+    /**
+     * The storage manager to use for reading and writing file pages, pinning
+     * and unpinning pages, write-ahead logging, and so forth.
+     */
+    private StorageManager storageManager;
+
+
+    /** The file that holds the zone map. */
+    private DBFile dbFile;
+
+
+    /** The schema of the heap file that the zone map describes. */
+    private TableSchema schema;
+
+
+    /** For each column, true if the column's minimum and maximum are kept. */
+    private boolean[] tracked;
+
+
+    /** The size of each entry in bytes. */
+    private int entrySize;
+
+
+    /** The number of entries stored in each page. */
+    private int entriesPerPage;
+
+
+    public ZoneMapFile(StorageManager storageManager, DBFile dbFile,
+                       TableSchema schema) {
+        if (storageManager == null)
+            throw new IllegalArgumentException("storageManager cannot be null");
+
+        if (dbFile == null)
+            throw new IllegalArgumentException("dbFile cannot be null");
+
+        if (schema == null)
+            throw new IllegalArgumentException("schema cannot be null");
+
+        this.storageManager = storageManager;
+        this.dbFile = dbFile;
+        this.schema = schema;
+
+        int numCols = schema.numColumns();
+        tracked = new boolean[numCols];
+        entrySize = 1;
+        for (int iCol = 0; iCol < numCols; iCol++) {
+            ColumnType colType = schema.getColumnInfo(iCol).getType();
+            int valueSize = getValueSize(colType);
+            tracked[iCol] = (valueSize > 0);
+
+            // Flags byte and NULL count, then the minimum and maximum.
+            entrySize += 3 + 2 * valueSize;
+        }
+
+        entriesPerPage = dbFile.getPageSize() / entrySize;
+        if (entriesPerPage == 0) {
+            throw new IllegalArgumentException("Zone map entries of " +
+                entrySize + " bytes don't fit in pages of " +
+                dbFile.getPageSize() + " bytes");
+        }
+    }
+
+
+    /**
+     * Returns the size of the minimum and maximum values stored for columns
+     * of the specified type, or 0 if the type isn't tracked.  Only the
+     * fixed-size numeric types are tracked.
+     */
+    private static int getValueSize(ColumnType colType) {
+        switch (colType.getBaseType()) {
+        case TINYINT:
+            return 1;
+
+        case SMALLINT:
+            return 2;
+
+        case INTEGER:
+        case FLOAT:
+            return 4;
+
+        case BIGINT:
+        case DOUBLE:
+            return 8;
+
+        default:
+            return 0;
+        }
+    }
+
+
+    /**
+     * Initializes the header page of a new zone map file, and returns an
+     * object for accessing the file.
+     *
+     * @param storageManager the storage manager to use for the file
+     *
+     * @param dbFile the new, empty file to initialize
+     *
+     * @param schema the schema of the heap file that the zone map describes
+     *
+     * @return an object for accessing the new zone map file
+     *
+     * @throws IOException if the header page can't be written
+     */
+    public static ZoneMapFile createZoneMapFile(StorageManager storageManager,
+        DBFile dbFile, TableSchema schema) throws IOException {
+
+        logger.info("Initializing new zone map file " + dbFile);
+
+        ZoneMapFile zoneMapFile = new ZoneMapFile(storageManager, dbFile, schema);
+
+        DBPage headerPage = storageManager.loadDBPage(dbFile, 0);
+        headerPage.writeShort(OFFSET_ENTRY_SIZE, zoneMapFile.entrySize);
+        headerPage.writeShort(OFFSET_NUM_COLUMNS, schema.numColumns());
+        storageManager.logDBPageWrite(headerPage);
+        headerPage.unpin();
+
+        return zoneMapFile;
+    }
+
+
+    public DBFile getDBFile() {
+        return dbFile;
+    }
+
+
+    /**
+     * Returns true if the zone map file's header matches the layout that
+     * this object uses for the table's schema.
+     *
+     * @return true if the file's entries can be read with this object
+     *
+     * @throws IOException if the header page can't be read
+     */
+    public boolean checkLayout() throws IOException {
+        try (DBPage headerPage = storageManager.loadDBPage(dbFile, 0)) {
+            return headerPage.readUnsignedShort(OFFSET_ENTRY_SIZE) == entrySize &&
+                headerPage.readUnsignedShort(OFFSET_NUM_COLUMNS) == schema.numColumns();
+        }
+    }
+
+
+    /**
+     * Returns true if the minimum and maximum of the specified column are
+     * kept in the zone map.
+     *
+     * @param colIndex the index of the column in the table's schema
+     *
+     * @return true if the column's range is tracked
+     */
+    public boolean isTracked(int colIndex) {
+        return tracked[colIndex];
+    }
+
+
+    /**
+     * Reads the entry for the specified data page.  If the entry hasn't been
+     * filled in, the returned entry is not valid.
+     *
+     * @param pageNo the number of a data page in the heap file
+     *
+     * @return the page's entry
+     *
+     * @throws IOException if an IO error occurs while reading the entry
+     */
+    public Entry readEntry(int pageNo) throws IOException {
+        int index = pageNo - 1;
+        DBPage zonePage;
+        try {
+            zonePage = storageManager.loadDBPage(dbFile,
+                1 + index / entriesPerPage);
+        }
+        catch (EOFException e) {
+            // The entry has never been written.
+            return new Entry(schema.numColumns());
+        }
+
+        try {
+            return readEntry(zonePage, (index % entriesPerPage) * entrySize);
+        }
+        finally {
+            zonePage.unpin();
+        }
+    }
+
+
+    private Entry readEntry(DBPage zonePage, int position) {
+        int numCols = schema.numColumns();
+        Entry entry = new Entry(numCols);
+
+        entry.valid = (zonePage.readUnsignedByte(position) & FLAG_VALID) != 0;
+        position++;
+        if (!entry.valid)
+            return entry;
+
+        for (int iCol = 0; iCol < numCols; iCol++) {
+            int flags = zonePage.readUnsignedByte(position);
+            entry.hasValues[iCol] = (flags & FLAG_HAS_VALUES) != 0;
+            entry.nullCounts[iCol] = zonePage.readUnsignedShort(position + 1);
+            position += 3;
+
+            if (tracked[iCol]) {
+                ColumnType colType = schema.getColumnInfo(iCol).getType();
+                int valueSize = getValueSize(colType);
+                if (entry.hasValues[iCol]) {
+                    entry.minValues[iCol] = zonePage.readObject(position, colType);
+                    entry.maxValues[iCol] =
+                        zonePage.readObject(position + valueSize, colType);
+                }
+                position += 2 * valueSize;
+            }
+        }
+
+        return entry;
+    }
+
+
+    /**
+     * Stores the entry for the specified data page, if it differs from the
+     * entry that is already stored.
+     */
+    private void writeEntry(int pageNo, Entry entry) throws IOException {
+        int index = pageNo - 1;
+        int position = (index % entriesPerPage) * entrySize;
+
+        DBPage zonePage = storageManager.loadDBPage(dbFile,
+            1 + index / entriesPerPage, true);
+        try {
+            if (entry.equals(readEntry(zonePage, position)))
+                return;
+
+            zonePage.writeByte(position, entry.valid ? FLAG_VALID : 0);
+            position++;
+
+            for (int iCol = 0; iCol < schema.numColumns(); iCol++) {
+                zonePage.writeByte(position,
+                    entry.hasValues[iCol] ? FLAG_HAS_VALUES : 0);
+                zonePage.writeShort(position + 1, entry.nullCounts[iCol]);
+                position += 3;
+
+                if (tracked[iCol]) {
+                    ColumnType colType = schema.getColumnInfo(iCol).getType();
+                    int valueSize = getValueSize(colType);
+                    if (entry.hasValues[iCol]) {
+                        zonePage.writeObject(position, colType,
+                            entry.minValues[iCol]);
+                        zonePage.writeObject(position + valueSize, colType,
+                            entry.maxValues[iCol]);
+                    }
+                    position += 2 * valueSize;
+                }
+            }
+
+            storageManager.logDBPageWrite(zonePage);
+        }
+        finally {
+            zonePage.unpin();
+        }
+    }
+
+
+    /** Adds the tuple's values to the entry. */
+    private void addValues(Entry entry, Tuple tup) {
+        for (int iCol = 0; iCol < schema.numColumns(); iCol++) {
+            if (tup.isNullValue(iCol))
+                entry.nullCounts[iCol]++;
+            else
+                entry.widen(iCol, tup.getColumnValue(iCol), tracked[iCol]);
+        }
+    }
+
+
+    /**
+     * Rebuilds the entry for a data page from the tuples in the page, so that
+     * the entry fits the page exactly.
+     *
+     * @param dataPage a pinned data page of the heap file
+     *
+     * @throws IOException if an IO error occurs while writing the entry
+     */
+    public void rebuildEntry(DBPage dataPage) throws IOException {
+        Entry entry = new Entry(schema.numColumns());
+        entry.valid = true;
+
+        int numSlots = DataPage.getNumSlots(dataPage);
+        for (int iSlot = 0; iSlot < numSlots; iSlot++) {
+            int offset = DataPage.getSlotValue(dataPage, iSlot);
+            if (offset == DataPage.EMPTY_SLOT)
+                continue;
+
+            HeapFilePageTuple tup =
+                new HeapFilePageTuple(schema, dataPage, iSlot, offset);
+            try {
+                addValues(entry, tup);
+            }
+            finally {
+                tup.unpin();
+            }
+        }
+
+        writeEntry(dataPage.getPageNo(), entry);
+    }
+
+
+    /**
+     * Widens the entry for a data page to cover a tuple that was just added
+     * to the page.
+     *
+     * @param dataPage the pinned data page that holds the tuple
+     *
+     * @param tup the tuple that was added
+     *
+     * @throws IOException if an IO error occurs while updating the entry
+     */
+    public void addTuple(DBPage dataPage, Tuple tup) throws IOException {
+        int pageNo = dataPage.getPageNo();
+        Entry entry = readEntry(pageNo);
+        if (!entry.valid) {
+            // The page's other tuples aren't covered yet either.
+            rebuildEntry(dataPage);
+            return;
+        }
+
+        addValues(entry, tup);
+        writeEntry(pageNo, entry);
+    }
+
+
+    /**
+     * Updates the entry for a data page after some of a tuple's values were
+     * changed.
+     *
+     * @param dataPage the pinned data page that holds the tuple
+     *
+     * @param tup the tuple, with its new values
+     *
+     * @param wasNull for each column, true if the column's value was
+     *        <tt>NULL</tt> before it was changed
+     *
+     * @throws IOException if an IO error occurs while updating the entry
+     */
+    public void updateTuple(DBPage dataPage, Tuple tup, boolean[] wasNull)
+        throws IOException {
+
+        int pageNo = dataPage.getPageNo();
+        Entry entry = readEntry(pageNo);
+        if (!entry.valid) {
+            rebuildEntry(dataPage);
+            return;
+        }
+
+        for (int iCol = 0; iCol < schema.numColumns(); iCol++) {
+            boolean isNull = tup.isNullValue(iCol);
+            if (isNull && !wasNull[iCol])
+                entry.nullCounts[iCol]++;
+            else if (!isNull && wasNull[iCol])
+                entry.nullCounts[iCol]--;
+
+            if (!isNull)
+                entry.widen(iCol, tup.getColumnValue(iCol), tracked[iCol]);
+        }
+
+        writeEntry(pageNo, entry);
+    }
+
+
+    /**
+     * Updates the entry for a data page before a tuple is deleted from the
+     * page.  The entry's ranges are left as they are.
+     *
+     * @param dataPage the pinned data page that holds the tuple
+     *
+     * @param tup the tuple that is about to be deleted
+     *
+     * @throws IOException if an IO error occurs while updating the entry
+     */
+    public void deleteTuple(DBPage dataPage, Tuple tup) throws IOException {
+        int pageNo = dataPage.getPageNo();
+        Entry entry = readEntry(pageNo);
+        if (!entry.valid)
+            return;
+
+        for (int iCol = 0; iCol < schema.numColumns(); iCol++) {
+            if (tup.isNullValue(iCol))
+                entry.nullCounts[iCol]--;
+        }
+
+        writeEntry(pageNo, entry);
+    }
+}
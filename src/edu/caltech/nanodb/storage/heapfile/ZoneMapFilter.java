@@ -0,0 +1,363 @@
+package edu.caltech.nanodb.storage.heapfile;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.function.IntPredicate;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.expressions.BooleanOperator;
+import edu.caltech.nanodb.expressions.ColumnValue;
+import edu.caltech.nanodb.expressions.CompareOperator;
+import edu.caltech.nanodb.expressions.Expression;
+import edu.caltech.nanodb.expressions.InValuesOperator;
+import edu.caltech.nanodb.expressions.IsNullOperator;
+import edu.caltech.nanodb.expressions.LiteralValue;
+import edu.caltech.nanodb.expressions.PredicateUtils;
+import edu.caltech.nanodb.expressions.TypeConverter;
+import edu.caltech.nanodb.relations.SchemaNameException;
+import edu.caltech.nanodb.relations.TableSchema;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+
+
+/**
+ * This class checks a scan's predicate against the entries of a heap file's
+ * {@link ZoneMapFile}, to find the data pages that can't hold any tuple that
+ * satisfies the predicate.  The parts of the predicate that can be checked
+ * are comparisons between a column and a literal, <tt>IN</tt> tests of a
+ * column against a list of literals, <tt>IS [NOT] NULL</tt> tests on a
+ * column, and <tt>AND</tt>s and <tt>OR</tt>s of these; a page is skipped if
+ * any conjunct of the predicate can't be true for the page.
+ *
+ * @design Values are compared with {@link TypeConverter#coerceComparison},
+ *         just as {@link CompareOperator} does when it evaluates the
+ *         predicate against each tuple, so that the two always agree.  Only
+ *         numeric literals are checked against the zone map, since only
+ *         numeric coercions are known to keep values in order.  If values
+ *         can't be compared, the page isn't skipped.
+ */
+public class ZoneMapFilter implements IntPredicate {
+
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(ZoneMapFilter.class);
+
+
+    /** A condition that is checked against one zone map entry. */
+    private interface Condition {
+        /**
+         * Returns false if no tuple in the entry's page can satisfy the
+         * condition.
+         */
+        boolean mayMatch(ZoneMapFile.Entry entry);
+    }
+
+
+    /** The zone map that the filter reads entries from. */
+    private ZoneMapFile zoneMapFile;
+
+
+    /** The conditions that every tuple produced by the scan must satisfy. */
+    private ArrayList<Condition> conditions;
+
+
+    private ZoneMapFilter(ZoneMapFile zoneMapFile,
+                          ArrayList<Condition> conditions) {
+        this.zoneMapFile = zoneMapFile;
+        this.conditions = conditions;
+    }
+
+
+    /**
+     * Creates a filter for the specified predicate, or returns <tt>null</tt>
+     * if no part of the predicate can be checked against the zone map.
+     *
+     * @param zoneMapFile the zone map of the heap file being scanned
+     *
+     * @param schema the schema of the heap file being scanned
+     *
+     * @param predicate the scan's predicate, or <tt>null</tt> if there is
+     *        none
+     *
+     * @return a filter for the scan, or <tt>null</tt> if the filter would
+     *         never skip a page
+     */
+    public static ZoneMapFilter create(ZoneMapFile zoneMapFile,
+                                       TableSchema schema, Expression predicate) {
+        if (predicate == null)
+            return null;
+
+        HashSet<Expression> conjuncts = new HashSet<>();
+        PredicateUtils.collectConjuncts(predicate, conjuncts);
+
+        ArrayList<Condition> conditions = new ArrayList<>();
+        for (Expression conjunct : conjuncts) {
+            Condition cond = makeCondition(zoneMapFile, schema, conjunct);
+            if (cond != null)
+                conditions.add(cond);
+        }
+
+        if (conditions.isEmpty())
+            return null;
+
+        logger.debug(String.format("Checking %d of %d conjuncts of " +
+            "predicate %s against the zone map.", conditions.size(),
+            conjuncts.size(), predicate));
+
+        return new ZoneMapFilter(zoneMapFile, conditions);
+    }
+
+
+    /**
+     * Returns false if no tuple in the specified data page can satisfy the
+     * predicate, so that the page can be skipped.
+     *
+     * @param pageNo the number of a data page in the heap file
+     *
+     * @return false if the page can be skipped
+     */
+    @Override
+    public boolean test(int pageNo) {
+        ZoneMapFile.Entry entry;
+        try {
+            entry = zoneMapFile.readEntry(pageNo);
+        }
+        catch (IOException e) {
+            logger.warn("Couldn't read zone map entry for page " + pageNo, e);
+            return true;
+        }
+
+        if (!entry.isValid())
+            return true;
+
+        for (Condition cond : conditions) {
+            if (!cond.mayMatch(entry)) {
+                PerformanceCounters.inc(
+                    PerformanceCounters.STORAGE_ZONE_MAP_PAGES_SKIPPED);
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Returns a condition for the expression, or <tt>null</tt> if the
+     * expression can't be checked against the zone map.
+     */
+    private static Condition makeCondition(ZoneMapFile zoneMapFile,
+                                           TableSchema schema, Expression expr) {
+        if (expr instanceof BooleanOperator) {
+            BooleanOperator boolOp = (BooleanOperator) expr;
+            int numTerms = boolOp.getNumTerms();
+
+            ArrayList<Condition> terms = new ArrayList<>();
+            for (int i = 0; i < numTerms; i++) {
+                Condition term =
+                    makeCondition(zoneMapFile, schema, boolOp.getTerm(i));
+                if (term != null)
+                    terms.add(term);
+                else if (boolOp.getType() == BooleanOperator.Type.OR_EXPR)
+                    return null;  // The unknown term may match anything.
+            }
+
+            if (terms.isEmpty())
+                return null;
+
+            switch (boolOp.getType()) {
+            case AND_EXPR:
+                return (entry) -> terms.stream().allMatch(c -> c.mayMatch(entry));
+
+            case OR_EXPR:
+                return (entry) -> terms.stream().anyMatch(c -> c.mayMatch(entry));
+
+            default:
+                return null;
+            }
+        }
+        else if (expr instanceof CompareOperator) {
+            CompareOperator cmpOp = (CompareOperator) expr;
+            CompareOperator.Type type = cmpOp.getType();
+            Expression lhs = cmpOp.getLeftExpression();
+            Expression rhs = cmpOp.getRightExpression();
+
+            if (lhs instanceof LiteralValue && rhs instanceof ColumnValue) {
+                // Swap the sides so that the column is on the left.
+                Expression tmp = lhs;
+                lhs = rhs;
+                rhs = tmp;
+                type = swap(type);
+            }
+
+            int colIndex = getTrackedColumn(zoneMapFile, schema, lhs);
+            if (colIndex == -1 || !(rhs instanceof LiteralValue))
+                return null;
+
+            Object value = rhs.evaluate();
+            if (!isOrderedWithColumn(value))
+                return null;
+
+            CompareOperator.Type finalType = type;
+            return (entry) -> mayCompare(entry, colIndex, finalType, value);
+        }
+        else if (expr instanceof InValuesOperator) {
+            InValuesOperator inOp = (InValuesOperator) expr;
+            int colIndex =
+                getTrackedColumn(zoneMapFile, schema, inOp.getLeftExpression());
+            if (colIndex == -1)
+                return null;
+
+            ArrayList<Object> values = new ArrayList<>();
+            for (Expression valueExpr : inOp.getValues()) {
+                if (!(valueExpr instanceof LiteralValue))
+                    return null;
+
+                Object value = valueExpr.evaluate();
+                if (!isOrderedWithColumn(value))
+                    return null;
+
+                values.add(value);
+            }
+
+            return (entry) -> values.stream().anyMatch(v ->
+                mayCompare(entry, colIndex, CompareOperator.Type.EQUALS, v));
+        }
+        else if (expr instanceof IsNullOperator) {
+            IsNullOperator nullOp = (IsNullOperator) expr;
+            int colIndex = getColumn(schema, nullOp.getExpression());
+            if (colIndex == -1)
+                return null;
+
+            if (nullOp.isInverted())
+                return (entry) -> entry.hasValues(colIndex);
+            else
+                return (entry) -> entry.getNullCount(colIndex) > 0;
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Returns the comparison that gives the same result when its two sides
+     * are swapped.
+     */
+    private static CompareOperator.Type swap(CompareOperator.Type type) {
+        switch (type) {
+        case LESS_THAN:
+            return CompareOperator.Type.GREATER_THAN;
+
+        case GREATER_THAN:
+            return CompareOperator.Type.LESS_THAN;
+
+        case LESS_OR_EQUAL:
+            return CompareOperator.Type.GREATER_OR_EQUAL;
+
+        case GREATER_OR_EQUAL:
+            return CompareOperator.Type.LESS_OR_EQUAL;
+
+        default:
+            return type;
+        }
+    }
+
+
+    /**
+     * Returns the index of the column that the expression refers to, or -1
+     * if the expression isn't a column of the table.
+     */
+    private static int getColumn(TableSchema schema, Expression expr) {
+        if (!(expr instanceof ColumnValue))
+            return -1;
+
+        try {
+            return schema.getColumnIndex(((ColumnValue) expr).getColumnName());
+        }
+        catch (SchemaNameException e) {
+            return -1;
+        }
+    }
+
+
+    /**
+     * Returns the index of the column that the expression refers to, or -1
+     * if the expression isn't a column whose range is kept in the zone map.
+     */
+    private static int getTrackedColumn(ZoneMapFile zoneMapFile,
+                                        TableSchema schema, Expression expr) {
+        int colIndex = getColumn(schema, expr);
+        if (colIndex == -1 || !zoneMapFile.isTracked(colIndex))
+            return -1;
+
+        return colIndex;
+    }
+
+
+    /**
+     * Returns true if a literal value can be checked against the minimum and
+     * maximum of a tracked column.  Tracked columns are always numeric, and
+     * coercing two numbers to a common numeric type never reverses their
+     * order, so every value of a page lies between the coerced minimum and
+     * maximum.  Other coercions, such as parsing a string into a number,
+     * make no such promise, so other literals are never checked.
+     */
+    private static boolean isOrderedWithColumn(Object value) {
+        return value instanceof Number;
+    }
+
+
+    /**
+     * Returns false if no value of the column in the entry's page can satisfy
+     * <tt>column <i>type</i> value</tt>.  The value must be one that
+     * {@link #isOrderedWithColumn} accepts.
+     */
+    @SuppressWarnings("unchecked")
+    private static boolean mayCompare(ZoneMapFile.Entry entry, int colIndex,
+                                      CompareOperator.Type type, Object value) {
+        // Comparisons against NULL are never true.
+        if (!entry.hasValues(colIndex))
+            return false;
+
+        int cmpMin, cmpMax;
+        try {
+            TypeConverter.Pair coerced = TypeConverter.coerceComparison(
+                entry.getMinValue(colIndex), value);
+            cmpMin = ((Comparable<Object>) coerced.value1).compareTo(
+                coerced.value2);
+
+            coerced = TypeConverter.coerceComparison(
+                entry.getMaxValue(colIndex), value);
+            cmpMax = ((Comparable<Object>) coerced.value1).compareTo(
+                coerced.value2);
+        }
+        catch (RuntimeException e) {
+            // The evaluation will report the problem, if there is one.
+            return true;
+        }
+
+        switch (type) {
+        case EQUALS:
+            return cmpMin <= 0 && cmpMax >= 0;
+
+        case NOT_EQUALS:
+            return cmpMin != 0 || cmpMax != 0;
+
+        case LESS_THAN:
+            return cmpMin < 0;
+
+        case LESS_OR_EQUAL:
+            return cmpMin <= 0;
+
+        case GREATER_THAN:
+            return cmpMax > 0;
+
+        case GREATER_OR_EQUAL:
+            return cmpMax >= 0;
+
+        default:
+            return true;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package edu.caltech.nanodb.storage.writeahead;
+
+
+import java.util.ArrayList;
+
+
+/**
+ * This class holds the contents of a {@link WALRecordType#CHECKPOINT}
+ * record:  the transactions that were active, and the pages that were dirty,
+ * when a fuzzy checkpoint was taken.  Recovery processing uses it to start
+ * from the checkpoint rather than from the start of the log.
+ */
+public class CheckpointRecord {
+
+    /** A transaction that was active when the checkpoint was taken. */
+    public static class ActiveTxn {
+        /** The ID of the transaction. */
+        public int transactionID;
+
+        /** The LSN of the transaction's start record. */
+        public LogSequenceNumber firstLSN;
+
+        /** The LSN of the last record the transaction wrote. */
+        public LogSequenceNumber lastLSN;
+
+
+        public ActiveTxn(int transactionID, LogSequenceNumber firstLSN,
+                         LogSequenceNumber lastLSN) {
+            this.transactionID = transactionID;
+            this.firstLSN = firstLSN;
+            this.lastLSN = lastLSN;
+        }
+    }
+
+
+    /** A page that was dirty when the checkpoint was taken. */
+    public static class DirtyPage {
+        /** The name of the file that the page is in. */
+        public String filename;
+
+        /** The page's number within its file. */
+        public int pageNo;
+
+        /**
+         * The LSN of the first record written for the page since it was
+         * last clean.
+         */
+        public LogSequenceNumber recoveryLSN;
+
+
+        public DirtyPage(String filename, int pageNo,
+                         LogSequenceNumber recoveryLSN) {
+            this.filename = filename;
+            this.pageNo = pageNo;
+            this.recoveryLSN = recoveryLSN;
+        }
+    }
+
+
+    /**
+     * The end of the log when the checkpoint was started.  Every change
+     * recorded before this LSN was either on disk when the checkpoint was
+     * written, or was to a page in the dirty-page table.
+     */
+    public LogSequenceNumber startLSN;
+
+
+    /** The transactions that were active when the checkpoint was taken. */
+    public ArrayList<ActiveTxn> activeTxns = new ArrayList<>();
+
+
+    /** The pages that were dirty when the checkpoint was taken. */
+    public ArrayList<DirtyPage> dirtyPages = new ArrayList<>();
+
+
+    /**
+     * Returns the LSN that redo processing must start from:  the earlier of
+     * the checkpoint's start LSN and the recovery LSNs of the dirty pages.
+     *
+     * @return the LSN that redo processing must start from
+     */
+    public LogSequenceNumber getRedoLSN() {
+        LogSequenceNumber redoLSN = startLSN;
+        for (DirtyPage page : dirtyPages) {
+            if (page.recoveryLSN.compareTo(redoLSN) < 0)
+                redoLSN = page.recoveryLSN;
+        }
+        return redoLSN;
+    }
+
+
+    /**
+     * Returns the earliest LSN that recovery may need to read, either to
+     * redo changes or to roll back one of the active transactions.  WAL
+     * files before this LSN are no longer needed once the checkpoint is on
+     * disk.
+     *
+     * @return the earliest LSN that recovery may need to read
+     */
+    public LogSequenceNumber getOldestNeededLSN() {
+        LogSequenceNumber oldest = getRedoLSN();
+        for (ActiveTxn txn : activeTxns) {
+            if (txn.firstLSN.compareTo(oldest) < 0)
+                oldest = txn.firstLSN;
+        }
+        return oldest;
+    }
+}
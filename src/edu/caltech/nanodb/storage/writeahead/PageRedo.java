@@ -0,0 +1,162 @@
+package edu.caltech.nanodb.storage.writeahead;
+
+
+import java.io.IOException;
+
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+import edu.caltech.nanodb.storage.DBFile;
+import edu.caltech.nanodb.storage.DBPage;
+import edu.caltech.nanodb.storage.StorageManager;
+
+
+/**
+ * This class holds the changes that one {@link WALRecordType#UPDATE_PAGE},
+ * {@link WALRecordType#UPDATE_PAGE_REDO_ONLY} or
+ * {@link WALRecordType#NEW_PAGE_REDO_ONLY} record makes to a page, as read
+ * from the write-ahead log during redo processing.  Reading the changes is
+ * separate from redoing them, so that the thread reading the log can hand
+ * them to another thread to redo (see {@link ParallelRedo}).
+ */
+class PageRedo {
+
+    /** The LSN of the record. */
+    final LogSequenceNumber lsn;
+
+    /** The name of the file that the record changes. */
+    final String filename;
+
+    /** The number of the page that the record changes. */
+    final int pageNo;
+
+    /** The offset in the page of each changed range. */
+    private final int[] offsets;
+
+    /** The new contents of each changed range. */
+    private final byte[][] data;
+
+
+    PageRedo(LogSequenceNumber lsn, String filename, int pageNo,
+             int[] offsets, byte[][] data) {
+        this.lsn = lsn;
+        this.filename = filename;
+        this.pageNo = pageNo;
+        this.offsets = offsets;
+        this.data = data;
+    }
+
+
+    /**
+     * Reads the redo data of an update record.
+     *
+     * @param type the type of the record, either
+     *        {@link WALRecordType#UPDATE_PAGE} or
+     *        {@link WALRecordType#UPDATE_PAGE_REDO_ONLY}
+     *
+     * @param walReader a reader positioned at the start of the redo/undo
+     *        data.  This method will advance the reader's position past this
+     *        data.
+     *
+     * @param lsn the LSN of the record
+     * @param filename the name of the file that the record changes
+     * @param pageNo the number of the page that the record changes
+     * @param numSegments the number of segments containing redo[/undo] data
+     *
+     * @return the changes to redo
+     *
+     * @throws IOException if an IO error occurs while reading the record
+     */
+    static PageRedo readUpdate(WALRecordType type, WALFileReader walReader,
+        LogSequenceNumber lsn, String filename, int pageNo, int numSegments)
+        throws IOException {
+
+        if (type != WALRecordType.UPDATE_PAGE &&
+            type != WALRecordType.UPDATE_PAGE_REDO_ONLY) {
+            throw new IllegalArgumentException("This method can only be " +
+                "used with UPDATE_PAGE and UPDATE_PAGE_REDO_ONLY records.");
+        }
+
+        int[] offsets = new int[numSegments];
+        byte[][] data = new byte[numSegments][];
+        for (int iSeg = 0; iSeg < numSegments; iSeg++) {
+            // Read the starting index within the page, and the amount of
+            // data that was recorded at that index.
+            offsets[iSeg] = walReader.readUnsignedShort();
+            int size = walReader.readUnsignedShort();
+
+            // If it's an UPDATE_PAGE record, skip over the undo data.
+            if (type == WALRecordType.UPDATE_PAGE)
+                walReader.movePosition(size);
+
+            data[iSeg] = new byte[size];
+            walReader.read(data[iSeg]);
+        }
+
+        return new PageRedo(lsn, filename, pageNo, offsets, data);
+    }
+
+
+    /**
+     * Reads the page image of a {@link WALRecordType#NEW_PAGE_REDO_ONLY}
+     * record.  The hole in the image is filled with zeros.
+     *
+     * @param walReader a reader positioned at the start of the page image.
+     *        This method will advance the reader's position past the image.
+     *
+     * @param lsn the LSN of the record
+     * @param filename the name of the file that the record adds a page to
+     * @param pageNo the number of the page that the record adds
+     * @param pageSize the page size of the file
+     *
+     * @return the changes to redo
+     *
+     * @throws IOException if an IO error occurs while reading the record
+     */
+    static PageRedo readNewPage(WALFileReader walReader, LogSequenceNumber lsn,
+        String filename, int pageNo, int pageSize) throws IOException {
+
+        int holeStart = walReader.readInt();
+        int holeLength = walReader.readInt();
+        int holeEnd = holeStart + holeLength;
+
+        byte[] image = new byte[pageSize];
+        walReader.read(image, 0, holeStart);
+        walReader.read(image, holeEnd, image.length - holeEnd);
+
+        return new PageRedo(lsn, filename, pageNo, new int[] { 0 },
+            new byte[][] { image });
+    }
+
+
+    /**
+     * Redoes the changes on the page, unless the page's stored LSN shows
+     * that they are already in the page's data.  Pages that don't store
+     * their LSN always have the changes redone.  The page may be past the
+     * end of the file if the file was truncated after it was emptied (see
+     * <tt>HeapTupleFile.optimize()</tt>), in which case later records empty
+     * it again.
+     *
+     * @param storageManager the storage manager to load the page with
+     *
+     * @throws IOException if an IO error occurs while loading the page
+     */
+    void redo(StorageManager storageManager) throws IOException {
+        DBFile dbFile = storageManager.openDBFile(filename);
+        DBPage dbPage = storageManager.loadDBPage(dbFile, pageNo, true);
+        try {
+            LogSequenceNumber storedLSN = dbPage.getStoredPageLSN();
+            if (storedLSN != null && storedLSN.compareTo(lsn) >= 0) {
+                PerformanceCounters.inc(
+                    PerformanceCounters.WAL_REDO_RECORDS_SKIPPED);
+                return;
+            }
+
+            for (int i = 0; i < offsets.length; i++)
+                dbPage.write(offsets[i], data[i]);
+
+            dbPage.setPageLSN(lsn);
+        }
+        finally {
+            dbPage.unpin();
+        }
+    }
+}
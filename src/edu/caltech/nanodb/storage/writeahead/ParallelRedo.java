@@ -0,0 +1,205 @@
+package edu.caltech.nanodb.storage.writeahead;
+
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.client.SessionState;
+import edu.caltech.nanodb.storage.StorageManager;
+
+
+/**
+ * <p>
+ * This class redoes the page changes read from the write-ahead log in
+ * several worker threads, while the thread performing recovery keeps
+ * reading the log.  Each page is always handed to the same worker, chosen
+ * from the page's file and page number, so the changes to a page are redone
+ * in the order they were logged, while the changes to different pages are
+ * redone at the same time, overlapping the IO of loading the pages.
+ * </p>
+ * <p>
+ * Each worker has a bounded queue, so that the reading thread waits instead
+ * of reading far ahead of the workers.  If a worker fails, the other
+ * workers stop redoing changes, and the failure is reported by
+ * {@link #submit} or {@link #finish}.
+ * </p>
+ */
+class ParallelRedo {
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(ParallelRedo.class);
+
+
+    /** The number of records each worker's queue can hold. */
+    private static final int QUEUE_CAPACITY = 1024;
+
+
+    /** This value is put in each worker's queue to stop the worker. */
+    private static final PageRedo STOP = new PageRedo(null, null, 0, null, null);
+
+
+    private StorageManager storageManager;
+
+
+    /** The queue of changes for each worker to redo. */
+    private List<BlockingQueue<PageRedo>> queues;
+
+
+    /** The worker threads. */
+    private Thread[] workers;
+
+
+    /** The first failure that a worker encountered, or <tt>null</tt>. */
+    private volatile Throwable failure;
+
+
+    /** True once the workers have been told to stop. */
+    private boolean stopped;
+
+
+    /**
+     * Creates and starts the specified number of workers.
+     *
+     * @param storageManager the storage manager to load pages with
+     * @param numWorkers the number of worker threads
+     */
+    ParallelRedo(StorageManager storageManager, int numWorkers) {
+        this.storageManager = storageManager;
+
+        queues = new ArrayList<>(numWorkers);
+        workers = new Thread[numWorkers];
+        for (int i = 0; i < numWorkers; i++) {
+            BlockingQueue<PageRedo> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+            queues.add(queue);
+            workers[i] = new Thread(() -> runWorker(queue), "Redo-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+
+    /**
+     * Hands the changes to the worker that redoes the changes to their page,
+     * waiting if the worker's queue is full.
+     *
+     * @param redo the changes to redo
+     *
+     * @throws IOException if a worker failed to redo earlier changes, or if
+     *         the thread was interrupted while waiting
+     */
+    void submit(PageRedo redo) throws IOException {
+        checkFailure();
+
+        int hash = redo.filename.hashCode() * 31 + redo.pageNo;
+        BlockingQueue<PageRedo> queue =
+            queues.get(Math.floorMod(hash, queues.size()));
+
+        try {
+            queue.put(redo);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                "Interrupted while handing a record to a redo worker");
+        }
+    }
+
+
+    /**
+     * Waits for the workers to redo all of the changes submitted so far,
+     * and stops them.
+     *
+     * @throws IOException if a worker failed to redo some changes
+     */
+    void finish() throws IOException {
+        stop();
+        checkFailure();
+    }
+
+
+    /**
+     * Stops the workers once they have worked through their queues, without
+     * reporting whether they succeeded.  This is used when reading the log
+     * fails, and does nothing if the workers have already been stopped.
+     */
+    void stop() {
+        if (stopped)
+            return;
+
+        stopped = true;
+
+        boolean interrupted = false;
+        for (int i = 0; i < workers.length; i++) {
+            while (true) {
+                try {
+                    queues.get(i).put(STOP);
+                    workers[i].join();
+                    break;
+                }
+                catch (InterruptedException e) {
+                    // The workers must be stopped before recovery goes on.
+                    interrupted = true;
+                }
+            }
+        }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+
+    private void checkFailure() throws IOException {
+        Throwable t = failure;
+        if (t instanceof IOException)
+            throw new IOException("Couldn't redo a write-ahead log record", t);
+        else if (t != null)
+            throw new RuntimeException("Couldn't redo a write-ahead log record", t);
+    }
+
+
+    private void runWorker(BlockingQueue<PageRedo> queue) {
+        try {
+            while (true) {
+                PageRedo redo;
+                try {
+                    redo = queue.take();
+                }
+                catch (InterruptedException e) {
+                    // Keep working, so that the reading thread never waits
+                    // on a queue that no worker takes from.
+                    continue;
+                }
+
+                if (redo == STOP)
+                    break;
+
+                // Once any worker has failed, recovery fails, so the
+                // remaining changes are just drained from the queue.
+                if (failure != null)
+                    continue;
+
+                try {
+                    redo.redo(storageManager);
+                }
+                catch (IOException | RuntimeException e) {
+                    logger.error(String.format("Couldn't redo the record at " +
+                        "LSN %s to page %d of %s", redo.lsn, redo.pageNo,
+                        redo.filename), e);
+
+                    synchronized (this) {
+                        if (failure == null)
+                            failure = e;
+                    }
+                }
+            }
+        }
+        finally {
+            SessionState.remove();
+        }
+    }
+}
@@ -36,6 +36,28 @@ public class RecoveryInfo {
     public HashMap<Integer, LogSequenceNumber> incompleteTxns;
 
 
+    /**
+     * This is the log sequence number where undo processing stops.  It is
+     * the same as {@link #firstLSN}, unless a checkpoint recorded active
+     * transactions that started before it.
+     */
+    public LogSequenceNumber undoLSN;
+
+
+    /**
+     * This is the start LSN of the checkpoint that recovery started from, or
+     * <tt>null</tt> if recovery didn't start from a checkpoint.
+     */
+    private LogSequenceNumber checkpointStartLSN;
+
+
+    /**
+     * The checkpoint's dirty-page table, mapping each filename to the
+     * recovery LSNs of the file's dirty pages.
+     */
+    private HashMap<String, HashMap<Integer, LogSequenceNumber>> dirtyPages;
+
+
     public RecoveryInfo(LogSequenceNumber firstLSN,
                         LogSequenceNumber nextLSN) {
 
@@ -45,6 +67,76 @@ public class RecoveryInfo {
         this.maxTransactionID = -1;
 
         incompleteTxns = new HashMap<Integer, LogSequenceNumber>();
+        undoLSN = firstLSN;
+        dirtyPages = new HashMap<>();
+    }
+
+
+    /**
+     * Initializes the recovery information from a checkpoint, before redo
+     * processing starts.  The checkpoint's active transactions are recorded
+     * as incomplete, and its dirty-page table is kept so that redo
+     * processing can skip changes that were already on disk.
+     *
+     * @param checkpoint the checkpoint that recovery starts from
+     */
+    public void startFromCheckpoint(CheckpointRecord checkpoint) {
+        checkpointStartLSN = checkpoint.startLSN;
+
+        for (CheckpointRecord.ActiveTxn txn : checkpoint.activeTxns) {
+            updateInfo(txn.transactionID, txn.lastLSN);
+            if (txn.firstLSN.compareTo(undoLSN) < 0)
+                undoLSN = txn.firstLSN;
+        }
+
+        for (CheckpointRecord.DirtyPage page : checkpoint.dirtyPages) {
+            dirtyPages.computeIfAbsent(page.filename, f -> new HashMap<>())
+                .put(page.pageNo, page.recoveryLSN);
+        }
+    }
+
+
+    /**
+     * Returns true if the specified record comes before the start of the
+     * checkpoint that recovery started from.  Such records may belong to
+     * transactions that completed before the checkpoint, so their
+     * transactions may not be known.
+     *
+     * @param lsn the log sequence number of a record
+     *
+     * @return true if the record comes before the start of the checkpoint
+     */
+    public boolean isBeforeCheckpoint(LogSequenceNumber lsn) {
+        return checkpointStartLSN != null &&
+            lsn.compareTo(checkpointStartLSN) < 0;
+    }
+
+
+    /**
+     * Returns true if the change recorded at the specified LSN must be
+     * redone.  Changes from before the checkpoint only need to be redone if
+     * their page was in the checkpoint's dirty-page table, and the change
+     * isn't older than the page's recovery LSN; otherwise the change was
+     * already on disk when the checkpoint was written.
+     *
+     * @param filename the name of the file that the change was made to
+     *
+     * @param pageNo the number of the page that the change was made to
+     *
+     * @param lsn the log sequence number of the change
+     *
+     * @return true if the change must be redone
+     */
+    public boolean needsRedo(String filename, int pageNo, LogSequenceNumber lsn) {
+        if (!isBeforeCheckpoint(lsn))
+            return true;
+
+        HashMap<Integer, LogSequenceNumber> filePages = dirtyPages.get(filename);
+        if (filePages == null)
+            return false;
+
+        LogSequenceNumber recoveryLSN = filePages.get(pageNo);
+        return recoveryLSN != null && lsn.compareTo(recoveryLSN) >= 0;
     }
 
 
@@ -0,0 +1,230 @@
+package edu.caltech.nanodb.storage.writeahead;
+
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+
+import edu.caltech.nanodb.storage.DBFile;
+import edu.caltech.nanodb.storage.DBFileType;
+
+
+/**
+ * This class reads a write-ahead log file sequentially, with the same
+ * methods as a {@link edu.caltech.nanodb.storage.DBFileReader}.  WAL files
+ * are written by the {@link WALWriter} rather than through the Buffer
+ * Manager, so they are also read directly from the file, through a small
+ * window of the file that is read as the position moves.  Only records
+ * that the writer has written to the file can be read.
+ */
+public class WALFileReader implements AutoCloseable {
+
+    /** The size of the window of the file that is read at once. */
+    private static final int WINDOW_SIZE = 8192;
+
+
+    /** The number of the WAL file being read. */
+    private int fileNo;
+
+
+    /** The channel that the file is read through. */
+    private FileChannel channel;
+
+
+    /** The format version of the WAL file, from its header. */
+    private int formatVersion;
+
+
+    /** The window of the file that was read last. */
+    private ByteBuffer window = ByteBuffer.allocate(WINDOW_SIZE);
+
+
+    /** The file offset of the start of the window. */
+    private long windowStart;
+
+
+    /** The current position in the file where reads will occur from. */
+    private int position;
+
+
+    /**
+     * Opens the specified WAL file for reading, and checks its header.
+     *
+     * @param walFile the WAL file to read
+     * @param fileNo the number of the WAL file
+     *
+     * @throws FileNotFoundException if the WAL file doesn't exist
+     * @throws IOException if the file can't be read, or isn't a WAL file
+     */
+    public WALFileReader(File walFile, int fileNo) throws IOException {
+        this.fileNo = fileNo;
+
+        try {
+            channel = FileChannel.open(walFile.toPath(), StandardOpenOption.READ);
+        }
+        catch (NoSuchFileException e) {
+            throw new FileNotFoundException("WAL file " + walFile +
+                " doesn't exist");
+        }
+
+        window.limit(0);
+
+        try {
+            int typeID = readUnsignedByte();
+            if (typeID != DBFileType.WRITE_AHEAD_LOG_FILE.getID()) {
+                throw new IOException(String.format(
+                    "File %s is not of WAL-file type.", walFile));
+            }
+            formatVersion = DBFile.decodeFormatVersionFromHeader(readUnsignedByte());
+        }
+        catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+
+    /** Returns the number of the WAL file being read. */
+    public int getFileNo() {
+        return fileNo;
+    }
+
+
+    /** Returns the format version of the WAL file, from its header. */
+    public int getFormatVersion() {
+        return formatVersion;
+    }
+
+
+    public int getPosition() {
+        return position;
+    }
+
+
+    public void setPosition(int position) {
+        if (position < 0) {
+            throw new IllegalArgumentException("position must be >= 0, got " +
+                position);
+        }
+
+        this.position = position;
+    }
+
+
+    public void movePosition(int n) {
+        if (position + n < 0)
+            throw new IllegalArgumentException("can't move position before file start");
+
+        position += n;
+    }
+
+
+    /**
+     * Makes sure that the window holds the specified number of bytes,
+     * starting at the current position, reading the window again if it
+     * doesn't.  The number of bytes must not exceed the window size.
+     */
+    private void fillWindow(int numBytes) throws IOException {
+        if (position >= windowStart &&
+            position + numBytes <= windowStart + window.limit()) {
+            return;
+        }
+
+        window.clear();
+        windowStart = position;
+        while (window.position() < numBytes) {
+            int read = channel.read(window, windowStart + window.position());
+            if (read < 0) {
+                throw new EOFException(String.format("Reached the end of " +
+                    "WAL file %s at offset %d", WALManager.getWALFileName(fileNo),
+                    windowStart + window.position()));
+            }
+        }
+        window.flip();
+    }
+
+
+    /** Returns the index in the window of the current position. */
+    private int windowIndex() {
+        return (int) (position - windowStart);
+    }
+
+
+    public void read(byte[] b, int off, int len) throws IOException {
+        if (len > WINDOW_SIZE) {
+            // Large values are read straight into the array.
+            ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, position + buf.position() - off) < 0) {
+                    throw new EOFException("Reached the end of WAL file " +
+                        WALManager.getWALFileName(fileNo));
+                }
+            }
+        }
+        else {
+            fillWindow(len);
+            System.arraycopy(window.array(), windowIndex(), b, off, len);
+        }
+
+        position += len;
+    }
+
+
+    public void read(byte[] b) throws IOException {
+        read(b, 0, b.length);
+    }
+
+
+    public byte readByte() throws IOException {
+        fillWindow(1);
+        byte b = window.get(windowIndex());
+        position++;
+        return b;
+    }
+
+
+    public int readUnsignedByte() throws IOException {
+        return readByte() & 0xFF;
+    }
+
+
+    public short readShort() throws IOException {
+        fillWindow(2);
+        short value = window.getShort(windowIndex());
+        position += 2;
+        return value;
+    }
+
+
+    public int readUnsignedShort() throws IOException {
+        return readShort() & 0xFFFF;
+    }
+
+
+    public int readInt() throws IOException {
+        fillWindow(4);
+        int value = window.getInt(windowIndex());
+        position += 4;
+        return value;
+    }
+
+
+    public String readVarString255() throws IOException {
+        int len = readUnsignedByte();
+        byte[] strBytes = new byte[len];
+        read(strBytes);
+        return new String(strBytes, StandardCharsets.US_ASCII);
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -2,16 +2,23 @@ package edu.caltech.nanodb.storage.writeahead;
 
 
 import edu.caltech.nanodb.client.SessionState;
+import edu.caltech.nanodb.server.NanoDBServer;
+import edu.caltech.nanodb.server.properties.PropertyHandler;
+import edu.caltech.nanodb.server.properties.ReadOnlyPropertyException;
+import edu.caltech.nanodb.server.properties.UnrecognizedPropertyException;
 import edu.caltech.nanodb.storage.*;
 import edu.caltech.nanodb.transactions.TransactionManager;
 import edu.caltech.nanodb.transactions.TransactionState;
-import edu.caltech.nanodb.util.ArrayUtil;
 import org.apache.log4j.Logger;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
 
 
 /**
@@ -33,6 +40,25 @@ import java.io.IOException;
  * needed during recovery processing, when transaction state is dictated by the
  * log file, not what is in thread-local storage.
  * </p>
+ * <p>
+ * Many sessions may append records at the same time, so the methods that
+ * append a record are synchronized on the WAL manager.  Flushing the log
+ * with {@link #flushWAL} doesn't take this lock, so that sessions can keep
+ * appending records while a group of commit records is being synced.
+ * </p>
+ * <p>
+ * WAL files don't go through the Buffer Manager.  Each record is built in
+ * memory with a {@link WALRecordBuilder}, and then appended to the
+ * {@link WALWriter}, which writes and syncs the log in the background.
+ * Records are read back with a {@link WALFileReader}.
+ * </p>
+ * <p>
+ * The WAL manager also keeps track of the transactions that have written
+ * records and haven't completed, so that a {@link WALRecordType#CHECKPOINT}
+ * record can list them.  Recovery then starts from the last checkpoint
+ * rather than from the start of the log, and WAL files from before the
+ * checkpoint can be deleted with {@link #deleteOldWALFiles}.
+ * </p>
  */
 public class WALManager {
 
@@ -72,6 +98,60 @@ public class WALManager {
     public static final int OFFSET_FIRST_RECORD = 6;
 
 
+    /**
+     * The largest segment that is used when clearing a page that a
+     * {@link WALRecordType#NEW_PAGE_REDO_ONLY} record added.
+     */
+    private static final int MAX_CLEAR_SEGMENT_SIZE = 32768;
+
+
+    /**
+     * The system property that can be used to specify how many threads
+     * redo the changes in the write-ahead log during recovery.  With one
+     * thread, changes are redone by the thread reading the log; otherwise
+     * they are handed to {@link ParallelRedo} workers.
+     */
+    public static final String PROP_REDO_THREADS = "nanodb.wal.redothreads";
+
+
+    /**
+     * By default, changes are redone by one thread per processor, up to 8
+     * threads.
+     */
+    public static final int DEFAULT_REDO_THREADS =
+        Math.min(8, Runtime.getRuntime().availableProcessors());
+
+
+    private class WALManagerPropertyHandler implements PropertyHandler {
+        @Override
+        public Object getPropertyValue(String propertyName)
+            throws UnrecognizedPropertyException {
+
+            if (PROP_REDO_THREADS.equals(propertyName)) {
+                return redoThreads;
+            }
+            else {
+                throw new UnrecognizedPropertyException("No property named " +
+                    propertyName);
+            }
+        }
+
+        @Override
+        public void setPropertyValue(String propertyName, Object value)
+            throws UnrecognizedPropertyException, ReadOnlyPropertyException {
+
+            if (PROP_REDO_THREADS.equals(propertyName)) {
+                throw new ReadOnlyPropertyException(propertyName +
+                    " is read-only");
+            }
+            else {
+                throw new UnrecognizedPropertyException("No property named " +
+                    propertyName);
+            }
+        }
+    }
+
+
     /**
      * This static helper method simply takes a WAL file number and translates
      * it into a corresponding filename based on that number.
@@ -85,78 +165,135 @@ public class WALManager {
     }
 
 
+    /**
+     * Returns true if the specified filename is the name of a WAL file.
+     *
+     * @param filename the filename to check
+     *
+     * @return true if the filename is the name of a WAL file
+     */
+    public static boolean isWALFileName(String filename) {
+        return filename.matches("wal-\\d{5}\\.log");
+    }
+
+
     private StorageManager storageManager;
     
     
     private BufferManager bufferManager;
 
 
+    /** The writer that appends records to the WAL files. */
+    private WALWriter logWriter;
+
+
+    /**
+     * The builder that records are built in before they are appended to the
+     * WAL.  It is only used while holding the WAL manager's lock.
+     */
+    private WALRecordBuilder walRecord = new WALRecordBuilder();
+
+
     /**
      * This object holds the log sequence number of the first write-ahead log
      * record where recovery would need to start from.
      */
-    private LogSequenceNumber firstLSN;
+    private volatile LogSequenceNumber firstLSN;
+
+
+    /**
+     * The log sequence number of the checkpoint record that recovery starts
+     * from, or <tt>null</tt> if recovery doesn't start from a checkpoint.
+     */
+    private volatile LogSequenceNumber checkpointLSN;
+
+
+    /**
+     * The transactions that have written a start record, and haven't written
+     * a commit or abort record yet, keyed by transaction ID.  This is only
+     * used while holding the WAL manager's lock, so that a checkpoint sees
+     * the transactions as of a specific point in the log.
+     */
+    private HashMap<Integer, TransactionState> activeTxns = new HashMap<>();
 
 
     /**
      * This object holds the log sequence number where the next write-ahead log
-     * record will be written.
+     * record will be written.  Records are appended while holding this
+     * object's lock, but the value is volatile so that the transaction
+     * manager can read it while forcing the WAL without waiting for an
+     * append to finish.
      */
-    private LogSequenceNumber nextLSN;
+    private volatile LogSequenceNumber nextLSN;
 
 
-    public WALManager(StorageManager storageManager,
+    /** The number of threads that redo changes during recovery. */
+    private int redoThreads;
+
+
+    public WALManager(NanoDBServer server, StorageManager storageManager,
                       BufferManager bufferManager) {
         this.storageManager = storageManager;
         this.bufferManager = bufferManager;
+
+        logWriter = new WALWriter(server, storageManager.getBaseDir(),
+            StorageManager.getCurrentPageSize());
+
+        redoThreads = configureRedoThreads();
+
+        if (server != null) {
+            server.getPropertyRegistry().registerProperties(
+                new WALManagerPropertyHandler(), PROP_REDO_THREADS);
+        }
     }
 
 
-    /**
-     * This helper method creates a brand new write-ahead log file using the
-     * Storage Manager, generating a suitable filename and passing the
-     * appropriate arguments to the Storage Manager.
-     * 
-     * @param fileNo the number of the WAL file to create
-     *
-     * @return a {@link DBFile} for the newly created and opened WAL file
-     *
-     * @throws IOException if the file cannot be created for some reason
-     */
-    public DBFile createWALFile(int fileNo) throws IOException {
-        String filename = getWALFileName(fileNo);
-        logger.debug("Creating WAL file " + filename);
-        return storageManager.createDBFile(filename, DBFileType.WRITE_AHEAD_LOG_FILE);
+    private int configureRedoThreads() {
+        int value = DEFAULT_REDO_THREADS;
+
+        String str = System.getProperty(PROP_REDO_THREADS);
+        if (str != null) {
+            try {
+                value = Integer.parseInt(str.trim());
+            }
+            catch (NumberFormatException e) {
+                logger.error(String.format("Could not parse redo-threads " +
+                    "value \"%s\"; using default value of %d", str,
+                    DEFAULT_REDO_THREADS));
+            }
+
+            if (value < 1) {
+                logger.error(String.format("Redo-threads value %d is less " +
+                    "than 1; using default value of %d", value,
+                    DEFAULT_REDO_THREADS));
+
+                value = DEFAULT_REDO_THREADS;
+            }
+        }
+
+        return value;
     }
 
 
     /**
-     * This helper method opens an existing write-ahead log file using the
-     * Storage Manager, generating a suitable filename and passing the
-     * appropriate arguments to the Storage Manager.  Of course, if the file has
-     * already been opened, the Storage Manager will return the {@code DBFile}
-     * from its cache.
+     * This helper method opens an existing write-ahead log file for reading,
+     * generating a suitable filename based on the file number.
      *
      * @param fileNo the number of the WAL file to open
      *
-     * @return a {@link DBFile} for the opened WAL file
+     * @return a reader for the opened WAL file
+     *
+     * @throws FileNotFoundException if the file doesn't exist
      *
      * @throws IOException if the file cannot be opened for some reason, such
-     *         as if the file doesn't exist, or if permissions are incorrect
+     *         as if it isn't a WAL file, or if permissions are incorrect
      */
-    public DBFile openWALFile(int fileNo) throws IOException {
+    public WALFileReader openWALFile(int fileNo) throws IOException {
         String filename = getWALFileName(fileNo);
         logger.debug("Opening WAL file " + filename);
 
-        DBFile dbFile = storageManager.openDBFile(filename);
-        DBFileType type = dbFile.getType();
-
-        if (type != DBFileType.WRITE_AHEAD_LOG_FILE) {
-            throw new IOException(String.format(
-                "File %s is not of WAL-file type.", filename));
-        }
-
-        return dbFile;
+        return new WALFileReader(
+            new File(storageManager.getBaseDir(), filename), fileNo);
     }
 
 
@@ -165,6 +302,29 @@ public class WALManager {
     }
 
 
+    public LogSequenceNumber getCheckpointLSN() {
+        return checkpointLSN;
+    }
+
+
+    /**
+     * Sets where the next recovery process starts from, once a checkpoint
+     * has reached the disk.  The caller must save both values to the
+     * transaction-state file.
+     *
+     * @param firstLSN the location of the write-ahead log record where
+     *        recovery should start from
+     *
+     * @param checkpointLSN the location of the checkpoint record that holds
+     *        the active transactions and dirty pages
+     */
+    public void setRecoveryStart(LogSequenceNumber firstLSN,
+                                 LogSequenceNumber checkpointLSN) {
+        this.firstLSN = firstLSN;
+        this.checkpointLSN = checkpointLSN;
+    }
+
+
     public LogSequenceNumber getNextLSN() {
         return nextLSN;
     }
@@ -181,24 +341,52 @@ public class WALManager {
      * @param storedNextLSN the location in the write-ahead log that is
      *        <em>just past</em> the last valid log record in the WAL
      *
+     * @param storedCheckpointLSN the location of the checkpoint record that
+     *        recovery starts from, or <tt>null</tt> if there is none
+     *
      * @return the new location where recovery should start from the next time
      *         recovery processing is performed
      *         
      * @throws IOException if an IO error occurs during recovery processing
      */
     public RecoveryInfo doRecovery(LogSequenceNumber storedFirstLSN,
-        LogSequenceNumber storedNextLSN) throws IOException {
+        LogSequenceNumber storedNextLSN, LogSequenceNumber storedCheckpointLSN)
+        throws IOException {
 
         firstLSN = storedFirstLSN;
         nextLSN = storedNextLSN;
+        checkpointLSN = null;
         RecoveryInfo recoveryInfo = new RecoveryInfo(firstLSN, nextLSN);
 
         if (firstLSN.equals(nextLSN)) {
-            // No recovery necessary!  Just return the passed-in info.
+            // No recovery necessary!  Just return the passed-in info, unless
+            // new records must start in a new WAL file.
+            startWriter();
+            firstLSN = nextLSN;
+            recoveryInfo.firstLSN = firstLSN;
+            recoveryInfo.nextLSN = nextLSN;
             return recoveryInfo;
         }
 
+        if (storedCheckpointLSN != null &&
+            storedCheckpointLSN.getFileOffset() >= OFFSET_FIRST_RECORD &&
+            storedCheckpointLSN.compareTo(firstLSN) >= 0 &&
+            storedCheckpointLSN.compareTo(nextLSN) < 0) {
+
+            CheckpointRecord checkpoint = readCheckpointRecord(storedCheckpointLSN);
+            logger.info(String.format("Starting recovery from the checkpoint " +
+                "at LSN %s:  %d active transactions, %d dirty pages",
+                storedCheckpointLSN, checkpoint.activeTxns.size(),
+                checkpoint.dirtyPages.size()));
+
+            recoveryInfo.startFromCheckpoint(checkpoint);
+        }
+
         performRedo(recoveryInfo);
+
+        // Undo processing writes redo-only records, so they must not go into
+        // a WAL file of an older format version.
+        startWriter();
         performUndo(recoveryInfo);
 
         TransactionManager txnMgr = storageManager.getTransactionManager();
@@ -235,88 +423,170 @@ public class WALManager {
         LogSequenceNumber currLSN = recoveryInfo.firstLSN;
         logger.debug("Starting redo processing at LSN " + currLSN);
 
-        LogSequenceNumber oldLSN = null;
-        DBFileReader walReader = null;
-        while (currLSN.compareTo(recoveryInfo.nextLSN) < 0) {
-            if (oldLSN == null || oldLSN.getLogFileNo() != currLSN.getLogFileNo())
-                walReader = getWALFileReader(currLSN);
-
-            // Read the parts of the log record that are always the same.
-            byte typeID = walReader.readByte();
-            WALRecordType type = WALRecordType.valueOf(typeID);
-
-            int transactionID = walReader.readInt();
-
-            logger.debug(String.format(
-                "Redo:  examining WAL record at %s.  Type = %s, TxnID = %d",
-                currLSN, type, transactionID));
-
-            if (type == null) {
-                throw new WALFileException(String.format("Missing type info " +
-                                "while undoing record for transaction %d at LSN %s.",
-                        transactionID, currLSN));
-            }
-
-            switch (type) {
-                case START_TXN:
-                    recoveryInfo.updateInfo(transactionID, currLSN);
-                    walReader.movePosition(1);
-                    break;
-
-                case COMMIT_TXN:
-                case ABORT_TXN:
-                    // If we got here, transaction must've been marked as
-                    // incomplete at some point before this.
-                    if (recoveryInfo.isTxnComplete(transactionID)) {
-                        throw new WALFileException(String.format(
-                                "Encountered a commit/abort WAL record before" +
-                                        " transaction %d was even started!",
-                                transactionID));
-                    }
-
-                    recoveryInfo.recordTxnCompleted(transactionID);
-                    walReader.movePosition(7);
-                    break;
+        ParallelRedo parallelRedo = null;
+        if (redoThreads > 1) {
+            logger.info("Redoing changes with " + redoThreads + " threads");
+            parallelRedo = new ParallelRedo(storageManager, redoThreads);
+        }
 
-                case UPDATE_PAGE:
-                case UPDATE_PAGE_REDO_ONLY:
-                    // If we got here, transaction must've been marked as
-                    // incomplete at some point before this.
-                    if (recoveryInfo.isTxnComplete(transactionID)) {
-                        throw new WALFileException(String.format(
-                                "Encountered a commit/abort WAL record before" +
-                                        " transaction %d was even started!",
-                                transactionID));
-                    }
+        LogSequenceNumber oldLSN = null;
+        WALFileReader walReader = null;
+        try {
+            while (currLSN.compareTo(recoveryInfo.nextLSN) < 0) {
+                if (oldLSN == null || oldLSN.getLogFileNo() != currLSN.getLogFileNo())
+                    walReader = getWALFileReader(walReader, currLSN);
 
-                    recoveryInfo.updateInfo(transactionID, currLSN);
+                // Read the parts of the log record that are always the same.
+                byte typeID = walReader.readByte();
+                WALRecordType type = WALRecordType.valueOf(typeID);
 
-                    // Skip info about previous LSN WAL file
-                    walReader.movePosition(6);
+                int transactionID = walReader.readInt();
 
-                    // Read relevant data from file
-                    String filename = walReader.readVarString255();
-                    short pageNo = walReader.readShort();
-                    short numSegments = walReader.readShort();
+                logger.debug(String.format(
+                    "Redo:  examining WAL record at %s.  Type = %s, TxnID = %d",
+                    currLSN, type, transactionID));
 
-                    // Redo changes, record recovery info
-                    DBFile dbFile = storageManager.openDBFile(filename);
-                    DBPage page = storageManager.loadDBPage(dbFile, pageNo);
-                    applyRedo(type, walReader, page, numSegments);
+                if (type == null) {
+                    throw new WALFileException(String.format("Missing type info " +
+                                    "while undoing record for transaction %d at LSN %s.",
+                            transactionID, currLSN));
+                }
 
-                    // Skip trailing meta data
-                    walReader.movePosition(5);
-                    break;
+                // Records from before the checkpoint may belong to
+                // transactions that completed before the checkpoint, whose
+                // start records come before where redo processing started.
+                boolean beforeCheckpoint =
+                    recoveryInfo.isBeforeCheckpoint(currLSN) &&
+                    recoveryInfo.isTxnComplete(transactionID);
+
+                switch (type) {
+                    case START_TXN:
+                        recoveryInfo.updateInfo(transactionID, currLSN);
+                        walReader.movePosition(1);
+                        break;
+
+                    case COMMIT_TXN:
+                    case ABORT_TXN:
+                        if (beforeCheckpoint) {
+                            walReader.movePosition(7);
+                            break;
+                        }
+
+                        // If we got here, transaction must've been marked as
+                        // incomplete at some point before this.
+                        if (recoveryInfo.isTxnComplete(transactionID)) {
+                            throw new WALFileException(String.format(
+                                    "Encountered a commit/abort WAL record before" +
+                                            " transaction %d was even started!",
+                                    transactionID));
+                        }
+
+                        recoveryInfo.recordTxnCompleted(transactionID);
+                        walReader.movePosition(7);
+                        break;
+
+                    case UPDATE_PAGE:
+                    case UPDATE_PAGE_REDO_ONLY:
+                        if (!beforeCheckpoint) {
+                            // If we got here, transaction must've been marked
+                            // as incomplete at some point before this.
+                            if (recoveryInfo.isTxnComplete(transactionID)) {
+                                throw new WALFileException(String.format(
+                                        "Encountered a commit/abort WAL record before" +
+                                                " transaction %d was even started!",
+                                        transactionID));
+                            }
+
+                            recoveryInfo.updateInfo(transactionID, currLSN);
+                        }
+
+                        // Skip info about previous LSN WAL file
+                        walReader.movePosition(6);
+
+                        // Read relevant data from file
+                        String filename = walReader.readVarString255();
+                        int pageNo = readPageNo(walReader);
+                        short numSegments = walReader.readShort();
+
+                        // Redo changes, record recovery info.  Changes that
+                        // the checkpoint shows are on disk are skipped.
+                        if (recoveryInfo.needsRedo(filename, pageNo, currLSN)) {
+                            redoPage(parallelRedo, PageRedo.readUpdate(type,
+                                walReader, currLSN, filename, pageNo, numSegments));
+                        }
+                        else {
+                            skipRedo(type, walReader, numSegments);
+                        }
+
+                        // Skip trailing meta data
+                        walReader.movePosition(5);
+                        break;
+
+                    case NEW_PAGE_REDO_ONLY:
+                        if (!beforeCheckpoint) {
+                            if (recoveryInfo.isTxnComplete(transactionID)) {
+                                throw new WALFileException(String.format(
+                                        "Encountered a commit/abort WAL record before" +
+                                                " transaction %d was even started!",
+                                        transactionID));
+                            }
+
+                            recoveryInfo.updateInfo(transactionID, currLSN);
+                        }
+
+                        // Skip info about previous LSN WAL file
+                        walReader.movePosition(6);
+
+                        String newPageFilename = walReader.readVarString255();
+                        int newPageNo = readPageNo(walReader);
+
+                        // The page may never have been written to the data file,
+                        // so create it if it doesn't exist.
+                        DBFile newPageFile = storageManager.openDBFile(newPageFilename);
+                        if (recoveryInfo.needsRedo(newPageFilename, newPageNo, currLSN)) {
+                            redoPage(parallelRedo, PageRedo.readNewPage(walReader,
+                                currLSN, newPageFilename, newPageNo,
+                                newPageFile.getPageSize()));
+                        }
+                        else {
+                            // Skip the hole's start, and the page image.
+                            walReader.movePosition(4);
+                            int holeLength = walReader.readInt();
+                            walReader.movePosition(
+                                newPageFile.getPageSize() - holeLength);
+                        }
+
+                        // Skip trailing meta data
+                        walReader.movePosition(5);
+                        break;
+
+                    case CHECKPOINT:
+                        // The checkpoint that recovery starts from has
+                        // already been read, so just move past the record.
+                        readCheckpointBody(walReader, currLSN);
+                        break;
+
+                    default:
+                        throw new WALFileException(
+                                "Encountered unrecognized WAL record type " +
+                                        type + " at LSN " + currLSN +
+                                        " during redo processing!");
+                }
 
-                default:
-                    throw new WALFileException(
-                            "Encountered unrecognized WAL record type " +
-                                    type + " at LSN " + currLSN +
-                                    " during redo processing!");
+                oldLSN = currLSN;
+                currLSN = computeNextLSN(currLSN.getLogFileNo(), walReader.getPosition());
             }
 
-            oldLSN = currLSN;
-            currLSN = computeNextLSN(currLSN.getLogFileNo(), walReader.getPosition());
+            // Undo processing must see every page with its changes redone.
+            if (parallelRedo != null)
+                parallelRedo.finish();
+        }
+        finally {
+            if (parallelRedo != null)
+                parallelRedo.stop();
+
+            if (walReader != null)
+                walReader.close();
         }
 
         if (currLSN.compareTo(recoveryInfo.nextLSN) != 0) {
@@ -344,201 +614,344 @@ public class WALManager {
         logger.debug("Starting undo processing at " + currLSN);
 
         LogSequenceNumber oldLSN = null;
-        DBFileReader walReader = null;
-        while (recoveryInfo.hasIncompleteTxns()) {
-            // Compute LSN of previous WAL record.  Start by getting the last
-            // byte of the previous WAL record.
-            int logFileNo = currLSN.getLogFileNo();
-            int fileOffset = currLSN.getFileOffset();
-
-            logger.debug("Finding record that comes before " + currLSN);
-
-            // Wrap to the previous WAL file if necessary, and if there is one.
-            if (fileOffset == OFFSET_FIRST_RECORD) {
-                // Need to read the "previous WAL file's last offset" value
-                // from the current WAL file.
-                walReader = getWALFileReader(currLSN);
-                walReader.setPosition(OFFSET_PREV_FILE_END);
-                int prevFileEndOffset = walReader.readInt();
-                if (prevFileEndOffset == 0) {
-                    logger.debug("Reached the very start of the write-ahead log!");
+        WALFileReader walReader = null;
+        try {
+            while (recoveryInfo.hasIncompleteTxns()) {
+                // Compute LSN of previous WAL record.  Start by getting the last
+                // byte of the previous WAL record.
+                int logFileNo = currLSN.getLogFileNo();
+                int fileOffset = currLSN.getFileOffset();
+
+                logger.debug("Finding record that comes before " + currLSN);
+
+                // Wrap to the previous WAL file if necessary, and if there is one.
+                if (fileOffset == OFFSET_FIRST_RECORD) {
+                    // Need to read the "previous WAL file's last offset" value
+                    // from the current WAL file.  If nothing has been written
+                    // to the current WAL file yet, the previous file simply
+                    // ends where its last record ends.
+                    int prevFileEndOffset;
+                    try {
+                        walReader = getWALFileReader(walReader, currLSN);
+                        walReader.setPosition(OFFSET_PREV_FILE_END);
+                        prevFileEndOffset = walReader.readInt();
+                    }
+                    catch (FileNotFoundException e) {
+                        walReader = null;
+                        LogSequenceNumber prevFileEnd = findPrevFileEnd(logFileNo);
+                        prevFileEndOffset =
+                            (prevFileEnd != null ? prevFileEnd.getFileOffset() : 0);
+                    }
+
+                    if (prevFileEndOffset == 0) {
+                        logger.debug("Reached the very start of the write-ahead log!");
+                        break;
+                    }
+
+                    // Need to go back to the previous WAL file.
+                    logFileNo--;
+                    if (logFileNo < 0)  // Did we wrap around?
+                        logFileNo = MAX_WAL_FILE_NUMBER;
+
+                    currLSN = new LogSequenceNumber(logFileNo, prevFileEndOffset);
+                    fileOffset = currLSN.getFileOffset();
+                }
+                else if (fileOffset < OFFSET_FIRST_RECORD) {
+                    // This would be highly unusual, but would indicate either a
+                    // bug in the undo record-traversal, or a corrupt WAL file.
+                    throw new WALFileException(String.format("Overshot the start " +
+                        "of WAL file %d's records; ended up at file-position %d",
+                        logFileNo, fileOffset));
+                }
+
+                if (currLSN.compareTo(recoveryInfo.undoLSN) <= 0)
                     break;
+
+                if (walReader == null || walReader.getFileNo() != logFileNo)
+                    walReader = getWALFileReader(walReader, currLSN);
+                else
+                    walReader.setPosition(currLSN.getFileOffset());
+
+                // Move backward one byte in the WAL file to read the previous
+                // record's type ID.
+                walReader.movePosition(-1);
+                byte typeID = walReader.readByte();
+                WALRecordType type = WALRecordType.valueOf(typeID);
+
+                if (type == null) {
+                    throw new WALFileException(
+                            "Missing type info while undoing record during undo.");
                 }
 
-                // Need to go back to the previous WAL file.
-                logFileNo--;
-                if (logFileNo < 0)  // Did we wrap around?
-                    logFileNo = MAX_WAL_FILE_NUMBER;
+                // Compute the start of the previous record based on its type and
+                // other details.
+                int startOffset;
+                switch (type) {
+                case START_TXN:
+                    // Type (1B) + TransactionID (4B) + Type (1B) = 6 bytes
+                    startOffset = fileOffset - 6;
+                    break;
 
-                currLSN = new LogSequenceNumber(logFileNo, prevFileEndOffset);
-                fileOffset = currLSN.getFileOffset();
-            }
-            else if (fileOffset < OFFSET_FIRST_RECORD) {
-                // This would be highly unusual, but would indicate either a
-                // bug in the undo record-traversal, or a corrupt WAL file.
-                throw new WALFileException(String.format("Overshot the start " +
-                    "of WAL file %d's records; ended up at file-position %d",
-                    logFileNo, fileOffset));
-            }
+                case COMMIT_TXN:
+                case ABORT_TXN:
+                    // Type (1B) + TransactionID (4B) + PrevLSN (2B+4B) + Type (1B)
+                    // = 12 bytes
+                    startOffset = fileOffset - 12;
+                    break;
 
-            if (currLSN.compareTo(recoveryInfo.firstLSN) <= 0)
-                break;
+                case UPDATE_PAGE:
+                case UPDATE_PAGE_REDO_ONLY:
+                case NEW_PAGE_REDO_ONLY:
+                case CHECKPOINT:
+                    // For these records, the WAL record's start offset is stored
+                    // immediately before the last type-byte.  We go back 5 bytes
+                    // because reading the type ID moves the position forward by
+                    // 1 byte, and then we also have to get to the start of the
+                    // 4-byte starting offset.
+                    walReader.movePosition(-5);
+                    startOffset = walReader.readInt();
+                    break;
 
-            if (oldLSN == null || oldLSN.getLogFileNo() != logFileNo)
-                walReader = getWALFileReader(currLSN);
-            else
-                walReader.setPosition(currLSN.getFileOffset());
+                default:
+                    throw new WALFileException(
+                        "Encountered unrecognized WAL record type " + type +
+                            " at LSN " + currLSN + " during redo processing!");
+                }
 
-            // Move backward one byte in the WAL file to read the previous
-            // record's type ID.
-            walReader.movePosition(-1);
-            byte typeID = walReader.readByte();
-            WALRecordType type = WALRecordType.valueOf(typeID);
+                // Construct a new LSN pointing to the previous record.  If this
+                // happens to be before the range that we are using for recovery,
+                // we're done with undo-processing.
+                currLSN = new LogSequenceNumber(logFileNo, startOffset);
+                if (currLSN.compareTo(recoveryInfo.undoLSN) < 0)
+                    break;
 
-            if (type == null) {
-                throw new WALFileException(
-                        "Missing type info while undoing record during undo.");
-            }
+                // Skip over the "record type" byte, which is at startOffset.
+                // This sets up to read the transaction ID, next.
+                walReader.setPosition(startOffset + 1);
+
+                // Read the transaction ID.
+                int transactionID = walReader.readInt();
+                if (recoveryInfo.isTxnComplete(transactionID)) {
+                    // The current transaction is already completed, so skip the
+                    // record.
+                    oldLSN = currLSN;
+                    continue;
+                }
 
-            // Compute the start of the previous record based on its type and
-            // other details.
-            int startOffset;
-            switch (type) {
-            case START_TXN:
-                // Type (1B) + TransactionID (4B) + Type (1B) = 6 bytes
-                startOffset = fileOffset - 6;
-                break;
-
-            case COMMIT_TXN:
-            case ABORT_TXN:
-                // Type (1B) + TransactionID (4B) + PrevLSN (2B+4B) + Type (1B)
-                // = 12 bytes
-                startOffset = fileOffset - 12;
-                break;
-
-            case UPDATE_PAGE:
-            case UPDATE_PAGE_REDO_ONLY:
-                // For these records, the WAL record's start offset is stored
-                // immediately before the last type-byte.  We go back 5 bytes
-                // because reading the type ID moves the position forward by
-                // 1 byte, and then we also have to get to the start of the
-                // 4-byte starting offset.
-                walReader.movePosition(-5);
-                startOffset = walReader.readInt();
-                break;
-
-            default:
-                throw new WALFileException(
-                    "Encountered unrecognized WAL record type " + type +
-                        " at LSN " + currLSN + " during redo processing!");
-            }
+                // Undo specific operations.  Note that we don't have to set the
+                // reader's position to anything special at the end of each record,
+                // since the above code will always properly move to the appropriate
+                // position for the previous record, based on the value of currLSN.
 
-            // Construct a new LSN pointing to the previous record.  If this
-            // happens to be before the range that we are using for recovery,
-            // we're done with undo-processing.
-            currLSN = new LogSequenceNumber(logFileNo, startOffset);
-            if (currLSN.compareTo(recoveryInfo.firstLSN) < 0)
-                break;
+                logger.debug(String.format(
+                    "Undo:  examining WAL record at %s.  Type = %s, TxnID = %d",
+                    currLSN, type, transactionID));
 
-            // Skip over the "record type" byte, which is at startOffset.
-            // This sets up to read the transaction ID, next.
-            walReader.setPosition(startOffset + 1);
+                switch (type) {
+                    case COMMIT_TXN:
+                    case ABORT_TXN:
+                        throw new WALFileException(String.format(
+                                "Encountered a commit/abort WAL record for an " +
+                                        "incomplete transaction %d!",
+                                transactionID));
 
-            // Read the transaction ID.
-            int transactionID = walReader.readInt();
-            if (recoveryInfo.isTxnComplete(transactionID)) {
-                // The current transaction is already completed, so skip the
-                // record.
-                oldLSN = currLSN;
-                continue;
-            }
+                    case UPDATE_PAGE_REDO_ONLY:
+                        // Ignore.
+                        break;
 
-            // Undo specific operations.  Note that we don't have to set the
-            // reader's position to anything special at the end of each record,
-            // since the above code will always properly move to the appropriate
-            // position for the previous record, based on the value of currLSN.
+                    case START_TXN:
+                        recoveryInfo.recordTxnCompleted(transactionID);
+                        break;
 
-            logger.debug(String.format(
-                "Undo:  examining WAL record at %s.  Type = %s, TxnID = %d",
-                currLSN, type, transactionID));
+                    case UPDATE_PAGE:
 
-            switch (type) {
-                case COMMIT_TXN:
-                case ABORT_TXN:
-                    throw new WALFileException(String.format(
-                            "Encountered a commit/abort WAL record for an " +
-                                    "incomplete transaction %d!",
-                            transactionID));
+                        // Skip info about previous LSN WAL file
+                        walReader.movePosition(6);
 
-                case UPDATE_PAGE_REDO_ONLY:
-                    // Ignore.
-                    break;
+                        // Read relevant data from file
+                        String filename = walReader.readVarString255();
+                        int pageNo = readPageNo(walReader);
+                        short numSegments = walReader.readShort();
 
-                case START_TXN:
-                    recoveryInfo.recordTxnCompleted(transactionID);
-                    break;
+                        // Rollback changes
+                        DBFile dbFile = storageManager.openDBFile(filename);
+                        DBPage page = storageManager.loadDBPage(dbFile, pageNo);
+                        byte[] changes =
+                                applyUndoAndGenRedoOnlyData(walReader, page, numSegments);
 
-                case UPDATE_PAGE:
+                        // TODO: Use a different transaction ID here?
+                        LogSequenceNumber lsn = writeRedoOnlyUpdatePageRecord(
+                                transactionID, recoveryInfo.incompleteTxns.get(transactionID),
+                                page, numSegments, changes);
 
-                    // Skip info about previous LSN WAL file
-                    walReader.movePosition(6);
+                        break;
 
-                    // Read relevant data from file
-                    String filename = walReader.readVarString255();
-                    short pageNo = walReader.readShort();
-                    short numSegments = walReader.readShort();
+                    case NEW_PAGE_REDO_ONLY:
 
-                    // Rollback changes
-                    DBFile dbFile = storageManager.openDBFile(filename);
-                    DBPage page = storageManager.loadDBPage(dbFile, pageNo);
-                    byte[] changes =
-                            applyUndoAndGenRedoOnlyData(walReader, page, numSegments);
+                        // Skip info about previous LSN WAL file
+                        walReader.movePosition(6);
 
-                    // TODO: Use a different transaction ID here?
-                    LogSequenceNumber lsn = writeRedoOnlyUpdatePageRecord(
-                            transactionID, recoveryInfo.incompleteTxns.get(transactionID),
-                            page, numSegments, changes);
+                        String newPageFilename = walReader.readVarString255();
+                        int newPageNo = readPageNo(walReader);
 
-                    break;
+                        // Clear the page, since it held no data before the
+                        // transaction added it.
+                        DBFile newPageFile = storageManager.openDBFile(newPageFilename);
+                        DBPage newPage =
+                            storageManager.loadDBPage(newPageFile, newPageNo, true);
+                        ByteArrayOutputStream clearData = new ByteArrayOutputStream();
+                        int numClearSegments = applyNewPageUndoAndGenRedoOnlyData(
+                                walReader, newPage, clearData);
 
-                default:
-                    throw new WALFileException(
-                            "Encountered unrecognized WAL record type " +
-                                    type + " at LSN " + currLSN +
-                                    " during undo processing!");
-            }
+                        writeRedoOnlyUpdatePageRecord(transactionID,
+                                recoveryInfo.incompleteTxns.get(transactionID),
+                                newPage, numClearSegments, clearData.toByteArray());
+
+                        break;
 
-            // TODO:  IMPLEMENT THE REST
-            //
-            //        Use logging statements liberally to help verify and
-            //        debug your work.
-            //
-            //        If you encounter invalid WAL contents, throw a
-            //        WALFileException to indicate the problem immediately.
-            //
-            //        You can use Java enums in a switch statement, like this:
-            //
-            //            switch (type) {
-            //            case START_TXN:
-            //                ...
-            //
-            //            case COMMIT_TXN:
-            //                ...
-            //
-            //            default:
-            //                throw new WALFileException(
-            //                    "Encountered unrecognized WAL record type " +
-            //                    type + " at LSN " + currLSN +
-            //                    " during undo processing!");
-            //            }
-
-            oldLSN = currLSN;
+                    default:
+                        throw new WALFileException(
+                                "Encountered unrecognized WAL record type " +
+                                        type + " at LSN " + currLSN +
+                                        " during undo processing!");
+                }
+
+                // TODO:  IMPLEMENT THE REST
+                //
+                //        Use logging statements liberally to help verify and
+                //        debug your work.
+                //
+                //        If you encounter invalid WAL contents, throw a
+                //        WALFileException to indicate the problem immediately.
+                //
+                //        You can use Java enums in a switch statement, like this:
+                //
+                //            switch (type) {
+                //            case START_TXN:
+                //                ...
+                //
+                //            case COMMIT_TXN:
+                //                ...
+                //
+                //            default:
+                //                throw new WALFileException(
+                //                    "Encountered unrecognized WAL record type " +
+                //                    type + " at LSN " + currLSN +
+                //                    " during undo processing!");
+                //            }
+
+                oldLSN = currLSN;
+            }
+        }
+        finally {
+            if (walReader != null)
+                walReader.close();
         }
 
         logger.debug("Undo processing is complete.");
     }
 
 
+    /**
+     * If the WAL file that the next record would be written to was written
+     * in an older format version, this method moves the next LSN to the
+     * start of the following WAL file.  That way, records of different format
+     * versions are never mixed in the same WAL file, and the older WAL files
+     * can still be read based on their own format versions.
+     *
+     * @return the end of the last record in the older WAL file, if the next
+     *         LSN was moved, or <tt>null</tt> if it wasn't
+     *
+     * @throws IOException if the WAL file can't be opened
+     */
+    private LogSequenceNumber skipOldFormatWALFile() throws IOException {
+        int formatVersion;
+        try (WALFileReader walReader = openWALFile(nextLSN.getLogFileNo())) {
+            formatVersion = walReader.getFormatVersion();
+        }
+        catch (FileNotFoundException e) {
+            // The next record will go into a new WAL file anyway.
+            return null;
+        }
+
+        if (formatVersion == DBFile.CURRENT_FORMAT_VERSION)
+            return null;
+
+        int fileNo = nextLSN.getLogFileNo() + 1;
+        if (fileNo > MAX_WAL_FILE_NUMBER)
+            fileNo = 0;
+
+        logger.info(String.format("WAL file %s is in format version %d; " +
+            "new records will start in WAL file %s",
+            getWALFileName(nextLSN.getLogFileNo()), formatVersion,
+            getWALFileName(fileNo)));
+
+        LogSequenceNumber prevFileEnd = nextLSN;
+        nextLSN = new LogSequenceNumber(fileNo, OFFSET_FIRST_RECORD);
+        return prevFileEnd;
+    }
+
+
+    /**
+     * Starts the WAL writer at the next LSN, once recovery has read the log,
+     * moving the next LSN to a new WAL file first if the current one is in
+     * an older format version.  If the next record starts a new WAL file,
+     * the writer is told where the previous file ends, so that the new
+     * file's header records it.
+     *
+     * @throws IOException if the WAL files can't be examined
+     */
+    private void startWriter() throws IOException {
+        LogSequenceNumber prevFileEnd = skipOldFormatWALFile();
+        if (prevFileEnd == null && nextLSN.getFileOffset() == OFFSET_FIRST_RECORD)
+            prevFileEnd = findPrevFileEnd(nextLSN.getLogFileNo());
+
+        logWriter.start(nextLSN, prevFileEnd);
+    }
+
+
+    /**
+     * Returns the end of the WAL file before the specified WAL file, when
+     * records reached the end of that file and moved on to the specified
+     * one.  Since WAL files are written sequentially, and are truncated when
+     * they are reused, the previous file ends where its last record ends.
+     *
+     * @param fileNo the number of a WAL file
+     *
+     * @return the end of the previous WAL file, or <tt>null</tt> if there is
+     *         no previous WAL file
+     */
+    private LogSequenceNumber findPrevFileEnd(int fileNo) {
+        int prevFileNo = (fileNo == 0 ? MAX_WAL_FILE_NUMBER : fileNo - 1);
+        File prevFile = new File(storageManager.getBaseDir(),
+            getWALFileName(prevFileNo));
+
+        long length = prevFile.length();
+        if (length <= OFFSET_FIRST_RECORD)
+            return null;
+
+        return new LogSequenceNumber(prevFileNo, (int) length);
+    }
+
+
+    /**
+     * Reads the page number of an update record.  WAL files written before
+     * format version 1 store page numbers as unsigned shorts.
+     *
+     * @param walReader the reader to read the page number from
+     *
+     * @return the page number of the update record
+     *
+     * @throws IOException if the page number can't be read
+     */
+    private static int readPageNo(WALFileReader walReader) throws IOException {
+        if (walReader.getFormatVersion() >= 1)
+            return walReader.readInt();
+        else
+            return walReader.readUnsignedShort();
+    }
+
+
     /**
      * This static helper function takes the file number of a WAL file, and
      * the offset in the WAL file where the next write-ahead log record would
@@ -570,55 +983,17 @@ public class WALManager {
 
     /**
      * This method opens the WAL file specified in the passed-in Log Sequence
-     * Number, wraps it with a {@link DBFileWriter} so that it can be read and
-     * written, and then seeks to the specified file offset.
-     *
-     * Because we are writing, the file may not yet exist.  In that case, this
-     * method will also create a new WAL file for the specified file number,
-     * initializing it with the proper values, and then seeking to the location
-     * where the first WAL record may be written.
-     *
-     * @param lsn The log sequence number specifying the WAL file and the offset
-     *            in the WAL file to go to.
-     *
-     * @return the WAL file, with the file position moved to the specified
-     *         offset.
-     *
-     * @throws IOException if the corresponding WAL file cannot be opened, or
-     *         if some other IO error occurs.
-     */
-    private DBFileWriter getWALFileWriter(LogSequenceNumber lsn)
-        throws IOException {
-
-        int fileNo = lsn.getLogFileNo();
-        int offset = lsn.getFileOffset();
-
-        DBFile walFile;
-        try {
-            walFile = openWALFile(fileNo);
-        }
-        catch (FileNotFoundException e) {
-            logger.debug("WAL file doesn't exist!  WAL is expanding into a new file.");
-            walFile = createWALFile(fileNo);
-            // TODO:  Write the previous WAL file's last file-offset into the new WAL file's start.
-        }
-
-        DBFileWriter writer = new DBFileWriter(walFile, storageManager);
-        writer.setPosition(offset);
-
-        return writer;
-    }
-
-
-    /**
-     * This method opens the WAL file specified in the passed-in Log Sequence
-     * Number, wraps it with a {@link DBFileReader} so that it can be read from,
-     * and then seeks to the specified file offset.
+     * Number for reading, and then seeks to the specified file offset.  If a
+     * reader is passed in, it is closed first, since the caller is moving on
+     * to another WAL file.
      *
      * Since we are reading, the expectation is that the file already
      * exists, so a {@link java.io.FileNotFoundException} will be thrown if it
      * does not exist.
      *
+     * @param oldReader the reader of the WAL file that was being read, or
+     *        {@code null} if no WAL file was being read
+     *
      * @param lsn The log sequence number specifying the WAL file and the offset
      *            in the WAL file to go to.
      *
@@ -628,15 +1003,14 @@ public class WALManager {
      * @throws IOException if an IO error occurs while opening the WAL file,
      *         such as the required file not actually existing.
      */
-    private DBFileReader getWALFileReader(LogSequenceNumber lsn)
-        throws IOException {
+    private WALFileReader getWALFileReader(WALFileReader oldReader,
+        LogSequenceNumber lsn) throws IOException {
 
-        int fileNo = lsn.getLogFileNo();
-        int offset = lsn.getFileOffset();
+        if (oldReader != null)
+            oldReader.close();
 
-        DBFile walFile = openWALFile(fileNo);
-        DBFileReader reader = new DBFileReader(walFile, storageManager);
-        reader.setPosition(offset);
+        WALFileReader reader = openWALFile(lsn.getLogFileNo());
+        reader.setPosition(lsn.getFileOffset());
 
         return reader;
     }
@@ -670,7 +1044,7 @@ public class WALManager {
      *         it isn't one of the values {@link WALRecordType#START_TXN},
      *         {@link WALRecordType#COMMIT_TXN}, or {@link WALRecordType#ABORT_TXN}.
      */
-    public LogSequenceNumber writeTxnRecord(WALRecordType type,
+    public synchronized LogSequenceNumber writeTxnRecord(WALRecordType type,
         int transactionID, LogSequenceNumber prevLSN) throws IOException {
 
         if (type != WALRecordType.START_TXN &&
@@ -693,7 +1067,8 @@ public class WALManager {
 
         // Record the WAL record.  First thing to do:  figure out where it goes.
 
-        DBFileWriter walWriter = getWALFileWriter(lsn);
+        WALRecordBuilder walWriter = walRecord;
+        walWriter.reset(lsn.getFileOffset());
 
         walWriter.writeByte(type.getID());
         walWriter.writeInt(transactionID);
@@ -713,6 +1088,7 @@ public class WALManager {
             lsn.setRecordSize(12);
         }
 
+        logWriter.append(lsn, walWriter);
         nextLSN = computeNextLSN(nextLSN.getLogFileNo(), walWriter.getPosition());
         logger.debug("Next-LSN value is now " + nextLSN);
 
@@ -725,7 +1101,8 @@ public class WALManager {
      * ({@link WALRecordType#START_TXN}, {@link WALRecordType#COMMIT_TXN}, or
      * {@link WALRecordType#ABORT_TXN}) to the write-ahead log.  The transaction
      * state is retrieved from thread-local storage so that it doesn't need to
-     * be passed.
+     * be passed.  The transaction is also added to, or removed from, the
+     * transactions that checkpoints record as active.
      *
      * @param type The type of the transaction demarcation to write, one of the
      *        values {@link WALRecordType#START_TXN}, {@link WALRecordType#COMMIT_TXN},
@@ -740,7 +1117,7 @@ public class WALManager {
      *         it isn't one of the values {@link WALRecordType#START_TXN},
      *         {@link WALRecordType#COMMIT_TXN}, or {@link WALRecordType#ABORT_TXN}.
      */
-    public LogSequenceNumber writeTxnRecord(WALRecordType type)
+    public synchronized LogSequenceNumber writeTxnRecord(WALRecordType type)
         throws IOException {
 
         // Retrieve and verify the transaction state.
@@ -750,10 +1127,18 @@ public class WALManager {
                 "No transaction is currently in progress!");
         }
 
-        LogSequenceNumber lsn = writeTxnRecord(type, txnState.getTransactionID(),
+        int transactionID = txnState.getTransactionID();
+        LogSequenceNumber lsn = writeTxnRecord(type, transactionID,
             txnState.getLastLSN());
 
         txnState.setLastLSN(lsn);
+        if (type == WALRecordType.START_TXN) {
+            txnState.setFirstLSN(lsn);
+            activeTxns.put(transactionID, txnState);
+        }
+        else {
+            activeTxns.remove(transactionID);
+        }
 
         return lsn;
     }
@@ -773,7 +1158,7 @@ public class WALManager {
      * @throws IllegalArgumentException if <tt>dbPage</tt> is <tt>null</tt>, or
      *         if it shows no updates.
      */
-    public LogSequenceNumber writeUpdatePageRecord(DBPage dbPage)
+    public synchronized LogSequenceNumber writeUpdatePageRecord(DBPage dbPage)
         throws IOException {
 
         if (dbPage == null)
@@ -796,7 +1181,8 @@ public class WALManager {
 
         // Record the WAL record.  First thing to do:  figure out where it goes.
 
-        DBFileWriter walWriter = getWALFileWriter(lsn);
+        WALRecordBuilder walWriter = walRecord;
+        walWriter.reset(lsn.getFileOffset());
 
         walWriter.writeByte(WALRecordType.UPDATE_PAGE.getID());
         walWriter.writeInt(txnState.getTransactionID());
@@ -808,7 +1194,7 @@ public class WALManager {
 
         // Store the filename and page number that is being updated.
         walWriter.writeVarString255(dbPage.getDBFile().getDataFile().getName());
-        walWriter.writeShort(dbPage.getPageNo());
+        walWriter.writeInt(dbPage.getPageNo());
 
         // This offset is where we will store the number of data segments we
         // need to record.  We don't know the value until later, so remember
@@ -816,49 +1202,40 @@ public class WALManager {
         int segCountOffset = walWriter.getPosition();
         walWriter.writeShort(-1);
         
-        byte[] oldData = dbPage.getOldPageData();
-        byte[] newData = dbPage.getPageData();
-        int pageSize = dbPage.getPageSize();
+        // Each byte-range that was changed in the page becomes a segment.
+        // The page recorded each range's old data before changing it, so
+        // there is no need to compare the entire page against a copy of its
+        // old contents.
+        ByteBuffer newData = dbPage.getPageBuffer();
 
         // DEBUG:  Show changes from old version of page to new version of page.
         // logger.debug("DBPage changes:\n" + dbPage.getChangesAsString());
 
         int numSegments = 0;
-        int index = 0;
-        while (index < pageSize) {
-            logger.debug("Skipping identical bytes starting at index " + index);
-            
-            // Skip data until we find stuff that's different.
-            index += ArrayUtil.sizeOfIdenticalRange(oldData, newData, index);
-            assert index <= pageSize;
-            if (index == pageSize)
-                break;
-
-            logger.debug("Recording changed bytes starting at index " + index);
-
-            // Find out how much data is actually changed.  We lump in small
-            // runs of unchanged data just to make things more efficient.
-            int size = 0;
-            while (index + size < pageSize) {
-                size += ArrayUtil.sizeOfDifferentRange(oldData, newData,
-                    index + size);
-                assert index + size <= pageSize;
-                if (index + size == pageSize)
-                    break;
-
-                // If there are 4 or less identical bytes after the different
-                // bytes, include them in this segment.
-                int sameSize = ArrayUtil.sizeOfIdenticalRange(oldData, newData,
-                    index + size);
-
-                if (sameSize > 4 || index + size + sameSize == pageSize)
-                    break;
+        for (DirtyRanges.Range range : dbPage.getDirtyRanges()) {
+            byte[] oldSegment = range.getOldData();
+            byte[] newSegment = new byte[oldSegment.length];
+            newData.position(range.getStart());
+            newData.get(newSegment);
+
+            // A range may have been overwritten with the same values it held
+            // before, so trim off unchanged bytes at either end, and skip
+            // the range entirely if nothing in it changed.
+            int first = 0;
+            int last = oldSegment.length;
+            while (first < last && oldSegment[first] == newSegment[first])
+                first++;
+            while (last > first && oldSegment[last - 1] == newSegment[last - 1])
+                last--;
+
+            if (first == last)
+                continue;
 
-                size += sameSize;
-            }
+            int index = range.getStart() + first;
+            int size = last - first;
 
-            logger.debug("Found " + size + " changed bytes starting at index " +
-                index);
+            logger.debug("Recording " + size +
+                " changed bytes starting at index " + index);
 
             // Write the starting index within the page, and the amount of
             // data that will be recorded at that index.
@@ -866,14 +1243,11 @@ public class WALManager {
             walWriter.writeShort(size);
 
             // Write the old data (undo), and then the new data (redo).
-            walWriter.write(oldData, index, size);
-            walWriter.write(newData, index, size);
+            walWriter.write(oldSegment, first, size);
+            walWriter.write(newSegment, first, size);
 
             numSegments++;
-
-            index += size;
         }
-        assert index == pageSize;
 
         // Now that we know how many segments were recorded, store that value
         // at the appropriate location.
@@ -891,12 +1265,13 @@ public class WALManager {
         // Store the LSN of the change on the page.
         lsn.setRecordSize(walWriter.getPosition() - lsn.getFileOffset());
         dbPage.setPageLSN(lsn);
-        dbPage.syncOldPageData();
+        dbPage.clearDirtyRanges();
 
         // Since we issued a new write-ahead log record for the current
         // transaction, update the "last LSN" value for the transaction.
         txnState.setLastLSN(lsn);
 
+        logWriter.append(lsn, walWriter);
         nextLSN = computeNextLSN(nextLSN.getLogFileNo(), walWriter.getPosition());
 
         return lsn;
@@ -904,49 +1279,51 @@ public class WALManager {
 
 
     /**
-     * This helper function writes a sequence of redo-segments from an
-     * {@link WALRecordType#UPDATE_PAGE} or
-     * {@link WALRecordType#UPDATE_PAGE_REDO_ONLY} record.  Note that the
-     * {@code walReader} argument is expected to be positioned at the start of
-     * the segments containing the old and new versions of the page data (or
-     * just the new versions, for redo-only records).  Additionally, the
-     * reader position will be advanced by this method.
+     * This helper method redoes the changes read from a record, either in
+     * the current thread, or by handing them to the parallel redo workers.
      *
-     * @param type The record type, either {@link WALRecordType#UPDATE_PAGE}
-     *        or {@link WALRecordType#UPDATE_PAGE_REDO_ONLY}.
+     * @param parallelRedo the parallel redo workers, or <tt>null</tt> if
+     *        changes are redone in the current thread
      *
-     * @param walReader A reader positioned at the start of the redo/undo data
-     *        to apply to the data page.  This method will advance the reader's
-     *        position past this redo/undo data.
+     * @param redo the changes to redo
      *
-     * @param dbPage the page that the redo should be applied to
-     * @param numSegments the number of segments containing redo[/undo] data;
-     *        this value is expected to already be unpacked from the log record
-     * @throws IOException
+     * @throws IOException if an IO error occurs while redoing the changes,
+     *         or if a parallel redo worker failed
      */
-    private void applyRedo(WALRecordType type, DBFileReader walReader,
-                           DBPage dbPage, int numSegments) throws IOException {
+    private void redoPage(ParallelRedo parallelRedo, PageRedo redo)
+        throws IOException {
 
-        if (type != WALRecordType.UPDATE_PAGE &&
-            type != WALRecordType.UPDATE_PAGE_REDO_ONLY) {
-            throw new IllegalArgumentException("This method can only be " +
-                "used with UPDATE_PAGE and UPDATE_PAGE_REDO_ONLY records.");
-        }
+        if (parallelRedo != null)
+            parallelRedo.submit(redo);
+        else
+            redo.redo(storageManager);
+    }
+
+
+    /**
+     * This helper method moves past the redo/undo data of an update record
+     * whose changes don't need to be redone.
+     *
+     * @param type the type of the update record
+     *
+     * @param walReader A reader positioned at the start of the redo/undo
+     *        data.  This method will advance the reader's position past this
+     *        data.
+     *
+     * @param numSegments the number of segments in the redo/undo data
+     *
+     * @throws IOException if an IO error occurs while reading the record
+     */
+    private void skipRedo(WALRecordType type, WALFileReader walReader,
+                          int numSegments) throws IOException {
 
         for (int iSeg = 0; iSeg < numSegments; iSeg++) {
-            // Write the starting index within the page, and the amount of
-            // data that will be recorded at that index.
-            int index = walReader.readUnsignedShort();
+            walReader.movePosition(2);
             int size = walReader.readUnsignedShort();
-
-            // If it's an UPDATE_PAGE record, skip over the undo data.
             if (type == WALRecordType.UPDATE_PAGE)
-                walReader.movePosition(size);
+                size *= 2;
 
-            // Write the redo data into the page.
-            byte[] redoData = new byte[size];
-            walReader.read(redoData);
-            dbPage.write(index, redoData);
+            walReader.movePosition(size);
         }
     }
 
@@ -971,7 +1348,7 @@ public class WALManager {
      * @throws IOException if an IO error occurs while applying the undo
      *         operation
      */
-    private byte[] applyUndoAndGenRedoOnlyData(DBFileReader walReader,
+    private byte[] applyUndoAndGenRedoOnlyData(WALFileReader walReader,
         DBPage dbPage, int numSegments) throws IOException {
 
         ByteArrayOutputStream redoOnlyBAOS = new ByteArrayOutputStream();
@@ -1002,6 +1379,156 @@ public class WALManager {
     }
 
 
+    /**
+     * This method writes a redo-only new-page record to the write-ahead log,
+     * which holds the entire contents of a page that the current transaction
+     * added to the end of a file.  This is much cheaper than logging each
+     * change to a freshly filled page with its own update record, and since
+     * the page held no data before the transaction, no undo data is needed.
+     * The caller must only use this method for pages that were empty before
+     * the transaction started.
+     *
+     * @param dbPage The new page whose contents are to be recorded in the log.
+     *
+     * @return the Log Sequence Number of the WAL record that was written
+     *
+     * @throws IOException if the write-ahead log cannot be updated for some
+     *         reason.
+     *
+     * @throws IllegalArgumentException if <tt>dbPage</tt> is <tt>null</tt>, or
+     *         if it shows no updates.
+     */
+    public synchronized LogSequenceNumber writeNewPageRecord(DBPage dbPage)
+        throws IOException {
+
+        if (dbPage == null)
+            throw new IllegalArgumentException("dbPage must be specified");
+
+        if (!dbPage.isDirty())
+            throw new IllegalArgumentException("dbPage has no updates to store");
+
+        // Retrieve and verify the transaction state.
+        TransactionState txnState = SessionState.get().getTxnState();
+        if (!txnState.isTxnInProgress()) {
+            throw new IllegalStateException(
+                "No transaction is currently in progress!");
+        }
+
+        LogSequenceNumber lsn = nextLSN;
+
+        logger.debug(String.format("Writing an %s record for transaction %d at LSN %s",
+            WALRecordType.NEW_PAGE_REDO_ONLY, txnState.getTransactionID(), lsn));
+
+        WALRecordBuilder walWriter = walRecord;
+        walWriter.reset(lsn.getFileOffset());
+
+        walWriter.writeByte(WALRecordType.NEW_PAGE_REDO_ONLY.getID());
+        walWriter.writeInt(txnState.getTransactionID());
+
+        // We need to store the previous log sequence number for this record.
+        LogSequenceNumber prevLSN = txnState.getLastLSN();
+        walWriter.writeShort(prevLSN.getLogFileNo());
+        walWriter.writeInt(prevLSN.getFileOffset());
+
+        // Store the filename and page number that is being added.
+        walWriter.writeVarString255(dbPage.getDBFile().getDataFile().getName());
+        walWriter.writeInt(dbPage.getPageNo());
+
+        // Data pages fill from both ends, so the free space in the middle of
+        // the page is usually one long run of zeros.  Leave the longest run
+        // of zeros out of the record.
+        byte[] image = new byte[dbPage.getPageSize()];
+        dbPage.read(0, image);
+
+        int holeStart = 0;
+        int holeLength = 0;
+        int runStart = 0;
+        for (int i = 0; i <= image.length; i++) {
+            if (i < image.length && image[i] == 0)
+                continue;
+
+            if (i - runStart > holeLength) {
+                holeStart = runStart;
+                holeLength = i - runStart;
+            }
+            runStart = i + 1;
+        }
+
+        walWriter.writeInt(holeStart);
+        walWriter.writeInt(holeLength);
+        walWriter.write(image, 0, holeStart);
+        walWriter.write(image, holeStart + holeLength,
+            image.length - holeStart - holeLength);
+
+        // Write the start of the record at the end so that we can get back
+        // to the record's start when scanning the log backwards.
+
+        walWriter.writeInt(lsn.getFileOffset());
+        walWriter.writeByte(WALRecordType.NEW_PAGE_REDO_ONLY.getID());
+
+        // Store the LSN of the change on the page.
+        lsn.setRecordSize(walWriter.getPosition() - lsn.getFileOffset());
+        dbPage.setPageLSN(lsn);
+        dbPage.clearDirtyRanges();
+
+        txnState.setLastLSN(lsn);
+
+        logWriter.append(lsn, walWriter);
+        nextLSN = computeNextLSN(nextLSN.getLogFileNo(), walWriter.getPosition());
+
+        return lsn;
+    }
+
+
+    /**
+     * This helper method uses a {@link WALRecordType#NEW_PAGE_REDO_ONLY}
+     * record to clear a page that a transaction added, and at the same time
+     * generates the data that must go into a corresponding redo-only update
+     * record.  Only the parts of the page that were stored in the record can
+     * be non-zero, so only those parts are cleared.
+     *
+     * @param walReader A reader positioned at the start of the page image.
+     *        This method will advance the reader's position past the image.
+     *
+     * @param dbPage the data page to clear
+     *
+     * @param redoOnlyData the stream to write the redo-only segments to
+     *
+     * @return the number of segments written to {@code redoOnlyData}
+     *
+     * @throws IOException if the page image can't be read
+     */
+    private int applyNewPageUndoAndGenRedoOnlyData(WALFileReader walReader,
+        DBPage dbPage, ByteArrayOutputStream redoOnlyData) throws IOException {
+
+        int pageSize = dbPage.getPageSize();
+        int holeStart = walReader.readInt();
+        int holeLength = walReader.readInt();
+        int holeEnd = holeStart + holeLength;
+        walReader.movePosition(pageSize - holeLength);
+
+        DataOutputStream dos = new DataOutputStream(redoOnlyData);
+        int numSegments = 0;
+        int[][] ranges = { {0, holeStart}, {holeEnd, pageSize} };
+        for (int[] range : ranges) {
+            // Segment sizes are unsigned shorts, so large ranges are split.
+            for (int start = range[0]; start < range[1];
+                 start += MAX_CLEAR_SEGMENT_SIZE) {
+                int size = Math.min(MAX_CLEAR_SEGMENT_SIZE, range[1] - start);
+                dbPage.setDataRange(start, size, (byte) 0);
+
+                dos.writeShort(start);
+                dos.writeShort(size);
+                dos.write(new byte[size]);
+                numSegments++;
+            }
+        }
+
+        dos.flush();
+        return numSegments;
+    }
+
+
     /**
      * This method writes a redo-only update-page record to the write-ahead log,
      * including only redo details.  The transaction state is passed explicitly
@@ -1030,9 +1557,9 @@ public class WALManager {
      * @throws IllegalArgumentException if <tt>dbPage</tt> is <tt>null</tt>, or
      *         if <tt>changes</tt> is <tt>null</tt>.
      */
-    public LogSequenceNumber writeRedoOnlyUpdatePageRecord(int transactionID,
-        LogSequenceNumber prevLSN, DBPage dbPage, int numSegments,
-        byte[] changes) throws IOException {
+    public synchronized LogSequenceNumber writeRedoOnlyUpdatePageRecord(
+        int transactionID, LogSequenceNumber prevLSN, DBPage dbPage,
+        int numSegments, byte[] changes) throws IOException {
 
         if (dbPage == null)
             throw new IllegalArgumentException("dbPage must be specified");
@@ -1047,7 +1574,8 @@ public class WALManager {
         logger.debug(String.format("Writing redo-only update record for " +
             "transaction %d at LSN %s.  PrevLSN = %s", transactionID, lsn, prevLSN));
 
-        DBFileWriter walWriter = getWALFileWriter(lsn);
+        WALRecordBuilder walWriter = walRecord;
+        walWriter.reset(lsn.getFileOffset());
 
         walWriter.writeByte(WALRecordType.UPDATE_PAGE_REDO_ONLY.getID());
         walWriter.writeInt(transactionID);
@@ -1057,7 +1585,7 @@ public class WALManager {
         walWriter.writeInt(prevLSN.getFileOffset());
 
         walWriter.writeVarString255(dbPage.getDBFile().getDataFile().getName());
-        walWriter.writeShort(dbPage.getPageNo());
+        walWriter.writeInt(dbPage.getPageNo());
 
         // Write the redo-only data.
         walWriter.writeShort(numSegments);
@@ -1072,8 +1600,9 @@ public class WALManager {
         // Store the LSN of the change on the page.
         lsn.setRecordSize(walWriter.getPosition() - lsn.getFileOffset());
         dbPage.setPageLSN(lsn);
-        dbPage.syncOldPageData();
+        dbPage.clearDirtyRanges();
 
+        logWriter.append(lsn, walWriter);
         nextLSN = computeNextLSN(nextLSN.getLogFileNo(), walWriter.getPosition());
 
         return lsn;
@@ -1147,66 +1676,96 @@ public class WALManager {
         logger.info("Rolling back transaction " + transactionID +
             ".  Last LSN = " + lsn);
 
+        // The transaction's records may still be in the WAL writer's
+        // buffers, so wait for them to reach the WAL files before reading
+        // them back.
+        logWriter.waitForDurable(nextLSN);
+
         // Scan backward through the log records for this transaction to roll
         // it back.
-        
-        while (true) {
-            DBFileReader walReader = getWALFileReader(lsn);
 
-            WALRecordType type = WALRecordType.valueOf(walReader.readByte());
-            int recordTxnID = walReader.readInt();
-            if (recordTxnID != transactionID) {
-                throw new WALFileException(String.format("Sent to WAL record " +
-                    "for transaction %d at LSN %s, during rollback of " +
-                    "transaction %d.", recordTxnID, lsn, transactionID));
-            }
-
-            logger.debug(String.format(
-                "Undoing WAL record at %s.  Type = %s, TxnID = %d",
-                lsn, type, transactionID));
-
-            if (type == null) {
-                throw new WALFileException(String.format("Missing type info while undoing record" +
+        WALFileReader walReader = null;
+        try {
+            while (true) {
+                if (walReader == null || walReader.getFileNo() != lsn.getLogFileNo())
+                    walReader = getWALFileReader(walReader, lsn);
+                else
+                    walReader.setPosition(lsn.getFileOffset());
+
+                WALRecordType type = WALRecordType.valueOf(walReader.readByte());
+                int recordTxnID = walReader.readInt();
+                if (recordTxnID != transactionID) {
+                    throw new WALFileException(String.format("Sent to WAL record " +
                         "for transaction %d at LSN %s, during rollback of " +
                         "transaction %d.", recordTxnID, lsn, transactionID));
-            }
+                }
 
-            if (type == WALRecordType.START_TXN) {
-                // Reached start of transaction, done!
-                break;
-            } else if (type != WALRecordType.UPDATE_PAGE) {
-                throw new WALFileException("Encountered an invalid record " +
-                        "type during transaction rollback!");
-            }
+                logger.debug(String.format(
+                    "Undoing WAL record at %s.  Type = %s, TxnID = %d",
+                    lsn, type, transactionID));
 
-            // Read relevant data from file
-            short prevLsnWalFileNo = walReader.readShort();
-            int prevLsnWalFileOffset = walReader.readInt();
-            String filename = walReader.readVarString255();
-            short pageNo = walReader.readShort();
-            short numSegments = walReader.readShort();
+                if (type == null) {
+                    throw new WALFileException(String.format("Missing type info while undoing record" +
+                            "for transaction %d at LSN %s, during rollback of " +
+                            "transaction %d.", recordTxnID, lsn, transactionID));
+                }
+
+                if (type == WALRecordType.START_TXN) {
+                    // Reached start of transaction, done!
+                    break;
+                } else if (type != WALRecordType.UPDATE_PAGE &&
+                           type != WALRecordType.NEW_PAGE_REDO_ONLY) {
+                    throw new WALFileException("Encountered an invalid record " +
+                            "type during transaction rollback!");
+                }
 
-            // Rollback changes
-            DBFile dbFile = storageManager.openDBFile(filename);
-            DBPage page = storageManager.loadDBPage(dbFile, pageNo);
-            byte[] changes =
-                    applyUndoAndGenRedoOnlyData(walReader, page, numSegments);
+                // Read relevant data from file
+                short prevLsnWalFileNo = walReader.readShort();
+                int prevLsnWalFileOffset = walReader.readInt();
+                String filename = walReader.readVarString255();
+                int pageNo = readPageNo(walReader);
+
+                // Rollback changes
+                DBFile dbFile = storageManager.openDBFile(filename);
+                DBPage page;
+                int numSegments;
+                byte[] changes;
+                if (type == WALRecordType.NEW_PAGE_REDO_ONLY) {
+                    // The page held no data before the transaction added it, so
+                    // rolling back the record clears the page.
+                    page = storageManager.loadDBPage(dbFile, pageNo, true);
+                    ByteArrayOutputStream clearData = new ByteArrayOutputStream();
+                    numSegments =
+                        applyNewPageUndoAndGenRedoOnlyData(walReader, page, clearData);
+                    changes = clearData.toByteArray();
+                }
+                else {
+                    numSegments = walReader.readShort();
+                    page = storageManager.loadDBPage(dbFile, pageNo);
+                    changes =
+                        applyUndoAndGenRedoOnlyData(walReader, page, numSegments);
+                }
 
-            // TODO: Use `writeTxnRecord(type)` somewhere?
+                // TODO: Use `writeTxnRecord(type)` somewhere?
 
-            writeRedoOnlyUpdatePageRecord(page, numSegments, changes);
+                writeRedoOnlyUpdatePageRecord(page, numSegments, changes);
 
-            // Prepare previous LSN
-            lsn = new LogSequenceNumber(prevLsnWalFileNo, prevLsnWalFileOffset);
+                // Prepare previous LSN
+                lsn = new LogSequenceNumber(prevLsnWalFileNo, prevLsnWalFileOffset);
 
-            // TODO:  Check implementation
-            //
-            //        Use logging statements liberally to help verify and
-            //        debug your work.
-            //
-            //        If you encounter invalid WAL contents, throw a
-            //        WALFileException to indicate the problem immediately.
+                // TODO:  Check implementation
+                //
+                //        Use logging statements liberally to help verify and
+                //        debug your work.
+                //
+                //        If you encounter invalid WAL contents, throw a
+                //        WALFileException to indicate the problem immediately.
 
+            }
+        }
+        finally {
+            if (walReader != null)
+                walReader.close();
         }
 
         // All done rolling back the transaction!  Record that it was aborted
@@ -1216,30 +1775,263 @@ public class WALManager {
             transactionID));
     }
 
-    public void flushWAL(LogSequenceNumber lsnStart, LogSequenceNumber lsnEnd) throws IOException {
-        int startFileNo = lsnStart.getLogFileNo();
-        int endFileNo = lsnEnd.getLogFileNo();
 
-        for (int fileNo = startFileNo; fileNo <= endFileNo; fileNo++) {
-            String filename = getWALFileName(fileNo);
+    /**
+     * Starts a checkpoint, by recording the current end of the log as the
+     * checkpoint's start LSN, along with the transactions that are active
+     * at that point.  The caller adds the dirty-page table, and then writes
+     * the checkpoint with {@link #writeCheckpointRecord}.
+     *
+     * @return a checkpoint holding the start LSN and the active transactions
+     */
+    public synchronized CheckpointRecord beginCheckpoint() {
+        CheckpointRecord checkpoint = new CheckpointRecord();
+        checkpoint.startLSN = nextLSN;
+
+        for (TransactionState txnState : activeTxns.values()) {
+            checkpoint.activeTxns.add(new CheckpointRecord.ActiveTxn(
+                txnState.getTransactionID(), txnState.getFirstLSN(),
+                txnState.getLastLSN()));
+        }
 
-            DBFile walFile = bufferManager.getFile(filename);
+        return checkpoint;
+    }
 
-            if (walFile != null) {
-                int startOffset = 0;
-                int endOffset = Integer.MAX_VALUE;
-                if (fileNo == startFileNo) {
-                    startOffset = lsnStart.getFileOffset();
-                }
-                if (fileNo == endFileNo) {
-                    endOffset = lsnEnd.getFileOffset() + lsnEnd.getRecordSize();
-                }
-                bufferManager.writeDBFile(walFile,
-                        walFile.offsetToPageNo(startOffset),
-                        walFile.offsetToPageNo(endOffset),
-                        true);
+
+    /**
+     * Writes a {@link WALRecordType#CHECKPOINT} record to the write-ahead
+     * log.
+     *
+     * @param checkpoint the checkpoint to record
+     *
+     * @return the Log Sequence Number of the WAL record that was written
+     *
+     * @throws IOException if the write-ahead log can't be updated for some
+     *         reason.
+     */
+    public synchronized LogSequenceNumber writeCheckpointRecord(
+        CheckpointRecord checkpoint) throws IOException {
+
+        LogSequenceNumber lsn = nextLSN;
+
+        logger.debug(String.format("Writing a checkpoint record at LSN %s:  " +
+            "%d active transactions, %d dirty pages", lsn,
+            checkpoint.activeTxns.size(), checkpoint.dirtyPages.size()));
+
+        WALRecordBuilder walWriter = walRecord;
+        walWriter.reset(lsn.getFileOffset());
+
+        walWriter.writeByte(WALRecordType.CHECKPOINT.getID());
+        walWriter.writeInt(TransactionState.NO_TRANSACTION);
+        writeLSN(walWriter, checkpoint.startLSN);
+
+        walWriter.writeInt(checkpoint.activeTxns.size());
+        for (CheckpointRecord.ActiveTxn txn : checkpoint.activeTxns) {
+            walWriter.writeInt(txn.transactionID);
+            writeLSN(walWriter, txn.firstLSN);
+            writeLSN(walWriter, txn.lastLSN);
+        }
+
+        walWriter.writeInt(checkpoint.dirtyPages.size());
+        for (CheckpointRecord.DirtyPage page : checkpoint.dirtyPages) {
+            walWriter.writeVarString255(page.filename);
+            walWriter.writeInt(page.pageNo);
+            writeLSN(walWriter, page.recoveryLSN);
+        }
+
+        walWriter.writeInt(lsn.getFileOffset());
+        walWriter.writeByte(WALRecordType.CHECKPOINT.getID());
+
+        lsn.setRecordSize(walWriter.getPosition() - lsn.getFileOffset());
+
+        logWriter.append(lsn, walWriter);
+        nextLSN = computeNextLSN(nextLSN.getLogFileNo(), walWriter.getPosition());
+        logger.debug("Next-LSN value is now " + nextLSN);
+
+        return lsn;
+    }
+
+
+    private static void writeLSN(WALRecordBuilder walWriter,
+                                 LogSequenceNumber lsn) {
+        walWriter.writeShort(lsn.getLogFileNo());
+        walWriter.writeInt(lsn.getFileOffset());
+    }
+
+
+    private static LogSequenceNumber readLSN(WALFileReader walReader)
+        throws IOException {
+        int fileNo = walReader.readUnsignedShort();
+        int offset = walReader.readInt();
+        return new LogSequenceNumber(fileNo, offset);
+    }
+
+
+    /**
+     * Reads the {@link WALRecordType#CHECKPOINT} record at the specified
+     * LSN.
+     *
+     * @param lsn the location of the checkpoint record
+     *
+     * @return the contents of the checkpoint record
+     *
+     * @throws IOException if the record can't be read, or isn't a checkpoint
+     *         record
+     */
+    private CheckpointRecord readCheckpointRecord(LogSequenceNumber lsn)
+        throws IOException {
+
+        try (WALFileReader walReader = getWALFileReader(null, lsn)) {
+            WALRecordType type = WALRecordType.valueOf(walReader.readByte());
+            if (type != WALRecordType.CHECKPOINT) {
+                throw new WALFileException(String.format(
+                    "Expected a checkpoint record at LSN %s, but found a " +
+                    "record of type %s", lsn, type));
             }
 
+            walReader.readInt();
+            return readCheckpointBody(walReader, lsn);
+        }
+    }
+
+
+    /**
+     * Reads the rest of a {@link WALRecordType#CHECKPOINT} record, after its
+     * type and transaction ID.  The reader is left just past the record.
+     *
+     * @param walReader a reader positioned just after the record's
+     *        transaction ID
+     *
+     * @param lsn the location of the checkpoint record
+     *
+     * @return the contents of the checkpoint record
+     *
+     * @throws IOException if the record can't be read, or is corrupt
+     */
+    private CheckpointRecord readCheckpointBody(WALFileReader walReader,
+        LogSequenceNumber lsn) throws IOException {
+
+        CheckpointRecord checkpoint = new CheckpointRecord();
+        checkpoint.startLSN = readLSN(walReader);
+
+        int numTxns = walReader.readInt();
+        for (int i = 0; i < numTxns; i++) {
+            int transactionID = walReader.readInt();
+            LogSequenceNumber txnFirstLSN = readLSN(walReader);
+            LogSequenceNumber txnLastLSN = readLSN(walReader);
+            checkpoint.activeTxns.add(new CheckpointRecord.ActiveTxn(
+                transactionID, txnFirstLSN, txnLastLSN));
         }
+
+        int numPages = walReader.readInt();
+        for (int i = 0; i < numPages; i++) {
+            String filename = walReader.readVarString255();
+            int pageNo = walReader.readInt();
+            LogSequenceNumber recoveryLSN = readLSN(walReader);
+            checkpoint.dirtyPages.add(new CheckpointRecord.DirtyPage(
+                filename, pageNo, recoveryLSN));
+        }
+
+        int startOffset = walReader.readInt();
+        byte typeID = walReader.readByte();
+        if (startOffset != lsn.getFileOffset() ||
+            typeID != WALRecordType.CHECKPOINT.getID()) {
+            throw new WALFileException("Checkpoint record at LSN " + lsn +
+                " is corrupt");
+        }
+
+        return checkpoint;
+    }
+
+
+    /**
+     * Deletes the WAL files that hold no records at or after the specified
+     * LSN, up to the WAL file that records are currently appended to.  WAL
+     * file numbers wrap around, so the files that are kept are the ones from
+     * the LSN's file to the current file, in the order they were written.
+     * This must only be called once the transaction-state file shows that
+     * recovery starts at or after the LSN.
+     *
+     * @param oldestNeededLSN the earliest LSN that recovery may need to read
+     *
+     * @return the number of WAL files that were deleted
+     */
+    public int deleteOldWALFiles(LogSequenceNumber oldestNeededLSN) {
+        int firstKept = oldestNeededLSN.getLogFileNo();
+        int lastKept = nextLSN.getLogFileNo();
+
+        String[] filenames = storageManager.getBaseDir().list();
+        if (filenames == null)
+            return 0;
+
+        int deleted = 0;
+        for (String filename : filenames) {
+            if (!isWALFileName(filename))
+                continue;
+
+            int fileNo = Integer.parseInt(filename.substring(4, 9));
+            boolean kept;
+            if (firstKept <= lastKept)
+                kept = (fileNo >= firstKept && fileNo <= lastKept);
+            else
+                kept = (fileNo >= firstKept || fileNo <= lastKept);
+
+            if (kept)
+                continue;
+
+            File walFile = new File(storageManager.getBaseDir(), filename);
+            if (walFile.delete()) {
+                logger.debug("Deleted old WAL file " + filename);
+                deleted++;
+            }
+            else {
+                logger.warn("Couldn't delete old WAL file " + filename);
+            }
+        }
+
+        return deleted;
+    }
+
+
+    /**
+     * Waits until all WAL records before <tt>lsnNext</tt> have been written
+     * to the WAL files and synced.  This method isn't synchronized, so
+     * records may be appended past <tt>lsnNext</tt> while it waits.
+     *
+     * @param lsnNext the LSN just past the last record that must reach the
+     *        disk
+     *
+     * @throws IOException if the WAL writer couldn't write or sync the WAL
+     */
+    public void flushWAL(LogSequenceNumber lsnNext) throws IOException {
+        logWriter.waitForDurable(lsnNext);
+    }
+
+
+    /**
+     * Returns the LSN just past the last WAL record that is known to be
+     * synced to disk.
+     *
+     * @return the LSN just past the last durable WAL record
+     */
+    public LogSequenceNumber getDurableLSN() {
+        return logWriter.getDurableLSN();
+    }
+
+
+    /**
+     * Waits for all records in the WAL to reach the disk, and then stops the
+     * WAL writer.  No records may be appended after this method is called.
+     *
+     * @param server the server that the WAL manager's and the WAL writer's
+     *        properties were registered with
+     *
+     * @throws IOException if the WAL writer couldn't write or sync the WAL
+     */
+    public void close(NanoDBServer server) throws IOException {
+        logWriter.close(server);
+
+        if (server != null)
+            server.getPropertyRegistry().unregisterProperties(PROP_REDO_THREADS);
     }
 }
@@ -0,0 +1,151 @@
+package edu.caltech.nanodb.storage.writeahead;
+
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+
+/**
+ * This class builds a single write-ahead log record in memory, before it is
+ * appended to the log with {@link WALWriter#append}.  Positions are file
+ * offsets in the WAL file that the record will be written to, like the
+ * positions of a {@link edu.caltech.nanodb.storage.DBFileWriter}, so that
+ * the start of a record can be written into the record itself, and values
+ * can be filled in after the fact with {@link #setPosition}.  Values are
+ * written in big-endian order, the same as values in data pages.
+ */
+public class WALRecordBuilder {
+
+    /** The data of the record built so far. */
+    private byte[] data = new byte[256];
+
+
+    /** The file offset of the start of the record. */
+    private int startOffset;
+
+
+    /** The current position, relative to the start of the record. */
+    private int position;
+
+
+    /** The number of bytes in the record so far. */
+    private int length;
+
+
+    /**
+     * Clears the builder so that it can build a new record, which will be
+     * written at the specified file offset.
+     *
+     * @param startOffset the file offset of the start of the record
+     */
+    public void reset(int startOffset) {
+        this.startOffset = startOffset;
+        position = 0;
+        length = 0;
+    }
+
+
+    /** Returns the file offset of the start of the record. */
+    public int getStartOffset() {
+        return startOffset;
+    }
+
+
+    /** Returns the current position, as a file offset. */
+    public int getPosition() {
+        return startOffset + position;
+    }
+
+
+    /**
+     * Sets the current position, as a file offset.  The position must be
+     * within the part of the record built so far.
+     *
+     * @param position the new position, as a file offset
+     */
+    public void setPosition(int position) {
+        if (position < startOffset || position > startOffset + length) {
+            throw new IllegalArgumentException(String.format(
+                "Position %d is outside of the record, which spans %d to %d",
+                position, startOffset, startOffset + length));
+        }
+
+        this.position = position - startOffset;
+    }
+
+
+    /** Returns the number of bytes in the record. */
+    public int getLength() {
+        return length;
+    }
+
+
+    /**
+     * Returns the array holding the record's data.  Only the first
+     * {@link #getLength} bytes of the array are part of the record.
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+
+    private void ensureCapacity(int numBytes) {
+        int needed = position + numBytes;
+        if (needed > data.length)
+            data = Arrays.copyOf(data, Math.max(needed, 2 * data.length));
+    }
+
+
+    private void advance(int numBytes) {
+        position += numBytes;
+        if (position > length)
+            length = position;
+    }
+
+
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(len);
+        System.arraycopy(b, off, data, position, len);
+        advance(len);
+    }
+
+
+    public void write(byte[] b) {
+        write(b, 0, b.length);
+    }
+
+
+    public void writeByte(int v) {
+        ensureCapacity(1);
+        data[position] = (byte) v;
+        advance(1);
+    }
+
+
+    public void writeShort(int v) {
+        ensureCapacity(2);
+        data[position    ] = (byte) (v >>> 8);
+        data[position + 1] = (byte) v;
+        advance(2);
+    }
+
+
+    public void writeInt(int v) {
+        ensureCapacity(4);
+        data[position    ] = (byte) (v >>> 24);
+        data[position + 1] = (byte) (v >>> 16);
+        data[position + 2] = (byte) (v >>>  8);
+        data[position + 3] = (byte) v;
+        advance(4);
+    }
+
+
+    public void writeVarString255(String value) {
+        byte[] strBytes = value.getBytes(StandardCharsets.US_ASCII);
+        if (strBytes.length > 255)
+            throw new IllegalArgumentException("value must be 255 bytes or less");
+
+        writeByte(strBytes.length);
+        write(strBytes);
+    }
+}
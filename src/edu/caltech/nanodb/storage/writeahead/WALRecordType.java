@@ -25,6 +25,14 @@ public enum WALRecordType {
      */
     UPDATE_PAGE_REDO_ONLY(3),
 
+    /**
+     * The record represents a "&lt;<i>T<sub>i</sub></i>:  new page
+     * <i>P'</i> (redo only)&gt;" record, which holds the entire contents of
+     * a page that the transaction added to the end of a file.  No undo data
+     * is needed, since the page held no data before the transaction.
+     */
+    NEW_PAGE_REDO_ONLY(4),
+
     /**
      * The record represents a "&lt;<i>T<sub>i</sub></i>:  commit
      * transaction&gt;" record.
@@ -35,8 +43,14 @@ public enum WALRecordType {
      * The record represents a "&lt;<i>T<sub>i</sub></i>:  abort
      * transaction&gt;" record.
      */
-    ABORT_TXN(11);
+    ABORT_TXN(11),
 
+    /**
+     * The record represents a fuzzy checkpoint, which holds the transactions
+     * that were active and the pages that were dirty when the checkpoint was
+     * taken.  It isn't part of any transaction.
+     */
+    CHECKPOINT(20);
 
     private int id;
 
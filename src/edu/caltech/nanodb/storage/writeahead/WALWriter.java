@@ -0,0 +1,742 @@
+package edu.caltech.nanodb.storage.writeahead;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.server.NanoDBServer;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+import edu.caltech.nanodb.server.properties.PropertyHandler;
+import edu.caltech.nanodb.server.properties.ReadOnlyPropertyException;
+import edu.caltech.nanodb.server.properties.UnrecognizedPropertyException;
+import edu.caltech.nanodb.storage.DBFile;
+import edu.caltech.nanodb.storage.DBFileType;
+
+
+/**
+ * <p>
+ * The WAL writer appends write-ahead log records to the WAL files, without
+ * going through the {@link edu.caltech.nanodb.storage.BufferManager}, so
+ * that the log doesn't compete with data pages for space in the page cache,
+ * and so that the log is written with large sequential writes.
+ * </p>
+ * <p>
+ * Records are copied into a ring of {@link #PROP_WAL_BUFFERS} log buffers,
+ * each holding {@link #PROP_WAL_BUFFER_SIZE} bytes of one WAL file.  A
+ * background flusher thread writes the buffers to their files through
+ * {@link FileChannel}s and syncs the files, every
+ * {@link #PROP_WAL_FLUSH_DELAY} milliseconds while there are records to
+ * write, or immediately when a session needs records to be on disk.  After
+ * each sync, the flusher advances the <em>durable LSN</em>, the LSN that
+ * all records before are on disk, and wakes up sessions waiting in
+ * {@link #waitForDurable}.  If all of the buffers are waiting to be
+ * written, appending a record waits for the flusher.
+ * </p>
+ * <p>
+ * When a record is the first record in a WAL file, the buffer starts with
+ * the file's header, which records where the previous WAL file ends, and
+ * the file is truncated when the flusher first writes to it, since a WAL
+ * file is only reused once none of its old records are needed.
+ * </p>
+ * <p>
+ * The <tt>wal.bytesWritten</tt>, <tt>wal.syncs</tt> and
+ * <tt>wal.bufferWaits</tt> performance counters show how much the writer
+ * has written, how many times it has synced the WAL, and how many times an
+ * append had to wait for a free buffer.
+ * </p>
+ */
+public class WALWriter {
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(WALWriter.class);
+
+
+    /**
+     * The system property that can be used to specify how many log buffers
+     * are in the writer's ring.
+     */
+    public static final String PROP_WAL_BUFFERS = "nanodb.wal.buffers";
+
+
+    /** By default, the ring has 8 log buffers. */
+    public static final int DEFAULT_WAL_BUFFERS = 8;
+
+
+    /**
+     * The system property that can be used to specify the size of each log
+     * buffer, in bytes.
+     */
+    public static final String PROP_WAL_BUFFER_SIZE = "nanodb.wal.buffersize";
+
+
+    /** By default, each log buffer holds 64KB. */
+    public static final int DEFAULT_WAL_BUFFER_SIZE = 64 * 1024;
+
+
+    /**
+     * The system property that can be used to specify how many milliseconds
+     * the flusher waits before writing records that no session is waiting
+     * for.
+     */
+    public static final String PROP_WAL_FLUSH_DELAY = "nanodb.wal.flushdelay";
+
+
+    /** By default, records are written within 10ms of being appended. */
+    public static final int DEFAULT_WAL_FLUSH_DELAY = 10;
+
+
+    private class WALWriterPropertyHandler implements PropertyHandler {
+        @Override
+        public Object getPropertyValue(String propertyName)
+            throws UnrecognizedPropertyException {
+
+            if (PROP_WAL_BUFFERS.equals(propertyName)) {
+                return ring.length;
+            }
+            else if (PROP_WAL_BUFFER_SIZE.equals(propertyName)) {
+                return bufferSize;
+            }
+            else if (PROP_WAL_FLUSH_DELAY.equals(propertyName)) {
+                return flushDelay;
+            }
+            else {
+                throw new UnrecognizedPropertyException("No property named " +
+                    propertyName);
+            }
+        }
+
+        @Override
+        public void setPropertyValue(String propertyName, Object value)
+            throws UnrecognizedPropertyException, ReadOnlyPropertyException {
+
+            if (PROP_WAL_BUFFERS.equals(propertyName) ||
+                PROP_WAL_BUFFER_SIZE.equals(propertyName) ||
+                PROP_WAL_FLUSH_DELAY.equals(propertyName)) {
+                throw new ReadOnlyPropertyException(propertyName +
+                    " is read-only");
+            }
+            else {
+                throw new UnrecognizedPropertyException("No property named " +
+                    propertyName);
+            }
+        }
+    }
+
+
+    /**
+     * A buffer in the writer's ring, holding a contiguous range of bytes of
+     * one WAL file.
+     */
+    private static class LogBuffer {
+        /** The number of the WAL file that the buffer's bytes go into. */
+        int fileNo = -1;
+
+        /** The file offset of the first byte in the buffer. */
+        int fileOffset;
+
+        /** The buffer's bytes. */
+        byte[] data;
+
+        /** The number of bytes appended to the buffer. */
+        int length;
+
+        /** The number of bytes that have been written to the file. */
+        int written;
+
+        /**
+         * True if the file must be truncated when the buffer is first
+         * written, because the buffer starts a new WAL file.
+         */
+        boolean truncate;
+
+        LogBuffer(int size) {
+            data = new byte[size];
+        }
+    }
+
+
+    /** The directory that the WAL files are stored in. */
+    private File baseDir;
+
+
+    /** The page size recorded in the header of new WAL files. */
+    private int pageSize;
+
+
+    /** The size of each log buffer. */
+    private int bufferSize;
+
+
+    /** The number of milliseconds between flushes when nobody is waiting. */
+    private int flushDelay;
+
+
+    /** The ring of log buffers. */
+    private LogBuffer[] ring;
+
+
+    /** The index of the oldest buffer that hasn't been completely written. */
+    private int head;
+
+
+    /** The index of the buffer that records are appended to. */
+    private int tail;
+
+
+    /** The LSN just past the last record appended to the writer. */
+    private LogSequenceNumber appendedLSN;
+
+
+    /**
+     * The end of the last record appended, without wrapping to the next WAL
+     * file, so that the header of the next WAL file can record where the
+     * previous file ends.  This is <tt>null</tt> if it isn't known.
+     */
+    private LogSequenceNumber lastRecordEnd;
+
+
+    /** The LSN that all records before are on disk. */
+    private LogSequenceNumber durableLSN;
+
+
+    /** True if a session is waiting for records to be written. */
+    private boolean flushRequested;
+
+
+    /** True once the writer is being shut down. */
+    private boolean closing;
+
+
+    /**
+     * If the flusher failed to write or sync the log, this is the error.
+     * Nothing more can be made durable after a failure, so every later
+     * append or wait reports it.
+     */
+    private IOException failure;
+
+
+    /**
+     * The channels of the WAL files that the flusher has written to.  Only
+     * the flusher thread uses this map.
+     */
+    private HashMap<Integer, FileChannel> channels = new HashMap<>();
+
+
+    /** The flusher thread. */
+    private Thread flusher;
+
+
+    /**
+     * Creates a WAL writer for the WAL files in the specified directory.
+     * The writer doesn't accept records until {@link #start} is called.
+     *
+     * @param server the server to register the writer's properties with, or
+     *        <tt>null</tt> if the properties shouldn't be registered
+     * @param baseDir the directory that the WAL files are stored in
+     * @param pageSize the page size recorded in the header of new WAL files
+     */
+    public WALWriter(NanoDBServer server, File baseDir, int pageSize) {
+        this.baseDir = baseDir;
+        this.pageSize = pageSize;
+
+        int numBuffers = configureIntProperty(PROP_WAL_BUFFERS,
+            DEFAULT_WAL_BUFFERS, 2);
+        bufferSize = configureIntProperty(PROP_WAL_BUFFER_SIZE,
+            DEFAULT_WAL_BUFFER_SIZE, 1024);
+        flushDelay = configureIntProperty(PROP_WAL_FLUSH_DELAY,
+            DEFAULT_WAL_FLUSH_DELAY, 1);
+
+        ring = new LogBuffer[numBuffers];
+        for (int i = 0; i < numBuffers; i++)
+            ring[i] = new LogBuffer(bufferSize);
+
+        if (server != null) {
+            server.getPropertyRegistry().registerProperties(
+                new WALWriterPropertyHandler(), PROP_WAL_BUFFERS,
+                PROP_WAL_BUFFER_SIZE, PROP_WAL_FLUSH_DELAY);
+        }
+    }
+
+
+    private int configureIntProperty(String name, int defaultValue,
+                                     int minValue) {
+        int value = defaultValue;
+
+        String str = System.getProperty(name);
+        if (str != null) {
+            try {
+                value = Integer.parseInt(str.trim());
+            }
+            catch (NumberFormatException e) {
+                logger.error(String.format("Could not parse %s value " +
+                    "\"%s\"; using default value of %d", name, str,
+                    defaultValue));
+            }
+
+            if (value < minValue) {
+                logger.error(String.format("%s value %d is less than %d; " +
+                    "using default value of %d", name, value, minValue,
+                    defaultValue));
+
+                value = defaultValue;
+            }
+        }
+
+        return value;
+    }
+
+
+    /**
+     * Sets the LSN where the next record will be appended, and starts the
+     * flusher thread if it isn't running yet.  All records before this LSN
+     * must already be on disk.  This is called once recovery has decided
+     * where new records go, and again if the next record is moved to a new
+     * WAL file; it must not be called while records are waiting to be
+     * written.
+     *
+     * @param nextLSN the LSN where the next record will be appended
+     */
+    public void start(LogSequenceNumber nextLSN) {
+        start(nextLSN, null);
+    }
+
+
+    /**
+     * Sets the LSN where the next record will be appended, as for
+     * {@link #start(LogSequenceNumber)}.  If the next record starts a new
+     * WAL file, the end of the previous WAL file is recorded in the new
+     * file's header.
+     *
+     * @param nextLSN the LSN where the next record will be appended
+     *
+     * @param prevFileEnd the end of the last record in the previous WAL
+     *        file, if <tt>nextLSN</tt> is at the start of a WAL file, or
+     *        <tt>null</tt> if it isn't known
+     */
+    public synchronized void start(LogSequenceNumber nextLSN,
+                                   LogSequenceNumber prevFileEnd) {
+        if (appendedLSN != null && durableLSN.compareTo(appendedLSN) < 0) {
+            throw new IllegalStateException(
+                "Can't move the WAL while records are waiting to be written");
+        }
+
+        appendedLSN = nextLSN;
+        durableLSN = nextLSN;
+        if (nextLSN.getFileOffset() > WALManager.OFFSET_FIRST_RECORD)
+            lastRecordEnd = nextLSN;
+        else
+            lastRecordEnd = prevFileEnd;
+
+        if (flusher == null) {
+            flusher = new Thread(this::runFlusher, "WALFlusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+
+
+    /**
+     * Returns the LSN that all records before are on disk.
+     *
+     * @return the LSN that all records before are on disk
+     */
+    public synchronized LogSequenceNumber getDurableLSN() {
+        return durableLSN;
+    }
+
+
+    /**
+     * Appends a record to the log.  The record must start at the LSN just
+     * past the previous record, or at the start of a WAL file.  The record
+     * is copied, so the builder may be reused once this method returns.
+     *
+     * @param lsn the LSN of the record
+     * @param record the record to append
+     *
+     * @throws IOException if the flusher has failed, or the session is
+     *         interrupted while waiting for a free buffer
+     */
+    public synchronized void append(LogSequenceNumber lsn,
+                                    WALRecordBuilder record)
+        throws IOException {
+
+        checkFailure();
+        if (appendedLSN == null)
+            throw new IllegalStateException("The WAL writer hasn't been started");
+
+        int fileNo = lsn.getLogFileNo();
+        int offset = lsn.getFileOffset();
+        int length = record.getLength();
+
+        LogBuffer buf = ring[tail];
+        if (buf.fileNo != fileNo || buf.fileOffset + buf.length != offset ||
+            buf.length + length > buf.data.length) {
+
+            buf = nextBuffer();
+
+            // A record at the start of a WAL file begins a new file, so the
+            // buffer also holds the file's header.
+            int headerSize = 0;
+            if (offset == WALManager.OFFSET_FIRST_RECORD)
+                headerSize = WALManager.OFFSET_FIRST_RECORD;
+
+            buf.fileNo = fileNo;
+            buf.fileOffset = offset - headerSize;
+            buf.truncate = (headerSize > 0);
+            if (buf.data.length < headerSize + length) {
+                // Records larger than a buffer get a buffer of their own.
+                buf.data = new byte[headerSize + length];
+            }
+            else if (buf.data.length > bufferSize &&
+                     headerSize + length <= bufferSize) {
+                buf.data = new byte[bufferSize];
+            }
+
+            if (headerSize > 0)
+                writeHeader(buf.data, fileNo);
+
+            buf.length = headerSize;
+        }
+
+        System.arraycopy(record.getData(), 0, buf.data, buf.length, length);
+        buf.length += length;
+
+        // If the flusher is idle, let it know there is something to write.
+        if (appendedLSN.equals(durableLSN))
+            notifyAll();
+
+        lastRecordEnd = new LogSequenceNumber(fileNo, offset + length);
+        appendedLSN = WALManager.computeNextLSN(fileNo, offset + length);
+    }
+
+
+    /**
+     * Writes the header of a new WAL file into the start of an array:  the
+     * file type, the page size and format version, and the end of the
+     * previous WAL file, or 0 if the previous file's records don't lead up
+     * to this file.
+     */
+    private void writeHeader(byte[] data, int fileNo) {
+        data[0] = (byte) DBFileType.WRITE_AHEAD_LOG_FILE.getID();
+        data[DBFile.OFFSET_PAGE_SIZE] = (byte) DBFile.encodePageSizeAndVersion(
+            pageSize, DBFile.CURRENT_FORMAT_VERSION);
+
+        int prevFileNo = (fileNo == 0 ? WALManager.MAX_WAL_FILE_NUMBER : fileNo - 1);
+        int prevFileEnd = 0;
+        if (lastRecordEnd != null && lastRecordEnd.getLogFileNo() == prevFileNo)
+            prevFileEnd = lastRecordEnd.getFileOffset();
+
+        ByteBuffer.wrap(data).putInt(WALManager.OFFSET_PREV_FILE_END, prevFileEnd);
+    }
+
+
+    /**
+     * Moves the tail of the ring to the next buffer, waiting for the flusher
+     * to finish writing it if necessary.  The current buffer is reused if it
+     * is empty.
+     */
+    private LogBuffer nextBuffer() throws IOException {
+        if (ring[tail].length == 0)
+            return ring[tail];
+
+        int next = (tail + 1) % ring.length;
+        if (ring[next].written < ring[next].length) {
+            PerformanceCounters.inc(PerformanceCounters.WAL_BUFFER_WAITS);
+            while (ring[next].written < ring[next].length) {
+                flushRequested = true;
+                notifyAll();
+                waitForFlusher();
+            }
+        }
+
+        // If the ring has wrapped around to the head, the head's records are
+        // all written, and the oldest records waiting to be written are in
+        // the buffer after it.
+        if (next == head)
+            head = (next + 1) % ring.length;
+
+        tail = next;
+        LogBuffer buf = ring[tail];
+        buf.length = 0;
+        buf.written = 0;
+        return buf;
+    }
+
+
+    private void waitForFlusher() throws IOException {
+        try {
+            wait();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                "Interrupted while waiting for the WAL writer");
+        }
+        checkFailure();
+    }
+
+
+    private void checkFailure() throws IOException {
+        if (failure != null)
+            throw new IOException("The WAL writer has failed", failure);
+    }
+
+
+    /**
+     * Waits until all records before the specified LSN are on disk.  If the
+     * LSN is past the last record appended, this waits for all appended
+     * records.
+     *
+     * @param lsn the LSN that all records before must be on disk
+     *
+     * @throws IOException if the flusher fails to write the records, or the
+     *         session is interrupted while waiting
+     */
+    public synchronized void waitForDurable(LogSequenceNumber lsn)
+        throws IOException {
+
+        if (lsn.compareTo(appendedLSN) > 0)
+            lsn = appendedLSN;
+
+        while (durableLSN.compareTo(lsn) < 0) {
+            checkFailure();
+            flushRequested = true;
+            notifyAll();
+            waitForFlusher();
+        }
+    }
+
+
+    /**
+     * The flusher thread's loop.  Each round writes everything appended so
+     * far, syncs the files written to, and then advances the durable LSN.
+     */
+    private void runFlusher() {
+        while (true) {
+            // The buffers to write, and how much of each to write.
+            int first;
+            int last;
+            int[] lengths;
+            LogSequenceNumber endLSN;
+
+            synchronized (this) {
+                while (!closing && appendedLSN.equals(durableLSN))
+                    waitQuietly(0);
+
+                // Give other records a chance to be appended, unless a
+                // session is waiting for the records already appended.
+                if (!closing && !flushRequested)
+                    waitQuietly(flushDelay);
+
+                if (appendedLSN.equals(durableLSN)) {
+                    if (closing)
+                        break;
+
+                    continue;
+                }
+
+                flushRequested = false;
+
+                // Buffers that have already been written completely may be
+                // reused by appends while this round writes, so skip them.
+                while (head != tail && ring[head].written == ring[head].length)
+                    head = (head + 1) % ring.length;
+
+                first = head;
+                last = tail;
+                lengths = new int[ring.length];
+                for (int i = first; ; i = (i + 1) % ring.length) {
+                    lengths[i] = ring[i].length;
+                    if (i == last)
+                        break;
+                }
+                endLSN = appendedLSN;
+            }
+
+            IOException error = null;
+            try {
+                writeBuffers(first, last, lengths);
+            }
+            catch (IOException e) {
+                logger.error("Couldn't write the write-ahead log", e);
+                error = e;
+            }
+
+            synchronized (this) {
+                if (error != null) {
+                    // Nothing more can be made durable, so stop flushing.
+                    failure = error;
+                    notifyAll();
+                    break;
+                }
+                else {
+                    for (int i = first; ; i = (i + 1) % ring.length) {
+                        ring[i].written = lengths[i];
+                        if (i == last)
+                            break;
+                    }
+                    head = last;
+                    durableLSN = endLSN;
+                }
+                notifyAll();
+            }
+        }
+
+        closeChannels(-1);
+    }
+
+
+    /**
+     * Waits on the writer's lock for at most the specified number of
+     * milliseconds, or until notified if the time is 0.  Nothing interrupts
+     * the flusher thread, so an interrupt just ends the wait early.
+     */
+    private void waitQuietly(long millis) {
+        try {
+            wait(millis);
+        }
+        catch (InterruptedException e) {
+            // Check the writer's state again.
+        }
+    }
+
+
+    /**
+     * Writes the specified range of the ring to the WAL files, and syncs
+     * them.  Only the flusher thread calls this method.  The buffers' bytes
+     * up to the specified lengths can be read without holding the writer's
+     * lock, since appends only add bytes past them, and buffers aren't
+     * reused until they have been written.
+     */
+    private void writeBuffers(int first, int last, int[] lengths)
+        throws IOException {
+
+        long bytesWritten = 0;
+        for (int i = first; ; i = (i + 1) % ring.length) {
+            LogBuffer buf = ring[i];
+            int start = buf.written;
+            int end = lengths[i];
+            if (end > start) {
+                FileChannel channel = getChannel(buf.fileNo,
+                    buf.truncate && start == 0);
+                ByteBuffer bytes = ByteBuffer.wrap(buf.data, start, end - start);
+                long position = (long) buf.fileOffset + start;
+                while (bytes.hasRemaining())
+                    position += channel.write(bytes, position);
+
+                bytesWritten += end - start;
+            }
+
+            if (i == last)
+                break;
+        }
+
+        for (FileChannel channel : channels.values())
+            channel.force(false);
+
+        PerformanceCounters.add(PerformanceCounters.WAL_BYTES_WRITTEN,
+            bytesWritten);
+        PerformanceCounters.inc(PerformanceCounters.WAL_SYNCS);
+
+        // Records are appended in order, so no more records will go into
+        // the WAL files before the one being appended to.
+        closeChannels(ring[last].fileNo);
+    }
+
+
+    private FileChannel getChannel(int fileNo, boolean truncate)
+        throws IOException {
+
+        FileChannel channel = channels.get(fileNo);
+        if (channel != null && truncate) {
+            channel.close();
+            channels.remove(fileNo);
+            channel = null;
+        }
+
+        if (channel == null) {
+            File walFile = new File(baseDir, WALManager.getWALFileName(fileNo));
+            if (truncate) {
+                logger.debug("Starting new WAL file " + walFile);
+                channel = FileChannel.open(walFile.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            }
+            else {
+                channel = FileChannel.open(walFile.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            }
+            channels.put(fileNo, channel);
+        }
+
+        return channel;
+    }
+
+
+    /** Closes the channels of all WAL files except the specified one. */
+    private void closeChannels(int keepFileNo) {
+        Iterator<Map.Entry<Integer, FileChannel>> iter =
+            channels.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<Integer, FileChannel> entry = iter.next();
+            if (entry.getKey() == keepFileNo)
+                continue;
+
+            try {
+                entry.getValue().close();
+            }
+            catch (IOException e) {
+                logger.warn("Couldn't close WAL file " +
+                    WALManager.getWALFileName(entry.getKey()), e);
+            }
+            iter.remove();
+        }
+    }
+
+
+    /**
+     * Writes out all appended records, and stops the flusher thread.
+     *
+     * @param server the server that the writer's properties were registered
+     *        with, or <tt>null</tt>
+     *
+     * @throws IOException if the records can't be written
+     */
+    public void close(NanoDBServer server) throws IOException {
+        Thread t;
+        synchronized (this) {
+            try {
+                if (appendedLSN != null)
+                    waitForDurable(appendedLSN);
+            }
+            finally {
+                closing = true;
+                notifyAll();
+                t = flusher;
+                flusher = null;
+            }
+        }
+
+        if (t != null) {
+            try {
+                t.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (server != null) {
+            server.getPropertyRegistry().unregisterProperties(
+                PROP_WAL_BUFFERS, PROP_WAL_BUFFER_SIZE, PROP_WAL_FLUSH_DELAY);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package edu.caltech.nanodb.transactions;
+
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import edu.caltech.nanodb.server.NanoDBServer;
+import edu.caltech.nanodb.server.properties.PropertyHandler;
+import edu.caltech.nanodb.server.properties.ReadOnlyPropertyException;
+import edu.caltech.nanodb.server.properties.UnrecognizedPropertyException;
+
+
+/**
+ * <p>
+ * The checkpointer takes a fuzzy checkpoint with
+ * {@link TransactionManager#checkpoint} every {@link #PROP_CHECKPOINT_INTERVAL}
+ * seconds.  Without checkpoints, recovery starts from the point where the
+ * database was last recovered, so the write-ahead log keeps growing, and
+ * recovery takes longer the longer the server runs.  Each checkpoint lets
+ * recovery start close to the checkpoint, and deletes the WAL files that
+ * recovery no longer needs.
+ * </p>
+ * <p>
+ * Checkpoints don't stop sessions from working.  Pages that have been dirty
+ * since before the previous checkpoint are written in the background, so
+ * that each checkpoint only has to wait for the data files to be synced.
+ * </p>
+ */
+public class Checkpointer {
+    /** A logging object for reporting anything interesting that happens. */
+    private static Logger logger = Logger.getLogger(Checkpointer.class);
+
+
+    /**
+     * The system property that can be used to specify how many seconds the
+     * checkpointer waits between checkpoints.  A value of 0 disables the
+     * checkpointer.
+     */
+    public static final String PROP_CHECKPOINT_INTERVAL =
+        "nanodb.checkpoint.interval";
+
+
+    /** By default, a checkpoint is taken every 60 seconds. */
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 60;
+
+
+    private class CheckpointerPropertyHandler implements PropertyHandler {
+        @Override
+        public Object getPropertyValue(String propertyName)
+            throws UnrecognizedPropertyException {
+
+            if (PROP_CHECKPOINT_INTERVAL.equals(propertyName)) {
+                return interval;
+            }
+            else {
+                throw new UnrecognizedPropertyException("No property named " +
+                    propertyName);
+            }
+        }
+
+        @Override
+        public void setPropertyValue(String propertyName, Object value)
+            throws UnrecognizedPropertyException, ReadOnlyPropertyException {
+
+            if (PROP_CHECKPOINT_INTERVAL.equals(propertyName)) {
+                throw new ReadOnlyPropertyException(propertyName +
+                    " is read-only");
+            }
+            else {
+                throw new UnrecognizedPropertyException("No property named " +
+                    propertyName);
+            }
+        }
+    }
+
+
+    private TransactionManager transactionManager;
+
+
+    /** The number of seconds between checkpoints, or 0 if disabled. */
+    private int interval;
+
+
+    /** The thread that takes checkpoints, or <tt>null</tt> if disabled. */
+    private ScheduledExecutorService executor;
+
+
+    /**
+     * Creates a checkpointer for the specified transaction manager.  The
+     * checkpointer doesn't take any checkpoints until {@link #start} is
+     * called.
+     *
+     * @param server the server to register the checkpointer's properties
+     *        with, or <tt>null</tt> if the properties shouldn't be registered
+     * @param transactionManager the transaction manager to take checkpoints
+     *        with
+     */
+    public Checkpointer(NanoDBServer server,
+                        TransactionManager transactionManager) {
+        this.transactionManager = transactionManager;
+
+        interval = configureInterval();
+
+        if (server != null) {
+            server.getPropertyRegistry().registerProperties(
+                new CheckpointerPropertyHandler(), PROP_CHECKPOINT_INTERVAL);
+        }
+    }
+
+
+    private int configureInterval() {
+        int value = DEFAULT_CHECKPOINT_INTERVAL;
+
+        String str = System.getProperty(PROP_CHECKPOINT_INTERVAL);
+        if (str != null) {
+            try {
+                value = Integer.parseInt(str.trim());
+            }
+            catch (NumberFormatException e) {
+                logger.error(String.format("Could not parse checkpoint-" +
+                    "interval value \"%s\"; using default value of %d", str,
+                    DEFAULT_CHECKPOINT_INTERVAL));
+            }
+
+            if (value < 0) {
+                logger.error(String.format("Checkpoint-interval value %d is " +
+                    "negative; using default value of %d", value,
+                    DEFAULT_CHECKPOINT_INTERVAL));
+
+                value = DEFAULT_CHECKPOINT_INTERVAL;
+            }
+        }
+
+        return value;
+    }
+
+
+    /**
+     * Starts the checkpointer's thread, unless the checkpointer is disabled.
+     * This should be called once recovery is complete.
+     */
+    public void start() {
+        if (interval == 0) {
+            logger.info("Checkpointer is disabled.");
+            return;
+        }
+
+        logger.info(String.format("Starting checkpointer:  taking a " +
+            "checkpoint every %d seconds.", interval));
+
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "Checkpointer");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleWithFixedDelay(this::takeCheckpoint, interval,
+            interval, TimeUnit.SECONDS);
+    }
+
+
+    /**
+     * Takes one checkpoint.  Errors are logged rather than thrown, since
+     * throwing would cancel all future checkpoints; recovery simply starts
+     * from the last checkpoint that succeeded.
+     */
+    private void takeCheckpoint() {
+        try {
+            transactionManager.checkpoint();
+        }
+        catch (IOException | RuntimeException e) {
+            logger.error("Checkpointer couldn't take a checkpoint", e);
+        }
+    }
+
+
+    /**
+     * Stops the checkpointer's thread, waiting for the current checkpoint to
+     * finish.
+     *
+     * @param server the server that the checkpointer's properties were
+     *        registered with, or <tt>null</tt>
+     */
+    public void shutdown(NanoDBServer server) {
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(60, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            executor = null;
+        }
+
+        if (server != null) {
+            server.getPropertyRegistry().unregisterProperties(
+                PROP_CHECKPOINT_INTERVAL);
+        }
+    }
+}
@@ -4,10 +4,12 @@ package edu.caltech.nanodb.transactions;
 import edu.caltech.nanodb.client.SessionState;
 import edu.caltech.nanodb.expressions.TypeCastException;
 import edu.caltech.nanodb.server.NanoDBServer;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
 import edu.caltech.nanodb.server.properties.PropertyHandler;
 import edu.caltech.nanodb.server.properties.ReadOnlyPropertyException;
 import edu.caltech.nanodb.server.properties.UnrecognizedPropertyException;
 import edu.caltech.nanodb.storage.*;
+import edu.caltech.nanodb.storage.writeahead.CheckpointRecord;
 import edu.caltech.nanodb.storage.writeahead.LogSequenceNumber;
 import edu.caltech.nanodb.storage.writeahead.RecoveryInfo;
 import edu.caltech.nanodb.storage.writeahead.WALManager;
@@ -16,13 +18,46 @@ import org.apache.log4j.Logger;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
+ * <p>
+ * The transaction manager starts, commits and rolls back transactions,
+ * using the {@link WALManager} to record their changes, and enforces the
+ * write-ahead logging rule for pages written by the {@link BufferManager}.
+ * </p>
+ * <p>
+ * Committing a transaction requires the WAL to be forced out to its commit
+ * record, which costs a sync of the WAL and a sync of the transaction-state
+ * file.  When many sessions commit at once, {@link #forceWAL} performs
+ * <em>group commit</em>:  the first session to arrive becomes the leader,
+ * and waits for everything appended to the WAL so far to be synced by the
+ * {@link edu.caltech.nanodb.storage.writeahead.WALWriter}, while the
+ * other sessions wait for their records to be covered by the leader's
+ * flush, or become the next leader if they aren't.  The
+ * {@link #PROP_COMMIT_DELAY} property makes a committing leader wait a
+ * little while before it flushes, if other transactions are in progress,
+ * so that their commit records can join the same flush.  The
+ * <tt>wal.flushes</tt> and <tt>wal.groupedCommits</tt> performance counters
+ * show how many flushes were done, and how many commits didn't need their
+ * own flush.
+ * </p>
+ * <p>
+ * The transaction manager also takes <em>fuzzy checkpoints</em> with
+ * {@link #checkpoint}, usually from the {@link Checkpointer}.  A checkpoint
+ * doesn't stop sessions from making changes.  It records the transactions
+ * that are active and the pages that are dirty in a
+ * {@link edu.caltech.nanodb.storage.writeahead.WALRecordType#CHECKPOINT}
+ * record, so that recovery can start near the checkpoint instead of at the
+ * start of the log, and then deletes the WAL files that recovery no longer
+ * needs.
+ * </p>
  */
 public class TransactionManager implements BufferManagerObserver {
     /** A logging object for reporting anything interesting that happens. */
@@ -36,6 +71,19 @@ public class TransactionManager implements BufferManagerObserver {
     public static final String PROP_TXNS = "nanodb.txns";
 
 
+    /**
+     * The system property that can be used to specify how many microseconds
+     * a committing transaction waits before it forces the WAL, so that other
+     * transactions can commit in the same flush.  The delay only applies
+     * when other transactions that have made changes are in progress.
+     */
+    public static final String PROP_COMMIT_DELAY = "nanodb.commitdelay";
+
+
+    /** By default, commits don't wait for other transactions. */
+    public static final int DEFAULT_COMMIT_DELAY = 0;
+
+
     /**
      * This is the name of the file that the Transaction Manager uses to keep
      * track of overall transaction state.
@@ -57,7 +105,7 @@ public class TransactionManager implements BufferManagerObserver {
     }
 
 
-    private static class TransactionPropertyHandler implements PropertyHandler {
+    private class TransactionPropertyHandler implements PropertyHandler {
 
         @Override
         public Object getPropertyValue(String propertyName)
@@ -66,6 +114,9 @@ public class TransactionManager implements BufferManagerObserver {
             if (PROP_TXNS.equals(propertyName)) {
                 return isEnabled();
             }
+            else if (PROP_COMMIT_DELAY.equals(propertyName)) {
+                return commitDelay;
+            }
             else {
                 throw new UnrecognizedPropertyException("No property named " +
                         propertyName);
@@ -77,7 +128,8 @@ public class TransactionManager implements BufferManagerObserver {
                 throws UnrecognizedPropertyException, ReadOnlyPropertyException,
                 TypeCastException {
 
-            if (PROP_TXNS.equals(propertyName)) {
+            if (PROP_TXNS.equals(propertyName) ||
+                PROP_COMMIT_DELAY.equals(propertyName)) {
                 throw new ReadOnlyPropertyException(propertyName +
                         " is read-only");
             }
@@ -108,8 +160,51 @@ public class TransactionManager implements BufferManagerObserver {
 
     /**
      * This is the last value of nextLSN saved to the transaction-state file.
+     * All WAL records before this LSN are on disk.  It is only changed while
+     * holding {@link #flushLock}.
      */
-    private LogSequenceNumber txnStateNextLSN;
+    private volatile LogSequenceNumber txnStateNextLSN;
+
+
+    /**
+     * This object is locked to decide which session forces the WAL, and is
+     * notified when a flush is finished.
+     */
+    private final Object flushLock = new Object();
+
+
+    /**
+     * True while a session is forcing the WAL.  Other sessions that need the
+     * WAL forced wait until the flush is finished.  Protected by
+     * {@link #flushLock}.
+     */
+    private boolean flushInProgress;
+
+
+    /**
+     * The number of microseconds a committing transaction waits before it
+     * forces the WAL, if other transactions are in progress.
+     */
+    private int commitDelay;
+
+
+    /**
+     * The number of transactions that have written records to the WAL and
+     * haven't committed or rolled back yet.
+     */
+    private AtomicInteger numWritingTxns = new AtomicInteger();
+
+
+    /** This object is locked so that only one checkpoint runs at a time. */
+    private final Object checkpointLock = new Object();
+
+
+    /**
+     * The start LSN of the last checkpoint, or <tt>null</tt> if no
+     * checkpoint has been taken since the server started.  Protected by
+     * {@link #checkpointLock}.
+     */
+    private LogSequenceNumber lastCheckpointStartLSN;
 
 
     public TransactionManager(NanoDBServer server) {
@@ -125,12 +220,41 @@ public class TransactionManager implements BufferManagerObserver {
 
         this.nextTxnID = new AtomicInteger();
 
-        walManager = new WALManager(storageManager, bufferManager);
+        walManager = new WALManager(server, storageManager, bufferManager);
+
+        commitDelay = configureCommitDelay();
 
         // Register properties that the Transaction Manager exposes.
         server.getPropertyRegistry().registerProperties(
-            new TransactionPropertyHandler(), PROP_TXNS);
+            new TransactionPropertyHandler(), PROP_TXNS, PROP_COMMIT_DELAY);
+
+    }
 
+
+    private int configureCommitDelay() {
+        int delay = DEFAULT_COMMIT_DELAY;
+
+        String str = System.getProperty(PROP_COMMIT_DELAY);
+        if (str != null) {
+            try {
+                delay = Integer.parseInt(str.trim());
+            }
+            catch (NumberFormatException e) {
+                logger.error(String.format("Could not parse commit-delay " +
+                    "value \"%s\"; using default value of %d", str,
+                    DEFAULT_COMMIT_DELAY));
+            }
+
+            if (delay < 0) {
+                logger.error(String.format("Commit-delay value %d is " +
+                    "negative; using default value of %d", delay,
+                    DEFAULT_COMMIT_DELAY));
+
+                delay = DEFAULT_COMMIT_DELAY;
+            }
+        }
+
+        return delay;
     }
 
 
@@ -166,6 +290,7 @@ public class TransactionManager implements BufferManagerObserver {
 
         txnState.setFirstLSN(lsn);
         txnState.setNextLSN(lsn);
+        txnState.setCheckpointLSN(null);
         txnStateNextLSN = lsn;
 
         storageManager.getBufferManager().writeDBFile(dbfTxnState, /* sync */ true);
@@ -191,13 +316,29 @@ public class TransactionManager implements BufferManagerObserver {
 
 
     private void storeTxnStateToFile() throws IOException {
+        storeTxnStateToFile(txnStateNextLSN);
+    }
+
+
+    /**
+     * Saves the transaction state to the transaction-state file and syncs
+     * it, recording that the WAL is on disk up to the specified LSN.
+     *
+     * @param nextLSN the LSN that the WAL is on disk up to
+     *
+     * @throws IOException if the transaction-state file can't be written
+     */
+    private void storeTxnStateToFile(LogSequenceNumber nextLSN)
+        throws IOException {
+
         DBFile dbfTxnState = storageManager.openDBFile(TXNSTATE_FILENAME);
         DBPage dbpTxnState = storageManager.loadDBPage(dbfTxnState, 0);
         TransactionStatePage txnState = new TransactionStatePage(dbpTxnState);
 
         txnState.setNextTransactionID(nextTxnID.get());
         txnState.setFirstLSN(walManager.getFirstLSN());
-        txnState.setNextLSN(txnStateNextLSN);
+        txnState.setNextLSN(nextLSN);
+        txnState.setCheckpointLSN(walManager.getCheckpointLSN());
 
         storageManager.getBufferManager().writeDBFile(dbfTxnState, /* sync */ true);
     }
@@ -229,10 +370,13 @@ public class TransactionManager implements BufferManagerObserver {
 
         LogSequenceNumber firstLSN = txnState.getFirstLSN();
         LogSequenceNumber nextLSN = txnState.getNextLSN();
-        logger.debug(String.format("Txn State has FirstLSN = %s, NextLSN = %s",
-            firstLSN, nextLSN));
+        LogSequenceNumber checkpointLSN = txnState.getCheckpointLSN();
+        logger.debug(String.format("Txn State has FirstLSN = %s, " +
+            "NextLSN = %s, CheckpointLSN = %s", firstLSN, nextLSN,
+            checkpointLSN));
 
-        RecoveryInfo recoveryInfo = walManager.doRecovery(firstLSN, nextLSN);
+        RecoveryInfo recoveryInfo =
+            walManager.doRecovery(firstLSN, nextLSN, checkpointLSN);
 
         // Set the "next transaction ID" value based on what recovery found
         int recNextTxnID = recoveryInfo.maxTransactionID + 1;
@@ -273,6 +417,17 @@ public class TransactionManager implements BufferManagerObserver {
     }
 
 
+    /**
+     * Returns true if any transaction has changed the database, and hasn't
+     * committed or rolled back yet.
+     *
+     * @return true if any transaction with changes is in progress
+     */
+    public boolean hasActiveTransactions() {
+        return numWritingTxns.get() > 0;
+    }
+
+
     public void startTransaction(boolean userStarted) throws TransactionException {
         SessionState state = SessionState.get();
         TransactionState txnState = state.getTxnState();
@@ -305,10 +460,41 @@ public class TransactionManager implements BufferManagerObserver {
         if (!txnState.hasLoggedTxnStart()) {
             walManager.writeTxnRecord(WALRecordType.START_TXN);
             txnState.setLoggedTxnStart(true);
+            numWritingTxns.incrementAndGet();
         }
 
         walManager.writeUpdatePageRecord(dbPage);
-        dbPage.syncOldPageData();
+        dbPage.clearDirtyRanges();
+    }
+
+
+    /**
+     * Records the entire contents of a page that the current transaction
+     * added to the end of a file, using a single redo-only WAL record.  This
+     * must only be used for pages that held no data before the transaction
+     * started, since rolling back the record clears the page.
+     *
+     * @param dbPage the new page to record
+     *
+     * @throws IOException if the write-ahead log can't be updated
+     */
+    public void recordNewPage(DBPage dbPage) throws IOException {
+        if (!dbPage.isDirty()) {
+            logger.debug("Page reports it is not dirty; not logging new page.");
+            return;
+        }
+
+        logger.debug("Recording new page " + dbPage.getPageNo() +
+            " of file " + dbPage.getDBFile());
+
+        TransactionState txnState = SessionState.get().getTxnState();
+        if (!txnState.hasLoggedTxnStart()) {
+            walManager.writeTxnRecord(WALRecordType.START_TXN);
+            txnState.setLoggedTxnStart(true);
+            numWritingTxns.incrementAndGet();
+        }
+
+        walManager.writeNewPageRecord(dbPage);
     }
 
 
@@ -331,13 +517,17 @@ public class TransactionManager implements BufferManagerObserver {
             // Must record the transaction as committed to the write-ahead log.
             // Then, we must force the WAL to include this commit record.
             try {
-                walManager.writeTxnRecord(WALRecordType.COMMIT_TXN);
-                forceWAL(walManager.getNextLSN());
+                LogSequenceNumber lsn =
+                    walManager.writeTxnRecord(WALRecordType.COMMIT_TXN);
+                forceWAL(lsn, /* commit */ true);
             }
             catch (IOException e) {
                 throw new TransactionException("Couldn't commit transaction " +
                     txnID + "!", e);
             }
+            finally {
+                numWritingTxns.decrementAndGet();
+            }
         }
         else {
             logger.debug("Transaction " + txnID + " has made no changes; not " +
@@ -375,6 +565,9 @@ public class TransactionManager implements BufferManagerObserver {
                 throw new TransactionException(
                     "Couldn't rollback transaction " + txnID + "!", e);
             }
+            finally {
+                numWritingTxns.decrementAndGet();
+            }
         }
         else {
             logger.debug("Transaction " + txnID + " has made no changes; not " +
@@ -436,7 +629,10 @@ public class TransactionManager implements BufferManagerObserver {
     /**
      * This method forces the write-ahead log out to at least the specified
      * log sequence number, syncing the log to ensure that all essential
-     * records have reached the disk itself.
+     * records have reached the disk itself.  Sessions and the
+     * {@link edu.caltech.nanodb.storage.BackgroundPageWriter} may force the
+     * WAL at the same time; see {@link #forceWAL(LogSequenceNumber, boolean)}
+     * for how they share flushes.
      *
      * @param lsn All WAL data up to this value must be forced to disk and
      *        sync'd.  This value may be one past the end of the current WAL
@@ -447,25 +643,112 @@ public class TransactionManager implements BufferManagerObserver {
      *         going to be broken.
      */
     public void forceWAL(LogSequenceNumber lsn) throws IOException {
-        // Note that the "next LSN" value must be determined from both the
-        // current LSN *and* its record size; otherwise we lose the last log
-        // record in the WAL file.  You can use this static method:
-        //
+        forceWAL(lsn, /* commit */ false);
+    }
 
-        // There is nothing to do if the LSN given is lower than what's already on disk
-        if (lsn == null || txnStateNextLSN.compareTo(lsn) > 0) return;
 
-        // Flush the buffer and sync to disk the WAL from the last synced LSN to the forced LSN.
-        // Delegate the actual WAL operation to the WALmanager.
-        walManager.flushWAL(txnStateNextLSN, lsn);
+    /**
+     * This method forces the write-ahead log out to at least the specified
+     * log sequence number, using group commit.  Only one session flushes
+     * the WAL at a time.  If a flush is in progress, the caller waits for it
+     * to finish, and then returns if the flush covered its record, or else
+     * becomes the next session to flush.  A flush always covers every record
+     * appended so far, so the commit records of sessions that arrived while
+     * the previous flush was in progress are all synced together.
+     *
+     * @param lsn All WAL data up to this value must be forced to disk and
+     *        sync'd.
+     *
+     * @param commit true if the WAL is being forced to commit a transaction,
+     *        in which case the commit delay applies
+     *
+     * @throws IOException if an IO error occurs while attempting to force the
+     *         WAL file to disk, or if the session is interrupted while
+     *         waiting for another session's flush
+     */
+    private void forceWAL(LogSequenceNumber lsn, boolean commit)
+        throws IOException {
 
-        // If we have reached this point, update the txnstate.dat atomically to actually
-        // commit the WAL. If we don't reach this point, whatever that was written to disk
-        // will be ignored, since nextLSN still has the old value. This ensures atomicity of
-        // the forceWAL() method.
-        int lastPosition = lsn.getFileOffset() + lsn.getRecordSize();
-        txnStateNextLSN = WALManager.computeNextLSN(lsn.getLogFileNo(), lastPosition);
-        storeTxnStateToFile();
+        if (lsn == null)
+            return;
+
+        synchronized (flushLock) {
+            while (true) {
+                // There is nothing to do if the LSN given is lower than
+                // what's already on disk.
+                if (txnStateNextLSN.compareTo(lsn) > 0) {
+                    if (commit)
+                        PerformanceCounters.inc(PerformanceCounters.WAL_GROUPED_COMMITS);
+
+                    return;
+                }
+
+                if (!flushInProgress)
+                    break;
+
+                try {
+                    flushLock.wait();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(
+                        "Interrupted while waiting for the WAL to be forced");
+                }
+            }
+
+            flushInProgress = true;
+        }
+
+        try {
+            if (commit && commitDelay > 0 && numWritingTxns.get() > 1) {
+                // Other transactions are in progress, so give them a
+                // chance to append their commit records before we flush.
+                try {
+                    TimeUnit.MICROSECONDS.sleep(commitDelay);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            // Flush everything that has been appended so far, not just the
+            // requested record, so that sessions waiting on this flush are
+            // covered by it.  Note that the "next LSN" value must be
+            // determined from both the last LSN *and* its record size;
+            // otherwise we lose the last log record in the WAL file.
+            LogSequenceNumber endLSN = walManager.getNextLSN();
+            if (endLSN.compareTo(lsn) < 0)
+                endLSN = lsn;
+
+            int lastPosition = endLSN.getFileOffset() + endLSN.getRecordSize();
+            LogSequenceNumber nextLSN =
+                WALManager.computeNextLSN(endLSN.getLogFileNo(), lastPosition);
+
+            // Wait for the WAL writer to write and sync the WAL up to the
+            // end LSN.  Delegate the actual WAL operation to the WAL manager.
+            walManager.flushWAL(nextLSN);
+
+            // If we have reached this point, update the txnstate.dat
+            // atomically to actually commit the WAL.  If we don't reach this
+            // point, whatever that was written to disk will be ignored, since
+            // nextLSN still has the old value.  This ensures atomicity of
+            // the forceWAL() method.
+            storeTxnStateToFile(nextLSN);
+
+            PerformanceCounters.inc(PerformanceCounters.WAL_FLUSHES);
+
+            // Only publish the new value once it is on disk, so that no
+            // session returns before its records are durable.
+            synchronized (flushLock) {
+                txnStateNextLSN = nextLSN;
+            }
+        }
+        finally {
+            synchronized (flushLock) {
+                flushInProgress = false;
+                flushLock.notifyAll();
+            }
+        }
     }
 
 
@@ -481,4 +764,116 @@ public class TransactionManager implements BufferManagerObserver {
     public void forceWAL() throws IOException {
         forceWAL(walManager.getNextLSN());
     }
+
+
+    /**
+     * <p>
+     * Takes a fuzzy checkpoint, while other sessions keep working.  First,
+     * pages that have been dirty since before the previous checkpoint
+     * started are written, so that pages that stay dirty don't hold back
+     * recovery forever.  Then the active transactions and the dirty pages
+     * are recorded in a checkpoint record, after syncing the data files so
+     * that every other change logged before the checkpoint is on disk.
+     * Once the checkpoint record is durable, the transaction-state file is
+     * updated so that recovery starts from the checkpoint, and the WAL files
+     * from before the oldest record that recovery may need are deleted.
+     * </p>
+     * <p>
+     * The <tt>wal.checkpoints</tt>, <tt>wal.checkpointPageWrites</tt> and
+     * <tt>wal.filesRecycled</tt> performance counters show how many
+     * checkpoints were taken, how many pages they wrote, and how many WAL
+     * files they deleted.
+     * </p>
+     *
+     * @throws IOException if an IO error occurs while writing pages, or
+     *         while updating the write-ahead log or the transaction-state
+     *         file
+     */
+    public void checkpoint() throws IOException {
+        BufferManager bufferManager = storageManager.getBufferManager();
+
+        synchronized (checkpointLock) {
+            if (lastCheckpointStartLSN != null) {
+                int written =
+                    bufferManager.writePagesLoggedBefore(lastCheckpointStartLSN);
+                PerformanceCounters.add(
+                    PerformanceCounters.WAL_CHECKPOINT_PAGE_WRITES, written);
+            }
+
+            CheckpointRecord checkpoint = walManager.beginCheckpoint();
+
+            // Every change logged before the start LSN is either in a dirty
+            // page with a recovery LSN, or was written before this point.
+            // Pages may be written and changed while they are examined; a
+            // page that is clean by now was written, and is synced below.
+            for (DBPage dbPage : bufferManager.getLoggedDirtyPages()) {
+                LogSequenceNumber recoveryLSN = dbPage.getRecoveryLSN();
+                if (recoveryLSN == null)
+                    continue;
+
+                checkpoint.dirtyPages.add(new CheckpointRecord.DirtyPage(
+                    dbPage.getDBFile().getDataFile().getName(),
+                    dbPage.getPageNo(), recoveryLSN));
+            }
+
+            bufferManager.syncAllFiles();
+
+            LogSequenceNumber lsn = walManager.writeCheckpointRecord(checkpoint);
+            forceWAL(lsn);
+
+            // Record where recovery starts from now.  Other sessions save
+            // the transaction state while they flush the WAL, so wait for
+            // any flush to finish, and keep others from starting.
+            synchronized (flushLock) {
+                while (flushInProgress) {
+                    try {
+                        flushLock.wait();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException(
+                            "Interrupted while waiting to record a checkpoint");
+                    }
+                }
+                flushInProgress = true;
+            }
+
+            try {
+                walManager.setRecoveryStart(checkpoint.getRedoLSN(), lsn);
+                storeTxnStateToFile();
+            }
+            finally {
+                synchronized (flushLock) {
+                    flushInProgress = false;
+                    flushLock.notifyAll();
+                }
+            }
+
+            int deleted =
+                walManager.deleteOldWALFiles(checkpoint.getOldestNeededLSN());
+
+            lastCheckpointStartLSN = checkpoint.startLSN;
+
+            PerformanceCounters.inc(PerformanceCounters.WAL_CHECKPOINTS);
+            PerformanceCounters.add(PerformanceCounters.WAL_FILES_RECYCLED,
+                deleted);
+
+            logger.debug(String.format("Checkpoint at LSN %s:  %d active " +
+                "transactions, %d dirty pages, recovery starts at %s, %d " +
+                "WAL files deleted", lsn, checkpoint.activeTxns.size(),
+                checkpoint.dirtyPages.size(), checkpoint.getRedoLSN(), deleted));
+        }
+    }
+
+
+    /**
+     * Stops the WAL writer, after all records in the WAL have reached the
+     * disk.  This is called during shutdown processing, after the Buffer
+     * Manager has written out all dirty pages.
+     *
+     * @throws IOException if the WAL couldn't be written or synced
+     */
+    public void shutdown() throws IOException {
+        walManager.close(server);
+    }
 }
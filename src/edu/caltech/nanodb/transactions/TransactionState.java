@@ -39,7 +39,15 @@ public class TransactionState {
     private boolean loggedTxnStart = false;
 
 
-    private LogSequenceNumber lastLSN = null;
+    /**
+     * The LSN of the transaction's start record, once it has been logged.
+     * This is volatile, along with {@link #lastLSN}, since checkpoints read
+     * the values from another thread.
+     */
+    private volatile LogSequenceNumber firstLSN = null;
+
+
+    private volatile LogSequenceNumber lastLSN = null;
 
 
     public int getTransactionID() {
@@ -82,6 +90,16 @@ public class TransactionState {
     }
 
 
+    public LogSequenceNumber getFirstLSN() {
+        return firstLSN;
+    }
+
+
+    public void setFirstLSN(LogSequenceNumber lsn) {
+        firstLSN = lsn;
+    }
+
+
     public LogSequenceNumber getLastLSN() {
         return lastLSN;
     }
@@ -94,6 +112,7 @@ public class TransactionState {
 
     public void clear() {
         transactionID = NO_TRANSACTION;
+        firstLSN = null;
         lastLSN = null;
         userStartedTxn = false;
         performedWrites = false;
@@ -13,11 +13,14 @@ import edu.caltech.nanodb.storage.writeahead.LogSequenceNumber;
  * <li><b>Next Transaction ID.</b>  This is the next transaction ID, as
  *     recorded by the database at the last point this file was saved.</li>
  * <li><b>First Log Sequence Number (LSN).</b>  This is the LSN in the
- *     write-ahead log (WAL) where recovery should start from.  It denotes a
- *     point in time where all table files and the WAL are completely in sync
- *     with each other.  Since NanoDB doesn't support checkpointing (yet), this
- *     value is usually updated after recovery is completed, and also upon
- *     proper shutdown of the database.</li>
+ *     write-ahead log (WAL) where recovery should start from.  Every change
+ *     recorded before it is on disk.  This value is updated after recovery
+ *     is completed, and by each checkpoint.</li>
+ * <li><b>Checkpoint LSN.</b>  This is the LSN of the checkpoint record that
+ *     holds the transactions that were active, and the pages that were
+ *     dirty, when recovery's starting point was chosen.  A file offset of 0
+ *     means that there is no such checkpoint, and recovery simply starts
+ *     from the first LSN.</li>
  * <li><b>Next LSN.</b>  This value is one byte past the last valid WAL record
  *     that has been successfully written <u>and sync'd</u> to the write-ahead
  *     log.  Note that this value may be behind the
@@ -61,6 +64,21 @@ public class TransactionStatePage {
     public static final int OFFSET_NEXT_LSN_OFFSET = 14;
 
 
+    /**
+     * The offset in the checkpoint page where the "Checkpoint Log Sequence
+     * Number" file-number is stored.  This value is an unsigned short (2
+     * bytes).
+     */
+    public static final int OFFSET_CHECKPOINT_LSN_FILENUM = 18;
+
+
+    /**
+     * The offset in the checkpoint page where the "Checkpoint Log Sequence
+     * Number" file-offset is stored.  This value is a signed int (4 bytes).
+     */
+    public static final int OFFSET_CHECKPOINT_LSN_OFFSET = 20;
+
+
     private DBPage dbPage;
 
 
@@ -105,4 +123,34 @@ public class TransactionStatePage {
         dbPage.writeShort(OFFSET_NEXT_LSN_FILENUM, nextLSN.getLogFileNo());
         dbPage.writeInt(OFFSET_NEXT_LSN_OFFSET, nextLSN.getFileOffset());
     }
+
+
+    /**
+     * Returns the LSN of the checkpoint record that recovery starts from, or
+     * <tt>null</tt> if recovery doesn't start from a checkpoint.
+     *
+     * @return the LSN of the checkpoint record, or <tt>null</tt>
+     */
+    public LogSequenceNumber getCheckpointLSN() {
+        int fileNum = dbPage.readUnsignedShort(OFFSET_CHECKPOINT_LSN_FILENUM);
+        int offset = dbPage.readInt(OFFSET_CHECKPOINT_LSN_OFFSET);
+        if (offset == 0)
+            return null;
+
+        return new LogSequenceNumber(fileNum, offset);
+    }
+
+
+    public void setCheckpointLSN(LogSequenceNumber checkpointLSN) {
+        if (checkpointLSN == null) {
+            dbPage.writeShort(OFFSET_CHECKPOINT_LSN_FILENUM, 0);
+            dbPage.writeInt(OFFSET_CHECKPOINT_LSN_OFFSET, 0);
+        }
+        else {
+            dbPage.writeShort(OFFSET_CHECKPOINT_LSN_FILENUM,
+                checkpointLSN.getLogFileNo());
+            dbPage.writeInt(OFFSET_CHECKPOINT_LSN_OFFSET,
+                checkpointLSN.getFileOffset());
+        }
+    }
 }
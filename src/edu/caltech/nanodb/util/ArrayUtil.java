@@ -1,6 +1,8 @@
 package edu.caltech.nanodb.util;
 
 
+import java.nio.ByteBuffer;
+
 /**
  * Some helpful utility operations for working with arrays.
  */
@@ -75,4 +77,76 @@ public class ArrayUtil {
 
         return size;
     }
+
+
+    /**
+     * This function reports how many bytes are identical between two byte
+     * buffers, starting at the specified absolute index.  The buffers are
+     * expected to have the same limit.  The buffers' positions are not used
+     * or changed.
+     *
+     * @param a the first buffer to examine
+     *
+     * @param b the second buffer to examine
+     *
+     * @param index the index to start the comparison at
+     *
+     * @return the number of bytes that are the same, starting from the
+     *         specified index
+     */
+    public static int sizeOfIdenticalRange(ByteBuffer a, ByteBuffer b,
+                                           int index) {
+        checkBuffers(a, b, index);
+
+        int limit = a.limit();
+        int size = 0;
+        for (int i = index; i < limit && a.get(i) == b.get(i); i++, size++);
+
+        return size;
+    }
+
+
+    /**
+     * This function reports how many bytes are different between two byte
+     * buffers, starting at the specified absolute index.  The buffers are
+     * expected to have the same limit.  The buffers' positions are not used
+     * or changed.
+     *
+     * @param a the first buffer to examine
+     *
+     * @param b the second buffer to examine
+     *
+     * @param index the index to start the comparison at
+     *
+     * @return the number of bytes that are different, starting from the
+     *         specified index
+     */
+    public static int sizeOfDifferentRange(ByteBuffer a, ByteBuffer b,
+                                           int index) {
+        checkBuffers(a, b, index);
+
+        int limit = a.limit();
+        int size = 0;
+        for (int i = index; i < limit && a.get(i) != b.get(i); i++, size++);
+
+        return size;
+    }
+
+
+    /** Checks the arguments of the byte-buffer comparison functions. */
+    private static void checkBuffers(ByteBuffer a, ByteBuffer b, int index) {
+        if (a == null)
+            throw new IllegalArgumentException("a must be specified");
+
+        if (b == null)
+            throw new IllegalArgumentException("b must be specified");
+
+        if (a.limit() != b.limit())
+            throw new IllegalArgumentException("a and b must be the same size");
+
+        if (index < 0 || index >= a.limit()) {
+            throw new IllegalArgumentException(
+                "off must be a valid index into the buffers");
+        }
+    }
 }
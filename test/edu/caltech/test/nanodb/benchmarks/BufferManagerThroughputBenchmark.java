@@ -0,0 +1,187 @@
+package edu.caltech.test.nanodb.benchmarks;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.storage.BufferManager;
+import edu.caltech.nanodb.storage.DBFile;
+import edu.caltech.nanodb.storage.DBFileType;
+import edu.caltech.nanodb.storage.DBPage;
+import edu.caltech.nanodb.storage.FileManager;
+import edu.caltech.nanodb.storage.FileManagerImpl;
+
+
+/**
+ * This benchmark measures how many page accesses per second the
+ * {@link BufferManager} can service as the number of concurrent clients
+ * grows.  Each client repeatedly pins a random page, reads from it, and
+ * unpins it.  The working set is larger than the page cache, so clients
+ * also exercise eviction.
+ * <p>
+ * The benchmark is run once with a single page-table partition, which
+ * behaves like a buffer manager with one global latch, and once with the
+ * default number of partitions.  Results are printed to standard output.
+ * <p>
+ * This is not part of the normal test suite, since it takes a while to run
+ * and its results depend on the machine.  Enable the "benchmarks" test in
+ * <tt>testng.xml</tt> to run it.
+ */
+@Test(groups={"benchmark"})
+public class BufferManagerThroughputBenchmark {
+
+    /** This is the filename used for the benchmark. */
+    private static final String TEST_FILE_NAME = "BufferManagerBenchmark_File";
+
+
+    /** The number of pages in the benchmark file. */
+    private static final int NUM_PAGES = 4096;
+
+
+    /** The number of pages that fit in the page cache. */
+    private static final int CACHE_PAGES = 2048;
+
+
+    /** The number of page accesses each client performs. */
+    private static final int OPS_PER_CLIENT = 200000;
+
+
+    private File testBaseDir;
+
+    private FileManager fileMgr;
+
+    private DBFile dbFile;
+
+
+    @BeforeClass
+    public void beforeClass() throws IOException {
+        testBaseDir = new File("test_datafiles");
+        if (!testBaseDir.exists())
+            testBaseDir.mkdirs();
+
+        fileMgr = new FileManagerImpl(testBaseDir);
+        if (fileMgr.fileExists(TEST_FILE_NAME))
+            fileMgr.deleteDBFile(TEST_FILE_NAME);
+
+        dbFile = fileMgr.createDBFile(TEST_FILE_NAME,
+            DBFileType.HEAP_TUPLE_FILE, DBFile.DEFAULT_PAGESIZE);
+
+        byte[] buffer = new byte[DBFile.DEFAULT_PAGESIZE];
+        for (int pageNo = 0; pageNo < NUM_PAGES; pageNo++)
+            fileMgr.savePage(dbFile, pageNo, buffer);
+    }
+
+
+    @AfterClass
+    public void afterClass() throws IOException {
+        System.clearProperty(BufferManager.PROP_PAGECACHE_SIZE);
+        System.clearProperty(BufferManager.PROP_PAGECACHE_PARTITIONS);
+
+        fileMgr.closeDBFile(dbFile);
+        fileMgr.deleteDBFile(dbFile);
+    }
+
+
+    /**
+     * Loads a page through the buffer manager the same way that the
+     * {@link edu.caltech.nanodb.storage.StorageManager} does.
+     */
+    private DBPage loadPage(BufferManager bufMgr, int pageNo)
+        throws IOException {
+
+        DBPage dbPage = bufMgr.getPage(dbFile, pageNo);
+        if (dbPage == null) {
+            dbPage = new DBPage(bufMgr, dbFile, pageNo);
+            fileMgr.loadPage(dbFile, pageNo, dbPage.getPageBuffer());
+
+            DBPage cachedPage = bufMgr.addPageIfAbsent(dbPage);
+            if (cachedPage != dbPage) {
+                dbPage.invalidate();
+                dbPage = cachedPage;
+            }
+        }
+
+        return dbPage;
+    }
+
+
+    /**
+     * Runs the specified number of clients against a new buffer manager,
+     * and returns the overall throughput in page accesses per second.
+     */
+    private double runClients(int numPartitions, int numClients)
+        throws Exception {
+
+        System.setProperty(BufferManager.PROP_PAGECACHE_SIZE,
+            Long.toString((long) CACHE_PAGES * DBFile.DEFAULT_PAGESIZE));
+        System.setProperty(BufferManager.PROP_PAGECACHE_PARTITIONS,
+            Integer.toString(numPartitions));
+
+        final BufferManager bufMgr = new BufferManager(null, fileMgr);
+        final CyclicBarrier barrier = new CyclicBarrier(numClients + 1);
+
+        ArrayList<Thread> clients = new ArrayList<>();
+        for (int i = 0; i < numClients; i++) {
+            final long seed = i;
+            clients.add(new Thread(() -> {
+                Random rand = new Random(seed);
+                try {
+                    barrier.await();
+                    for (int op = 0; op < OPS_PER_CLIENT; op++) {
+                        // Skew accesses towards the first part of the file,
+                        // so that most accesses hit in the cache.
+                        int pageNo = rand.nextInt(4) != 0 ?
+                            rand.nextInt(CACHE_PAGES / 2) :
+                            rand.nextInt(NUM_PAGES);
+
+                        DBPage dbPage = loadPage(bufMgr, pageNo);
+                        dbPage.readInt(0);
+                        dbPage.unpin();
+                    }
+                }
+                catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+        }
+
+        for (Thread t : clients)
+            t.start();
+
+        barrier.await();
+        long start = System.nanoTime();
+
+        for (Thread t : clients)
+            t.join();
+
+        long elapsed = System.nanoTime() - start;
+        bufMgr.flushAll();
+
+        return (double) numClients * OPS_PER_CLIENT / (elapsed / 1e9);
+    }
+
+
+    public void benchmarkThroughput() throws Exception {
+        int maxClients = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+        System.out.println("Buffer Manager throughput (page accesses/sec):");
+        System.out.printf("%10s %14s %14s %14s%n",
+            "clients", "1 partition", "partitioned", "speedup");
+
+        for (int numClients = 1; numClients <= maxClients; numClients *= 2) {
+            double single = runClients(1, numClients);
+            double partitioned = runClients(
+                BufferManager.DEFAULT_PAGECACHE_PARTITIONS, numClients);
+
+            System.out.printf("%10d %14.0f %14.0f %13.2fx%n", numClients,
+                single, partitioned, partitioned / single);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package edu.caltech.test.nanodb.benchmarks;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.server.CommandResult;
+import edu.caltech.nanodb.server.NanoDBServer;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+import edu.caltech.nanodb.storage.StorageManager;
+
+
+/**
+ * This benchmark loads the "stores" schema with about 28,000 rows into heap
+ * tables and into columnar tables, and then runs the same aggregate queries
+ * against each with an empty page cache.  Each query only uses one or two
+ * columns of its table, which a columnar table can answer without reading
+ * the others.  For each kind of table, it reports the size of the tuple
+ * files, the number of pages and bytes read by the queries, and the CPU time
+ * the queries took.  Results are printed to standard output.
+ * <p>
+ * This is not part of the normal test suite, since it takes a while to run
+ * and its results depend on the machine.  Enable the "benchmarks" test in
+ * <tt>testng.xml</tt> to run it.
+ */
+@Test(groups={"benchmark"})
+public class ColumnarScanBenchmark {
+
+    /** The directory holding the scripts that create and load the schema. */
+    private static final String SCHEMA_DIR = "schemas/stores";
+
+
+    /** The tables of the schema, whose tuple files are reported. */
+    private static final String[] TABLES =
+        { "states", "cities", "stores", "employees" };
+
+
+    /**
+     * The queries that are timed; each one scans a whole table, but only
+     * uses some of its columns.
+     */
+    private static final String[] QUERIES = {
+        "SELECT COUNT(*), SUM(salary) FROM employees;",
+        "SELECT COUNT(*), MAX(population) FROM cities;",
+        "SELECT COUNT(*), SUM(property_costs) FROM stores;",
+        "SELECT COUNT(*) FROM states;"
+    };
+
+
+    /** The number of times the queries are measured, each with a cold cache. */
+    private static final int RUNS = 5;
+
+
+    /** The base directory of the database being measured. */
+    private File baseDir;
+
+
+    private NanoDBServer server;
+
+
+    @AfterClass
+    public void afterClass() throws IOException {
+        System.clearProperty(StorageManager.PROP_BASEDIR);
+        if (baseDir != null)
+            FileUtils.deleteDirectory(baseDir);
+    }
+
+
+    private static String readScript(String filename) throws IOException {
+        byte[] contents = Files.readAllBytes(Paths.get(SCHEMA_DIR, filename));
+        return new String(contents, StandardCharsets.UTF_8)
+            .replaceAll("(?m)^QUIT;", "");
+    }
+
+
+    private void doCommands(String commands) throws Exception {
+        List<CommandResult> results = server.doCommands(commands, false);
+        for (CommandResult result : results) {
+            if (result.failed())
+                throw new Exception("Command failed", result.getFailure());
+        }
+    }
+
+
+    /**
+     * Creates and loads the schema in a new database, with the specified
+     * kind of storage, and then prints the measurements of the scans if
+     * <tt>report</tt> is true.
+     */
+    private void measure(String storage, boolean report) throws Exception {
+        baseDir = new File("test_datafiles", "storage_" + storage);
+        if (baseDir.exists())
+            FileUtils.deleteDirectory(baseDir);
+        baseDir.mkdirs();
+        System.setProperty(StorageManager.PROP_BASEDIR,
+            baseDir.getAbsolutePath());
+
+        String schema = readScript("make-stores.sql");
+        schema = schema.replaceAll("(CREATE TABLE [^;]*\\))\\s*;",
+            "$1 PROPERTIES (storage = '" + storage + "');");
+
+        server = new NanoDBServer();
+        server.startup();
+        doCommands(schema);
+
+        long start = System.nanoTime();
+        doCommands(readScript("stores-28K.sql"));
+        double loadSecs = (System.nanoTime() - start) / 1e9;
+        server.shutdown();
+
+        long fileBytes = 0;
+        for (String table : TABLES)
+            fileBytes += new File(baseDir, table.toUpperCase() + ".tbl").length();
+
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        long bytesRead = 0;
+        long pagesRead = 0;
+        long cpuNanos = 0;
+        for (int run = 0; run < RUNS; run++) {
+            // Each run starts with an empty page cache.
+            server = new NanoDBServer();
+            server.startup();
+
+            long startBytes = PerformanceCounters.get(
+                PerformanceCounters.STORAGE_BYTES_READ);
+            long startPages = PerformanceCounters.get(
+                PerformanceCounters.STORAGE_PAGES_READ);
+            long startCpu = threadBean.getCurrentThreadCpuTime();
+
+            for (String query : QUERIES)
+                doCommands(query);
+
+            cpuNanos += threadBean.getCurrentThreadCpuTime() - startCpu;
+            bytesRead += PerformanceCounters.get(
+                PerformanceCounters.STORAGE_BYTES_READ) - startBytes;
+            pagesRead += PerformanceCounters.get(
+                PerformanceCounters.STORAGE_PAGES_READ) - startPages;
+
+            server.shutdown();
+        }
+
+        if (report) {
+            System.out.printf("%12s %10.1f %12d %10d %12d %10.1f%n",
+                storage, loadSecs, fileBytes, pagesRead / RUNS,
+                bytesRead / RUNS, cpuNanos / 1e6 / RUNS);
+        }
+
+        FileUtils.deleteDirectory(baseDir);
+    }
+
+
+    public void benchmarkColumnarScans() throws Exception {
+        // Warm up the JIT compiler before anything is reported, on both
+        // kinds of tables.
+        measure("heap", false);
+        measure("column", false);
+
+        System.out.printf("Cold scans of the stores schema (average of %d " +
+            "runs):%n", RUNS);
+        System.out.printf("%12s %10s %12s %10s %12s %10s%n", "storage",
+            "load (s)", "file bytes", "pages", "bytes read", "CPU (ms)");
+
+        measure("heap", true);
+        measure("column", true);
+    }
+}
@@ -0,0 +1,141 @@
+package edu.caltech.test.nanodb.benchmarks;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.CyclicBarrier;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.client.SessionState;
+import edu.caltech.nanodb.server.CommandResult;
+import edu.caltech.nanodb.server.NanoDBServer;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+import edu.caltech.nanodb.storage.StorageManager;
+import edu.caltech.nanodb.transactions.TransactionManager;
+
+
+/**
+ * This benchmark measures how many transactions per second the database
+ * can commit as the number of concurrent clients grows.  Each client
+ * repeatedly inserts one row into its own table, in its own transaction,
+ * so every transaction has to force the write-ahead log.  The benchmark is
+ * run with no commit delay, and with a short commit delay that lets more
+ * commits share each flush.  For each run, it reports the commit rate and
+ * the number of commits per WAL flush.  Results are printed to standard
+ * output.
+ * <p>
+ * This is not part of the normal test suite, since it takes a while to run
+ * and its results depend on the machine.  Enable the "benchmarks" test in
+ * <tt>testng.xml</tt> to run it.
+ */
+@Test(groups={"benchmark"})
+public class GroupCommitBenchmark {
+
+    /** The number of transactions each client commits. */
+    private static final int TXNS_PER_CLIENT = 200;
+
+
+    /** The commit delays that are measured, in microseconds. */
+    private static final int[] COMMIT_DELAYS = { 0, 1000 };
+
+
+    /** The base directory of the database being measured. */
+    private File baseDir;
+
+
+    @AfterClass
+    public void afterClass() throws IOException {
+        System.clearProperty(StorageManager.PROP_BASEDIR);
+        System.clearProperty(TransactionManager.PROP_TXNS);
+        System.clearProperty(TransactionManager.PROP_COMMIT_DELAY);
+        if (baseDir != null)
+            FileUtils.deleteDirectory(baseDir);
+    }
+
+
+    /**
+     * Runs the specified number of clients against a new database, and
+     * prints the commit rate and the number of commits per WAL flush.
+     */
+    private void runClients(int commitDelay, int numClients) throws Exception {
+        baseDir = new File("test_datafiles", "group_commit");
+        if (baseDir.exists())
+            FileUtils.deleteDirectory(baseDir);
+        baseDir.mkdirs();
+        System.setProperty(StorageManager.PROP_BASEDIR,
+            baseDir.getAbsolutePath());
+        System.setProperty(TransactionManager.PROP_TXNS, "on");
+        System.setProperty(TransactionManager.PROP_COMMIT_DELAY,
+            Integer.toString(commitDelay));
+
+        final NanoDBServer server = new NanoDBServer();
+        server.startup();
+
+        for (int i = 0; i < numClients; i++)
+            server.doCommand("CREATE TABLE commits_" + i + " (a int)", false);
+
+        final CyclicBarrier barrier = new CyclicBarrier(numClients + 1);
+        ArrayList<Thread> clients = new ArrayList<>();
+        for (int i = 0; i < numClients; i++) {
+            final int client = i;
+            clients.add(new Thread(() -> {
+                try {
+                    barrier.await();
+                    for (int j = 0; j < TXNS_PER_CLIENT; j++) {
+                        CommandResult result = server.doCommand(
+                            "INSERT INTO commits_" + client + " VALUES (" +
+                            j + ")", false);
+                        if (result.failed())
+                            throw new RuntimeException(result.getFailure());
+                    }
+                }
+                catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                finally {
+                    SessionState.remove();
+                }
+            }));
+        }
+
+        for (Thread t : clients)
+            t.start();
+
+        PerformanceCounters.clear(PerformanceCounters.WAL_FLUSHES);
+        barrier.await();
+        long start = System.nanoTime();
+
+        for (Thread t : clients)
+            t.join();
+
+        long elapsed = System.nanoTime() - start;
+        long flushes = PerformanceCounters.get(PerformanceCounters.WAL_FLUSHES);
+
+        server.shutdown();
+        FileUtils.deleteDirectory(baseDir);
+
+        long commits = (long) numClients * TXNS_PER_CLIENT;
+        System.out.printf("%10d %10d %14.0f %18.2f%n", commitDelay,
+            numClients, commits / (elapsed / 1e9),
+            (double) commits / Math.max(1, flushes));
+    }
+
+
+    public void benchmarkGroupCommit() throws Exception {
+        // Warm up the JIT compiler before anything is reported.
+        runClients(0, 2);
+
+        System.out.println("Commit throughput:");
+        System.out.printf("%10s %10s %14s %18s%n", "delay (us)", "clients",
+            "commits/sec", "commits/flush");
+
+        for (int commitDelay : COMMIT_DELAYS) {
+            for (int numClients = 1; numClients <= 16; numClients *= 2)
+                runClients(commitDelay, numClients);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package edu.caltech.test.nanodb.benchmarks;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.server.CommandResult;
+import edu.caltech.nanodb.server.NanoDBServer;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+import edu.caltech.nanodb.storage.StorageManager;
+import edu.caltech.nanodb.storage.writeahead.WALManager;
+import edu.caltech.nanodb.transactions.Checkpointer;
+import edu.caltech.nanodb.transactions.TransactionManager;
+
+
+/**
+ * This benchmark measures how long recovery takes after a crash, as the
+ * number of redo threads grows.  A separate JVM fills several tables and
+ * then crashes with the <tt>CRASH</tt> command, which halts the JVM without
+ * writing any dirty pages.  Each run then recovers a copy of the crashed
+ * database.  For each number of redo threads, the benchmark reports how long
+ * the server took to start up, and how many redo records were skipped
+ * because their pages were already on disk.  Results are printed to
+ * standard output.
+ * <p>
+ * This is not part of the normal test suite, since it takes a while to run
+ * and its results depend on the machine.  Enable the "benchmarks" test in
+ * <tt>testng.xml</tt> to run it.
+ */
+@Test(groups={"benchmark"})
+public class RecoveryBenchmark {
+
+    /** The number of tables the crashed database holds. */
+    private static final int NUM_TABLES = 8;
+
+
+    /** The number of rows inserted into each table. */
+    private static final int ROWS_PER_TABLE = 5000;
+
+
+    /** The numbers of redo threads that are measured. */
+    private static final int[] REDO_THREADS = { 1, 2, 4, 8 };
+
+
+    /** The exit status of a JVM that was halted by <tt>CRASH</tt>. */
+    private static final int CRASH_EXIT_STATUS = 22;
+
+
+    /** The directory holding the crashed database. */
+    private File crashDir = new File("test_datafiles", "recovery_crash");
+
+
+    /** The directory that each run recovers a copy of the database in. */
+    private File baseDir = new File("test_datafiles", "recovery");
+
+
+    @AfterClass
+    public void afterClass() throws IOException {
+        System.clearProperty(StorageManager.PROP_BASEDIR);
+        System.clearProperty(TransactionManager.PROP_TXNS);
+        System.clearProperty(Checkpointer.PROP_CHECKPOINT_INTERVAL);
+        System.clearProperty(WALManager.PROP_REDO_THREADS);
+        FileUtils.deleteDirectory(crashDir);
+        FileUtils.deleteDirectory(baseDir);
+    }
+
+
+    /**
+     * Fills a new database and then crashes.  This is run in a separate JVM
+     * by {@link #crashDatabase}, since <tt>CRASH</tt> halts the JVM.
+     */
+    public static class CrashedDatabase {
+        private static void doCommand(NanoDBServer server, String command)
+            throws Exception {
+
+            CommandResult result = server.doCommand(command, false);
+            if (result.failed())
+                throw new RuntimeException(result.getFailure());
+        }
+
+
+        /**
+         * Fills a new database in the specified directory, and then crashes.
+         *
+         * @param args the directory to create the database in
+         */
+        public static void main(String[] args) throws Exception {
+            System.setProperty(StorageManager.PROP_BASEDIR, args[0]);
+            System.setProperty(TransactionManager.PROP_TXNS, "on");
+            System.setProperty(Checkpointer.PROP_CHECKPOINT_INTERVAL, "0");
+
+            NanoDBServer server = new NanoDBServer();
+            server.startup();
+
+            char[] chars = new char[200];
+            Arrays.fill(chars, 'z');
+            String value = new String(chars);
+
+            for (int t = 0; t < NUM_TABLES; t++) {
+                String table = "recovery_" + t;
+                doCommand(server, "CREATE TABLE " + table +
+                    " (a int, b varchar(200))");
+
+                doCommand(server, "BEGIN");
+                for (int i = 0; i < ROWS_PER_TABLE; i++) {
+                    doCommand(server, "INSERT INTO " + table + " VALUES (" +
+                        i + ", '" + value + "')");
+                }
+                doCommand(server, "COMMIT");
+
+                doCommand(server, "UPDATE " + table + " SET a = a + 1");
+            }
+
+            doCommand(server, "CRASH");
+
+            // CRASH doesn't return.
+            System.exit(1);
+        }
+    }
+
+
+    /**
+     * Runs {@link CrashedDatabase} in a separate JVM to create the crashed
+     * database.
+     */
+    private void crashDatabase() throws Exception {
+        if (crashDir.exists())
+            FileUtils.deleteDirectory(crashDir);
+        crashDir.mkdirs();
+
+        ArrayList<String> command = new ArrayList<>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"),
+            "java").getPath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        String logConfig = System.getProperty("log4j.configuration");
+        if (logConfig != null)
+            command.add("-Dlog4j.configuration=" + logConfig);
+        command.add(CrashedDatabase.class.getName());
+        command.add(crashDir.getAbsolutePath());
+
+        Process process = new ProcessBuilder(command).inheritIO().start();
+        int status = process.waitFor();
+        if (status != CRASH_EXIT_STATUS) {
+            throw new IllegalStateException(
+                "Database process exited with status " + status);
+        }
+    }
+
+
+    /**
+     * Recovers a copy of the crashed database with the specified number of
+     * redo threads, and prints how long the server took to start.
+     */
+    private void recover(int redoThreads, boolean report) throws Exception {
+        if (baseDir.exists())
+            FileUtils.deleteDirectory(baseDir);
+        FileUtils.copyDirectory(crashDir, baseDir);
+
+        System.setProperty(StorageManager.PROP_BASEDIR,
+            baseDir.getAbsolutePath());
+        System.setProperty(TransactionManager.PROP_TXNS, "on");
+        System.setProperty(Checkpointer.PROP_CHECKPOINT_INTERVAL, "0");
+        System.setProperty(WALManager.PROP_REDO_THREADS,
+            Integer.toString(redoThreads));
+
+        PerformanceCounters.clear(PerformanceCounters.WAL_REDO_RECORDS_SKIPPED);
+
+        long start = System.nanoTime();
+        NanoDBServer server = new NanoDBServer();
+        server.startup();
+        long elapsed = System.nanoTime() - start;
+
+        long skipped = PerformanceCounters.get(
+            PerformanceCounters.WAL_REDO_RECORDS_SKIPPED);
+
+        server.shutdown();
+        FileUtils.deleteDirectory(baseDir);
+
+        if (report) {
+            System.out.printf("%12d %16.1f %16d%n", redoThreads,
+                elapsed / 1e6, skipped);
+        }
+    }
+
+
+    public void benchmarkRecovery() throws Exception {
+        crashDatabase();
+
+        // Warm up the JIT compiler before anything is reported.
+        recover(1, false);
+
+        System.out.println("Recovery time:");
+        System.out.printf("%12s %16s %16s%n", "redo threads", "startup (ms)",
+            "records skipped");
+
+        for (int redoThreads : REDO_THREADS)
+            recover(redoThreads, true);
+    }
+}
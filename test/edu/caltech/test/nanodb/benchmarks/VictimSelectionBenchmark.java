@@ -0,0 +1,192 @@
+package edu.caltech.test.nanodb.benchmarks;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.storage.BufferManager;
+import edu.caltech.nanodb.storage.DBFile;
+import edu.caltech.nanodb.storage.DBFileType;
+import edu.caltech.nanodb.storage.DBPage;
+import edu.caltech.nanodb.storage.FileManager;
+import edu.caltech.nanodb.storage.FileManagerImpl;
+import edu.caltech.nanodb.storage.ReplacementPolicies;
+
+
+/**
+ * This benchmark measures how long the {@link BufferManager} takes to load
+ * a page that isn't cached, and so must evict another page, as more and
+ * more of the page cache is pinned.  Since the replacement policies set
+ * pinned pages aside instead of stepping over them on every eviction, the
+ * time per load should stay about the same no matter how many pages are
+ * pinned.
+ * <p>
+ * The page cache has a single partition, so that every eviction searches
+ * the same replacement policy.  Results are printed to standard output, in
+ * nanoseconds per page load.
+ * <p>
+ * This is not part of the normal test suite, since it takes a while to run
+ * and its results depend on the machine.  Enable the "benchmarks" test in
+ * <tt>testng.xml</tt> to run it.
+ */
+@Test(groups={"benchmark"})
+public class VictimSelectionBenchmark {
+
+    /** This is the filename used for the benchmark. */
+    private static final String TEST_FILE_NAME = "VictimSelectionBenchmark_File";
+
+
+    /** The page size of the benchmark file. */
+    private static final int PAGE_SIZE = DBFile.MIN_PAGESIZE;
+
+
+    /** The number of pages that fit in the page cache. */
+    private static final int CACHE_PAGES = 8192;
+
+
+    /** The number of pages in the benchmark file. */
+    private static final int NUM_PAGES = 3 * CACHE_PAGES;
+
+
+    /** The number of page loads that are timed for each measurement. */
+    private static final int LOADS = 200000;
+
+
+    /** The fractions of the page cache that are pinned. */
+    private static final double[] PINNED_FRACTIONS = { 0, 0.5, 0.9, 0.99 };
+
+
+    private File testBaseDir;
+
+    private FileManager fileMgr;
+
+    private DBFile dbFile;
+
+
+    @BeforeClass
+    public void beforeClass() throws IOException {
+        testBaseDir = new File("test_datafiles");
+        if (!testBaseDir.exists())
+            testBaseDir.mkdirs();
+
+        fileMgr = new FileManagerImpl(testBaseDir);
+        if (fileMgr.fileExists(TEST_FILE_NAME))
+            fileMgr.deleteDBFile(TEST_FILE_NAME);
+
+        dbFile = fileMgr.createDBFile(TEST_FILE_NAME,
+            DBFileType.HEAP_TUPLE_FILE, PAGE_SIZE);
+
+        byte[] buffer = new byte[PAGE_SIZE];
+        for (int pageNo = 0; pageNo < NUM_PAGES; pageNo++)
+            fileMgr.savePage(dbFile, pageNo, buffer);
+    }
+
+
+    @AfterClass
+    public void afterClass() throws IOException {
+        System.clearProperty(BufferManager.PROP_PAGECACHE_SIZE);
+        System.clearProperty(BufferManager.PROP_PAGECACHE_PARTITIONS);
+        System.clearProperty(BufferManager.PROP_PAGECACHE_POLICY);
+
+        fileMgr.closeDBFile(dbFile);
+        fileMgr.deleteDBFile(dbFile);
+    }
+
+
+    /**
+     * Loads a page through the buffer manager the same way that the
+     * {@link edu.caltech.nanodb.storage.StorageManager} does.
+     */
+    private DBPage loadPage(BufferManager bufMgr, int pageNo)
+        throws IOException {
+
+        DBPage dbPage = bufMgr.getPage(dbFile, pageNo);
+        if (dbPage == null) {
+            dbPage = new DBPage(bufMgr, dbFile, pageNo);
+            fileMgr.loadPage(dbFile, pageNo, dbPage.getPageBuffer());
+
+            DBPage cachedPage = bufMgr.addPageIfAbsent(dbPage);
+            if (cachedPage != dbPage) {
+                dbPage.invalidate();
+                dbPage = cachedPage;
+            }
+        }
+
+        return dbPage;
+    }
+
+
+    /**
+     * Pins the specified number of pages in a new buffer manager, and then
+     * returns the average time in nanoseconds to load a page that isn't
+     * cached.
+     */
+    private double measureLoads(String policy, int numPinned)
+        throws IOException {
+
+        System.setProperty(BufferManager.PROP_PAGECACHE_SIZE,
+            Long.toString((long) CACHE_PAGES * PAGE_SIZE));
+        System.setProperty(BufferManager.PROP_PAGECACHE_PARTITIONS, "1");
+        System.setProperty(BufferManager.PROP_PAGECACHE_POLICY, policy);
+
+        BufferManager bufMgr = new BufferManager(null, fileMgr);
+
+        ArrayList<DBPage> pinnedPages = new ArrayList<>();
+        for (int pageNo = 0; pageNo < numPinned; pageNo++)
+            pinnedPages.add(loadPage(bufMgr, pageNo));
+
+        // Cycle through more pages than fit in the rest of the cache, so
+        // that every load misses and has to evict a page.  The first pass
+        // fills the cache and warms up the JIT compiler.
+        int firstPageNo = numPinned;
+        int numCycled = NUM_PAGES - numPinned;
+        for (int i = 0; i < numCycled; i++)
+            loadPage(bufMgr, firstPageNo + i).unpin();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < LOADS; i++)
+            loadPage(bufMgr, firstPageNo + i % numCycled).unpin();
+
+        long elapsed = System.nanoTime() - start;
+
+        for (DBPage dbPage : pinnedPages)
+            dbPage.unpin();
+
+        bufMgr.flushAll();
+
+        return (double) elapsed / LOADS;
+    }
+
+
+    public void benchmarkVictimSelection() throws Exception {
+        String[] policies = { ReplacementPolicies.LRU, ReplacementPolicies.FIFO,
+            ReplacementPolicies.CLOCK, ReplacementPolicies.TWO_QUEUE,
+            ReplacementPolicies.LRU_K };
+
+        // Warm up the JIT compiler before anything is reported.
+        measureLoads(ReplacementPolicies.LRU, 0);
+
+        System.out.printf("Page load time with %d cached pages " +
+            "(ns/load):%n", CACHE_PAGES);
+
+        System.out.printf("%10s", "pinned");
+        for (String policy : policies)
+            System.out.printf(" %10s", policy);
+        System.out.println();
+
+        for (double fraction : PINNED_FRACTIONS) {
+            int numPinned = (int) (fraction * CACHE_PAGES);
+            System.out.printf("%9.0f%%", fraction * 100);
+
+            for (String policy : policies)
+                System.out.printf(" %10.0f", measureLoads(policy, numPinned));
+
+            System.out.println();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package edu.caltech.test.nanodb.sql;
+
+
+import java.io.File;
+import java.util.ArrayList;
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.server.CommandResult;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+import edu.caltech.nanodb.storage.StorageManager;
+
+
+/**
+ * This class exercises tables created with the <tt>compression</tt>
+ * property, whose tuple files store their pages compressed.
+ */
+@Test
+public class TestCompressedTables extends SqlTestCase {
+
+    /** The number of rows inserted into each table. */
+    private static final int NUM_ROWS = 2000;
+
+
+    /** Returns the city stored in each table for the specified row. */
+    private static String makeCity(int id) {
+        String[] cities = { "Pasadena", "Los Angeles", "San Francisco",
+            "Sacramento", "San Diego" };
+        return cities[id % cities.length];
+    }
+
+
+    /** Returns the size of a table's tuple file, in bytes. */
+    private static long getTableFileSize(String tableName) {
+        File baseDir = new File(System.getProperty(StorageManager.PROP_BASEDIR));
+        return new File(baseDir, tableName.toUpperCase() + ".tbl").length();
+    }
+
+
+    /**
+     * Fills a table with rows, and then deletes some of them, returning the
+     * rows that the table should hold afterward.
+     */
+    private ArrayList<TupleLiteral> populateTable(String tableName)
+        throws Throwable {
+
+        for (int id = 0; id < NUM_ROWS; id++) {
+            tryDoCommand(String.format("INSERT INTO %s VALUES (%d, '%s');",
+                tableName, id, makeCity(id)));
+        }
+
+        tryDoCommand("DELETE FROM " + tableName + " WHERE id % 4 = 1;");
+
+        ArrayList<TupleLiteral> expected = new ArrayList<>();
+        for (int id = 0; id < NUM_ROWS; id++) {
+            if (id % 4 != 1)
+                expected.add(new TupleLiteral(id, makeCity(id)));
+        }
+        return expected;
+    }
+
+
+    /**
+     * A compressed heap table holds the same rows as an uncompressed one,
+     * both before and after the server is restarted, but its tuple file is
+     * much smaller.
+     */
+    public void testCompressedHeapTable() throws Throwable {
+        tryDoCommand("CREATE TABLE test_lz_heap (id INTEGER, city VARCHAR(30)) " +
+            "PROPERTIES (compression = 'lz');");
+        tryDoCommand("CREATE TABLE test_plain_heap (id INTEGER, city VARCHAR(30));");
+
+        ArrayList<TupleLiteral> expected = populateTable("test_lz_heap");
+        populateTable("test_plain_heap");
+
+        // Updated rows are longer, so some pages compress less well.
+        tryDoCommand("UPDATE test_lz_heap SET city = 'Pasadena, California' " +
+            "WHERE id % 4 = 2;");
+        for (int i = 0; i < expected.size(); i++) {
+            int id = (Integer) expected.get(i).getColumnValue(0);
+            if (id % 4 == 2)
+                expected.set(i, new TupleLiteral(id, "Pasadena, California"));
+        }
+
+        TupleLiteral[] expectedArray = expected.toArray(new TupleLiteral[0]);
+
+        CommandResult result =
+            server.doCommand("SELECT * FROM test_lz_heap;", true);
+        assert checkUnorderedResults(expectedArray, result);
+
+        restartServer();
+
+        long start = PerformanceCounters.get(
+            PerformanceCounters.STORAGE_PAGES_DECOMPRESSED);
+
+        result = server.doCommand("SELECT * FROM test_lz_heap;", true);
+        assert checkUnorderedResults(expectedArray, result);
+
+        assert PerformanceCounters.get(
+            PerformanceCounters.STORAGE_PAGES_DECOMPRESSED) > start;
+
+        assert getTableFileSize("test_lz_heap") * 2 <
+            getTableFileSize("test_plain_heap");
+
+        tryDoCommand("DROP TABLE test_lz_heap;");
+        File baseDir = new File(System.getProperty(StorageManager.PROP_BASEDIR));
+        assert !new File(baseDir, "TEST_LZ_HEAP.tbl.pmap").exists();
+    }
+
+
+    /**
+     * A compressed B<sup>+</sup> tree table holds the same rows, in order,
+     * both before and after the server is restarted.
+     */
+    public void testCompressedBTreeTable() throws Throwable {
+        tryDoCommand("CREATE TABLE test_lz_btree (id INTEGER, city VARCHAR(30)) " +
+            "PROPERTIES (storage = 'btree', compression = 'lz');");
+
+        ArrayList<TupleLiteral> expected = populateTable("test_lz_btree");
+        TupleLiteral[] expectedArray = expected.toArray(new TupleLiteral[0]);
+
+        CommandResult result =
+            server.doCommand("SELECT * FROM test_lz_btree;", true);
+        assert checkOrderedResults(expectedArray, result);
+
+        restartServer();
+
+        result = server.doCommand("SELECT * FROM test_lz_btree;", true);
+        assert checkOrderedResults(expectedArray, result);
+    }
+
+
+    /** Unknown compression methods are rejected. */
+    public void testUnknownCompression() throws Throwable {
+        CommandResult result = server.doCommand(
+            "CREATE TABLE test_lz_bad (id INTEGER) " +
+            "PROPERTIES (compression = 'zip');", false);
+        assert result.failed();
+    }
+}
@@ -0,0 +1,77 @@
+package edu.caltech.test.nanodb.sql;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.server.CommandResult;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+
+
+/**
+ * This class exercises <tt>INSERT ... SELECT</tt> commands, which load their
+ * results into heap files by appending whole pages at the end of the file.
+ */
+@Test
+public class TestInsertSelect extends SqlTestCase {
+
+    /** The number of rows in the source table. */
+    private static final int NUM_ROWS = 600;
+
+
+    /** Returns the name stored in the source table for the specified row. */
+    private static String makeName(int id) {
+        char[] chars = new char[20 + id % 60];
+        Arrays.fill(chars, (char) ('a' + id % 26));
+        return new String(chars);
+    }
+
+
+    /**
+     * Rows loaded with <tt>INSERT ... SELECT</tt> fill several fresh pages,
+     * and can be read back both before and after the server is restarted,
+     * along with rows that are inserted afterward.
+     *
+     * @throws Exception if any query parsing or execution issues occur.
+     */
+    public void testInsertSelect() throws Throwable {
+        tryDoCommand("CREATE TABLE test_ins_sel_src (id INTEGER, name VARCHAR(100))");
+        tryDoCommand("CREATE TABLE test_ins_sel_dst (id INTEGER, name VARCHAR(100))");
+
+        ArrayList<TupleLiteral> expected = new ArrayList<>();
+        for (int id = 0; id < NUM_ROWS; id++) {
+            tryDoCommand("INSERT INTO test_ins_sel_src VALUES (" + id + ", '" +
+                makeName(id) + "')");
+            expected.add(new TupleLiteral(id, makeName(id)));
+        }
+
+        long start = PerformanceCounters.get(
+            PerformanceCounters.STORAGE_BULK_PAGES_APPENDED);
+
+        tryDoCommand("INSERT INTO test_ins_sel_dst SELECT * FROM test_ins_sel_src");
+
+        // The rows are too wide to fit in one page.
+        assert PerformanceCounters.get(
+            PerformanceCounters.STORAGE_BULK_PAGES_APPENDED) >= start + 2;
+
+        CommandResult result = server.doCommand(
+            "SELECT * FROM test_ins_sel_dst", true);
+        assert checkUnorderedResults(expected.toArray(new TupleLiteral[0]), result);
+
+        restartServer();
+
+        tryDoCommand("INSERT INTO test_ins_sel_dst VALUES (-1, 'single')");
+        tryDoCommand("INSERT INTO test_ins_sel_dst " +
+            "SELECT * FROM test_ins_sel_src WHERE id < 10");
+
+        expected.add(new TupleLiteral(-1, "single"));
+        for (int id = 0; id < 10; id++)
+            expected.add(new TupleLiteral(id, makeName(id)));
+
+        result = server.doCommand("SELECT * FROM test_ins_sel_dst", true);
+        assert checkUnorderedResults(expected.toArray(new TupleLiteral[0]), result);
+    }
+}
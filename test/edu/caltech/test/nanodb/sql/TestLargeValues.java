@@ -0,0 +1,133 @@
+package edu.caltech.test.nanodb.sql;
+
+
+import java.util.Arrays;
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.server.CommandResult;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+
+
+/**
+ * This class exercises tables with values that are too large to be stored
+ * in their tuples, so that they are stored out of line in the table's
+ * overflow file.
+ */
+@Test
+public class TestLargeValues extends SqlTestCase {
+
+    /** Returns a string of the specified length, made of a single letter. */
+    private static String makeString(char ch, int length) {
+        char[] chars = new char[length];
+        Arrays.fill(chars, ch);
+        return new String(chars);
+    }
+
+
+    /**
+     * Values larger than a page are stored out of line, and can be read
+     * back, both before and after the server is restarted.
+     *
+     * @throws Exception if any query parsing or execution issues occur.
+     */
+    public void testInsertSelect() throws Throwable {
+        String body1 = makeString('a', 20000);
+        String body2 = makeString('b', 3000);
+
+        tryDoCommand("CREATE TABLE test_large_insert (" +
+            "id INTEGER, body TEXT, note VARCHAR(100))");
+        tryDoCommand("INSERT INTO test_large_insert VALUES " +
+            "(1, '" + body1 + "', 'one')");
+        tryDoCommand("INSERT INTO test_large_insert VALUES " +
+            "(2, '" + body2 + "', 'two')");
+        tryDoCommand("INSERT INTO test_large_insert VALUES " +
+            "(3, 'small', NULL)");
+
+        TupleLiteral[] expected = {
+            new TupleLiteral(1, body1, "one"),
+            new TupleLiteral(2, body2, "two"),
+            new TupleLiteral(3, "small", null)
+        };
+
+        CommandResult result = server.doCommand(
+            "SELECT * FROM test_large_insert", true);
+        assert checkUnorderedResults(expected, result);
+
+        restartServer();
+
+        result = server.doCommand("SELECT * FROM test_large_insert", true);
+        assert checkUnorderedResults(expected, result);
+    }
+
+
+    /**
+     * Scans that don't read a column never read its out-of-line values.
+     *
+     * @throws Exception if any query parsing or execution issues occur.
+     */
+    public void testNarrowScan() throws Throwable {
+        tryDoCommand("CREATE TABLE test_large_narrow (id INTEGER, body TEXT)");
+        for (int i = 0; i < 10; i++) {
+            tryDoCommand("INSERT INTO test_large_narrow VALUES " +
+                "(" + i + ", '" + makeString('c', 5000 + i) + "')");
+        }
+
+        long start = PerformanceCounters.get(
+            PerformanceCounters.STORAGE_OVERFLOW_VALUES_READ);
+
+        TupleLiteral[] expected = {
+            createTupleFromNum(3),
+            createTupleFromNum(7)
+        };
+        CommandResult result = server.doCommand(
+            "SELECT id FROM test_large_narrow WHERE id = 3 OR id = 7", true);
+        assert checkUnorderedResults(expected, result);
+
+        assert PerformanceCounters.get(
+            PerformanceCounters.STORAGE_OVERFLOW_VALUES_READ) == start;
+
+        result = server.doCommand(
+            "SELECT body FROM test_large_narrow WHERE id = 3", true);
+        assert checkUnorderedResults(
+            new TupleLiteral[] { new TupleLiteral(makeString('c', 5003)) },
+            result);
+
+        assert PerformanceCounters.get(
+            PerformanceCounters.STORAGE_OVERFLOW_VALUES_READ) == start + 1;
+    }
+
+
+    /**
+     * Updating and deleting tuples with out-of-line values replaces and
+     * frees the values.
+     *
+     * @throws Exception if any query parsing or execution issues occur.
+     */
+    public void testUpdateDelete() throws Throwable {
+        String big = makeString('d', 9000);
+        String bigger = makeString('e', 12000);
+
+        tryDoCommand("CREATE TABLE test_large_update (id INTEGER, body TEXT)");
+        tryDoCommand("INSERT INTO test_large_update VALUES (1, '" + big + "')");
+        tryDoCommand("INSERT INTO test_large_update VALUES (2, 'tiny')");
+        tryDoCommand("INSERT INTO test_large_update VALUES (3, '" + big + "')");
+
+        tryDoCommand("UPDATE test_large_update SET body = 'shrunk' WHERE id = 1");
+        tryDoCommand("UPDATE test_large_update SET body = '" + bigger +
+            "' WHERE id = 2");
+        tryDoCommand("DELETE FROM test_large_update WHERE id = 3");
+        tryDoCommand("INSERT INTO test_large_update VALUES (4, '" + big + "')");
+
+        TupleLiteral[] expected = {
+            new TupleLiteral(1, "shrunk"),
+            new TupleLiteral(2, bigger),
+            new TupleLiteral(4, big)
+        };
+
+        CommandResult result = server.doCommand(
+            "SELECT * FROM test_large_update", true);
+        assert checkUnorderedResults(expected, result);
+    }
+}
@@ -0,0 +1,177 @@
+package edu.caltech.test.nanodb.sql;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.indexes.IndexInfo;
+import edu.caltech.nanodb.indexes.IndexManager;
+import edu.caltech.nanodb.indexes.IndexUtils;
+import edu.caltech.nanodb.relations.TableInfo;
+import edu.caltech.nanodb.relations.Tuple;
+import edu.caltech.nanodb.server.CommandResult;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+import edu.caltech.nanodb.storage.FilePointer;
+import edu.caltech.nanodb.storage.PageTuple;
+import edu.caltech.nanodb.storage.TupleFile;
+
+
+/**
+ * This class exercises the <tt>OPTIMIZE</tt> command, which compacts heap
+ * files by moving tuples out of the pages at the end of the file, and then
+ * removing the pages that were emptied.
+ */
+@Test
+public class TestOptimize extends SqlTestCase {
+
+    /** The number of rows inserted into the table. */
+    private static final int NUM_ROWS = 400;
+
+
+    /** Returns the name stored in the table for the specified row. */
+    private static String makeName(int id) {
+        char[] chars = new char[40 + id % 40];
+        Arrays.fill(chars, (char) ('a' + id % 26));
+        return new String(chars);
+    }
+
+
+    /**
+     * After most of the rows of a table are deleted, optimizing the table
+     * removes pages from the end of the file, and the remaining rows can
+     * still be read and updated, both before and after the server is
+     * restarted.
+     *
+     * @throws Exception if any query parsing or execution issues occur.
+     */
+    public void testOptimizeAfterDeletes() throws Throwable {
+        tryDoCommand("CREATE TABLE test_optimize (id INTEGER, name VARCHAR(100))");
+        for (int id = 0; id < NUM_ROWS; id++) {
+            tryDoCommand("INSERT INTO test_optimize VALUES (" + id + ", '" +
+                makeName(id) + "')");
+        }
+
+        // Leave every fifth row, so that every page keeps a few rows.
+        tryDoCommand("DELETE FROM test_optimize WHERE id % 5 <> 0");
+
+        ArrayList<TupleLiteral> expected = new ArrayList<>();
+        for (int id = 0; id < NUM_ROWS; id += 5)
+            expected.add(new TupleLiteral(id, makeName(id)));
+
+        long start = PerformanceCounters.get(
+            PerformanceCounters.STORAGE_PAGES_TRUNCATED);
+
+        tryDoCommand("OPTIMIZE TABLE test_optimize");
+
+        assert PerformanceCounters.get(
+            PerformanceCounters.STORAGE_PAGES_TRUNCATED) >= start + 2;
+
+        CommandResult result = server.doCommand(
+            "SELECT * FROM test_optimize", true);
+        assert checkUnorderedResults(expected.toArray(new TupleLiteral[0]), result);
+
+        // The table can still be changed after it is optimized.
+        tryDoCommand("UPDATE test_optimize SET name = 'short' WHERE id = 5");
+        tryDoCommand("INSERT INTO test_optimize VALUES (-1, 'new')");
+        expected.set(1, new TupleLiteral(5, "short"));
+        expected.add(new TupleLiteral(-1, "new"));
+
+        restartServer();
+
+        result = server.doCommand("SELECT * FROM test_optimize", true);
+        assert checkUnorderedResults(expected.toArray(new TupleLiteral[0]), result);
+
+        // Optimizing a table that is already compact doesn't change it.
+        start = PerformanceCounters.get(
+            PerformanceCounters.STORAGE_PAGES_TRUNCATED);
+        tryDoCommand("OPTIMIZE test_optimize");
+        assert PerformanceCounters.get(
+            PerformanceCounters.STORAGE_PAGES_TRUNCATED) == start;
+
+        result = server.doCommand("SELECT * FROM test_optimize", true);
+        assert checkUnorderedResults(expected.toArray(new TupleLiteral[0]), result);
+    }
+
+
+    /**
+     * Looks up each of the specified rows through an index on the table's
+     * <tt>id</tt> column, and checks that the index entry refers to a tuple
+     * with the row's values.
+     */
+    private void checkIndexLookups(String tableName, String indexName,
+                                   ArrayList<TupleLiteral> expected)
+        throws Throwable {
+
+        TableInfo tableInfo =
+            server.getStorageManager().getTableManager().openTable(tableName);
+        IndexManager indexManager = server.getStorageManager().getIndexManager();
+        IndexInfo indexInfo = indexManager.openIndex(tableInfo, indexName);
+
+        TupleFile tableFile = tableInfo.getTupleFile();
+        TupleFile indexFile = indexInfo.getTupleFile();
+        assert IndexUtils.verifyIndex(tableFile, indexFile).isEmpty();
+
+        int ptrCol = indexFile.getSchema().getColumnIndex("#TUPLE_PTR");
+        for (TupleLiteral row : expected) {
+            PageTuple entry = IndexUtils.findTupleInIndex(
+                new TupleLiteral(row.getColumnValue(0)), indexFile);
+            assert entry != null : "No index entry for " + row;
+
+            FilePointer fptr = (FilePointer) entry.getColumnValue(ptrCol);
+            entry.unpin();
+
+            Tuple tup = tableFile.getTuple(fptr);
+            assert row.getColumnValue(0).equals(tup.getColumnValue(0)) &&
+                row.getColumnValue(1).equals(tup.getColumnValue(1)) :
+                "Index entry for " + row + " refers to " + fptr;
+            tup.unpin();
+        }
+    }
+
+
+    /**
+     * Optimizing a table with an index moves the index entries of the rows
+     * that are moved, so that lookups through the index still find every
+     * row after the emptied pages are removed.
+     *
+     * @throws Exception if any query parsing or execution issues occur.
+     */
+    public void testOptimizeIndexedTable() throws Throwable {
+        tryDoCommand("CREATE TABLE test_optimize_idx (id INTEGER, " +
+            "name VARCHAR(100))");
+        for (int id = 0; id < NUM_ROWS; id++) {
+            tryDoCommand("INSERT INTO test_optimize_idx VALUES (" + id + ", '" +
+                makeName(id) + "')");
+        }
+        tryDoCommand("DELETE FROM test_optimize_idx WHERE id % 5 <> 0");
+
+        // Row changes aren't applied to indexes yet, so the index is built
+        // after the rows are deleted.
+        tryDoCommand("CREATE INDEX idx_optimize_id ON test_optimize_idx (id)");
+
+        ArrayList<TupleLiteral> expected = new ArrayList<>();
+        for (int id = 0; id < NUM_ROWS; id += 5)
+            expected.add(new TupleLiteral(id, makeName(id)));
+
+        long start = PerformanceCounters.get(
+            PerformanceCounters.STORAGE_PAGES_TRUNCATED);
+
+        tryDoCommand("OPTIMIZE TABLE test_optimize_idx");
+
+        assert PerformanceCounters.get(
+            PerformanceCounters.STORAGE_PAGES_TRUNCATED) >= start + 2;
+
+        checkIndexLookups("TEST_OPTIMIZE_IDX", "IDX_OPTIMIZE_ID", expected);
+
+        CommandResult result = server.doCommand(
+            "SELECT * FROM test_optimize_idx", true);
+        assert checkUnorderedResults(expected.toArray(new TupleLiteral[0]), result);
+
+        restartServer();
+
+        checkIndexLookups("TEST_OPTIMIZE_IDX", "IDX_OPTIMIZE_ID", expected);
+    }
+}
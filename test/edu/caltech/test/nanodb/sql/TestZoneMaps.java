@@ -0,0 +1,210 @@
+package edu.caltech.test.nanodb.sql;
+
+
+import java.util.ArrayList;
+import java.util.function.IntPredicate;
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.server.CommandResult;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+
+
+/**
+ * This class exercises heap tables created with the <tt>zonemap</tt>
+ * property, whose scans skip the pages that can't hold matching rows.
+ */
+@Test
+public class TestZoneMaps extends SqlTestCase {
+
+    /** The number of rows inserted into each table. */
+    private static final int NUM_ROWS = 1500;
+
+
+    /** Returns the score stored in each table for the specified row. */
+    private static Double makeScore(int id) {
+        return (id % 7 == 0) ? null : id * 0.5;
+    }
+
+
+    /** Fills a table with rows whose ids are in increasing order. */
+    private void populateTable(String tableName) throws Throwable {
+        for (int id = 0; id < NUM_ROWS; id++) {
+            Double score = makeScore(id);
+            tryDoCommand(String.format("INSERT INTO %s VALUES (%d, %s, '%s');",
+                tableName, id, (score == null ? "NULL" : score.toString()),
+                "padding to fill up the pages, row " + id));
+        }
+    }
+
+
+    /**
+     * Runs a query that selects the id of each row, and checks that the
+     * results hold the ids that the filter accepts.
+     *
+     * @return the number of pages that the query skipped
+     */
+    private long checkQuery(String query, int[] ids, IntPredicate filter)
+        throws Throwable {
+
+        long start = PerformanceCounters.get(
+            PerformanceCounters.STORAGE_ZONE_MAP_PAGES_SKIPPED);
+        CommandResult result = tryDoCommand(query, true);
+        long skipped = PerformanceCounters.get(
+            PerformanceCounters.STORAGE_ZONE_MAP_PAGES_SKIPPED) - start;
+
+        ArrayList<TupleLiteral> expected = new ArrayList<>();
+        for (int id : ids) {
+            if (filter.test(id))
+                expected.add(new TupleLiteral((Object) id));
+        }
+
+        assert checkUnorderedResults(expected.toArray(new TupleLiteral[0]),
+            result) : "Wrong results for " + query;
+
+        return skipped;
+    }
+
+
+    /** Returns the ids 0 through <tt>NUM_ROWS</tt> - 1. */
+    private static int[] allIds() {
+        int[] ids = new int[NUM_ROWS];
+        for (int id = 0; id < NUM_ROWS; id++)
+            ids[id] = id;
+        return ids;
+    }
+
+
+    /**
+     * Range filters on an append-ordered column only read the few pages
+     * that hold the range.
+     */
+    public void testRangeScans() throws Throwable {
+        tryDoCommand("CREATE TABLE test_zm_range (id INTEGER, score DOUBLE, " +
+            "note VARCHAR(40)) PROPERTIES (zonemap = 'on', pagesize = 4096);");
+        populateTable("test_zm_range");
+
+        int[] ids = allIds();
+
+        long skipped = checkQuery(
+            "SELECT id FROM test_zm_range WHERE id >= 1400;", ids,
+            id -> id >= 1400);
+        assert skipped > 10 : "Only skipped " + skipped + " pages";
+
+        skipped = checkQuery(
+            "SELECT id FROM test_zm_range WHERE id > 500 AND id < 520;", ids,
+            id -> id > 500 && id < 520);
+        assert skipped > 10 : "Only skipped " + skipped + " pages";
+
+        // Mixed integer and floating-point comparisons, and literals on the
+        // left side.
+        checkQuery("SELECT id FROM test_zm_range WHERE 100.5 > score;", ids,
+            id -> makeScore(id) != null && makeScore(id) < 100.5);
+        checkQuery("SELECT id FROM test_zm_range WHERE score = 300;", ids,
+            id -> makeScore(id) != null && makeScore(id) == 300);
+        checkQuery("SELECT id FROM test_zm_range " +
+            "WHERE id IN (3, 777, 1499) OR id < 2;", ids,
+            id -> id == 3 || id == 777 || id == 1499 || id < 2);
+
+        // No page is free of NULL scores, so nothing can be skipped here.
+        checkQuery("SELECT id FROM test_zm_range WHERE score IS NULL;", ids,
+            id -> makeScore(id) == null);
+    }
+
+
+    /**
+     * Updates, deletes and <tt>OPTIMIZE</tt> keep the zone map covering the
+     * rows, both before and after <tt>ANALYZE</tt> and a server restart.
+     */
+    public void testMaintenance() throws Throwable {
+        tryDoCommand("CREATE TABLE test_zm_maint (id INTEGER, score DOUBLE, " +
+            "note VARCHAR(40)) PROPERTIES (zonemap = 'on', pagesize = 4096);");
+        populateTable("test_zm_maint");
+
+        // Move a row's id out of its page's range, remove every row with a
+        // NULL score except one, and set another row's score to NULL.
+        tryDoCommand("UPDATE test_zm_maint SET id = 5000 WHERE id = 10;");
+        tryDoCommand("DELETE FROM test_zm_maint WHERE score IS NULL " +
+            "AND id <> 700;");
+        tryDoCommand("UPDATE test_zm_maint SET score = NULL WHERE id = 1401;");
+        tryDoCommand("DELETE FROM test_zm_maint WHERE id > 1000 AND id < 1300;");
+
+        ArrayList<Integer> idList = new ArrayList<>();
+        for (int id = 0; id < NUM_ROWS; id++) {
+            if ((id > 1000 && id < 1300) || (id % 7 == 0 && id != 700))
+                continue;
+            idList.add(id == 10 ? 5000 : id);
+        }
+        int[] ids = idList.stream().mapToInt(Integer::intValue).toArray();
+
+        for (int pass = 0; pass < 3; pass++) {
+            checkQuery("SELECT id FROM test_zm_maint WHERE id > 4000;", ids,
+                id -> id > 4000);
+            checkQuery("SELECT id FROM test_zm_maint WHERE id >= 990 " +
+                "AND id <= 1310;", ids, id -> id >= 990 && id <= 1310);
+
+            long skipped = checkQuery(
+                "SELECT id FROM test_zm_maint WHERE score IS NULL;", ids,
+                id -> id == 700 || id == 1401);
+            assert skipped > 10 : "Only skipped " + skipped + " pages";
+
+            if (pass == 0) {
+                tryDoCommand("OPTIMIZE test_zm_maint;");
+                tryDoCommand("ANALYZE test_zm_maint;");
+            }
+            else if (pass == 1) {
+                restartServer();
+            }
+        }
+    }
+
+
+    /**
+     * Comparisons between strings and numbers are coerced by parsing the
+     * strings, which doesn't keep values in order, so they never skip pages.
+     * The strings '10' and '9' are in the opposite order of the numbers 10
+     * and 9.
+     */
+    public void testStringNumberComparisons() throws Throwable {
+        tryDoCommand("CREATE TABLE test_zm_mixed (id INTEGER, code VARCHAR(10)) " +
+            "PROPERTIES (zonemap = 'on', pagesize = 4096);");
+        for (int id = 0; id < NUM_ROWS; id++) {
+            tryDoCommand(String.format(
+                "INSERT INTO test_zm_mixed VALUES (%d, '%d');", id, id));
+        }
+
+        int[] ids = allIds();
+
+        long skipped = checkQuery(
+            "SELECT id FROM test_zm_mixed WHERE code = 9;", ids, id -> id == 9);
+        assert skipped == 0 : "Skipped " + skipped + " pages";
+
+        skipped = checkQuery(
+            "SELECT id FROM test_zm_mixed WHERE code IN (9, 1234);", ids,
+            id -> id == 9 || id == 1234);
+        assert skipped == 0 : "Skipped " + skipped + " pages";
+
+        skipped = checkQuery(
+            "SELECT id FROM test_zm_mixed WHERE id = '9';", ids, id -> id == 9);
+        assert skipped == 0 : "Skipped " + skipped + " pages";
+
+        // Numeric literals are still checked against numeric columns.
+        skipped = checkQuery(
+            "SELECT id FROM test_zm_mixed WHERE id = 9;", ids, id -> id == 9);
+        assert skipped > 0 : "Didn't skip any pages";
+    }
+
+
+    /** Zone maps can only be created for heap tables. */
+    public void testUnsupportedTables() throws Throwable {
+        CommandResult result = server.doCommand(
+            "CREATE TABLE test_zm_btree (id INTEGER) " +
+            "PROPERTIES (storage = 'btree', zonemap = 'on');", false);
+        assert result.failed();
+
+        result = server.doCommand("CREATE TABLE test_zm_bad (id INTEGER) " +
+            "PROPERTIES (zonemap = 'maybe');", false);
+        assert result.failed();
+    }
+}
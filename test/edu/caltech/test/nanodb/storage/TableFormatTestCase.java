@@ -15,7 +15,10 @@ import edu.caltech.nanodb.relations.ColumnInfo;
 import edu.caltech.nanodb.relations.ColumnType;
 import edu.caltech.nanodb.relations.SQLDataType;
 import edu.caltech.nanodb.relations.Schema;
+import edu.caltech.nanodb.relations.Tuple;
 import edu.caltech.nanodb.server.CommandResult;
+import edu.caltech.nanodb.storage.BufferManager;
+import edu.caltech.nanodb.storage.TupleFile;
 import edu.caltech.test.nanodb.sql.SqlTestCase;
 
 
@@ -127,4 +130,38 @@ public class TableFormatTestCase extends SqlTestCase {
         else
             assert checkUnorderedResults(tupleArray, result);
     }
+
+
+    /**
+     * Walks through the tuples in a table's file, unpinning each tuple and
+     * flushing the file's pages from the Buffer Manager before asking for
+     * the next tuple.  This makes sure that the tuple file finds the next
+     * tuple from the previous tuple's location, and not from its page, which
+     * may have been evicted and reused once the tuple was unpinned.
+     *
+     * @param tableName the name of the table to scan
+     *
+     * @return the number of tuples in the table
+     *
+     * @throws Exception if an IO error occurs
+     */
+    protected int countTuplesWithEvictions(String tableName) throws Exception {
+        TupleFile tupleFile = server.getStorageManager().getTableManager()
+            .openTable(tableName).getTupleFile();
+        BufferManager bufferManager =
+            server.getStorageManager().getBufferManager();
+
+        int count = 0;
+        Tuple tup = tupleFile.getFirstTuple();
+        while (tup != null) {
+            count++;
+
+            tup.unpin();
+            bufferManager.flushDBFile(tupleFile.getDBFile());
+
+            tup = tupleFile.getNextTuple(tup);
+        }
+
+        return count;
+    }
 }
@@ -0,0 +1,578 @@
+package edu.caltech.test.nanodb.storage;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+import edu.caltech.nanodb.storage.*;
+
+
+/**
+ * This test class exercises the functionality of the
+ * {@link edu.caltech.nanodb.storage.BufferManager} class, particularly when
+ * multiple sessions access the buffer manager at the same time.
+ */
+@Test
+public class TestBufferManager extends StorageTestCase {
+
+    /** This is the filename used for the tests in this class. */
+    private final String TEST_FILE_NAME = "TestBufferManager_TestFile";
+
+
+    /** The number of pages in the test file. */
+    private static final int NUM_PAGES = 64;
+
+
+    /** This is the file-manager instance used for the tests in this class. */
+    private FileManager fileMgr;
+
+
+    /** The file that the tests load pages from. */
+    private DBFile dbFile;
+
+
+    /**
+     * Creates a test file where the first integer of each page holds the
+     * page's page-number, so that tests can verify they got the right page.
+     */
+    @BeforeMethod
+    public void beforeMethod() throws IOException {
+        fileMgr = new FileManagerImpl(testBaseDir);
+
+        if (fileMgr.fileExists(TEST_FILE_NAME))
+            fileMgr.deleteDBFile(TEST_FILE_NAME);
+
+        dbFile = fileMgr.createDBFile(TEST_FILE_NAME,
+            DBFileType.HEAP_TUPLE_FILE, DBFile.DEFAULT_PAGESIZE);
+
+        byte[] buffer = new byte[DBFile.DEFAULT_PAGESIZE];
+        for (int pageNo = 0; pageNo < NUM_PAGES; pageNo++) {
+            buffer[0] = (byte) (pageNo >>> 24);
+            buffer[1] = (byte) (pageNo >>> 16);
+            buffer[2] = (byte) (pageNo >>> 8);
+            buffer[3] = (byte) pageNo;
+            fileMgr.savePage(dbFile, pageNo, buffer);
+        }
+    }
+
+
+    @AfterMethod
+    public void afterMethod() throws IOException {
+        System.clearProperty(BufferManager.PROP_PAGECACHE_SIZE);
+        System.clearProperty(BufferManager.PROP_PAGECACHE_POLICY);
+        System.clearProperty(BufferManager.PROP_PAGECACHE_OFFHEAP);
+        System.clearProperty(BackgroundPageWriter.PROP_BGWRITER_DELAY);
+        System.clearProperty(BackgroundPageWriter.PROP_BGWRITER_CLEAN_FRACTION);
+
+        fileMgr.closeDBFile(dbFile);
+        fileMgr.deleteDBFile(dbFile);
+    }
+
+
+    /**
+     * Loads a page through the buffer manager the same way that the
+     * {@link StorageManager} does.
+     */
+    private DBPage loadPage(BufferManager bufMgr, int pageNo)
+        throws IOException {
+
+        DBPage dbPage = bufMgr.getPage(dbFile, pageNo);
+        if (dbPage == null) {
+            dbPage = new DBPage(bufMgr, dbFile, pageNo);
+            fileMgr.loadPage(dbFile, pageNo, dbPage.getPageBuffer());
+
+            DBPage cachedPage = bufMgr.addPageIfAbsent(dbPage);
+            if (cachedPage != dbPage) {
+                dbPage.invalidate();
+                dbPage = cachedPage;
+            }
+        }
+
+        return dbPage;
+    }
+
+
+    /**
+     * Runs several threads that randomly load, verify and unpin pages, and
+     * returns the first failure that any of them encountered.
+     */
+    private Throwable runClients(final BufferManager bufMgr, int numThreads,
+                                 final int opsPerThread)
+        throws InterruptedException {
+
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < numThreads; i++) {
+            final long seed = i;
+            threads.add(new Thread(() -> {
+                Random rand = new Random(seed);
+                try {
+                    for (int op = 0; op < opsPerThread; op++) {
+                        int pageNo = rand.nextInt(NUM_PAGES);
+                        DBPage dbPage = loadPage(bufMgr, pageNo);
+                        try {
+                            if (dbPage.getPageNo() != pageNo ||
+                                dbPage.readInt(0) != pageNo) {
+                                throw new IllegalStateException(
+                                    "Loaded the wrong page for page " + pageNo);
+                            }
+                        }
+                        finally {
+                            dbPage.unpin();
+                        }
+                    }
+                }
+                catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }));
+        }
+
+        for (Thread t : threads)
+            t.start();
+
+        for (Thread t : threads)
+            t.join();
+
+        return failure.get();
+    }
+
+
+    /**
+     * Verifies that a page that is already cached is returned, pinned,
+     * instead of a second copy being added to the buffer manager.
+     */
+    public void testAddPageIfAbsent() throws IOException {
+        BufferManager bufMgr = new BufferManager(null, fileMgr);
+
+        DBPage first = new DBPage(bufMgr, dbFile, 3);
+        DBPage cached = bufMgr.addPageIfAbsent(first);
+        assert cached == first;
+        assert first.getPinCount() == 1;
+
+        DBPage second = new DBPage(bufMgr, dbFile, 3);
+        cached = bufMgr.addPageIfAbsent(second);
+        assert cached == first;
+        assert first.getPinCount() == 2;
+        second.invalidate();
+
+        cached = bufMgr.getPage(dbFile, 3);
+        assert cached == first;
+        assert first.getPinCount() == 3;
+
+        first.unpin();
+        first.unpin();
+        first.unpin();
+        assert !first.isPinned();
+    }
+
+
+    /**
+     * Verifies that many sessions can load and unpin pages concurrently when
+     * all pages fit in the cache.
+     */
+    public void testConcurrentAccess() throws Exception {
+        BufferManager bufMgr = new BufferManager(null, fileMgr);
+
+        Throwable failure = runClients(bufMgr, 8, 2000);
+        if (failure != null)
+            throw new AssertionError("Client failed", failure);
+
+        for (int pageNo = 0; pageNo < NUM_PAGES; pageNo++) {
+            DBPage dbPage = bufMgr.getPage(dbFile, pageNo);
+            assert dbPage != null;
+            assert dbPage.getPinCount() == 1;
+            dbPage.unpin();
+        }
+
+        assert bufMgr.getTotalBytesCached() ==
+            (long) NUM_PAGES * DBFile.DEFAULT_PAGESIZE;
+    }
+
+
+    /**
+     * Verifies that many sessions can load and unpin pages concurrently when
+     * the cache is too small to hold them all, so that pages are constantly
+     * being evicted.  This is run with each page replacement policy.
+     */
+    public void testConcurrentEviction() throws Exception {
+        long maxCacheSize = 16L * DBFile.DEFAULT_PAGESIZE;
+        System.setProperty(BufferManager.PROP_PAGECACHE_SIZE,
+            Long.toString(maxCacheSize));
+
+        String[] policies = { ReplacementPolicies.LRU, ReplacementPolicies.FIFO,
+            ReplacementPolicies.CLOCK, ReplacementPolicies.TWO_QUEUE,
+            ReplacementPolicies.LRU_K };
+
+        for (String policy : policies) {
+            System.setProperty(BufferManager.PROP_PAGECACHE_POLICY, policy);
+
+            BufferManager bufMgr = new BufferManager(null, fileMgr);
+            assert bufMgr.getMaxCacheSize() == maxCacheSize;
+
+            Throwable failure = runClients(bufMgr, 8, 2000);
+            if (failure != null)
+                throw new AssertionError("Client failed with " + policy, failure);
+
+            assert bufMgr.getTotalBytesCached() <= maxCacheSize : policy;
+
+            bufMgr.flushAll();
+            assert bufMgr.getTotalBytesCached() == 0 : policy;
+        }
+    }
+
+
+    /**
+     * Verifies that a large scan only keeps a ring's worth of its pages in
+     * the cache, and that it doesn't evict pages that were already cached.
+     */
+    public void testBufferRing() throws IOException {
+        BufferManager bufMgr = new BufferManager(null, fileMgr);
+
+        // This page is cached before the scan starts, so the scan must not
+        // evict it.
+        DBPage hotPage = loadPage(bufMgr, 0);
+        hotPage.unpin();
+
+        // Pretend that the file is much larger than the page cache.
+        int scanPages = (int) (bufMgr.getMaxCacheSize() /
+            DBFile.DEFAULT_PAGESIZE) * 4;
+        assert bufMgr.isLargeScan(scanPages, DBFile.DEFAULT_PAGESIZE);
+        BufferRing ring = new BufferRing(scanPages);
+
+        for (int pageNo = 0; pageNo < NUM_PAGES; pageNo++) {
+            DBPage dbPage = bufMgr.getPage(dbFile, pageNo);
+            if (dbPage == null) {
+                dbPage = loadPage(bufMgr, pageNo);
+                bufMgr.addPageToRing(ring, dbPage);
+            }
+            dbPage.unpin();
+        }
+
+        int capacity = BufferRing.getCapacity(DBFile.DEFAULT_PAGESIZE);
+        assert ring.size() == capacity;
+        assert bufMgr.getTotalBytesCached() ==
+            (long) (capacity + 1) * DBFile.DEFAULT_PAGESIZE;
+
+        DBPage dbPage = bufMgr.getPage(dbFile, 0);
+        assert dbPage == hotPage;
+        dbPage.unpin();
+
+        // The most recent pages of the scan are still in the ring.
+        dbPage = bufMgr.getPage(dbFile, NUM_PAGES - 1);
+        assert dbPage != null;
+        dbPage.unpin();
+
+        // A small scan leaves its pages in the cache.
+        bufMgr.flushAll();
+        ring = new BufferRing(1);
+        for (int pageNo = 0; pageNo < NUM_PAGES; pageNo++) {
+            dbPage = loadPage(bufMgr, pageNo);
+            bufMgr.addPageToRing(ring, dbPage);
+            dbPage.unpin();
+        }
+
+        assert ring.size() == 0;
+        assert bufMgr.getTotalBytesCached() ==
+            (long) NUM_PAGES * DBFile.DEFAULT_PAGESIZE;
+    }
+
+
+    /**
+     * Verifies that off-heap page frames are loaded, written back and
+     * recycled correctly while pages are constantly being evicted.
+     */
+    public void testOffHeapFrames() throws Exception {
+        long maxCacheSize = 16L * DBFile.DEFAULT_PAGESIZE;
+        System.setProperty(BufferManager.PROP_PAGECACHE_SIZE,
+            Long.toString(maxCacheSize));
+        System.setProperty(BufferManager.PROP_PAGECACHE_OFFHEAP, "on");
+
+        BufferManager bufMgr = new BufferManager(null, fileMgr);
+
+        DBPage dbPage = loadPage(bufMgr, 5);
+        assert dbPage.getPageBuffer().isDirect();
+        assert dbPage.readInt(0) == 5;
+
+        // Change the page and write it back through its frame.
+        dbPage.writeInt(4, 0x12345678);
+        dbPage.unpin();
+        bufMgr.flushAll();
+        assert bufMgr.getTotalBytesCached() == 0;
+
+        byte[] buffer = new byte[DBFile.DEFAULT_PAGESIZE];
+        fileMgr.loadPage(dbFile, 5, buffer);
+        assert buffer[4] == 0x12 && buffer[7] == 0x78;
+
+        // A recycled frame must not show the previous page's data.
+        DBPage newPage = new DBPage(bufMgr, dbFile, NUM_PAGES);
+        for (int i = 0; i < DBFile.DEFAULT_PAGESIZE; i++)
+            assert newPage.readByte(i) == 0;
+        newPage.invalidate();
+
+        Throwable failure = runClients(bufMgr, 8, 2000);
+        if (failure != null)
+            throw new AssertionError("Client failed", failure);
+
+        assert bufMgr.getTotalBytesCached() <= maxCacheSize;
+
+        bufMgr.flushAll();
+        assert bufMgr.getTotalBytesCached() == 0;
+    }
+
+
+    /**
+     * Verifies that with every replacement policy, evictions work around
+     * pages that are pinned, and that pages become candidates for eviction
+     * again once they are unpinned.
+     */
+    public void testEvictionWithPinnedPages() throws IOException {
+        String[] policies = { ReplacementPolicies.LRU, ReplacementPolicies.FIFO,
+            ReplacementPolicies.CLOCK, ReplacementPolicies.TWO_QUEUE,
+            ReplacementPolicies.LRU_K };
+
+        System.setProperty(BufferManager.PROP_PAGECACHE_SIZE,
+            Long.toString(16L * DBFile.DEFAULT_PAGESIZE));
+
+        for (String policy : policies) {
+            System.setProperty(BufferManager.PROP_PAGECACHE_POLICY, policy);
+            BufferManager bufMgr = new BufferManager(null, fileMgr);
+
+            // Pin most of the cache.
+            ArrayList<DBPage> pinnedPages = new ArrayList<>();
+            for (int pageNo = 0; pageNo < 12; pageNo++)
+                pinnedPages.add(loadPage(bufMgr, pageNo));
+
+            // The remaining pages are recycled by the other pages.
+            for (int pageNo = 12; pageNo < NUM_PAGES; pageNo++) {
+                DBPage dbPage = loadPage(bufMgr, pageNo);
+                assert dbPage.readInt(0) == pageNo;
+                dbPage.unpin();
+            }
+
+            assert bufMgr.getTotalBytesCached() <= bufMgr.getMaxCacheSize();
+            for (DBPage dbPage : pinnedPages)
+                assert dbPage.getDBFile() != null : policy;
+
+            // Once unpinned, the first pages can be evicted again.
+            for (DBPage dbPage : pinnedPages)
+                dbPage.unpin();
+
+            for (int pageNo = 12; pageNo < NUM_PAGES; pageNo++)
+                loadPage(bufMgr, pageNo).unpin();
+
+            int stillCached = 0;
+            for (int pageNo = 0; pageNo < 12; pageNo++) {
+                DBPage dbPage = bufMgr.getPage(dbFile, pageNo);
+                if (dbPage != null) {
+                    stillCached++;
+                    dbPage.unpin();
+                }
+            }
+            assert stillCached < 12 : policy;
+
+            bufMgr.flushAll();
+        }
+    }
+
+
+    /**
+     * Changes the second integer of a page, which the tests can then check
+     * for on disk.
+     */
+    private DBPage dirtyPage(BufferManager bufMgr, int pageNo)
+        throws IOException {
+
+        DBPage dbPage = loadPage(bufMgr, pageNo);
+        dbPage.writeInt(4, pageNo * 100);
+        return dbPage;
+    }
+
+
+    /** Reports whether a page's change has been written to disk. */
+    private boolean isWritten(int pageNo) throws IOException {
+        byte[] buffer = new byte[DBFile.DEFAULT_PAGESIZE];
+        fileMgr.loadPage(dbFile, pageNo, buffer);
+
+        int value = ((buffer[4] & 0xFF) << 24) | ((buffer[5] & 0xFF) << 16) |
+                    ((buffer[6] & 0xFF) << 8) | (buffer[7] & 0xFF);
+        return value == pageNo * 100;
+    }
+
+
+    /**
+     * Verifies that the background writer's pass only writes unpinned dirty
+     * pages, passes them to the observers first, and stops once the cache
+     * is clean enough.
+     */
+    public void testCleanDirtyPages() throws IOException {
+        BufferManager bufMgr = new BufferManager(null, fileMgr);
+
+        ArrayList<DBPage> observed = new ArrayList<>();
+        bufMgr.addObserver(observed::addAll);
+
+        // Dirty 8 pages, leaving one of them pinned.
+        DBPage pinnedPage = null;
+        for (int pageNo = 1; pageNo <= 8; pageNo++) {
+            DBPage dbPage = dirtyPage(bufMgr, pageNo);
+            if (pageNo == 3)
+                pinnedPage = dbPage;
+            else
+                dbPage.unpin();
+        }
+
+        long pageSize = DBFile.DEFAULT_PAGESIZE;
+
+        // Nothing is written while few enough pages are dirty.
+        assert bufMgr.cleanDirtyPages(8 * pageSize, 100) == 0;
+        assert observed.isEmpty();
+
+        // Just enough pages are written to get down to 5 dirty pages.
+        assert bufMgr.cleanDirtyPages(5 * pageSize, 100) == 3;
+        assert observed.size() == 3;
+        assert !observed.contains(pinnedPage);
+
+        // No more than the maximum number of pages are written.
+        assert bufMgr.cleanDirtyPages(0, 2) == 2;
+        assert bufMgr.cleanDirtyPages(0, 100) == 2;
+        assert bufMgr.cleanDirtyPages(0, 100) == 0;
+
+        for (int pageNo = 1; pageNo <= 8; pageNo++) {
+            DBPage dbPage = bufMgr.getPage(dbFile, pageNo);
+            assert dbPage != null;
+            assert dbPage.isDirty() == (pageNo == 3);
+            assert isWritten(pageNo) == (pageNo != 3);
+            dbPage.unpin();
+        }
+
+        pinnedPage.unpin();
+        assert bufMgr.cleanDirtyPages(0, 100) == 1;
+        assert isWritten(3);
+    }
+
+
+    /**
+     * Verifies that flushing dirty pages writes each run of adjacent pages
+     * with a single gathering write, whatever order the pages are cached in.
+     */
+    public void testGatheringWrites() throws IOException {
+        BufferManager bufMgr = new BufferManager(null, fileMgr);
+
+        // Two runs of adjacent pages, and one page on its own.
+        int[] pageNos = { 33, 12, 40, 17, 10, 30, 15, 19, 11, 34, 13, 31, 18,
+                          14, 32, 16 };
+        for (int pageNo : pageNos)
+            dirtyPage(bufMgr, pageNo).unpin();
+
+        long gatheringWrites = PerformanceCounters.get(
+            PerformanceCounters.STORAGE_GATHERING_WRITES);
+        long pagesWritten = PerformanceCounters.get(
+            PerformanceCounters.STORAGE_PAGES_WRITTEN);
+
+        bufMgr.writeAll(/* sync */ false);
+
+        assert PerformanceCounters.get(
+            PerformanceCounters.STORAGE_GATHERING_WRITES) - gatheringWrites == 2;
+        assert PerformanceCounters.get(
+            PerformanceCounters.STORAGE_PAGES_WRITTEN) - pagesWritten ==
+            pageNos.length;
+
+        for (int pageNo : pageNos) {
+            DBPage dbPage = bufMgr.getPage(dbFile, pageNo);
+            assert !dbPage.isDirty();
+            assert dbPage.readInt(0) == pageNo;
+            assert isWritten(pageNo) : "page " + pageNo + " wasn't written";
+            dbPage.unpin();
+        }
+        assert !isWritten(20);
+        assert !isWritten(35);
+
+        bufMgr.flushAll();
+    }
+
+
+    /**
+     * Verifies that once the background writer has cleaned the cache,
+     * evictions find clean pages.
+     */
+    public void testCleanEvictions() throws IOException {
+        // The 16 dirty pages fill half of the cache.
+        long maxCacheSize = 32L * DBFile.DEFAULT_PAGESIZE;
+        System.setProperty(BufferManager.PROP_PAGECACHE_SIZE,
+            Long.toString(maxCacheSize));
+
+        BufferManager bufMgr = new BufferManager(null, fileMgr);
+        for (int pageNo = 0; pageNo < 16; pageNo++)
+            dirtyPage(bufMgr, pageNo).unpin();
+
+        assert bufMgr.cleanDirtyPages(0, 100) == 16;
+        assert bufMgr.getTotalBytesCached() == maxCacheSize / 2;
+
+        long cleanEvictions = PerformanceCounters.get(
+            PerformanceCounters.BUFFER_CLEAN_EVICTIONS);
+        long dirtyEvictions = PerformanceCounters.get(
+            PerformanceCounters.BUFFER_DIRTY_EVICTIONS);
+
+        // The first 16 pages fit in the cache, and the rest evict 16 pages.
+        for (int pageNo = 16; pageNo < 48; pageNo++)
+            loadPage(bufMgr, pageNo).unpin();
+
+        assert PerformanceCounters.get(
+            PerformanceCounters.BUFFER_CLEAN_EVICTIONS) - cleanEvictions == 16;
+        assert PerformanceCounters.get(
+            PerformanceCounters.BUFFER_DIRTY_EVICTIONS) == dirtyEvictions;
+
+        for (int pageNo = 0; pageNo < 16; pageNo++)
+            assert isWritten(pageNo);
+    }
+
+
+    /**
+     * Verifies that the background writer's thread writes dirty pages until
+     * enough of the cache is clean.
+     */
+    public void testBackgroundPageWriter() throws Exception {
+        System.setProperty(BackgroundPageWriter.PROP_BGWRITER_DELAY, "10");
+        System.setProperty(BackgroundPageWriter.PROP_BGWRITER_CLEAN_FRACTION,
+            "1");
+
+        BufferManager bufMgr = new BufferManager(null, fileMgr);
+        BackgroundPageWriter writer = new BackgroundPageWriter(null, bufMgr);
+        assert writer.getMaxDirtyBytes() == 0;
+
+        for (int pageNo = 0; pageNo < NUM_PAGES; pageNo++)
+            dirtyPage(bufMgr, pageNo).unpin();
+
+        writer.start();
+        try {
+            long deadline = System.currentTimeMillis() + 10000;
+            for (int pageNo = 0; pageNo < NUM_PAGES; pageNo++) {
+                DBPage dbPage = bufMgr.getPage(dbFile, pageNo);
+                boolean dirty = dbPage.isDirty();
+                dbPage.unpin();
+
+                if (dirty) {
+                    assert System.currentTimeMillis() < deadline :
+                        "Background writer didn't write page " + pageNo;
+
+                    Thread.sleep(10);
+                    pageNo--;
+                }
+            }
+        }
+        finally {
+            writer.shutdown(null);
+        }
+
+        for (int pageNo = 0; pageNo < NUM_PAGES; pageNo++)
+            assert isWritten(pageNo);
+    }
+}
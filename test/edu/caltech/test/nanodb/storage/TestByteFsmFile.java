@@ -0,0 +1,154 @@
+package edu.caltech.test.nanodb.storage;
+
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.storage.DBFile;
+import edu.caltech.nanodb.storage.DBFileType;
+import edu.caltech.nanodb.storage.FileManager;
+import edu.caltech.nanodb.storage.FileManagerImpl;
+import edu.caltech.nanodb.storage.StorageManager;
+import edu.caltech.nanodb.storage.freespacemap.ByteFsmFile;
+import edu.caltech.nanodb.storage.freespacemap.ByteFsmFileManager;
+
+
+/**
+ * This class exercises the page searches of the {@link ByteFsmFile} class,
+ * by comparing them against a linear scan of the same free-space values.
+ */
+@Test
+public class TestByteFsmFile extends StorageTestCase {
+
+    /** This is the filename used for the tests in this class. */
+    private final String TEST_FILE_NAME = "TestByteFsmFile_TestFile";
+
+
+    private FileManager fileMgr;
+
+
+    private StorageManager storageManager;
+
+
+    private DBFile dbFile;
+
+
+    @BeforeClass
+    public void beforeClass() throws IOException {
+        fileMgr = new FileManagerImpl(testBaseDir);
+        storageManager = new StorageManager();
+        dbFile = fileMgr.createDBFile(TEST_FILE_NAME,
+            DBFileType.HEAP_TUPLE_FILE, DBFile.DEFAULT_PAGESIZE);
+    }
+
+
+    @AfterClass
+    public void afterClass() throws IOException {
+        fileMgr.deleteDBFile(dbFile);
+    }
+
+
+    /**
+     * Returns the first page whose free space is more than the required
+     * size, by scanning all the pages.
+     */
+    private static int linearFindSuitable(int[] freeSpace, int numPages,
+                                          int requiredSize) {
+        for (int pageNo = 1; pageNo <= numPages; pageNo++) {
+            if (freeSpace[pageNo] > requiredSize)
+                return pageNo;
+        }
+        return numPages + 1;
+    }
+
+
+    /**
+     * Returns the page closest to <tt>currentPageNo</tt> whose free space is
+     * more than the required size, preferring the earlier page when two
+     * pages are equally close, by scanning outward from the current page.
+     */
+    private static int linearFindClosest(int[] freeSpace, int numPages,
+                                         int requiredSize, int currentPageNo) {
+        for (int dist = 0; dist <= numPages + currentPageNo; dist++) {
+            int left = currentPageNo - dist;
+            int right = currentPageNo + dist;
+            if (left >= 1 && left <= numPages && freeSpace[left] > requiredSize)
+                return left;
+            if (right >= 1 && right <= numPages && freeSpace[right] > requiredSize)
+                return right;
+        }
+        return numPages + 1;
+    }
+
+
+    /**
+     * Rounds a free-space value to the granularity of the map, so that the
+     * linear scan sees the same values that the map stores.
+     */
+    private static int roundFreeSpace(int freeSpace) {
+        int unit = DBFile.DEFAULT_PAGESIZE / 256;
+        return (freeSpace / unit) * unit;
+    }
+
+
+    public void testSearchesMatchLinearScan() {
+        ByteFsmFile fsm = new ByteFsmFile(storageManager,
+            new ByteFsmFileManager(storageManager), dbFile, new byte[16], 0);
+
+        Random random = new Random(4242);
+        int maxPages = 1000;
+        int[] freeSpace = new int[maxPages + 1];
+        int numPages = 0;
+
+        for (int step = 0; step < 5000; step++) {
+            // Either add a page at the end, which grows the map past its
+            // initial capacity, or change the free space of an existing page.
+            int pageNo;
+            if (numPages < maxPages && (numPages == 0 || random.nextInt(4) == 0))
+                pageNo = ++numPages;
+            else
+                pageNo = 1 + random.nextInt(numPages);
+
+            int space = random.nextInt(DBFile.DEFAULT_PAGESIZE);
+            if (random.nextInt(3) == 0)
+                space = 0;
+
+            fsm.updateFreeSpace(pageNo, space);
+            freeSpace[pageNo] = roundFreeSpace(space);
+
+            int requiredSize = random.nextInt(DBFile.DEFAULT_PAGESIZE);
+            int currentPageNo = random.nextInt(numPages + 3);
+
+            assert fsm.findSuitablePage(requiredSize) ==
+                linearFindSuitable(freeSpace, numPages, requiredSize);
+
+            assert fsm.findClosestSuitablePage(requiredSize, currentPageNo) ==
+                linearFindClosest(freeSpace, numPages, requiredSize, currentPageNo);
+        }
+
+        assert fsm.getMapSize() == numPages;
+    }
+
+
+    public void testNoSuitablePage() {
+        ByteFsmFile fsm = new ByteFsmFile(storageManager,
+            new ByteFsmFileManager(storageManager), dbFile, new byte[16], 0);
+
+        assert fsm.findSuitablePage(100) == 1;
+        assert fsm.findClosestSuitablePage(100, 1) == 1;
+
+        for (int pageNo = 1; pageNo <= 20; pageNo++)
+            fsm.updateFreeSpace(pageNo, 50);
+
+        assert fsm.findSuitablePage(100) == 21;
+        assert fsm.findClosestSuitablePage(100, 10) == 21;
+
+        fsm.updateFreeSpace(17, 4000);
+        assert fsm.findSuitablePage(100) == 17;
+        assert fsm.findClosestSuitablePage(100, 3) == 17;
+    }
+}
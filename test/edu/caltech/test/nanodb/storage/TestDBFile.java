@@ -103,6 +103,24 @@ public class TestDBFile {
     }
 
 
+    public void testEncodeFormatVersion() {
+        // Files without a format version decode as version 0.
+        assert DBFile.decodeFormatVersionFromHeader(13) == 0;
+        assert DBFile.decodePageSizeFromHeader(13) == 8192;
+
+        for (int version = 0; version <= DBFile.CURRENT_FORMAT_VERSION; version++) {
+            for (int pageSize = DBFile.MIN_PAGESIZE;
+                 pageSize <= DBFile.MAX_PAGESIZE; pageSize *= 2) {
+
+                // The value must survive being stored as a single byte.
+                byte encoded = (byte) DBFile.encodePageSizeAndVersion(pageSize, version);
+                assert DBFile.decodePageSizeFromHeader(encoded) == pageSize;
+                assert DBFile.decodeFormatVersionFromHeader(encoded) == version;
+            }
+        }
+    }
+
+
     private File getTempFile() throws IOException {
         File tmp = File.createTempFile("tmp", null);
         tmp.deleteOnExit();
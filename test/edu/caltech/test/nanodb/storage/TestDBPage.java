@@ -1,6 +1,8 @@
 package edu.caltech.test.nanodb.storage;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
 
 import org.testng.annotations.Test;
 import org.testng.annotations.BeforeClass;
@@ -434,4 +436,80 @@ public class TestDBPage extends StorageTestCase {
 		assert (dbPage.readByte(position2) == (byte) canary2);
 	}
 
+
+	/**
+	 * Test moveDataRange() with overlapping source and destination ranges,
+	 * in both directions.
+	 */
+	@Test
+	public void testMoveDataRange() {
+		for (int i = 0; i < 16; i++)
+			dbPage.writeByte(100 + i, i);
+
+		// Move the range up by 4 bytes.
+		dbPage.moveDataRange(100, 104, 16);
+		for (int i = 0; i < 16; i++)
+			assert dbPage.readByte(104 + i) == (byte) i;
+
+		// Move it back down.
+		dbPage.moveDataRange(104, 100, 16);
+		for (int i = 0; i < 16; i++)
+			assert dbPage.readByte(100 + i) == (byte) i;
+	}
+
+
+	/**
+	 * This test checks that writes record the changed byte-ranges of the
+	 * page, merging ranges that are close together, and that each range's
+	 * old data is the page's contents before the writes.
+	 */
+	@Test
+	public void testDirtyRanges() {
+		DBPage page = new DBPage(bufMgr, dbFile, 1);
+		for (int i = 0; i < 256; i++)
+			page.writeByte(i, i);
+
+		page.setDirty(false);
+		assert page.getDirtyRanges().isEmpty();
+
+		byte[] original = new byte[256];
+		page.read(0, original);
+
+		page.writeInt(10, 0x01020304);
+		page.writeInt(100, 0x05060708);
+		page.writeShort(12, 0x0A0B);  // Inside the first range.
+		page.writeByte(16, 0x11);     // Close enough to merge.
+		page.writeFixedSizeString(200, "ab", 10);
+		page.moveDataRange(10, 96, 4);  // Joins the second range.
+
+		List<DirtyRanges.Range> ranges = page.getDirtyRanges();
+		assert ranges.size() == 3 : ranges;
+
+		assert ranges.get(0).getStart() == 10;
+		assert ranges.get(0).getEnd() == 17;
+		assert ranges.get(1).getStart() == 96;
+		assert ranges.get(1).getEnd() == 104;
+		assert ranges.get(2).getStart() == 200;
+		assert ranges.get(2).getEnd() == 210;
+
+		// Putting back the old data of each range restores the page.
+		for (DirtyRanges.Range range : ranges) {
+			byte[] oldData = range.getOldData();
+			for (int i = 0; i < oldData.length; i++)
+				assert oldData[i] == original[range.getStart() + i];
+
+			page.write(range.getStart(), oldData);
+		}
+
+		byte[] restored = new byte[256];
+		page.read(0, restored);
+		assert Arrays.equals(restored, original);
+
+		// Once the changes are logged, the ranges are forgotten.
+		page.clearDirtyRanges();
+		assert page.getDirtyRanges().isEmpty();
+		assert page.isDirty();
+
+		page.invalidate();
+	}
 }
@@ -0,0 +1,29 @@
+package edu.caltech.test.nanodb.storage;
+
+import java.io.IOException;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.storage.BufferManager;
+
+
+/**
+ * This test class runs all of the {@link TestDBPage} tests against a page
+ * whose data is stored in an off-heap page frame.
+ */
+@Test
+public class TestDBPageOffHeap extends TestDBPage {
+
+    @BeforeClass
+    @Override
+    public void beforeClass() throws IOException {
+        System.setProperty(BufferManager.PROP_PAGECACHE_OFFHEAP, "on");
+        try {
+            super.beforeClass();
+        }
+        finally {
+            System.clearProperty(BufferManager.PROP_PAGECACHE_OFFHEAP);
+        }
+    }
+}
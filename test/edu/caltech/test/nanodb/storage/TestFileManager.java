@@ -1,8 +1,14 @@
 package edu.caltech.test.nanodb.storage;
 
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
@@ -10,6 +16,7 @@ import org.testng.annotations.Test;
 import edu.caltech.nanodb.server.properties.PropertyRegistry;
 
 import edu.caltech.nanodb.storage.BufferManager;
+import edu.caltech.nanodb.storage.CompressedPageMap;
 import edu.caltech.nanodb.storage.DBFile;
 import edu.caltech.nanodb.storage.DBFileType;
 import edu.caltech.nanodb.storage.DBPage;
@@ -18,7 +25,8 @@ import edu.caltech.nanodb.storage.FileManagerImpl;
 
 
 /**
- *
+ * This test class exercises the functionality of the
+ * {@link edu.caltech.nanodb.storage.FileManagerImpl} class.
  */
 @Test
 public class TestFileManager extends StorageTestCase {
@@ -28,9 +36,20 @@ public class TestFileManager extends StorageTestCase {
     private BufferManager bufMgr;
 
 
+    /**
+     * Creates the file manager to test.  Subclasses override this to test
+     * other file manager implementations.
+     *
+     * @return the file manager to test
+     */
+    protected FileManager createFileManager() {
+        return new FileManagerImpl(testBaseDir);
+    }
+
+
     @BeforeClass
     public void beforeClass() {
-        fileMgr = new FileManagerImpl(testBaseDir);
+        fileMgr = createFileManager();
         bufMgr = new BufferManager(null, fileMgr);
     }
 
@@ -50,10 +69,13 @@ public class TestFileManager extends StorageTestCase {
         assert f.canRead();
 
         DBPage page0 = new DBPage(bufMgr, dbf, 0);
-        fileMgr.loadPage(dbf, 0, page0.getPageData());
+        fileMgr.loadPage(dbf, 0, page0.getPageBuffer());
 
         assert page0.readByte(0) == DBFileType.HEAP_TUPLE_FILE.getID();
-        assert DBFile.decodePageSize(page0.readByte(1)) == DBFile.DEFAULT_PAGESIZE;
+        assert DBFile.decodePageSizeFromHeader(page0.readByte(1)) ==
+            DBFile.DEFAULT_PAGESIZE;
+        assert DBFile.decodeFormatVersionFromHeader(page0.readByte(1)) ==
+            DBFile.CURRENT_FORMAT_VERSION;
 
         fileMgr.closeDBFile(dbf);
         fileMgr.deleteDBFile(dbf);
@@ -89,4 +111,320 @@ public class TestFileManager extends StorageTestCase {
         fileMgr.deleteDBFile(dbf);
         assert !f.exists();
     }
+
+
+    /**
+     * Writes pages to a file and reads them back, including pages past the
+     * end of the file, both before and after the file is reopened.
+     */
+    public void testLoadSavePages() throws IOException {
+        String filename = "TestFileManager_testLoadSavePages";
+        File f = new File(testBaseDir, filename);
+        if (f.exists())
+            f.delete();
+
+        int pageSize = DBFile.MIN_PAGESIZE;
+        DBFile dbf = fileMgr.createDBFile(filename, DBFileType.HEAP_TUPLE_FILE,
+            pageSize);
+
+        // Enough pages to span more than one chunk of a mapped file.
+        int numPages = 2500;
+        byte[] buffer = new byte[pageSize];
+        for (int pageNo = 1; pageNo < numPages; pageNo++) {
+            buffer[0] = (byte) pageNo;
+            buffer[pageSize - 1] = (byte) (pageNo >>> 8);
+            fileMgr.savePage(dbf, pageNo, buffer);
+
+            // Read back an earlier page, so that a mapping of the file's
+            // last chunk must grow.
+            int earlierPageNo = (pageNo + 1) / 2;
+            fileMgr.loadPage(dbf, earlierPageNo, buffer);
+            assert buffer[0] == (byte) earlierPageNo;
+        }
+        assert dbf.getNumPages() == numPages;
+
+        // Pages past the end of the file are only returned if requested.
+        try {
+            fileMgr.loadPage(dbf, numPages, buffer);
+            assert false : "Shouldn't be able to load a nonexistent page.";
+        }
+        catch (EOFException e) {
+            // Success.
+        }
+
+        buffer[0] = 1;
+        fileMgr.loadPage(dbf, numPages, buffer, true);
+        assert buffer[0] == 0;
+        assert dbf.getNumPages() == numPages + 1;
+
+        fileMgr.closeDBFile(dbf);
+
+        dbf = fileMgr.openDBFile(filename);
+        assert dbf.getPageSize() == pageSize;
+        for (int pageNo = 1; pageNo < numPages; pageNo++) {
+            fileMgr.loadPage(dbf, pageNo, buffer);
+            assert buffer[0] == (byte) pageNo;
+            assert buffer[pageSize - 1] == (byte) (pageNo >>> 8);
+        }
+
+        fileMgr.closeDBFile(dbf);
+        fileMgr.deleteDBFile(dbf);
+        assert !f.exists();
+    }
+
+
+    /**
+     * Writes runs of consecutive pages with single calls, including a run
+     * that extends the file, and reads them back.
+     */
+    public void testSavePages() throws IOException {
+        String filename = "TestFileManager_testSavePages";
+        File f = new File(testBaseDir, filename);
+        if (f.exists())
+            f.delete();
+
+        int pageSize = DBFile.MIN_PAGESIZE;
+        DBFile dbf = fileMgr.createDBFile(filename, DBFileType.HEAP_TUPLE_FILE,
+            pageSize);
+
+        ByteBuffer[] buffers = new ByteBuffer[20];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = ByteBuffer.allocate(pageSize);
+            buffers[i].putInt(0, 1 + i);
+        }
+        fileMgr.savePages(dbf, 1, buffers);
+        assert dbf.getNumPages() == 1 + buffers.length;
+
+        // Overwrite a run in the middle of the file.
+        buffers = new ByteBuffer[5];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = ByteBuffer.allocateDirect(pageSize);
+            buffers[i].putInt(0, 1000 + 8 + i);
+        }
+        fileMgr.savePages(dbf, 8, buffers);
+
+        ByteBuffer buffer = ByteBuffer.allocate(pageSize);
+        for (int pageNo = 1; pageNo <= 20; pageNo++) {
+            buffer.clear();
+            fileMgr.loadPage(dbf, pageNo, buffer);
+
+            int expected = (pageNo >= 8 && pageNo < 13) ? 1000 + pageNo : pageNo;
+            assert buffer.getInt(0) == expected;
+        }
+
+        try {
+            fileMgr.savePages(dbf, 1,
+                new ByteBuffer[] { ByteBuffer.allocate(pageSize - 1) });
+            assert false : "Shouldn't be able to save a partial page.";
+        }
+        catch (IllegalArgumentException e) {
+            // Success.
+        }
+
+        fileMgr.closeDBFile(dbf);
+        fileMgr.deleteDBFile(dbf);
+        assert !f.exists();
+    }
+
+
+    /**
+     * Fills a page with data that compresses to roughly the specified
+     * fraction of the page, and tags it with the page number and a version.
+     */
+    private static void fillPage(byte[] page, int pageNo, int version,
+                                 double randomFraction) {
+        Random rand = new Random(pageNo * 31 + version);
+        int randomBytes = (int) (page.length * randomFraction);
+        for (int i = 0; i < page.length; i++)
+            page[i] = (i < randomBytes) ? (byte) rand.nextInt() : (byte) (i / 64);
+
+        ByteBuffer.wrap(page).putInt(0, pageNo).putInt(4, version);
+    }
+
+
+    /**
+     * Writes pages of a compressed file that compress by different amounts,
+     * so that pages move to larger extents and reuse freed extents, and
+     * reads them back, both before and after the file is truncated and
+     * reopened.
+     */
+    public void testCompressedFile() throws IOException {
+        String filename = "TestFileManager_testCompressedFile";
+        File f = new File(testBaseDir, filename);
+        File mapFile = CompressedPageMap.getMapFile(f);
+        f.delete();
+        mapFile.delete();
+
+        int pageSize = DBFile.DEFAULT_PAGESIZE;
+        DBFile dbf = fileMgr.createDBFile(filename, DBFileType.HEAP_TUPLE_FILE,
+            pageSize, true);
+        assert dbf.isCompressed();
+        assert mapFile.exists();
+
+        int numPages = 60;
+        int[] versions = new int[numPages];
+        double[] fractions = new double[numPages];
+        byte[] buffer = new byte[pageSize];
+
+        for (int pageNo = 1; pageNo < numPages; pageNo++) {
+            fractions[pageNo] = 0.05;
+            fillPage(buffer, pageNo, 0, fractions[pageNo]);
+            fileMgr.savePage(dbf, pageNo, buffer);
+        }
+        assert dbf.getNumPages() == numPages;
+        assert f.length() < (long) numPages * pageSize / 4;
+
+        Random rand = new Random(7);
+        for (int round = 1; round <= 5; round++) {
+            // Change how well some pages compress, including pages that
+            // don't compress at all, and pages of all zeros.
+            for (int i = 0; i < 20; i++) {
+                int pageNo = 1 + rand.nextInt(numPages - 1);
+                versions[pageNo] = round;
+                fractions[pageNo] = rand.nextInt(4) * 0.4;
+                fillPage(buffer, pageNo, round, fractions[pageNo]);
+                if (pageNo % 10 == 0) {
+                    versions[pageNo] = -1;
+                    Arrays.fill(buffer, (byte) 0);
+                }
+                fileMgr.savePage(dbf, pageNo, buffer);
+            }
+
+            // Freed extents are reused after the file is synced.
+            fileMgr.syncDBFile(dbf);
+        }
+
+        byte[] expected = new byte[pageSize];
+        for (int pageNo = 1; pageNo < numPages; pageNo++) {
+            fileMgr.loadPage(dbf, pageNo, buffer);
+            if (versions[pageNo] < 0)
+                Arrays.fill(expected, (byte) 0);
+            else
+                fillPage(expected, pageNo, versions[pageNo], fractions[pageNo]);
+            assert Arrays.equals(buffer, expected) : "page " + pageNo;
+        }
+
+        fileMgr.truncateDBFile(dbf, 40);
+        assert dbf.getNumPages() == 40;
+        try {
+            fileMgr.loadPage(dbf, 45, buffer);
+            assert false : "Shouldn't be able to load a truncated page.";
+        }
+        catch (EOFException e) {
+            // Success.
+        }
+
+        // Pages past the end are created empty, even where truncated pages
+        // used to be.
+        fileMgr.loadPage(dbf, 45, buffer, true);
+        assert dbf.getNumPages() == 46;
+        for (byte b : buffer)
+            assert b == 0;
+
+        fileMgr.closeDBFile(dbf);
+
+        dbf = fileMgr.openDBFile(filename);
+        assert dbf.isCompressed();
+        assert dbf.getNumPages() == 46;
+        for (int pageNo = 1; pageNo < 40; pageNo++) {
+            fileMgr.loadPage(dbf, pageNo, buffer);
+            if (versions[pageNo] < 0)
+                Arrays.fill(expected, (byte) 0);
+            else
+                fillPage(expected, pageNo, versions[pageNo], fractions[pageNo]);
+            assert Arrays.equals(buffer, expected) : "page " + pageNo;
+        }
+
+        fileMgr.closeDBFile(dbf);
+        fileMgr.deleteDBFile(dbf);
+        assert !f.exists();
+        assert !mapFile.exists();
+    }
+
+
+    /**
+     * Runs several threads that read, create and write pages of the same
+     * file at the same time, and verifies that each thread always sees the
+     * right page.
+     */
+    public void testConcurrentLoadSave() throws Exception {
+        String filename = "TestFileManager_testConcurrentLoadSave";
+        File f = new File(testBaseDir, filename);
+        if (f.exists())
+            f.delete();
+
+        final int pageSize = DBFile.MIN_PAGESIZE;
+        final DBFile dbf = fileMgr.createDBFile(filename,
+            DBFileType.HEAP_TUPLE_FILE, pageSize);
+
+        final int numPages = 256;
+        ByteBuffer buffer = ByteBuffer.allocate(pageSize);
+        for (int pageNo = 1; pageNo < numPages; pageNo++) {
+            buffer.clear();
+            buffer.putInt(0, pageNo);
+            fileMgr.savePage(dbf, pageNo, buffer);
+        }
+
+        final int numThreads = 8;
+        final int newPagesPerThread = 32;
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < numThreads; i++) {
+            final int threadNo = i;
+            threads.add(new Thread(() -> {
+                Random rand = new Random(threadNo);
+                ByteBuffer buf = ByteBuffer.allocateDirect(pageSize);
+                try {
+                    for (int j = 0; j < newPagesPerThread; j++) {
+                        // Each thread creates its own set of new pages.
+                        int newPageNo = numPages + j * numThreads + threadNo;
+                        buf.clear();
+                        fileMgr.loadPage(dbf, newPageNo, buf, true);
+                        if (buf.getInt(0) != 0) {
+                            throw new IllegalStateException(
+                                "New page " + newPageNo + " isn't empty");
+                        }
+
+                        buf.clear();
+                        buf.putInt(0, newPageNo);
+                        fileMgr.savePage(dbf, newPageNo, buf);
+
+                        for (int k = 0; k < 50; k++) {
+                            int pageNo = 1 + rand.nextInt(numPages - 1);
+                            buf.clear();
+                            fileMgr.loadPage(dbf, pageNo, buf);
+                            if (buf.getInt(0) != pageNo) {
+                                throw new IllegalStateException(
+                                    "Loaded the wrong data for page " + pageNo);
+                            }
+                        }
+                    }
+                }
+                catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }));
+        }
+
+        for (Thread t : threads)
+            t.start();
+
+        for (Thread t : threads)
+            t.join();
+
+        if (failure.get() != null)
+            throw new AssertionError("Client failed", failure.get());
+
+        int totalPages = numPages + numThreads * newPagesPerThread;
+        assert dbf.getNumPages() == totalPages;
+        for (int pageNo = 1; pageNo < totalPages; pageNo++) {
+            buffer.clear();
+            fileMgr.loadPage(dbf, pageNo, buffer);
+            assert buffer.getInt(0) == pageNo;
+        }
+
+        fileMgr.closeDBFile(dbf);
+        fileMgr.deleteDBFile(dbf);
+    }
 }
@@ -0,0 +1,21 @@
+package edu.caltech.test.nanodb.storage;
+
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.storage.FileManager;
+import edu.caltech.nanodb.storage.MappedFileManager;
+
+
+/**
+ * This test class runs all of the {@link TestFileManager} tests against the
+ * {@link edu.caltech.nanodb.storage.MappedFileManager} class.
+ */
+@Test
+public class TestMappedFileManager extends TestFileManager {
+
+    @Override
+    protected FileManager createFileManager() {
+        return new MappedFileManager(testBaseDir);
+    }
+}
@@ -0,0 +1,129 @@
+package edu.caltech.test.nanodb.storage;
+
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.storage.DBFile;
+import edu.caltech.nanodb.storage.PageCompressor;
+
+
+/**
+ * This class exercises the {@link PageCompressor} class, by compressing and
+ * decompressing pages of different kinds of data.
+ */
+@Test
+public class TestPageCompressor {
+
+    /**
+     * Compresses the page into a buffer large enough for any data,
+     * decompresses it again, and checks that the result matches.
+     *
+     * @return the length of the compressed data
+     */
+    private int roundTrip(byte[] page) throws IOException {
+        byte[] compressed =
+            new byte[PageCompressor.maxCompressedLength(page.length)];
+        int length = PageCompressor.compress(page, page.length, compressed);
+        assert length > 0;
+
+        byte[] result = new byte[page.length];
+        PageCompressor.decompress(compressed, length, result, page.length);
+        assert Arrays.equals(page, result);
+
+        return length;
+    }
+
+
+    public void testEmptyPage() throws IOException {
+        byte[] page = new byte[DBFile.DEFAULT_PAGESIZE];
+        assert roundTrip(page) < 100;
+    }
+
+
+    public void testTuplePage() throws IOException {
+        // Something like a data page:  a header, free space, and then
+        // tuples that share most of their bytes.
+        byte[] page = new byte[DBFile.DEFAULT_PAGESIZE];
+        page[0] = 17;
+        Random random = new Random(31);
+        for (int pos = 4000; pos + 40 <= page.length; pos += 40) {
+            byte[] tuple = ("0000" + random.nextInt(1000) +
+                "  Pasadena, CA  91125").getBytes();
+            System.arraycopy(tuple, 0, page, pos, tuple.length);
+        }
+
+        assert roundTrip(page) < page.length / 2;
+    }
+
+
+    public void testRandomPage() throws IOException {
+        // Random data doesn't compress, but must still round-trip.
+        Random random = new Random(17);
+        for (int pageSize = DBFile.MIN_PAGESIZE;
+             pageSize <= DBFile.MAX_PAGESIZE; pageSize *= 2) {
+            byte[] page = new byte[pageSize];
+            random.nextBytes(page);
+            roundTrip(page);
+
+            byte[] tooSmall = new byte[pageSize - 512];
+            assert PageCompressor.compress(page, pageSize, tooSmall) == -1;
+        }
+    }
+
+
+    public void testMixedPages() throws IOException {
+        // Runs of repeated bytes of every length, mixed with random bytes,
+        // exercise the extra length bytes of literals and matches.
+        Random random = new Random(5);
+        for (int i = 0; i < 200; i++) {
+            byte[] page = new byte[DBFile.DEFAULT_PAGESIZE];
+            int pos = 0;
+            while (pos < page.length) {
+                int len = Math.min(page.length - pos, random.nextInt(600));
+                if (random.nextBoolean()) {
+                    Arrays.fill(page, pos, pos + len, (byte) random.nextInt());
+                }
+                else {
+                    for (int j = pos; j < pos + len; j++)
+                        page[j] = (byte) random.nextInt();
+                }
+                pos += len;
+            }
+            roundTrip(page);
+        }
+    }
+
+
+    public void testCorruptData() throws IOException {
+        byte[] page = new byte[DBFile.DEFAULT_PAGESIZE];
+        Arrays.fill(page, 100, 3000, (byte) 7);
+
+        byte[] compressed =
+            new byte[PageCompressor.maxCompressedLength(page.length)];
+        int length = PageCompressor.compress(page, page.length, compressed);
+
+        // Truncated data doesn't produce the whole page.
+        try {
+            PageCompressor.decompress(compressed, length - 1,
+                new byte[page.length], page.length);
+            assert false;
+        }
+        catch (IOException e) {
+            // Success.
+        }
+
+        // Data that decompresses to the wrong size is rejected.
+        try {
+            PageCompressor.decompress(compressed, length,
+                new byte[page.length * 2], page.length * 2);
+            assert false;
+        }
+        catch (IOException e) {
+            // Success.
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package edu.caltech.test.nanodb.storage;
+
+
+import java.io.IOException;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+import edu.caltech.nanodb.storage.*;
+
+
+/**
+ * This test class exercises the
+ * {@link edu.caltech.nanodb.storage.PagePrefetcher} class.
+ */
+@Test
+public class TestPagePrefetcher extends StorageTestCase {
+
+    /** This is the filename used for the tests in this class. */
+    private final String TEST_FILE_NAME = "TestPagePrefetcher_TestFile";
+
+
+    /** The number of pages in the test file. */
+    private static final int NUM_PAGES = 64;
+
+
+    /**
+     * The pages of the test file form a chain that visits every page.  Each
+     * step goes this many pages forward, wrapping around at the end of the
+     * file.
+     */
+    private static final int CHAIN_STEP = 5;
+
+
+    /** The offset in each page where the next page of the chain is stored. */
+    private static final int OFFSET_NEXT_PAGE_NO = 4;
+
+
+    /** Finds the next page of the test file's chain. */
+    private static final PagePrefetcher.NextPageFinder NEXT_PAGE_FINDER =
+        dbPage -> dbPage.readInt(OFFSET_NEXT_PAGE_NO);
+
+
+    private FileManager fileMgr;
+
+    private BufferManager bufMgr;
+
+    private PagePrefetcher prefetcher;
+
+    private DBFile dbFile;
+
+
+    @BeforeMethod
+    public void beforeMethod() throws IOException {
+        fileMgr = new FileManagerImpl(testBaseDir);
+        bufMgr = new BufferManager(null, fileMgr);
+        prefetcher = new PagePrefetcher(null, bufMgr, fileMgr);
+
+        if (fileMgr.fileExists(TEST_FILE_NAME))
+            fileMgr.deleteDBFile(TEST_FILE_NAME);
+
+        dbFile = fileMgr.createDBFile(TEST_FILE_NAME,
+            DBFileType.HEAP_TUPLE_FILE, DBFile.DEFAULT_PAGESIZE);
+
+        // Each page records its page number, and the next page of the chain.
+        // Page 0 is the file's header page, so the chain skips it, and the
+        // last page of the chain points to page 0 to end the chain.
+        byte[] buffer = new byte[DBFile.DEFAULT_PAGESIZE];
+        for (int pageNo = 1; pageNo < NUM_PAGES; pageNo++) {
+            int nextPageNo = getNextPageNo(pageNo);
+            writeInt(buffer, 0, pageNo);
+            writeInt(buffer, OFFSET_NEXT_PAGE_NO, nextPageNo);
+            fileMgr.savePage(dbFile, pageNo, buffer);
+        }
+    }
+
+
+    @AfterMethod
+    public void afterMethod() throws IOException {
+        System.clearProperty(PagePrefetcher.PROP_READAHEAD_PAGES);
+
+        prefetcher.fileClosed(dbFile);
+        prefetcher.shutdown(null);
+        bufMgr.flushAll();
+
+        fileMgr.closeDBFile(dbFile);
+        fileMgr.deleteDBFile(dbFile);
+    }
+
+
+    private static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset    ] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+
+    /** Returns the page after the specified page in the test file's chain. */
+    private static int getNextPageNo(int pageNo) {
+        // Since the step and the number of chained pages (NUM_PAGES - 1)
+        // have no common factors, the chain visits every page.
+        int nextPageNo = (pageNo - 1 + CHAIN_STEP) % (NUM_PAGES - 1) + 1;
+        return (nextPageNo == 1) ? 0 : nextPageNo;
+    }
+
+
+    /**
+     * Waits for the prefetcher to load the specified number of pages, and
+     * reports whether it did so in time.
+     */
+    private boolean waitForPrefetches(long start, int numPages)
+        throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (PerformanceCounters.get(
+            PerformanceCounters.STORAGE_PAGES_PREFETCHED) - start < numPages) {
+
+            if (System.currentTimeMillis() > deadline)
+                return false;
+
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+
+    /** Reports whether a page is cached, without leaving it pinned. */
+    private boolean isCached(int pageNo) {
+        DBPage dbPage = bufMgr.getPage(dbFile, pageNo);
+        if (dbPage == null)
+            return false;
+
+        assert dbPage.readInt(0) == pageNo;
+        dbPage.unpin();
+        return true;
+    }
+
+
+    /**
+     * Once a few consecutive pages are requested, the pages that follow them
+     * are loaded in the background.
+     */
+    public void testSequentialReadAhead() throws Exception {
+        int readAhead = prefetcher.getReadAheadPages();
+        assert readAhead == PagePrefetcher.DEFAULT_READAHEAD_PAGES;
+
+        long start = PerformanceCounters.get(
+            PerformanceCounters.STORAGE_PAGES_PREFETCHED);
+
+        // Random requests don't trigger any prefetching.
+        prefetcher.pageRequested(dbFile, 10);
+        prefetcher.pageRequested(dbFile, 3);
+        prefetcher.pageRequested(dbFile, 40);
+
+        int firstPageNo = 20;
+        for (int i = 0; i < PagePrefetcher.SEQUENTIAL_THRESHOLD; i++)
+            prefetcher.pageRequested(dbFile, firstPageNo + i);
+
+        int lastRequested = firstPageNo + PagePrefetcher.SEQUENTIAL_THRESHOLD - 1;
+        assert waitForPrefetches(start, readAhead);
+
+        for (int pageNo = lastRequested + 1;
+             pageNo <= lastRequested + readAhead; pageNo++) {
+            assert isCached(pageNo) : "page " + pageNo + " wasn't prefetched";
+        }
+        assert !isCached(lastRequested + readAhead + 1);
+        assert !isCached(41);
+
+        // Prefetching never goes past the end of the file.
+        start = PerformanceCounters.get(
+            PerformanceCounters.STORAGE_PAGES_PREFETCHED);
+        for (int pageNo = NUM_PAGES - 4; pageNo < NUM_PAGES; pageNo++)
+            prefetcher.pageRequested(dbFile, pageNo);
+
+        prefetcher.fileClosed(dbFile);
+        assert PerformanceCounters.get(
+            PerformanceCounters.STORAGE_PAGES_PREFETCHED) - start <= 2;
+    }
+
+
+    /**
+     * When a scan moves along a chain of pages, the next pages of the chain
+     * are loaded in the background.
+     */
+    public void testChainReadAhead() throws Exception {
+        int readAhead = prefetcher.getReadAheadPages();
+
+        long start = PerformanceCounters.get(
+            PerformanceCounters.STORAGE_PAGES_PREFETCHED);
+
+        prefetcher.chainAdvanced(dbFile, 1, NEXT_PAGE_FINDER);
+        assert waitForPrefetches(start, readAhead);
+
+        int pageNo = 1;
+        for (int i = 0; i < readAhead; i++) {
+            pageNo = getNextPageNo(pageNo);
+            assert isCached(pageNo) : "page " + pageNo + " wasn't prefetched";
+        }
+        assert !isCached(getNextPageNo(pageNo));
+
+        // Following the chain tops up the read-ahead window.
+        start = PerformanceCounters.get(
+            PerformanceCounters.STORAGE_PAGES_PREFETCHED);
+        pageNo = 1;
+        for (int i = 0; i < readAhead; i++) {
+            pageNo = getNextPageNo(pageNo);
+            prefetcher.chainAdvanced(dbFile, pageNo, NEXT_PAGE_FINDER);
+        }
+        assert waitForPrefetches(start, readAhead / 2);
+    }
+
+
+    /**
+     * Prefetched pages that are evicted before anyone uses them count as
+     * wasted.
+     */
+    public void testWastedPrefetches() throws Exception {
+        long start = PerformanceCounters.get(
+            PerformanceCounters.STORAGE_PAGES_PREFETCHED);
+        long wasted = PerformanceCounters.get(
+            PerformanceCounters.STORAGE_PREFETCH_WASTED);
+
+        prefetcher.chainAdvanced(dbFile, 1, NEXT_PAGE_FINDER);
+        assert waitForPrefetches(start, prefetcher.getReadAheadPages());
+        prefetcher.fileClosed(dbFile);
+
+        long prefetched = PerformanceCounters.get(
+            PerformanceCounters.STORAGE_PAGES_PREFETCHED) - start;
+
+        bufMgr.flushAll();
+        assert PerformanceCounters.get(
+            PerformanceCounters.STORAGE_PREFETCH_WASTED) - wasted == prefetched;
+    }
+
+
+    /** Setting the read-ahead to 0 disables prefetching. */
+    public void testDisabled() throws Exception {
+        System.setProperty(PagePrefetcher.PROP_READAHEAD_PAGES, "0");
+        PagePrefetcher disabled = new PagePrefetcher(null, bufMgr, fileMgr);
+        assert disabled.getReadAheadPages() == 0;
+
+        for (int pageNo = 1; pageNo < 10; pageNo++)
+            disabled.pageRequested(dbFile, pageNo);
+        disabled.chainAdvanced(dbFile, 1, NEXT_PAGE_FINDER);
+
+        disabled.fileClosed(dbFile);
+        disabled.shutdown(null);
+        assert bufMgr.getTotalBytesCached() == 0;
+    }
+}
@@ -0,0 +1,250 @@
+package edu.caltech.test.nanodb.storage;
+
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.storage.*;
+
+
+/**
+ * This test class exercises the page replacement policies used by the
+ * {@link edu.caltech.nanodb.storage.BufferManager}.
+ */
+@Test
+public class TestReplacementPolicies extends StorageTestCase {
+
+    /** This is the filename used for the tests in this class. */
+    private final String TEST_FILE_NAME = "TestReplacementPolicies_TestFile";
+
+
+    private FileManager fileMgr;
+
+    private BufferManager bufMgr;
+
+    private DBFile dbFile;
+
+
+    @BeforeClass
+    public void beforeClass() throws IOException {
+        fileMgr = new FileManagerImpl(testBaseDir);
+        bufMgr = new BufferManager(null, fileMgr);
+
+        if (fileMgr.fileExists(TEST_FILE_NAME))
+            fileMgr.deleteDBFile(TEST_FILE_NAME);
+
+        dbFile = fileMgr.createDBFile(TEST_FILE_NAME,
+            DBFileType.HEAP_TUPLE_FILE, DBFile.DEFAULT_PAGESIZE);
+    }
+
+
+    @AfterClass
+    public void afterClass() throws IOException {
+        fileMgr.closeDBFile(dbFile);
+        fileMgr.deleteDBFile(dbFile);
+    }
+
+
+    /**
+     * Simulates a cache with room for {@code capacity} pages that uses the
+     * specified policy, and records how many page requests hit in the cache.
+     */
+    private class SimulatedCache {
+        private PageReplacementPolicy policy;
+
+        private int capacity;
+
+        private ArrayList<DBPage> pages = new ArrayList<>();
+
+        public int hits;
+
+        SimulatedCache(String policyName, int capacity) {
+            this.policy = ReplacementPolicies.newPolicy(policyName);
+            this.capacity = capacity;
+        }
+
+        void access(int pageNo) {
+            for (DBPage dbPage : pages) {
+                if (dbPage.getPageNo() == pageNo) {
+                    policy.pageAccessed(dbPage);
+                    hits++;
+                    return;
+                }
+            }
+
+            if (pages.size() == capacity) {
+                DBPage victim = policy.chooseVictim(
+                    Collections.<DBPage>emptyList());
+                assert victim != null;
+
+                policy.pageRemoved(victim);
+                pages.remove(victim);
+                victim.invalidate();
+            }
+
+            DBPage dbPage = new DBPage(bufMgr, dbFile, pageNo);
+            pages.add(dbPage);
+            policy.pageAdded(dbPage);
+        }
+
+        boolean contains(int pageNo) {
+            for (DBPage dbPage : pages) {
+                if (dbPage.getPageNo() == pageNo)
+                    return true;
+            }
+            return false;
+        }
+
+        void clear() {
+            for (DBPage dbPage : pages) {
+                policy.pageRemoved(dbPage);
+                dbPage.invalidate();
+            }
+            pages.clear();
+        }
+    }
+
+
+    /**
+     * Every policy must skip pinned pages, skip the pages it is told to skip,
+     * and return {@code null} when there is nothing left to evict.  Pinned
+     * pages are set aside until the policy is told they were unpinned.
+     */
+    public void testVictimsAreEvictable() {
+        String[] policies = { ReplacementPolicies.LRU, ReplacementPolicies.FIFO,
+            ReplacementPolicies.CLOCK, ReplacementPolicies.TWO_QUEUE,
+            ReplacementPolicies.LRU_K };
+
+        for (String name : policies) {
+            PageReplacementPolicy policy = ReplacementPolicies.newPolicy(name);
+
+            DBPage pinned = new DBPage(bufMgr, dbFile, 1);
+            DBPage skipped = new DBPage(bufMgr, dbFile, 2);
+            DBPage free = new DBPage(bufMgr, dbFile, 3);
+
+            policy.pageAdded(pinned);
+            policy.pageAdded(skipped);
+            policy.pageAdded(free);
+            assert policy.size() == 3;
+
+            pinned.pin();
+
+            ArrayList<DBPage> skip = new ArrayList<>();
+            skip.add(skipped);
+
+            assert policy.chooseVictim(skip) == free : name;
+
+            policy.pageRemoved(free);
+            assert policy.size() == 2;
+            assert policy.chooseVictim(skip) == null : name;
+
+            // The Buffer Manager tells the policy when a page that was set
+            // aside is unpinned; until then, the policy doesn't look at it.
+            pinned.unpin();
+            assert policy.chooseVictim(skip) == null : name;
+
+            policy.pageUnpinned(pinned);
+            assert policy.chooseVictim(skip) == pinned : name;
+
+            policy.pageRemoved(pinned);
+            policy.pageRemoved(skipped);
+            assert policy.size() == 0;
+            assert policy.chooseVictim(skip) == null : name;
+
+            pinned.invalidate();
+            skipped.invalidate();
+            free.invalidate();
+        }
+    }
+
+
+    /** LRU evicts the least recently used page, and FIFO the oldest page. */
+    public void testLRUAndFIFO() {
+        SimulatedCache lru = new SimulatedCache(ReplacementPolicies.LRU, 3);
+        SimulatedCache fifo = new SimulatedCache(ReplacementPolicies.FIFO, 3);
+
+        for (SimulatedCache cache : new SimulatedCache[] { lru, fifo }) {
+            cache.access(1);
+            cache.access(2);
+            cache.access(3);
+            cache.access(1);
+            cache.access(4);
+        }
+
+        assert lru.contains(1) && !lru.contains(2);
+        assert !fifo.contains(1) && fifo.contains(2);
+
+        lru.clear();
+        fifo.clear();
+    }
+
+
+    /** CLOCK gives pages that have been accessed again a second chance. */
+    public void testClockSecondChance() {
+        SimulatedCache clock = new SimulatedCache(ReplacementPolicies.CLOCK, 3);
+
+        clock.access(1);
+        clock.access(2);
+        clock.access(3);
+        clock.access(1);
+        clock.access(4);
+
+        assert clock.contains(1) && !clock.contains(2);
+        assert clock.contains(3) && clock.contains(4);
+
+        clock.clear();
+    }
+
+
+    /**
+     * The scan-resistant policies keep a small set of hot pages in the cache
+     * while a large scan runs through it, where LRU loses them.
+     */
+    public void testScanResistance() {
+        String[] policies = { ReplacementPolicies.LRU,
+            ReplacementPolicies.CLOCK, ReplacementPolicies.TWO_QUEUE,
+            ReplacementPolicies.LRU_K };
+
+        final int rounds = 50;
+
+        int[] hits = new int[policies.length];
+        for (int i = 0; i < policies.length; i++) {
+            SimulatedCache cache = new SimulatedCache(policies[i], 20);
+
+            // Pages 0-9 are hot, and are used twice in each round.  Each
+            // round also reads part of a scan over pages that are never used
+            // again.
+            int scanPageNo = 1000;
+            for (int round = 0; round < rounds; round++) {
+                for (int pass = 0; pass < 2; pass++) {
+                    for (int pageNo = 0; pageNo < 10; pageNo++)
+                        cache.access(pageNo);
+                }
+
+                for (int j = 0; j < 15; j++)
+                    cache.access(scanPageNo++);
+            }
+
+            hits[i] = cache.hits;
+            cache.clear();
+        }
+
+        // LRU loses every hot page to the scan in every round, so only the
+        // second use of each hot page hits.
+        assert hits[0] == 10 * rounds : "lru had " + hits[0] + " hits";
+
+        // CLOCK gives the hot pages a second chance, so it keeps some of them.
+        assert hits[1] > hits[0] : "clock only had " + hits[1] + " hits";
+
+        // 2Q and LRU-K should keep nearly all of the hot pages.
+        for (int i = 2; i < policies.length; i++) {
+            assert hits[i] > 18 * rounds :
+                policies[i] + " only had " + hits[i] + " hits";
+        }
+    }
+}
@@ -15,7 +15,10 @@ import edu.caltech.nanodb.relations.ColumnInfo;
 import edu.caltech.nanodb.relations.ColumnType;
 import edu.caltech.nanodb.relations.SQLDataType;
 import edu.caltech.nanodb.relations.Schema;
+import edu.caltech.nanodb.relations.Tuple;
 import edu.caltech.nanodb.server.CommandResult;
+import edu.caltech.nanodb.storage.BufferManager;
+import edu.caltech.nanodb.storage.TupleFile;
 import org.testng.annotations.*;
 
 import edu.caltech.test.nanodb.sql.SqlTestCase;
@@ -204,4 +207,36 @@ public class TestBTreeFile extends SqlTestCase {
 
         runBTreeTest("btree_multi_level_del", 250000, 5000, 50, 400, 0.01);
     }
+
+
+    /**
+     * Scans a multi-leaf B<sup>+</sup> tree file, unpinning each tuple and
+     * flushing the file's pages before asking for the next tuple, to be sure
+     * that the file doesn't need the previous tuple's page to still be
+     * cached.
+     */
+    public void testBTreeTableScanWithEvictions() throws Exception {
+        tryDoCommand("CREATE TABLE btree_evict (a INTEGER, b VARCHAR(50)) " +
+            "PROPERTIES (storage = 'btree');", false);
+
+        runBTreeTest("btree_evict", 2000, 1000, 20, 50, 0.0);
+
+        TupleFile tupleFile = server.getStorageManager().getTableManager()
+            .openTable("BTREE_EVICT").getTupleFile();
+        BufferManager bufferManager =
+            server.getStorageManager().getBufferManager();
+
+        int count = 0;
+        Tuple tup = tupleFile.getFirstTuple();
+        while (tup != null) {
+            count++;
+
+            tup.unpin();
+            bufferManager.flushDBFile(tupleFile.getDBFile());
+
+            tup = tupleFile.getNextTuple(tup);
+        }
+
+        assert count == 2000;
+    }
 }
@@ -0,0 +1,97 @@
+package edu.caltech.test.nanodb.storage.columnfile;
+
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.relations.ColumnType;
+import edu.caltech.nanodb.relations.SQLDataType;
+import edu.caltech.nanodb.storage.columnfile.ColumnEncoder;
+import edu.caltech.nanodb.storage.columnfile.ColumnEncoding;
+
+
+/**
+ * This class exercises the {@link ColumnEncoder} class, by encoding and
+ * decoding arrays of values that each encoding is suited to.
+ */
+@Test
+public class TestColumnEncoder {
+
+    private static final ColumnType INTEGER = new ColumnType(SQLDataType.INTEGER);
+
+
+    private static final ColumnType VARCHAR = new ColumnType(SQLDataType.VARCHAR);
+
+
+    /**
+     * Plans and encodes the values, decodes them again, and checks that the
+     * result matches.
+     *
+     * @return the encoding that was chosen for the values
+     */
+    private ColumnEncoding roundTrip(ColumnType colType, Object[] values) {
+        ColumnEncoder.Plan plan =
+            ColumnEncoder.planEncoding(colType, values, 0, values.length);
+        assert plan.getNumValues() == values.length;
+
+        ByteBuffer buf = ByteBuffer.allocate(plan.getSize());
+        ColumnEncoder.encode(plan, buf);
+        assert buf.position() == plan.getSize();
+
+        buf.flip();
+        Object[] result = new Object[values.length];
+        ColumnEncoder.decode(buf, colType, plan.getEncoding(), values.length,
+            result, 0);
+        assert buf.position() == plan.getSize();
+        assert Arrays.equals(values, result);
+
+        return plan.getEncoding();
+    }
+
+
+    public void testRunLength() {
+        Object[] values = new Object[1000];
+        for (int i = 0; i < values.length; i++)
+            values[i] = (i < 600) ? "Pasadena" : null;
+
+        assert roundTrip(VARCHAR, values) == ColumnEncoding.RUN_LENGTH;
+    }
+
+
+    public void testDictionary() {
+        String[] cities = { "Pasadena", "Los Angeles", "San Francisco",
+            "Sacramento", "San Diego" };
+        Random rand = new Random(12345);
+
+        Object[] values = new Object[1000];
+        for (int i = 0; i < values.length; i++)
+            values[i] = cities[rand.nextInt(cities.length)];
+
+        assert roundTrip(VARCHAR, values) == ColumnEncoding.DICTIONARY;
+    }
+
+
+    public void testFrameOfReference() {
+        Random rand = new Random(12345);
+
+        Object[] values = new Object[1000];
+        for (int i = 0; i < values.length; i++)
+            values[i] = (i % 100 == 7) ? null : 1000000 + rand.nextInt(5000);
+
+        assert roundTrip(INTEGER, values) == ColumnEncoding.FRAME_OF_REFERENCE;
+    }
+
+
+    public void testPlain() {
+        Random rand = new Random(12345);
+
+        Object[] values = new Object[200];
+        for (int i = 0; i < values.length; i++)
+            values[i] = Long.toString(rand.nextLong(), 36);
+
+        assert roundTrip(VARCHAR, values) == ColumnEncoding.PLAIN;
+    }
+}
@@ -0,0 +1,251 @@
+package edu.caltech.test.nanodb.storage.columnfile;
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.relations.TableInfo;
+import edu.caltech.nanodb.server.CommandResult;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+import edu.caltech.nanodb.storage.TableManager;
+import edu.caltech.test.nanodb.storage.TableFormatTestCase;
+
+
+/**
+ * This test class exercises basic capabilities of the columnar tuple file,
+ * to be sure that inserts, updates and deletes all work correctly, and that
+ * scans only read the columns they use.  Like the other table-format tests,
+ * it creates tables of the format and performs SQL operations against them.
+ */
+@Test
+public class TestColumnarTableFormat extends TableFormatTestCase {
+
+    /** Returns the city stored in the test tables for the specified row. */
+    private static String makeCity(int id) {
+        String[] cities = { "Pasadena", "Los Angeles", "San Francisco",
+            "Sacramento", "San Diego" };
+        return cities[id % cities.length];
+    }
+
+
+    /** Checks that the table's file has no structural errors. */
+    private void verifyTable(String tableName) throws Exception {
+        TableManager tableManager = server.getStorageManager().getTableManager();
+        TableInfo tableInfo = tableManager.openTable(tableName.toUpperCase());
+        List<String> errors = tableInfo.getTupleFile().verify();
+        assert errors.isEmpty() : "Table " + tableName + " has errors:  " + errors;
+    }
+
+
+    /**
+     * Inserts into a table file, where each column should stay within a
+     * single data page.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    public void testColumnarTableOnePageInsert() throws Exception {
+        tryDoCommand("CREATE TABLE col_1p_ins (a INTEGER, b VARCHAR(20)) " +
+            "PROPERTIES (storage = 'column', pagesize = 4096);", false);
+
+        insertRows("col_1p_ins", 150, 200, 3, 20, /* ordered */ false,
+                   /* delete */ false);
+        verifyTable("col_1p_ins");
+    }
+
+
+    /**
+     * Inserts into and deletes from a table file, where the columns span
+     * many data pages.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    public void testColumnarTableMultiPageInsertDelete() throws Exception {
+        tryDoCommand("CREATE TABLE col_mp_insdel (a INTEGER, b VARCHAR(50)) " +
+            "PROPERTIES (storage = 'column', pagesize = 4096);", false);
+
+        insertRows("col_mp_insdel", 3000, 200, 20, 50, /* ordered */ false,
+                   /* delete */ true);
+        verifyTable("col_mp_insdel");
+    }
+
+
+    /**
+     * This test performs a sequence of updates, to fully exercise the
+     * tuple-value updating code.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    public void testUpdates() throws Exception {
+        CommandResult result;
+        TupleLiteral[] tuples = {
+            new TupleLiteral(35, 521L, "abcd", 3.14, "goodbye", 2.71828f),
+            new TupleLiteral(6177281, -405691L, "fghi", 6.28, "puce", 54.669f),
+            new TupleLiteral(-403662, 928032810L, "qrstu", 965.2323,
+                "alongerstring", -31.2115f)
+        };
+
+        tryDoCommand("CREATE TABLE col_update (a INTEGER, b BIGINT, " +
+            "c CHAR(7), d DOUBLE, e VARCHAR(20), f FLOAT) " +
+            "PROPERTIES (storage = 'column');");
+
+        tryDoCommand("INSERT INTO col_update VALUES (35, 521, 'abcd', " +
+            "3.14, 'goodbye', 2.71828);");
+
+        tryDoCommand("INSERT INTO col_update VALUES (6177281, -405691, " +
+            "'fghi', 6.28, 'puce', 54.669);");
+
+        tryDoCommand("INSERT INTO col_update VALUES (-403662, 928032810, " +
+            "'qrstu', 965.2323, 'alongerstring', -31.2115);");
+
+        result = tryDoCommand("SELECT * FROM col_update;", true);
+        assert checkUnorderedResults(tuples, result);
+
+        tryDoCommand("UPDATE col_update SET b = 92281965 WHERE a = 6177281;");
+        tryDoCommand("UPDATE col_update SET c = 'm' WHERE a = 35;");
+        tryDoCommand("UPDATE col_update SET a = 771 WHERE b = 521;");
+
+        tuples[1].setColumnValue(1, 92281965L);
+        tuples[0].setColumnValue(2, "m");
+        tuples[0].setColumnValue(0, 771);
+
+        result = tryDoCommand("SELECT * FROM col_update;", true);
+        assert checkUnorderedResults(tuples, result);
+
+        tryDoCommand("UPDATE col_update SET d = 55.55, f = -43.21, " +
+            "e = 'goodeveningsir' WHERE a = 771;");
+        tryDoCommand("UPDATE col_update SET b = NULL, e = NULL WHERE a = -403662;");
+
+        tuples[0].setColumnValue(3, 55.55);
+        tuples[0].setColumnValue(5, -43.21f);
+        tuples[0].setColumnValue(4, "goodeveningsir");
+        tuples[2].setColumnValue(1, null);
+        tuples[2].setColumnValue(4, null);
+
+        result = tryDoCommand("SELECT * FROM col_update;", true);
+        assert checkUnorderedResults(tuples, result);
+        verifyTable("col_update");
+    }
+
+
+    /**
+     * Fills a column with a single repeated value, so that it is encoded
+     * very compactly, and then updates every row to a distinct value, so
+     * that the column's pages must be split.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    public void testUpdatesSplitPages() throws Exception {
+        tryDoCommand("CREATE TABLE col_split (id INTEGER, s VARCHAR(40)) " +
+            "PROPERTIES (storage = 'column', pagesize = 4096);");
+
+        int numRows = 600;
+        for (int id = 0; id < numRows; id++) {
+            tryDoCommand(String.format(
+                "INSERT INTO col_split VALUES (%d, 'same');", id));
+        }
+
+        ArrayList<TupleLiteral> expected = new ArrayList<>();
+        for (int id = 0; id < numRows; id++) {
+            String s = "distinct value number " + id;
+            tryDoCommand(String.format(
+                "UPDATE col_split SET s = '%s' WHERE id = %d;", s, id));
+            expected.add(new TupleLiteral(id, s));
+        }
+
+        CommandResult result = tryDoCommand("SELECT * FROM col_split;", true);
+        assert checkOrderedResults(expected.toArray(new TupleLiteral[0]), result);
+        verifyTable("col_split");
+    }
+
+
+    /**
+     * Checks that a query that only uses one column reads fewer pages than
+     * one that uses every column, and that the column's values come out
+     * correctly.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    public void testScanReadsOnlyUsedColumns() throws Exception {
+        tryDoCommand("CREATE TABLE col_scan (id INTEGER, city VARCHAR(20), " +
+            "note VARCHAR(50)) PROPERTIES (storage = 'column', pagesize = 4096);");
+
+        int numRows = 2000;
+        long sum = 0;
+        for (int id = 0; id < numRows; id++) {
+            tryDoCommand(String.format(
+                "INSERT INTO col_scan VALUES (%d, '%s', '%s');", id,
+                makeCity(id), makeRandomString(20, 50)));
+            sum += id;
+        }
+
+        long start = PerformanceCounters.get(
+            PerformanceCounters.STORAGE_COLUMN_PAGES_DECODED);
+        CommandResult result = tryDoCommand("SELECT SUM(id) FROM col_scan;", true);
+        long sumPages = PerformanceCounters.get(
+            PerformanceCounters.STORAGE_COLUMN_PAGES_DECODED) - start;
+
+        TupleLiteral[] expected = { new TupleLiteral(sum) };
+        assert checkUnorderedResults(expected, result);
+
+        start = PerformanceCounters.get(
+            PerformanceCounters.STORAGE_COLUMN_PAGES_DECODED);
+        result = tryDoCommand("SELECT * FROM col_scan;", true);
+        long allPages = PerformanceCounters.get(
+            PerformanceCounters.STORAGE_COLUMN_PAGES_DECODED) - start;
+
+        assert result.getTuples().size() == numRows;
+        assert sumPages > 0;
+        assert sumPages * 4 < allPages :
+            "SUM(id) decoded " + sumPages + " pages; SELECT * decoded " + allPages;
+    }
+
+
+    /**
+     * Checks that the rows of a columnar table survive a server restart.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    public void testRestart() throws Exception {
+        tryDoCommand("CREATE TABLE col_restart (id INTEGER, city VARCHAR(20)) " +
+            "PROPERTIES (storage = 'column');");
+
+        ArrayList<TupleLiteral> expected = new ArrayList<>();
+        for (int id = 0; id < 500; id++) {
+            tryDoCommand(String.format(
+                "INSERT INTO col_restart VALUES (%d, '%s');", id, makeCity(id)));
+            if (id % 3 != 0)
+                expected.add(new TupleLiteral(id, makeCity(id)));
+        }
+        tryDoCommand("DELETE FROM col_restart WHERE id % 3 = 0;");
+        tryDoCommand("OPTIMIZE col_restart;");
+
+        restartServer();
+
+        CommandResult result = tryDoCommand("SELECT * FROM col_restart;", true);
+        assert checkOrderedResults(expected.toArray(new TupleLiteral[0]), result);
+        verifyTable("col_restart");
+    }
+
+
+    /**
+     * Checks that columnar tables reject column types they can't store, and
+     * indexes.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    public void testUnsupportedFeatures() throws Exception {
+        CommandResult result = server.doCommand(
+            "CREATE TABLE col_bad (d DATE) PROPERTIES (storage = 'column');",
+            false);
+        assert result.failed();
+
+        tryDoCommand("CREATE TABLE col_noidx (a INTEGER) " +
+            "PROPERTIES (storage = 'column');");
+        result = server.doCommand("CREATE INDEX idx_noidx ON col_noidx (a);",
+            false);
+        assert result.failed();
+    }
+}
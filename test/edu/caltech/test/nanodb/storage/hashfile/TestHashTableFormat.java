@@ -0,0 +1,310 @@
+package edu.caltech.test.nanodb.storage.hashfile;
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.indexes.IndexInfo;
+import edu.caltech.nanodb.relations.TableInfo;
+import edu.caltech.nanodb.server.CommandResult;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+import edu.caltech.nanodb.storage.DBFileType;
+import edu.caltech.nanodb.storage.TableManager;
+import edu.caltech.nanodb.storage.hashfile.HashTupleFile;
+import edu.caltech.test.nanodb.storage.TableFormatTestCase;
+
+
+/**
+ * This test class exercises basic capabilities of the hash tuple file, to be
+ * sure that inserts, updates and deletes all work correctly as the file's
+ * buckets split, and that lookups on the hash key only read the key's
+ * bucket.  Like the other table-format tests, it creates tables of the
+ * format and performs SQL operations against them.
+ */
+@Test
+public class TestHashTableFormat extends TableFormatTestCase {
+
+    /** Returns the city stored in the test tables for the specified row. */
+    private static String makeCity(int id) {
+        String[] cities = { "Pasadena", "Los Angeles", "San Francisco",
+            "Sacramento", "San Diego" };
+        return cities[id % cities.length];
+    }
+
+
+    /** Opens the tuple file of the specified hash table. */
+    private HashTupleFile openHashFile(String tableName) throws Exception {
+        TableManager tableManager = server.getStorageManager().getTableManager();
+        TableInfo tableInfo = tableManager.openTable(tableName.toUpperCase());
+        return (HashTupleFile) tableInfo.getTupleFile();
+    }
+
+
+    /** Checks that the table's file has no structural errors. */
+    private void verifyTable(String tableName) throws Exception {
+        List<String> errors = openHashFile(tableName).verify();
+        assert errors.isEmpty() : "Table " + tableName + " has errors:  " + errors;
+    }
+
+
+    /** Returns the number of pages that a query accesses in the page cache. */
+    private long countPageAccesses(String query) throws Exception {
+        long start = PerformanceCounters.get(PerformanceCounters.BUFFER_PAGE_HITS) +
+            PerformanceCounters.get(PerformanceCounters.BUFFER_PAGE_MISSES);
+        tryDoCommand(query, true);
+        return PerformanceCounters.get(PerformanceCounters.BUFFER_PAGE_HITS) +
+            PerformanceCounters.get(PerformanceCounters.BUFFER_PAGE_MISSES) - start;
+    }
+
+
+    /**
+     * Inserts into a table file small enough that its buckets don't need to
+     * split.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    public void testHashTableOnePageInsert() throws Exception {
+        tryDoCommand("CREATE TABLE hash_1p_ins (a INTEGER, b VARCHAR(20)) " +
+            "PROPERTIES (storage = 'hash', hashkey = 'a', pagesize = 4096);",
+            false);
+
+        insertRows("hash_1p_ins", 50, 200, 3, 20, /* ordered */ false,
+                   /* delete */ false);
+        verifyTable("hash_1p_ins");
+    }
+
+
+    /**
+     * Inserts into and deletes from a table file, where the buckets split
+     * many times.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    public void testHashTableMultiPageInsertDelete() throws Exception {
+        tryDoCommand("CREATE TABLE hash_mp_insdel (a INTEGER, b VARCHAR(50)) " +
+            "PROPERTIES (storage = 'hash', hashkey = 'a', pagesize = 1024);",
+            false);
+
+        insertRows("hash_mp_insdel", 3000, 200, 20, 50, /* ordered */ false,
+                   /* delete */ true);
+        verifyTable("hash_mp_insdel");
+
+        int numBuckets = openHashFile("hash_mp_insdel").getNumBuckets();
+        assert numBuckets > 4 : "File only has " + numBuckets + " buckets";
+    }
+
+
+    /**
+     * Checks that equality lookups on the hash key return the right rows,
+     * including lookups on a multi-column key, and that they read far fewer
+     * pages than a scan of the table.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    public void testKeyLookups() throws Exception {
+        tryDoCommand("CREATE TABLE hash_lookup (id INTEGER, city VARCHAR(20), " +
+            "seq INTEGER, note VARCHAR(50)) PROPERTIES (storage = 'hash', " +
+            "hashkey = 'id, city', pagesize = 1024);");
+
+        int numRows = 2000;
+        for (int i = 0; i < numRows; i++) {
+            tryDoCommand(String.format(
+                "INSERT INTO hash_lookup VALUES (%d, '%s', %d, '%s');",
+                i % 400, makeCity(i), i, makeRandomString(20, 40)));
+        }
+
+        // Rows 123, 523, ..., 1923 all have id 123, and alternate cities.
+        ArrayList<TupleLiteral> expected = new ArrayList<>();
+        for (int i = 123; i < numRows; i += 400) {
+            if (makeCity(i).equals("Sacramento"))
+                expected.add(new TupleLiteral((Object) i));
+        }
+        assert !expected.isEmpty();
+
+        String query = "SELECT seq FROM hash_lookup " +
+            "WHERE id = 123 AND city = 'Sacramento';";
+        CommandResult result = tryDoCommand(query, true);
+        assert checkUnorderedResults(expected.toArray(new TupleLiteral[0]), result);
+
+        // Literals on the left side, and mixed numeric types.
+        result = tryDoCommand("SELECT seq FROM hash_lookup " +
+            "WHERE 'Sacramento' = city AND 123.0 = id;", true);
+        assert checkUnorderedResults(expected.toArray(new TupleLiteral[0]), result);
+
+        result = tryDoCommand("SELECT * FROM hash_lookup " +
+            "WHERE id = 123 AND city = 'Nowhere';", true);
+        assert result.getTuples().isEmpty();
+
+        long lookupPages = countPageAccesses(query);
+        long scanPages = countPageAccesses("SELECT * FROM hash_lookup;");
+        assert lookupPages * 10 < scanPages :
+            "Lookup accessed " + lookupPages + " pages; scan accessed " + scanPages;
+
+        // Only constraining part of the key scans the whole table.
+        result = tryDoCommand("SELECT COUNT(*) FROM hash_lookup WHERE id = 123;",
+            true);
+        assert checkUnorderedResults(new TupleLiteral[] { new TupleLiteral(5L) },
+            result);
+    }
+
+
+    /**
+     * This test performs a sequence of updates, to exercise the tuple-value
+     * updating code, and checks that hash-key columns can't be changed.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    public void testUpdates() throws Exception {
+        CommandResult result;
+        TupleLiteral[] tuples = {
+            new TupleLiteral(35, 521L, "abcd", 3.14, "goodbye", 2.71828f),
+            new TupleLiteral(6177281, -405691L, "fghi", 6.28, "puce", 54.669f),
+            new TupleLiteral(-403662, 928032810L, "qrstu", 965.2323,
+                "alongerstring", -31.2115f)
+        };
+
+        tryDoCommand("CREATE TABLE hash_update (a INTEGER, b BIGINT, " +
+            "c CHAR(7), d DOUBLE, e VARCHAR(20), f FLOAT) " +
+            "PROPERTIES (storage = 'hash', hashkey = 'a');");
+
+        tryDoCommand("INSERT INTO hash_update VALUES (35, 521, 'abcd', " +
+            "3.14, 'goodbye', 2.71828);");
+
+        tryDoCommand("INSERT INTO hash_update VALUES (6177281, -405691, " +
+            "'fghi', 6.28, 'puce', 54.669);");
+
+        tryDoCommand("INSERT INTO hash_update VALUES (-403662, 928032810, " +
+            "'qrstu', 965.2323, 'alongerstring', -31.2115);");
+
+        result = tryDoCommand("SELECT * FROM hash_update;", true);
+        assert checkUnorderedResults(tuples, result);
+
+        tryDoCommand("UPDATE hash_update SET b = 92281965 WHERE a = 6177281;");
+        tryDoCommand("UPDATE hash_update SET c = 'm' WHERE a = 35;");
+        tryDoCommand("UPDATE hash_update SET d = 55.55, f = -43.21, " +
+            "e = 'goodeveningsir' WHERE b = 521;");
+        tryDoCommand("UPDATE hash_update SET b = NULL, e = NULL WHERE a = -403662;");
+
+        tuples[1].setColumnValue(1, 92281965L);
+        tuples[0].setColumnValue(2, "m");
+        tuples[0].setColumnValue(3, 55.55);
+        tuples[0].setColumnValue(5, -43.21f);
+        tuples[0].setColumnValue(4, "goodeveningsir");
+        tuples[2].setColumnValue(1, null);
+        tuples[2].setColumnValue(4, null);
+
+        result = tryDoCommand("SELECT * FROM hash_update;", true);
+        assert checkUnorderedResults(tuples, result);
+
+        result = server.doCommand(
+            "UPDATE hash_update SET a = 771 WHERE b = 521;", false);
+        assert result.failed();
+
+        result = tryDoCommand("SELECT * FROM hash_update;", true);
+        assert checkUnorderedResults(tuples, result);
+        verifyTable("hash_update");
+    }
+
+
+    /**
+     * Checks that the rows of a hash table survive <tt>OPTIMIZE</tt>,
+     * <tt>ANALYZE</tt> and a server restart.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    public void testOptimizeAndRestart() throws Exception {
+        tryDoCommand("CREATE TABLE hash_restart (id INTEGER, city VARCHAR(20)) " +
+            "PROPERTIES (storage = 'hash', hashkey = 'city', pagesize = 1024);");
+
+        // Hashing on the city puts all the rows into a few long chains.
+        ArrayList<TupleLiteral> expected = new ArrayList<>();
+        for (int id = 0; id < 1000; id++) {
+            tryDoCommand(String.format(
+                "INSERT INTO hash_restart VALUES (%d, '%s');", id, makeCity(id)));
+            if (id % 3 != 0)
+                expected.add(new TupleLiteral(id, makeCity(id)));
+        }
+        tryDoCommand("DELETE FROM hash_restart WHERE id % 3 = 0;");
+        tryDoCommand("OPTIMIZE hash_restart;");
+        tryDoCommand("ANALYZE hash_restart;");
+        verifyTable("hash_restart");
+
+        restartServer();
+
+        CommandResult result = tryDoCommand("SELECT * FROM hash_restart;", true);
+        assert checkUnorderedResults(expected.toArray(new TupleLiteral[0]), result);
+
+        result = tryDoCommand(
+            "SELECT COUNT(*) FROM hash_restart WHERE city = 'Pasadena';", true);
+        long count = expected.stream()
+            .filter(t -> "Pasadena".equals(t.getColumnValue(1))).count();
+        assert checkUnorderedResults(
+            new TupleLiteral[] { new TupleLiteral(count) }, result);
+        verifyTable("hash_restart");
+    }
+
+
+    /**
+     * Checks that <tt>CREATE INDEX</tt> only accepts <tt>BTREE</tt> in its
+     * <tt>USING</tt> clause, since hashed indexes are not supported.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    public void testIndexTypes() throws Exception {
+        tryDoCommand("CREATE TABLE hash_idx_tbl (a INTEGER, b VARCHAR(20));");
+        for (int id = 0; id < 50; id++) {
+            tryDoCommand(String.format(
+                "INSERT INTO hash_idx_tbl VALUES (%d, '%s');", id, makeCity(id)));
+        }
+
+        CommandResult result = server.doCommand(
+            "CREATE INDEX idx_hash_b ON hash_idx_tbl USING HASH (b);", false);
+        assert result.failed();
+        assert !server.getStorageManager().getIndexManager().indexExists(
+            "HASH_IDX_TBL", "IDX_HASH_B");
+
+        result = server.doCommand(
+            "CREATE INDEX idx_bad ON hash_idx_tbl USING FOO (a);", false);
+        assert result.failed();
+
+        tryDoCommand("CREATE INDEX idx_btree_b ON hash_idx_tbl USING BTREE (b);");
+
+        TableManager tableManager = server.getStorageManager().getTableManager();
+        TableInfo tableInfo = tableManager.openTable("HASH_IDX_TBL");
+        IndexInfo indexInfo = server.getStorageManager().getIndexManager()
+            .openIndex(tableInfo, "IDX_BTREE_B");
+        assert indexInfo.getTupleFile().getDBFile().getType() ==
+            DBFileType.BTREE_TUPLE_FILE;
+    }
+
+
+    /**
+     * Checks that hash tables must name existing hash-key columns, and that
+     * they reject indexes.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    public void testUnsupportedFeatures() throws Exception {
+        CommandResult result = server.doCommand(
+            "CREATE TABLE hash_nokey (a INTEGER) PROPERTIES (storage = 'hash');",
+            false);
+        assert result.failed();
+
+        result = server.doCommand("CREATE TABLE hash_badkey (a INTEGER) " +
+            "PROPERTIES (storage = 'hash', hashkey = 'z');", false);
+        assert result.failed();
+
+        result = server.doCommand("CREATE TABLE hash_heapkey (a INTEGER) " +
+            "PROPERTIES (hashkey = 'a');", false);
+        assert result.failed();
+
+        tryDoCommand("CREATE TABLE hash_noidx (a INTEGER) " +
+            "PROPERTIES (storage = 'hash', hashkey = 'a');");
+        result = server.doCommand("CREATE INDEX idx_noidx ON hash_noidx (a);",
+            false);
+        assert result.failed();
+    }
+}
@@ -209,4 +209,22 @@ public class TestHeapTableFormat extends TableFormatTestCase {
         result = tryDoCommand("SELECT * FROM heap_update;", true);
         assert checkUnorderedResults(tuples, result);
     }
+
+
+    /**
+     * Scans a multi-page table while its pages are evicted between tuples,
+     * to be sure that the file doesn't need the previous tuple's page to
+     * find the next tuple.
+     *
+     * @throws Exception if an IO error occurs, or if the test fails.
+     */
+    public void testHeapTableScanWithEvictions() throws Exception {
+        tryDoCommand("CREATE TABLE heap_evict (a INTEGER, b VARCHAR(50)) " +
+            "PROPERTIES (storage = 'heap', pagesize = 4096);", false);
+
+        insertRows("heap_evict", 500, 1000, 20, 50, /* ordered */ false,
+                   /* delete */ false);
+
+        assert countTuplesWithEvictions("HEAP_EVICT") == 500;
+    }
 }
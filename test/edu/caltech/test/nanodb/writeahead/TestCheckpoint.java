@@ -0,0 +1,208 @@
+package edu.caltech.test.nanodb.writeahead;
+
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.client.SessionState;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.server.CommandResult;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+import edu.caltech.nanodb.storage.writeahead.WALManager;
+import edu.caltech.nanodb.transactions.Checkpointer;
+import edu.caltech.nanodb.transactions.TransactionManager;
+
+
+/**
+ * This class exercises fuzzy checkpoints:  recovery must start from the
+ * last checkpoint and still see every committed change, roll back
+ * transactions that were active across the checkpoint, and old WAL files
+ * must be deleted once no checkpoint needs them.
+ */
+@Test
+public class TestCheckpoint extends TransactionTestCase {
+
+    /** A string value that makes each row take up a good part of a page. */
+    private static final String LONG_VALUE;
+
+    static {
+        char[] chars = new char[1000];
+        Arrays.fill(chars, 'x');
+        LONG_VALUE = new String(chars);
+    }
+
+
+    /** The number of rows that each insert adds to the recycling test's table. */
+    private static final int ROWS_PER_INSERT = 100;
+
+
+    public TestCheckpoint() {
+        super(null);
+    }
+
+
+    @BeforeClass
+    @Override
+    public void beforeClass() throws Exception {
+        // The tests take their own checkpoints.
+        System.setProperty(Checkpointer.PROP_CHECKPOINT_INTERVAL, "0");
+
+        super.beforeClass();
+    }
+
+
+    @AfterClass
+    @Override
+    public void afterClass() {
+        System.clearProperty(Checkpointer.PROP_CHECKPOINT_INTERVAL);
+
+        super.afterClass();
+    }
+
+
+    private TransactionManager getTransactionManager() {
+        return server.getStorageManager().getTransactionManager();
+    }
+
+
+    private int countWALFiles() {
+        String[] filenames =
+            server.getStorageManager().getBaseDir().list();
+        assert filenames != null;
+
+        int count = 0;
+        for (String filename : filenames) {
+            if (WALManager.isWALFileName(filename))
+                count++;
+        }
+        return count;
+    }
+
+
+    private void checkCount(String table, int expectedCount) throws Throwable {
+        CommandResult result =
+            tryDoCommand("SELECT COUNT(*) FROM " + table, true);
+        TupleLiteral[] expected = { createTupleFromNum(expectedCount) };
+        assert checkSizeResults(expected, result);
+        assert checkUnorderedResults(expected, result);
+    }
+
+
+    /**
+     * Changes committed both before and after a checkpoint must survive a
+     * restart, which starts recovery from the checkpoint.
+     */
+    public void testRecoveryFromCheckpoint() throws Throwable {
+        tryDoCommand("CREATE TABLE ckpt_commit (a int, b int)");
+        for (int i = 0; i < 50; i++)
+            tryDoCommand("INSERT INTO ckpt_commit VALUES (" + i + ", 1)");
+
+        getTransactionManager().checkpoint();
+
+        for (int i = 50; i < 100; i++)
+            tryDoCommand("INSERT INTO ckpt_commit VALUES (" + i + ", 2)");
+        tryDoCommand("UPDATE ckpt_commit SET b = 3 WHERE a < 10");
+        tryDoCommand("DELETE FROM ckpt_commit WHERE a >= 90");
+
+        // A second checkpoint writes the pages that were dirty before the
+        // first one started.
+        getTransactionManager().checkpoint();
+        tryDoCommand("DELETE FROM ckpt_commit WHERE a >= 80");
+
+        restartServer();
+
+        checkCount("ckpt_commit", 80);
+        checkCount("ckpt_commit WHERE b = 3", 10);
+    }
+
+
+    /**
+     * A transaction that is still active when the server stops must be
+     * rolled back by recovery, even if its first records come before the
+     * point where redo processing starts.
+     */
+    public void testActiveTransactionRolledBack() throws Throwable {
+        tryDoCommand("CREATE TABLE ckpt_active (a int)");
+        tryDoCommand("INSERT INTO ckpt_active VALUES (-1)");
+
+        // Leave a transaction open in a session of its own.
+        Throwable[] failure = new Throwable[1];
+        Thread t = new Thread(() -> {
+            try {
+                server.doCommand("BEGIN", false);
+                for (int i = 0; i < 20; i++) {
+                    CommandResult result = server.doCommand(
+                        "INSERT INTO ckpt_active VALUES (" + i + ")", false);
+                    if (result.failed())
+                        throw result.getFailure();
+                }
+
+                getTransactionManager().checkpoint();
+                getTransactionManager().checkpoint();
+
+                for (int i = 20; i < 40; i++) {
+                    CommandResult result = server.doCommand(
+                        "INSERT INTO ckpt_active VALUES (" + i + ")", false);
+                    if (result.failed())
+                        throw result.getFailure();
+                }
+            }
+            catch (Throwable e) {
+                failure[0] = e;
+            }
+            finally {
+                SessionState.remove();
+            }
+        });
+        t.start();
+        t.join();
+
+        if (failure[0] != null)
+            throw failure[0];
+
+        restartServer();
+
+        checkCount("ckpt_active", 1);
+    }
+
+
+    /**
+     * Once a checkpoint no longer needs the records in a WAL file, the file
+     * is deleted, and the data must still survive a restart.
+     */
+    public void testOldWALFilesRecycled() throws Throwable {
+        tryDoCommand("CREATE TABLE ckpt_source (a int, b varchar(1000))");
+        tryDoCommand("CREATE TABLE ckpt_recycle (a int, b varchar(1000))");
+        for (int i = 0; i < ROWS_PER_INSERT; i++) {
+            tryDoCommand("INSERT INTO ckpt_source VALUES (1, '" +
+                LONG_VALUE + "')");
+        }
+
+        // Add rows until the table's changes have filled more than one WAL
+        // file.
+        int rows = 0;
+        while (countWALFiles() < 2) {
+            tryDoCommand("INSERT INTO ckpt_recycle SELECT * FROM ckpt_source");
+            rows += ROWS_PER_INSERT;
+        }
+
+        PerformanceCounters.clear(PerformanceCounters.WAL_FILES_RECYCLED);
+
+        tryDoCommand("UPDATE ckpt_recycle SET a = 2");
+        getTransactionManager().checkpoint();
+        getTransactionManager().checkpoint();
+
+        assert PerformanceCounters.get(PerformanceCounters.WAL_FILES_RECYCLED) > 0;
+        assert !new File(server.getStorageManager().getBaseDir(),
+            WALManager.getWALFileName(0)).exists();
+
+        restartServer();
+
+        checkCount("ckpt_recycle", rows);
+        checkCount("ckpt_recycle WHERE a = 2", rows);
+    }
+}
@@ -0,0 +1,127 @@
+package edu.caltech.test.nanodb.writeahead;
+
+
+import java.util.ArrayList;
+import java.util.concurrent.CyclicBarrier;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.client.SessionState;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.server.CommandResult;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+import edu.caltech.nanodb.transactions.TransactionManager;
+
+
+/**
+ * This class exercises group commit in the transaction manager, by having
+ * several sessions commit transactions at the same time.
+ */
+@Test
+public class TestGroupCommit extends TransactionTestCase {
+
+    /** The number of sessions that commit at the same time. */
+    private static final int NUM_SESSIONS = 4;
+
+
+    /** The number of transactions each session commits. */
+    private static final int TXNS_PER_SESSION = 25;
+
+
+    public TestGroupCommit() {
+        super(null);
+    }
+
+
+    @BeforeClass
+    @Override
+    public void beforeClass() throws Exception {
+        // Give sessions plenty of time to join each other's flushes.
+        System.setProperty(TransactionManager.PROP_COMMIT_DELAY, "5000");
+
+        super.beforeClass();
+    }
+
+
+    @AfterClass
+    @Override
+    public void afterClass() {
+        System.clearProperty(TransactionManager.PROP_COMMIT_DELAY);
+
+        super.afterClass();
+    }
+
+
+    /**
+     * Each session inserts into its own table, one row per transaction.
+     * Every commit must survive a restart, and the sessions should have
+     * shared WAL flushes.
+     */
+    public void testConcurrentCommits() throws Throwable {
+        for (int i = 0; i < NUM_SESSIONS; i++)
+            tryDoCommand("CREATE TABLE group_commit_" + i + " (a int)", false);
+
+        PerformanceCounters.clear(PerformanceCounters.WAL_FLUSHES);
+        PerformanceCounters.clear(PerformanceCounters.WAL_GROUPED_COMMITS);
+
+        CyclicBarrier barrier = new CyclicBarrier(NUM_SESSIONS);
+        ArrayList<Throwable> failures = new ArrayList<>();
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < NUM_SESSIONS; i++) {
+            final int session = i;
+            Thread t = new Thread(() -> {
+                try {
+                    barrier.await();
+                    for (int j = 0; j < TXNS_PER_SESSION; j++) {
+                        CommandResult result = server.doCommand(
+                            "INSERT INTO group_commit_" + session +
+                            " VALUES (" + j + ")", false);
+
+                        if (result.failed())
+                            throw result.getFailure();
+                    }
+                }
+                catch (Throwable e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+                finally {
+                    SessionState.remove();
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+
+        for (Thread t : threads)
+            t.join();
+
+        if (!failures.isEmpty())
+            throw failures.get(0);
+
+        long flushes = PerformanceCounters.get(PerformanceCounters.WAL_FLUSHES);
+        long grouped =
+            PerformanceCounters.get(PerformanceCounters.WAL_GROUPED_COMMITS);
+
+        // Every commit either flushed the WAL itself, or was covered by
+        // another session's flush.  Flushes for evicted pages are counted
+        // too, so this is only a lower bound.
+        assert flushes + grouped >= NUM_SESSIONS * TXNS_PER_SESSION;
+        assert grouped > 0 : "No commits shared a WAL flush";
+
+        restartServer();
+
+        for (int i = 0; i < NUM_SESSIONS; i++) {
+            CommandResult result = server.doCommand(
+                "SELECT COUNT(*) FROM group_commit_" + i, true);
+            TupleLiteral[] expected = {
+                createTupleFromNum(TXNS_PER_SESSION)
+            };
+            assert checkSizeResults(expected, result);
+            assert checkUnorderedResults(expected, result);
+        }
+    }
+}
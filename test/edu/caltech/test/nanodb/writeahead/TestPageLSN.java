@@ -0,0 +1,91 @@
+package edu.caltech.test.nanodb.writeahead;
+
+
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.relations.TableInfo;
+import edu.caltech.nanodb.server.CommandResult;
+import edu.caltech.nanodb.server.performance.PerformanceCounters;
+import edu.caltech.nanodb.storage.DBFile;
+import edu.caltech.nanodb.storage.DBPage;
+import edu.caltech.nanodb.storage.StorageManager;
+
+
+/**
+ * This class exercises the page LSNs stored at the end of heap pages:  they
+ * must be written with the pages, and recovery must use them to skip the
+ * records whose changes are already on disk.
+ */
+@Test
+public class TestPageLSN extends TransactionTestCase {
+
+    public TestPageLSN() {
+        super(null);
+    }
+
+
+    private void checkCount(String table, int expectedCount) throws Throwable {
+        CommandResult result =
+            tryDoCommand("SELECT COUNT(*) FROM " + table, true);
+        TupleLiteral[] expected = { createTupleFromNum(expectedCount) };
+        assert checkSizeResults(expected, result);
+        assert checkUnorderedResults(expected, result);
+    }
+
+
+    /**
+     * Once a table's data pages have been written, they must hold the LSN of
+     * the last record written for them, while the header page must not.
+     */
+    public void testPageLSNStored() throws Throwable {
+        tryDoCommand("CREATE TABLE page_lsn_stored (a int, b varchar(100))");
+        for (int i = 0; i < 50; i++) {
+            tryDoCommand("INSERT INTO page_lsn_stored VALUES (" + i +
+                ", 'value " + i + "')");
+        }
+
+        restartServer();
+
+        StorageManager storageManager = server.getStorageManager();
+        TableInfo tableInfo = storageManager.getTableManager().openTable(
+            "PAGE_LSN_STORED");
+        DBFile dbFile = tableInfo.getTupleFile().getDBFile();
+        assert dbFile.hasPageLSNs();
+
+        DBPage headerPage = storageManager.loadDBPage(dbFile, 0);
+        assert !headerPage.hasStoredPageLSN();
+        assert headerPage.getStoredPageLSN() == null;
+        headerPage.unpin();
+
+        DBPage dataPage = storageManager.loadDBPage(dbFile, 1);
+        assert dataPage.hasStoredPageLSN();
+        assert dataPage.getUsableSize() ==
+            dataPage.getPageSize() - DBPage.PAGE_LSN_SIZE;
+        assert dataPage.getStoredPageLSN() != null;
+        dataPage.unpin();
+    }
+
+
+    /**
+     * When the server restarts, the pages written at shutdown already have
+     * every change that redo processing finds in the log, so the records
+     * must be skipped, and the table's contents must be unchanged.
+     */
+    public void testRedoSkipsWrittenPages() throws Throwable {
+        tryDoCommand("CREATE TABLE page_lsn_redo (a int, b int)");
+        for (int i = 0; i < 100; i++)
+            tryDoCommand("INSERT INTO page_lsn_redo VALUES (" + i + ", 1)");
+        tryDoCommand("UPDATE page_lsn_redo SET b = 2 WHERE a < 25");
+        tryDoCommand("DELETE FROM page_lsn_redo WHERE a >= 90");
+
+        PerformanceCounters.clear(PerformanceCounters.WAL_REDO_RECORDS_SKIPPED);
+        restartServer();
+
+        assert PerformanceCounters.get(
+            PerformanceCounters.WAL_REDO_RECORDS_SKIPPED) > 0;
+
+        checkCount("page_lsn_redo", 90);
+        checkCount("page_lsn_redo WHERE b = 2", 25);
+    }
+}
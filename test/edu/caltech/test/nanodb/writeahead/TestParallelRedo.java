@@ -0,0 +1,178 @@
+package edu.caltech.test.nanodb.writeahead;
+
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.client.SessionState;
+import edu.caltech.nanodb.expressions.TupleLiteral;
+import edu.caltech.nanodb.server.CommandResult;
+import edu.caltech.nanodb.server.NanoDBServer;
+import edu.caltech.nanodb.storage.writeahead.WALManager;
+import edu.caltech.nanodb.transactions.Checkpointer;
+
+
+/**
+ * This class exercises recovery with changes that never reached the data
+ * files, redone by one thread and by several.  A crash is simulated by
+ * copying the database's files while the server is running, after the
+ * changes have been committed but before the dirty pages are written, and
+ * then starting the server on the copy.
+ */
+@Test
+public class TestParallelRedo extends TransactionTestCase {
+
+    /** A string value that makes each row take up a good part of a page. */
+    private static final String LONG_VALUE;
+
+    static {
+        char[] chars = new char[500];
+        Arrays.fill(chars, 'y');
+        LONG_VALUE = new String(chars);
+    }
+
+
+    public TestParallelRedo() {
+        super(null);
+    }
+
+
+    @BeforeClass
+    @Override
+    public void beforeClass() throws Exception {
+        // Checkpoints would write the dirty pages.
+        System.setProperty(Checkpointer.PROP_CHECKPOINT_INTERVAL, "0");
+
+        super.beforeClass();
+    }
+
+
+    @AfterClass
+    @Override
+    public void afterClass() {
+        System.clearProperty(Checkpointer.PROP_CHECKPOINT_INTERVAL);
+        System.clearProperty(WALManager.PROP_REDO_THREADS);
+
+        super.afterClass();
+    }
+
+
+    /**
+     * Copies the database's files as they are on disk, stops the server,
+     * and starts a new server on the copy, with the specified number of redo
+     * threads.
+     */
+    private void crashAndRestart(int redoThreads) throws Exception {
+        File baseDir = server.getStorageManager().getBaseDir();
+        File crashDir = new File(baseDir.getParentFile(),
+            baseDir.getName() + "_crash");
+        if (crashDir.exists())
+            FileUtils.deleteDirectory(crashDir);
+        FileUtils.copyDirectory(baseDir, crashDir);
+
+        server.shutdown();
+
+        FileUtils.deleteDirectory(baseDir);
+        FileUtils.moveDirectory(crashDir, baseDir);
+
+        System.setProperty(WALManager.PROP_REDO_THREADS,
+            Integer.toString(redoThreads));
+        server = new NanoDBServer();
+        server.startup();
+    }
+
+
+    private void checkCount(String table, int expectedCount) throws Throwable {
+        CommandResult result =
+            tryDoCommand("SELECT COUNT(*) FROM " + table, true);
+        TupleLiteral[] expected = { createTupleFromNum(expectedCount) };
+        assert checkSizeResults(expected, result);
+        assert checkUnorderedResults(expected, result);
+    }
+
+
+    /**
+     * Fills several tables, and then changes some of their rows, so that
+     * redo processing has records for many pages in several files.
+     */
+    private void fillTables(String prefix) throws Throwable {
+        for (int t = 0; t < 3; t++) {
+            String table = prefix + t;
+            tryDoCommand("CREATE TABLE " + table + " (a int, b varchar(500))");
+
+            tryDoCommand("BEGIN");
+            for (int i = 0; i < 200; i++) {
+                tryDoCommand("INSERT INTO " + table + " VALUES (" + i + ", '" +
+                    LONG_VALUE + "')");
+            }
+            tryDoCommand("COMMIT");
+
+            tryDoCommand("UPDATE " + table + " SET a = -a WHERE a < 50");
+            tryDoCommand("DELETE FROM " + table + " WHERE a >= 180");
+        }
+
+        // Leave a transaction incomplete in a session of its own, so that
+        // it is rolled back.
+        String[] commands = {
+            "BEGIN",
+            "INSERT INTO " + prefix + "0 VALUES (1000, 'x')",
+            "DELETE FROM " + prefix + "1"
+        };
+
+        Throwable[] failure = new Throwable[1];
+        Thread t = new Thread(() -> {
+            try {
+                for (String command : commands) {
+                    CommandResult result = server.doCommand(command, false);
+                    if (result.failed())
+                        throw result.getFailure();
+                }
+            }
+            catch (Throwable e) {
+                failure[0] = e;
+            }
+            finally {
+                SessionState.remove();
+            }
+        });
+        t.start();
+        t.join();
+
+        if (failure[0] != null)
+            throw failure[0];
+
+        // The incomplete transaction's changes must reach the log before
+        // the crash.
+        server.getStorageManager().getTransactionManager().forceWAL();
+    }
+
+
+    private void checkTables(String prefix) throws Throwable {
+        for (int t = 0; t < 3; t++) {
+            String table = prefix + t;
+            checkCount(table, 180);
+            checkCount(table + " WHERE a < 0", 49);
+        }
+    }
+
+
+    /** Changes must be recovered when they are redone by one thread. */
+    public void testSerialRedo() throws Throwable {
+        fillTables("redo_serial_");
+        crashAndRestart(1);
+        checkTables("redo_serial_");
+    }
+
+
+    /** Changes must be recovered when they are redone by several threads. */
+    public void testParallelRedo() throws Throwable {
+        fillTables("redo_parallel_");
+        crashAndRestart(4);
+        checkTables("redo_parallel_");
+    }
+}
@@ -0,0 +1,133 @@
+package edu.caltech.test.nanodb.writeahead;
+
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import edu.caltech.nanodb.storage.DBFile;
+import edu.caltech.nanodb.storage.writeahead.LogSequenceNumber;
+import edu.caltech.nanodb.storage.writeahead.WALFileReader;
+import edu.caltech.nanodb.storage.writeahead.WALManager;
+import edu.caltech.nanodb.storage.writeahead.WALRecordBuilder;
+import edu.caltech.nanodb.storage.writeahead.WALWriter;
+
+import static org.testng.Assert.*;
+
+
+/**
+ * This class exercises the WAL writer directly, without a server, by
+ * appending records through a small ring of small log buffers and reading
+ * them back from the WAL file.
+ */
+@Test
+public class TestWALWriter {
+
+    /** The number of records appended by each test. */
+    private static final int NUM_RECORDS = 500;
+
+
+    private File baseDir;
+
+
+    @BeforeMethod
+    public void beforeMethod() throws IOException {
+        baseDir = new File("test_datafiles", "wal_writer");
+        if (baseDir.exists())
+            FileUtils.deleteDirectory(baseDir);
+        baseDir.mkdirs();
+
+        // Make the buffers small enough that appends wrap around the ring.
+        System.setProperty(WALWriter.PROP_WAL_BUFFERS, "2");
+        System.setProperty(WALWriter.PROP_WAL_BUFFER_SIZE, "1024");
+    }
+
+
+    @AfterMethod
+    public void afterMethod() throws IOException {
+        System.clearProperty(WALWriter.PROP_WAL_BUFFERS);
+        System.clearProperty(WALWriter.PROP_WAL_BUFFER_SIZE);
+        FileUtils.deleteDirectory(baseDir);
+    }
+
+
+    /**
+     * Returns the length of the specified record.  Every 50th record is
+     * larger than a log buffer.
+     */
+    private static int recordLength(int i) {
+        return (i % 50 == 49) ? 3000 : 5 + i % 40;
+    }
+
+
+    /**
+     * Appends records of different sizes, including records larger than a
+     * log buffer, and checks that they are all in the WAL file once they
+     * are durable.
+     */
+    public void testAppendAndReadBack() throws IOException {
+        WALWriter writer = new WALWriter(null, baseDir, DBFile.DEFAULT_PAGESIZE);
+        LogSequenceNumber lsn =
+            new LogSequenceNumber(0, WALManager.OFFSET_FIRST_RECORD);
+        writer.start(lsn);
+
+        WALRecordBuilder record = new WALRecordBuilder();
+        for (int i = 0; i < NUM_RECORDS; i++) {
+            record.reset(lsn.getFileOffset());
+            record.writeInt(i);
+            for (int j = 4; j < recordLength(i); j++)
+                record.writeByte(i + j);
+
+            writer.append(lsn, record);
+            lsn = WALManager.computeNextLSN(0, record.getPosition());
+        }
+
+        writer.waitForDurable(lsn);
+        assertEquals(writer.getDurableLSN(), lsn);
+
+        try (WALFileReader reader = new WALFileReader(
+            new File(baseDir, WALManager.getWALFileName(0)), 0)) {
+
+            assertEquals(reader.getFormatVersion(), DBFile.CURRENT_FORMAT_VERSION);
+
+            reader.setPosition(WALManager.OFFSET_FIRST_RECORD);
+            for (int i = 0; i < NUM_RECORDS; i++) {
+                assertEquals(reader.readInt(), i);
+                for (int j = 4; j < recordLength(i); j++)
+                    assertEquals(reader.readByte(), (byte) (i + j));
+            }
+            assertEquals(reader.getPosition(), lsn.getFileOffset());
+        }
+
+        writer.close(null);
+    }
+
+
+    /**
+     * Closing the writer must write out the records that haven't been
+     * forced yet.
+     */
+    public void testCloseWritesRecords() throws IOException {
+        WALWriter writer = new WALWriter(null, baseDir, DBFile.DEFAULT_PAGESIZE);
+        LogSequenceNumber lsn =
+            new LogSequenceNumber(0, WALManager.OFFSET_FIRST_RECORD);
+        writer.start(lsn);
+
+        WALRecordBuilder record = new WALRecordBuilder();
+        record.reset(lsn.getFileOffset());
+        record.writeVarString255("last record");
+        writer.append(lsn, record);
+        writer.close(null);
+
+        try (WALFileReader reader = new WALFileReader(
+            new File(baseDir, WALManager.getWALFileName(0)), 0)) {
+
+            reader.setPosition(WALManager.OFFSET_FIRST_RECORD);
+            assertEquals(reader.readVarString255(), "last record");
+        }
+    }
+}